@@ -40,6 +40,10 @@ public final class PoolThread extends Thread implements IdentifiableThread
 	private final int id;
 	
 	private boolean initialized = false;
+	
+	private boolean detached = false;
+	private boolean detachedWorkReturned = false;
+	private boolean detachedWorkCompleted = false;
 			
 	/**
 	 * Created a new PoolThread object.
@@ -151,6 +155,8 @@ public final class PoolThread extends Thread implements IdentifiableThread
 			{
 			   worker.work();
 			   
+			   if( this.detachedWorkReturned() ) return; // The worker continues without this thread
+			   
 			   //LoadValue.setThreadLoad(0);
 
 				worker.cleanUp();
@@ -161,6 +167,74 @@ public final class PoolThread extends Thread implements IdentifiableThread
 		}
 	}
 	
+	/**
+	 * Detaches the associated PoolWorker from this PoolThread. This method must be called from this thread, during the execution of the 
+	 * work method of the PoolWorker. When the work method returns, this thread will terminate without cleaning up the PoolWorker and 
+	 * without returning to the pool. The work of the PoolWorker is then considered to be ongoing (and the PoolThread checked out) until 
+	 * {@link #detachedWorkCompleted()} is called.
+	 * 
+	 * @since 2.2.1
+	 */
+	synchronized void detach()
+	{
+	   if( Thread.currentThread() != this ) throw new IllegalStateException("A worker may only be detached from its own thread!");
+	   this.detached = true;
+	}
+	
+	/**
+	 * Checks if the associated PoolWorker has been detached from this PoolThread.
+	 * 
+	 * @since 2.2.1
+	 */
+	public synchronized boolean isDetached()
+	{
+	   return this.detached;
+	}
+	
+	/**
+	 * Called when the work of a detached PoolWorker has been completed. If the work method has already returned, the PoolWorker is cleaned 
+	 * up and this (terminated) PoolThread is reported as bad to the ThreadPool, which replaces it with a new PoolThread. Otherwise that is 
+	 * done by this thread when the work method returns.
+	 * 
+	 * @since 2.2.1
+	 */
+	void detachedWorkCompleted()
+	{
+	   synchronized(this)
+	   {
+	      if( !this.detached || this.detachedWorkCompleted ) return;
+	      this.detachedWorkCompleted = true;
+	      if( !this.detachedWorkReturned ) return;
+	   }
+	   
+	   this.finishDetachedWork();
+	}
+	
+	/**
+	 * Called by this thread when the work method has returned, to check if the PoolWorker has been detached.
+	 */
+	private boolean detachedWorkReturned()
+	{
+	   synchronized(this)
+	   {
+	      if( !this.detached ) return false;
+	      this.detachedWorkReturned = true;
+	      if( !this.detachedWorkCompleted ) return true;
+	   }
+	   
+	   this.finishDetachedWork();
+	   return true;
+	}
+	
+	/**
+	 * Cleans up the detached PoolWorker and reports this PoolThread as bad, since it can't be reused once it has terminated.
+	 */
+	private void finishDetachedWork()
+	{
+	   worker.cleanUp();
+	   parent.badObject(this);
+	}
+	
 	/**
 	 * Destroys this PoolThread.
 	 */
@@ -103,6 +103,40 @@ public abstract class PoolWorker extends LoggableObject
 		return thread;
 	}
 	
+	/**
+	 * Detaches this PoolWorker from its thread. This method must be called from the work method, when the work is to be continued by other 
+	 * threads (for instance by the I/O threads of a selector). When the work method returns, the thread will terminate instead of cleaning 
+	 * up this PoolWorker and returning to the pool. When the work is done, {@link #detachedWorkCompleted()} must be called, which will 
+	 * clean up this PoolWorker and replace the terminated thread in the pool.
+	 * 
+	 * @since 2.2.1
+	 */
+	protected final void detachFromThread()
+	{
+	   thread.detach();
+	}
+	
+	/**
+	 * Checks if this PoolWorker has been detached from its thread (see {@link #detachFromThread()}).
+	 * 
+	 * @since 2.2.1
+	 */
+	public final boolean isDetachedFromThread()
+	{
+	   return (thread != null) && thread.isDetached();
+	}
+	
+	/**
+	 * Signals that the work of this PoolWorker, after it has been detached from its thread (see {@link #detachFromThread()}), has been 
+	 * completed. Calling this method more than once has no effect.
+	 * 
+	 * @since 2.2.1
+	 */
+	protected final void detachedWorkCompleted()
+	{
+	   thread.detachedWorkCompleted();
+	}
+	
 	/**
 	 * Gets the name of this PoolWorker.
 	 * 
@@ -24,6 +24,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 import com.teletalk.jserver.SubComponent;
+import com.teletalk.jserver.property.BooleanProperty;
 import com.teletalk.jserver.property.NumberProperty;
 import com.teletalk.jserver.property.Property;
 import com.teletalk.jserver.property.StringProperty;
@@ -33,7 +34,12 @@ import com.teletalk.jserver.util.NoHeadersObjectOutputStream;
 import com.teletalk.jserver.util.filedb.LowLevelFileDB;
 
 /**
- * This class implements a queue storage mechanism that uses a low level file database to store queue items. 
+ * This class implements a queue storage mechanism that uses a low level file database to store queue items.<br>
+ * <br>
+ * By default, the file database is flushed to disk every <code>flushInterval</code> write operations. When the property 
+ * <code>groupCommit</code> is set to <code>true</code>, each write operation instead returns first when the written data has been 
+ * forced to disk. The flushes are shared between concurrent callers: while one thread (the leader) flushes the file database, 
+ * other writing threads wait, after which a single flush performed by the next leader covers all the writes made in the meantime.
  * 
  * @see com.teletalk.jserver.queue.Queue
  * @see com.teletalk.jserver.util.filedb.LowLevelFileDB
@@ -42,7 +48,7 @@ import com.teletalk.jserver.util.filedb.LowLevelFileDB;
  * 
  * @since 1.02
  */
-public final class FileDBQueueStorage extends SubComponent implements QueueStorage
+public class FileDBQueueStorage extends SubComponent implements QueueStorage
 {
    private static interface FileDBAction
    {
@@ -76,11 +82,19 @@ public final class FileDBQueueStorage extends SubComponent implements QueueStora
 	private NumberProperty fileDBNoOfDataBlocks;
 	private NumberProperty fileDBNoOfIndexBlocks;
    private NumberProperty flushInterval;
+   private BooleanProperty groupCommit;
 	
 	private boolean useAlternativeObjectOutputStreamResetMethod = false;
    
    private long writeFlushCounter = 0;
    
+   //Group commit
+   private final Object groupCommitLock = new Object();
+   private long writeSequence = 0; // Guarded by the file db lock
+   private long flushedSequence = 0; // Guarded by groupCommitLock
+   private boolean flushInProgress = false; // Guarded by groupCommitLock
+   private long groupCommitFlushCount = 0; // Guarded by groupCommitLock
+   
 	/**
 	 * Creates a new SimpleFileQueueStorage object.
 	 * 
@@ -115,12 +129,16 @@ public final class FileDBQueueStorage extends SubComponent implements QueueStora
       
       flushInterval = new NumberProperty(this, "flushInterval", 100, NumberProperty.MODIFIABLE_NO_RESTART);
       flushInterval.setDescription("The file database flush interval.");
+      
+      groupCommit = new BooleanProperty(this, "groupCommit", false, BooleanProperty.MODIFIABLE_NO_RESTART);
+      groupCommit.setDescription("Flag indicating if each write operation should be forced to disk before returning, using flushes shared between concurrent callers (group commit).");
 			
 		addProperty(fileDBBlockSize);
 		addProperty(fileDBNoOfDataBlocks);
 		addProperty(fileDBNoOfIndexBlocks);
 		addProperty(dbFilePath);
       addProperty(flushInterval);
+      addProperty(groupCommit);
 		
 		//Set alternative reset method if the version of the VM is 1.3
 		if(com.teletalk.jserver.util.JavaBugUtils.isUsingJava1_3_0())
@@ -380,6 +398,54 @@ public final class FileDBQueueStorage extends SubComponent implements QueueStora
 	{
 		return this.fileDBNoOfIndexBlocks.intValue();
 	}
+   
+   /**
+    * Sets the flag indicating if group commit should be used, i.e. if each write operation should be forced to disk before returning, using 
+    * flushes shared between concurrent callers.
+    * 
+    * @since 2.2.1
+    */
+   public void setGroupCommit(final boolean groupCommit)
+   {
+      this.groupCommit.setValue(groupCommit);
+   }
+   
+   /**
+    * Gets the flag indicating if group commit should be used, i.e. if each write operation should be forced to disk before returning, using 
+    * flushes shared between concurrent callers.
+    * 
+    * @since 2.2.1
+    */
+   public boolean isGroupCommit()
+   {
+      return this.groupCommit.booleanValue();
+   }
+   
+   /**
+    * Gets the number of flushes performed in group commit mode.
+    * 
+    * @since 2.2.1
+    */
+   long getGroupCommitFlushCount()
+   {
+      synchronized(this.groupCommitLock)
+      {
+         return this.groupCommitFlushCount;
+      }
+   }
+   
+   /**
+    * Gets the sequence number of the last write operation performed in group commit mode.
+    * 
+    * @since 2.2.1
+    */
+   long getWriteSequence()
+   {
+      synchronized(this.fileDB.getLock())
+      {
+         return this.writeSequence;
+      }
+   }
 		
 	/**
 	 * Sets the flag indicating if an alternative method should be used when resetting the object output streams 
@@ -438,12 +504,25 @@ public final class FileDBQueueStorage extends SubComponent implements QueueStora
       {
          try
          {
+            final LowLevelFileDB db = this.fileDB;
             Object result = fileDBAction.performAction();
-            synchronized(this.fileDB.getLock())
+            if( flush && this.groupCommit.booleanValue() )
+            {
+               long sequence;
+               synchronized(db.getLock())
+               {
+                  sequence = ++this.writeSequence;
+               }
+               this.groupCommit(db, sequence);
+            }
+            else
             {
-               if( flush && ((++writeFlushCounter) % this.flushInterval.longValue()) == 0 )
+               synchronized(db.getLock())
                {
-                  this.fileDB.flush();
+                  if( flush && ((++writeFlushCounter) % this.flushInterval.longValue()) == 0 )
+                  {
+                     db.flush();
+                  }
                }
             }
             return result;
@@ -474,6 +553,67 @@ public final class FileDBQueueStorage extends SubComponent implements QueueStora
       throw new QueueStorageException("All attempts to " + actionDescription + " failed!", error);
    }
    
+   /**
+    * Waits until all writes up to and including the write with the specified sequence number have been flushed to disk. If no flush 
+    * is in progress, the calling thread becomes the leader and flushes the file database on behalf of all threads that have written 
+    * data since the last flush. Otherwise the calling thread waits for the current flush to complete, after which it either returns 
+    * (if its write was covered by the flush) or becomes the leader of the next flush.
+    */
+   private void groupCommit(final LowLevelFileDB db, final long sequence) throws IOException
+   {
+      synchronized(this.groupCommitLock)
+      {
+         while(true)
+         {
+            if( this.flushedSequence >= sequence ) return;
+            if( !this.flushInProgress ) break;
+            try{
+            this.groupCommitLock.wait();
+            }catch(InterruptedException ie){ throw new IOException("Interrupted while waiting for file database flush!"); }
+         }
+         this.flushInProgress = true;
+      }
+      
+      try
+      {
+         final long targetSequence = this.groupCommitFlush(db);
+         
+         synchronized(this.groupCommitLock)
+         {
+            if( targetSequence > this.flushedSequence ) this.flushedSequence = targetSequence;
+            this.groupCommitFlushCount++;
+         }
+      }
+      finally
+      {
+         synchronized(this.groupCommitLock)
+         {
+            this.flushInProgress = false;
+            this.groupCommitLock.notifyAll();
+         }
+      }
+   }
+   
+   /**
+    * Flushes the file database on behalf of all writers waiting for a group commit. This method is called by the leader of a group 
+    * commit, and returns the sequence number of the last write covered by the flush.
+    * 
+    * @param db the file database to flush.
+    * 
+    * @return the sequence number of the last write covered by the flush.
+    * 
+    * @since 2.2.1
+    */
+   protected long groupCommitFlush(final LowLevelFileDB db) throws IOException
+   {
+      synchronized(db.getLock())
+      {
+         final long targetSequence = this.writeSequence;
+         db.flush();
+         return targetSequence;
+      }
+   }
+   
 	/**
 	 * Adds a QueueItem to persistant storage. This method stores each QueueItem in a file database.
 	 * 
@@ -17,12 +17,18 @@ package com.teletalk.jserver.queue;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
 
 import com.teletalk.jserver.StatusTransitionException;
 import com.teletalk.jserver.SubComponent;
+import com.teletalk.jserver.comm.EndPointIdentifier;
 import com.teletalk.jserver.property.VectorProperty;
 import com.teletalk.jserver.property.VectorPropertyOwner;
 
@@ -36,7 +42,20 @@ import com.teletalk.jserver.property.VectorPropertyOwner;
  * the class {@link NullQueueStorage} is provided. <br>
  * <br>
  * The Queue class is used by the QueueManager to represent the in and out queues of a queue system, however it can also
- * be used stand alone.
+ * be used stand alone.<br>
+ * <br>
+ * Operations on the associated QueueStorage are performed <i>after</i> the lock of the queue (see {@link #getLock()}) 
+ * has been released, so that storage I/O doesn't block other threads operating on the queue. Storage operations for the 
+ * same item are performed in the same order as the corresponding changes of the in-memory state of the queue. Items added 
+ * to the queue become available for check out first when they have been stored. Code that performs several operations 
+ * on queues while holding the queue lock (for instance to maintain invariants between queues) may use the methods 
+ * {@link #beginDeferredStorageOperations()} and {@link #endDeferredStorageOperations(boolean)} to defer the storage 
+ * operations until the lock has been released.<br>
+ * <br>
+ * The queue maintains secondary indices of its items by parent id, sender/receiver address and status, which are used by 
+ * lookup methods such as {@link #getWithParentId(String)}, {@link #getWithAddress(EndPointIdentifier)} and 
+ * {@link #getAllWithStatus(int)}. The indices are updated when items are added to and removed from the queue, and when 
+ * the status or address of an item in the queue is changed.
  * 
  * @see com.teletalk.jserver.queue.QueueItem
  * @see com.teletalk.jserver.queue.QueueStorage
@@ -73,10 +92,114 @@ public class Queue extends SubComponent implements VectorPropertyOwner
    }
    
    
+   /**
+    * A pending operation on the queue storage. The operation is assigned a ticket for each item it concerns when created 
+    * (while holding the queue lock), and is performed when it's the turn of all those tickets.
+    * 
+    * @since 2.2.1
+    */
+   private abstract class StorageOperation
+   {
+      final QueueItem[] items;
+      
+      final long[] tickets;
+      
+      final boolean propagateError;
+      
+      StorageOperation(final QueueItem[] items, final boolean propagateError)
+      {
+         this.items = items;
+         this.tickets = new long[items.length];
+         this.propagateError = propagateError;
+         
+         synchronized (storageTurnLock)
+         {
+            long[] turn;
+            for (int i = 0; i < items.length; i++)
+            {
+               turn = (long[]) storageTurns.get(items[i].getId());
+               if (turn == null)
+               {
+                  turn = new long[2];
+                  storageTurns.put(items[i].getId(), turn);
+               }
+               this.tickets[i] = turn[0]++;
+            }
+         }
+      }
+      
+      Queue getQueue()
+      {
+         return Queue.this;
+      }
+      
+      abstract void perform() throws QueueStorageException;
+      
+      /** Called (without holding any storage turns) when the operation completed successfully. */
+      void succeeded()
+      {
+      }
+      
+      /** Called (without holding any storage turns) when the operation failed. */
+      void failed(final QueueStorageException qse)
+      {
+      }
+   }
+   
+   
+   /**
+    * The index keys of an item in the queue, i.e. the values used when the item was last indexed.
+    * 
+    * @since 2.2.1
+    */
+   private static final class IndexKeys
+   {
+      final QueueItem item;
+      
+      final String parentId;
+      
+      String addressKey;
+      
+      Short status;
+      
+      IndexKeys(final QueueItem item)
+      {
+         this.item = item;
+         this.parentId = item.getParentId();
+         this.addressKey = getAddressKey(item.getSenderReceiverAddress());
+         this.status = new Short(item.getStatus());
+      }
+   }
+   
+   
    /*
     * Synchronization summary: When aquiring multiple locks, lock in the following order: QueueItem, Queue
-    * (VectorProperty), QueueStorage
+    * (VectorProperty; out-queue before in-queue), QueueStorage. The storage turn lock and the queue items lock of the 
+    * QueueManager are leaf locks, and no other locks may be aquired while holding a storage turn (i.e. during the 
+    * execution of StorageOperation.perform()).
     */
+   
+   /** Thread local list for storage operations that are deferred until the end of the current deferral scope. */
+   private static final ThreadLocal deferredStorageOperations = new ThreadLocal();
+   
+   private final Object storageTurnLock = new Object();
+   
+   private final HashMap storageTurns = new HashMap(); // Item id -> long[]{next ticket, current turn}. Guarded by storageTurnLock.
+   
+   private final HashSet pendingQueuedItems = new HashSet(); // Added items that will be put in the queuedItemsList once stored
+   
+   private final HashMap indexKeys = new HashMap(); // Item id -> IndexKeys
+   
+   private final HashMap parentIdIndex = new HashMap(); // Parent id -> LinkedHashMap(item id -> item)
+   
+   private final IdentityHashMap itemDataIndex = new IdentityHashMap(); // Item data -> first added item wrapping it
+   
+   /** Cache of QueueItemData classes and Boolean flags indicating if the classes use the identity based equals of Object. */
+   private static final HashMap identityEqualsClasses = new HashMap();
+   
+   private final HashMap addressIndex = new HashMap(); // Address string (null for no address) -> LinkedHashMap(item id -> item)
+   
+   private final HashMap statusIndex = new HashMap(); // Status (Short) -> LinkedHashMap(item id -> item)
 
    private LinkedList queuedItemsList; // List for QueueItems with status QUEUED
 
@@ -192,14 +315,187 @@ public class Queue extends SubComponent implements VectorPropertyOwner
    }
 
    /**
-    * Gets the object used for synchronization of this Queue object.
+    * Gets the object used for synchronization of this Queue object. Each queue has a lock of its own, also when it's 
+    * used by a QueueManager, so that operations on the in-queue of a QueueManager don't contend with operations on the 
+    * out-queue. The invariants between parent items in the in-queue and their child items in the out-queue are guarded 
+    * by the queue items lock of the QueueManager (see {@link QueueManager#getQueueItemsLock()}). If the locks of both 
+    * queues of a QueueManager must be held, the lock of the out-queue must be aquired first.
     * 
     * @return the synchronization object.
     */
    public Object getLock()
    {
-      if( this.getQueueManager() != null ) return getQueueManager().getQueueItemsLock();
-      else return this;
+      return this;
+   }
+   
+   /**
+    * Begins a scope in which storage operations resulting from operations on queues, performed by the current thread, are 
+    * deferred until the scope ends. This method is intended to be used by code that performs several operations on queues 
+    * while holding the queue lock, to avoid performing storage I/O while holding the lock. The usage pattern is as follows:
+    * <pre>
+    * final boolean deferralScope = Queue.beginDeferredStorageOperations();
+    * try
+    * {
+    *    synchronized(queue.getLock())
+    *    {
+    *       ...
+    *    }
+    * }
+    * finally
+    * {
+    *    Queue.endDeferredStorageOperations(deferralScope);
+    * }
+    * </pre>
+    * The queue lock must only be aquired once within a scope. Scopes may be nested, in which case only the outermost scope 
+    * is effective.
+    * 
+    * @return <code>true</code> if a new scope was begun, <code>false</code> if a scope already was active for the 
+    * current thread. This value should be passed to the method {@link #endDeferredStorageOperations(boolean)}.
+    * 
+    * @since 2.2.1
+    */
+   public static boolean beginDeferredStorageOperations()
+   {
+      if( deferredStorageOperations.get() != null ) return false;
+      
+      deferredStorageOperations.set(new ArrayList());
+      return true;
+   }
+   
+   /**
+    * Ends a scope begun by {@link #beginDeferredStorageOperations()}, performing all deferred storage operations. This 
+    * method must not be called while holding the queue lock.
+    * 
+    * @param deferralScope the value returned by the corresponding call to {@link #beginDeferredStorageOperations()}.
+    * 
+    * @exception QueueStorageException if a deferred storage operation that normally would have resulted in an 
+    * exception failed (such as storing an added item). All deferred operations are performed before the exception is 
+    * thrown. 
+    * 
+    * @since 2.2.1
+    */
+   public static void endDeferredStorageOperations(final boolean deferralScope) throws QueueStorageException
+   {
+      if( !deferralScope ) return;
+      
+      final ArrayList operations = (ArrayList)deferredStorageOperations.get();
+      deferredStorageOperations.set(null);
+      
+      if( operations == null ) return;
+      
+      QueueStorageException error = null;
+      final QueueStorageException[] operationErrors = new QueueStorageException[operations.size()];
+      StorageOperation operation;
+      
+      // Perform all operations before invoking any completion callbacks, since the callbacks may block on the queue lock, and 
+      // a thread holding that lock may be waiting for the turn of an operation later in the list
+      for(int i=0; i<operations.size(); i++)
+      {
+         operation = (StorageOperation)operations.get(i);
+         operationErrors[i] = operation.getQueue().performStorageOperationInTurn(operation);
+      }
+      
+      for(int i=0; i<operations.size(); i++)
+      {
+         operation = (StorageOperation)operations.get(i);
+         operation.getQueue().completeStorageOperation(operation, operationErrors[i]);
+         if( (operationErrors[i] != null) && operation.propagateError && (error == null) ) error = operationErrors[i];
+      }
+      
+      if( error != null ) throw error;
+   }
+   
+   /**
+    * Performs a storage operation, or defers it if a deferral scope is active for the current thread. This method is 
+    * called after the queue lock has been released (unless the lock is held by an outer critical section).
+    * 
+    * @return the error that occurred while performing the operation, or <code>null</code> if the operation succeeded or was deferred.
+    */
+   private QueueStorageException performStorageOperation(final StorageOperation operation)
+   {
+      final ArrayList operations = (ArrayList)deferredStorageOperations.get();
+      if( operations != null )
+      {
+         operations.add(operation);
+         return null;
+      }
+      else return this.executeStorageOperation(operation);
+   }
+   
+   /**
+    * Executes a storage operation when it's the turn of all the items it concerns, and invokes its completion callback.
+    */
+   private QueueStorageException executeStorageOperation(final StorageOperation operation)
+   {
+      final QueueStorageException error = this.performStorageOperationInTurn(operation);
+      this.completeStorageOperation(operation, error);
+      return error;
+   }
+   
+   /**
+    * Performs a storage operation when it's the turn of all the items it concerns, without invoking its completion callback. 
+    * No storage turns are held when this method returns.
+    */
+   private QueueStorageException performStorageOperationInTurn(final StorageOperation operation)
+   {
+      boolean interrupted = false;
+      QueueStorageException error = null;
+      long[] turn;
+      
+      // Wait for turn
+      synchronized (this.storageTurnLock)
+      {
+         for (int i = 0; i < operation.items.length; i++)
+         {
+            turn = (long[]) this.storageTurns.get(operation.items[i].getId());
+            while (turn[1] != operation.tickets[i])
+            {
+               try{
+               this.storageTurnLock.wait();
+               }catch(InterruptedException ie){ interrupted = true; } // Don't give up the turn - that would stall all subsequent operations
+            }
+         }
+      }
+      
+      try
+      {
+         operation.perform();
+      }
+      catch (QueueStorageException qse)
+      {
+         error = qse;
+      }
+      catch (RuntimeException re)
+      {
+         error = new QueueStorageException("Unexpected error while performing storage operation!", re);
+      }
+      finally
+      {
+         synchronized (this.storageTurnLock)
+         {
+            for (int i = 0; i < operation.items.length; i++)
+            {
+               turn = (long[]) this.storageTurns.get(operation.items[i].getId());
+               turn[1]++;
+               if (turn[1] == turn[0]) this.storageTurns.remove(operation.items[i].getId());
+            }
+            this.storageTurnLock.notifyAll();
+         }
+         
+         if (interrupted) Thread.currentThread().interrupt();
+      }
+      
+      return error;
+   }
+   
+   /**
+    * Invokes the completion callback of a storage operation. This method must never be called while holding a storage turn, 
+    * since the callbacks may aquire the queue lock.
+    */
+   private void completeStorageOperation(final StorageOperation operation, final QueueStorageException error)
+   {
+      if (error == null) operation.succeeded();
+      else operation.failed(error);
    }
 
    /**
@@ -274,6 +570,7 @@ public class Queue extends SubComponent implements VectorPropertyOwner
    private void queueItemAdded(QueueItem item)
    {
       item.setQueue(this);
+      indexItem(item);
       queueItemAddNotification(item);
    }
 
@@ -289,8 +586,108 @@ public class Queue extends SubComponent implements VectorPropertyOwner
    private void queueItemRemoved(QueueItem item)
    {
       item.setQueue(null);
+      unindexItem(item);
       queueItemRemoveNotification(item);
    }
+   
+   /**
+    * Gets the key used in the address index for the specified address. Addresses are indexed by their string 
+    * representation (and compared using <code>equals</code> when looked up), so that implementations of 
+    * EndPointIdentifier aren't required to implement <code>hashCode</code>.
+    */
+   private static String getAddressKey(final EndPointIdentifier address)
+   {
+      return (address != null) ? address.getAddressAsString() : null;
+   }
+   
+   /**
+    * Adds an item to a bucket in the specified index.
+    */
+   private static void addToIndex(final HashMap index, final Object key, final QueueItem item)
+   {
+      LinkedHashMap bucket = (LinkedHashMap) index.get(key);
+      if (bucket == null)
+      {
+         bucket = new LinkedHashMap();
+         index.put(key, bucket);
+      }
+      bucket.put(item.getId(), item);
+   }
+   
+   /**
+    * Removes an item from a bucket in the specified index, and removes the bucket if it becomes empty.
+    */
+   private static void removeFromIndex(final HashMap index, final Object key, final QueueItem item)
+   {
+      final LinkedHashMap bucket = (LinkedHashMap) index.get(key);
+      if (bucket != null)
+      {
+         bucket.remove(item.getId());
+         if (bucket.isEmpty()) index.remove(key);
+      }
+   }
+   
+   /**
+    * Adds the specified item, which has just been added to the queue, to the secondary indices. This method must be called 
+    * while holding the queue lock.
+    */
+   private void indexItem(final QueueItem item)
+   {
+      final IndexKeys keys = new IndexKeys(item);
+      this.indexKeys.put(item.getId(), keys);
+      
+      if (keys.parentId != null) addToIndex(this.parentIdIndex, keys.parentId, item);
+      if ((item.getItemData() != null) && !this.itemDataIndex.containsKey(item.getItemData())) this.itemDataIndex.put(item.getItemData(), item);
+      addToIndex(this.addressIndex, keys.addressKey, item);
+      addToIndex(this.statusIndex, keys.status, item);
+   }
+   
+   /**
+    * Removes the specified item, which has just been removed from the queue, from the secondary indices. This method must 
+    * be called while holding the queue lock.
+    */
+   private void unindexItem(final QueueItem item)
+   {
+      final IndexKeys keys = (IndexKeys) this.indexKeys.get(item.getId());
+      if ((keys == null) || (keys.item != item)) return;
+      
+      this.indexKeys.remove(item.getId());
+      
+      if (keys.parentId != null) removeFromIndex(this.parentIdIndex, keys.parentId, item);
+      if ((item.getItemData() != null) && (this.itemDataIndex.get(item.getItemData()) == item)) this.itemDataIndex.remove(item.getItemData());
+      removeFromIndex(this.addressIndex, keys.addressKey, item);
+      removeFromIndex(this.statusIndex, keys.status, item);
+   }
+   
+   /**
+    * Called by a QueueItem in this queue when its status or sender/receiver address has been changed, to update the 
+    * secondary indices of the queue.
+    * 
+    * @since 2.2.1
+    */
+   void updateIndices(final QueueItem item)
+   {
+      synchronized (this.getLock())
+      {
+         final IndexKeys keys = (IndexKeys) this.indexKeys.get(item.getId());
+         if ((keys == null) || (keys.item != item)) return; // Item not (or no longer) in this queue
+         
+         final String addressKey = getAddressKey(item.getSenderReceiverAddress());
+         if ((addressKey != keys.addressKey) && ((addressKey == null) || !addressKey.equals(keys.addressKey)))
+         {
+            removeFromIndex(this.addressIndex, keys.addressKey, item);
+            keys.addressKey = addressKey;
+            addToIndex(this.addressIndex, keys.addressKey, item);
+         }
+         
+         if (keys.status.shortValue() != item.getStatus())
+         {
+            removeFromIndex(this.statusIndex, keys.status, item);
+            keys.status = new Short(item.getStatus());
+            addToIndex(this.statusIndex, keys.status, item);
+         }
+      }
+   }
 
    /**
     * Notification method called when a QueueItem is removed from this Queue.
@@ -365,6 +762,8 @@ public class Queue extends SubComponent implements VectorPropertyOwner
       // Kanske lgga till en flagga som sger om bara sjlva QueueItem informationen mste uppdateras.....
       if (isDebugMode()) logDebug("updatePersistentStorage - " + item + ". ");
 
+      final StorageOperation operation;
+      
       synchronized(this.getLock())
       {
          if (!containsItemId(item.getId()))
@@ -372,21 +771,11 @@ public class Queue extends SubComponent implements VectorPropertyOwner
             logWarning("Error while trying to update persistent storage for item '" + item.toString() + "' - Item isn't in this Queue. No update of persistent state will be performed!");
             return false;
          }
-         else
-         {
-            try
-            {
-               queueStorage.updateStoredQueueItem(item);
-   
-               return true;
-            }
-            catch (QueueStorageException qse)
-            {
-               logWarning("Error while trying to update persistent storage for item '" + item.toString() + "'. The following error occurred: " + qse + ".");
-               return false;
-            }
-         }
+         
+         operation = new UpdateOperation(item);
       }
+      
+      return this.performStorageOperation(operation) == null;
    }
 
    /**
@@ -426,48 +815,31 @@ public class Queue extends SubComponent implements VectorPropertyOwner
 
       boolean itemWasAdded = false;
 
-      boolean notifyNeeded = false;
+      StorageOperation operation = null;
 
       synchronized (this.getLock())
       {
          if (queueVector.add(item)) // If the item did not already exist...
          {
             itemWasAdded = true;
-            if (item.getStatus() == QueueItem.QUEUED) // Only add the item to the queuedItemsList if status is QUEUED
-            {
-               notifyNeeded = queuedItemsList.isEmpty();
-
-               if( addToQueuedList ) queuedItemsList.add(item);
-               queueItemAdded(item);
-            }
-            else queueItemAdded(item);
-         
-            boolean storeSuccess = false;
-            try
-            {
-               // Add item to persistent storage
-               queueStorage.storeQueueItem(item);
-               storeSuccess = true;
-            }
-            finally
-            {
-               if (!storeSuccess)
-               {
-                  // If there was an error adding the item to persistent storage, remove it from the queue
-                  queueVector.remove(item);
-                  queuedItemsList.remove(item);
-               }
-            }
+            
+            // Only add the item to the queuedItemsList if status is QUEUED, and not until it has been stored 
+            if ( addToQueuedList && (item.getStatus() == QueueItem.QUEUED) ) pendingQueuedItems.add(item);
+            queueItemAdded(item);
+            
+            operation = new StoreOperation(new QueueItem[]{item}, false, addToQueuedList);
          }
          else 
          {
             logWarning("Attempting to add item already in queue! Item: " + item + ".");
          }
-   
-         if (notifyNeeded && addToQueuedList)
-         {
-            this.getLock().notifyAll();
-         }
+      }
+      
+      if (operation != null)
+      {
+         // Add item to persistent storage
+         final QueueStorageException qse = this.performStorageOperation(operation);
+         if (qse != null) throw qse;
       }
 
       return itemWasAdded;
@@ -507,76 +879,42 @@ public class Queue extends SubComponent implements VectorPropertyOwner
          throw new RuntimeException("Unable to add items (" + QueueItem.concatIds(items) + ")! Queue isn't enabled!");
       }
 
-      QueueItem[] itemsToAdd = items;
+      final ArrayList itemsToAdd = new ArrayList(items.length);
       boolean[] addResult = new boolean[items.length];
-      int itemsToAddIndex = 0;
+      StorageOperation operation = null;
       
-      // Add items to the list for items with status QUEUED...
       synchronized (this.getLock())
       {
-         boolean notifyNeeded = queuedItemsList.isEmpty();
-         
          for (int i = 0; i < items.length; i++)
          {
             if (items[i] != null)
             {
-               // ...but only if the item didn't already exist in this queue
+               // Only add the item if it didn't already exist in this queue
                if (queueVector.add(items[i])) // If the item did not already exist...
                {
                   addResult[i] = true;
-                  itemsToAddIndex++;
-
-                  if (items[i].getStatus() == QueueItem.QUEUED) // Only add the item to the queuedItemsList if
-                                                                  // status is QUEUED
-                  {
-                     if( addToQueuedList ) queuedItemsList.add(items[i]);
-                     queueItemAdded(items[i]);
-                  }
-                  else queueItemAdded(items[i]);
+                  itemsToAdd.add(items[i]);
+
+                  // Only add the item to the queuedItemsList if status is QUEUED, and not until it has been stored
+                  if ( addToQueuedList && (items[i].getStatus() == QueueItem.QUEUED) ) pendingQueuedItems.add(items[i]);
+                  queueItemAdded(items[i]);
                }
                else
                {
                   addResult[i] = false;
                   logWarning("Attempting to add item already in queue! Item: " + items[i] + ".");
-                  
-                  // "Remove" item from itemsToAdd array
-                  QueueItem[] newItemsToAdd = new QueueItem[itemsToAdd.length - 1];
-
-                  System.arraycopy(itemsToAdd, 0, newItemsToAdd, 0, itemsToAddIndex);
-                  System.arraycopy(itemsToAdd, itemsToAddIndex + 1, newItemsToAdd, itemsToAddIndex, (itemsToAdd.length - itemsToAddIndex - 1));
-
-                  itemsToAdd = newItemsToAdd;
                }
             }
          }
-   
-         if (itemsToAdd.length > 0)
-         {
-            boolean storeSuccess = false;
-            try
-            {
-               // Add items to persistent storage
-               queueStorage.storeQueueItems(itemsToAdd);
-               storeSuccess = true;
-            }
-            finally
-            {
-               if (!storeSuccess)
-               {
-                  // If there was an error adding the item to persistent storage, remove it from the queue
-                  for (int i = 0; i < itemsToAdd.length; i++)
-                  {
-                     queueVector.remove(itemsToAdd[i]);
-                     queuedItemsList.remove(itemsToAdd[i]);
-                  }
-               }
-            }
-         }
-   
-         if (notifyNeeded && addToQueuedList)
-         {
-            this.getLock().notifyAll();
-         }
+         
+         if (itemsToAdd.size() > 0) operation = new StoreOperation((QueueItem[])itemsToAdd.toArray(new QueueItem[itemsToAdd.size()]), true, addToQueuedList);
+      }
+      
+      if (operation != null)
+      {
+         // Add items to persistent storage
+         final QueueStorageException qse = this.performStorageOperation(operation);
+         if (qse != null) throw qse;
       }
       
       return addResult;
@@ -814,16 +1152,24 @@ public class Queue extends SubComponent implements VectorPropertyOwner
 
       QueueItem item;
 
-      synchronized (this.getLock())
+      final boolean deferralScope = beginDeferredStorageOperations();
+      try
       {
-         item = (QueueItem) queueVector.get(itemId);
-
-         if (item != null)
+         synchronized (this.getLock())
          {
-            queuedItemsList.remove(item);
-            changeStatus(item, QueueItem.CHECKED_OUT);
+            item = (QueueItem) queueVector.get(itemId);
+   
+            if (item != null)
+            {
+               queuedItemsList.remove(item);
+               changeStatus(item, QueueItem.CHECKED_OUT);
+            }
          }
       }
+      finally
+      {
+         endDeferredStorageOperations(deferralScope);
+      }
       return item;
    }
 
@@ -841,11 +1187,19 @@ public class Queue extends SubComponent implements VectorPropertyOwner
 
       if (item != null)
       {
-         synchronized (this.getLock())
+         final boolean deferralScope = beginDeferredStorageOperations();
+         try
          {
-            existed = queuedItemsList.remove(item);
-            
-            if (existed) changeStatus(item, QueueItem.CHECKED_OUT);
+            synchronized (this.getLock())
+            {
+               existed = queuedItemsList.remove(item);
+               
+               if (existed) changeStatus(item, QueueItem.CHECKED_OUT);
+            }
+         }
+         finally
+         {
+            endDeferredStorageOperations(deferralScope);
          }
       }
       return existed;
@@ -862,34 +1216,76 @@ public class Queue extends SubComponent implements VectorPropertyOwner
    {
       if (isDebugMode()) logDebug("getWithParentId - " + parentItemId + ".");
 
-      ArrayList v = new ArrayList();
-
       synchronized (this.getLock())
       {
-         VectorProperty.VectorPropertyIterator it = iterator();
-         QueueItem item;
-         String parentId;
-   
-         while (it.hasNext())
-         {
-            item = (QueueItem) it.next();
+         final LinkedHashMap bucket = (parentItemId != null) ? (LinkedHashMap) this.parentIdIndex.get(parentItemId) : null;
+         
+         if (bucket == null) return new QueueItem[0];
+         else return (QueueItem[]) bucket.values().toArray(new QueueItem[bucket.size()]);
+      }
+   }
    
-            parentId = item.getParentId();
+   /**
+    * Gets all QueueItems with the specified sender/receiver address.
+    * 
+    * @param address the sender/receiver address, or <code>null</code> to get all items that have no sender/receiver 
+    * address.
+    * @return an array of QueueItems. The array will have the size 0 if this queue contained no items with the specified
+    *         address.
+    * 
+    * @since 2.2.1
+    */
+   public final QueueItem[] getWithAddress(final EndPointIdentifier address)
+   {
+      final ArrayList v = this.getWithAddressAsList(address);
+      return (QueueItem[]) v.toArray(new QueueItem[v.size()]);
+   }
    
-            if (parentId != null)
+   /**
+    * Gets all QueueItems with the specified sender/receiver address.
+    * 
+    * @param address the sender/receiver address, or <code>null</code> to get all items that have no sender/receiver 
+    * address.
+    * @return a list of QueueItems.
+    * 
+    * @since 2.2.1
+    */
+   public final ArrayList getWithAddressAsList(final EndPointIdentifier address)
+   {
+      if (isDebugMode()) logDebug("getWithAddressAsList - " + address + ".");
+      
+      final ArrayList v = new ArrayList();
+      
+      synchronized (this.getLock())
+      {
+         final LinkedHashMap bucket = (LinkedHashMap) this.addressIndex.get(getAddressKey(address));
+         
+         if (bucket != null)
+         {
+            final Iterator it = bucket.values().iterator();
+            QueueItem item;
+            
+            while (it.hasNext())
             {
-               if (parentId.equals(parentItemId)) v.add(item);
+               item = (QueueItem) it.next();
+               
+               if (address == null)
+               {
+                  if (item.getSenderReceiverAddress() == null) v.add(item);
+               }
+               else if (address.equals(item.getSenderReceiverAddress())) v.add(item);
             }
          }
-   
-         it = null;
       }
-
-      return (QueueItem[]) v.toArray(new QueueItem[v.size()]);
+      
+      return v;
    }
 
    /**
-    * Gets the QueueItem thats wraps around the specified object.
+    * Gets the QueueItem thats wraps around the specified object.<br>
+    * <br>
+    * An item wrapping the specified object itself is found using an index. Only if no such item exists, and the class of the 
+    * specified object overrides <code>equals</code>, are the items of the queue scanned for an item wrapping an equal object.
     * 
     * @param itemData an object that is contained inside a QueueItem.
     * @return the QueueItem that wraps around the specified object or null if no such item was found.
@@ -898,11 +1294,16 @@ public class Queue extends SubComponent implements VectorPropertyOwner
    {
       if (isDebugMode()) logDebug("getQueueItemFor - QueueItemData itemData.");
 
+      if (itemData == null) return null;
+      
       QueueItem result = null;
       QueueItem qItem;
 
       synchronized (this.getLock())
       {
+         result = (QueueItem) this.itemDataIndex.get(itemData);
+         if ((result != null) || usesIdentityEquals(itemData.getClass())) return result;
+         
          VectorProperty.VectorPropertyIterator it = iterator();
       
          while (it.hasNext())
@@ -922,6 +1323,34 @@ public class Queue extends SubComponent implements VectorPropertyOwner
       return result;
    }
 
+   /**
+    * Checks if the specified class uses the <code>equals</code> implementation of Object, i.e. if equality is identity.
+    * 
+    * @since 2.2.1
+    */
+   private static boolean usesIdentityEquals(final Class itemDataClass)
+   {
+      synchronized (identityEqualsClasses)
+      {
+         Boolean identityEquals = (Boolean) identityEqualsClasses.get(itemDataClass);
+         
+         if (identityEquals == null)
+         {
+            try
+            {
+               identityEquals = (itemDataClass.getMethod("equals", new Class[]{Object.class}).getDeclaringClass() == Object.class) ? Boolean.TRUE : Boolean.FALSE;
+            }
+            catch (NoSuchMethodException nsme)
+            {
+               identityEquals = Boolean.FALSE;
+            }
+            identityEqualsClasses.put(itemDataClass, identityEquals);
+         }
+         
+         return identityEquals.booleanValue();
+      }
+   }
+   
    /**
     * Gets all the QueueItems stored in this Queue.
     * 
@@ -1058,30 +1487,30 @@ public class Queue extends SubComponent implements VectorPropertyOwner
     */
    protected void getAllWithStatusAsList(final int status, final List resultList)
    {
-      QueueItem item;
-
       synchronized (this.getLock())
       {
-         VectorProperty.VectorPropertyIterator it = queueVector.iterator();
-   
-         while (it.hasNext())
+         if ((status == GET_ALL_COMPLETED) || (status == GET_ALL_NOT_COMPLETED))
          {
-            item = (QueueItem) it.next();
-            switch(status)
+            final Iterator it = this.statusIndex.entrySet().iterator();
+            Map.Entry entry;
+            short bucketStatus;
+            boolean completed;
+            
+            while (it.hasNext())
             {
-               case GET_ALL_COMPLETED: 
-                  if ( item.isCompleted() ) resultList.add(item);
-                  break;
-               case GET_ALL_NOT_COMPLETED: 
-                  if ( !item.isCompleted() ) resultList.add(item);
-                  break;
-               default:
-                  if ( item.getStatus() == status) resultList.add(item);
-               break;
+               entry = (Map.Entry) it.next();
+               bucketStatus = ((Short) entry.getKey()).shortValue();
+               completed = (bucketStatus == QueueItem.DONE_SUCCESS) || (bucketStatus == QueueItem.DONE_FAILURE) || (bucketStatus == QueueItem.DONE_CANCELLED);
+               
+               if (completed == (status == GET_ALL_COMPLETED)) resultList.addAll(((LinkedHashMap) entry.getValue()).values());
             }
          }
-   
-         it = null;
+         else
+         {
+            final LinkedHashMap bucket = (LinkedHashMap) this.statusIndex.get(new Short((short) status));
+            
+            if (bucket != null) resultList.addAll(bucket.values());
+         }
       }
    }
 
@@ -1157,23 +1586,19 @@ public class Queue extends SubComponent implements VectorPropertyOwner
 
       synchronized (this.getLock())
       {
-         VectorProperty.VectorPropertyIterator it = iterator();
-         QueueItem item;
-         String parentId;
-   
-         while (it.hasNext())
+         final LinkedHashMap bucket = (parentItemId != null) ? (LinkedHashMap) this.parentIdIndex.get(parentItemId) : null;
+         
+         if (bucket != null)
          {
-            item = (QueueItem) it.next();
-   
-            parentId = item.getParentId();
-   
-            if (parentId != null)
+            final Iterator it = bucket.values().iterator();
+            QueueItem item;
+            
+            while (it.hasNext())
             {
-               if ((parentId.equals(parentItemId)) && (item.isRecoveredFromPersistentStorage())) v.add(item);
+               item = (QueueItem) it.next();
+               if (item.isRecoveredFromPersistentStorage()) v.add(item);
             }
          }
-         
-         it = null;
       }
 
       return (QueueItem[]) v.toArray(new QueueItem[v.size()]);
@@ -1211,15 +1636,23 @@ public class Queue extends SubComponent implements VectorPropertyOwner
    {
       if (isDebugMode()) logDebug("clear().");
 
-      synchronized (this.getLock())
+      final boolean deferralScope = beginDeferredStorageOperations();
+      try
       {
-         VectorProperty.VectorPropertyIterator it = iterator();
-
-         while (it.hasNext())
+         synchronized (this.getLock())
          {
-            remove((QueueItem) it.next());
+            VectorProperty.VectorPropertyIterator it = iterator();
+   
+            while (it.hasNext())
+            {
+               remove((QueueItem) it.next());
+            }
          }
       }
+      finally
+      {
+         endDeferredStorageOperations(deferralScope);
+      }
       /*
        * synchronized(this.queueVector) { this.queueVector.clear(); this.queuedItemsList.clear(); }
        */
@@ -1235,6 +1668,7 @@ public class Queue extends SubComponent implements VectorPropertyOwner
       if (isDebugMode()) logDebug("removeFirst().");
 
       QueueItem item = null;
+      StorageOperation operation = null;
 
       synchronized (this.getLock())
       {
@@ -1243,11 +1677,18 @@ public class Queue extends SubComponent implements VectorPropertyOwner
          if (item != null)
          {
             queuedItemsList.remove(item);
+            pendingQueuedItems.remove(item);
             queueItemRemoved(item);
          
-            queueStorage.removeStoredQueueItem(item);
+            operation = new RemoveOperation(item);
          }
       }
+      
+      if (operation != null)
+      {
+         final QueueStorageException qse = this.performStorageOperation(operation);
+         if (qse != null) throw qse;
+      }
       return item;
    }
 
@@ -1262,6 +1703,7 @@ public class Queue extends SubComponent implements VectorPropertyOwner
       if (isDebugMode()) logDebug("remove  - " + itemId + ". ");
 
       QueueItem item = null;
+      StorageOperation operation;
       
       synchronized (this.getLock())
       {
@@ -1270,12 +1712,16 @@ public class Queue extends SubComponent implements VectorPropertyOwner
          if (item != null)
          {
             queuedItemsList.remove(item);
+            pendingQueuedItems.remove(item);
             queueItemRemoved(item);
             
-            queueStorage.removeStoredQueueItem(item);
+            operation = new RemoveOperation(item);
          }
-         else queueStorage.removeStoredQueueItem(new QueueItem(null, itemId));
+         else operation = new RemoveOperation(new QueueItem(null, itemId));
       }
+      
+      final QueueStorageException qse = this.performStorageOperation(operation);
+      if (qse != null) throw qse;
 
       return item;
    }
@@ -1294,15 +1740,21 @@ public class Queue extends SubComponent implements VectorPropertyOwner
 
       if (item != null)
       {
+         StorageOperation operation;
+         
          synchronized (this.getLock())
          {
             queuedItemsList.remove(item);
+            pendingQueuedItems.remove(item);
             queueItemRemoved(item);
 
             result = queueVector.remove(item);
             
-            queueStorage.removeStoredQueueItem(item);
+            operation = new RemoveOperation(item);
          }
+         
+         final QueueStorageException qse = this.performStorageOperation(operation);
+         if (qse != null) throw qse;
 
          return result;
       }
@@ -1317,12 +1769,14 @@ public class Queue extends SubComponent implements VectorPropertyOwner
     * @param item the QueueItem to change status for.
     * @param newStatus the new status value for the QueueItem.
     * @return <true> if the new status was successfully reflected on the persistent counterpart of the QueueItem,
-    *         otherwise <false>.
+    *         otherwise <false>. If the storage operation was deferred (see {@link #beginDeferredStorageOperations()}), 
+    *         <code>true</code> is returned.
     */
    public final boolean changeStatus(final QueueItem item, final short newStatus)
    {
       if (isDebugMode()) logDebug("changeStatus  - " + item + ", newStatus: " + QueueItem.statusNames[newStatus] + ". ");
       boolean doNotify = false;
+      final StorageOperation operation;
 
       synchronized (this.getLock())
       {
@@ -1344,39 +1798,26 @@ public class Queue extends SubComponent implements VectorPropertyOwner
                this.queuedItemsList.remove(item); // ...remove the item from the list for queued items
                doNotify = true;
             }
-            else if ((oldStatus != QueueItem.QUEUED) && (newStatus == QueueItem.QUEUED)) // If item is not currently
-                                                                                          // queued, but the new status
-                                                                                          // is QUEUED...
+            else if ((oldStatus != QueueItem.QUEUED) && (newStatus == QueueItem.QUEUED) // If item is not currently queued, but the new status 
+                  && !this.pendingQueuedItems.contains(item)) // is QUEUED (and the item isn't waiting to be stored)...
             {
                this.queuedItemsList.add(item); // ...add the item to the list for queued items
                doNotify = true;
             }
 
-            try
-            {
-               item.forceStatus(newStatus);
-               queueStorage.updateQueueItemStatus(item);
+            item.forceStatus(newStatus);
+            operation = new StatusUpdateOperation(item, newStatus);
 
-               queueItemStatusChangeNotification(item, oldStatus, newStatus);
+            queueItemStatusChangeNotification(item, oldStatus, newStatus);
 
-               if (doNotify)
-               {
-                  this.getLock().notifyAll();
-               }
-               return true;
-            }
-            catch (QueueStorageException qse)
+            if (doNotify)
             {
-               logWarning("Warning! Unable to reflect status change (new status: " + QueueItem.statusNames[newStatus] + ") of item  '" + item.toString()
-                     + "' on persistet counterpart. The following error occurred: " + qse + ".");
-               if (doNotify)
-               {
-                  this.getLock().notifyAll();
-               }
-               return false;
+               this.getLock().notifyAll();
             }
          }
       }
+      
+      return this.performStorageOperation(operation) == null;
    }
 
    /**
@@ -1716,4 +2157,147 @@ public class Queue extends SubComponent implements VectorPropertyOwner
          restoreQueueItemsFromPersistentStorage();
       }
    }
+   
+   /**
+    * Adds items, which have been stored successfully, to the list of queued items.
+    * 
+    * @since 2.2.1
+    */
+   private void addStoredItemsToQueuedList(final QueueItem[] items)
+   {
+      synchronized (this.getLock())
+      {
+         final boolean notifyNeeded = queuedItemsList.isEmpty();
+         boolean itemsAdded = false;
+         
+         for (int i = 0; i < items.length; i++)
+         {
+            // Only add the item if it hasn't been removed or changed status while being stored
+            if (this.pendingQueuedItems.remove(items[i]) && (items[i].getStatus() == QueueItem.QUEUED) && queueVector.contains(items[i]))
+            {
+               queuedItemsList.add(items[i]);
+               itemsAdded = true;
+            }
+         }
+         
+         if (notifyNeeded && itemsAdded)
+         {
+            this.getLock().notifyAll();
+         }
+      }
+   }
+   
+   
+   /**
+    * Storage operation for storing added items.
+    * 
+    * @since 2.2.1
+    */
+   private final class StoreOperation extends StorageOperation
+   {
+      private final boolean multipleItems;
+      
+      private final boolean addToQueuedList;
+      
+      StoreOperation(final QueueItem[] items, final boolean multipleItems, final boolean addToQueuedList)
+      {
+         super(items, true);
+         this.multipleItems = multipleItems;
+         this.addToQueuedList = addToQueuedList;
+      }
+      
+      void perform() throws QueueStorageException
+      {
+         if (this.multipleItems) queueStorage.storeQueueItems(this.items);
+         else queueStorage.storeQueueItem(this.items[0]);
+      }
+      
+      void succeeded()
+      {
+         if (this.addToQueuedList) addStoredItemsToQueuedList(this.items);
+      }
+      
+      void failed(final QueueStorageException qse)
+      {
+         // If there was an error adding the items to persistent storage, remove them from the queue
+         synchronized (getLock())
+         {
+            for (int i = 0; i < this.items.length; i++)
+            {
+               queueVector.remove(this.items[i]);
+               queuedItemsList.remove(this.items[i]);
+               pendingQueuedItems.remove(this.items[i]);
+               unindexItem(this.items[i]);
+            }
+         }
+      }
+   }
+   
+   /**
+    * Storage operation for updating the stored state of an item.
+    * 
+    * @since 2.2.1
+    */
+   private final class UpdateOperation extends StorageOperation
+   {
+      UpdateOperation(final QueueItem item)
+      {
+         super(new QueueItem[]{item}, false);
+      }
+      
+      void perform() throws QueueStorageException
+      {
+         queueStorage.updateStoredQueueItem(this.items[0]);
+      }
+      
+      void failed(final QueueStorageException qse)
+      {
+         logWarning("Error while trying to update persistent storage for item '" + this.items[0].toString() + "'. The following error occurred: " + qse + ".");
+      }
+   }
+   
+   /**
+    * Storage operation for updating the stored status of an item.
+    * 
+    * @since 2.2.1
+    */
+   private final class StatusUpdateOperation extends StorageOperation
+   {
+      private final short newStatus;
+      
+      StatusUpdateOperation(final QueueItem item, final short newStatus)
+      {
+         super(new QueueItem[]{item}, false);
+         this.newStatus = newStatus;
+      }
+      
+      void perform() throws QueueStorageException
+      {
+         queueStorage.updateQueueItemStatus(this.items[0]);
+      }
+      
+      void failed(final QueueStorageException qse)
+      {
+         logWarning("Warning! Unable to reflect status change (new status: " + QueueItem.statusNames[this.newStatus] + ") of item  '" + this.items[0].toString()
+               + "' on persistet counterpart. The following error occurred: " + qse + ".");
+      }
+   }
+   
+   /**
+    * Storage operation for removing a stored item.
+    * 
+    * @since 2.2.1
+    */
+   private final class RemoveOperation extends StorageOperation
+   {
+      RemoveOperation(final QueueItem item)
+      {
+         super(new QueueItem[]{item}, true);
+      }
+      
+      void perform() throws QueueStorageException
+      {
+         queueStorage.removeStoredQueueItem(this.items[0]);
+      }
+   }
 }
@@ -230,6 +230,7 @@ public final class QueueItem implements Externalizable, Cloneable, VectorPropert
 		this.status = status;
 		if(parentQueue != null)
 		{
+			parentQueue.updateIndices(this);
 			parentQueue.queueVector.fireItemModified(this);
 		}
 	}
@@ -255,6 +256,7 @@ public final class QueueItem implements Externalizable, Cloneable, VectorPropert
 		else this.senderReceiverAddress = null;
 		if(parentQueue != null)
 		{
+			parentQueue.updateIndices(this);
 			parentQueue.queueVector.fireItemModified(this);
 		}
 	}
@@ -204,7 +204,7 @@ public final class QueueManager extends SubSystem implements QueueOwner
 
    boolean checkOutQueueItemAge = true;
 
-   private final Object queueItemsLock = this;
+   private final Object queueItemsLock = new Object(); // Guards the invariants between parent items in the in-queue and their child items in the out-queue
       
 
    /**
@@ -595,7 +595,10 @@ public final class QueueManager extends SubSystem implements QueueOwner
    }
 
    /**
-    * Gets the object that is used for synchronization of thread access to queue items and queues.
+    * Gets the object that is used for synchronization of the invariants between items in the in-queue and their child 
+    * items in the out-queue, such as the child counts of parent items. Operations on a single queue are synchronized 
+    * on the lock of that queue (see {@link Queue#getLock()}). The queue items lock is a leaf lock, i.e. no other locks 
+    * (such as the lock of a queue) may be aquired while holding it.
     * 
     * @since 2.1.2 (20060207)
     */
@@ -1735,32 +1738,8 @@ public final class QueueManager extends SubSystem implements QueueOwner
     */
    ArrayList getItemsWithAddressAsList(final Queue queue, final EndPointIdentifier address)
    {
-      QueueItem item;
-      final ArrayList v = new ArrayList();
-
-      if (queue != null)
-      {
-         final Iterator it = queue.iterator();
-
-         while (it.hasNext())
-         {
-            item = (QueueItem) it.next();
-
-            if (item != null)
-            {
-               if ((address == null) && (item.getSenderReceiverAddress() == null))
-               {
-                  v.add(item);
-               }
-               else if ((item.getSenderReceiverAddress() != null) && item.getSenderReceiverAddress().equals(address))
-               {
-                  v.add(item);
-               }
-            }
-         }
-      }
-
-      return v;
+      if (queue != null) return queue.getWithAddressAsList(address);
+      else return new ArrayList();
    }
 
    /**
@@ -1784,16 +1763,24 @@ public final class QueueManager extends SubSystem implements QueueOwner
          return;
       }
 
-      synchronized (this.getQueueItemsLock())
+      final Queue q = item.getQueue();
+      if (q != null)
       {
-         item.setResponseData(responseData);
-
-         Queue q = item.getQueue();
-         if (q != null)
+         final boolean deferralScope = Queue.beginDeferredStorageOperations();
+         try
+         {
+            synchronized (q.getLock())
+            {
+               item.setResponseData(responseData);
+               q.updatePersistentStorage(item);
+            }
+         }
+         finally
          {
-            q.updatePersistentStorage(item);
+            Queue.endDeferredStorageOperations(deferralScope);
          }
       }
+      else item.setResponseData(responseData);
    }
 
    /**
@@ -2500,28 +2487,45 @@ public final class QueueManager extends SubSystem implements QueueOwner
    {
       if (isDebugMode()) logDebug("linkToRemoteQueueSystemLost - " + remoteQueueSystem + ".");
       
-      synchronized (this.getQueueItemsLock() )
+      // Defer the storage operations resulting from the aborted transfers until the out-queue lock has been released, so that 
+      // this thread never waits for a storage turn while holding the lock
+      final boolean deferralScope = Queue.beginDeferredStorageOperations();
+      try
       {
          // Check if there are any outgoing items for the specified remote queue system that are in state DISPATCHING and
          // if so, abort them (mark them as DISPATCH_FAILED).
          // (this can only happen if a transfer request has been dispatched but no response has been received yet)
          if (this.outQueue != null)
          {
-            QueueItem[] itemsToAddress = this.getOutItemsWithAddress(remoteQueueSystem.getRemoteQueueSystemAddress());
-   
-            if (itemsToAddress != null)
+            synchronized (this.outQueue.getLock())
             {
-               for (int i = 0; i < itemsToAddress.length; i++)
+               QueueItem[] itemsToAddress = this.getOutItemsWithAddress(remoteQueueSystem.getRemoteQueueSystemAddress());
+      
+               if (itemsToAddress != null)
                {
-                  if (itemsToAddress[i].getStatus() == QueueItem.DISPATCHING)
+                  for (int i = 0; i < itemsToAddress.length; i++)
                   {
-                     this.impl.queueItemTransferRequestAborted(itemsToAddress[i]); // Use standard handling for aborted
-                     // transfer requests
+                     if (itemsToAddress[i].getStatus() == QueueItem.DISPATCHING)
+                     {
+                        this.impl.queueItemTransferRequestAborted(itemsToAddress[i]); // Use standard handling for aborted
+                        // transfer requests
+                     }
                   }
                }
             }
          }
       }
+      finally
+      {
+         try
+         {
+            Queue.endDeferredStorageOperations(deferralScope);
+         }
+         catch (QueueStorageException qse)
+         {
+            logError("Error while updating persistent storage after link to " + remoteQueueSystem + " was lost!", qse);
+         }
+      }
 
       getQueueController().linkToRemoteQueueSystemLost(remoteQueueSystem); // Notify controller
    }
@@ -2686,8 +2690,17 @@ public final class QueueManager extends SubSystem implements QueueOwner
       String[] outItemIds = response.getItemIds();
       QueueItem[] items = this.outQueue.get(outItemIds);
 
-      for (int i = 0; i < outItemIds.length; i++)
-         impl.queueItemTransferred(outItemIds[i], items[i]);
+      // Perform the storage updates for the status changes of all items together, once all items have been handled
+      final boolean deferralScope = Queue.beginDeferredStorageOperations();
+      try
+      {
+         for (int i = 0; i < outItemIds.length; i++)
+            impl.queueItemTransferred(outItemIds[i], items[i]);
+      }
+      finally
+      {
+         Queue.endDeferredStorageOperations(deferralScope);
+      }
    }
 
    /**
@@ -2703,8 +2716,17 @@ public final class QueueManager extends SubSystem implements QueueOwner
       String[] outItemIds = response.getItemIds();
       QueueItem[] items = this.outQueue.get(outItemIds);
 
-      for (int i = 0; i < outItemIds.length; i++)
-         impl.queueItemTransferFailure(outItemIds[i], items[i]);
+      // Perform the storage updates for the status changes of all items together, once all items have been handled
+      final boolean deferralScope = Queue.beginDeferredStorageOperations();
+      try
+      {
+         for (int i = 0; i < outItemIds.length; i++)
+            impl.queueItemTransferFailure(outItemIds[i], items[i]);
+      }
+      finally
+      {
+         Queue.endDeferredStorageOperations(deferralScope);
+      }
    }
 
    /**
@@ -2720,8 +2742,17 @@ public final class QueueManager extends SubSystem implements QueueOwner
       String[] outItemIds = response.getItemIds();
       QueueItem[] items = this.outQueue.get(outItemIds);
 
-      for (int i = 0; i < outItemIds.length; i++)
-         impl.queueItemTransferFailureQueueFull(outItemIds[i], items[i]);
+      // Perform the storage updates for the status changes of all items together, once all items have been handled
+      final boolean deferralScope = Queue.beginDeferredStorageOperations();
+      try
+      {
+         for (int i = 0; i < outItemIds.length; i++)
+            impl.queueItemTransferFailureQueueFull(outItemIds[i], items[i]);
+      }
+      finally
+      {
+         Queue.endDeferredStorageOperations(deferralScope);
+      }
    }
 
    /**
@@ -660,16 +660,17 @@ abstract class QueueManagerImplBase implements QueueManagerImpl
          qItems[i] = qItem;
       }
 
-      synchronized (this.queueManager.getQueueItemsLock())
+      if (parentItem != null)
       {
-         if (parentItem != null)
+         // Update the child count before the children are added to the out-queue, so that it includes all children that may complete
+         synchronized (this.queueManager.getQueueItemsLock())
          {
             parentItem.setChildCount(itemData.length + parentItem.getChildCount());
          }
-
-         if (add) this.queueManager.outQueue.add(qItems);
       }
 
+      if (add) this.queueManager.outQueue.add(qItems);
+
       return qItems;
    }
 
@@ -683,7 +684,10 @@ abstract class QueueManagerImplBase implements QueueManagerImpl
       if (parentItem != null)
       {
          qItem = new QueueItem(itemData, this.queueManager.getUniqueId(), parentItem.getId());
-         parentItem.incrementChildCount();
+         synchronized (this.queueManager.getQueueItemsLock())
+         {
+            parentItem.incrementChildCount();
+         }
       }
       else qItem = new QueueItem(itemData, this.queueManager.getUniqueId());
 
@@ -699,15 +703,23 @@ abstract class QueueManagerImplBase implements QueueManagerImpl
    {
       QueueItemTransferRequest command = new QueueItemTransferRequest(address, qItem);
 
-      synchronized (this.queueManager.getQueueItemsLock())
+      final boolean deferralScope = Queue.beginDeferredStorageOperations();
+      try
       {
-         qItem.incrementDispatchCount();
-         qItem.setSenderReceiverAddress(address);
-         qItem.setSendReceiveTime(System.currentTimeMillis());
-         qItem.forceStatus(QueueItem.DISPATCHING);
-         
-         if (!this.queueManager.outQueue.contains(qItem)) this.queueManager.outQueue.add(qItem);
-         else this.queueManager.outQueue.updatePersistentStorage(qItem);
+         synchronized (this.queueManager.outQueue.getLock())
+         {
+            qItem.incrementDispatchCount();
+            qItem.setSenderReceiverAddress(address);
+            qItem.setSendReceiveTime(System.currentTimeMillis());
+            qItem.forceStatus(QueueItem.DISPATCHING);
+            
+            if (!this.queueManager.outQueue.contains(qItem)) this.queueManager.outQueue.add(qItem);
+            else this.queueManager.outQueue.updatePersistentStorage(qItem);
+         }
+      }
+      finally
+      {
+         Queue.endDeferredStorageOperations(deferralScope);
       }
 
       this.queueManager.dispatchCommand(command);
@@ -722,21 +734,29 @@ abstract class QueueManagerImplBase implements QueueManagerImpl
 
       long currentTime = System.currentTimeMillis();
 
-      synchronized (this.queueManager.getQueueItemsLock())
+      final boolean deferralScope = Queue.beginDeferredStorageOperations();
+      try
       {
-         for (int i = 0; i < qItems.length; i++)
+         synchronized (this.queueManager.outQueue.getLock())
          {
-            qItems[i].incrementDispatchCount();
-            qItems[i].setSenderReceiverAddress(address);
-            qItems[i].setSendReceiveTime(currentTime);
-            qItems[i].forceStatus(QueueItem.DISPATCHING);
-
-            // This could perhaps be done a bit better (given that Queue/QueueStorage supports methods that operate on
-            // multiple QueueItems)
-            if (!this.queueManager.outQueue.contains(qItems[i])) this.queueManager.outQueue.add(qItems[i]);
-            else this.queueManager.outQueue.updatePersistentStorage(qItems[i]);
+            for (int i = 0; i < qItems.length; i++)
+            {
+               qItems[i].incrementDispatchCount();
+               qItems[i].setSenderReceiverAddress(address);
+               qItems[i].setSendReceiveTime(currentTime);
+               qItems[i].forceStatus(QueueItem.DISPATCHING);
+   
+               // This could perhaps be done a bit better (given that Queue/QueueStorage supports methods that operate on
+               // multiple QueueItems)
+               if (!this.queueManager.outQueue.contains(qItems[i])) this.queueManager.outQueue.add(qItems[i]);
+               else this.queueManager.outQueue.updatePersistentStorage(qItems[i]);
+            }
          }
       }
+      finally
+      {
+         Queue.endDeferredStorageOperations(deferralScope);
+      }
 
       this.queueManager.dispatchCommand(command);
    }
@@ -854,17 +874,26 @@ abstract class QueueManagerImplBase implements QueueManagerImpl
                boolean canAdd = false;
                boolean added = false;
                
-               synchronized (this.queueManager.getQueueItemsLock())
+               // Defer storing of the item until the in-queue lock has been released 
+               final boolean deferralScope = Queue.beginDeferredStorageOperations();
+               try
                {
-                  int maxSize = this.queueManager.inQueueMaxSize.intValue();
-   
-                  canAdd = (maxSize < 0) || (maxSize > 0 && (maxSize > this.queueManager.inQueue.size()));
-   
-                  if (canAdd)
+                  synchronized (this.queueManager.inQueue.getLock())
                   {
-                     added = this.queueManager.inQueue.add(item, false);
+                     int maxSize = this.queueManager.inQueueMaxSize.intValue();
+      
+                     canAdd = (maxSize < 0) || (maxSize > 0 && (maxSize > this.queueManager.inQueue.size()));
+      
+                     if (canAdd)
+                     {
+                        added = this.queueManager.inQueue.add(item, false);
+                     }
                   }
                }
+               finally
+               {
+                  Queue.endDeferredStorageOperations(deferralScope);
+               }
                               
                if ( canAdd )
                {
@@ -937,38 +966,46 @@ abstract class QueueManagerImplBase implements QueueManagerImpl
                QueueItem[] itemsToAdd = null;
                boolean[] addResult = null;
                
-               // Calculate number of items that can be added
-               synchronized (this.queueManager.getQueueItemsLock())
+               // Calculate number of items that can be added, and add them (storing is deferred until the in-queue lock has been released)
+               final boolean deferralScope = Queue.beginDeferredStorageOperations();
+               try
                {
-                  int maxSize = this.queueManager.inQueueMaxSize.intValue();
-                  int size = this.queueManager.inQueue.size();
-   
-                  if (maxSize < 0)
-                  {
-                     numberOfItemsToAdd = items.length;
-                  }
-                  else if (maxSize > 0 && (maxSize > size))
+                  synchronized (this.queueManager.inQueue.getLock())
                   {
-                     numberOfItemsToAdd = Math.min((maxSize - size), items.length);
-                  }
+                     int maxSize = this.queueManager.inQueueMaxSize.intValue();
+                     int size = this.queueManager.inQueue.size();
    
-                  if ((numberOfItemsToAdd > 0) && (numberOfItemsToAdd < items.length))
-                  {
-                     itemsToAdd = new QueueItem[numberOfItemsToAdd];
-                     System.arraycopy(items, 0, itemsToAdd, 0, numberOfItemsToAdd);
-                  }
-                  else if (numberOfItemsToAdd > 0)
-                  {
-                     numberOfItemsToAdd = items.length;
-                     itemsToAdd = items;
-                  }
+                     if (maxSize < 0)
+                     {
+                        numberOfItemsToAdd = items.length;
+                     }
+                     else if (maxSize > 0 && (maxSize > size))
+                     {
+                        numberOfItemsToAdd = Math.min((maxSize - size), items.length);
+                     }
    
-                  // Add items...
-                  if (numberOfItemsToAdd > 0)
-                  {
-                     addResult = this.queueManager.inQueue.add(itemsToAdd, false); // Add, but don't notify
+                     if ((numberOfItemsToAdd > 0) && (numberOfItemsToAdd < items.length))
+                     {
+                        itemsToAdd = new QueueItem[numberOfItemsToAdd];
+                        System.arraycopy(items, 0, itemsToAdd, 0, numberOfItemsToAdd);
+                     }
+                     else if (numberOfItemsToAdd > 0)
+                     {
+                        numberOfItemsToAdd = items.length;
+                        itemsToAdd = items;
+                     }
+   
+                     // Add items...
+                     if (numberOfItemsToAdd > 0)
+                     {
+                        addResult = this.queueManager.inQueue.add(itemsToAdd, false); // Add, but don't notify
+                     }
                   }
                }
+               finally
+               {
+                  Queue.endDeferredStorageOperations(deferralScope);
+               }
                
                if (numberOfItemsToAdd > 0)
                {
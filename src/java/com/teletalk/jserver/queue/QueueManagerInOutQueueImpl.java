@@ -236,33 +236,36 @@ final class QueueManagerInOutQueueImpl extends QueueManagerImplBase
       // If auto mode handling enabled
       if (super.queueManager.inOutQueueAutoModeEnabled && (item != null))
       {
-         /*synchronized (this.queueManager.getQueueItemsLock())
-         {*/
-            String parentId = item.getParentId();
+         String parentId = item.getParentId();
 
-            if (parentId != null)
-            {
-               QueueItem parentItem = super.queueManager.inQueue.get(parentId);
+         if (parentId != null)
+         {
+            QueueItem parentItem = super.queueManager.inQueue.get(parentId);
 
-               if (parentItem != null)
+            if (parentItem != null)
+            {
+               // Count the completed child under the queue items lock, so that no updates of the counter are lost when children complete concurrently
+               final boolean allChildrenCompleted;
+               synchronized (super.queueManager.getQueueItemsLock())
                {
                   parentItem.incrementCompletedChildCount();
+                  allChildrenCompleted = (parentItem.getCompletedChildCount() >= parentItem.getChildCount());
+               }
 
-                  if (parentItem.getCompletedChildCount() >= parentItem.getChildCount())
-                  {
-                     Object extraData = this.inOutController.allChildrenCompleted(parentItem);
-
-                     if ((parentItem.getStatus() != QueueItem.DONE_CANCELLED) && (parentItem.getStatus() != QueueItem.RELOCATION_REQUIRED))
-                     {
-                        super.queueManager.inQueue.changeStatus(parentItem, QueueItem.DONE_SUCCESS);
-                     }
+               if (allChildrenCompleted)
+               {
+                  Object extraData = this.inOutController.allChildrenCompleted(parentItem);
 
-                     if (extraData == null) super.queueManager.inItemDone(parentItem);
-                     else super.queueManager.inItemDone(parentItem, extraData);
+                  if ((parentItem.getStatus() != QueueItem.DONE_CANCELLED) && (parentItem.getStatus() != QueueItem.RELOCATION_REQUIRED))
+                  {
+                     super.queueManager.inQueue.changeStatus(parentItem, QueueItem.DONE_SUCCESS);
                   }
+
+                  if (extraData == null) super.queueManager.inItemDone(parentItem);
+                  else super.queueManager.inItemDone(parentItem, extraData);
                }
             }
-         /*}*/
+         }
       }
 
       return item;
@@ -278,51 +281,54 @@ final class QueueManagerInOutQueueImpl extends QueueManagerImplBase
       // If auto mode handling enabled
       if (super.queueManager.inOutQueueAutoModeEnabled && (item != null))
       {
-         /*synchronized (this.queueManager.getQueueItemsLock())
-         {*/
-            String parentId = item.getParentId();
+         String parentId = item.getParentId();
 
-            if (parentId != null)
-            {
-               QueueItem parentItem = super.queueManager.inQueue.get(parentId);
+         if (parentId != null)
+         {
+            QueueItem parentItem = super.queueManager.inQueue.get(parentId);
 
-               if (parentItem != null)
+            if (parentItem != null)
+            {
+               // Count the completed child under the queue items lock, so that no updates of the counter are lost when children complete concurrently
+               final boolean allChildrenCompleted;
+               synchronized (super.queueManager.getQueueItemsLock())
                {
                   parentItem.incrementCompletedChildCount();
+                  allChildrenCompleted = (parentItem.getCompletedChildCount() >= parentItem.getChildCount());
+               }
+
+               if (allChildrenCompleted)
+               {
+                  Object extraData = this.inOutController.allChildrenCompleted(parentItem);
 
-                  if (parentItem.getCompletedChildCount() >= parentItem.getChildCount())
+                  if (parentItem.getStatus() != QueueItem.DONE_CANCELLED && parentItem.getStatus() != QueueItem.RELOCATION_REQUIRED)
                   {
-                     Object extraData = this.inOutController.allChildrenCompleted(parentItem);
+                     boolean parentItemSuccess = false;
 
-                     if (parentItem.getStatus() != QueueItem.DONE_CANCELLED && parentItem.getStatus() != QueueItem.RELOCATION_REQUIRED)
-                     {
-                        boolean parentItemSuccess = false;
+                     QueueItem[] v = super.queueManager.outQueue.getWithParentId(parentId);
+                     QueueItem child;
 
-                        QueueItem[] v = super.queueManager.outQueue.getWithParentId(parentId);
-                        QueueItem child;
+                     // If all children have status FAILED, that status is given to the parent as well
+                     for (int i = 0; i < v.length; i++)
+                     {
+                        child = v[i];
 
-                        // If all children have status FAILED, that status is given to the parent as well
-                        for (int i = 0; i < v.length; i++)
+                        if (child.getStatus() == QueueItem.DONE_SUCCESS)
                         {
-                           child = v[i];
-
-                           if (child.getStatus() == QueueItem.DONE_SUCCESS)
-                           {
-                              parentItemSuccess = true;
-                              break;
-                           }
+                           parentItemSuccess = true;
+                           break;
                         }
-
-                        if (!parentItemSuccess) super.queueManager.inQueue.changeStatus(parentItem, QueueItem.DONE_FAILURE);
-                        else super.queueManager.inQueue.changeStatus(parentItem, QueueItem.DONE_SUCCESS);
                      }
 
-                     if (extraData == null) super.queueManager.inItemDone(parentItem);
-                     else super.queueManager.inItemDone(parentItem, extraData);
+                     if (!parentItemSuccess) super.queueManager.inQueue.changeStatus(parentItem, QueueItem.DONE_FAILURE);
+                     else super.queueManager.inQueue.changeStatus(parentItem, QueueItem.DONE_SUCCESS);
                   }
+
+                  if (extraData == null) super.queueManager.inItemDone(parentItem);
+                  else super.queueManager.inItemDone(parentItem, extraData);
                }
             }
-         /*}*/
+         }
       }
 
       return item;
@@ -338,59 +344,62 @@ final class QueueManagerInOutQueueImpl extends QueueManagerImplBase
       // If auto mode handling enabled
       if (super.queueManager.inOutQueueAutoModeEnabled && (item != null))
       {
-         /*synchronized (this.queueManager.getQueueItemsLock())
-         {*/
-            String parentId = item.getParentId();
+         String parentId = item.getParentId();
 
-            if (parentId != null)
-            {
-               QueueItem parentItem = super.queueManager.inQueue.get(parentId);
+         if (parentId != null)
+         {
+            QueueItem parentItem = super.queueManager.inQueue.get(parentId);
 
-               if (parentItem != null)
+            if (parentItem != null)
+            {
+               // Count the completed child under the queue items lock, so that no updates of the counter are lost when children complete concurrently
+               final boolean allChildrenCompleted;
+               synchronized (super.queueManager.getQueueItemsLock())
                {
                   parentItem.incrementCompletedChildCount();
+                  allChildrenCompleted = (parentItem.getCompletedChildCount() >= parentItem.getChildCount());
+               }
 
-                  if (parentItem.getCompletedChildCount() >= parentItem.getChildCount())
+               if (allChildrenCompleted)
+               {
+                  Object extraData = this.inOutController.allChildrenCompleted(parentItem);
+
+                  if (parentItem.getStatus() != QueueItem.DONE_CANCELLED && parentItem.getStatus() != QueueItem.RELOCATION_REQUIRED)
                   {
-                     Object extraData = this.inOutController.allChildrenCompleted(parentItem);
+                     boolean successFound = false;
+                     boolean failureFound = false;
 
-                     if (parentItem.getStatus() != QueueItem.DONE_CANCELLED && parentItem.getStatus() != QueueItem.RELOCATION_REQUIRED)
-                     {
-                        boolean successFound = false;
-                        boolean failureFound = false;
+                     QueueItem[] v = super.queueManager.outQueue.getWithParentId(parentId);
+                     QueueItem child;
 
-                        QueueItem[] v = super.queueManager.outQueue.getWithParentId(parentId);
-                        QueueItem child;
+                     for (int i = 0; i < v.length; i++)
+                     {
+                        child = v[i];
 
-                        for (int i = 0; i < v.length; i++)
+                        if (child.getStatus() == QueueItem.DONE_SUCCESS)
                         {
-                           child = v[i];
-
-                           if (child.getStatus() == QueueItem.DONE_SUCCESS)
-                           {
-                              successFound = true;
-                              break;
-                           }
-                           else if (child.getStatus() == QueueItem.DONE_FAILURE)
-                           {
-                              failureFound = true;
-                           }
+                           successFound = true;
+                           break;
                         }
-
-                        if (!successFound)
+                        else if (child.getStatus() == QueueItem.DONE_FAILURE)
                         {
-                           if (!failureFound) super.queueManager.inQueue.changeStatus(parentItem, QueueItem.DONE_FAILURE);
-                           else super.queueManager.inQueue.changeStatus(parentItem, QueueItem.DONE_CANCELLED);
+                           failureFound = true;
                         }
-                        else super.queueManager.inQueue.changeStatus(parentItem, QueueItem.DONE_SUCCESS);
                      }
 
-                     if (extraData == null) super.queueManager.inItemDone(parentItem);
-                     else super.queueManager.inItemDone(parentItem, extraData);
+                     if (!successFound)
+                     {
+                        if (!failureFound) super.queueManager.inQueue.changeStatus(parentItem, QueueItem.DONE_FAILURE);
+                        else super.queueManager.inQueue.changeStatus(parentItem, QueueItem.DONE_CANCELLED);
+                     }
+                     else super.queueManager.inQueue.changeStatus(parentItem, QueueItem.DONE_SUCCESS);
                   }
+
+                  if (extraData == null) super.queueManager.inItemDone(parentItem);
+                  else super.queueManager.inItemDone(parentItem, extraData);
                }
             }
-         /*}*/
+         }
       }
 
       return item;
@@ -115,7 +115,7 @@ final class QueueManagerInQueueImpl extends QueueManagerImplBase
    {
       if (inItem != null)
       {
-         synchronized (this.queueManager.getQueueItemsLock())
+         synchronized (this.queueManager.inQueue.getLock())
          {
             if (super.inController.canCancelInItem(inItem))
             {
@@ -145,7 +145,7 @@ final class QueueManagerInQueueImpl extends QueueManagerImplBase
    {
       if (inItem != null)
       {
-         synchronized (this.queueManager.getQueueItemsLock())
+         synchronized (this.queueManager.inQueue.getLock())
          {
             if (super.inController.canRelocateInItem(inItem))
             {
@@ -0,0 +1,1367 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.queue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import com.teletalk.jserver.StatusTransitionException;
+import com.teletalk.jserver.SubComponent;
+import com.teletalk.jserver.property.BooleanProperty;
+import com.teletalk.jserver.property.NumberProperty;
+import com.teletalk.jserver.property.Property;
+import com.teletalk.jserver.property.StringProperty;
+import com.teletalk.jserver.util.MutableByteArrayInputStream;
+import com.teletalk.jserver.util.NoHeadersObjectInputStream;
+import com.teletalk.jserver.util.NoHeadersObjectOutputStream;
+
+/**
+ * This class implements a queue storage mechanism that appends all changes to queue items as records to a write-ahead log, 
+ * instead of creating, rewriting and deleting a file (or database item) for each change. The log is divided into segment 
+ * files of a configurable size (property <code>segmentSize</code>). Three kinds of records are written: <i>store</i> records, 
+ * containing the serialized QueueItem, <i>status</i> records, containing only the new status of an item, and <i>remove</i> records.<br>
+ * <br>
+ * When the property <code>syncWrites</code> is <code>true</code> (default), each operation returns first when the written records 
+ * have been forced to disk. Forcing is performed as a group commit, i.e. when several threads write to the log concurrently, one 
+ * of them forces the log on behalf of all the others.<br>
+ * <br>
+ * An in-memory index, mapping queue item ids to the location of their latest store record, is rebuilt by replaying the log when this 
+ * storage is initialized. A background thread compacts the log by rewriting the still live store records of the oldest segment 
+ * to the end of the log, after which the old segment is deleted. A segment is compacted when the percentage of live records in it 
+ * falls below the value of the property <code>compactionThreshold</code>.
+ * 
+ * @see com.teletalk.jserver.queue.Queue
+ * 
+ * @author Tobias Lfstrand
+ * 
+ * @since 2.2.1
+ */
+public final class SegmentedLogQueueStorage extends SubComponent implements QueueStorage
+{
+   /** The base name of log segment files. */
+   public static final String LOG_FILE_BASE_NAME = "queuelog";
+   
+   /** The file name suffix of log segment files. */
+   public static final String LOG_FILE_SUFFIX = ".log";
+   
+   private static final int SEGMENT_MAGIC = 0x514C4F47; // "QLOG"
+   private static final byte SEGMENT_VERSION = 1;
+   private static final int SEGMENT_HEADER_LENGTH = 5;
+   
+   private static final int MAX_RECORD_LENGTH = 256*1024*1024;
+   
+   private static final byte STORE_RECORD = 1;
+   private static final byte STATUS_RECORD = 2;
+   private static final byte REMOVE_RECORD = 3;
+   
+   
+   /**
+    * A segment file of the log.
+    */
+   private static final class Segment
+   {
+      final long sequence;
+      final File file;
+      
+      RandomAccessFile output = null;
+      long size = 0;
+      int recordCount = 0;
+      int liveCount = 0;
+      
+      Segment(final long sequence, final File file)
+      {
+         this.sequence = sequence;
+         this.file = file;
+      }
+      
+      void force() throws IOException
+      {
+         final RandomAccessFile out = this.output;
+         if( out != null )
+         {
+            try{
+            out.getChannel().force(false);
+            }catch(ClosedChannelException cce){} // Segment was closed (and forced) while rolling to a new segment
+         }
+      }
+      
+      void closeOutput()
+      {
+         if( this.output != null )
+         {
+            try{
+            this.output.close();
+            }catch(IOException e){}
+            this.output = null;
+         }
+      }
+   }
+   
+   /**
+    * Index entry, containing the location of the latest store record of a queue item, as well as the current status of the item.
+    */
+   private static final class IndexEntry
+   {
+      Segment storeSegment;
+      long storeOffset;
+      short status;
+      long sendReceiveTime;
+   }
+   
+   
+   private final Object writeLock = new Object(); // Guards segments, activeSegment, index and appendSequence
+   
+   private final Object syncLock = new Object(); // Guards syncedSequence and syncInProgress
+   
+   private final Object compactionLock = new Object(); // Prevents segments from being deleted while they are read
+   
+   private final ArrayList segments = new ArrayList(); // All segments, in sequence order. The last one is the active segment.
+   
+   private Segment activeSegment = null;
+   
+   private final HashMap index = new HashMap();
+   
+   private long appendSequence = 0;
+   
+   private long syncedSequence = 0;
+   
+   private boolean syncInProgress = false;
+   
+   private CompactionThread compactionThread = null;
+   
+   //Serialization
+   private final int noOfSerializers = 10;
+   private int currentSerializer = 0;
+   private final DataOutputStream dataOutput[] = new DataOutputStream[noOfSerializers];
+   private final NoHeadersObjectOutputStream[] objectOutput = new NoHeadersObjectOutputStream[noOfSerializers]; 
+   private final ByteArrayOutputStream[] byteOutput = new ByteArrayOutputStream[noOfSerializers];
+   
+   private final StringProperty logDirectory;
+   private final NumberProperty segmentSize;
+   private final BooleanProperty syncWrites;
+   private final NumberProperty compactionThreshold;
+   private final NumberProperty compactionInterval;
+   
+   
+   /**
+    * Creates a new SegmentedLogQueueStorage object.
+    * 
+    * @param parent the parent of this SegmentedLogQueueStorage.
+    */
+   public SegmentedLogQueueStorage(SubComponent parent)
+   {
+      this(parent, "SegmentedLogQueueStorage");
+   }
+   
+   /**
+    * Creates a new SegmentedLogQueueStorage object.
+    * 
+    * @param parent the parent of this SegmentedLogQueueStorage.
+    * @param name the name of this SegmentedLogQueueStorage.
+    */
+   public SegmentedLogQueueStorage(SubComponent parent, String name)
+   {
+      super(parent, name);
+      
+      logDirectory = new StringProperty(this, "logDirectory", "." + File.separator + parent.getName() + ".storage" + File.separator, StringProperty.MODIFIABLE_OWNER_RESTART);
+      logDirectory.setDescription("The directory where the log segment files will be stored.");
+      
+      segmentSize = new NumberProperty(this, "segmentSize", 16*1024*1024, NumberProperty.MODIFIABLE_NO_RESTART);
+      segmentSize.setDescription("The size (in bytes) at which a new log segment file is started.");
+      
+      syncWrites = new BooleanProperty(this, "syncWrites", true, BooleanProperty.MODIFIABLE_NO_RESTART);
+      syncWrites.setDescription("Flag indicating if written records should be forced to disk before an operation returns.");
+      
+      compactionThreshold = new NumberProperty(this, "compactionThreshold", 50, NumberProperty.MODIFIABLE_NO_RESTART);
+      compactionThreshold.setDescription("The percentage of live records below which the oldest log segment will be compacted.");
+      
+      compactionInterval = new NumberProperty(this, "compactionInterval", 10000, NumberProperty.MODIFIABLE_NO_RESTART);
+      compactionInterval.setDescription("The interval (in milliseconds) at which the log is checked for segments to compact.");
+      
+      addProperty(logDirectory);
+      addProperty(segmentSize);
+      addProperty(syncWrites);
+      addProperty(compactionThreshold);
+      addProperty(compactionInterval);
+   }
+   
+   /**
+    * Enables this SegmentedLogQueueStorage by replaying the log to rebuild the index and opening a new active segment.
+    */
+   public void doInitialize()
+   {
+      super.doInitialize();
+      
+      new File(logDirectory.stringValue()).mkdirs();
+      
+      //Initialize streams needed for object serialization
+      try
+      {
+         for(int i=0; i<noOfSerializers; i++)
+         {
+            this.byteOutput[i] = new ByteArrayOutputStream();
+            this.dataOutput[i] = new DataOutputStream(byteOutput[i]);
+            this.objectOutput[i] = new NoHeadersObjectOutputStream(byteOutput[i]);
+         }
+      }
+      catch(IOException e)
+      {
+         throw new StatusTransitionException("Error occurred while trying to create streams needed for object serialization!", e);
+      }
+      
+      synchronized(this.writeLock)
+      {
+         this.closeLog();
+         try
+         {
+            this.openLog();
+         }
+         catch(IOException e)
+         {
+            this.closeLog();
+            throw new StatusTransitionException("Failed to open log in directory " + this.logDirectory.stringValue() + "!", e);
+         }
+      }
+      
+      this.compactionThread = new CompactionThread();
+      this.compactionThread.start();
+   }
+   
+   /**
+    * Disables this SegmentedLogQueueStorage by stopping the compaction thread and closing the log.
+    */
+   public void doShutDown()
+   {
+      super.doShutDown();
+      
+      if( this.compactionThread != null )
+      {
+         this.compactionThread.shutDown();
+         this.compactionThread = null;
+      }
+      
+      synchronized(this.compactionLock)
+      {
+         synchronized(this.writeLock)
+         {
+            this.closeLog();
+         }
+      }
+      
+      for(int i=0; i<noOfSerializers; i++)
+      {
+         byteOutput[i] = null;
+         dataOutput[i] = null;
+         objectOutput[i] = null;
+      }
+   }
+   
+   /**
+    * Called when the value of a property has been modified. This implementation makes sure that 
+    * the log directory property ends with the system-dependent default name-separator character (File.separator).
+    * 
+    * @param property the Property that was changed.
+    */
+   public void propertyModified(Property property)
+   {
+      if(property == logDirectory)
+      {
+         String value = logDirectory.stringValue(); 
+         
+         if(!(value.endsWith("/") || value.endsWith("\\")))
+         {
+            logDirectory.setNotificationMode(false);
+            logDirectory.setValue(value + File.separator);
+            logDirectory.setNotificationMode(true);
+         }
+      }
+      else if( (property == compactionInterval) || (property == compactionThreshold) )
+      {
+         final CompactionThread thread = this.compactionThread;
+         if( thread != null ) thread.wakeUp();
+      }
+      
+      super.propertyModified(property);
+   }
+   
+   /**
+    * Validates a modification of a property's value.
+    * 
+    * @param property The property to be validated.
+    * 
+    * @return boolean value indicating if the property passed (true) validation or not (false).
+    */
+   public boolean validatePropertyModification(Property property)
+   {
+      if(property == logDirectory)
+      {
+         String value = logDirectory.stringValue();
+         
+         if(!(value.endsWith("/") || value.endsWith("\\")))
+            value = value + File.separator;
+         
+         File f = new File(value);
+         
+         return f.isDirectory() || f.mkdirs();
+      }
+      else if(property == segmentSize)
+      {
+         return segmentSize.longValue() >= 1024;
+      }
+      else if(property == compactionThreshold)
+      {
+         int value = compactionThreshold.intValue();
+         
+         return (value >= 0) && (value <= 100);
+      }
+      else if(property == compactionInterval)
+      {
+         return compactionInterval.longValue() > 0;
+      }
+      else return super.validatePropertyModification(property);
+   }
+   
+   /**
+    * Sets the directory where the log segment files are stored.
+    */
+   public void setLogDirectory(final String logDirectory)
+   {
+      this.logDirectory.setValue(logDirectory);
+   }
+   
+   /**
+    * Gets the directory where the log segment files are stored.
+    */
+   public String getLogDirectory()
+   {
+      return this.logDirectory.stringValue();
+   }
+   
+   /**
+    * Sets the size (in bytes) at which a new log segment file is started.
+    */
+   public void setSegmentSize(final long segmentSize)
+   {
+      this.segmentSize.setValue(segmentSize);
+   }
+   
+   /**
+    * Gets the size (in bytes) at which a new log segment file is started.
+    */
+   public long getSegmentSize()
+   {
+      return this.segmentSize.longValue();
+   }
+   
+   /**
+    * Sets the flag indicating if written records should be forced to disk before an operation returns.
+    */
+   public void setSyncWrites(final boolean syncWrites)
+   {
+      this.syncWrites.setValue(syncWrites);
+   }
+   
+   /**
+    * Gets the flag indicating if written records should be forced to disk before an operation returns.
+    */
+   public boolean isSyncWrites()
+   {
+      return this.syncWrites.booleanValue();
+   }
+   
+   /**
+    * Sets the percentage of live records below which the oldest log segment will be compacted.
+    */
+   public void setCompactionThreshold(final int compactionThreshold)
+   {
+      this.compactionThreshold.setValue(compactionThreshold);
+   }
+   
+   /**
+    * Gets the percentage of live records below which the oldest log segment will be compacted.
+    */
+   public int getCompactionThreshold()
+   {
+      return this.compactionThreshold.intValue();
+   }
+   
+   /**
+    * Sets the interval (in milliseconds) at which the log is checked for segments to compact.
+    */
+   public void setCompactionInterval(final long compactionInterval)
+   {
+      this.compactionInterval.setValue(compactionInterval);
+   }
+   
+   /**
+    * Gets the interval (in milliseconds) at which the log is checked for segments to compact.
+    */
+   public long getCompactionInterval()
+   {
+      return this.compactionInterval.longValue();
+   }
+   
+   /**
+    * Gets the number of segment files currently making up the log.
+    */
+   public int getSegmentCount()
+   {
+      synchronized(this.writeLock)
+      {
+         return this.segments.size();
+      }
+   }
+   
+   /**
+    * Gets the number of queue items currently stored in the log.
+    */
+   public int getStoredItemCount()
+   {
+      synchronized(this.writeLock)
+      {
+         return this.index.size();
+      }
+   }
+   
+   
+   /* ### LOG FILE MANAGEMENT ### */
+   
+   
+   /**
+    * Opens the log by replaying all existing segments and creating a new active segment. Must be called while holding writeLock.
+    */
+   private void openLog() throws IOException
+   {
+      final File dir = new File(this.logDirectory.stringValue());
+      final String[] fileNames = dir.list(new FilenameFilter(){
+         public boolean accept(File d, String name)
+         {
+            return name.startsWith(LOG_FILE_BASE_NAME + ".") && name.endsWith(LOG_FILE_SUFFIX);
+         }
+      });
+      if( fileNames == null ) throw new IOException("Unable to list files in log directory " + dir + "!");
+      Arrays.sort(fileNames); // Sequence numbers are zero padded, so lexical order is sequence order
+      
+      long lastSequence = 0;
+      String sequenceString;
+      long sequence;
+      Segment segment;
+      
+      for(int i=0; i<fileNames.length; i++)
+      {
+         sequenceString = fileNames[i].substring(LOG_FILE_BASE_NAME.length() + 1, fileNames[i].length() - LOG_FILE_SUFFIX.length());
+         try
+         {
+            sequence = Long.parseLong(sequenceString);
+         }
+         catch(NumberFormatException nfe)
+         {
+            logWarning("Ignoring file " + fileNames[i] + " in log directory - invalid segment sequence number.");
+            continue;
+         }
+         
+         segment = new Segment(sequence, new File(dir, fileNames[i]));
+         if( this.replaySegment(segment) )
+         {
+            this.segments.add(segment);
+            lastSequence = sequence;
+         }
+      }
+      
+      if( isDebugMode() ) logDebug("Replayed " + this.segments.size() + " log segments - " + this.index.size() + " stored items found.");
+      
+      this.activeSegment = this.createSegment(lastSequence + 1);
+      this.segments.add(this.activeSegment);
+   }
+   
+   /**
+    * Closes the log. Must be called while holding writeLock.
+    */
+   private void closeLog()
+   {
+      if( this.activeSegment != null )
+      {
+         try
+         {
+            this.activeSegment.force();
+         }
+         catch(IOException e)
+         {
+            logError("Error while forcing active log segment to disk!", e);
+         }
+         this.activeSegment.closeOutput();
+         
+         // Don't keep empty segments around
+         if( this.activeSegment.recordCount == 0 ) this.activeSegment.file.delete();
+      }
+      
+      this.activeSegment = null;
+      this.segments.clear();
+      this.index.clear();
+      
+      synchronized(this.syncLock)
+      {
+         this.syncedSequence = this.appendSequence;
+      }
+   }
+   
+   /**
+    * Creates a new segment file.
+    */
+   private Segment createSegment(final long sequence) throws IOException
+   {
+      final StringBuffer name = new StringBuffer(LOG_FILE_BASE_NAME);
+      name.append('.');
+      final String sequenceString = Long.toString(sequence);
+      for(int i=sequenceString.length(); i<10; i++) name.append('0');
+      name.append(sequenceString);
+      name.append(LOG_FILE_SUFFIX);
+      
+      final Segment segment = new Segment(sequence, new File(this.logDirectory.stringValue(), name.toString()));
+      segment.output = new RandomAccessFile(segment.file, "rw");
+      try
+      {
+         segment.output.setLength(0);
+         segment.output.writeInt(SEGMENT_MAGIC);
+         segment.output.writeByte(SEGMENT_VERSION);
+         segment.size = SEGMENT_HEADER_LENGTH;
+      }
+      catch(IOException e)
+      {
+         segment.closeOutput();
+         throw e;
+      }
+      
+      return segment;
+   }
+   
+   /**
+    * Rolls the log over to a new segment. Must be called while holding writeLock.
+    */
+   private void rollSegment() throws IOException
+   {
+      final Segment sealed = this.activeSegment;
+      final Segment newSegment = this.createSegment(sealed.sequence + 1);
+      
+      sealed.force();
+      sealed.closeOutput();
+      synchronized(this.syncLock)
+      {
+         this.syncedSequence = this.appendSequence;
+      }
+      
+      this.activeSegment = newSegment;
+      this.segments.add(newSegment);
+      
+      final CompactionThread thread = this.compactionThread;
+      if( thread != null ) thread.wakeUp();
+   }
+   
+   /**
+    * Replays a segment, updating the index.
+    * 
+    * @return <code>true</code> if the segment is a valid log segment, otherwise <code>false</code>.
+    */
+   private boolean replaySegment(final Segment segment) throws IOException
+   {
+      final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file), 65536));
+      try
+      {
+         try
+         {
+            if( (input.readInt() != SEGMENT_MAGIC) || (input.readByte() != SEGMENT_VERSION) )
+            {
+               logWarning("Ignoring file " + segment.file.getName() + " in log directory - invalid segment header.");
+               return false;
+            }
+         }
+         catch(EOFException eofe)
+         {
+            logWarning("Ignoring file " + segment.file.getName() + " in log directory - incomplete segment header.");
+            return false;
+         }
+         
+         long offset = SEGMENT_HEADER_LENGTH;
+         int length;
+         int checksum;
+         byte[] body;
+         final CRC32 crc = new CRC32();
+         DataInputStream bodyInput;
+         byte type;
+         String id;
+         long sendReceiveTime;
+         short status;
+         
+         while(true)
+         {
+            try
+            {
+               length = input.readInt();
+            }
+            catch(EOFException eofe)
+            {
+               break; // Clean end of segment
+            }
+            
+            try
+            {
+               if( (length <= 0) || (length > MAX_RECORD_LENGTH) ) throw new IOException("invalid record length (" + length + ")");
+               checksum = input.readInt();
+               body = new byte[length];
+               input.readFully(body);
+               
+               crc.reset();
+               crc.update(body);
+               if( ((int)crc.getValue()) != checksum ) throw new IOException("checksum mismatch");
+            }
+            catch(IOException e)
+            {
+               // A record torn by a crash - everything after it in this segment was never acknowledged
+               logWarning("Truncated or corrupt record at offset " + offset + " in log segment " + segment.file.getName() + " (" + e.getMessage() + ") - ignoring remainder of segment.");
+               break;
+            }
+            
+            bodyInput = new DataInputStream(new ByteArrayInputStream(body));
+            type = bodyInput.readByte();
+            id = bodyInput.readUTF();
+            if( type == STORE_RECORD )
+            {
+               sendReceiveTime = bodyInput.readLong();
+               status = bodyInput.readShort();
+            }
+            else
+            {
+               sendReceiveTime = 0;
+               status = (type == STATUS_RECORD) ? bodyInput.readShort() : 0;
+            }
+            
+            this.applyRecord(segment, offset, type, id, status, sendReceiveTime);
+            
+            offset += 8 + length;
+         }
+         
+         segment.size = offset;
+         return true;
+      }
+      finally
+      {
+         try{
+         input.close();
+         }catch(IOException e){}
+      }
+   }
+   
+   /**
+    * Updates the index and the segment counters for a record written to (or replayed from) the specified segment. Must be called while 
+    * holding writeLock (or during initialization).
+    */
+   private void applyRecord(final Segment segment, final long offset, final byte type, final String id, final short status, final long sendReceiveTime)
+   {
+      segment.recordCount++;
+      
+      IndexEntry entry = (IndexEntry)this.index.get(id);
+      
+      if( type == STORE_RECORD )
+      {
+         if( entry == null )
+         {
+            entry = new IndexEntry();
+            this.index.put(id, entry);
+         }
+         else entry.storeSegment.liveCount--;
+         
+         entry.storeSegment = segment;
+         entry.storeOffset = offset;
+         entry.status = status;
+         entry.sendReceiveTime = sendReceiveTime;
+         segment.liveCount++;
+      }
+      else if( entry != null )
+      {
+         if( type == STATUS_RECORD ) entry.status = status;
+         else
+         {
+            this.index.remove(id);
+            entry.storeSegment.liveCount--;
+         }
+      }
+   }
+   
+   
+   /* ### RECORD WRITING ### */
+   
+   
+   /**
+    * Serializes a QueueItem into the same format as used by {@link FileDBQueueStorage}, i.e. a status short followed by the serialized object.
+    */
+   private byte[] serializeObject(final QueueItem item) throws IOException
+   {
+      int whichSerializer;
+      
+      synchronized(byteOutput)
+      {
+         if(currentSerializer >= noOfSerializers)
+            currentSerializer = 0;
+         
+         whichSerializer = currentSerializer++;
+      }
+      
+      synchronized(byteOutput[whichSerializer])
+      {
+         byteOutput[whichSerializer].reset();
+         
+         dataOutput[whichSerializer].writeShort(item.getStatus());
+         
+         objectOutput[whichSerializer].writeObject(item);
+         objectOutput[whichSerializer].flush();
+         
+         byte[] bytes = byteOutput[whichSerializer].toByteArray();
+         
+         //Reset the object output stream to clear its reference to the written QueueItem object
+         objectOutput[whichSerializer].reset();
+         
+         return bytes;
+      }
+   }
+   
+   /**
+    * Creates a log record.
+    */
+   private static byte[] createRecord(final byte type, final String id, final long sendReceiveTime, final short status, final byte[] itemData) throws IOException
+   {
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + ((itemData != null) ? itemData.length : 0));
+      final DataOutputStream output = new DataOutputStream(bytes);
+      
+      // Placeholders for length and checksum
+      output.writeInt(0);
+      output.writeInt(0);
+      
+      output.writeByte(type);
+      output.writeUTF(id);
+      if( type == STORE_RECORD )
+      {
+         output.writeLong(sendReceiveTime);
+         output.write(itemData); // Begins with the status short
+      }
+      else if( type == STATUS_RECORD ) output.writeShort(status);
+      output.flush();
+      
+      final byte[] record = bytes.toByteArray();
+      final int length = record.length - 8;
+      final CRC32 crc = new CRC32();
+      crc.update(record, 8, length);
+      writeInt(record, 0, length);
+      writeInt(record, 4, (int)crc.getValue());
+      
+      return record;
+   }
+   
+   private static void writeInt(final byte[] data, final int offset, final int value)
+   {
+      data[offset] = (byte)(value >>> 24);
+      data[offset + 1] = (byte)(value >>> 16);
+      data[offset + 2] = (byte)(value >>> 8);
+      data[offset + 3] = (byte)value;
+   }
+   
+   /**
+    * Appends a record to the active segment. Must be called while holding writeLock.
+    * 
+    * @return the append sequence number of the record, to be used when calling {@link #sync(long)}.
+    */
+   private long appendRecord(final byte[] record, final byte type, final String id, final short status, final long sendReceiveTime) throws IOException
+   {
+      if( this.activeSegment == null ) throw new IOException("Log is closed!");
+      
+      final Segment segment = this.activeSegment;
+      final long offset = segment.size;
+      
+      try
+      {
+         segment.output.seek(offset);
+         segment.output.write(record);
+      }
+      catch(IOException e)
+      {
+         // Attempt to cut away a partially written record, so that subsequent records can be replayed
+         try{
+         segment.output.setLength(offset);
+         }catch(IOException ioe){}
+         throw e;
+      }
+      
+      segment.size += record.length;
+      this.applyRecord(segment, offset, type, id, status, sendReceiveTime);
+      
+      final long sequence = ++this.appendSequence;
+      
+      if( segment.size >= this.segmentSize.longValue() ) this.rollSegment();
+      
+      return sequence;
+   }
+   
+   /**
+    * Makes sure that all records up to and including the record with the specified append sequence number are forced to disk. If 
+    * another thread is currently forcing the log, this method waits for that thread to complete, after which the calling thread either 
+    * returns (if its records were forced as well) or forces the log on behalf of all waiting threads (group commit).
+    */
+   private void sync(final long sequence) throws IOException
+   {
+      long targetSequence;
+      Segment segment;
+      
+      synchronized(this.syncLock)
+      {
+         while(true)
+         {
+            if( this.syncedSequence >= sequence ) return;
+            if( !this.syncInProgress ) break;
+            try{
+            this.syncLock.wait();
+            }catch(InterruptedException ie){ throw new IOException("Interrupted while waiting for log sync!"); }
+         }
+         this.syncInProgress = true;
+      }
+      
+      try
+      {
+         synchronized(this.writeLock)
+         {
+            targetSequence = this.appendSequence;
+            segment = this.activeSegment;
+         }
+         
+         if( segment != null ) segment.force();
+         
+         synchronized(this.syncLock)
+         {
+            if( targetSequence > this.syncedSequence ) this.syncedSequence = targetSequence;
+         }
+      }
+      finally
+      {
+         synchronized(this.syncLock)
+         {
+            this.syncInProgress = false;
+            this.syncLock.notifyAll();
+         }
+      }
+   }
+   
+   /**
+    * Appends records to the log, and forces them to disk if the property <code>syncWrites</code> is <code>true</code>.
+    */
+   private void writeRecords(final byte[][] records, final byte type, final String[] ids, final short[] statuses, final long[] sendReceiveTimes, final String actionDescription) throws QueueStorageException
+   {
+      if( !this.isEnabled() ) throw new QueueStorageException("SegmentedLogQueueStorage not enabled!");
+      
+      try
+      {
+         long sequence = 0;
+         
+         synchronized(this.writeLock)
+         {
+            for(int i=0; i<records.length; i++)
+            {
+               sequence = this.appendRecord(records[i], type, ids[i], statuses[i], sendReceiveTimes[i]);
+            }
+         }
+         
+         if( this.syncWrites.booleanValue() ) this.sync(sequence);
+      }
+      catch(IOException e)
+      {
+         logError("Error while attempting to " + actionDescription + "!", e);
+         throw new QueueStorageException("Failed to " + actionDescription + "!", e);
+      }
+   }
+   
+   /**
+    * Writes store records for the specified items.
+    */
+   private void writeStoreRecords(final QueueItem[] items, final String actionDescription) throws QueueStorageException
+   {
+      final byte[][] records = new byte[items.length][];
+      final String[] ids = new String[items.length];
+      final short[] statuses = new short[items.length];
+      final long[] sendReceiveTimes = new long[items.length];
+      
+      try
+      {
+         for(int i=0; i<items.length; i++)
+         {
+            ids[i] = items[i].getId();
+            statuses[i] = items[i].getStatus();
+            sendReceiveTimes[i] = items[i].getSendReceiveTime();
+            records[i] = createRecord(STORE_RECORD, ids[i], sendReceiveTimes[i], statuses[i], this.serializeObject(items[i]));
+         }
+      }
+      catch(IOException e)
+      {
+         logError("Error while attempting to " + actionDescription + "!", e);
+         throw new QueueStorageException("Failed to " + actionDescription + "!", e);
+      }
+      
+      this.writeRecords(records, STORE_RECORD, ids, statuses, sendReceiveTimes, actionDescription);
+   }
+   
+   /**
+    * Checks if an item with the specified id is stored in the log.
+    */
+   private boolean isStored(final String id)
+   {
+      synchronized(this.writeLock)
+      {
+         return this.index.containsKey(id);
+      }
+   }
+   
+   
+   /* ### QUEUESTORAGE IMPLEMENTATION ### */
+   
+   
+   /**
+    * Adds a QueueItem to persistant storage. This method appends a store record to the log.
+    * 
+    * @param item the QueueItem to be stored.
+    * 
+    * @exception QueueStorageException if an error occured during the store operation.
+    */
+   public void storeQueueItem(final QueueItem item) throws QueueStorageException
+   {
+      this.writeStoreRecords(new QueueItem[]{item}, "store QueueItem '" + item + "'");
+   }
+   
+   /**
+    * Adds several QueueItems to persistant storage. This method appends a store record for each item to the log, and forces 
+    * them to disk at once.
+    * 
+    * @param items the QueueItems to be stored.
+    * 
+    * @exception QueueStorageException if an error occured during the store operation.
+    */
+   public void storeQueueItems(final QueueItem[] items) throws QueueStorageException
+   {
+      if( items.length > 0 ) this.writeStoreRecords(items, "store QueueItems (" + QueueItem.concatIds(items) + ")");
+   }
+   
+   /**
+    * Updates the persistent state of a previously stored QueueItem. This method appends a new store record to the log.
+    * 
+    * @param item the QueueItem to be updated.
+    * 
+    * @exception QueueStorageException if an error occured during the update operation.
+    */
+   public void updateStoredQueueItem(final QueueItem item) throws QueueStorageException
+   {
+      this.writeStoreRecords(new QueueItem[]{item}, "update QueueItem '" + item + "'");
+   }
+   
+   /**
+    * Method to reflect a change in the state (status value) of a QueueItem object on it's persistent counterpart. This method 
+    * appends a status record to the log, or a store record if the item isn't stored in the log.
+    * 
+    * @param item the QueueItem to be stored.
+    * 
+    * @exception QueueStorageException if an error occured during the store operation.
+    */
+   public void updateQueueItemStatus(final QueueItem item) throws QueueStorageException
+   {
+      final String id = item.getId();
+      
+      if( !this.isStored(id) )
+      {
+         this.writeStoreRecords(new QueueItem[]{item}, "store QueueItem '" + item + "'");
+         return;
+      }
+      
+      final short status = item.getStatus();
+      final String actionDescription = "update status for QueueItem '" + item + "'";
+      byte[] record;
+      try
+      {
+         record = createRecord(STATUS_RECORD, id, 0, status, null);
+      }
+      catch(IOException e)
+      {
+         throw new QueueStorageException("Failed to " + actionDescription + "!", e);
+      }
+      
+      this.writeRecords(new byte[][]{record}, STATUS_RECORD, new String[]{id}, new short[]{status}, new long[1], actionDescription);
+   }
+   
+   /**
+    * Removes a QueueItem from persistant storage. This method appends a remove record to the log.
+    * 
+    * @param item the QueueItem to be removed from persistent storage.
+    */
+   public void removeStoredQueueItem(final QueueItem item)
+   {
+      final String id = item.getId();
+      
+      if( !this.isStored(id) ) return;
+      
+      final String actionDescription = "remove QueueItem '" + item + "'";
+      byte[] record;
+      try
+      {
+         record = createRecord(REMOVE_RECORD, id, 0, (short)0, null);
+      }
+      catch(IOException e)
+      {
+         throw new QueueStorageException("Failed to " + actionDescription + "!", e);
+      }
+      
+      this.writeRecords(new byte[][]{record}, REMOVE_RECORD, new String[]{id}, new short[1], new long[1], actionDescription);
+   }
+   
+   /**
+    * Restores all stored QueueItem objects, ordered by their send/receive time. The store records are located using the 
+    * index built when replaying the log.
+    * 
+    * @return a list containing QueueItem objects restored from persistent storage.
+    * 
+    * @exception QueueStorageException if an error occured during restoration of the stored QueueItem objects.
+    */
+   public List restoreQueueFromStorage() throws QueueStorageException
+   {
+      if( !this.isEnabled() ) throw new QueueStorageException("SegmentedLogQueueStorage not enabled!");
+      
+      final ArrayList restoredQueueItems = new ArrayList();
+      final ArrayList badItemIds = new ArrayList();
+      
+      synchronized(this.compactionLock)
+      {
+         final ArrayList entries = new ArrayList();
+         
+         synchronized(this.writeLock)
+         {
+            Map.Entry mapEntry;
+            IndexEntry entry;
+            for(Iterator it = this.index.entrySet().iterator(); it.hasNext(); )
+            {
+               mapEntry = (Map.Entry)it.next();
+               entry = (IndexEntry)mapEntry.getValue();
+               entries.add(new Object[]{mapEntry.getKey(), entry.storeSegment, new Long(entry.storeOffset), new Short(entry.status), new Long(entry.sendReceiveTime)});
+            }
+         }
+         
+         Collections.sort(entries, new Comparator(){
+            public int compare(Object o1, Object o2)
+            {
+               final long t1 = ((Long)((Object[])o1)[4]).longValue();
+               final long t2 = ((Long)((Object[])o2)[4]).longValue();
+               return (t1 < t2) ? -1 : ((t1 == t2) ? 0 : 1);
+            }
+         });
+         
+         final MutableByteArrayInputStream byteInput = new MutableByteArrayInputStream();
+         final DataInputStream dataInput = new DataInputStream(byteInput);
+         final NoHeadersObjectInputStream objectInput;
+         try
+         {
+            objectInput = new NoHeadersObjectInputStream(byteInput);
+         }
+         catch(IOException e)
+         {
+            throw new QueueStorageException("Error occurred while trying to create streams needed for object deserialization!", e);
+         }
+         
+         final HashMap readers = new HashMap();
+         Object[] entryData;
+         String id;
+         Segment segment;
+         RandomAccessFile reader;
+         QueueItem item;
+         short status;
+         
+         try
+         {
+            for(int i=0; i<entries.size(); i++)
+            {
+               entryData = (Object[])entries.get(i);
+               id = (String)entryData[0];
+               segment = (Segment)entryData[1];
+               status = ((Short)entryData[3]).shortValue();
+               
+               try
+               {
+                  reader = (RandomAccessFile)readers.get(segment);
+                  if( reader == null )
+                  {
+                     reader = new RandomAccessFile(segment.file, "r");
+                     readers.put(segment, reader);
+                  }
+                  
+                  byteInput.setByteArray(readStoredItemData(reader, ((Long)entryData[2]).longValue()));
+                  byteInput.setReturnObjectStreamResetCode(false);
+                  dataInput.readShort(); // Status at the time of storing - the index contains the current status
+                  byteInput.setReturnObjectStreamResetCode(true);
+                  item = (QueueItem)objectInput.readObject();
+                  
+                  if( QueueItem.validateStatusValue(status) ) item.forceStatus(status);
+                  else logWarning("Invalid status value detected while restoring QueueItem with id '" + id + "'. The read status value was " + status + ".");
+                  
+                  item.setRecoveredFromPersistentStorage(true);
+                  restoredQueueItems.add(item);
+               }
+               catch(Exception e)
+               {
+                  logError("Unable to restore QueueItem with id '" + id + "'. Removing item from log.", e);
+                  badItemIds.add(id);
+               }
+            }
+         }
+         finally
+         {
+            for(Iterator it = readers.values().iterator(); it.hasNext(); )
+            {
+               try{
+               ((RandomAccessFile)it.next()).close();
+               }catch(IOException e){}
+            }
+         }
+      }
+      
+      for(int i=0; i<badItemIds.size(); i++)
+      {
+         try
+         {
+            final String id = (String)badItemIds.get(i);
+            this.writeRecords(new byte[][]{createRecord(REMOVE_RECORD, id, 0, (short)0, null)}, REMOVE_RECORD, new String[]{id}, new short[1], new long[1], "remove bad QueueItem '" + id + "'");
+         }
+         catch(Exception e)
+         {
+            logError("Error occurred while removing bad item " + badItemIds.get(i) + ".", e);
+         }
+      }
+      
+      return restoredQueueItems;
+   }
+   
+   /**
+    * Reads the item data (status short followed by the serialized object) of the store record at the specified offset.
+    */
+   private static byte[] readStoredItemData(final RandomAccessFile reader, final long offset) throws IOException
+   {
+      reader.seek(offset);
+      final int length = reader.readInt();
+      if( (length <= 0) || (length > MAX_RECORD_LENGTH) ) throw new IOException("Invalid record length (" + length + ") at offset " + offset + "!");
+      final int checksum = reader.readInt();
+      final byte[] body = new byte[length];
+      reader.readFully(body);
+      
+      final CRC32 crc = new CRC32();
+      crc.update(body);
+      if( ((int)crc.getValue()) != checksum ) throw new IOException("Checksum mismatch for record at offset " + offset + "!");
+      if( body[0] != STORE_RECORD ) throw new IOException("Record at offset " + offset + " is not a store record!");
+      
+      // Skip type (1 byte), id (2 bytes length + UTF data) and send/receive time (8 bytes)
+      final int idLength = ((body[1] & 0xFF) << 8) | (body[2] & 0xFF);
+      final int itemDataOffset = 1 + 2 + idLength + 8;
+      final byte[] itemData = new byte[length - itemDataOffset];
+      System.arraycopy(body, itemDataOffset, itemData, 0, itemData.length);
+      
+      return itemData;
+   }
+   
+   
+   /* ### COMPACTION ### */
+   
+   
+   /**
+    * Compacts the log by rewriting the live store records of the oldest segments to the end of the log and then deleting the 
+    * old segments. Segments are compacted, oldest first, as long as the percentage of live records in the oldest segment is below the 
+    * value of the property <code>compactionThreshold</code>. This method is normally invoked periodically by a background thread.
+    * 
+    * @return the number of segments that were deleted.
+    * 
+    * @exception QueueStorageException if an error occured during compaction.
+    */
+   public int compact() throws QueueStorageException
+   {
+      int removedSegments = 0;
+      
+      synchronized(this.compactionLock)
+      {
+         try
+         {
+            while( this.compactOldestSegment() ) removedSegments++;
+         }
+         catch(IOException e)
+         {
+            throw new QueueStorageException("Error while compacting log!", e);
+         }
+      }
+      
+      if( (removedSegments > 0) && isDebugMode() ) logDebug("Compacted " + removedSegments + " log segments.");
+      
+      return removedSegments;
+   }
+   
+   /**
+    * Compacts the oldest segment if required. Must be called while holding compactionLock.
+    */
+   private boolean compactOldestSegment() throws IOException
+   {
+      final Segment segment;
+      final ArrayList ids = new ArrayList();
+      final ArrayList offsets = new ArrayList();
+      
+      synchronized(this.writeLock)
+      {
+         if( (this.activeSegment == null) || (this.segments.size() < 2) ) return false;
+         
+         segment = (Segment)this.segments.get(0);
+         if( (segment.liveCount > 0) && ((segment.liveCount * 100L) >= (segment.recordCount * this.compactionThreshold.longValue())) ) return false;
+         
+         if( segment.liveCount > 0 )
+         {
+            Map.Entry mapEntry;
+            IndexEntry entry;
+            for(Iterator it = this.index.entrySet().iterator(); it.hasNext(); )
+            {
+               mapEntry = (Map.Entry)it.next();
+               entry = (IndexEntry)mapEntry.getValue();
+               if( entry.storeSegment == segment )
+               {
+                  ids.add(mapEntry.getKey());
+                  offsets.add(new Long(entry.storeOffset));
+               }
+            }
+         }
+      }
+      
+      // Read the live records outside the write lock (the segment is sealed, and is only deleted by this method)
+      final byte[][] itemData = new byte[ids.size()][];
+      if( itemData.length > 0 )
+      {
+         final RandomAccessFile reader = new RandomAccessFile(segment.file, "r");
+         try
+         {
+            for(int i=0; i<itemData.length; i++)
+            {
+               itemData[i] = readStoredItemData(reader, ((Long)offsets.get(i)).longValue());
+            }
+         }
+         finally
+         {
+            try{
+            reader.close();
+            }catch(IOException e){}
+         }
+      }
+      
+      synchronized(this.writeLock)
+      {
+         String id;
+         IndexEntry entry;
+         
+         for(int i=0; i<itemData.length; i++)
+         {
+            id = (String)ids.get(i);
+            entry = (IndexEntry)this.index.get(id);
+            
+            // Only move records that haven't been superseded or removed since they were read
+            if( (entry != null) && (entry.storeSegment == segment) && (entry.storeOffset == ((Long)offsets.get(i)).longValue()) )
+            {
+               // Write the current status into the copied record
+               itemData[i][0] = (byte)(entry.status >>> 8);
+               itemData[i][1] = (byte)entry.status;
+               this.appendRecord(createRecord(STORE_RECORD, id, entry.sendReceiveTime, entry.status, itemData[i]), STORE_RECORD, id, entry.status, entry.sendReceiveTime);
+            }
+         }
+         
+         // Make sure that the moved records are on disk before deleting the old segment
+         this.activeSegment.force();
+         synchronized(this.syncLock)
+         {
+            if( this.appendSequence > this.syncedSequence ) this.syncedSequence = this.appendSequence;
+         }
+         
+         this.segments.remove(segment);
+      }
+      
+      if( !segment.file.delete() ) logWarning("Unable to delete compacted log segment " + segment.file.getName() + "!");
+      
+      return true;
+   }
+   
+   /**
+    * Thread class performing periodic compaction of the log.
+    */
+   private final class CompactionThread extends Thread
+   {
+      private volatile boolean canRun = true;
+      
+      CompactionThread()
+      {
+         super(getFullName() + ".CompactionThread");
+         super.setDaemon(true);
+      }
+      
+      void shutDown()
+      {
+         this.canRun = false;
+         this.wakeUp();
+      }
+      
+      synchronized void wakeUp()
+      {
+         this.notifyAll();
+      }
+      
+      public void run()
+      {
+         while(this.canRun)
+         {
+            try
+            {
+               synchronized(this)
+               {
+                  if( this.canRun ) this.wait(compactionInterval.longValue());
+               }
+               
+               if( this.canRun ) compact();
+            }
+            catch(InterruptedException ie){}
+            catch(Exception e)
+            {
+               if( this.canRun ) logError("Error while compacting log!", e);
+            }
+         }
+      }
+   }
+}
@@ -63,6 +63,22 @@ public final class MultiQueueItemTransferResponse extends QueueItemResponse
 		this.responseType = responseType;
 	}
 	
+	/**
+	 * Creates a new MultiQueueItemTransferResponse.
+	 * 
+	 * @param address the destination address.
+	 * @param itemIds the ids of QueueItems that a response is to be sent for.
+	 * @param responseType the type of this response.
+	 * 
+	 * @since 2.2.1
+	 */
+	public MultiQueueItemTransferResponse(final EndPointIdentifier address, final String[] itemIds, final byte responseType) 
+	{
+		super(address, responseType);
+		
+		this.itemIds = itemIds;
+	}
+	
 	public void execute(final QueueManager queueManager)
 	{
 		switch(super.responseType)
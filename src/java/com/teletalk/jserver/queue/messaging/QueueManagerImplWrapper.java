@@ -66,17 +66,22 @@ class QueueManagerImplWrapper implements QueueManagerImpl
    public void onQueueItemTransferRequestDispatch(final QueueItemTransferRequest queueItemTransferRequest)
    {
       QueueItem qItem = queueItemTransferRequest.getQueueItem();
+      final Queue outQueue = this.queueManager.getOutQueue();
+      if( outQueue == null ) return;
       
-      synchronized (this.queueManager.getQueueItemsLock())
+      final boolean deferralScope = Queue.beginDeferredStorageOperations();
+      try
       {
-         Queue outQueue = this.queueManager.getOutQueue();
-         
-         if( outQueue != null )
+         synchronized (outQueue.getLock())
          {
             if (!outQueue.contains(qItem)) outQueue.add(qItem);
             else outQueue.updatePersistentStorage(qItem);
          }
       }
+      finally
+      {
+         Queue.endDeferredStorageOperations(deferralScope);
+      }
    }
    
    
@@ -85,20 +90,33 @@ class QueueManagerImplWrapper implements QueueManagerImpl
    public void onMultiQueueItemTransferRequestDispatch(final MultiQueueItemTransferRequest multiQueueItemTransferRequest)
    {
       QueueItem[] qItems = multiQueueItemTransferRequest.getQueueItems();
+      final Queue outQueue = this.queueManager.getOutQueue();
+      if( outQueue == null ) return;
       
-      synchronized (this.queueManager.getQueueItemsLock())
+      final boolean deferralScope = Queue.beginDeferredStorageOperations();
+      try
       {
-         Queue outQueue = this.queueManager.getOutQueue();
-         
-         if( outQueue != null )
+         synchronized (outQueue.getLock())
          {
+            // Add new items in a single (batch) storage operation
+            ArrayList newItems = null;
             for (int i = 0; i<qItems.length; i++)
             {
-               if (!outQueue.contains(qItems[i])) outQueue.add(qItems[i]);
+               if (!outQueue.contains(qItems[i]))
+               {
+                  if( newItems == null ) newItems = new ArrayList();
+                  newItems.add(qItems[i]);
+               }
                else outQueue.updatePersistentStorage(qItems[i]);
             }
+            
+            if( newItems != null ) outQueue.add((QueueItem[])newItems.toArray(new QueueItem[newItems.size()]));
          }
       }
+      finally
+      {
+         Queue.endDeferredStorageOperations(deferralScope);
+      }
    }
    
    
@@ -122,7 +140,7 @@ class QueueManagerImplWrapper implements QueueManagerImpl
       {
          QueueItemTransferRequest command = new QueueItemTransferRequest(address, qItem);
          
-         synchronized (this.queueManager.getQueueItemsLock())
+         synchronized (this.queueManager.getOutQueue().getLock())
          {
             qItem.incrementDispatchCount();
             qItem.setSenderReceiverAddress(address);
@@ -145,7 +163,7 @@ class QueueManagerImplWrapper implements QueueManagerImpl
 
          long currentTime = System.currentTimeMillis();
 
-         synchronized (this.queueManager.getQueueItemsLock())
+         synchronized (this.queueManager.getOutQueue().getLock())
          {
             for (int i = 0; i < qItems.length; i++)
             {
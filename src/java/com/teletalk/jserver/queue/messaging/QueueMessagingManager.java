@@ -21,13 +21,17 @@ import java.util.List;
 
 import com.teletalk.jserver.JServerConstants;
 import com.teletalk.jserver.comm.EndPointIdentifier;
+import com.teletalk.jserver.property.NumberProperty;
+import com.teletalk.jserver.property.Property;
 import com.teletalk.jserver.queue.QueueItem;
 import com.teletalk.jserver.queue.QueueManager;
 import com.teletalk.jserver.queue.QueueSystemCollaborationManager;
 import com.teletalk.jserver.queue.QueueSystemMetaData;
 import com.teletalk.jserver.queue.RemoteQueueSystem;
 import com.teletalk.jserver.queue.command.MultiQueueItemTransferRequest;
+import com.teletalk.jserver.queue.command.MultiQueueItemTransferResponse;
 import com.teletalk.jserver.queue.command.QueueItemTransferRequest;
+import com.teletalk.jserver.queue.command.QueueItemTransferResponse;
 import com.teletalk.jserver.queue.command.QueueSystemCommand;
 import com.teletalk.jserver.queue.command.QueueSystemSynchronizationRequest;
 import com.teletalk.jserver.queue.command.QueueSystemSynchronizationResponse;
@@ -42,7 +46,18 @@ import com.teletalk.jserver.tcp.messaging.MessagingException;
 import com.teletalk.jserver.tcp.messaging.MessagingManager;
 
 /**
- * QueueSystemCollaborationManager implementation using messaging ({@link com.teletalk.jserver.tcp.messaging.MessagingManager}).
+ * QueueSystemCollaborationManager implementation using messaging ({@link com.teletalk.jserver.tcp.messaging.MessagingManager}).<br>
+ * <br>
+ * Commands to a remote queue system are dispatched sequentially by a dispatcher thread of the associated 
+ * {@link RemoteQueueSystemDestination}. Queue item transfer requests (and transfer responses) that are waiting to be dispatched 
+ * to the same destination are combined into {@link MultiQueueItemTransferRequest}s (and {@link MultiQueueItemTransferResponse}s), 
+ * which means that a single round trip and a single message is used for a batch of queue items. The size of the batches is adapted 
+ * to the observed transfer round trip time (see property <code>transferRoundTripTimeTarget</code>) and to the expected free capacity of 
+ * the remote in queue, and is never larger than the value of the property <code>maxTransferBatchSize</code>.<br>
+ * <br>
+ * Batching is disabled by default (<code>maxTransferBatchSize</code> is 1), in which case each queue item is transferred in a 
+ * separate request and queue items addressed to a remote queue system without a server name are routed as before. Batching is 
+ * enabled by setting <code>maxTransferBatchSize</code> to a value larger than 1.
  * 
  * @author Tobias Lfstrand
  * 
@@ -76,6 +91,23 @@ public class QueueMessagingManager extends MessagingManager implements QueueSyst
    private long startupSynchronizationTimeout = DEFAULT_STARTUP_SYNCHRONIZATION_TIMEOUT;
    
    
+   /**
+    * Property for the maximum number of queue items that are transferred in a single transfer request (or acknowledged in a 
+    * single transfer response). A value of 1 disables batching. The default value is 1.
+    * 
+    * @since 2.2.1
+    */
+   protected final NumberProperty maxTransferBatchSize;
+   
+   /**
+    * Property for the target transfer round trip time in milliseconds. The size of transfer batches is reduced when the 
+    * observed round trip time exceeds this value. The default value is 1000.
+    * 
+    * @since 2.2.1
+    */
+   protected final NumberProperty transferRoundTripTimeTarget;
+   
+   
    /**
     * Creates a QueueMessagingManager using the server name as queue system message receiver name (only use this 
     * constructor for queue systems without an in queue).
@@ -126,6 +158,28 @@ public class QueueMessagingManager extends MessagingManager implements QueueSyst
       super.setDefaultMessageReceiver(new DefaultQueueSystemMessageReceiver(this));
       
       super.setMetaData(IN_QUEUE_SYSTEM_MESSAGE_RECEIVER_NAME_META_DATA_KEY, queueSystemMessageReceiverName);
+      
+      this.maxTransferBatchSize = new NumberProperty(this, "maxTransferBatchSize", 1, NumberProperty.MODIFIABLE_NO_RESTART);
+      this.maxTransferBatchSize.setDescription("The maximum number of queue items that are transferred in a single transfer request (or acknowledged in a single transfer response). 1 (default) disables batching.");
+      addProperty(this.maxTransferBatchSize);
+      
+      this.transferRoundTripTimeTarget = new NumberProperty(this, "transferRoundTripTimeTarget", 1000, NumberProperty.MODIFIABLE_NO_RESTART);
+      this.transferRoundTripTimeTarget.setDescription("The target transfer round trip time in milliseconds. The size of transfer batches is reduced when the observed round trip time exceeds this value.");
+      addProperty(this.transferRoundTripTimeTarget);
+   }
+   
+   /**
+    * Validates a modification of a property's value.
+    * 
+    * @param property the property to validate.
+    * 
+    * @return boolean value indicating if the property passed (true) validation or not (false).
+    */
+   public boolean validatePropertyModification(final Property property)
+   {
+      if (property == this.maxTransferBatchSize) return (this.maxTransferBatchSize.intValue() > 0);
+      else if (property == this.transferRoundTripTimeTarget) return (this.transferRoundTripTimeTarget.longValue() > 0);
+      else return super.validatePropertyModification(property);
    }
    
    /**
@@ -177,6 +231,16 @@ public class QueueMessagingManager extends MessagingManager implements QueueSyst
          
          RemoteQueueSystemDestination remoteQueueSystemDestination = ((RemoteQueueSystemDestination)message.getDestination());
          
+         // Update transfer round trip time statistics
+         if( queueSystemCommand instanceof QueueItemTransferResponse )
+         {
+            remoteQueueSystemDestination.transferResponseReceived(new String[]{((QueueItemTransferResponse)queueSystemCommand).getItemId()});
+         }
+         else if( queueSystemCommand instanceof MultiQueueItemTransferResponse )
+         {
+            remoteQueueSystemDestination.transferResponseReceived(((MultiQueueItemTransferResponse)queueSystemCommand).getItemIds());
+         }
+         
          // Execute command in RemoteQueueSystemDestination (which will result in a call to handleQueueSystemCommand())
          queueSystemCommand.execute( remoteQueueSystemDestination );
       }
@@ -202,6 +266,49 @@ public class QueueMessagingManager extends MessagingManager implements QueueSyst
       this.startupSynchronizationTimeout = startupSynchronizationTimeout;
    }
    
+   /**
+    * Gets the maximum number of queue items that are transferred in a single transfer request (or acknowledged in a single 
+    * transfer response).
+    * 
+    * @since 2.2.1
+    */
+   public int getMaxTransferBatchSize()
+   {
+      return this.maxTransferBatchSize.intValue();
+   }
+   
+   /**
+    * Sets the maximum number of queue items that are transferred in a single transfer request (or acknowledged in a single 
+    * transfer response). A value of 1 disables batching.
+    * 
+    * @since 2.2.1
+    */
+   public void setMaxTransferBatchSize(int maxTransferBatchSize)
+   {
+      this.maxTransferBatchSize.setValue(maxTransferBatchSize);
+   }
+   
+   /**
+    * Gets the target transfer round trip time in milliseconds.
+    * 
+    * @since 2.2.1
+    */
+   public long getTransferRoundTripTimeTarget()
+   {
+      return this.transferRoundTripTimeTarget.longValue();
+   }
+   
+   /**
+    * Sets the target transfer round trip time in milliseconds. The size of transfer batches is reduced when the observed round trip 
+    * time exceeds this value.
+    * 
+    * @since 2.2.1
+    */
+   public void setTransferRoundTripTimeTarget(long transferRoundTripTimeTarget)
+   {
+      this.transferRoundTripTimeTarget.setValue(transferRoundTripTimeTarget);
+   }
+   
    /**
     * Method to dispatch a command to a remote queue system at the address specified in the command, or to the specified destination (if set).
     */
@@ -238,18 +345,28 @@ public class QueueMessagingManager extends MessagingManager implements QueueSyst
          }
          else // Send to server with named receiver...
          {
-            final MessageHeader header = this.createMessageHeader(command);
+            final RemoteQueueSystemDestination destinationForTransfer = (command instanceof QueueItemTransferRequest) ? this.selectDestinationForTransfer(address) : null;
             
-            if( (address != null) && (address.getReceiverName() != null) )
+            if( destinationForTransfer != null )
             {
-               super.dispatchMessageAsync(header, command, address.getReceiverName());
+               // Dispatch in sequential thread for RemoteQueueSystemDestination, to make it possible to batch the transfer request
+               destinationForTransfer.dispatchCommandToRemoteQueueSystemDestination(command);
             }
-            else // ...or send to any server
+            else
             {
-               super.dispatchMessageAsync(header, command);
+               final MessageHeader header = this.createMessageHeader(command);
+               
+               if( (address != null) && (address.getReceiverName() != null) )
+               {
+                  super.dispatchMessageAsync(header, command, address.getReceiverName());
+               }
+               else // ...or send to any server
+               {
+                  super.dispatchMessageAsync(header, command);
+               }
+               
+               this.queueManager.commandDeliveryReport(command, true);
             }
-            
-            this.queueManager.commandDeliveryReport(command, true);
          }
       }
       catch(Exception e)
@@ -299,6 +416,57 @@ public class QueueMessagingManager extends MessagingManager implements QueueSyst
     * Internal method to dispatch a command to a remote queue system at the address specified in the command, or to the specified destination (if set).
     */
    protected void dispatchCommandToRemoteQueueSystemDestination(final QueueSystemCommand command, final RemoteQueueSystemDestination destination)
+   {
+      this.queueManager.commandDeliveryReport(command, this.doDispatchCommandToRemoteQueueSystemDestination(command, destination));
+   }
+   
+   /**
+    * Internal method to dispatch a batch of queue item transfer requests, or queue item transfer responses of the same type, to a 
+    * remote queue system. The commands are combined into a single {@link MultiQueueItemTransferRequest} or 
+    * {@link MultiQueueItemTransferResponse}, and the outcome of the dispatch is reported for each of the commands in the batch.
+    * 
+    * @since 2.2.1
+    */
+   protected void dispatchCommandBatchToRemoteQueueSystemDestination(final List commands, final RemoteQueueSystemDestination destination)
+   {
+      final QueueSystemCommand batchCommand;
+      final EndPointIdentifier address = destination.getRemoteQueueSystemAddress();
+      
+      if( commands.get(0) instanceof QueueItemTransferRequest )
+      {
+         final QueueItem[] items = new QueueItem[commands.size()];
+         for(int i=0; i<items.length; i++)
+         {
+            items[i] = ((QueueItemTransferRequest)commands.get(i)).getQueueItem();
+         }
+         batchCommand = new MultiQueueItemTransferRequest(address, items);
+      }
+      else
+      {
+         final String[] itemIds = new String[commands.size()];
+         for(int i=0; i<itemIds.length; i++)
+         {
+            itemIds[i] = ((QueueItemTransferResponse)commands.get(i)).getItemId();
+         }
+         batchCommand = new MultiQueueItemTransferResponse(address, itemIds, ((QueueItemTransferResponse)commands.get(0)).getResponseType());
+      }
+      
+      if( super.isDebugMode() ) super.logDebug("Dispatching " + commands.size() + " commands as " + batchCommand + " to " + destination + ".");
+      
+      final boolean result = this.doDispatchCommandToRemoteQueueSystemDestination(batchCommand, destination);
+      
+      for(int i=0; i<commands.size(); i++)
+      {
+         this.queueManager.commandDeliveryReport((QueueSystemCommand)commands.get(i), result);
+      }
+   }
+   
+   /**
+    * Dispatches a command to a remote queue system.
+    * 
+    * @return <code>true</code> if the command was dispatched successfully, otherwise <code>false</code>.
+    */
+   private boolean doDispatchCommandToRemoteQueueSystemDestination(final QueueSystemCommand command, final RemoteQueueSystemDestination destination)
    {
       boolean result = false;
       
@@ -344,10 +512,49 @@ public class QueueMessagingManager extends MessagingManager implements QueueSyst
          logError("Error dispatching queue system command " + command + "!", e);
       }
       
-      this.queueManager.commandDeliveryReport(command, result);
+      return result;
    }
    
    
+   /**
+    * Selects the destination to which a transfer request to a named receiver (or to any server) is to be dispatched when transfer 
+    * batching is enabled. The destination with established link and the lowest load (expected remote in queue length) is selected. 
+    * 
+    * @return the selected destination, or <code>null</code> if batching is disabled or if no destination is available.
+    * 
+    * @since 2.2.1
+    */
+   private RemoteQueueSystemDestination selectDestinationForTransfer(final MessagingQueueSystemEndPointIdentifier address)
+   {
+      if( this.getMaxTransferBatchSize() <= 1 ) return null;
+      
+      final Destination[] destinations;
+      if( (address != null) && (address.getReceiverName() != null) ) destinations = this.getDestinations(address.getReceiverName());
+      else destinations = super.getDestinations();
+      
+      RemoteQueueSystemDestination selectedDestination = null;
+      RemoteQueueSystemDestination remoteQueueSystemDestination;
+      int load;
+      int selectedLoad = Integer.MAX_VALUE;
+      
+      for(int i=0; i<destinations.length; i++)
+      {
+         remoteQueueSystemDestination = (RemoteQueueSystemDestination)destinations[i];
+         
+         if( (remoteQueueSystemDestination != null) && remoteQueueSystemDestination.isLinkEstablished() )
+         {
+            load = remoteQueueSystemDestination.getLoad();
+            if( (selectedDestination == null) || (load < selectedLoad) )
+            {
+               selectedDestination = remoteQueueSystemDestination;
+               selectedLoad = load;
+            }
+         }
+      }
+      
+      return selectedDestination;
+   }
+   
    /**
     */
    private RemoteQueueSystemDestination getRemoteQueueSystemDestination(final MessagingQueueSystemEndPointIdentifier messagingQueueSystemEndPointIdentifier)
@@ -500,6 +707,8 @@ public class QueueMessagingManager extends MessagingManager implements QueueSyst
             QueueItem item = queueItemTransferRequest.getQueueItem(); 
             if( item != null ) item.setSenderReceiverAddress(command.getAddress());
             
+            remoteQueueSystemDestination.transferRequestDispatched(new String[]{queueItemTransferRequest.getItemId()});
+            
             this.queueManagerImplWrapper.onQueueItemTransferRequestDispatch(queueItemTransferRequest);
          }
          else if( command instanceof MultiQueueItemTransferRequest )
@@ -512,6 +721,8 @@ public class QueueMessagingManager extends MessagingManager implements QueueSyst
                {
                   if( items[i] != null ) items[i].setSenderReceiverAddress(command.getAddress());
                }
+               
+               remoteQueueSystemDestination.transferRequestDispatched(multiQueueItemTransferRequest.getItemIds());
             }
             
             this.queueManagerImplWrapper.onMultiQueueItemTransferRequestDispatch(multiQueueItemTransferRequest);
@@ -16,12 +16,15 @@
 package com.teletalk.jserver.queue.messaging;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 
 import com.teletalk.jserver.comm.EndPointIdentifier;
 import com.teletalk.jserver.queue.QueueSystemCollaborationManager;
 import com.teletalk.jserver.queue.QueueSystemMetaData;
 import com.teletalk.jserver.queue.RemoteQueueSystem;
+import com.teletalk.jserver.queue.command.QueueItemTransferRequest;
+import com.teletalk.jserver.queue.command.QueueItemTransferResponse;
 import com.teletalk.jserver.queue.command.QueueSystemCommand;
 import com.teletalk.jserver.queue.command.QueueSystemSynchronizationRequest;
 import com.teletalk.jserver.queue.command.QueueSystemSynchronizationResponse;
@@ -56,6 +59,15 @@ public class RemoteQueueSystemDestination extends Destination implements RemoteQ
    private QueueSystemSynchronizationResponse queueSystemSynchronizationResponse = null;
    
    
+   private final HashMap transferDispatchTimes = new HashMap(); // Item id -> Long (time when the transfer request was dispatched)
+   
+   private final Object transferBatchLock = new Object(); // Guards transferBatchSizeLimit and smoothedTransferRoundTripTime
+   
+   private int transferBatchSizeLimit = Integer.MAX_VALUE; // Adaptive limit - initially limited only by the maximum transfer batch size
+   
+   private long smoothedTransferRoundTripTime = -1;
+   
+   
    private SequentialMessageHandler sequentialMessageHandler;
    
    private SequentialMessageDispatcher sequentialMessageDispatcher;
@@ -83,6 +95,11 @@ public class RemoteQueueSystemDestination extends Destination implements RemoteQ
    {
       if( this.sequentialMessageDispatcher != null ) this.sequentialMessageDispatcher.cancelCommands();
       this.setSynchronizationComplete(false); // Reset synchronizationComplete flag
+      
+      synchronized(this.transferDispatchTimes)
+      {
+         this.transferDispatchTimes.clear();
+      }
    }
       
    /**
@@ -129,6 +146,106 @@ public class RemoteQueueSystemDestination extends Destination implements RemoteQ
    }
 
 
+   /**
+    * Called when a transfer request for the specified items is about to be dispatched to the remote queue system, to record the 
+    * dispatch time used for round trip time measurement.
+    * 
+    * @since 2.2.1
+    */
+   void transferRequestDispatched(final String[] itemIds)
+   {
+      final Long dispatchTime = new Long(System.currentTimeMillis());
+      
+      synchronized(this.transferDispatchTimes)
+      {
+         for(int i=0; i<itemIds.length; i++)
+         {
+            this.transferDispatchTimes.put(itemIds[i], dispatchTime);
+         }
+      }
+   }
+   
+   /**
+    * Called when a transfer response for the specified items has been received from the remote queue system. This method updates 
+    * the smoothed transfer round trip time and adapts the transfer batch size limit; the limit is halved if the round trip time 
+    * exceeds the target (see {@link QueueMessagingManager#getTransferRoundTripTimeTarget()}), otherwise it is increased by one, up 
+    * to the maximum transfer batch size (see {@link QueueMessagingManager#getMaxTransferBatchSize()}).
+    * 
+    * @since 2.2.1
+    */
+   void transferResponseReceived(final String[] itemIds)
+   {
+      long dispatchTime = -1;
+      Long time;
+      
+      synchronized(this.transferDispatchTimes)
+      {
+         for(int i=0; i<itemIds.length; i++)
+         {
+            time = (Long)this.transferDispatchTimes.remove(itemIds[i]);
+            if( (time != null) && ((dispatchTime < 0) || (time.longValue() < dispatchTime)) ) dispatchTime = time.longValue();
+         }
+      }
+      
+      if( dispatchTime >= 0 )
+      {
+         final long roundTripTime = Math.max(0, System.currentTimeMillis() - dispatchTime);
+         final int maxBatchSize = this.queueMessagingManager.getMaxTransferBatchSize();
+         
+         synchronized(this.transferBatchLock)
+         {
+            if( this.smoothedTransferRoundTripTime < 0 ) this.smoothedTransferRoundTripTime = roundTripTime;
+            else this.smoothedTransferRoundTripTime = (7*this.smoothedTransferRoundTripTime + roundTripTime) / 8;
+            
+            final int currentLimit = Math.min(this.transferBatchSizeLimit, maxBatchSize);
+            
+            if( this.smoothedTransferRoundTripTime > this.queueMessagingManager.getTransferRoundTripTimeTarget() ) this.transferBatchSizeLimit = Math.max(1, currentLimit / 2);
+            else this.transferBatchSizeLimit = Math.min(maxBatchSize, currentLimit + 1);
+         }
+      }
+   }
+   
+   /**
+    * Gets the smoothed round trip time of transfer requests to the remote queue system, i.e. the time between the dispatch of a 
+    * transfer request and the receipt of the corresponding response.
+    * 
+    * @return the smoothed round trip time in milliseconds, or -1 if no round trip time has been measured yet.
+    * 
+    * @since 2.2.1
+    */
+   public long getSmoothedTransferRoundTripTime()
+   {
+      synchronized(this.transferBatchLock)
+      {
+         return this.smoothedTransferRoundTripTime;
+      }
+   }
+   
+   /**
+    * Gets the current maximum number of queue items to transfer to the remote queue system in a single transfer request. The size 
+    * is adapted to the observed transfer round trip time, and limited by the expected free capacity of the remote in queue. 
+    * 
+    * @since 2.2.1
+    */
+   public int getTransferBatchSize()
+   {
+      int batchSize;
+      
+      synchronized(this.transferBatchLock)
+      {
+         batchSize = Math.min(this.transferBatchSizeLimit, this.queueMessagingManager.getMaxTransferBatchSize());
+      }
+      
+      final int remoteInQueueMaxLength = this.getRemoteInQueueMaxLength();
+      if( remoteInQueueMaxLength >= 0 )
+      {
+         batchSize = Math.min(batchSize, remoteInQueueMaxLength - this.getExpectedRemoteInQueueLength());
+      }
+      
+      return Math.max(1, batchSize);
+   }
+   
+   
    /**
     */
    QueueSystemSynchronizationRequest getQueueSystemSynchronizationRequest()
@@ -535,12 +652,52 @@ public class RemoteQueueSystemDestination extends Destination implements RemoteQ
          super.doDestroy();
       }
       
+      /**
+       * Gets the batch of consecutive queued commands that can be dispatched together with the specified command, or null if there 
+       * are no such commands. Transfer requests are batched up to the transfer batch size of the destination, and transfer responses 
+       * of the same type are batched up to the maximum transfer batch size.
+       */
+      private ArrayList getCommandBatch(final QueueSystemCommand command)
+      {
+         final int maxBatchSize;
+         if( command instanceof QueueItemTransferRequest ) maxBatchSize = this.destination.getTransferBatchSize();
+         else if( command instanceof QueueItemTransferResponse ) maxBatchSize = this.queueMessagingManager.getMaxTransferBatchSize();
+         else return null;
+         
+         ArrayList batch = null;
+         Object nextCommand;
+         
+         synchronized (super.queue.getLock())
+         {
+            while( ((batch == null) || (batch.size() < maxBatchSize)) && (maxBatchSize > 1) )
+            {
+               nextCommand = super.queue.peekMsg();
+               
+               if( (nextCommand == null) || (nextCommand.getClass() != command.getClass()) ) break;
+               else if( (command instanceof QueueItemTransferResponse) && 
+                     (((QueueItemTransferResponse)nextCommand).getResponseType() != ((QueueItemTransferResponse)command).getResponseType()) ) break;
+               
+               if( batch == null )
+               {
+                  batch = new ArrayList();
+                  batch.add(command);
+               }
+               batch.add(super.queue.getMsgIfAny());
+            }
+         }
+         
+         return batch;
+      }
+      
       /**
        * Handles a queued message. 
        */
       protected void handleMessage(final Object message)
       {
-         this.queueMessagingManager.dispatchCommandToRemoteQueueSystemDestination((QueueSystemCommand)message, this.destination);
+         final ArrayList batch = this.getCommandBatch((QueueSystemCommand)message);
+         
+         if( batch != null ) this.queueMessagingManager.dispatchCommandBatchToRemoteQueueSystemDestination(batch, this.destination);
+         else this.queueMessagingManager.dispatchCommandToRemoteQueueSystemDestination((QueueSystemCommand)message, this.destination);
       }
    }
 }
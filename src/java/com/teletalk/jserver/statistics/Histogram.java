@@ -0,0 +1,299 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.statistics;
+
+import java.io.Serializable;
+
+/**
+ * Fixed memory histogram of non-negative long values, with bounded relative error (in the style of HDR histograms).<br>
+ * <br>
+ * Values lower than <code>2^subBucketBits</code> are recorded exactly. Larger values are recorded in buckets of increasing 
+ * width, with <code>2^(subBucketBits-1)</code> buckets for each power of two, which means that the relative error of a value 
+ * obtained from the histogram (such as a percentile) is at most <code>2^-(subBucketBits-1)</code>. Values higher than the 
+ * highest trackable value (<code>2^highestValueBits - 1</code>) are recorded as the highest trackable value.<br>
+ * <br>
+ * With the default settings ({@link #DEFAULT_SUB_BUCKET_BITS} and {@link #DEFAULT_HIGHEST_VALUE_BITS}), a histogram uses 528 
+ * buckets, has a relative error of at most 6.25%, and tracks values up to 2^36 - 1.<br>
+ * <br>
+ * Note: This class is not thread safe.
+ * 
+ * @author Tobias Lfstrand
+ * 
+ * @since 2.2.1
+ */
+public final class Histogram implements Serializable
+{
+   static final long serialVersionUID = 3287413359165440731L;
+   
+   /** The default number of bits used for sub buckets. */
+   public static final int DEFAULT_SUB_BUCKET_BITS = 5;
+   
+   /** The default number of bits of the highest trackable value. */
+   public static final int DEFAULT_HIGHEST_VALUE_BITS = 36;
+   
+   
+   private final int subBucketBits;
+   
+   private final int highestValueBits;
+   
+   private final int subBucketCount;
+   
+   private final int subBucketHalfCount;
+   
+   private final long highestTrackableValue;
+   
+   private final long[] counts;
+   
+   private long totalCount = 0;
+   
+   private long total = 0;
+   
+   private long min = Long.MAX_VALUE;
+   
+   private long max = 0;
+   
+   
+   /**
+    * Creates a new Histogram with the default number of sub bucket bits and the default highest trackable value.
+    */
+   public Histogram()
+   {
+      this(DEFAULT_SUB_BUCKET_BITS, DEFAULT_HIGHEST_VALUE_BITS);
+   }
+   
+   /**
+    * Creates a new Histogram.
+    * 
+    * @param subBucketBits the number of bits used for sub buckets (1-16), which determines the precision of the histogram.
+    * @param highestValueBits the number of bits of the highest trackable value (<code>subBucketBits</code>-62).
+    */
+   public Histogram(final int subBucketBits, final int highestValueBits)
+   {
+      if( (subBucketBits < 1) || (subBucketBits > 16) ) throw new IllegalArgumentException("Invalid number of sub bucket bits: " + subBucketBits + "!");
+      if( (highestValueBits < subBucketBits) || (highestValueBits > 62) ) throw new IllegalArgumentException("Invalid number of highest value bits: " + highestValueBits + "!");
+      
+      this.subBucketBits = subBucketBits;
+      this.highestValueBits = highestValueBits;
+      this.subBucketCount = 1 << subBucketBits;
+      this.subBucketHalfCount = this.subBucketCount >> 1;
+      this.highestTrackableValue = (1L << highestValueBits) - 1;
+      this.counts = new long[this.getBucketIndex(this.highestTrackableValue) + 1];
+   }
+   
+   /**
+    * Gets the number of bits used for sub buckets.
+    */
+   public int getSubBucketBits()
+   {
+      return subBucketBits;
+   }
+
+   /**
+    * Gets the number of bits of the highest trackable value.
+    */
+   public int getHighestValueBits()
+   {
+      return highestValueBits;
+   }
+   
+   /**
+    * Gets the highest value that can be tracked by this histogram.
+    */
+   public long getHighestTrackableValue()
+   {
+      return highestTrackableValue;
+   }
+   
+   /**
+    * Gets the number of buckets of this histogram.
+    */
+   public int getBucketCount()
+   {
+      return this.counts.length;
+   }
+   
+   /**
+    * Records a value in this histogram. Negative values are recorded as zero.
+    */
+   public void record(long value)
+   {
+      if( value < 0 ) value = 0;
+      
+      this.counts[this.getBucketIndex(Math.min(value, this.highestTrackableValue))]++;
+      this.totalCount++;
+      this.total += value;
+      if( value < this.min ) this.min = value;
+      if( value > this.max ) this.max = value;
+   }
+   
+   /**
+    * Adds the values recorded in the specified histogram, which must have been created with the same number of sub bucket bits 
+    * and highest value bits as this histogram, to this histogram.
+    */
+   public void add(final Histogram histogram)
+   {
+      if( (histogram.subBucketBits != this.subBucketBits) || (histogram.highestValueBits != this.highestValueBits) )
+      {
+         throw new IllegalArgumentException("Incompatible histogram!");
+      }
+      
+      for(int i=0; i<this.counts.length; i++)
+      {
+         this.counts[i] += histogram.counts[i];
+      }
+      this.totalCount += histogram.totalCount;
+      this.total += histogram.total;
+      if( histogram.min < this.min ) this.min = histogram.min;
+      if( histogram.max > this.max ) this.max = histogram.max;
+   }
+   
+   /**
+    * Resets this histogram.
+    */
+   public void reset()
+   {
+      for(int i=0; i<this.counts.length; i++)
+      {
+         this.counts[i] = 0;
+      }
+      this.totalCount = 0;
+      this.total = 0;
+      this.min = Long.MAX_VALUE;
+      this.max = 0;
+   }
+   
+   /**
+    * Creates a new, empty, histogram with the same number of sub bucket bits and highest value bits as this histogram.
+    */
+   public Histogram createEmptyCopy()
+   {
+      return new Histogram(this.subBucketBits, this.highestValueBits);
+   }
+   
+   /**
+    * Gets the number of recorded values.
+    */
+   public long getTotalCount()
+   {
+      return totalCount;
+   }
+   
+   /**
+    * Gets the sum of all recorded values.
+    */
+   public long getTotal()
+   {
+      return total;
+   }
+   
+   /**
+    * Gets the lowest recorded value, or 0 if no values have been recorded.
+    */
+   public long getMin()
+   {
+      return (this.totalCount > 0) ? this.min : 0;
+   }
+   
+   /**
+    * Gets the highest recorded value.
+    */
+   public long getMax()
+   {
+      return max;
+   }
+   
+   /**
+    * Gets the (truncated) average of all recorded values, or 0 if no values have been recorded.
+    */
+   public long getAverage()
+   {
+      return (this.totalCount > 0) ? (this.total / this.totalCount) : 0;
+   }
+   
+   /**
+    * Gets the value at the specified percentile, i.e. the (highest equivalent) value that the specified percentage of all 
+    * recorded values are lower than or equal to.
+    * 
+    * @param percentile a percentile (0-100).
+    * 
+    * @return a value, or 0 if no values have been recorded.
+    */
+   public long getValueAtPercentile(final double percentile)
+   {
+      if( this.totalCount == 0 ) return 0;
+      
+      final double fraction = Math.min(Math.max(percentile, 0.0), 100.0) / 100.0;
+      final long targetCount = Math.max(1, (long)Math.ceil(fraction * this.totalCount));
+      long count = 0;
+      
+      for(int i=0; i<this.counts.length; i++)
+      {
+         count += this.counts[i];
+         
+         if( count >= targetCount )
+         {
+            return Math.max(this.min, Math.min(this.getHighestValue(i), this.max));
+         }
+      }
+      
+      return this.max;
+   }
+   
+   /**
+    * Gets the index of the bucket for the specified value, which must be between 0 and the highest trackable value.
+    */
+   private int getBucketIndex(final long value)
+   {
+      if( value < this.subBucketCount ) return (int)value;
+      
+      final int exponent = log2(value); // >= subBucketBits
+      final int subBucket = (int)(value >>> (exponent - this.subBucketBits + 1)); // Between subBucketHalfCount and subBucketCount-1
+      
+      return this.subBucketCount + ((exponent - this.subBucketBits) * this.subBucketHalfCount) + (subBucket - this.subBucketHalfCount);
+   }
+   
+   /**
+    * Gets the highest value that is recorded in the bucket with the specified index.
+    */
+   private long getHighestValue(final int bucketIndex)
+   {
+      if( bucketIndex < this.subBucketCount ) return bucketIndex;
+      
+      final int offset = bucketIndex - this.subBucketCount;
+      final int exponent = this.subBucketBits + (offset / this.subBucketHalfCount);
+      final long subBucket = this.subBucketHalfCount + (offset % this.subBucketHalfCount);
+      final int shift = exponent - this.subBucketBits + 1;
+      
+      return ((subBucket + 1) << shift) - 1;
+   }
+   
+   /**
+    * Gets the base 2 logarithm (i.e. the index of the highest set bit) of the specified positive value.
+    */
+   private static int log2(long value)
+   {
+      int log = 0;
+      
+      if( value >= (1L << 32) ) { value >>>= 32; log += 32; }
+      if( value >= (1L << 16) ) { value >>>= 16; log += 16; }
+      if( value >= (1L << 8) ) { value >>>= 8; log += 8; }
+      if( value >= (1L << 4) ) { value >>>= 4; log += 4; }
+      if( value >= (1L << 2) ) { value >>>= 2; log += 2; }
+      if( value >= (1L << 1) ) { log += 1; }
+      
+      return log;
+   }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.statistics;
+
+/**
+ * Statistics source that records values in fixed memory {@link Histogram}s, which, in addition to the count, average and max 
+ * values of {@link AverageMaxStatisticsSource}, makes it possible to get percentiles (such as the 50th, 99th and 99.9th 
+ * percentiles, which are exposed as statistics entries) of the recorded values.<br>
+ * <br>
+ * To keep the cost of {@link #update(long)} low when called concurrently by many threads, values are recorded in one of 
+ * several <i>stripes</i> (histograms with separate locks), selected based on the identity of the calling thread. Different 
+ * threads thus seldom contend for the same lock, and no lock is held on this object while recording a value. The stripes are 
+ * merged when the statistics entries of this object are read.<br>
+ * <br>
+ * Note: The statistics entries of this source are derived from the recorded values, and updated each time they are accessed 
+ * through {@link #getStatisticsEntry(String)} or one of the entry getter methods. The methods {@link #setCount(long)} and 
+ * {@link #setTotal(long)} are not supported.
+ * 
+ * @author Tobias Lfstrand
+ * 
+ * @since 2.2.1
+ */
+public class HistogramStatisticsSource extends AverageMaxStatisticsSource
+{
+   static final long serialVersionUID = -2319461850624311862L;
+   
+   public static final String P50_DEFAULT_ENTRY_NAME = "p50";
+   
+   public static final String P99_DEFAULT_ENTRY_NAME = "p99";
+   
+   public static final String P999_DEFAULT_ENTRY_NAME = "p99.9";
+   
+   /** The default number of stripes - the number of available processors rounded up to the nearest power of two, but at most 8. */
+   public static final int DEFAULT_STRIPE_COUNT = Math.min(8, roundUpToPowerOfTwo(Runtime.getRuntime().availableProcessors()));
+   
+   
+   private final Histogram[] stripes;
+   
+   private final int stripeMask;
+   
+   private final String[] entryNames;
+   
+   private final NumericalStatisticsEntry p50;
+   
+   private final NumericalStatisticsEntry p99;
+   
+   private final NumericalStatisticsEntry p999;
+   
+   
+   /**
+    * Creates a new HistogramStatisticsSource with {@link #DEFAULT_STRIPE_COUNT} stripes.
+    */
+   public HistogramStatisticsSource(final boolean hasSources)
+   {
+      this(hasSources, AVERAGE_DEFAULT_ENTRY_NAME, MAX_DEFAULT_ENTRY_NAME);
+   }
+   
+   /**
+    * Creates a new HistogramStatisticsSource with {@link #DEFAULT_STRIPE_COUNT} stripes.
+    */
+   public HistogramStatisticsSource(final boolean hasSources, String averageEntryName, String maxEntryName)
+   {
+      this(hasSources, averageEntryName, maxEntryName, DEFAULT_STRIPE_COUNT);
+   }
+   
+   /**
+    * Creates a new HistogramStatisticsSource.
+    * 
+    * @param stripeCount the number of stripes, which will be rounded up to the nearest power of two.
+    */
+   public HistogramStatisticsSource(final boolean hasSources, String averageEntryName, String maxEntryName, final int stripeCount)
+   {
+      super(hasSources, averageEntryName, maxEntryName);
+      
+      this.stripes = new Histogram[roundUpToPowerOfTwo(stripeCount)];
+      for(int i=0; i<this.stripes.length; i++)
+      {
+         this.stripes[i] = new Histogram();
+      }
+      this.stripeMask = this.stripes.length - 1;
+      
+      this.entryNames = new String[]{super.getCountEntryName(), super.getAverageEntryName(), super.getMaxEntryName(), 
+            P50_DEFAULT_ENTRY_NAME, P99_DEFAULT_ENTRY_NAME, P999_DEFAULT_ENTRY_NAME};
+      
+      this.p50 = new NumericalStatisticsEntry();
+      this.p99 = new NumericalStatisticsEntry();
+      this.p999 = new NumericalStatisticsEntry();
+   }
+   
+   
+   /* ### STATISTICSSOURCE METHODS BEGIN ### */
+   
+   
+   /**
+    * Gets the names of the {@link StatisticsEntry} object contained in this StatisticsSource object.
+    */
+   public String[] getStatisticsEntryNames()
+   {
+      return this.entryNames;
+   }
+   
+   /**
+    * Gets the {@link StatisticsEntry} object with the specified name contained in this StatisticsSource object. The values 
+    * of the entries are updated before the entry is returned.
+    */
+   public StatisticsEntry getStatisticsEntry(String name)
+   {
+      this.updateEntries();
+      
+      if( P50_DEFAULT_ENTRY_NAME.equals(name) ) return this.p50;
+      else if( P99_DEFAULT_ENTRY_NAME.equals(name) ) return this.p99;
+      else if( P999_DEFAULT_ENTRY_NAME.equals(name) ) return this.p999;
+      else return super.getStatisticsEntry(name);
+   }
+   
+   /**
+    * Resets all the {@link StatisticsEntry} objects contained in this object, as well as the recorded values. This call will 
+    * cascade to all the StatisticsSource objects contained in this object.
+    */
+   public void reset()
+   {
+      super.reset();
+      
+      for(int i=0; i<this.stripes.length; i++)
+      {
+         synchronized(this.stripes[i])
+         {
+            this.stripes[i].reset();
+         }
+      }
+      
+      this.p50.reset();
+      this.p99.reset();
+      this.p999.reset();
+   }
+   
+   
+   /* ### STATISTICSSOURCE METHODS END ### */
+   
+   
+   /**
+    * Records a value.
+    */
+   public void update(final long value)
+   {
+      final Histogram stripe = this.stripes[spread(System.identityHashCode(Thread.currentThread())) & this.stripeMask];
+      
+      synchronized(stripe)
+      {
+         stripe.record(value);
+      }
+   }
+   
+   /**
+    * Gets a snapshot of the values recorded in this statistics source, i.e. a histogram containing the merged values of all stripes.
+    */
+   public Histogram getSnapshot()
+   {
+      final Histogram snapshot = this.stripes[0].createEmptyCopy();
+      
+      for(int i=0; i<this.stripes.length; i++)
+      {
+         synchronized(this.stripes[i])
+         {
+            snapshot.add(this.stripes[i]);
+         }
+      }
+      
+      return snapshot;
+   }
+   
+   /**
+    * Gets the value at the specified percentile (0-100) of the recorded values.
+    */
+   public long getValueAtPercentile(final double percentile)
+   {
+      return this.getSnapshot().getValueAtPercentile(percentile);
+   }
+   
+   /**
+    * Gets the number of stripes used by this statistics source.
+    */
+   public int getStripeCount()
+   {
+      return this.stripes.length;
+   }
+   
+   /**
+    * Gets the {@link NumericalStatisticsEntry} for the count, after updating it.
+    */
+   public NumericalStatisticsEntry getCountStatisticsEntry()
+   {
+      this.updateEntries();
+      return super.getCountStatisticsEntry();
+   }
+   
+   /**
+    * Gets the {@link NumericalStatisticsEntry} for the average value, after updating it.
+    */
+   public NumericalStatisticsEntry getAverageStatisticsEntry()
+   {
+      this.updateEntries();
+      return super.getAverageStatisticsEntry();
+   }
+   
+   /**
+    * Gets the {@link NumericalStatisticsEntry} for the max value, after updating it.
+    */
+   public NumericalStatisticsEntry getMaxStatisticsEntry()
+   {
+      this.updateEntries();
+      return super.getMaxStatisticsEntry();
+   }
+   
+   /**
+    * Sets the suffix to be used for the average, max and percentile values.
+    */
+   public void setSuffix(String suffix)
+   {
+      super.setSuffix(suffix);
+      
+      this.p50.setSuffix(suffix);
+      this.p99.setSuffix(suffix);
+      this.p999.setSuffix(suffix);
+   }
+   
+   /**
+    * Gets the total value.
+    */
+   public long getTotal()
+   {
+      return this.getSnapshot().getTotal();
+   }
+   
+   /**
+    * Not supported by this class.
+    * 
+    * @throws UnsupportedOperationException always.
+    */
+   public void setTotal(long total)
+   {
+      throw new UnsupportedOperationException("setTotal is not supported by HistogramStatisticsSource!");
+   }
+   
+   /**
+    * Gets the count.
+    */
+   public long getCount()
+   {
+      return this.getSnapshot().getTotalCount();
+   }
+   
+   /**
+    * Not supported by this class.
+    * 
+    * @throws UnsupportedOperationException always.
+    */
+   public void setCount(long count)
+   {
+      throw new UnsupportedOperationException("setCount is not supported by HistogramStatisticsSource!");
+   }
+   
+   /**
+    * Gets the average value.
+    */   
+   public long getAverage()
+   {
+      return this.getSnapshot().getAverage();
+   }
+   
+   /**
+    * Gets the max value.
+    */   
+   public long getMax()
+   {
+      return this.getSnapshot().getMax();
+   }
+   
+   /**
+    * Updates the statistics entries of this object from a snapshot of the recorded values.
+    */
+   private void updateEntries()
+   {
+      final Histogram snapshot = this.getSnapshot();
+      
+      super.getCountStatisticsEntry().setLongValue(snapshot.getTotalCount());
+      super.getAverageStatisticsEntry().setLongValue(snapshot.getAverage());
+      super.getMaxStatisticsEntry().setLongValue(snapshot.getMax());
+      this.p50.setLongValue(snapshot.getValueAtPercentile(50.0));
+      this.p99.setLongValue(snapshot.getValueAtPercentile(99.0));
+      this.p999.setLongValue(snapshot.getValueAtPercentile(99.9));
+   }
+   
+   /**
+    * Spreads the bits of a hash code, to make the lowest bits usable as an index.
+    */
+   private static int spread(int h)
+   {
+      h ^= (h >>> 20) ^ (h >>> 12);
+      return h ^ (h >>> 7) ^ (h >>> 4);
+   }
+   
+   /**
+    * Rounds the specified value up to the nearest power of two (at least 1).
+    */
+   private static int roundUpToPowerOfTwo(final int value)
+   {
+      int result = 1;
+      while( result < value ) result <<= 1;
+      return result;
+   }
+}
@@ -151,6 +151,26 @@ public class StatisticsManager extends SubComponent
       this.compositeStatisticsSupport.addStatisticsSource(name, source);
    }
    
+   /**
+    * Creates a new {@link HistogramStatisticsSource} and adds it to the root StatisticsSource, replacing any existing source with 
+    * the same name. A HistogramStatisticsSource records values (such as latencies) with low overhead, and provides the 50th, 99th 
+    * and 99.9th percentiles of the recorded values, in addition to count, average and max values.
+    * 
+    * @param name the name of the new statistics source.
+    * @param suffix the suffix to be used for the values, for instance <code>" ms"</code>, or <code>null</code>.
+    * 
+    * @since 2.2.1
+    */
+   public HistogramStatisticsSource createHistogramStatisticsSource(final String name, final String suffix)
+   {
+      final HistogramStatisticsSource source = new HistogramStatisticsSource(true);
+      if( suffix != null ) source.setSuffix(suffix);
+      
+      this.compositeStatisticsSupport.addStatisticsSource(name, source);
+      
+      return source;
+   }
+   
    /**
     * Removes a {@link StatisticsSource} object from the root StatisticsSource.
     */
@@ -183,13 +203,14 @@ public class StatisticsManager extends SubComponent
          for(int i=0; (i<path.length) && (parentSource != null); i++)
          {
             found = parentSource.getStatisticsSource(path[i]);
-            parentSource = (StatisticsSource)found;
             
             if( i == (path.length-1) ) // Last element
             {
-               if( parentSource != null ) return parentSource; 
+               if( found != null ) return found; 
                else return parentSource.getStatisticsEntry(path[i]);
             }
+            
+            parentSource = (StatisticsSource)found;
          }
       }
       
@@ -15,9 +15,17 @@
  */
 package com.teletalk.jserver.statistics.messaging;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
 import com.teletalk.jserver.statistics.AverageMaxStatisticsSource;
+import com.teletalk.jserver.statistics.HistogramStatisticsSource;
 import com.teletalk.jserver.statistics.StatisticsEntry;
+import com.teletalk.jserver.statistics.StatisticsEntrySupport;
 import com.teletalk.jserver.statistics.StatisticsSource;
+import com.teletalk.jserver.tcp.messaging.Destination;
 import com.teletalk.jserver.tcp.messaging.MessageHeader;
 import com.teletalk.jserver.tcp.messaging.MessagingEndPoint;
 import com.teletalk.jserver.tcp.messaging.rpc.MessagingRpcInterface;
@@ -25,9 +33,19 @@ import com.teletalk.jserver.tcp.messaging.rpc.RemoteProcedureCall;
 
 /**
  * Statistics source for messaging statistics, i.e sent data size , request-response time and received data size. This object 
- * contains three {@link com.teletalk.jserver.statistics.AverageMaxStatisticsSource} objects at the top level, one for each of the before mentioned 
- * statistics types. These AverageMaxStatisticsSource objects may in turn contain nested AverageMaxStatisticsSource objects for 
- * destination name and message type. 
+ * contains three {@link com.teletalk.jserver.statistics.HistogramStatisticsSource} objects at the top level, one for each of the before mentioned 
+ * statistics types. These HistogramStatisticsSource objects may in turn contain nested HistogramStatisticsSource objects for 
+ * destination name and message type.<br>
+ * <br>
+ * The update methods of this class are called for every message sent and received by a MessagingManager, and are therefore 
+ * designed to be cheap: nested statistics sources are looked up in copy on write maps, using the destination object and 
+ * precomputed message type keys, which means that no lock is held on the statistics sources, and that message type names are 
+ * only built the first time a message type is encountered.<br>
+ * <br>
+ * In addition to this, a fourth statistics source contains the current flow control credits (see 
+ * {@link Destination#getFlowControlCredits()}) of each destination that limits the number of messages sent to it, and a fifth 
+ * HistogramStatisticsSource contains the time it took to restore the full number of endpoints to a destination, after an 
+ * endpoint was lost (reconnect time).
  * 
  * @author Tobias Lfstrand
  * 
@@ -46,6 +64,12 @@ public class MessagingStatisticsSource implements StatisticsSource
    /** The name of the received data size statistics sounce*/
    public static final String RECEIVED_SOURCE_NAME = "Received (data)";
    
+   /** The name of the flow control credits statistics source. @since 2.2.1 */
+   public static final String FLOW_CONTROL_SOURCE_NAME = "Flow control (credits)";
+   
+   /** The name of the reconnect time statistics source. @since 2.2.1 */
+   public static final String RECONNECT_SOURCE_NAME = "Reconnect (time)";
+   
    
    /** The name of the average size statistics entry. */
    public static final String AVERAGE_SIZE_ENTRY_NAME = "avg size";
@@ -60,26 +84,56 @@ public class MessagingStatisticsSource implements StatisticsSource
    public static final String MAX_TIME_ENTRY_NAME = "max time";
    
    
-   private static final String[] SourceNames = new String[]{SENT_SOURCE_NAME, SEND_RECEIVE_SOURCE_NAME, RECEIVED_SOURCE_NAME};
+   private static final String[] SourceNames = new String[]{SENT_SOURCE_NAME, SEND_RECEIVE_SOURCE_NAME, RECEIVED_SOURCE_NAME, FLOW_CONTROL_SOURCE_NAME, RECONNECT_SOURCE_NAME};
+   
+   /** Message type kinds, used to select the map of nested message type statistics. Response kinds are request kinds + 1. */
+   private static final int MESSAGE_KIND = 0;
+   private static final int RPC_KIND = 2;
+   private static final int CUSTOM_RPC_KIND = 4;
+   private static final int ADMIN_KIND = 6;
+   private static final int KIND_COUNT = 8;
+   
+   /** Precomputed names of the most common plain message types (request and response). */
+   private static final String[][] MessageTypeNames = new String[2][256];
    
+   /** The maximum number of destination objects cached in a top level statistics source before the cache is cleared. */
+   private static final int MAX_CACHED_DESTINATIONS = 1024;
+   
+   static
+   {
+      for(int i=0; i<MessageTypeNames[0].length; i++)
+      {
+         MessageTypeNames[0][i] = "Msg type " + i;
+         MessageTypeNames[1][i] = "Response Msg type " + i;
+      }
+   }
    
-   private final AverageMaxStatisticsSource sentStatistics;
    
-   private final AverageMaxStatisticsSource requestResponseStatistics;
+   private final TopLevelStatistics sentStatistics;
    
-   private final AverageMaxStatisticsSource receivedStatistics;
+   private final TopLevelStatistics requestResponseStatistics;
+   
+   private final TopLevelStatistics receivedStatistics;
+   
+   /** @since 2.2.1 */
+   private final StatisticsEntrySupport flowControlStatistics;
+   
+   /** @since 2.2.1 */
+   private final TopLevelStatistics reconnectStatistics;
+   
+   /** Copy on write map of the Destination objects (by identity) for which there is a flow control statistics entry. Not serialized. */
+   private transient volatile IdentityHashMap flowControlDestinations = null;
    
    /**
     * Creates a new MessagingStatisticsSource.
     */
    public MessagingStatisticsSource()
    {
-      this.sentStatistics = new AverageMaxStatisticsSource(true, AVERAGE_SIZE_ENTRY_NAME, MAX_SIZE_ENTRY_NAME);
-      this.sentStatistics.setSuffix(" bytes");
-      this.requestResponseStatistics = new AverageMaxStatisticsSource(true, AVERAGE_TIME_ENTRY_NAME, MAX_TIME_ENTRY_NAME);
-      this.requestResponseStatistics.setSuffix(" ms");
-      this.receivedStatistics = new AverageMaxStatisticsSource(true, AVERAGE_SIZE_ENTRY_NAME, MAX_SIZE_ENTRY_NAME);
-      this.receivedStatistics.setSuffix(" bytes");
+      this.sentStatistics = new TopLevelStatistics(AVERAGE_SIZE_ENTRY_NAME, MAX_SIZE_ENTRY_NAME, " bytes");
+      this.requestResponseStatistics = new TopLevelStatistics(AVERAGE_TIME_ENTRY_NAME, MAX_TIME_ENTRY_NAME, " ms");
+      this.receivedStatistics = new TopLevelStatistics(AVERAGE_SIZE_ENTRY_NAME, MAX_SIZE_ENTRY_NAME, " bytes");
+      this.flowControlStatistics = new StatisticsEntrySupport();
+      this.reconnectStatistics = new TopLevelStatistics(AVERAGE_TIME_ENTRY_NAME, MAX_TIME_ENTRY_NAME, " ms");
    }
    
    
@@ -99,9 +153,11 @@ public class MessagingStatisticsSource implements StatisticsSource
     */
    public StatisticsSource getStatisticsSource(String name)
    {
-      if(  SENT_SOURCE_NAME.equals(name) ) return sentStatistics;
-      else if(  SEND_RECEIVE_SOURCE_NAME.equals(name) ) return requestResponseStatistics;
-      else if(  RECEIVED_SOURCE_NAME.equals(name) ) return receivedStatistics;
+      if(  SENT_SOURCE_NAME.equals(name) ) return sentStatistics.source;
+      else if(  SEND_RECEIVE_SOURCE_NAME.equals(name) ) return requestResponseStatistics.source;
+      else if(  RECEIVED_SOURCE_NAME.equals(name) ) return receivedStatistics.source;
+      else if(  FLOW_CONTROL_SOURCE_NAME.equals(name) ) return flowControlStatistics;
+      else if(  RECONNECT_SOURCE_NAME.equals(name) ) return reconnectStatistics.source;
       else return null;
    }
    
@@ -129,9 +185,10 @@ public class MessagingStatisticsSource implements StatisticsSource
     */
    public void reset()
    {
-      this.sentStatistics.reset();
-      this.requestResponseStatistics.reset();
-      this.receivedStatistics.reset();
+      this.sentStatistics.source.reset();
+      this.requestResponseStatistics.source.reset();
+      this.receivedStatistics.source.reset();
+      this.reconnectStatistics.source.reset();
    }
    
    
@@ -143,7 +200,7 @@ public class MessagingStatisticsSource implements StatisticsSource
     */   
    public void updateSentStatistics(final MessagingEndPoint endPoint, final MessageHeader header)
    {
-      this.updateStatistics(this.sentStatistics, endPoint, header, header.getBodyLength());
+      this.updateStatistics(this.sentStatistics, endPoint.getDestination(), header, header.getBodyLength());
    }
    
    /**
@@ -151,7 +208,7 @@ public class MessagingStatisticsSource implements StatisticsSource
     */   
    public void updateRequestResponseStatistics(final MessagingEndPoint endPoint, final MessageHeader header, final long time)
    {
-      this.updateStatistics(this.requestResponseStatistics, endPoint, header, time);
+      this.updateStatistics(this.requestResponseStatistics, endPoint.getDestination(), header, time);
    }
    
    /**
@@ -159,13 +216,85 @@ public class MessagingStatisticsSource implements StatisticsSource
     */   
    public void updateReceivedStatistics(final MessagingEndPoint endPoint, final MessageHeader header)
    {
-      this.updateStatistics(this.receivedStatistics, endPoint, header, header.getBodyLength());
+      this.updateStatistics(this.receivedStatistics, endPoint.getDestination(), header, header.getBodyLength());
+   }
+   
+   /**
+    * Update the sent data size statistics for a message sent to the specified destination.
+    * 
+    * @since 2.2.1
+    */   
+   public void updateSentStatistics(final Destination destination, final MessageHeader header)
+   {
+      this.updateStatistics(this.sentStatistics, destination, header, header.getBodyLength());
+   }
+   
+   /**
+    * Update the request-response time statistics for a message sent to the specified destination.
+    * 
+    * @since 2.2.1
+    */   
+   public void updateRequestResponseStatistics(final Destination destination, final MessageHeader header, final long time)
+   {
+      this.updateStatistics(this.requestResponseStatistics, destination, header, time);
+   }
+   
+   /**
+    * Update the received data size statistics for a message received from the specified destination.
+    * 
+    * @since 2.2.1
+    */   
+   public void updateReceivedStatistics(final Destination destination, final MessageHeader header)
+   {
+      this.updateStatistics(this.receivedStatistics, destination, header, header.getBodyLength());
+   }
+   
+   /**
+    * Makes sure that the flow control credits of the specified destination are included in the flow control statistics. The 
+    * credits are read from the destination when the statistics are read (or serialized).
+    * 
+    * @since 2.2.1
+    */   
+   public void updateFlowControlStatistics(final Destination destination)
+   {
+      IdentityHashMap cache = this.flowControlDestinations;
+      
+      if( (cache == null) || !cache.containsKey(destination) )
+      {
+         synchronized(this.flowControlStatistics)
+         {
+            cache = this.flowControlDestinations;
+            
+            if( (cache == null) || !cache.containsKey(destination) )
+            {
+               // Destination objects may be recreated, in which case the entry for the destination name is replaced
+               this.flowControlStatistics.addEntry(destination.getName(), new FlowControlCreditsEntry(destination));
+               
+               final IdentityHashMap newCache = ((cache != null) && (cache.size() < MAX_CACHED_DESTINATIONS)) ? 
+                     new IdentityHashMap(cache) : new IdentityHashMap();
+               newCache.put(destination, null);
+               this.flowControlDestinations = newCache;
+            }
+         }
+      }
+   }
+   
+   /**
+    * Update the reconnect time statistics, i.e. the time it took to restore the full number of endpoints to the specified 
+    * destination after an endpoint was lost.
+    * 
+    * @since 2.2.1
+    */   
+   public void updateReconnectStatistics(final Destination destination, final long time)
+   {
+      this.reconnectStatistics.source.update(time);
+      this.reconnectStatistics.getDestinationStatistics(destination).source.update(time);
    }
    
    /**
     * Internal method to update statistics.
     */   
-   private void updateStatistics(final AverageMaxStatisticsSource topStatisticsSource, final MessagingEndPoint endPoint, final MessageHeader header, final long value)
+   private void updateStatistics(final TopLevelStatistics topStatistics, final Destination destination, final MessageHeader header, final long value)
    {
       final int headerType = header.getHeaderType();
       
@@ -174,75 +303,281 @@ public class MessagingStatisticsSource implements StatisticsSource
             (headerType != MessageHeader.DISCONNECT_HEADER) &&
             (headerType != MessageHeader.MESSAGE_PROCESSING_ERROR_HEADER) )
       {
-         String destination = endPoint.getDestination().getName();
-         String messageType = "";
-         if( header.getResponseToId() != MessageHeader.UNDEFINED ) messageType = "Response ";
+         topStatistics.source.update(value);
+         
+         if( destination == null ) return;
+         
+         final DestinationStatistics destinationStatistics = topStatistics.getDestinationStatistics(destination);
+         destinationStatistics.source.update(value);
+         
+         final int response = (header.getResponseToId() != MessageHeader.UNDEFINED) ? 1 : 0;
+         final int kind;
+         final Object key;
          
          if( headerType == MessageHeader.SERVER_ADMINISTRATION_HEADER )
          {
-            messageType += "Admin - " + RemoteProcedureCall.getRPCMethodName(header);
+            kind = ADMIN_KIND + response;
+            key = RemoteProcedureCall.getRPCMethodName(header);
          }
          else if( headerType == MessageHeader.RPC_HEADER )
          {
-            if( header.getMessageType() == MessagingRpcInterface.RPC_MESSAGE_TYPE_ID ) messageType += "RPC - " + RemoteProcedureCall.getRPCMethodName(header);
-            else messageType += "RPC (" + header.getMessageType() + ") - " + RemoteProcedureCall.getRPCMethodName(header);
-         }
-         else messageType += "Msg type " + header.getMessageType();
-         
-         AverageMaxStatisticsSource destinationStatistics = null;
-         AverageMaxStatisticsSource messageTypeStatistics = null;
-         
-         synchronized(topStatisticsSource)
-         {
-            topStatisticsSource.update(value);
-            
-   	      destinationStatistics = (AverageMaxStatisticsSource)topStatisticsSource.getStatisticsSource(destination);
-   	      if( destinationStatistics == null )
-   	      {
-   	         destinationStatistics = new AverageMaxStatisticsSource(true, topStatisticsSource.getAverageEntryName(), topStatisticsSource.getMaxEntryName());
-               destinationStatistics.setSuffix(topStatisticsSource.getSuffix());
-   	         topStatisticsSource.addSource(destination, destinationStatistics);
-   	      }
+            if( header.getMessageType() == MessagingRpcInterface.RPC_MESSAGE_TYPE_ID )
+            {
+               kind = RPC_KIND + response;
+               key = RemoteProcedureCall.getRPCMethodName(header);
+            }
+            else
+            {
+               kind = CUSTOM_RPC_KIND + response;
+               key = new CustomRpcKey(header.getMessageType(), RemoteProcedureCall.getRPCMethodName(header));
+            }
          }
-   	     
-         synchronized(destinationStatistics)
+         else
          {
-            destinationStatistics.update(value);
-            
-   	      messageTypeStatistics = (AverageMaxStatisticsSource)destinationStatistics.getStatisticsSource(messageType);
-   	      if( messageTypeStatistics == null )
-   	      {
-   	         messageTypeStatistics = new AverageMaxStatisticsSource(false, topStatisticsSource.getAverageEntryName(), topStatisticsSource.getMaxEntryName());
-               messageTypeStatistics.setSuffix(topStatisticsSource.getSuffix());
-   	         destinationStatistics.addSource(messageType, messageTypeStatistics);
-   	      }
+            final int messageType = header.getMessageType();
+            kind = MESSAGE_KIND + response;
+            key = ((messageType >= 0) && (messageType < MessageTypeNames[response].length)) ? 
+                     MessageTypeNames[response][messageType] : (((response == 1) ? "Response Msg type " : "Msg type ") + messageType);
          }
          
-         messageTypeStatistics.update(value);
+         destinationStatistics.getMessageTypeStatistics(kind, key, topStatistics.source).update(value);
+      }
+   }
+   
+   /**
+    * Gets the name of a message type statistics source. For plain messages, the key is the name.
+    */
+   private static String getMessageTypeName(final int kind, final Object key)
+   {
+      final String prefix = ((kind % 2) == 1) ? "Response " : "";
+      
+      switch(kind - (kind % 2))
+      {
+         case RPC_KIND : return prefix + "RPC - " + key;
+         case CUSTOM_RPC_KIND : return prefix + "RPC " + key;
+         case ADMIN_KIND : return prefix + "Admin - " + key;
+         default : return String.valueOf(key);
       }
    }
 
    /**
-    * Gets the {@link AverageMaxStatisticsSource} object representing the top level sent data size statistics.
+    * Gets the {@link AverageMaxStatisticsSource} object (a {@link HistogramStatisticsSource}) representing the top level sent data size statistics.
     */
    public AverageMaxStatisticsSource getSentStatistics()
    {
-      return this.sentStatistics;
+      return this.sentStatistics.source;
    }
    
    /**
-    * Gets the {@link AverageMaxStatisticsSource} object representing the top level request-response time statistics.
+    * Gets the {@link AverageMaxStatisticsSource} object (a {@link HistogramStatisticsSource}) representing the top level request-response time statistics.
     */
    public AverageMaxStatisticsSource getRequestResponseStatistics()
    {
-      return this.requestResponseStatistics;
+      return this.requestResponseStatistics.source;
    }
    
    /**
-    * Gets the {@link AverageMaxStatisticsSource} object representing the top level received data size statistics.
+    * Gets the {@link AverageMaxStatisticsSource} object (a {@link HistogramStatisticsSource}) representing the top level received data size statistics.
     */
    public AverageMaxStatisticsSource getReceivedStatistics()
    {
-      return this.receivedStatistics;
+      return this.receivedStatistics.source;
+   }
+   
+   /**
+    * Gets the {@link AverageMaxStatisticsSource} object (a {@link HistogramStatisticsSource}) representing the top level reconnect time statistics.
+    * 
+    * @since 2.2.1
+    */
+   public AverageMaxStatisticsSource getReconnectStatistics()
+   {
+      return this.reconnectStatistics.source;
+   }
+   
+   
+   /**
+    * Top level statistics (sent, request-response or received), with a cache of destination statistics.
+    */
+   private static final class TopLevelStatistics implements java.io.Serializable
+   {
+      static final long serialVersionUID = 5118795718830561743L;
+      
+      final HistogramStatisticsSource source;
+      
+      /** Copy on write map of Destination objects (by identity) and DestinationStatistics objects. Not serialized. */
+      private transient volatile IdentityHashMap destinationCache = null;
+      
+      /** Map of destination names and DestinationStatistics objects. Guarded by the lock of this object. Not serialized. */
+      private transient HashMap destinationsByName = null;
+      
+      TopLevelStatistics(final String averageEntryName, final String maxEntryName, final String suffix)
+      {
+         this.source = new HistogramStatisticsSource(true, averageEntryName, maxEntryName);
+         this.source.setSuffix(suffix);
+      }
+      
+      DestinationStatistics getDestinationStatistics(final Destination destination)
+      {
+         IdentityHashMap cache = this.destinationCache;
+         DestinationStatistics destinationStatistics = (cache != null) ? (DestinationStatistics)cache.get(destination) : null;
+         
+         if( destinationStatistics == null )
+         {
+            synchronized(this)
+            {
+               cache = this.destinationCache;
+               destinationStatistics = (cache != null) ? (DestinationStatistics)cache.get(destination) : null;
+               
+               if( destinationStatistics == null )
+               {
+                  if( this.destinationsByName == null ) this.destinationsByName = new HashMap();
+                  
+                  // Destination objects may be recreated (for instance when a remote system reconnects), so look up by name as well 
+                  final String name = destination.getName();
+                  destinationStatistics = (DestinationStatistics)this.destinationsByName.get(name);
+                  
+                  if( destinationStatistics == null )
+                  {
+                     destinationStatistics = new DestinationStatistics(this.source);
+                     this.destinationsByName.put(name, destinationStatistics);
+                     this.source.addSource(name, destinationStatistics.source);
+                  }
+                  
+                  final IdentityHashMap newDestinationCache = ((cache != null) && (cache.size() < MAX_CACHED_DESTINATIONS)) ? 
+                        new IdentityHashMap(cache) : new IdentityHashMap();
+                  newDestinationCache.put(destination, destinationStatistics);
+                  this.destinationCache = newDestinationCache;
+               }
+            }
+         }
+         
+         return destinationStatistics;
+      }
+   }
+   
+   
+   /**
+    * Destination statistics, with a cache of message type statistics.
+    */
+   private static final class DestinationStatistics implements java.io.Serializable
+   {
+      static final long serialVersionUID = -3921587290513316409L;
+      
+      final HistogramStatisticsSource source;
+      
+      /** Copy on write maps (one for each message kind) of message type keys and HistogramStatisticsSource objects. */
+      private volatile HashMap[] messageTypeCaches = new HashMap[KIND_COUNT];
+      
+      DestinationStatistics(final HistogramStatisticsSource topSource)
+      {
+         this.source = new HistogramStatisticsSource(true, topSource.getAverageEntryName(), topSource.getMaxEntryName());
+         this.source.setSuffix(topSource.getSuffix());
+      }
+      
+      HistogramStatisticsSource getMessageTypeStatistics(final int kind, final Object key, final HistogramStatisticsSource topSource)
+      {
+         HashMap messageTypeCache = this.messageTypeCaches[kind];
+         HistogramStatisticsSource messageTypeStatistics = (messageTypeCache != null) ? (HistogramStatisticsSource)messageTypeCache.get(key) : null;
+         
+         if( messageTypeStatistics == null )
+         {
+            synchronized(this)
+            {
+               messageTypeCache = this.messageTypeCaches[kind];
+               messageTypeStatistics = (messageTypeCache != null) ? (HistogramStatisticsSource)messageTypeCache.get(key) : null;
+               
+               if( messageTypeStatistics == null )
+               {
+                  final String name = getMessageTypeName(kind, key);
+                  
+                  // Use a single stripe for message type statistics, to bound the memory used per message type
+                  messageTypeStatistics = new HistogramStatisticsSource(false, topSource.getAverageEntryName(), topSource.getMaxEntryName(), 1);
+                  messageTypeStatistics.setSuffix(topSource.getSuffix());
+                  this.source.addSource(name, messageTypeStatistics);
+                  
+                  final HashMap[] newMessageTypeCaches = (HashMap[])this.messageTypeCaches.clone();
+                  newMessageTypeCaches[kind] = (messageTypeCache != null) ? new HashMap(messageTypeCache) : new HashMap();
+                  newMessageTypeCaches[kind].put(key, messageTypeStatistics);
+                  this.messageTypeCaches = newMessageTypeCaches;
+               }
+            }
+         }
+         
+         return messageTypeStatistics;
+      }
+   }
+   
+   
+   /**
+    * Message type statistics key for custom RPC messages, consisting of the message type and the method name. The name of the 
+    * statistics source is only built (using {@link #toString()}) when the statistics source is created.
+    */
+   private static final class CustomRpcKey implements java.io.Serializable
+   {
+      static final long serialVersionUID = 2183675203364281093L;
+      
+      private final int messageType;
+      
+      private final String methodName;
+      
+      CustomRpcKey(final int messageType, final String methodName)
+      {
+         this.messageType = messageType;
+         this.methodName = methodName;
+      }
+      
+      public int hashCode()
+      {
+         return (31 * this.messageType) + ((this.methodName != null) ? this.methodName.hashCode() : 0);
+      }
+      
+      public boolean equals(final Object obj)
+      {
+         if( !(obj instanceof CustomRpcKey) ) return false;
+         
+         final CustomRpcKey other = (CustomRpcKey)obj;
+         return (this.messageType == other.messageType) && 
+                  ((this.methodName != null) ? this.methodName.equals(other.methodName) : (other.methodName == null));
+      }
+      
+      public String toString()
+      {
+         return "(" + this.messageType + ") - " + this.methodName;
+      }
+   }
+   
+   
+   /**
+    * Statistics entry for the current flow control credits of a destination. 
+    */
+   private static final class FlowControlCreditsEntry implements StatisticsEntry
+   {
+      static final long serialVersionUID = 4526734009262178131L;
+      
+      private final transient Destination destination;
+      
+      private long credits = -1;
+      
+      FlowControlCreditsEntry(final Destination destination)
+      {
+         this.destination = destination;
+      }
+      
+      public String getValue()
+      {
+         if( this.destination != null ) this.credits = this.destination.getFlowControlCredits();
+         return String.valueOf(this.credits);
+      }
+      
+      public void reset()
+      {
+      }
+      
+      private void writeObject(final ObjectOutputStream out) throws IOException
+      {
+         // Capture the current credits, since the destination isn't serialized
+         this.getValue();
+         out.defaultWriteObject();
+      }
    }
 }
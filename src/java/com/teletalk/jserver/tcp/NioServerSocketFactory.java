@@ -0,0 +1,213 @@
+/*
+ * Copyright 2007 the project originators.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.tcp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * {@link ServerSocketFactory} implementation for creation of server sockets that accept connections as {@link NioSocket} objects, 
+ * i.e. sockets served by the non-blocking, selector based transport {@link NioTransport}. This factory may be plugged into a 
+ * {@link TcpServer} or {@link TcpCommunicationManager} by setting the property <code>serverSocketFactoryClass</code> to 
+ * <code>com.teletalk.jserver.tcp.NioServerSocketFactory</code>.
+ *
+ * @see NioSocketFactory
+ *
+ * @author Tobias Lfstrand
+ *
+ * @since 2.2.1
+ */
+public class NioServerSocketFactory implements ServerSocketFactory
+{
+   private final NioTransport transport;
+
+   /**
+    * Creates a new NioServerSocketFactory that uses the default (shared) {@link NioTransport}.
+    *
+    * @throws IOException if the default transport could not be created.
+    */
+   public NioServerSocketFactory() throws IOException
+   {
+      this(NioTransport.getDefaultTransport());
+   }
+
+   /**
+    * Creates a new NioServerSocketFactory that uses the specified {@link NioTransport}.
+    */
+   public NioServerSocketFactory(final NioTransport transport)
+   {
+      this.transport = transport;
+   }
+
+   /**
+    * Gets the transport used by sockets accepted by server sockets created by this factory.
+    */
+   public NioTransport getTransport()
+   {
+      return transport;
+   }
+
+   /**
+    * Creates a server socket bound to the specified port and local address and with the specified backlog
+    * (maximum connection request queue length).
+    *
+    * @param port the port number to listen for connections on.
+    * @param backlog the maximum queue length for connections requests on the created ServerSocket.
+    * @param localAddress the local address to bind to.
+    *
+    * @throws IOException if a network error occurs.
+    */
+   public ServerSocket createServerSocket(final int port, final int backlog, final InetAddress localAddress) throws IOException
+   {
+      final ServerSocketChannel channel = ServerSocketChannel.open();
+
+      try
+      {
+         channel.socket().bind(new InetSocketAddress(localAddress, port), backlog);
+         return new NioServerSocket(channel, this.transport);
+      }
+      catch(IOException e)
+      {
+         try{
+         channel.close();
+         }catch(IOException ioe){}
+         throw e;
+      }
+   }
+
+
+   /**
+    * Server socket implementation backed by a ServerSocketChannel, that returns accepted connections as {@link NioSocket} objects. 
+    * Accepting is performed in blocking mode by the thread calling {@link #accept()} (normally the thread of a {@link TcpServer}).
+    */
+   public static class NioServerSocket extends ServerSocket
+   {
+      private final ServerSocketChannel channel;
+
+      private final NioTransport transport;
+
+      /**
+       * Creates a new NioServerSocket.
+       */
+      public NioServerSocket(final ServerSocketChannel channel, final NioTransport transport) throws IOException
+      {
+         this.channel = channel;
+         this.transport = transport;
+      }
+
+      /**
+       * Accepts a connection and returns it as a {@link NioSocket} served by the transport.
+       */
+      public Socket accept() throws IOException
+      {
+         final SocketChannel socketChannel = this.channel.accept();
+
+         try
+         {
+            return new NioSocket(socketChannel, this.transport);
+         }
+         catch(IOException e)
+         {
+            try{
+            socketChannel.close();
+            }catch(IOException ioe){}
+            throw e;
+         }
+      }
+
+      public ServerSocketChannel getChannel()
+      {
+         return channel;
+      }
+
+      public void bind(final SocketAddress endpoint, final int backlog) throws IOException
+      {
+         this.channel.socket().bind(endpoint, backlog);
+      }
+
+      public void close() throws IOException
+      {
+         this.channel.close();
+      }
+
+      public boolean isClosed()
+      {
+         return !this.channel.isOpen();
+      }
+
+      public boolean isBound()
+      {
+         return this.channel.socket().isBound();
+      }
+
+      public InetAddress getInetAddress()
+      {
+         return this.channel.socket().getInetAddress();
+      }
+
+      public int getLocalPort()
+      {
+         return this.channel.socket().getLocalPort();
+      }
+
+      public SocketAddress getLocalSocketAddress()
+      {
+         return this.channel.socket().getLocalSocketAddress();
+      }
+
+      public void setSoTimeout(final int timeout) throws SocketException
+      {
+         this.channel.socket().setSoTimeout(timeout);
+      }
+
+      public int getSoTimeout() throws IOException
+      {
+         return this.channel.socket().getSoTimeout();
+      }
+
+      public void setReceiveBufferSize(final int size) throws SocketException
+      {
+         this.channel.socket().setReceiveBufferSize(size);
+      }
+
+      public int getReceiveBufferSize() throws SocketException
+      {
+         return this.channel.socket().getReceiveBufferSize();
+      }
+
+      public void setReuseAddress(final boolean on) throws SocketException
+      {
+         this.channel.socket().setReuseAddress(on);
+      }
+
+      public boolean getReuseAddress() throws SocketException
+      {
+         return this.channel.socket().getReuseAddress();
+      }
+
+      public String toString()
+      {
+         return "NioServerSocket[" + this.channel.socket().toString() + "]";
+      }
+   }
+}
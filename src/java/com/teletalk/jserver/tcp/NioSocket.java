@@ -0,0 +1,887 @@
+/*
+ * Copyright 2007 the project originators.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.tcp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Socket implementation backed by a non-blocking {@link SocketChannel} that is served by a {@link NioTransport}. Reading from the
+ * socket is performed by an I/O thread of the transport, which fills a receive buffer in this socket. The input stream returned by
+ * {@link #getInputStream()} reads from that buffer, blocking while it is empty. When the receive buffer is full, the I/O thread
+ * stops reading from the channel until the buffer has been drained, which makes TCP flow control work as for a regular socket.<br>
+ * <br>
+ * Writes through the stream returned by {@link #getOutputStream()} are performed directly on the channel by the writing thread. If
+ * the socket send buffer is full, the writing thread waits for the I/O thread to signal that the channel is writable again.<br>
+ * <br>
+ * The read timeout set through {@link #setSoTimeout(int)} is honoured by the input stream of this socket.<br>
+ * <br>
+ * Alternatively, a {@link NioSocketReceiver} may be set on the socket through {@link #setReceiver(NioSocketReceiver)}, after which the 
+ * I/O thread delivers all read data directly to the receiver, and the input stream may no longer be used. This makes it possible to 
+ * serve the socket without a dedicated reading thread.<br>
+ * <br>
+ * NioSocket objects are normally created through {@link NioSocketFactory} or {@link NioServerSocketFactory}.
+ *
+ * @author Tobias Lfstrand
+ *
+ * @since 2.2.1
+ */
+public class NioSocket extends Socket
+{
+   private static final Log log = LogFactory.getLog(NioSocket.class);
+   
+   /** The default size of the receive buffer of a NioSocket (64 KB). */
+   public static final int DEFAULT_RECEIVE_BUFFER_SIZE = 64 * 1024;
+
+
+   private final SocketChannel channel;
+
+   private final NioTransport transport;
+
+   private SelectionKey selectionKey = null;
+
+   private NioTransport.IoThread ioThread = null;
+
+
+   private final Object readLock = new Object();
+
+   /** Receive buffer, filled by the I/O thread (in write mode between operations). */
+   private final ByteBuffer receiveBuffer;
+
+   private boolean readSuspended = false;
+
+   private boolean endOfStream = false;
+
+   private IOException ioError = null;
+
+   private volatile int soTimeout = 0;
+
+   /** The receiver of read data, if set (guarded by the read lock). */
+   private NioSocketReceiver receiver = null;
+
+   /** Flag indicating if the receiver has been started, i.e. if the I/O thread delivers data to it (only accessed by the I/O thread). */
+   private boolean receiverStarted = false;
+
+   /** Flag indicating if the receiver has been ended (only accessed by the I/O thread). */
+   private boolean receiverEnded = false;
+
+
+   private final Object writeLock = new Object();
+
+   private boolean waitingForWrite = false;
+
+
+   private volatile boolean closed = false;
+
+   private InputStream inputStream = null;
+
+   private OutputStream outputStream = null;
+
+
+   /**
+    * Creates a new NioSocket for the specified channel, using the default receive buffer size. If the channel is connected,
+    * the socket will be registered with the specified transport immediately, otherwise registration will be performed when
+    * the socket is connected.
+    *
+    * @param channel the socket channel.
+    * @param transport the transport that is to serve this socket.
+    *
+    * @throws IOException if an error occurs while registering the socket.
+    */
+   public NioSocket(final SocketChannel channel, final NioTransport transport) throws IOException
+   {
+      this(channel, transport, DEFAULT_RECEIVE_BUFFER_SIZE);
+   }
+
+   /**
+    * Creates a new NioSocket for the specified channel. If the channel is connected, the socket will be registered with the
+    * specified transport immediately, otherwise registration will be performed when the socket is connected.
+    *
+    * @param channel the socket channel.
+    * @param transport the transport that is to serve this socket.
+    * @param receiveBufferSize the size of the receive buffer of this socket.
+    *
+    * @throws IOException if an error occurs while registering the socket.
+    */
+   public NioSocket(final SocketChannel channel, final NioTransport transport, final int receiveBufferSize) throws IOException
+   {
+      this.channel = channel;
+      this.transport = transport;
+      this.receiveBuffer = ByteBuffer.allocate(receiveBufferSize);
+
+      if( channel.isConnected() ) this.registerWithTransport();
+   }
+
+   /**
+    * Configures the channel as non-blocking and registers it with the transport.
+    */
+   private void registerWithTransport() throws IOException
+   {
+      this.channel.configureBlocking(false);
+      this.transport.register(this);
+   }
+
+   /**
+    * Gets the NioTransport serving this socket.
+    */
+   public NioTransport getTransport()
+   {
+      return transport;
+   }
+
+   /**
+    * Sets the receiver to which the I/O thread serving this socket is to deliver all data read from the socket, starting with any data 
+    * that has been read but not yet consumed through the input stream. After this method has been called, the input stream of this 
+    * socket may no longer be used. The receiver is called by the I/O thread (see {@link NioSocketReceiver}), and 
+    * {@link NioSocketReceiver#receiveEnded(Exception)} will be called when the end of the stream has been reached, when this 
+    * socket is closed or when an error occurs.
+    *
+    * @param receiver the receiver.
+    *
+    * @throws IllegalStateException if a receiver has already been set.
+    *
+    * @since 2.2.1
+    */
+   public void setReceiver(final NioSocketReceiver receiver)
+   {
+      synchronized(this.readLock)
+      {
+         if( this.receiver != null ) throw new IllegalStateException("A receiver has already been set!");
+
+         this.receiver = receiver;
+         this.readSuspended = false;
+         this.readLock.notifyAll();
+      }
+
+      // Let the I/O thread start the receiver (if this socket hasn't been registered yet, that is done upon registration)
+      this.transport.interestOpsChanged(this);
+   }
+
+
+   /* ### TRANSPORT CALLBACKS ### */
+
+
+   /**
+    * Sets the selection key of this socket. Called by the I/O thread when this socket has been registered.
+    */
+   void setSelectionKey(final SelectionKey selectionKey, final NioTransport.IoThread ioThread)
+   {
+      this.selectionKey = selectionKey;
+      this.ioThread = ioThread;
+
+      if( this.closed ) selectionKey.cancel();
+   }
+
+   SelectionKey getSelectionKey()
+   {
+      return selectionKey;
+   }
+
+   NioTransport.IoThread getIoThread()
+   {
+      return ioThread;
+   }
+
+   /**
+    * Gets the operations that this socket currently is interested in.
+    */
+   int getInterestOps()
+   {
+      int ops = 0;
+
+      synchronized(this.readLock)
+      {
+         if( !this.readSuspended && !this.endOfStream && (this.ioError == null) && !this.receiverEnded ) ops |= SelectionKey.OP_READ;
+      }
+      synchronized(this.writeLock)
+      {
+         if( this.waitingForWrite ) ops |= SelectionKey.OP_WRITE;
+      }
+
+      return ops;
+   }
+
+   /**
+    * Called by the I/O thread when the channel is readable.
+    */
+   void channelReadable()
+   {
+      if( this.receiverStarted )
+      {
+         this.receiveData();
+         return;
+      }
+
+      boolean interestOpsChanged = false;
+
+      synchronized(this.readLock)
+      {
+         try
+         {
+            final int read = this.channel.read(this.receiveBuffer);
+
+            if( read < 0 )
+            {
+               this.endOfStream = true;
+               interestOpsChanged = true;
+            }
+            else if( !this.receiveBuffer.hasRemaining() )
+            {
+               // Buffer full - stop reading until the buffer has been drained
+               this.readSuspended = true;
+               interestOpsChanged = true;
+            }
+         }
+         catch(IOException ioe)
+         {
+            this.ioError = ioe;
+            interestOpsChanged = true;
+         }
+
+         this.readLock.notifyAll();
+      }
+
+      if( interestOpsChanged ) this.updateInterestOps();
+   }
+
+   /**
+    * Called by the I/O thread when the channel is writable.
+    */
+   void channelWritable()
+   {
+      synchronized(this.writeLock)
+      {
+         this.waitingForWrite = false;
+         this.writeLock.notifyAll();
+      }
+      this.updateInterestOps();
+   }
+
+   /**
+    * Called when an I/O error has occurred in the transport.
+    */
+   void ioErrorOccurred(final IOException ioe)
+   {
+      synchronized(this.readLock)
+      {
+         if( this.ioError == null ) this.ioError = ioe;
+         this.readLock.notifyAll();
+      }
+      synchronized(this.writeLock)
+      {
+         this.writeLock.notifyAll();
+      }
+   }
+
+   /**
+    * Starts or ends the receiver of this socket, if one has been set. When the receiver is started, any data in the receive buffer is
+    * delivered to it. Called by the I/O thread when this socket has been registered, when the interest set of this socket may have
+    * changed (which is the case when a receiver has been set or when this socket has been closed) and when an error has occurred.
+    */
+   void processReceiver()
+   {
+      final NioSocketReceiver receiver;
+      final Exception endCause;
+
+      synchronized(this.readLock)
+      {
+         receiver = this.receiver;
+         if( (receiver == null) || this.receiverEnded ) return;
+
+         if( this.closed ) endCause = new SocketException("Socket closed");
+         else if( this.ioError != null ) endCause = this.ioError;
+         else if( this.endOfStream ) endCause = new EOFException("End of stream");
+         else endCause = null;
+
+         this.readSuspended = false;
+      }
+
+      if( !this.receiverStarted )
+      {
+         this.receiverStarted = true;
+         if( this.receiveBuffer.position() > 0 ) this.deliverReceivedData();
+      }
+
+      if( endCause != null ) this.endReceive(endCause);
+      else this.updateInterestOps();
+   }
+
+   /**
+    * Reads data from the channel and delivers it to the receiver. Called by the I/O thread.
+    */
+   private void receiveData()
+   {
+      if( this.receiverEnded ) return;
+
+      int read;
+
+      try
+      {
+         read = this.channel.read(this.receiveBuffer);
+      }
+      catch(IOException ioe)
+      {
+         synchronized(this.readLock)
+         {
+            this.ioError = ioe;
+         }
+         this.endReceive(ioe);
+         return;
+      }
+
+      if( this.receiveBuffer.position() > 0 ) this.deliverReceivedData();
+
+      if( read < 0 )
+      {
+         synchronized(this.readLock)
+         {
+            this.endOfStream = true;
+         }
+         this.endReceive(new EOFException("End of stream"));
+      }
+      else if( this.closed ) this.endReceive(new SocketException("Socket closed")); // Closed by the receiver
+   }
+
+   /**
+    * Delivers the data in the receive buffer to the receiver. Called by the I/O thread.
+    */
+   private void deliverReceivedData()
+   {
+      this.receiveBuffer.flip();
+
+      try
+      {
+         this.receiver.dataReceived(this.receiveBuffer);
+      }
+      catch(IOException ioe)
+      {
+         this.endReceive(ioe);
+      }
+      catch(RuntimeException re)
+      {
+         this.endReceive(re);
+      }
+      finally
+      {
+         this.receiveBuffer.clear();
+      }
+   }
+
+   /**
+    * Ends the receiver, if it hasn't already been ended. Called by the I/O thread.
+    */
+   private void endReceive(final Exception cause)
+   {
+      if( this.receiverEnded ) return;
+      this.receiverEnded = true;
+
+      this.updateInterestOps();
+
+      try
+      {
+         this.receiver.receiveEnded(cause);
+      }
+      catch(RuntimeException re)
+      {
+         log.error("Error while ending receive of " + this + "!", re);
+      }
+   }
+
+   /**
+    * Updates the interest set of the selection key of this socket.
+    */
+   private void updateInterestOps()
+   {
+      if( Thread.currentThread() == this.ioThread )
+      {
+         final SelectionKey key = this.selectionKey;
+         if( (key != null) && key.isValid() ) key.interestOps(this.getInterestOps());
+      }
+      else this.transport.interestOpsChanged(this);
+   }
+
+
+   /* ### STREAM OPERATIONS ### */
+
+
+   /**
+    * Reads data from the receive buffer, waiting at most soTimeout milliseconds for data to become available.
+    */
+   int read(final byte[] b, final int off, final int len) throws IOException
+   {
+      if( len == 0 ) return 0;
+
+      boolean resume = false;
+      int count;
+
+      synchronized(this.readLock)
+      {
+         final int timeout = this.soTimeout;
+         final long beginWait = System.currentTimeMillis();
+         long waitTime;
+
+         while( (this.receiveBuffer.position() == 0) && !this.endOfStream && (this.ioError == null) )
+         {
+            if( this.closed ) throw new SocketException("Socket closed");
+            if( this.receiver != null ) throw new IOException("Data is delivered to a receiver!");
+
+            try
+            {
+               if( timeout > 0 )
+               {
+                  waitTime = timeout - (System.currentTimeMillis() - beginWait);
+                  if( waitTime <= 0 ) throw new SocketTimeoutException("Read timed out");
+                  this.readLock.wait(waitTime);
+               }
+               else this.readLock.wait();
+            }
+            catch(InterruptedException ie)
+            {
+               throw new java.io.InterruptedIOException("Interrupted while waiting for data");
+            }
+         }
+
+         if( this.receiver != null ) throw new IOException("Data is delivered to a receiver!");
+
+         if( this.receiveBuffer.position() == 0 )
+         {
+            if( this.ioError != null ) throw this.ioError;
+            else return -1; // End of stream
+         }
+
+         this.receiveBuffer.flip();
+         count = Math.min(len, this.receiveBuffer.remaining());
+         this.receiveBuffer.get(b, off, count);
+         this.receiveBuffer.compact();
+
+         if( this.readSuspended )
+         {
+            this.readSuspended = false;
+            resume = true;
+         }
+      }
+
+      if( resume ) this.updateInterestOps();
+
+      return count;
+   }
+
+   /**
+    * Gets the number of bytes that can be read without blocking.
+    */
+   int available() throws IOException
+   {
+      synchronized(this.readLock)
+      {
+         if( this.closed ) throw new SocketException("Socket closed");
+         return (this.receiver == null) ? this.receiveBuffer.position() : 0; // The receive buffer is owned by the I/O thread when a receiver is set
+      }
+   }
+
+   /**
+    * Writes data to the channel, waiting for the I/O thread to signal that the channel is writable if the socket send buffer is full.
+    */
+   void write(final byte[] b, final int off, final int len) throws IOException
+   {
+      final ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+
+      synchronized(this.writeLock)
+      {
+         while( buffer.hasRemaining() )
+         {
+            if( this.closed ) throw new SocketException("Socket closed");
+
+            if( this.channel.write(buffer) == 0 ) this.waitForWritable();
+         }
+      }
+   }
+
+   /**
+    * Transfers data from a file directly to the channel, using {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}.
+    * Like {@link #write(byte[], int, int)}, this method waits for the I/O thread to signal that the channel is writable if the socket send
+    * buffer is full. Any data written to the output stream of this socket must be flushed before this method is called.
+    *
+    * @param fileChannel the channel of the file to transfer data from.
+    * @param position the position in the file of the first byte to transfer.
+    * @param count the number of bytes to transfer.
+    *
+    * @throws IOException if an i/o error occurs, or if the end of the file is reached before all data has been transferred.
+    *
+    * @since 2.2.1
+    */
+   public void transferFrom(final FileChannel fileChannel, final long position, final long count) throws IOException
+   {
+      synchronized(this.writeLock)
+      {
+         long transferred = 0;
+         long written;
+
+         while( transferred < count )
+         {
+            if( this.closed ) throw new SocketException("Socket closed");
+
+            written = fileChannel.transferTo(position + transferred, count - transferred, this.channel);
+
+            if( written > 0 ) transferred += written;
+            else if( (position + transferred) >= fileChannel.size() ) throw new EOFException("Unexpected end of file after " + transferred + " of " + count + " bytes!");
+            else this.waitForWritable();
+         }
+      }
+   }
+
+   /**
+    * Waits for the I/O thread to signal that the channel is writable. This method must be called while holding the write lock.
+    */
+   private void waitForWritable() throws IOException
+   {
+      // Send buffer full - wait for the channel to become writable
+      this.waitingForWrite = true;
+      this.transport.interestOpsChanged(this);
+
+      try
+      {
+         // Wait with timeout, to make sure that the write will be retried even if a wake up should be missed
+         while( this.waitingForWrite && !this.closed ) this.writeLock.wait(1000);
+      }
+      catch(InterruptedException ie)
+      {
+         this.waitingForWrite = false;
+         throw new java.io.InterruptedIOException("Interrupted while waiting for socket to become writable");
+      }
+   }
+
+
+   /* ### SOCKET METHODS ### */
+
+
+   /**
+    * Gets the channel associated with this socket.
+    */
+   public SocketChannel getChannel()
+   {
+      return channel;
+   }
+
+   /**
+    * Gets the input stream of this socket.
+    */
+   public synchronized InputStream getInputStream() throws IOException
+   {
+      if( this.closed ) throw new SocketException("Socket is closed");
+      if( !this.isConnected() ) throw new SocketException("Socket is not connected");
+
+      if( this.inputStream == null ) this.inputStream = new NioSocketInputStream();
+      return this.inputStream;
+   }
+
+   /**
+    * Gets the output stream of this socket.
+    */
+   public synchronized OutputStream getOutputStream() throws IOException
+   {
+      if( this.closed ) throw new SocketException("Socket is closed");
+      if( !this.isConnected() ) throw new SocketException("Socket is not connected");
+
+      if( this.outputStream == null ) this.outputStream = new NioSocketOutputStream();
+      return this.outputStream;
+   }
+
+   /**
+    * Connects this socket to the specified address.
+    */
+   public void connect(final SocketAddress endpoint) throws IOException
+   {
+      this.connect(endpoint, 0);
+   }
+
+   /**
+    * Connects this socket to the specified address, using the specified timeout. The connect is performed in blocking mode, after
+    * which the channel is switched to non-blocking mode and registered with the transport.
+    */
+   public void connect(final SocketAddress endpoint, final int timeout) throws IOException
+   {
+      this.channel.socket().connect(endpoint, timeout);
+      this.registerWithTransport();
+   }
+
+   /**
+    * Binds this socket to a local address.
+    */
+   public void bind(final SocketAddress bindpoint) throws IOException
+   {
+      this.channel.socket().bind(bindpoint);
+   }
+
+   /**
+    * Closes this socket.
+    */
+   public void close() throws IOException
+   {
+      if( this.closed ) return;
+      this.closed = true;
+
+      try
+      {
+         final SelectionKey key = this.selectionKey;
+         if( key != null ) key.cancel();
+
+         this.channel.close();
+      }
+      finally
+      {
+         final boolean receiverSet;
+         synchronized(this.readLock)
+         {
+            receiverSet = (this.receiver != null);
+            this.readLock.notifyAll();
+         }
+         // Let the I/O thread end the receive
+         if( receiverSet ) this.transport.interestOpsChanged(this);
+         synchronized(this.writeLock)
+         {
+            this.writeLock.notifyAll();
+         }
+      }
+   }
+
+   public boolean isClosed()
+   {
+      return this.closed;
+   }
+
+   public boolean isConnected()
+   {
+      return this.channel.isConnected();
+   }
+
+   public boolean isBound()
+   {
+      return this.channel.socket().isBound();
+   }
+
+   public InetAddress getInetAddress()
+   {
+      return this.channel.socket().getInetAddress();
+   }
+
+   public int getPort()
+   {
+      return this.channel.socket().getPort();
+   }
+
+   public InetAddress getLocalAddress()
+   {
+      return this.channel.socket().getLocalAddress();
+   }
+
+   public int getLocalPort()
+   {
+      return this.channel.socket().getLocalPort();
+   }
+
+   public SocketAddress getRemoteSocketAddress()
+   {
+      return this.channel.socket().getRemoteSocketAddress();
+   }
+
+   public SocketAddress getLocalSocketAddress()
+   {
+      return this.channel.socket().getLocalSocketAddress();
+   }
+
+   public void setSoTimeout(final int timeout) throws SocketException
+   {
+      if( timeout < 0 ) throw new IllegalArgumentException("timeout can't be negative");
+      this.soTimeout = timeout;
+   }
+
+   public int getSoTimeout() throws SocketException
+   {
+      return this.soTimeout;
+   }
+
+   public void setTcpNoDelay(final boolean on) throws SocketException
+   {
+      this.channel.socket().setTcpNoDelay(on);
+   }
+
+   public boolean getTcpNoDelay() throws SocketException
+   {
+      return this.channel.socket().getTcpNoDelay();
+   }
+
+   public void setSoLinger(final boolean on, final int linger) throws SocketException
+   {
+      this.channel.socket().setSoLinger(on, linger);
+   }
+
+   public int getSoLinger() throws SocketException
+   {
+      return this.channel.socket().getSoLinger();
+   }
+
+   public void setKeepAlive(final boolean on) throws SocketException
+   {
+      this.channel.socket().setKeepAlive(on);
+   }
+
+   public boolean getKeepAlive() throws SocketException
+   {
+      return this.channel.socket().getKeepAlive();
+   }
+
+   public void setReceiveBufferSize(final int size) throws SocketException
+   {
+      this.channel.socket().setReceiveBufferSize(size);
+   }
+
+   public int getReceiveBufferSize() throws SocketException
+   {
+      return this.channel.socket().getReceiveBufferSize();
+   }
+
+   public void setSendBufferSize(final int size) throws SocketException
+   {
+      this.channel.socket().setSendBufferSize(size);
+   }
+
+   public int getSendBufferSize() throws SocketException
+   {
+      return this.channel.socket().getSendBufferSize();
+   }
+
+   public void setReuseAddress(final boolean on) throws SocketException
+   {
+      this.channel.socket().setReuseAddress(on);
+   }
+
+   public boolean getReuseAddress() throws SocketException
+   {
+      return this.channel.socket().getReuseAddress();
+   }
+
+   public void setTrafficClass(final int tc) throws SocketException
+   {
+      this.channel.socket().setTrafficClass(tc);
+   }
+
+   public int getTrafficClass() throws SocketException
+   {
+      return this.channel.socket().getTrafficClass();
+   }
+
+   public void shutdownInput() throws IOException
+   {
+      this.channel.socket().shutdownInput();
+   }
+
+   public void shutdownOutput() throws IOException
+   {
+      this.channel.socket().shutdownOutput();
+   }
+
+   public boolean isInputShutdown()
+   {
+      return this.channel.socket().isInputShutdown();
+   }
+
+   public boolean isOutputShutdown()
+   {
+      return this.channel.socket().isOutputShutdown();
+   }
+
+   public String toString()
+   {
+      return "NioSocket[" + this.channel.socket().toString() + "]";
+   }
+
+
+   /* ### STREAM CLASSES ### */
+
+
+   /**
+    * Input stream reading from the receive buffer of the socket.
+    */
+   private final class NioSocketInputStream extends InputStream
+   {
+      private final byte[] singleByte = new byte[1];
+
+      public int read() throws IOException
+      {
+         synchronized(this.singleByte)
+         {
+            final int result = NioSocket.this.read(this.singleByte, 0, 1);
+            return (result <= 0) ? -1 : (this.singleByte[0] & 0xFF);
+         }
+      }
+
+      public int read(final byte[] b, final int off, final int len) throws IOException
+      {
+         return NioSocket.this.read(b, off, len);
+      }
+
+      public int available() throws IOException
+      {
+         return NioSocket.this.available();
+      }
+
+      public void close() throws IOException
+      {
+         NioSocket.this.close();
+      }
+   }
+
+   /**
+    * Output stream writing directly to the channel of the socket.
+    */
+   private final class NioSocketOutputStream extends OutputStream
+   {
+      private final byte[] singleByte = new byte[1];
+
+      public void write(final int b) throws IOException
+      {
+         synchronized(this.singleByte)
+         {
+            this.singleByte[0] = (byte)b;
+            NioSocket.this.write(this.singleByte, 0, 1);
+         }
+      }
+
+      public void write(final byte[] b, final int off, final int len) throws IOException
+      {
+         NioSocket.this.write(b, off, len);
+      }
+
+      public void close() throws IOException
+      {
+         NioSocket.this.close();
+      }
+   }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2007 the project originators.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.tcp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+
+/**
+ * {@link SocketFactory} implementation for creation of {@link NioSocket} objects, i.e. sockets served by the non-blocking, selector
+ * based transport {@link NioTransport}. This factory may be plugged into a {@link TcpCommunicationManager} by setting the property
+ * <code>socketFactoryClass</code> to <code>com.teletalk.jserver.tcp.NioSocketFactory</code>, or by calling
+ * {@link TcpCommunicationManager#setSocketFactory(SocketFactory)}.<br>
+ * <br>
+ * Since the transport operates beneath the socket streams, any protocol implemented on top of {@link TcpConnection} is unaffected by 
+ * the use of this factory. The messaging protocol additionally takes advantage of the transport by letting its I/O threads receive 
+ * the messages of all endpoints (see {@link NioTransport}).
+ *
+ * @see NioServerSocketFactory
+ *
+ * @author Tobias Lfstrand
+ *
+ * @since 2.2.1
+ */
+public class NioSocketFactory implements SocketFactory
+{
+   private final NioTransport transport;
+
+   /**
+    * Creates a new NioSocketFactory that uses the default (shared) {@link NioTransport}.
+    *
+    * @throws IOException if the default transport could not be created.
+    */
+   public NioSocketFactory() throws IOException
+   {
+      this(NioTransport.getDefaultTransport());
+   }
+
+   /**
+    * Creates a new NioSocketFactory that uses the specified {@link NioTransport}.
+    */
+   public NioSocketFactory(final NioTransport transport)
+   {
+      this.transport = transport;
+   }
+
+   /**
+    * Gets the transport used by sockets created by this factory.
+    */
+   public NioTransport getTransport()
+   {
+      return transport;
+   }
+
+   /**
+    * Creates an unconnected socket.
+    *
+    * @throws IOException if a connection cannot be established.
+    */
+   public Socket createSocket() throws IOException
+   {
+      return new NioSocket(SocketChannel.open(), this.transport);
+   }
+
+   /**
+    * Creates a socket and connects it to the specified host and port
+    *
+    * @param host the server host.
+    * @param port the server port.
+    *
+    * @throws IOException if a connection cannot be established.
+    */
+   public Socket createSocket(final InetAddress host, final int port) throws IOException
+   {
+      return this.createSocket(host, port, null, -1, 0);
+   }
+
+   /**
+    * Creates a socket and connects it to the specified host and port, using the specified timeout value.
+    * A timeout of zero is interpreted as an infinite timeout. The connection will then block until established or an error occurs.
+    *
+    * @param host the server host.
+    * @param port the server port.
+    * @param connectTimeOut the timeout value to be used in milliseconds.
+    *
+    * @throws IOException if a connection cannot be established.
+    */
+   public Socket createSocket(final InetAddress host, final int port, final int connectTimeOut) throws IOException
+   {
+      return this.createSocket(host, port, null, -1, connectTimeOut);
+   }
+
+   /**
+    * Creates a socket and connects it to the specified host and port, blocking until a connection has been established or an error occurs.
+    * The created socket will be bound to the specified local address and port.
+    *
+    * @param host the server host.
+    * @param port the server port.
+    * @param localAddress the local address to bind to.
+    * @param localPort the local port to bind to.
+    *
+    * @throws IOException if a connection cannot be established.
+    */
+   public Socket createSocket(final InetAddress host, final int port, final InetAddress localAddress, final int localPort) throws IOException
+   {
+      return this.createSocket(host, port, localAddress, localPort, 0);
+   }
+
+   /**
+    * Creates a socket and connects it to the specified host and port, using the specified timeout value.
+    * The created socket will be bound to the specified local address and port.
+    * A timeout of zero is interpreted as an infinite timeout. The connection will then block until established or an error occurs.
+    *
+    * @param host the server host.
+    * @param port the server port.
+    * @param localAddress the local address to bind to.
+    * @param localPort the local port to bind to.
+    * @param connectTimeOut the timeout value to be used in milliseconds.
+    *
+    * @throws IOException if a connection cannot be established.
+    */
+   public Socket createSocket(final InetAddress host, final int port, final InetAddress localAddress, final int localPort, final int connectTimeOut) throws IOException
+   {
+      final SocketChannel channel = SocketChannel.open();
+
+      try
+      {
+         if( (localAddress != null) || (localPort >= 0) )
+         {
+            channel.socket().bind(new InetSocketAddress(localAddress, Math.max(0, localPort)));
+         }
+
+         final NioSocket socket = new NioSocket(channel, this.transport);
+         socket.connect(new InetSocketAddress(host, port), Math.max(0, connectTimeOut));
+         return socket;
+      }
+      catch(IOException e)
+      {
+         try{
+         channel.close();
+         }catch(IOException ioe){}
+         throw e;
+      }
+   }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.tcp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Interface for classes that receive the data read from a {@link NioSocket} directly in the I/O thread of the {@link NioTransport}, 
+ * instead of reading it through the input stream of the socket (see {@link NioSocket#setReceiver(NioSocketReceiver)}). This makes it 
+ * possible to implement protocols that don't need a thread per socket.<br>
+ * <br>
+ * The methods of this interface are called by an I/O thread, which serves many sockets. Implementations should therefore avoid 
+ * blocking, since no other sockets served by the same I/O thread can be read while a receiver is blocked.
+ * 
+ * @author Tobias Lfstrand
+ * 
+ * @since 2.2.1
+ */
+public interface NioSocketReceiver
+{
+   /**
+    * Called when data has been read from the socket. All the remaining data in the specified buffer must be consumed by this method, 
+    * since the buffer will be reused when this method returns.
+    * 
+    * @param data buffer containing the read data.
+    * 
+    * @throws IOException if the data couldn't be processed, in which case receiving is ended.
+    */
+   public void dataReceived(ByteBuffer data) throws IOException;
+   
+   /**
+    * Called when receiving has ended, i.e. when the end of the stream has been reached, when the socket has been closed or when an 
+    * error has occurred. This method is called only once, after which the receiver will not be called again.
+    * 
+    * @param cause the cause of the end of the receive.
+    */
+   public void receiveEnded(Exception cause);
+}
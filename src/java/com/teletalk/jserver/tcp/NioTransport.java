@@ -0,0 +1,339 @@
+/*
+ * Copyright 2007 the project originators.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.tcp;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Non-blocking, selector based transport for {@link NioSocket} objects. A NioTransport consists of a small and fixed number of
+ * I/O threads, each owning a {@link Selector}, that perform all socket reads for the sockets registered with the transport. Sockets
+ * are assigned to the I/O threads in a round robin fashion when they are registered.<br>
+ * <br>
+ * Data read by the I/O threads is buffered in the sockets, from which it may be read through the (blocking) input streams returned
+ * by {@link NioSocket#getInputStream()}. Writes are performed directly on the (non-blocking) channel by the writing thread, which will
+ * only involve the I/O thread when the socket send buffer is full. This means that stream based protocols implemented on top of
+ * {@link TcpConnection} are unaffected by the use of this transport.<br>
+ * <br>
+ * Protocols that are able to process data as it arrives may instead set a {@link NioSocketReceiver} on a socket (see
+ * {@link NioSocket#setReceiver(NioSocketReceiver)}), in which case the I/O threads deliver all read data directly to the receiver. The
+ * messaging protocol ({@link com.teletalk.jserver.tcp.messaging.MessagingEndPoint}) does this once a link has been established, which
+ * means that all messaging endpoints using this transport are served by the I/O threads, instead of by one thread per endpoint.<br>
+ * <br>
+ * A NioTransport is normally used through the socket factories {@link NioSocketFactory} and {@link NioServerSocketFactory}, which
+ * may be plugged into a {@link TcpCommunicationManager} through the properties <code>socketFactoryClass</code> and
+ * <code>serverSocketFactoryClass</code>.
+ *
+ * @author Tobias Lfstrand
+ *
+ * @since 2.2.1
+ */
+public class NioTransport
+{
+   private static final Log log = LogFactory.getLog(NioTransport.class);
+
+   /** The default number of I/O threads used by the default transport - the number of available processors, but at least 2. */
+   public static final int DEFAULT_IO_THREAD_COUNT = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+   private static NioTransport defaultTransport = null;
+
+
+   private final String name;
+
+   private final IoThread[] ioThreads;
+
+   private int nextIoThread = 0;
+
+   private volatile boolean running = true;
+
+
+   /**
+    * Gets the default, shared, NioTransport, creating it if it doesn't exist. The default transport uses
+    * {@link #DEFAULT_IO_THREAD_COUNT} I/O threads.
+    *
+    * @throws IOException if the transport could not be created.
+    */
+   public static synchronized NioTransport getDefaultTransport() throws IOException
+   {
+      if( (defaultTransport == null) || !defaultTransport.isRunning() )
+      {
+         defaultTransport = new NioTransport("NioTransport", DEFAULT_IO_THREAD_COUNT);
+      }
+      return defaultTransport;
+   }
+
+   /**
+    * Creates a new NioTransport.
+    *
+    * @param name the name of the transport, used for naming the I/O threads.
+    * @param ioThreadCount the number of I/O threads to use.
+    *
+    * @throws IOException if a selector could not be opened.
+    */
+   public NioTransport(final String name, final int ioThreadCount) throws IOException
+   {
+      this.name = name;
+      this.ioThreads = new IoThread[Math.max(1, ioThreadCount)];
+
+      for(int i=0; i<this.ioThreads.length; i++)
+      {
+         this.ioThreads[i] = new IoThread(name + "-IoThread-" + i);
+      }
+      for(int i=0; i<this.ioThreads.length; i++)
+      {
+         this.ioThreads[i].start();
+      }
+   }
+
+   /**
+    * Gets the name of this transport.
+    */
+   public String getName()
+   {
+      return name;
+   }
+
+   /**
+    * Gets the number of I/O threads used by this transport.
+    */
+   public int getIoThreadCount()
+   {
+      return this.ioThreads.length;
+   }
+
+   /**
+    * Checks if this transport is running.
+    */
+   public boolean isRunning()
+   {
+      return running;
+   }
+
+   /**
+    * Shuts down this transport. All sockets registered with this transport are closed.
+    */
+   public void shutDown()
+   {
+      this.running = false;
+
+      for(int i=0; i<this.ioThreads.length; i++)
+      {
+         this.ioThreads[i].shutDown();
+      }
+   }
+
+   /**
+    * Registers a connected socket with one of the I/O threads of this transport.
+    */
+   void register(final NioSocket socket) throws IOException
+   {
+      if( !this.running ) throw new IOException("NioTransport " + name + " is shut down!");
+
+      IoThread ioThread;
+      synchronized(this)
+      {
+         ioThread = this.ioThreads[this.nextIoThread];
+         this.nextIoThread = (this.nextIoThread + 1) % this.ioThreads.length;
+      }
+
+      ioThread.register(socket);
+   }
+
+   /**
+    * Called by a socket when the set of operations it is interested in has changed.
+    */
+   void interestOpsChanged(final NioSocket socket)
+   {
+      final IoThread ioThread = socket.getIoThread();
+      if( ioThread != null ) ioThread.interestOpsChanged(socket);
+   }
+
+
+   /**
+    * I/O thread class.
+    */
+   static final class IoThread extends Thread
+   {
+      private final Selector selector;
+
+      private final ArrayList pendingRegistrations = new ArrayList();
+
+      private final ArrayList pendingInterestOpsChanges = new ArrayList();
+
+      private volatile boolean canRun = true;
+
+      IoThread(final String name) throws IOException
+      {
+         super(name);
+         super.setDaemon(true);
+         this.selector = Selector.open();
+      }
+
+      void register(final NioSocket socket)
+      {
+         synchronized(this.pendingRegistrations)
+         {
+            this.pendingRegistrations.add(socket);
+         }
+         this.selector.wakeup();
+      }
+
+      void interestOpsChanged(final NioSocket socket)
+      {
+         synchronized(this.pendingRegistrations)
+         {
+            this.pendingInterestOpsChanges.add(socket);
+         }
+         this.selector.wakeup();
+      }
+
+      void shutDown()
+      {
+         this.canRun = false;
+         this.selector.wakeup();
+      }
+
+      /**
+       * Processes pending registrations and interest ops changes. These are performed in the I/O thread to avoid blocking on the
+       * selector key set while a select operation is in progress.
+       */
+      private void processPendingChanges()
+      {
+         Object[] registrations = null;
+         Object[] interestOpsChanges = null;
+
+         synchronized(this.pendingRegistrations)
+         {
+            if( !this.pendingRegistrations.isEmpty() )
+            {
+               registrations = this.pendingRegistrations.toArray();
+               this.pendingRegistrations.clear();
+            }
+            if( !this.pendingInterestOpsChanges.isEmpty() )
+            {
+               interestOpsChanges = this.pendingInterestOpsChanges.toArray();
+               this.pendingInterestOpsChanges.clear();
+            }
+         }
+
+         NioSocket socket;
+
+         if( registrations != null )
+         {
+            for(int i=0; i<registrations.length; i++)
+            {
+               socket = (NioSocket)registrations[i];
+               try
+               {
+                  socket.setSelectionKey(socket.getChannel().register(this.selector, socket.getInterestOps(), socket), this);
+               }
+               catch(ClosedChannelException cce)
+               {
+                  socket.ioErrorOccurred(cce);
+               }
+               socket.processReceiver();
+            }
+         }
+
+         if( interestOpsChanges != null )
+         {
+            SelectionKey key;
+            for(int i=0; i<interestOpsChanges.length; i++)
+            {
+               socket = (NioSocket)interestOpsChanges[i];
+               key = socket.getSelectionKey();
+               try
+               {
+                  if( (key != null) && key.isValid() ) key.interestOps(socket.getInterestOps());
+               }
+               catch(CancelledKeyException cke){}
+               socket.processReceiver();
+            }
+         }
+      }
+
+      /**
+       * The I/O thread method.
+       */
+      public void run()
+      {
+         Iterator it;
+         SelectionKey key;
+         NioSocket socket;
+
+         try
+         {
+            while(this.canRun)
+            {
+               this.processPendingChanges();
+
+               this.selector.select();
+
+               it = this.selector.selectedKeys().iterator();
+               while(it.hasNext())
+               {
+                  key = (SelectionKey)it.next();
+                  it.remove();
+
+                  socket = (NioSocket)key.attachment();
+
+                  try
+                  {
+                     if( key.isValid() && key.isReadable() ) socket.channelReadable();
+                     if( key.isValid() && key.isWritable() ) socket.channelWritable();
+                  }
+                  catch(CancelledKeyException cke)
+                  {
+                     socket.ioErrorOccurred(new IOException("Socket closed"));
+                     socket.processReceiver();
+                  }
+               }
+            }
+         }
+         catch(Throwable t)
+         {
+            if( this.canRun ) log.error("Fatal error in I/O thread " + getName() + "!", t);
+         }
+         finally
+         {
+            // Close all sockets handled by this thread
+            try
+            {
+               it = this.selector.keys().iterator();
+               while(it.hasNext())
+               {
+                  key = (SelectionKey)it.next();
+                  socket = (NioSocket)key.attachment();
+                  try{
+                  socket.close();
+                  }catch(IOException e){}
+                  socket.processReceiver(); // End the receive of the socket, if it has a receiver
+               }
+               this.selector.close();
+            }
+            catch(Exception e){}
+         }
+      }
+   }
+}
@@ -735,7 +735,7 @@ public abstract class TcpEndPoint extends TcpConnection implements EndPoint, Vec
 									
 			if(endPointActive && connected) //If connected is false, then this TcpEndPoint is currently connecting
 			{
-				final boolean threadAlive = (TcpEndPoint.this).getThread().isAlive();
+				final boolean threadAlive = isDetachedFromThread() || (TcpEndPoint.this).getThread().isAlive(); // A detached endpoint doesn't need its thread
 				boolean inputStreamOk;
 			
 				try
@@ -828,7 +828,7 @@ public abstract class TcpEndPoint extends TcpConnection implements EndPoint, Vec
 
 			if( debug && !endPointActive ) logDebug("Check failed - endpoint no longer active.");			
 
-			final boolean threadAlive = (TcpEndPoint.this).getThread().isAlive();
+			final boolean threadAlive = isDetachedFromThread() || (TcpEndPoint.this).getThread().isAlive(); // A detached endpoint doesn't need its thread
 			boolean inputStreamOk;
 			
 			try
@@ -126,6 +126,30 @@ public class TcpEndPointGroup implements VectorPropertyItem
       return false;
    }
    
+   /**
+    * Gets the number of endpoints in this group that have an established link.
+    * 
+    * @return the number of endpoints that have an established link.
+    * 
+    * @since 2.2.1
+    */
+   public int getLinkEstablishedCount()
+   {
+      TcpEndPoint endPoint;
+      int count = 0;
+      
+      synchronized(this)
+      {
+         for(int i=0; i<endPointSlots.size(); i++)
+         {
+            endPoint = (TcpEndPoint)endPointSlots.get(i);
+            if( (endPoint != null) && (endPoint.isLinkEstablished()) ) count++;
+         }
+      }
+      
+      return count;
+   }
+   
    /**
     * Blocks the calling thread until this endpoint group has at least one endpoint that has an established link, or until an error occurs.
     * 
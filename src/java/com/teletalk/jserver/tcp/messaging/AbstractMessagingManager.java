@@ -22,6 +22,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.Deflater;
 
 import com.teletalk.jserver.JServer;
 import com.teletalk.jserver.SubSystem;
@@ -33,8 +34,10 @@ import com.teletalk.jserver.tcp.TcpCommunicationManager;
 import com.teletalk.jserver.tcp.TcpEndPointGroup;
 import com.teletalk.jserver.tcp.TcpEndPointIdentifier;
 import com.teletalk.jserver.tcp.TcpEndPointIdentifierProperty;
+import com.teletalk.jserver.tcp.messaging.codec.BodyCodec;
 import com.teletalk.jserver.tcp.messaging.rpc.MessagingRpcInterface;
 import com.teletalk.jserver.util.EqualsUtils;
+import com.teletalk.jserver.util.SpillOverByteArrayOutputStream;
 
 /**
  * Abstract base class for messaging implementations. The main purpose of this class is simply to reduce the size and 
@@ -55,8 +58,10 @@ public abstract class AbstractMessagingManager extends TcpCommunicationManager i
     * Version 4 - Major upgrade of protocol, using {@link com.teletalk.jserver.util.Streamable} headers.<br>
     * Version 5 - New header type: {@link MessageHeader#MESSAGE_PROCESSING_ERROR_HEADER}.<br>
     * Version 6 - New field in ConnectResponse - secondaryResponseSuccess.<br>
+    * Version 7 - New header field - body encoding (see {@link MessageHeader#getBodyEncoding()}).<br>
+    * Version 8 - New header field - priority (see {@link MessageHeader#getPriority()}).<br>
     */
-   public static final byte MESSAGING_PROTOCOL_VERSION = 0x06;
+   public static final byte MESSAGING_PROTOCOL_VERSION = 0x08;
    
    /** Meta data key for server name. The value of this field is <code>ServerName</code>. */
    public static final String SERVER_NAME_METADATA_KEY = "ServerName";
@@ -221,6 +226,97 @@ public abstract class AbstractMessagingManager extends TcpCommunicationManager i
     */
    public abstract long getMessageReadTimeout();
    
+   /**
+    * Gets the maximum length of message bodies that are to be buffered in their entirety by the receiving endpoint, thus releasing the 
+    * endpoint for receiving other messages while a message is being handled. A value of 0 means that message body buffering is disabled. 
+    * The default implementation returns 0.
+    * 
+    * @since 2.2.1
+    */
+   public long getBodyBufferingLimit()
+   {
+      return 0;
+   }
+   
+   /**
+    * Gets the size limit above which buffered message bodies are spilled over to disk instead of being kept in memory. The default 
+    * implementation returns {@link SpillOverByteArrayOutputStream#DEFAULT_SPILL_OVER_LIMIT}.
+    * 
+    * @since 2.2.1
+    */
+   public int getBodyBufferingSpillOverLimit()
+   {
+      return SpillOverByteArrayOutputStream.DEFAULT_SPILL_OVER_LIMIT;
+   }
+   
+   /**
+    * Gets the write coalescing window, i.e. the maximum time in milliseconds that the flushing of asynchronous messages written 
+    * to an endpoint may be deferred. A value of 0 means that write coalescing is disabled. The default implementation returns 0.
+    * 
+    * @since 2.2.1
+    */
+   public long getWriteCoalescingWindow()
+   {
+      return 0;
+   }
+   
+   /**
+    * Gets the write coalescing size, i.e. the number of buffered bytes in an endpoint that will trigger a flush when write 
+    * coalescing is enabled. The default implementation returns 16384.
+    * 
+    * @since 2.2.1
+    */
+   public int getWriteCoalescingSize()
+   {
+      return 16 * 1024;
+   }
+   
+   /**
+    * Schedules a flush of the coalesced writes of the specified endpoint, to be performed when the specified delay has elapsed. 
+    * The default implementation flushes the endpoint immediately.
+    * 
+    * @since 2.2.1
+    */
+   protected void scheduleEndPointFlush(MessagingEndPoint endPoint, long delay)
+   {
+      endPoint.flushCoalescedWrites();
+   }
+   
+   /**
+    * Gets the {@link BodyCodec} with the specified id, among the codecs supported by this messaging system. 
+    * 
+    * @return the codec with the specified id, or <code>null</code> if no such codec is supported. The default implementation 
+    * always returns <code>null</code>.
+    * 
+    * @since 2.2.1
+    */
+   public BodyCodec getBodyCodec(byte bodyCodecId)
+   {
+      return null;
+   }
+   
+   /**
+    * Gets the minimum length of message bodies that are to be compressed when sent to a destination that supports compressed 
+    * message bodies. A negative value means that compression is disabled. The default implementation returns -1.
+    * 
+    * @since 2.2.1
+    */
+   public long getBodyCompressionThreshold()
+   {
+      return -1;
+   }
+   
+   /**
+    * Gets the compression level (0-9) used when compressing message bodies. The default implementation returns 
+    * {@link Deflater#BEST_SPEED}.
+    * 
+    * @since 2.2.1
+    */
+   public int getBodyCompressionLevel()
+   {
+      return Deflater.BEST_SPEED;
+   }
+   
    /**
     * Gets the default timeout used when waiting on a reponse for a specific message to be received (used in the
     * <code>dispatchXXXMessage</code> methods).
@@ -245,6 +341,18 @@ public abstract class AbstractMessagingManager extends TcpCommunicationManager i
     */
    public abstract int getConnectionsPerDestination();
    
+   /**
+    * Gets the total number of (client) connections that are to be created and maintained for each remote messaging system. 
+    * This implementation returns the value of {@link #getConnectionsPerDestination()}. Subclasses may override this method 
+    * to maintain additional (spare) connections.
+    * 
+    * @since 2.2.1
+    */
+   protected int getClientSideEndPointsPerDestination()
+   {
+      return this.getConnectionsPerDestination();
+   }
+   
    /**
     * Stores a meta data value associated with the specified key. Meta data will be shared will all associated messaging
     * systems, in which it can be accessed through the Destination object (through the method
@@ -680,6 +788,49 @@ public abstract class AbstractMessagingManager extends TcpCommunicationManager i
    protected abstract Message dispatchMessage(MessageHeader header, MessageWriter messageDispatchImpl, 
          MessageDispatcherProperties messageDispatcherProperties, boolean proxyMessage)
          throws MessageDispatchFailedException, ResponseTimeOutException;
+   
+   /**
+    * Dispatches a message without waiting for the response. This method returns as soon as the message has been dispatched 
+    * (or the dispatch has failed), and the response, or the error, is delivered through the returned {@link ResponseFuture}.<br>
+    * <br>
+    * The default implementation dispatches the message synchronously through 
+    * {@link #dispatchMessage(MessageHeader, MessageWriter, MessageDispatcherProperties, boolean)} (ignoring the asynch flag of 
+    * <code>messageDispatcherProperties</code>), which means that it returns a future that already is completed. Subclasses 
+    * should override this method to dispatch messages without blocking.
+    * 
+    * @param header the header of the message to be dispatched.
+    * @param messageDispatchImpl the implementation to be used for dispatching the message body.
+    * @param messageDispatcherProperties a {@link MessageDispatcherProperties} object containing properties for message dispatch.
+    * @param listener an optional listener to be notified when the response future is completed.
+    * 
+    * @return a response future, which will be completed either with a response message or an error.
+    * 
+    * @since 2.2.1
+    */
+   protected ResponseFuture dispatchMessageWithFuture(MessageHeader header, MessageWriter messageDispatchImpl, 
+         MessageDispatcherProperties messageDispatcherProperties, ResponseListener listener)
+   {
+      final ResponseFuture responseFuture = new ResponseFuture(listener);
+      
+      MessageDispatcherProperties synchronousProperties = messageDispatcherProperties;
+      if( messageDispatcherProperties.isAsynch() )
+      {
+         synchronousProperties = new MessageDispatcherProperties(messageDispatcherProperties);
+         synchronousProperties.setAsynch(false);
+      }
+      
+      responseFuture.setRequestHeader(header, System.currentTimeMillis());
+      try
+      {
+         responseFuture.complete(this.dispatchMessage(header, messageDispatchImpl, synchronousProperties, false));
+      }
+      catch(MessagingException me)
+      {
+         responseFuture.fail(me);
+      }
+      
+      return responseFuture;
+   }
       
    
    
@@ -2531,6 +2682,180 @@ public abstract class AbstractMessagingManager extends TcpCommunicationManager i
             bodyLength), this.getDestinationForMessageDispatch(header, destinationAddress), namedReceiver, null,
             this.getAsynchMessageDispatchTimeOut(), true);
    }
+   
+   
+   // ----------------------
+   // BROADCAST MESSAGES
+   // ----------------------
+   
+   /**
+    * Broadcasts an object message to all destinations that have the specified named receiver, and waits for the responses. 
+    * See {@link #broadcastMessage(MessageHeader, Object, Destination[], MessageDispatcherProperties)}.
+    * 
+    * @param header the header of the message to be dispatched. May be <code>null</code>.
+    * @param body the object body of the message. Must be serializable.
+    * @param namedReceiver the name of a message receiver in the remote destinations.
+    * 
+    * @return the aggregated result of the broadcast.
+    * 
+    * @since 2.2.1
+    */
+   public BroadcastResult broadcastMessage(final MessageHeader header, final Object body, final String namedReceiver)
+   {
+      return this.broadcastMessage(header, body, this.getDestinations(namedReceiver), new MessageDispatcherProperties(namedReceiver));
+   }
+   
+   /**
+    * Broadcasts an object message to the specified destinations, and waits for the responses. 
+    * See {@link #broadcastMessage(MessageHeader, Object, Destination[], MessageDispatcherProperties)}.
+    * 
+    * @param header the header of the message to be dispatched. May be <code>null</code>.
+    * @param body the object body of the message. Must be serializable.
+    * @param destinations the destinations to dispatch the message to.
+    * 
+    * @return the aggregated result of the broadcast.
+    * 
+    * @since 2.2.1
+    */
+   public BroadcastResult broadcastMessage(final MessageHeader header, final Object body, final Destination[] destinations)
+   {
+      return this.broadcastMessage(header, body, destinations, null);
+   }
+   
+   /**
+    * Broadcasts an object message to the specified destinations, and waits for the responses. The message is dispatched to all 
+    * destinations before any response is awaited, which means that the time this method blocks is bounded by the slowest 
+    * response (or the response timeout), rather than by the sum of the response times. The writes to the different destinations 
+    * are performed concurrently if possible (see {@link #executeBroadcastDispatch(Runnable)}), so that a destination that is slow 
+    * to accept the message doesn't delay the dispatch to the other destinations. The body is serialized only once for 
+    * each body encoding used by the destinations (see {@link SharedObjectMessageWriter}), instead of once for each destination.<br>
+    * <br>
+    * This method never throws an exception due to a failure to dispatch to a destination - any such errors are instead reported in 
+    * the returned {@link BroadcastResult}.
+    * 
+    * @param header the header of the message to be dispatched. A copy of this header is dispatched to each destination. May be <code>null</code>.
+    * @param body the object body of the message. Must be serializable.
+    * @param destinations the destinations to dispatch the message to.
+    * @param messageDispatcherPropertiesTemplate a template MessageDispatcherProperties object, used to specify for instance a named 
+    * receiver or a timeout. May be <code>null</code>.
+    * 
+    * @return the aggregated result of the broadcast.
+    * 
+    * @since 2.2.1
+    */
+   public BroadcastResult broadcastMessage(final MessageHeader header, final Object body, final Destination[] destinations,
+         final MessageDispatcherProperties messageDispatcherPropertiesTemplate)
+   {
+      final long startTime = System.currentTimeMillis();
+      final SharedObjectMessageWriter messageWriter = new SharedObjectMessageWriter(body);
+      final BroadcastDispatch[] dispatches = new BroadcastDispatch[destinations.length];
+      final Message[] responses = new Message[destinations.length];
+      final MessagingException[] errors = new MessagingException[destinations.length];
+      MessageDispatcherProperties messageDispatcherProperties;
+      
+      // Scatter (the first destination is always written to by the calling thread)...
+      for(int i=destinations.length-1; i>=0; i--)
+      {
+         messageDispatcherProperties = new MessageDispatcherProperties(messageDispatcherPropertiesTemplate);
+         messageDispatcherProperties.setDestination(destinations[i]);
+         
+         dispatches[i] = new BroadcastDispatch((header != null) ? new MessageHeader(header) : new MessageHeader(), messageWriter, 
+                                                messageDispatcherProperties);
+         
+         if( (i == 0) || !this.executeBroadcastDispatch(dispatches[i]) ) dispatches[i].run();
+      }
+      
+      // ...and gather
+      for(int i=0; i<dispatches.length; i++)
+      {
+         try
+         {
+            responses[i] = dispatches[i].getResponseFuture().getResponse();
+         }
+         catch(MessagingException me)
+         {
+            errors[i] = me;
+         }
+         catch(InterruptedException ie)
+         {
+            errors[i] = new MessageDispatchFailedException("Interrupted while waiting for a response to broadcast message!", ie);
+            Thread.currentThread().interrupt();
+         }
+      }
+      
+      return new BroadcastResult(destinations, responses, errors, System.currentTimeMillis() - startTime);
+   }
+   
+   /**
+    * Executes the specified task, which dispatches a broadcast message to one destination, in another thread than the calling thread, 
+    * if possible. This method is used by {@link #broadcastMessage(MessageHeader, Object, Destination[], MessageDispatcherProperties)} 
+    * to write a message to several destinations concurrently. The default implementation always returns <code>false</code>, which 
+    * means that the task is executed by the calling thread.
+    * 
+    * @param dispatchTask the task to execute.
+    * 
+    * @return <code>true</code> if the task will be executed by another thread, <code>false</code> if it must be executed by the calling thread.
+    * 
+    * @since 2.2.1
+    */
+   protected boolean executeBroadcastDispatch(final Runnable dispatchTask)
+   {
+      return false;
+   }
+   
+   /**
+    * Task for dispatching a broadcast message to one destination, through 
+    * {@link AbstractMessagingManager#dispatchMessageWithFuture(MessageHeader, MessageWriter, MessageDispatcherProperties, ResponseListener)}.
+    * 
+    * @since 2.2.1
+    */
+   private final class BroadcastDispatch implements Runnable
+   {
+      private final MessageHeader header;
+      private final MessageWriter messageWriter;
+      private final MessageDispatcherProperties messageDispatcherProperties;
+      
+      private ResponseFuture responseFuture = null;
+      
+      public BroadcastDispatch(final MessageHeader header, final MessageWriter messageWriter, final MessageDispatcherProperties messageDispatcherProperties)
+      {
+         this.header = header;
+         this.messageWriter = messageWriter;
+         this.messageDispatcherProperties = messageDispatcherProperties;
+      }
+      
+      public void run()
+      {
+         ResponseFuture future = null;
+         try
+         {
+            future = dispatchMessageWithFuture(this.header, this.messageWriter, this.messageDispatcherProperties, null);
+         }
+         finally
+         {
+            if( future == null ) // Unexpected error
+            {
+               future = new ResponseFuture();
+               future.fail(new MessageDispatchFailedException("Unexpected error while dispatching broadcast message!"));
+            }
+            
+            synchronized(this)
+            {
+               this.responseFuture = future;
+               this.notifyAll();
+            }
+         }
+      }
+      
+      /**
+       * Gets the response future of the dispatched message, waiting for the dispatch to complete if necessary.
+       */
+      public synchronized ResponseFuture getResponseFuture() throws InterruptedException
+      {
+         while( this.responseFuture == null ) this.wait();
+         return this.responseFuture;
+      }
+   }
 
       
    /* ### MESSAGE DISPATCH METHODS END ###  */
@@ -3075,7 +3400,7 @@ public abstract class AbstractMessagingManager extends TcpCommunicationManager i
             if (success)
             {
                // Create more connections
-               int maxConnections = getConnectionsPerDestination();
+               int maxConnections = getClientSideEndPointsPerDestination();
       
                if( this.isDebugMode() ) 
                {
@@ -3196,6 +3521,18 @@ public abstract class AbstractMessagingManager extends TcpCommunicationManager i
     * @since 2.0.3 (20050412)
     */
    protected abstract void destinationMetaDataUpdated(final Destination destination, final HashMap previousDestinationMetaData);
+   
+   /**
+    * Called when a flow control grant has been received from a remote messaging system. This implementation does nothing.<br>
+    * <br>
+    * <b>NOTE:<b> Since this is a notification method called by an internal thread, any overriding subclass implementations 
+    * should make sure that this method executes and returns rather swiftly, without any kind of blocking wait.
+    * 
+    * @since 2.2.1
+    */
+   protected void flowControlGrantReceived(final Destination destination, final Object grant)
+   {
+   }
 
    /**
     * Method for creating a {@link Message}object, for representation of an incomming message. Subclasses may override
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.tcp.messaging;
+
+import com.teletalk.jserver.pool.PoolWorker;
+
+/**
+ * Worker class used for writing broadcast messages to several destinations concurrently through a thread pool 
+ * (see {@link AbstractMessagingManager#broadcastMessage(MessageHeader, Object, Destination[], MessageDispatcherProperties)}). 
+ * 
+ * @author Tobias Lfstrand
+ * 
+ * @since 2.2.1
+ */
+public class BroadcastDispatchWorker extends PoolWorker
+{
+   private Runnable dispatchTask;
+   
+   /**
+    * Creates a new BroadcastDispatchWorker.
+    */
+   public BroadcastDispatchWorker()
+   {
+   }
+   
+   /**
+    * Performs clean up of the BroadcastDispatchWorker. 
+    */
+   protected void cleanUp()
+   {
+      super.cleanUp();
+      
+      this.dispatchTask = null;
+   }
+   
+   /**
+    * Destroys the BroadcastDispatchWorker.
+    */
+   protected void destroy()
+   {
+      super.destroy();
+      
+      this.dispatchTask = null;
+   }
+   
+   /**
+    * Sets the dispatch task to be executed by this BroadcastDispatchWorker. 
+    * 
+    * @param dispatchTask the dispatch task (a Runnable) to be executed by this BroadcastDispatchWorker.
+    */
+   protected void setData(Object dispatchTask)
+   {
+      this.dispatchTask = (Runnable)dispatchTask;
+   }
+   
+   /**
+    * Executes the dispatch task of this BroadcastDispatchWorker.
+    */
+   protected void work()
+   {
+      if( this.dispatchTask != null ) this.dispatchTask.run();
+   }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.tcp.messaging;
+
+import java.util.ArrayList;
+
+/**
+ * The aggregated result of a message broadcast to several destinations (see 
+ * {@link AbstractMessagingManager#broadcastMessage(MessageHeader, Object, Destination[], MessageDispatcherProperties)}). A BroadcastResult 
+ * contains the response, or the error, of each destination that the message was dispatched to. The destinations are indexed in the 
+ * order in which they were specified when the broadcast was made. 
+ * 
+ * @author Tobias Lfstrand
+ * 
+ * @since 2.2.1
+ */
+public class BroadcastResult
+{
+   private final Destination[] destinations;
+   
+   private final Message[] responses;
+   
+   private final MessagingException[] errors;
+   
+   private final long duration;
+   
+   
+   /**
+    * Creates a new BroadcastResult.
+    * 
+    * @param destinations the destinations the message was dispatched to.
+    * @param responses the responses from each destination (<code>null</code> for destinations that failed).
+    * @param errors the errors for each destination (<code>null</code> for destinations that responded successfully).
+    * @param duration the duration (ms) of the broadcast.
+    */
+   public BroadcastResult(final Destination[] destinations, final Message[] responses, final MessagingException[] errors, final long duration)
+   {
+      this.destinations = destinations;
+      this.responses = responses;
+      this.errors = errors;
+      this.duration = duration;
+   }
+   
+   /**
+    * Gets the number of destinations that the message was dispatched to.
+    */
+   public int size()
+   {
+      return this.destinations.length;
+   }
+   
+   /**
+    * Gets the destinations that the message was dispatched to.
+    */
+   public Destination[] getDestinations()
+   {
+      return this.destinations;
+   }
+   
+   /**
+    * Gets the destination with the specified index.
+    */
+   public Destination getDestination(final int index)
+   {
+      return this.destinations[index];
+   }
+   
+   /**
+    * Gets the response from the destination with the specified index.
+    * 
+    * @return the response, or <code>null</code> if the dispatch to the destination failed.
+    */
+   public Message getResponse(final int index)
+   {
+      return this.responses[index];
+   }
+   
+   /**
+    * Gets the error that occurred when dispatching to the destination with the specified index.
+    * 
+    * @return the error, or <code>null</code> if a response was received from the destination.
+    */
+   public MessagingException getError(final int index)
+   {
+      return this.errors[index];
+   }
+   
+   /**
+    * Checks if a response was received from the destination with the specified index.
+    */
+   public boolean isSuccessful(final int index)
+   {
+      return this.errors[index] == null;
+   }
+   
+   /**
+    * Checks if the dispatch to the destination with the specified index failed because no response was received within the response timeout.
+    */
+   public boolean isTimedOut(final int index)
+   {
+      return this.errors[index] instanceof ResponseTimeOutException;
+   }
+   
+   /**
+    * Gets all received responses, in destination order.
+    */
+   public Message[] getResponses()
+   {
+      final ArrayList received = new ArrayList(this.responses.length);
+      for(int i=0; i<this.responses.length; i++)
+      {
+         if( this.responses[i] != null ) received.add(this.responses[i]);
+      }
+      return (Message[])received.toArray(new Message[received.size()]);
+   }
+   
+   /**
+    * Gets the number of destinations from which a response was received.
+    */
+   public int getSuccessCount()
+   {
+      int count = 0;
+      for(int i=0; i<this.errors.length; i++) if( this.errors[i] == null ) count++;
+      return count;
+   }
+   
+   /**
+    * Gets the number of destinations for which the dispatch failed, including time outs.
+    */
+   public int getFailureCount()
+   {
+      return this.errors.length - this.getSuccessCount();
+   }
+   
+   /**
+    * Gets the number of destinations from which no response was received within the response timeout.
+    */
+   public int getTimeOutCount()
+   {
+      int count = 0;
+      for(int i=0; i<this.errors.length; i++) if( this.errors[i] instanceof ResponseTimeOutException ) count++;
+      return count;
+   }
+   
+   /**
+    * Checks if responses were received from all destinations.
+    */
+   public boolean isComplete()
+   {
+      return this.getFailureCount() == 0;
+   }
+   
+   /**
+    * Gets the duration (ms) of the broadcast, i.e. the time from the start of the dispatch until the last response was received (or timed out).
+    */
+   public long getDuration()
+   {
+      return this.duration;
+   }
+   
+   /**
+    * Gets a string representation of this BroadcastResult.
+    */
+   public String toString()
+   {
+      return "BroadcastResult[destinations: " + this.size() + ", successful: " + this.getSuccessCount() + ", failed: " + this.getFailureCount() + 
+               ", timed out: " + this.getTimeOutCount() + ", duration: " + this.duration + " ms]";
+   }
+}
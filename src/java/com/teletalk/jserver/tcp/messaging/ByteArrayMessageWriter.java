@@ -50,6 +50,8 @@ public final class ByteArrayMessageWriter implements MessageWriter
 	{
 		int bodyLength = (byteArrayMessageBody != null) ? byteArrayMessageBody.length : 0;
 		header.setBodyLength(bodyLength);
+		// Compress the body if enabled for the destination
+		header.setBodyCompressed(endPoint.isBodyCompressionEnabled(bodyLength));
 		
 		if( endPoint.getDestination().getProtocolVersion() >= 4 )
 		{
@@ -71,7 +73,8 @@ public final class ByteArrayMessageWriter implements MessageWriter
 		if( bodyLength > 0 )
 		{
 			// Write stream body
-			endPointOutputStream.write(byteArrayMessageBody);
+			endPoint.getBodyOutputStream(header).write(byteArrayMessageBody);
+			endPoint.endBody(header);
 		}
 		
 		if(endPoint.isDebugMode()) endPoint.logDebug("Done sending byte array message with header " + header + ".");
@@ -22,13 +22,25 @@ import java.util.Map;
 import com.teletalk.jserver.util.MessageQueue;
 
 /**
- * Default strategy for selecting endpoints for dispatching of messages. 
+ * Default strategy for selecting endpoints for dispatching of messages.<br>
+ * <br>
+ * Normally an endpoint that is returned by one of the <code>getEndPoint</code> methods is removed from the set of available 
+ * endpoints until {@link #endPointReady(MessagingEndPoint)} is called. If endpoint multiplexing is enabled in the associated 
+ * MessagingManager (see {@link MessagingManager#isEndPointMultiplexingEnabled()}), the returned endpoint is instead kept available 
+ * and moved to the end of the list of available endpoints (round robin), which means that several threads may dispatch messages 
+ * through the same endpoint concurrently.<br>
+ * <br>
+ * If endpoints are reserved for high priority messages in the associated MessagingManager (see 
+ * {@link MessagingManager#getReservedPriorityEndPoints()}), messages with a priority lower than {@link MessageHeader#PRIORITY_HIGH} 
+ * will only be given an endpoint of a destination if more than the reserved number of endpoints are available in that destination. 
+ * The reservation is capped at the number of connections per destination minus one, and is not applied when endpoint multiplexing 
+ * is enabled, since endpoints are never checked out exclusively in that mode.
  * 
  * @since 1.3
  * 
  * @author Tobias Lfstrand
  */
-public class DefaultEndPointSelectionStrategy implements EndPointSelectionStrategy
+public class DefaultEndPointSelectionStrategy implements PriorityEndPointSelectionStrategy
 {
    private final Object endPointSelectionStrategyLock;
    
@@ -130,7 +142,9 @@ public class DefaultEndPointSelectionStrategy implements EndPointSelectionStrate
             
             if (notifyNeeded != 0)
             { 
-               this.endPointSelectionStrategyLock.notify(); // Wake up one thread
+               // Wake up all threads if endpoints are reserved, since a woken thread may not be allowed to use the endpoint 
+               if( this.getReservedEndPointCount(MessageHeader.PRIORITY_NORMAL) > 0 ) this.endPointSelectionStrategyLock.notifyAll();
+               else this.endPointSelectionStrategyLock.notify(); // Wake up one thread
             }
          }
       }
@@ -177,13 +191,60 @@ public class DefaultEndPointSelectionStrategy implements EndPointSelectionStrate
     */
    public MessagingEndPoint getEndPoint(final long timeOut) throws InterruptedException
    {
+      return this.getEndPoint(MessageHeader.PRIORITY_NORMAL, timeOut);
+   }
+   
+   /**
+    * Gets the first available endpoint that may be used for a message with the specified priority. This method will wait a maximum 
+    * of <code>timeOut</code> milliseconds for an available endpoint.<br>
+    * <br>
+    * Note: This method must never be called with a lock held on {@link MessagingManager#getEndpointGroupsLock()}.
+    * 
+    * @since 2.2.1
+    */
+   public MessagingEndPoint getEndPoint(final byte priority, final long timeOut) throws InterruptedException
+   {
+      // If endpoints are reserved, select among the available endpoints of all destinations
+      if( this.getReservedEndPointCount(priority) > 0 ) return getEndPointInternal(null, null, priority, timeOut);
+      
       synchronized (this.endPointSelectionStrategyLock)
       {
          //this.messagingManager.logDebug("DefaultEndPointSelectionStrategy - " + this.endPointQueue.size() + " available endpoints.");
          
-         return (MessagingEndPoint) this.endPointQueue.getMsg(timeOut);
+         final MessagingEndPoint endPoint = (MessagingEndPoint) this.endPointQueue.getMsg(timeOut);
+         
+         if( (endPoint != null) && this.isMultiplexingEnabled() )
+         {
+            // Keep endpoint available, but move it to the end of the queue
+            this.endPointQueue.putMsg(endPoint);
+         }
+         
+         return endPoint;
       }
    }
+   
+   /**
+    * Checks if endpoint multiplexing is enabled in the associated MessagingManager.
+    * 
+    * @since 2.2.1
+    */
+   private boolean isMultiplexingEnabled()
+   {
+      return (this.messagingManager != null) && this.messagingManager.isEndPointMultiplexingEnabled();
+   }
+   
+   /**
+    * Gets the number of available endpoints in each destination that a message with the specified priority must leave for high 
+    * priority messages.
+    * 
+    * @since 2.2.1
+    */
+   private int getReservedEndPointCount(final byte priority)
+   {
+      if( (priority >= MessageHeader.PRIORITY_HIGH) || (this.messagingManager == null) || this.isMultiplexingEnabled() ) return 0;
+      
+      return Math.max(0, Math.min(this.messagingManager.getReservedPriorityEndPoints(), this.messagingManager.getConnectionsPerDestination() - 1));
+   }
 
    /**
     * Gets the first available endpoint for the specified destination. This method will wait a maximum of
@@ -192,6 +253,19 @@ public class DefaultEndPointSelectionStrategy implements EndPointSelectionStrate
     * Note: This method must never be called with a lock held on {@link MessagingManager#getEndpointGroupsLock()}.
     */
    public MessagingEndPoint getEndPoint(final Destination destination, long timeOut) throws InterruptedException
+   {
+      return this.getEndPoint(destination, MessageHeader.PRIORITY_NORMAL, timeOut);
+   }
+   
+   /**
+    * Gets the first available endpoint for the specified destination that may be used for a message with the specified priority. 
+    * This method will wait a maximum of <code>timeOut</code> milliseconds for an available endpoint.<br>
+    * <br>
+    * Note: This method must never be called with a lock held on {@link MessagingManager#getEndpointGroupsLock()}.
+    * 
+    * @since 2.2.1
+    */
+   public MessagingEndPoint getEndPoint(final Destination destination, final byte priority, long timeOut) throws InterruptedException
    {
       final long beginWait = System.currentTimeMillis();
       long waitTime = timeOut;
@@ -209,7 +283,7 @@ public class DefaultEndPointSelectionStrategy implements EndPointSelectionStrate
                if (waitTime > 0)
                {
                   // ...get the first available enpoint for that destination...
-                  endPoint = this.getFirstMessagingEndPoint(destination);
+                  endPoint = this.getFirstMessagingEndPoint(destination, false, priority);
 
                   if (endPoint == null)
                   {
@@ -248,7 +322,20 @@ public class DefaultEndPointSelectionStrategy implements EndPointSelectionStrate
     */
    public MessagingEndPoint getEndPoint(final String namedReceiver, long timeOut) throws InterruptedException
    {
-      return getEndPointInternal(namedReceiver, null, timeOut);
+      return getEndPointInternal(namedReceiver, null, MessageHeader.PRIORITY_NORMAL, timeOut);
+   }
+   
+   /**
+    * Gets the first available endpoint for the specified named receiver that may be used for a message with the specified priority. 
+    * This method will wait a maximum of <code>timeOut</code> milliseconds for an available endpoint.<br>
+    * <br>
+    * Note: This method must never be called with a lock held on {@link MessagingManager#getEndpointGroupsLock()}.
+    * 
+    * @since 2.2.1
+    */
+   public MessagingEndPoint getEndPoint(final String namedReceiver, final byte priority, long timeOut) throws InterruptedException
+   {
+      return getEndPointInternal(namedReceiver, null, priority, timeOut);
    }
 
    /**
@@ -259,13 +346,27 @@ public class DefaultEndPointSelectionStrategy implements EndPointSelectionStrate
     */
    public MessagingEndPoint getEndPoint(final Map metaData, long timeOut) throws InterruptedException
    {
-      return getEndPointInternal(null, metaData, timeOut);
+      return getEndPointInternal(null, metaData, MessageHeader.PRIORITY_NORMAL, timeOut);
+   }
+   
+   /**
+    * Gets the first available endpoint for the specified metadata that may be used for a message with the specified priority. 
+    * This method will wait a maximum of <code>timeOut</code> milliseconds for an available endpoint.<br>
+    * <br>
+    * Note: This method must never be called with a lock held on {@link MessagingManager#getEndpointGroupsLock()}.
+    * 
+    * @since 2.2.1
+    */
+   public MessagingEndPoint getEndPoint(final Map metaData, final byte priority, long timeOut) throws InterruptedException
+   {
+      return getEndPointInternal(null, metaData, priority, timeOut);
    }
 
    /**
-    * Internal method for getting an endpoint.
+    * Internal method for getting an endpoint. If neither <code>namedReceiver</code> nor <code>metaData</code> is specified, all 
+    * destinations are considered.
     */
-   private MessagingEndPoint getEndPointInternal(final String namedReceiver, final Map metaData, final long timeOut)
+   private MessagingEndPoint getEndPointInternal(final String namedReceiver, final Map metaData, final byte priority, final long timeOut)
          throws InterruptedException
    {
       final long beginWait = System.currentTimeMillis();
@@ -345,7 +446,7 @@ public class DefaultEndPointSelectionStrategy implements EndPointSelectionStrate
    	                  // Get destination containing endpoint with lowest lastReadyTime
    	                  for (int i = 0; i < destinations.length; i++)
    	                  {
-   	                     tmpEndPoint = this.getFirstMessagingEndPoint(destinations[i], true);
+   	                     tmpEndPoint = this.getFirstMessagingEndPoint(destinations[i], true, priority);
    	                     if (tmpEndPoint != null)
    	                     {
    	                        endPointReadyTime = tmpEndPoint.getLastReadyTime();
@@ -363,7 +464,7 @@ public class DefaultEndPointSelectionStrategy implements EndPointSelectionStrate
                   if (destination != null)
                   {
                      // Get (remove) end point
-                     endPoint = this.getFirstMessagingEndPoint(destination, false);
+                     endPoint = this.getFirstMessagingEndPoint(destination, false, priority);
                   }
                }
 
@@ -396,17 +497,10 @@ public class DefaultEndPointSelectionStrategy implements EndPointSelectionStrate
    }
 
    /**
-    * Internal method for getting an endpoint. Must always be called with a lock on endPointQueue.
+    * Internal method for getting an endpoint. Must always be called with a lock on endPointQueue. No endpoint is returned if the 
+    * number of available endpoints in the destination doesn't exceed the number of endpoints reserved for messages of higher priority.
     */
-   private MessagingEndPoint getFirstMessagingEndPoint(final Destination destination) throws InterruptedException
-   {
-      return getFirstMessagingEndPoint(destination, false);
-   }
-
-   /**
-    * Internal method for getting an endpoint. Must always be called with a lock on endPointQueue.
-    */
-   private MessagingEndPoint getFirstMessagingEndPoint(final Destination destination, final boolean peek)
+   private MessagingEndPoint getFirstMessagingEndPoint(final Destination destination, final boolean peek, final byte priority)
          throws InterruptedException
    {
       MessagingEndPoint endPoint = null;
@@ -416,7 +510,7 @@ public class DefaultEndPointSelectionStrategy implements EndPointSelectionStrate
          // Remove from destination endpoint queue
          final ArrayList availableDestinationEndPoints = (ArrayList) this.destinationEndPointMap.get(destination.getKey());
             
-         if ((availableDestinationEndPoints != null) && (availableDestinationEndPoints.size() > 0))
+         if ((availableDestinationEndPoints != null) && (availableDestinationEndPoints.size() > this.getReservedEndPointCount(priority)))
          {
             //if( availableDestinationEndPoints != null ) this.messagingManager.logDebug("DefaultEndPointSelectionStrategy - " + availableDestinationEndPoints.size() + " available endpoint(s) in destination " + destination + ".");
             
@@ -432,6 +526,13 @@ public class DefaultEndPointSelectionStrategy implements EndPointSelectionStrate
    
                // Remove from global endpoint queue
                this.endPointQueue.remove(endPoint);
+               
+               if( this.isMultiplexingEnabled() )
+               {
+                  // Keep endpoint available for other threads, but move it to the end of the lists (round robin)
+                  availableDestinationEndPoints.add(endPoint);
+                  this.endPointQueue.putMsg(endPoint);
+               }
             }
          }
          /*else if( this.messagingManager.isDebugMode() )
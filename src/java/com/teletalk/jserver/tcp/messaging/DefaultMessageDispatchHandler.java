@@ -28,23 +28,19 @@ import com.teletalk.jserver.util.Future;
  * 
  * @since 2.1 (20050517)
  */
-public class DefaultMessageDispatchHandler implements MessageDispatchHandler
+public class DefaultMessageDispatchHandler implements FutureMessageDispatchHandler
 {
    private MessagingManager messagingManager;
    
-   private final HashMap pendingSynchronousMessages;
-   private final Object synchMessageMonitor;
-   
-   /** Message id counter. */
-   private long uniqueIdCounter = 0;
+   /** Registry of futures for pending synchronous messages, which also generates message ids. */
+   private final PendingResponseRegistry pendingSynchronousMessages;
    
    /**
     * Creates a DefaultMessageDispatchHandler.
     */
    public DefaultMessageDispatchHandler()
    {
-      this.pendingSynchronousMessages = new HashMap();
-      this.synchMessageMonitor = this;
+      this.pendingSynchronousMessages = new PendingResponseRegistry();
    }
       
    /**
@@ -77,10 +73,7 @@ public class DefaultMessageDispatchHandler implements MessageDispatchHandler
     */
    public void shutDown()
    {
-      synchronized(this.synchMessageMonitor)
-      {
-         this.pendingSynchronousMessages.clear();
-      }
+      this.pendingSynchronousMessages.clear();
    }
       
    /**
@@ -88,27 +81,7 @@ public class DefaultMessageDispatchHandler implements MessageDispatchHandler
     */
    private long createUniqueId()
    {
-      synchronized(this.synchMessageMonitor)
-      {
-         long unqueId = uniqueIdCounter++;
-         if (unqueId == MessageHeader.UNDEFINED) unqueId = uniqueIdCounter++;
-      
-         return unqueId;
-      }
-   }
-
-   /**
-    * Creates a future object for waiting for a response to a synchronous message.
-    */
-   private Future createFuture(final long id)
-   {
-      synchronized(this.synchMessageMonitor)
-      {
-         Future future = new Future();
-         this.pendingSynchronousMessages.put(new Long(id), future);
-   
-         return future;
-      }
+      return this.pendingSynchronousMessages.createId();
    }
 
    /**
@@ -116,10 +89,7 @@ public class DefaultMessageDispatchHandler implements MessageDispatchHandler
     */
    private void removeFuture(final long id)
    {
-      synchronized(this.synchMessageMonitor)
-      {
-         this.pendingSynchronousMessages.remove(new Long(id));
-      }
+      this.pendingSynchronousMessages.remove(id);
    }
    
    /**
@@ -132,14 +102,18 @@ public class DefaultMessageDispatchHandler implements MessageDispatchHandler
    public boolean responseReceived(final Message message) throws Exception
    {
       long responseToId = message.getHeader().getResponseToId();
-      Future future;
-
-      synchronized(this.synchMessageMonitor)
+      Future future = (Future) this.pendingSynchronousMessages.get(responseToId);
+      
+      if (future instanceof ResponseFuture) // If the message was dispatched through dispatchMessageWithFuture...
       {
-         future = (Future) this.pendingSynchronousMessages.get(new Long(responseToId));
+         // ...complete the response future, unless it has been completed already (i.e. timed out)
+         if( this.pendingSynchronousMessages.remove(responseToId) != null )
+         {
+            return this.completeResponseFuture((ResponseFuture)future, message);
+         }
+         else return false;
       }
-      
-      if (future != null) // If a client is waiting for a reply...
+      else if (future != null) // If a client is waiting for a reply...
       {
          synchronized (future)
          {
@@ -153,6 +127,153 @@ public class DefaultMessageDispatchHandler implements MessageDispatchHandler
       }
    }
    
+   /**
+    * Completes the specified response future with a received response. The response body is buffered before the future 
+    * is completed, since the response may be read by another thread than the thread reading from the endpoint.
+    */
+   private boolean completeResponseFuture(final ResponseFuture responseFuture, final Message response) throws Exception
+   {
+      if( !response.isBodyBuffered() && (response.getHeader().getBodyLength() > 0) ) response.readAndCacheBody();
+      
+      final MessagingException error = this.checkResponse(responseFuture.getRequestHeader(), response, responseFuture.getDispatchTime());
+      
+      if( error != null ) return responseFuture.fail(error);
+      else return responseFuture.complete(response);
+   }
+   
+   /**
+    * Acquires a flow control credit for dispatching a message on the specified endpoint. If the destination of the endpoint has no 
+    * credits left, the flow control policy of the messaging manager is applied: the message is either rejected (fail fast), rerouted 
+    * to another matching destination that has credits (reroute, if allowed) or the calling thread waits for credits to be granted 
+    * (block, which is also used when a message can't be rerouted). The endpoint of a rerouted message is selected with the priority 
+    * aware methods of the endpoint selection strategy, if available, so that rerouted high priority messages may use reserved endpoints.
+    * 
+    * @return the endpoint to dispatch the message on, for which a credit has been acquired, or <code>null</code> if the endpoint was 
+    * released while waiting for credits (in which case a new endpoint must be selected). 
+    * 
+    * @throws MessageDispatchFailedException if the flow control policy is fail fast and there are no credits left.
+    */
+   private MessagingEndPoint acquireFlowControlCredit(MessagingEndPoint endPoint, final boolean rerouteAllowed, final String namedReceiver, 
+         final Map destinationMetaDataConstraints, final byte priority, final long timeOut) throws MessageDispatchFailedException, InterruptedException
+   {
+      Destination destination = endPoint.getDestination();
+      
+      if( destination.tryAcquireFlowControlCredit() ) return endPoint;
+      
+      final int flowControlPolicy = messagingManager.getFlowControlPolicy();
+      final EndPointSelectionStrategy endPointSelectionStrategy = messagingManager.getEndPointSelectionStrategy();
+      
+      if( flowControlPolicy == MessagingManager.FLOW_CONTROL_POLICY_FAIL_FAST )
+      {
+         throw new MessageDispatchFailedException("No flow control credits left for destination " + destination + "!");
+      }
+      else if( (flowControlPolicy == MessagingManager.FLOW_CONTROL_POLICY_REROUTE) && rerouteAllowed )
+      {
+         final Destination alternativeDestination = this.getFlowControlAlternative(destination, namedReceiver, destinationMetaDataConstraints);
+         
+         if( alternativeDestination != null )
+         {
+            if (messagingManager.isDebugMode()) messagingManager.logDebug("No flow control credits left for destination " + destination + " - rerouting message to " + alternativeDestination + ".");
+            
+            endPointSelectionStrategy.endPointReady(endPoint);
+            if( endPointSelectionStrategy instanceof PriorityEndPointSelectionStrategy ) 
+               endPoint = ((PriorityEndPointSelectionStrategy)endPointSelectionStrategy).getEndPoint(alternativeDestination, priority, timeOut);
+            else endPoint = endPointSelectionStrategy.getEndPoint(alternativeDestination, timeOut);
+            
+            if( endPoint == null ) return null;
+            else if( endPoint.getDestination().tryAcquireFlowControlCredit() ) return endPoint;
+            
+            destination = endPoint.getDestination();
+         }
+      }
+      
+      // Release the endpoint and wait for credits
+      endPointSelectionStrategy.endPointReady(endPoint);
+      destination.waitForFlowControlCredits(timeOut);
+      
+      return null;
+   }
+   
+   /**
+    * Gets the destination, other than the specified one, that matches the specified named receiver or meta data and that has the 
+    * most flow control credits.
+    */
+   private Destination getFlowControlAlternative(final Destination destination, final String namedReceiver, final Map destinationMetaDataConstraints)
+   {
+      final Destination[] destinations;
+      if( namedReceiver != null ) destinations = messagingManager.getDestinations(namedReceiver);
+      else if( destinationMetaDataConstraints != null ) destinations = messagingManager.getDestinations(destinationMetaDataConstraints);
+      else destinations = messagingManager.getDestinations();
+      
+      Destination alternativeDestination = null;
+      long maxCredits = 0;
+      long credits;
+      
+      for(int i=0; (destinations != null) && (i<destinations.length); i++)
+      {
+         if( (destinations[i] != null) && (destinations[i] != destination) && destinations[i].isLinkEstablished() )
+         {
+            credits = destinations[i].getFlowControlCredits();
+            if( credits < 0 ) return destinations[i]; // Not flow controlled
+            else if( credits > maxCredits )
+            {
+               maxCredits = credits;
+               alternativeDestination = destinations[i];
+            }
+         }
+      }
+      
+      return alternativeDestination;
+   }
+   
+   /**
+    * Checks if the specified response indicates that the message was successfully processed by the receiver, and if so initializes the 
+    * response through {@link MessagingManager#initResponseMessage(Message)}. 
+    * 
+    * @return <code>null</code> if the response indicates success, otherwise a {@link MessageDispatchFailedException} describing the error.
+    */
+   private MessagingException checkResponse(final MessageHeader header, final Message response, final long startTime)
+   {
+      if( response.getHeader().isAccessDeniedHeader() )
+      {
+         String errorMessage = response.getHeader().getDescription();
+         if( (errorMessage == null) || (errorMessage.trim().length() == 0) ) errorMessage = "";
+         else errorMessage = " - " + errorMessage; 
+         
+         if (messagingManager.isDebugMode())
+         {
+            messagingManager.logDebug("Access denied response to message with header " + header + " received after " + (System.currentTimeMillis() - startTime) + " ms. Response header: " + response.getHeader() + ".");
+         }
+         
+         return new MessageDispatchFailedException("Access denied response for message with header " + header + errorMessage + ".", response.getHeader());
+      }
+      else if( response.getHeader().isMessageProcessingErrorHeader() )
+      {
+         String errorMessage = response.getHeader().getDescription();
+         if( (errorMessage == null) || (errorMessage.trim().length() == 0) ) errorMessage = "";
+         else errorMessage = " - " + errorMessage;
+         
+         if (messagingManager.isDebugMode())
+         {
+            messagingManager.logDebug("Error occurred in remote message receiver while processing message with header " + header + errorMessage + ". Response received after " + (System.currentTimeMillis() - startTime) + " ms.");
+         }
+         
+         return new MessageDispatchFailedException("Error occurred in remote message receiver while processing message with header " + header + " - " + errorMessage + ".", response.getHeader());
+      }
+      else // Success
+      {
+         if (messagingManager.isDebugMode())
+         {
+            messagingManager.logDebug("Response to message with header " + header + " received after " + (System.currentTimeMillis() - startTime) + " ms. Response header: " + response.getHeader() + ".");
+         }
+         
+         // Call initMessage to enable subclasses to perform optional message initialization before returning the message
+         messagingManager.initResponseMessage(response);
+         
+         return null;
+      }
+   }
+   
    /**
     * Method for performing the actual dispatching of a message. This method handles the dispatching of both synchronous and 
     * asynchronous message. For synchronous messages, this methods will block while waiting for a response message. 
@@ -178,12 +299,56 @@ public class DefaultMessageDispatchHandler implements MessageDispatchHandler
    public Message dispatchMessage(MessageHeader header, MessageWriter messageDispatchImpl, 
          MessageDispatcherProperties messageDispatcherProperties, boolean proxyMessage)
          throws MessageDispatchFailedException, ResponseTimeOutException
+   {
+      return this.dispatchMessage(header, messageDispatchImpl, messageDispatcherProperties, proxyMessage, null);
+   }
+   
+   /**
+    * Dispatches a message without waiting for the response. This method returns as soon as the message has been dispatched 
+    * (or the dispatch has failed), and the response is delivered through the returned {@link ResponseFuture}. The response timeout 
+    * is managed by the timer wheel of the associated MessagingManager (see {@link MessagingManager#getTimerWheel()}), which will 
+    * fail the future with a {@link ResponseTimeOutException} if no response is received in time.
+    * 
+    * @param header the header of the message to be dispatched.
+    * @param messageDispatchImpl the implementation to be used for dispatching the message body.
+    * @param messageDispatcherProperties a {@link MessageDispatcherProperties} object containing properties for message dispatch. The 
+    * asynch flag is ignored by this method.
+    * @param listener an optional listener to be notified when the response future is completed.
+    * 
+    * @return a response future, which will be completed either with a response message or an error.
+    * 
+    * @since 2.2.1
+    */
+   public ResponseFuture dispatchMessageWithFuture(MessageHeader header, MessageWriter messageDispatchImpl, 
+         MessageDispatcherProperties messageDispatcherProperties, ResponseListener listener)
+   {
+      final ResponseFuture responseFuture = new ResponseFuture(listener);
+      
+      try
+      {
+         this.dispatchMessage(header, messageDispatchImpl, messageDispatcherProperties, false, responseFuture);
+      }
+      catch(MessagingException me)
+      {
+         responseFuture.fail(me);
+      }
+      
+      return responseFuture;
+   }
+   
+   /**
+    * Internal method for performing the actual dispatching of a message. If parameter <code>responseFuture</code> is specified, the 
+    * response will be delivered through that object, and this method will return as soon as the message has been dispatched.
+    */
+   private Message dispatchMessage(MessageHeader header, MessageWriter messageDispatchImpl, 
+         MessageDispatcherProperties messageDispatcherProperties, boolean proxyMessage, final ResponseFuture responseFuture)
+         throws MessageDispatchFailedException, ResponseTimeOutException
    {
       Destination destination = messageDispatcherProperties.getDestination();
       String namedReceiver = messageDispatcherProperties.getNamedReceiver();
       final Map destinationMetaDataConstraints = messageDispatcherProperties.getDestinationMetaDataConstraints();
       long timeOut = messageDispatcherProperties.getTimeout();
-      final boolean asynch = messageDispatcherProperties.isAsynch(); 
+      final boolean asynch = (responseFuture == null) && messageDispatcherProperties.isAsynch(); 
       
       EndPointSelectionStrategy endPointSelectionStrategy = messagingManager.getEndPointSelectionStrategy();
       
@@ -241,6 +406,11 @@ public class DefaultMessageDispatchHandler implements MessageDispatchHandler
          
          header.setResponseToId(header.getMessageId());
       }
+      
+      // Flow controlled messages may be rerouted to another destination if no specific destination was requested
+      final boolean flowControlled = MessagingManager.isFlowControlledMessage(header);
+      final boolean rerouteAllowed = (destination == null);
+      Destination creditDestination = null;
 
       // Check if destination meta data constraints have been specified, and a named reciever has been specified - if
       // so, set that field as a custom field in the message header.
@@ -272,19 +442,29 @@ public class DefaultMessageDispatchHandler implements MessageDispatchHandler
       }
 
       header.setAsynch(asynch);
+      
+      if( messageDispatcherProperties.getPriority() != MessageHeader.PRIORITY_NORMAL ) header.setPriority(messageDispatcherProperties.getPriority());
+      final byte priority = header.getPriority();
+      
+      // Use the priority aware methods of the endpoint selection strategy, if available
+      final PriorityEndPointSelectionStrategy priorityEndPointSelectionStrategy = (endPointSelectionStrategy instanceof PriorityEndPointSelectionStrategy) ? 
+            (PriorityEndPointSelectionStrategy)endPointSelectionStrategy : null;
 
       try
       {
-         synchronized (this.synchMessageMonitor)
+         if( !asynch && !proxyMessage )
+         {
+            // Create a future used to wait for a response to the message (unless a response future is specified), and register 
+            // it under a new unique id for the message
+            future = (responseFuture != null) ? responseFuture : new Future();
+            messageId = this.pendingSynchronousMessages.register(future);
+            
+            if( responseFuture != null ) responseFuture.setRequestHeader(header, startTime);
+         }
+         else
          {
             // Create unique id for message
             messageId = this.createUniqueId();
-
-            if( !asynch && !proxyMessage )
-            {
-               // Create a future used to wait for a response to the message
-               future = this.createFuture(messageId);
-            }
          }
 
          header.setMessageId(messageId);
@@ -304,30 +484,42 @@ public class DefaultMessageDispatchHandler implements MessageDispatchHandler
             try
             {
                endPoint = null;
+               creditDestination = null;
                
                // Find an endpoint...
                if (destination != null) // ...for a specific destination...
                {
-                  endPoint = endPointSelectionStrategy.getEndPoint(destination, timeOut);
+                  if( priorityEndPointSelectionStrategy != null ) endPoint = priorityEndPointSelectionStrategy.getEndPoint(destination, priority, timeOut);
+                  else endPoint = endPointSelectionStrategy.getEndPoint(destination, timeOut);
                }
                else if (namedReceiver != null) // ...or with a specific named receiver...
                {
-                  endPoint = endPointSelectionStrategy.getEndPoint(namedReceiver, timeOut);
+                  if( priorityEndPointSelectionStrategy != null ) endPoint = priorityEndPointSelectionStrategy.getEndPoint(namedReceiver, priority, timeOut);
+                  else endPoint = endPointSelectionStrategy.getEndPoint(namedReceiver, timeOut);
                }
                else if (destinationMetaDataConstraints != null) // ...or with a specific set of meta data...
                {
-                  endPoint = endPointSelectionStrategy.getEndPoint(destinationMetaDataConstraints, timeOut);
+                  if( priorityEndPointSelectionStrategy != null ) endPoint = priorityEndPointSelectionStrategy.getEndPoint(destinationMetaDataConstraints, priority, timeOut);
+                  else endPoint = endPointSelectionStrategy.getEndPoint(destinationMetaDataConstraints, timeOut);
                }
                else // ...or any available endpoint.
                {
-                  endPoint = endPointSelectionStrategy.getEndPoint(timeOut);
+                  if( priorityEndPointSelectionStrategy != null ) endPoint = priorityEndPointSelectionStrategy.getEndPoint(priority, timeOut);
+                  else endPoint = endPointSelectionStrategy.getEndPoint(timeOut);
                }
 
                if ((endPoint != null) && endPoint.isLinkEstablished())
                {
                   timeOut = timeOut - (System.currentTimeMillis() - startTime);
+                  
+                  if( (timeOut > 0) && flowControlled )
+                  {
+                     // Acquire a flow control credit for the destination (or another destination, if rerouted)
+                     endPoint = this.acquireFlowControlCredit(endPoint, rerouteAllowed, namedReceiver, destinationMetaDataConstraints, priority, timeOut);
+                     if( endPoint != null ) creditDestination = endPoint.getDestination();
+                  }
    
-                  if (timeOut > 0)
+                  if( (timeOut > 0) && (endPoint != null) )
                   {
                      try
                      {
@@ -336,6 +528,7 @@ public class DefaultMessageDispatchHandler implements MessageDispatchHandler
                            header.setTimeToLive(timeOut);
                         }
                         
+                        messagingManager.piggyBackFlowControlGrant(header, endPoint.getDestination());
                         messagingManager.beforeMessageDispatch(header, endPoint);
    
                         // Dispatch message through endpoint
@@ -389,87 +582,81 @@ public class DefaultMessageDispatchHandler implements MessageDispatchHandler
             }
             finally
             {
-               // Make endpoint avaiable for message dispatch again
+               // Make endpoint avaiable for message dispatch again (multiplexed endpoints are never made unavailable, 
+               // in which case this call will only update the last ready time of the endpoint)
                if( endPoint != null ) endPointSelectionStrategy.endPointReady(endPoint);
                
+               // Return the flow control credit if the message wasn't dispatched
+               if( (creditDestination != null) && !messageDispatched ) creditDestination.releaseFlowControlCredit();
+               
                if ( messageDispatched ) messagingManager.messageDispatched(header, endPoint);
             }
          }
 
          if (messageDispatched)
          {
-            if ( !asynch && !proxyMessage )
+            // Notify the endpoint selection strategy of requests for which a response is expected, if it is interested
+            final RequestAwareEndPointSelectionStrategy requestAwareStrategy = 
+               (!asynch && !proxyMessage && (endPointSelectionStrategy instanceof RequestAwareEndPointSelectionStrategy)) ? 
+                     (RequestAwareEndPointSelectionStrategy)endPointSelectionStrategy : null;
+            if( requestAwareStrategy != null ) requestAwareStrategy.requestDispatched(endPoint, header);
+            
+            if ( responseFuture != null )
             {
-               // Wait for response
-               timeOut = timeOut - (System.currentTimeMillis() - startTime);
-               synchronized (future)
-               {
-                  try
-                  {
-                     response = (Message) future.getValue(timeOut);
-                  }
-                  catch (InterruptedException ie)
-                  {
-                     messagingManager.logWarning("Caught InterruptedException while waiting for a response to message with header "
-                           + header + ", dispatched on endpoint " + endPoint + ", " + endPoint.getDestination() + "!", ie);
-                     throw new ResponseTimeOutException("Interrupted while waiting for a response to message with header "
-                           + header + "!", ie);
-                  }
-                  finally
-                  {
-                     future.setCancelled(true);
-                  }
-               }
-
-               if ((response == null) || (response.isConsumed())) // Timeout
-               {
-                  if (messagingManager.isDebugMode())
-                  {
-                     messagingManager.logDebug("Timeout occurred while waiting for a response to message with header " + header
-                           + ", dispatched on endpoint " + endPoint + ", " + endPoint.getDestination() + "!");
-                  }
-                  throw new ResponseTimeOutException("Timeout occurred while waiting for a response to message with header " + header + "!");
-               }
-               else
+               if( requestAwareStrategy != null ) responseFuture.addListener(new RequestCompletionNotifier(requestAwareStrategy, endPoint));
+               
+               // Let the timer wheel of the messaging manager handle the response timeout
+               timeOut = Math.max(0, timeOut - (System.currentTimeMillis() - startTime));
+               responseFuture.setTimeout(messagingManager.getTimerWheel().schedule(new ResponseTimeOutTask(messageId, responseFuture), timeOut));
+            }
+            else if ( !asynch && !proxyMessage )
+            {
+               boolean responseReceived = false;
+               
+               try
                {
-                  if( response.getHeader().isAccessDeniedHeader() )
+                  // Wait for response
+                  timeOut = timeOut - (System.currentTimeMillis() - startTime);
+                  synchronized (future)
                   {
-                     String errorMessage = response.getHeader().getDescription();
-                     if( (errorMessage == null) || (errorMessage.trim().length() == 0) ) errorMessage = "";
-                     else errorMessage = " - " + errorMessage; 
-                     
-                     if (messagingManager.isDebugMode())
+                     try
                      {
-                        messagingManager.logDebug("Access denied response to message with header " + header + " received after " + (System.currentTimeMillis() - startTime) + " ms. Response header: " + response.getHeader() + ".");
+                        response = (Message) future.getValue(timeOut);
                      }
-                     
-                     throw new MessageDispatchFailedException("Access denied response for message with header " + header + errorMessage + ".", response.getHeader());
-                  }
-                  else if( response.getHeader().isMessageProcessingErrorHeader() )
-                  {
-                     String errorMessage = response.getHeader().getDescription();
-                     if( (errorMessage == null) || (errorMessage.trim().length() == 0) ) errorMessage = "";
-                     else errorMessage = " - " + errorMessage;
-                     
-                     if (messagingManager.isDebugMode())
+                     catch (InterruptedException ie)
                      {
-                        messagingManager.logDebug("Error occurred in remote message receiver while processing message with header " + header + errorMessage + ". Response received after " + (System.currentTimeMillis() - startTime) + " ms.");
+                        messagingManager.logWarning("Caught InterruptedException while waiting for a response to message with header "
+                              + header + ", dispatched on endpoint " + endPoint + ", " + endPoint.getDestination() + "!", ie);
+                        throw new ResponseTimeOutException("Interrupted while waiting for a response to message with header "
+                              + header + "!", ie);
+                     }
+                     finally
+                     {
+                        future.setCancelled(true);
                      }
-                     
-                     throw new MessageDispatchFailedException("Error occurred in remote message receiver while processing message with header " + header + " - " + errorMessage + ".", response.getHeader());
                   }
-                  else // Success
+   
+                  if ((response == null) || (response.isConsumed())) // Timeout
                   {
                      if (messagingManager.isDebugMode())
                      {
-                        if( response.getHeader().isAccessDeniedHeader() ) messagingManager.logDebug("Access denied response to message with header " + header + " received after " + (System.currentTimeMillis() - startTime) + " ms. Response header: " + response.getHeader() + ".");
-                        else messagingManager.logDebug("Response to message with header " + header + " received after " + (System.currentTimeMillis() - startTime) + " ms. Response header: " + response.getHeader() + ".");
+                        messagingManager.logDebug("Timeout occurred while waiting for a response to message with header " + header
+                              + ", dispatched on endpoint " + endPoint + ", " + endPoint.getDestination() + "!");
                      }
+                     throw new ResponseTimeOutException("Timeout occurred while waiting for a response to message with header " + header + "!");
+                  }
+                  else
+                  {
+                     responseReceived = true;
                      
-                     // Call initMessage to enable subclasses to perform optional message initialization before returning the message
-                     messagingManager.initResponseMessage(response);
+                     final MessagingException error = this.checkResponse(header, response, startTime);
+                     if( error != null ) throw error;
                   }
                }
+               finally
+               {
+                  if( requestAwareStrategy != null ) requestAwareStrategy.requestCompleted(endPoint, header, System.currentTimeMillis() - startTime, responseReceived);
+               }
             }
          }
          else
@@ -484,7 +671,7 @@ public class DefaultMessageDispatchHandler implements MessageDispatchHandler
       }
       finally
       {
-         if ( !asynch && !proxyMessage )
+         if ( !asynch && !proxyMessage && ((responseFuture == null) || !messageDispatched) )
          {
             // Remove ResponseMessage from map
             this.removeFuture(messageId);
@@ -493,4 +680,64 @@ public class DefaultMessageDispatchHandler implements MessageDispatchHandler
 
       return response;
    }
+   
+   
+   /**
+    * Timer wheel task for failing a response future when no response has been received within the response timeout.
+    */
+   private final class ResponseTimeOutTask implements Runnable
+   {
+      private final long messageId;
+      
+      private final ResponseFuture responseFuture;
+      
+      public ResponseTimeOutTask(final long messageId, final ResponseFuture responseFuture)
+      {
+         this.messageId = messageId;
+         this.responseFuture = responseFuture;
+      }
+      
+      public void run()
+      {
+         if( pendingSynchronousMessages.remove(this.messageId) != null )
+         {
+            final MessageHeader header = this.responseFuture.getRequestHeader();
+            
+            if (messagingManager.isDebugMode())
+            {
+               messagingManager.logDebug("Timeout occurred while waiting for a response to message with header " + header + "!");
+            }
+            
+            this.responseFuture.fail(new ResponseTimeOutException("Timeout occurred while waiting for a response to message with header " + header + "!"));
+         }
+      }
+   }
+   
+   
+   /**
+    * Response listener used for notifying a {@link RequestAwareEndPointSelectionStrategy} of the outcome of messages dispatched 
+    * with a response future.
+    */
+   private static final class RequestCompletionNotifier implements ResponseListener
+   {
+      private final RequestAwareEndPointSelectionStrategy requestAwareStrategy;
+      
+      private final MessagingEndPoint endPoint;
+      
+      public RequestCompletionNotifier(final RequestAwareEndPointSelectionStrategy requestAwareStrategy, final MessagingEndPoint endPoint)
+      {
+         this.requestAwareStrategy = requestAwareStrategy;
+         this.endPoint = endPoint;
+      }
+      
+      public void responseReceived(final ResponseFuture responseFuture, final Message response)
+      {
+         this.requestAwareStrategy.requestCompleted(this.endPoint, responseFuture.getRequestHeader(), System.currentTimeMillis() - responseFuture.getDispatchTime(), true);
+      }
+      
+      public void responseFailed(final ResponseFuture responseFuture, final MessagingException error)
+      {
+         this.requestAwareStrategy.requestCompleted(this.endPoint, responseFuture.getRequestHeader(), System.currentTimeMillis() - responseFuture.getDispatchTime(), false);
+      }
+   }
 }
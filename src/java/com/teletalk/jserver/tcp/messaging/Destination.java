@@ -29,6 +29,7 @@ import java.util.List;
 import com.teletalk.jserver.tcp.TcpEndPoint;
 import com.teletalk.jserver.tcp.TcpEndPointGroup;
 import com.teletalk.jserver.tcp.TcpEndPointIdentifier;
+import com.teletalk.jserver.tcp.messaging.codec.BodyCodec;
 import com.teletalk.jserver.util.StringUtils;
 
 /**
@@ -57,6 +58,36 @@ public class Destination extends TcpEndPointGroup
    
    /** @since 2.0 Build 757 */
    private int load;
+   
+   /** @since 2.2.1 */
+   private volatile BodyCodec bodyCodec;
+   
+   /** @since 2.2.1 */
+   private volatile boolean bodyCompressionSupported;
+   
+   /** @since 2.2.1 */
+   private volatile boolean typedRpcSupported;
+   
+   /** @since 2.2.1 */
+   private volatile boolean flowControlSupported;
+   
+   /** @since 2.2.1 */
+   private volatile int flowControlWindow;
+   
+   /** @since 2.2.1 */
+   private volatile FlowControlState flowControlState;
+   
+   /** The number of consecutive reconnect attempts scheduled for this destination. Guarded by the lock of this object. @since 2.2.1 */
+   private int reconnectAttempts = 0;
+   
+   /** Flag indicating if a reconnect is currently scheduled for this destination. Guarded by the lock of this object. @since 2.2.1 */
+   private boolean reconnectScheduled = false;
+   
+   /** Flag indicating if the full number of endpoints has been established to this destination. Guarded by the lock of this object. @since 2.2.1 */
+   private boolean capacityReached = false;
+   
+   /** The time when the number of linked endpoints last dropped below the full number of endpoints, or 0. Guarded by the lock of this object. @since 2.2.1 */
+   private long capacityLostTime = 0;
 	
 	/**
 	 * Creates a new Destination.
@@ -80,6 +111,10 @@ public class Destination extends TcpEndPointGroup
       this.allEndPointsDisconnected = false;
       
       this.load = -1;
+      
+      this.flowControlSupported = false;
+      this.flowControlWindow = 0;
+      this.flowControlState = new FlowControlState(0);
 	}
 
 	/**
@@ -101,6 +136,191 @@ public class Destination extends TcpEndPointGroup
 	{
 		this.clientId = clientId;
 	}
+   
+   /**
+    * Gets the {@link BodyCodec} that has been negotiated for encoding object message bodies sent to the remote messaging system, 
+    * i.e. the preferred codec of the local messaging system that is also supported by the remote messaging system.
+    * 
+    * @return the negotiated codec, or <code>null</code> if standard java serialization is to be used.
+    * 
+    * @since 2.2.1
+    */
+   public BodyCodec getBodyCodec()
+   {
+      return this.bodyCodec;
+   }
+   
+   /**
+    * Sets the {@link BodyCodec} that has been negotiated for encoding object message bodies sent to the remote messaging system.
+    * 
+    * @since 2.2.1
+    */
+   protected void setBodyCodec(final BodyCodec bodyCodec)
+   {
+      this.bodyCodec = bodyCodec;
+   }
+   
+   /**
+    * Checks if the remote messaging system is able to receive compressed message bodies.
+    * 
+    * @since 2.2.1
+    */
+   public boolean isBodyCompressionSupported()
+   {
+      return this.bodyCompressionSupported;
+   }
+   
+   /**
+    * Sets the flag indicating if the remote messaging system is able to receive compressed message bodies.
+    * 
+    * @since 2.2.1
+    */
+   protected void setBodyCompressionSupported(final boolean bodyCompressionSupported)
+   {
+      this.bodyCompressionSupported = bodyCompressionSupported;
+   }
+   
+   /**
+    * Checks if the remote messaging system is able to handle typed RPC calls, i.e. calls made through proxies created by 
+    * {@link com.teletalk.jserver.tcp.messaging.rpc.MessagingRpcInterface#createTypedProxy(Class, String, boolean)}.
+    * 
+    * @since 2.2.1
+    */
+   public boolean isTypedRpcSupported()
+   {
+      return this.typedRpcSupported;
+   }
+   
+   /**
+    * Sets the flag indicating if the remote messaging system is able to handle typed RPC calls.
+    * 
+    * @since 2.2.1
+    */
+   protected void setTypedRpcSupported(final boolean typedRpcSupported)
+   {
+      this.typedRpcSupported = typedRpcSupported;
+   }
+   
+   /**
+    * Checks if the remote messaging system supports credit based flow control, i.e. if it is able to receive flow control grants 
+    * from the local messaging system.
+    * 
+    * @since 2.2.1
+    */
+   public boolean isFlowControlSupported()
+   {
+      return this.flowControlSupported;
+   }
+   
+   /**
+    * Gets the flow control window of the remote messaging system, i.e. the maximum number of unprocessed messages that may be sent 
+    * to it. A value of 0 means that messages sent to the remote messaging system aren't flow controlled.
+    * 
+    * @since 2.2.1
+    */
+   public int getFlowControlWindow()
+   {
+      return this.flowControlWindow;
+   }
+   
+   /**
+    * Sets the flow control support flag and window of the remote messaging system.
+    * 
+    * @since 2.2.1
+    */
+   protected void setFlowControl(final boolean flowControlSupported, final int flowControlWindow)
+   {
+      this.flowControlSupported = flowControlSupported;
+      if( this.flowControlWindow != flowControlWindow )
+      {
+         this.flowControlWindow = flowControlWindow;
+         this.flowControlState.setWindow(flowControlWindow);
+      }
+   }
+   
+   /**
+    * Gets the number of messages that may currently be sent to the remote messaging system, as granted by the remote messaging 
+    * system, or -1 if messages sent to the remote messaging system aren't flow controlled.
+    * 
+    * @since 2.2.1
+    */
+   public long getFlowControlCredits()
+   {
+      return (this.flowControlWindow > 0) ? this.flowControlState.getCredits() : -1;
+   }
+   
+   /**
+    * Attempts to acquire a credit for sending a flow controlled message to the remote messaging system. 
+    * 
+    * @return <code>true</code> if a credit was acquired or if messages sent to the remote messaging system aren't flow controlled, 
+    * otherwise <code>false</code>.
+    * 
+    * @since 2.2.1
+    */
+   protected boolean tryAcquireFlowControlCredit()
+   {
+      return (this.flowControlWindow <= 0) || this.flowControlState.tryAcquire();
+   }
+   
+   /**
+    * Releases a credit acquired through {@link #tryAcquireFlowControlCredit()}, when the message couldn't be dispatched.
+    * 
+    * @since 2.2.1
+    */
+   protected void releaseFlowControlCredit()
+   {
+      if( this.flowControlWindow > 0 ) this.flowControlState.release();
+   }
+   
+   /**
+    * Waits a maximum of <code>timeout</code> milliseconds for flow control credits to be granted by the remote messaging system.
+    * 
+    * @since 2.2.1
+    */
+   protected void waitForFlowControlCredits(final long timeout) throws InterruptedException
+   {
+      if( this.flowControlWindow > 0 ) this.flowControlState.waitForCredits(timeout);
+   }
+   
+   /**
+    * Called when a flow control grant has been received from the remote messaging system.
+    * 
+    * @since 2.2.1
+    */
+   protected void flowControlCreditsGranted(final String grant)
+   {
+      this.flowControlState.creditsGranted(grant);
+   }
+   
+   /**
+    * Called when a flow controlled message received from the remote messaging system has been processed.
+    * 
+    * @param window the flow control window of the local messaging system.
+    * 
+    * @return <code>true</code> if a new grant should be dispatched to the remote messaging system.
+    * 
+    * @since 2.2.1
+    */
+   protected boolean flowControlledMessageCompleted(final int window)
+   {
+      return this.flowControlState.messageCompleted(window);
+   }
+   
+   /**
+    * Creates a flow control grant for the remote messaging system, if messages received from it have been processed since the 
+    * last grant was created (or if <code>force</code> is <code>true</code>).
+    * 
+    * @param window the flow control window of the local messaging system.
+    * 
+    * @return the grant, or <code>null</code> if no grant is pending.
+    * 
+    * @since 2.2.1
+    */
+   protected String createFlowControlGrant(final int window, final boolean force)
+   {
+      final FlowControlState state = this.flowControlState;
+      return (force || state.isGrantPending()) ? state.createGrant(window) : null;
+   }
 	
 	/**
 	 * Gets the unique id of the remote messaging system represented by this destination object.
@@ -210,6 +430,69 @@ public class Destination extends TcpEndPointGroup
 		this.connectingFirstEndPoint = connectingFirstEndPoint;
 	}
    
+   /**
+    * Marks that a reconnect is to be scheduled for this destination.
+    * 
+    * @return the number of consecutive reconnect attempts previously scheduled for this destination, or -1 if a reconnect is 
+    * already scheduled.
+    * 
+    * @since 2.2.1
+    */
+   synchronized int scheduleReconnect()
+   {
+      if( this.reconnectScheduled ) return -1;
+      this.reconnectScheduled = true;
+      return this.reconnectAttempts++;
+   }
+   
+   /**
+    * Marks that a scheduled reconnect has been started (or cancelled), which means that new reconnects may be scheduled.
+    * 
+    * @since 2.2.1
+    */
+   synchronized void reconnectStarted()
+   {
+      this.reconnectScheduled = false;
+   }
+   
+   /**
+    * Resets the number of consecutive reconnect attempts, called when an endpoint establishes a link to this destination.
+    * 
+    * @since 2.2.1
+    */
+   synchronized void resetReconnectAttempts()
+   {
+      this.reconnectAttempts = 0;
+   }
+   
+   /**
+    * Called when the number of linked endpoints in this destination drops below the full number of endpoints. Records the time when 
+    * the full capacity was lost, if it had previously been reached.
+    * 
+    * @since 2.2.1
+    */
+   synchronized void capacityLost()
+   {
+      if( this.capacityReached && (this.capacityLostTime == 0) ) this.capacityLostTime = System.currentTimeMillis();
+      this.capacityReached = false;
+   }
+   
+   /**
+    * Called when the full number of endpoints in this destination have established a link.
+    * 
+    * @return the time (ms) it took to restore the full number of endpoints since the capacity was lost, or -1 if the capacity 
+    * hadn't been lost (i.e. if the full capacity is reached for the first time).
+    * 
+    * @since 2.2.1
+    */
+   synchronized long capacityRestored()
+   {
+      final long restoreTime = (this.capacityLostTime > 0) ? (System.currentTimeMillis() - this.capacityLostTime) : -1;
+      this.capacityLostTime = 0;
+      this.capacityReached = true;
+      return restoreTime;
+   }
+   
    /**
     * Gets a string containing server name and address.
     * 
@@ -442,6 +725,12 @@ public class Destination extends TcpEndPointGroup
 			   description.append(", load: ");
 			   description.append(String.valueOf(this.load));
 			}
+			
+			if( this.flowControlWindow > 0 )
+			{
+			   description.append(", flow control credits: ");
+			   description.append(String.valueOf(this.getFlowControlCredits()));
+			}
 		   
 			if( !this.connectingFirstEndPoint )
 			{
@@ -481,6 +770,12 @@ public class Destination extends TcpEndPointGroup
    {
       super.endPointDisconnected(endPoint);
       
+      // Messages in transit on the endpoint may have been lost - start over with a new flow control state (the remote 
+      // messaging system will do the same). The latest grant epoch is carried over, so that stale grants still are ignored.
+      final FlowControlState oldFlowControlState = this.flowControlState;
+      this.flowControlState = new FlowControlState(this.flowControlWindow, oldFlowControlState.getLatestGrantEpoch());
+      oldFlowControlState.wakeUp();
+      
       synchronized(this) // For MessagingManager.performClientSideDestinationsCheck()...
       {
          this.notifyAll();
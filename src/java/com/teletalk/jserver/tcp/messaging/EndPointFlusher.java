@@ -0,0 +1,180 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.tcp.messaging;
+
+import java.util.LinkedList;
+import java.util.ListIterator;
+
+/**
+ * Thread class responsible for flushing the coalesced writes of endpoints when the write coalescing window has expired. When 
+ * write coalescing is enabled (see {@link MessagingManager#getWriteCoalescingWindow()}), asynchronous messages are written to the 
+ * output buffer of an endpoint without being flushed immediately. The first such message written to an endpoint will cause the endpoint 
+ * to be scheduled for flushing in this thread, which makes sure that the messages aren't delayed longer than the coalescing window.<br>
+ * <br>
+ * This thread is also used for dispatching flow control grants (see {@link #scheduleFlowControlGrant(MessagingEndPoint, String)}), 
+ * since the threads that create grants may not block waiting for an endpoint that is busy dispatching other messages.
+ * 
+ * @author Tobias Lfstrand
+ * 
+ * @since 2.2.1
+ */
+public class EndPointFlusher extends Thread
+{
+   /**
+    * Class representing a scheduled flush of an endpoint, or a flow control grant to be dispatched (and flushed) on an endpoint.
+    */
+   private static final class ScheduledFlush
+   {
+      final MessagingEndPoint endPoint;
+      final long flushTime;
+      final String flowControlGrant;
+      
+      ScheduledFlush(final MessagingEndPoint endPoint, final long flushTime, final String flowControlGrant)
+      {
+         this.endPoint = endPoint;
+         this.flushTime = flushTime;
+         this.flowControlGrant = flowControlGrant;
+      }
+   }
+   
+   
+   private final AbstractMessagingManager messagingManager;
+   
+   private final LinkedList scheduledFlushes; // ScheduledFlush objects, ordered by flush time
+   
+   private volatile boolean canRun = true;
+   
+   
+   /**
+    * Creates a new EndPointFlusher. The flusher is created as a daemon thread. 
+    * 
+    * @param messagingManager the messaging manager that owns this flusher.
+    */
+   public EndPointFlusher(final AbstractMessagingManager messagingManager)
+   {
+      super(messagingManager.getFullName() + ".EndPointFlusher");
+      super.setDaemon(true);
+      
+      this.messagingManager = messagingManager;
+      this.scheduledFlushes = new LinkedList();
+   }
+   
+   /**
+    * Schedules a flush of the specified endpoint.
+    * 
+    * @param endPoint the endpoint to flush.
+    * @param delay the time in milliseconds after which the endpoint is to be flushed.
+    */
+   public void scheduleFlush(final MessagingEndPoint endPoint, final long delay)
+   {
+      this.schedule(new ScheduledFlush(endPoint, System.currentTimeMillis() + delay, null));
+   }
+   
+   /**
+    * Schedules immediate dispatch of a flow control grant on the specified endpoint.
+    * 
+    * @param endPoint the endpoint to dispatch the grant on.
+    * @param grant the flow control grant.
+    * 
+    * @since 2.2.1
+    */
+   public void scheduleFlowControlGrant(final MessagingEndPoint endPoint, final String grant)
+   {
+      this.schedule(new ScheduledFlush(endPoint, System.currentTimeMillis(), grant));
+   }
+   
+   /**
+    * Internal method for scheduling a flush.
+    */
+   private void schedule(final ScheduledFlush scheduledFlush)
+   {
+      synchronized(this.scheduledFlushes)
+      {
+         // Find insertion point, starting at the end of the list (since the same delay normally is used for all flushes)
+         ListIterator it = this.scheduledFlushes.listIterator(this.scheduledFlushes.size());
+         while( it.hasPrevious() )
+         {
+            if( ((ScheduledFlush)it.previous()).flushTime <= scheduledFlush.flushTime )
+            {
+               it.next();
+               break;
+            }
+         }
+         it.add(scheduledFlush);
+         
+         // Wake up flusher thread if the new flush is the first in line
+         if( this.scheduledFlushes.getFirst() == scheduledFlush ) this.scheduledFlushes.notify();
+      }
+   }
+   
+   /**
+    * Stops this flusher. Any scheduled flushes that have not yet been performed are discarded.
+    */
+   public void shutDown()
+   {
+      this.canRun = false;
+      
+      synchronized(this.scheduledFlushes)
+      {
+         this.scheduledFlushes.clear();
+         this.scheduledFlushes.notify();
+      }
+   }
+   
+   /**
+    * The thread method of this flusher.
+    */
+   public void run()
+   {
+      ScheduledFlush scheduledFlush;
+      long waitTime;
+      
+      while(this.canRun)
+      {
+         try
+         {
+            scheduledFlush = null;
+            
+            synchronized(this.scheduledFlushes)
+            {
+               if( this.scheduledFlushes.isEmpty() ) this.scheduledFlushes.wait();
+               else
+               {
+                  waitTime = ((ScheduledFlush)this.scheduledFlushes.getFirst()).flushTime - System.currentTimeMillis();
+                  
+                  if( waitTime > 0 ) this.scheduledFlushes.wait(waitTime);
+                  else scheduledFlush = (ScheduledFlush)this.scheduledFlushes.removeFirst();
+               }
+            }
+            
+            // Perform flush outside of the lock on the scheduled flushes list, to avoid blocking dispatching threads  
+            if( scheduledFlush != null )
+            {
+               if( scheduledFlush.flowControlGrant != null ) scheduledFlush.endPoint.dispatchFlowControlGrant(scheduledFlush.flowControlGrant);
+               else scheduledFlush.endPoint.flushCoalescedWrites();
+            }
+         }
+         catch(InterruptedException ie)
+         {
+            if( this.canRun ) this.messagingManager.logWarning("EndPointFlusher interrupted!");
+         }
+         catch(Throwable t)
+         {
+            if( this.canRun ) this.messagingManager.logError("Error while flushing endpoint!", t);
+         }
+      }
+   }
+}
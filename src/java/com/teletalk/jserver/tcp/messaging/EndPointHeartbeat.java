@@ -0,0 +1,124 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.tcp.messaging;
+
+import com.teletalk.jserver.util.TimerWheel;
+
+/**
+ * Heartbeat task for a single {@link MessagingEndPoint}, executed in the heartbeat timer wheel of a {@link MessagingManager} (see 
+ * {@link MessagingManager#isHeartbeatSchedulingEnabled()}). Each time the task executes, it checks when the endpoint last sent or received 
+ * any data. Only if the endpoint has been idle for longer than the check interval of the messaging manager is the endpoint probed with 
+ * a header of the type {@link MessageHeader#ENDPOINT_CHECK_HEADER}, which means that endpoints carrying normal traffic are never probed. 
+ * The task then reschedules itself to execute when the endpoint would next become idle for a full check interval. The endpoint is only 
+ * probed if it can be claimed for dispatching without blocking (see {@link MessagingEndPoint#tryClaimDispatch()}); if another thread is 
+ * dispatching a message through the endpoint, the probe is skipped.<br>
+ * <br>
+ * A heartbeat is stopped when the endpoint is disconnected, through {@link MessagingEndPoint#stopHeartbeat()}.
+ * 
+ * @author Tobias Lfstrand
+ * 
+ * @since 2.2.1
+ */
+final class EndPointHeartbeat implements Runnable
+{
+   private final MessagingManager messagingManager;
+   
+   private final MessagingEndPoint endPoint;
+   
+   private volatile TimerWheel.Timeout timeout = null;
+   
+   
+   /**
+    * Creates a new EndPointHeartbeat.
+    */
+   EndPointHeartbeat(final MessagingManager messagingManager, final MessagingEndPoint endPoint)
+   {
+      this.messagingManager = messagingManager;
+      this.endPoint = endPoint;
+   }
+   
+   /**
+    * Schedules the next execution of this heartbeat.
+    * 
+    * @param delay the delay (ms) after which this heartbeat is to be executed.
+    */
+   void schedule(final long delay)
+   {
+      try
+      {
+         this.timeout = this.messagingManager.getEndPointTimerWheel().schedule(this, delay);
+         
+         // Make sure that the heartbeat wasn't stopped while being scheduled
+         if( this.endPoint.getHeartbeat() != this ) this.cancel();
+      }
+      catch(IllegalStateException ise){} // Timer wheel stopped
+   }
+   
+   /**
+    * Cancels the next execution of this heartbeat.
+    */
+   void cancel()
+   {
+      final TimerWheel.Timeout currentTimeout = this.timeout;
+      if( currentTimeout != null ) currentTimeout.cancel();
+   }
+   
+   /**
+    * Executes this heartbeat.
+    */
+   public void run()
+   {
+      if( (this.endPoint.getHeartbeat() != this) || !this.endPoint.isConnected() ) return;
+      
+      final long checkInterval = this.messagingManager.getCheckInteval();
+      final long idleTime = System.currentTimeMillis() - this.endPoint.getLastActivityTime();
+      
+      if( (idleTime < checkInterval) || !this.endPoint.tryClaimDispatch() )
+      {
+         // Traffic on the endpoint proves that it's alive - only perform the cheap checks, that don't require a lock on the endpoint
+         if( !this.endPoint.checkState() ) this.checkFailed();
+         else if( idleTime < checkInterval ) this.schedule(checkInterval - Math.max(0, idleTime));
+         else this.schedule(checkInterval);
+      }
+      else
+      {
+         boolean checkOk;
+         try
+         {
+            checkOk = this.endPoint.checkState() && this.endPoint.dispatchEndPointCheck();
+         }
+         finally
+         {
+            this.endPoint.releaseDispatchClaim();
+         }
+         
+         if( !checkOk ) this.checkFailed();
+         else this.schedule(checkInterval);
+      }
+   }
+   
+   /**
+    * Called when a check of the endpoint failed.
+    */
+   private void checkFailed()
+   {
+      if( this.endPoint.isConnected() )
+      {
+         this.messagingManager.logWarning("Endpoint (" + this.endPoint + ") failed heartbeat check!");
+         this.messagingManager.disconnectEndPoint(this.endPoint);
+      }
+   }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.tcp.messaging;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+
+/**
+ * Message writer implementation for sending a message body read from a file. If possible (i.e. if the body isn't compressed and the 
+ * socket of the endpoint is backed by a channel), the body is transferred directly from the file to the socket using 
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}, which avoids copying the data through user space. 
+ * Otherwise the body is streamed in the same way as by {@link InputStreamMessageWriter}. Note that the sockets created by the default 
+ * socket factories aren't backed by channels, so the direct transfer requires that the messaging manager is configured to use 
+ * {@link com.teletalk.jserver.tcp.NioSocketFactory} and {@link com.teletalk.jserver.tcp.NioServerSocketFactory}.<br>
+ * <br>
+ * The receiving side may write the body of the message straight to a file using {@link Message#transferBodyTo(FileChannel, long)}.
+ * 
+ * @author Tobias Lfstrand
+ * 
+ * @since 2.2.1
+ */
+public final class FileMessageWriter implements MessageWriter
+{
+   private final File file;
+   private final FileChannel fileChannel;
+   private final long position;
+   private final long bodyLength;
+   
+   /**
+    * Creates a new FileMessageWriter for writing the entire contents of the specified file. The file is opened when the 
+    * message is written and closed when the message has been written.
+    * 
+    * @param file the file to send.
+    */
+   public FileMessageWriter(final File file)
+   {
+      this.file = file;
+      this.fileChannel = null;
+      this.position = 0;
+      this.bodyLength = file.length();
+   }
+   
+   /**
+    * Creates a new FileMessageWriter for writing a region of the file associated with the specified channel. The channel is 
+    * not closed when the message has been written - this is the responsibility of the caller. The position of the channel is 
+    * not used or modified, unless the body must be streamed.
+    * 
+    * @param fileChannel the channel of the file to send.
+    * @param position the position in the file of the first byte to send.
+    * @param bodyLength the number of bytes to send.
+    */
+   public FileMessageWriter(final FileChannel fileChannel, final long position, final long bodyLength)
+   {
+      this.file = null;
+      this.fileChannel = fileChannel;
+      this.position = position;
+      this.bodyLength = bodyLength;
+   }
+   
+   /**
+    * Called to write a message (header and body) to an endpoint.
+    * 
+    * @param header the header of the message that is to be dispatched.
+    * @param endPoint the endpoint on which the message is to be dispatched on.
+    * @param endPointOutputStream the output stream of the endpoint on which the message is to be written to.
+    */
+   public void writeMessage(MessageHeader header, MessagingEndPoint endPoint, OutputStream endPointOutputStream) throws IOException
+   {
+      FileInputStream fileInputStream = null;
+      FileChannel channel = this.fileChannel;
+      
+      try
+      {
+         if( channel == null )
+         {
+            fileInputStream = new FileInputStream(this.file);
+            channel = fileInputStream.getChannel();
+         }
+         
+         header.setBodyLength(this.bodyLength);
+         // Compress the body if enabled for the destination
+         header.setBodyCompressed(endPoint.isBodyCompressionEnabled(this.bodyLength));
+         
+         // Write header
+         endPoint.dispatchHeader(header);
+         
+         if(endPoint.isDebugMode()) endPoint.logDebug("Sending file message (" + this.getDescription() + ") with header " + header + ".");
+         
+         if( endPoint.getDestination().getProtocolVersion() < 4 ) endPoint.resetObjectSerializer(true, true);
+         
+         // Transfer body
+         endPoint.writeFileBody(header, channel, this.position);
+         
+         if(endPoint.isDebugMode()) endPoint.logDebug("Done sending file message with header " + header + ".");
+      }
+      finally
+      {
+         if( fileInputStream != null ) fileInputStream.close();
+      }
+   }
+   
+   /**
+    * Gets a description of the message body (for debug).
+    */
+   public String getDescription()
+   {
+      if( this.file != null ) return "file: " + this.file + ", length: " + this.bodyLength;
+      else return "position: " + this.position + ", length: " + this.bodyLength;
+   }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.tcp.messaging;
+
+/**
+ * Credit based flow control state for a {@link Destination}, used both for limiting the number of messages sent to the remote 
+ * messaging system and for keeping track of the credits that the local messaging system has granted the remote messaging system.<br>
+ * <br>
+ * Credits are expressed as cumulative counters, which means that a lost or reordered grant never causes credits to be lost; a 
+ * grant simply sets the limit for the number of flow controlled messages that may be sent in total. A new FlowControlState object 
+ * (with a new epoch) is created for a destination whenever one of its endpoints is disconnected, since messages in transit on 
+ * that endpoint may then have been lost. Both the local and the remote messaging system start counting from zero again when this 
+ * happens, and grants created for an older epoch are only used by the sender until a grant for the new epoch is received. Grants 
+ * with an epoch older than the latest epoch seen by the sender (which is carried over to the new state of a destination) are ignored, 
+ * since they may arrive late through another endpoint.
+ * 
+ * @author Tobias Lfstrand
+ * 
+ * @since 2.2.1
+ */
+final class FlowControlState
+{
+   private static long epochCounter = System.currentTimeMillis();
+   
+   private final long epoch;
+   
+   /* Sender side */
+   
+   /** The number of flow controlled messages sent to the remote messaging system. */
+   private long sent = 0;
+   
+   /** The total number of flow controlled messages that may be sent to the remote messaging system. */
+   private long creditLimit;
+   
+   /** The epoch of the last grant received from the remote messaging system. */
+   private long grantEpoch = -1;
+   
+   /** The latest grant epoch received from the remote messaging system, in this or in a previous state. */
+   private long latestGrantEpoch;
+   
+   /* Receiver side */
+   
+   /** The number of flow controlled messages received from the remote messaging system that have been processed. */
+   private long completed = 0;
+   
+   /** The value of <code>completed</code> when the last grant was created. */
+   private long grantedCompleted = 0;
+   
+   /**
+    * Creates a new FlowControlState.
+    * 
+    * @param window the flow control window of the remote messaging system, i.e. the initial number of credits.
+    */
+   FlowControlState(final int window)
+   {
+      this(window, -1);
+   }
+   
+   /**
+    * Creates a new FlowControlState, replacing a previous state.
+    * 
+    * @param window the flow control window of the remote messaging system, i.e. the initial number of credits.
+    * @param latestGrantEpoch the latest grant epoch received in the previous state (see {@link #getLatestGrantEpoch()}).
+    */
+   FlowControlState(final int window, final long latestGrantEpoch)
+   {
+      synchronized(FlowControlState.class)
+      {
+         this.epoch = epochCounter++;
+      }
+      this.creditLimit = window;
+      this.latestGrantEpoch = latestGrantEpoch;
+   }
+   
+   /**
+    * Gets the latest grant epoch received from the remote messaging system, in this or in a previous state.
+    */
+   synchronized long getLatestGrantEpoch()
+   {
+      return this.latestGrantEpoch;
+   }
+   
+   /**
+    * Sets the flow control window of the remote messaging system, which is used as credit limit until a grant has been received.
+    */
+   synchronized void setWindow(final int window)
+   {
+      if( this.grantEpoch == -1 )
+      {
+         this.creditLimit = window;
+         this.notifyAll();
+      }
+   }
+   
+   /**
+    * Gets the number of messages that may currently be sent to the remote messaging system.
+    */
+   synchronized long getCredits()
+   {
+      return Math.max(0, this.creditLimit - this.sent);
+   }
+   
+   /**
+    * Attempts to acquire a credit for sending a message to the remote messaging system.
+    * 
+    * @return <code>true</code> if a credit was acquired, otherwise <code>false</code>.
+    */
+   synchronized boolean tryAcquire()
+   {
+      if( this.sent < this.creditLimit )
+      {
+         this.sent++;
+         return true;
+      }
+      else return false;
+   }
+   
+   /**
+    * Releases a credit acquired through {@link #tryAcquire()}, when the message couldn't be dispatched.
+    */
+   synchronized void release()
+   {
+      if( this.sent > 0 ) this.sent--;
+      this.notifyAll();
+   }
+   
+   /**
+    * Waits a maximum of <code>timeout</code> milliseconds for credits to become available.
+    */
+   synchronized void waitForCredits(final long timeout) throws InterruptedException
+   {
+      if( (this.sent >= this.creditLimit) && (timeout > 0) ) this.wait(timeout);
+   }
+   
+   /**
+    * Wakes up all threads waiting for credits, for instance when this state has been replaced by a new one.
+    */
+   synchronized void wakeUp()
+   {
+      this.notifyAll();
+   }
+   
+   /**
+    * Called when a grant has been received from the remote messaging system. Grants with an epoch older than the latest received 
+    * epoch are ignored. 
+    * 
+    * @param grantEpoch the epoch of the flow control state of the remote messaging system.
+    * @param grantedLimit the total number of flow controlled messages that may be sent.
+    * 
+    * @return <code>false</code> if the grant was ignored because it was stale.
+    */
+   synchronized boolean creditsGranted(final long grantEpoch, final long grantedLimit)
+   {
+      if( grantEpoch < this.latestGrantEpoch ) return false;
+      this.latestGrantEpoch = grantEpoch;
+      
+      if( grantEpoch != this.grantEpoch )
+      {
+         this.grantEpoch = grantEpoch;
+         this.creditLimit = grantedLimit;
+      }
+      else if( grantedLimit > this.creditLimit ) this.creditLimit = grantedLimit;
+      
+      this.notifyAll();
+      return true;
+   }
+   
+   /**
+    * Called when a flow controlled message received from the remote messaging system has been processed.
+    * 
+    * @param window the flow control window of the local messaging system.
+    * 
+    * @return <code>true</code> if enough messages have been processed since the last grant to warrant dispatching a new grant 
+    * to the remote messaging system (i.e. at least half the window). 
+    */
+   synchronized boolean messageCompleted(final int window)
+   {
+      this.completed++;
+      return (this.completed - this.grantedCompleted) >= Math.max(1, window / 2);
+   }
+   
+   /**
+    * Checks if messages have been processed since the last grant was created. 
+    */
+   synchronized boolean isGrantPending()
+   {
+      return this.completed > this.grantedCompleted;
+   }
+   
+   /**
+    * Creates a grant for the remote messaging system. The grant is a string containing the epoch of this state and the total 
+    * number of flow controlled messages that the remote messaging system may send.
+    * 
+    * @param window the flow control window of the local messaging system.
+    */
+   synchronized String createGrant(final int window)
+   {
+      this.grantedCompleted = this.completed;
+      return this.epoch + ":" + (this.completed + window);
+   }
+   
+   /**
+    * Parses a grant created by {@link #createGrant(int)} and updates this state with it.
+    * 
+    * @return <code>true</code> if the grant was valid and not stale.
+    */
+   boolean creditsGranted(final String grant)
+   {
+      final int separatorIndex = (grant != null) ? grant.indexOf(':') : -1;
+      if( separatorIndex > 0 )
+      {
+         try
+         {
+            return this.creditsGranted(Long.parseLong(grant.substring(0, separatorIndex)), Long.parseLong(grant.substring(separatorIndex + 1)));
+         }
+         catch(NumberFormatException nfe){}
+      }
+      return false;
+   }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.tcp.messaging;
+
+
+/**
+ * Extension of {@link MessageDispatchHandler} for handlers that are able to dispatch messages without blocking while waiting 
+ * for the response. If the message dispatch handler of a {@link MessagingManager} doesn't implement this interface, messages 
+ * dispatched through the <code>dispatchMessageWithFuture</code> methods are dispatched synchronously, using 
+ * {@link MessageDispatchHandler#dispatchMessage(MessageHeader, MessageWriter, MessageDispatcherProperties, boolean)}.
+ * 
+ * @author Tobias Lfstrand
+ * 
+ * @since 2.2.1
+ */
+public interface FutureMessageDispatchHandler extends MessageDispatchHandler
+{
+   /**
+    * Dispatches a message without waiting for the response. This method returns as soon as the message has been dispatched 
+    * (or the dispatch has failed), and the response, or the error, is delivered through the returned {@link ResponseFuture}. 
+    * Implementations must make sure that the returned future always is completed, i.e. that it is failed with a 
+    * {@link ResponseTimeOutException} if no response is received within the response timeout.
+    * 
+    * @param header the header of the message to be dispatched.
+    * @param messageDispatchImpl the implementation to be used for dispatching the message body.
+    * @param messageDispatcherProperties a {@link MessageDispatcherProperties} object containing properties for message dispatch.
+    * @param listener an optional listener to be notified when the response future is completed.
+    * 
+    * @return a response future.
+    */
+   public ResponseFuture dispatchMessageWithFuture(MessageHeader header, MessageWriter messageDispatchImpl, 
+         MessageDispatcherProperties messageDispatcherProperties, ResponseListener listener);
+}
@@ -0,0 +1,1174 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.tcp.messaging;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Endpoint selection strategy that avoids a global lock and linear destination scans on the dispatch path.<br>
+ * <br>
+ * Destinations are looked up through an index that maps named receivers and meta data key/value pairs to destinations. The 
+ * index is an immutable snapshot that is rebuilt lazily (on the next selection) whenever the associated MessagingManager 
+ * reports that destinations or destination meta data have changed (see {@link #destinationsChanged()}), or when an endpoint 
+ * becomes ready in a previously unknown destination. Ready endpoints are kept in small per-destination pools, each with its own 
+ * monitor, which means that selecting an endpoint only locks the pool of the destination the endpoint is taken from. The pool of 
+ * a destination is discarded when the last endpoint in it is destroyed.<br>
+ * <br>
+ * When several destinations match, the endpoint is taken from the destination with the lowest load or, if not all destinations 
+ * report load or several destinations have the same load, the destination containing the endpoint that has been ready for the 
+ * longest time (as in {@link DefaultEndPointSelectionStrategy}). For each index entry that is used to select among several 
+ * destinations, the destinations with ready endpoints are kept ordered by these criteria. The orderings are updated when endpoints 
+ * are added to or taken from the pools, and when the load of a destination is updated (see 
+ * {@link #destinationMetaDataUpdated(Destination, HashMap)}), which means that selecting the destination doesn't require a scan 
+ * of the matching destinations. For meta data lookups that aren't served by a single index entry, the first destination to try 
+ * is selected by {@link #selectFirstCandidate(Destination[])}, and the following destinations are tried in order.<br>
+ * <br>
+ * Meta data lookups are only served from the index when the MessagingManager uses the default 
+ * {@link AbstractMessagingManager.ReceiverNameMetaDataValueMatcher}, and the specified meta data contains only non-null keys 
+ * and values, and not the load of the destinations. Other lookups fall back to {@link MessagingManager#getDestinations(Map)}.<br>
+ * <br>
+ * Threads waiting for an endpoint to become ready wait on a separate monitor, which is only notified by 
+ * {@link #endPointReady(MessagingEndPoint)} when there actually are waiting threads.<br>
+ * <br>
+ * Endpoint multiplexing (see {@link MessagingManager#isEndPointMultiplexingEnabled()}) is supported in the same way as in 
+ * {@link DefaultEndPointSelectionStrategy}.
+ * 
+ * @author Tobias Lfstrand
+ * 
+ * @since 2.2.1
+ */
+public class IndexedEndPointSelectionStrategy implements EndPointSelectionStrategy
+{
+   private static final Destination[] NO_DESTINATIONS = new Destination[0];
+   
+   /** Orders destinations by load, then by the ready time of their first endpoint. */
+   private static final Comparator LOAD_ORDER = new Comparator()
+   {
+      public int compare(final Object o1, final Object o2)
+      {
+         final OrderingEntry e1 = (OrderingEntry)o1;
+         final OrderingEntry e2 = (OrderingEntry)o2;
+         
+         if( e1.load != e2.load ) return (e1.load < e2.load) ? -1 : 1;
+         else return READY_TIME_ORDER.compare(o1, o2);
+      }
+   };
+   
+   /** Orders destinations by the ready time of their first endpoint. */
+   private static final Comparator READY_TIME_ORDER = new Comparator()
+   {
+      public int compare(final Object o1, final Object o2)
+      {
+         final OrderingEntry e1 = (OrderingEntry)o1;
+         final OrderingEntry e2 = (OrderingEntry)o2;
+         
+         if( e1.readyTime != e2.readyTime ) return (e1.readyTime < e2.readyTime) ? -1 : 1;
+         else return e1.order - e2.order;
+      }
+   };
+   
+   /** Lock used when rebuilding the destination index. */
+   private final Object indexLock = new Object();
+   
+   /** Lock used when updating the destinations version. Never held while acquiring any other lock. */
+   private final Object versionLock = new Object();
+   
+   /** Lock used when creating new endpoint pools. */
+   private final Object endPointPoolsLock = new Object();
+   
+   /** Monitor used by threads waiting for an endpoint to become ready. */
+   private final Object waitLock = new Object();
+   
+   private volatile DestinationIndex destinationIndex = null;
+   
+   private volatile int destinationsVersion = 0;
+   
+   /** Copy on write map of destination keys and EndPointPool objects. */
+   private volatile HashMap endPointPools = new HashMap();
+   
+   private volatile int waitingThreads = 0;
+   
+   private volatile boolean enabled = true;
+   
+   private final boolean orderDestinations;
+   
+   private MessagingManager messagingManager;
+   
+   
+   /**
+    * Creates a new IndexedEndPointSelectionStrategy. Note that this object will be in an inconsistent state until setMessagingManager is called.
+    */
+   public IndexedEndPointSelectionStrategy()
+   {
+      this(true);
+   }
+   
+   /**
+    * Creates a new IndexedEndPointSelectionStrategy. Note that this object will be in an inconsistent state until setMessagingManager is called.
+    * 
+    * @param orderDestinations <code>true</code> if the destinations of index entries should be kept ordered by load and ready time, 
+    * <code>false</code> if {@link #selectFirstCandidate(Destination[])} should be used for all selections among several destinations. 
+    * Subclasses that override selectFirstCandidate to implement other load balancing schemes should specify <code>false</code>.
+    */
+   protected IndexedEndPointSelectionStrategy(final boolean orderDestinations)
+   {
+      this.orderDestinations = orderDestinations;
+   }
+
+   /**
+    * Sets the messaging manager associated with this strategy.
+    */
+   public void setMessagingManager(MessagingManager messagingManager)
+   {
+      this.messagingManager = messagingManager;
+      this.destinationsChanged();
+   }
+
+   /**
+    * Enables this EndPointSelectionStrategy.
+    */
+   public void initialize()
+   {
+      this.enabled = true;
+      this.destinationsChanged();
+   }
+
+   /**
+    * Disables this EndPointSelectionStrategy.
+    */
+   public void shutDown()
+   {
+      this.enabled = false;
+      
+      synchronized (this.endPointPoolsLock)
+      {
+         this.endPointPools = new HashMap();
+      }
+      this.destinationIndex = null;
+      
+      synchronized (this.waitLock)
+      {
+         this.waitLock.notifyAll();
+      }
+   }
+   
+   /**
+    * Called by the associated MessagingManager when a destination has been destroyed or when the meta data of a destination has 
+    * been updated. This method invalidates the current destination index, which will be rebuilt during the next endpoint selection.<br>
+    * <br>
+    * Note: Since this method may be called while holding a lock on {@link MessagingManager#getEndpointGroupsLock()}, it only 
+    * updates a version counter and notifies waiting threads, if any.
+    */
+   public void destinationsChanged()
+   {
+      synchronized (this.versionLock)
+      {
+         this.destinationsVersion++;
+      }
+      
+      this.notifyWaitingThreads();
+   }
+   
+   /**
+    * Called by the associated MessagingManager when the meta data of a destination has been updated. If only the load of the 
+    * destination has changed, the destination is repositioned in the orderings used for selecting among several destinations. 
+    * Otherwise the destination index is invalidated (see {@link #destinationsChanged()}).<br>
+    * <br>
+    * Note: Since this method may be called while holding a lock on {@link MessagingManager#getEndpointGroupsLock()}, it never 
+    * locks the pools of the destinations.
+    * 
+    * @param destination the destination whose meta data was updated.
+    * @param previousDestinationMetaData the meta data of the destination before the update, or <code>null</code> if unknown.
+    */
+   public void destinationMetaDataUpdated(final Destination destination, final HashMap previousDestinationMetaData)
+   {
+      final DestinationIndex index = this.destinationIndex;
+      
+      if( (index != null) && (index.version == this.destinationsVersion) 
+            && isLoadUpdate(previousDestinationMetaData, destination.getDestinationMetaData()) )
+      {
+         index.loadUpdated(destination);
+      }
+      else this.destinationsChanged();
+   }
+   
+   /**
+    * Checks if the only difference between the specified meta data maps is the value of the load.
+    */
+   private static boolean isLoadUpdate(final HashMap previousMetaData, final HashMap metaData)
+   {
+      if( (previousMetaData == null) || (metaData == null) || (previousMetaData.size() != metaData.size()) ) return false;
+      
+      Map.Entry entry;
+      Object previousValue;
+      
+      for(Iterator it = metaData.entrySet().iterator(); it.hasNext(); )
+      {
+         entry = (Map.Entry)it.next();
+         
+         if( !previousMetaData.containsKey(entry.getKey()) ) return false;
+         if( MessagingManager.SERVER_LOAD_METADATA_KEY.equals(entry.getKey()) ) continue;
+         
+         previousValue = previousMetaData.get(entry.getKey());
+         if( (entry.getValue() != null) ? !entry.getValue().equals(previousValue) : (previousValue != null) ) return false;
+      }
+      
+      return true;
+   }
+
+   /**
+    * Called when an endpoint is marked as available for message dispapatch.<br>
+    * <br>
+    * Note: This method must never be called with a lock held on {@link MessagingManager#getEndpointGroupsLock()}.
+    */
+   public void endPointReady(final MessagingEndPoint endPoint)
+   {
+      if (endPoint == null) return;
+      
+      endPoint.setLastReadyTime(System.currentTimeMillis());
+      
+      final Destination destination = endPoint.getDestination();
+
+      if (destination != null)
+      {
+         // Retry if the pool was discarded (by endPointDestroyed) before the endpoint could be added to it
+         while( !this.getEndPointPool(destination, true).add(endPoint) );
+         
+         this.notifyWaitingThreads();
+      }
+   }
+
+   /**
+    * Called when an endpoint is destroyed and can no longer be used for dispatching messages.<br>
+    * <br>
+    * Note: This method must never be called with a lock held on {@link MessagingManager#getEndpointGroupsLock()}.
+    */
+   public void endPointDestroyed(final MessagingEndPoint endPoint)
+   {
+      if (endPoint == null) return;
+
+      final Destination destination = endPoint.getDestination();
+
+      if (destination != null)
+      {
+         final EndPointPool endPointPool = this.getEndPointPool(destination, false);
+         
+         if( endPointPool != null ) 
+         {
+            endPointPool.remove(endPoint);
+            
+            // Discard the pool of the destination if it has become empty
+            synchronized (this.endPointPoolsLock)
+            {
+               if( (this.endPointPools.get(destination.getKey()) == endPointPool) && endPointPool.discardIfEmpty() )
+               {
+                  final HashMap newEndPointPools = new HashMap(this.endPointPools);
+                  newEndPointPools.remove(destination.getKey());
+                  this.endPointPools = newEndPointPools;
+               }
+            }
+         }
+      }
+   }
+
+   /**
+    * Gets the first available endpoint. This method will wait a maximum of <code>timeOut</code> milliseconds for an
+    * available endpoint.<br>
+    * <br>
+    * Note: This method must never be called with a lock held on {@link MessagingManager#getEndpointGroupsLock()}.
+    */
+   public MessagingEndPoint getEndPoint(final long timeOut) throws InterruptedException
+   {
+      return this.getEndPointInternal(null, null, null, timeOut);
+   }
+
+   /**
+    * Gets the first available endpoint for the specified destination. This method will wait a maximum of
+    * <code>timeOut</code> milliseconds for an available endpoint.<br>
+    * <br>
+    * Note: This method must never be called with a lock held on {@link MessagingManager#getEndpointGroupsLock()}.
+    */
+   public MessagingEndPoint getEndPoint(final Destination destination, final long timeOut) throws InterruptedException
+   {
+      if (destination == null) return null;
+      
+      return this.getEndPointInternal(destination, null, null, timeOut);
+   }
+
+   /**
+    * Gets the first available endpoint for the specified named receiver. This method will wait a maximum of
+    * <code>timeOut</code> milliseconds for an available endpoint.<br>
+    * <br>
+    * Note: This method must never be called with a lock held on {@link MessagingManager#getEndpointGroupsLock()}.
+    */
+   public MessagingEndPoint getEndPoint(final String namedReceiver, final long timeOut) throws InterruptedException
+   {
+      return this.getEndPointInternal(null, namedReceiver, null, timeOut);
+   }
+
+   /**
+    * Gets the first available endpoint for the specified metadata. This method will wait a maximum of
+    * <code>timeOut</code> milliseconds for an available endpoint.<br>
+    * <br>
+    * Note: This method must never be called with a lock held on {@link MessagingManager#getEndpointGroupsLock()}.
+    */
+   public MessagingEndPoint getEndPoint(final Map metaData, final long timeOut) throws InterruptedException
+   {
+      return this.getEndPointInternal(null, null, metaData, timeOut);
+   }
+   
+   /**
+    * Checks if endpoint multiplexing is enabled in the associated MessagingManager.
+    */
+   private boolean isMultiplexingEnabled()
+   {
+      return (this.messagingManager != null) && this.messagingManager.isEndPointMultiplexingEnabled();
+   }
+   
+   /**
+    * Notifies threads waiting for an endpoint, if there are any.
+    */
+   private void notifyWaitingThreads()
+   {
+      if( this.waitingThreads > 0 )
+      {
+         synchronized (this.waitLock)
+         {
+            this.waitLock.notifyAll();
+         }
+      }
+   }
+   
+   /**
+    * Gets the endpoint pool for the specified destination, optionally creating it if it doesn't exist.
+    */
+   private EndPointPool getEndPointPool(final Destination destination, final boolean create)
+   {
+      final String destinationKey = destination.getKey();
+      EndPointPool endPointPool = (EndPointPool)this.endPointPools.get(destinationKey);
+      
+      if( ((endPointPool == null) || endPointPool.isDiscarded()) && create )
+      {
+         synchronized (this.endPointPoolsLock)
+         {
+            endPointPool = (EndPointPool)this.endPointPools.get(destinationKey);
+            
+            if( (endPointPool == null) || endPointPool.isDiscarded() )
+            {
+               endPointPool = new EndPointPool(destinationKey);
+               
+               final HashMap newEndPointPools = new HashMap(this.endPointPools);
+               newEndPointPools.put(destinationKey, endPointPool);
+               this.endPointPools = newEndPointPools;
+            }
+         }
+         
+         // Endpoint ready in a new destination - make sure the index is rebuilt
+         synchronized (this.versionLock)
+         {
+            this.destinationsVersion++;
+         }
+      }
+      
+      return endPointPool;
+   }
+   
+   /**
+    * Gets the current destination index, rebuilding it if it is out of date.
+    */
+   private DestinationIndex getDestinationIndex()
+   {
+      final int version = this.destinationsVersion;
+      DestinationIndex index = this.destinationIndex;
+      
+      if( (index == null) || (index.version != version) )
+      {
+         synchronized (this.indexLock)
+         {
+            index = this.destinationIndex;
+            
+            if( (index == null) || (index.version != this.destinationsVersion) )
+            {
+               // Read the version before reading the destinations, so that any concurrent change will cause another rebuild 
+               index = new DestinationIndex(this.destinationsVersion, this.messagingManager.getDestinations());
+               this.destinationIndex = index;
+            }
+         }
+      }
+      
+      return index;
+   }
+   
+   /**
+    * Gets the ordering of the specified destinations, which must be an entry in the specified index. The ordering is created, and 
+    * registered with the pools of the destinations, the first time it is needed. <code>null</code> is returned if the destinations 
+    * aren't an index entry.
+    */
+   private DestinationOrdering getDestinationOrdering(final DestinationIndex index, final Destination[] destinations)
+   {
+      DestinationOrdering ordering = (DestinationOrdering)index.orderings.get(destinations);
+      
+      if( (ordering == null) && index.isIndexEntry(destinations) )
+      {
+         synchronized (index)
+         {
+            ordering = (DestinationOrdering)index.orderings.get(destinations);
+            
+            if( ordering == null )
+            {
+               ordering = new DestinationOrdering(destinations);
+               
+               // Register the ordering with the existing pools, which will keep it up to date from now on
+               final HashMap currentEndPointPools = this.endPointPools;
+               EndPointPool endPointPool;
+               for(int i=0; i<destinations.length; i++)
+               {
+                  endPointPool = (EndPointPool)currentEndPointPools.get(destinations[i].getKey());
+                  if( endPointPool != null ) endPointPool.addOrdering(index, ordering);
+               }
+               
+               index.addOrdering(destinations, ordering);
+            }
+         }
+      }
+      
+      return ordering;
+   }
+   
+   /**
+    * Internal method for getting an endpoint.
+    */
+   private MessagingEndPoint getEndPointInternal(final Destination destination, final String namedReceiver, final Map metaData, final long timeOut)
+         throws InterruptedException
+   {
+      MessagingEndPoint endPoint = this.selectEndPoint(destination, namedReceiver, metaData);
+      
+      if( (endPoint == null) && (timeOut > 0) && this.enabled )
+      {
+         final long beginWait = System.currentTimeMillis();
+         long waitTime;
+         
+         synchronized (this.waitLock)
+         {
+            this.waitingThreads++;
+            try
+            {
+               // Selection is retried after waitingThreads has been incremented, to make sure that no notification is missed
+               while( this.enabled && ((endPoint = this.selectEndPoint(destination, namedReceiver, metaData)) == null) )
+               {
+                  waitTime = timeOut - (System.currentTimeMillis() - beginWait);
+                  
+                  if( waitTime <= 0 ) break;
+                  
+                  this.waitLock.wait(waitTime);
+               }
+            }
+            finally
+            {
+               this.waitingThreads--;
+            }
+         }
+      }
+      
+      return endPoint;
+   }
+   
+   /**
+    * Attempts to select an endpoint without waiting.
+    */
+   private MessagingEndPoint selectEndPoint(final Destination destination, final String namedReceiver, final Map metaData)
+   {
+      if( !this.enabled ) return null;
+      
+      final boolean multiplexingEnabled = this.isMultiplexingEnabled();
+      
+      if( destination != null ) // If a specific destination was requested...
+      {
+         final EndPointPool endPointPool = this.getEndPointPool(destination, false);
+         
+         return (endPointPool != null) ? endPointPool.take(multiplexingEnabled) : null;
+      }
+      
+      final DestinationIndex index = this.getDestinationIndex();
+      Destination[] destinations;
+      boolean filterProxies = false;
+      
+      if( namedReceiver != null )
+      {
+         destinations = index.getDestinations(namedReceiver);
+         filterProxies = !this.messagingManager.getUseProxiedMessageReceivers();
+      }
+      else if( metaData != null )
+      {
+         if( (this.messagingManager.getMetaDataMatcher().getClass() == AbstractMessagingManager.ReceiverNameMetaDataValueMatcher.class) 
+               && DestinationIndex.isIndexable(metaData) )
+         {
+            destinations = index.getDestinations(metaData);
+            filterProxies = !this.messagingManager.getUseProxiedMessageReceivers();
+         }
+         else destinations = this.messagingManager.getDestinations(metaData);
+      }
+      else destinations = index.allDestinations;
+      
+      if( filterProxies ) destinations = index.filterProxies(destinations);
+      
+      if( (destinations == null) || (destinations.length == 0) ) return null;
+      
+      final HashMap currentEndPointPools = this.endPointPools;
+      int offset = 0;
+      Destination candidate;
+      EndPointPool endPointPool;
+      MessagingEndPoint endPoint;
+      
+      if( destinations.length > 1 )
+      {
+         final DestinationOrdering ordering = this.orderDestinations ? this.getDestinationOrdering(index, destinations) : null;
+         
+         if( ordering != null )
+         {
+            candidate = ordering.first();
+            if( candidate == null ) return null; // No ready endpoints in any of the destinations
+            
+            endPointPool = (EndPointPool)currentEndPointPools.get(candidate.getKey());
+            if( endPointPool != null )
+            {
+               endPoint = endPointPool.take(multiplexingEnabled);
+               if( endPoint != null ) return endPoint;
+            }
+            // The ordering was changed concurrently - fall back to trying the destinations in order
+         }
+         else offset = this.selectFirstCandidate(destinations);
+      }
+      
+      for(int i=0; i<destinations.length; i++)
+      {
+         candidate = destinations[(offset + i) % destinations.length];
+         
+         endPointPool = (EndPointPool)currentEndPointPools.get(candidate.getKey());
+         
+         if( endPointPool != null )
+         {
+            endPoint = endPointPool.take(multiplexingEnabled);
+            if( endPoint != null ) return endPoint;
+         }
+      }
+      
+      return null;
+   }
+   
+   
+   /**
+    * Selects the index of the destination that should be tried first when selecting an endpoint among several matching 
+    * destinations, for lookups that aren't served by a single index entry (for which the destinations are kept ordered, unless 
+    * disabled through {@link #IndexedEndPointSelectionStrategy(boolean)}). If the selected destination has no ready endpoint, the 
+    * following destinations are tried in order. This 
+    * implementation selects the destination with the lowest load or, if not all destinations report load (see 
+    * {@link Destination#getLoad()}) or several destinations have the lowest load, the destination containing the endpoint 
+    * with the oldest lastReadyTime. Subclasses may override this method to implement other load balancing schemes (in which case 
+    * the ordering of destinations should be disabled).
+    * 
+    * @param destinations the matching destinations (at least two).
+    * 
+    * @return an index in the specified array.
+    */
+   protected int selectFirstCandidate(final Destination[] destinations)
+   {
+      int selected = -1;
+      int lowestLoad = Integer.MAX_VALUE;
+      boolean allDestinationsHaveLoad = true;
+      boolean sameLoadDestinations = false;
+      int tmpLoad;
+      
+      // Get destination with lowest load
+      for(int i=0; i<destinations.length; i++)
+      {
+         tmpLoad = destinations[i].getLoad();
+         if( tmpLoad < 0 )
+         {
+            allDestinationsHaveLoad = false;
+            break;
+         }
+         else if( tmpLoad == lowestLoad ) sameLoadDestinations = true;
+         else if( tmpLoad < lowestLoad )
+         {
+            lowestLoad = tmpLoad;
+            selected = i;
+            sameLoadDestinations = false;
+         }
+      }
+      
+      if( allDestinationsHaveLoad && (selected >= 0) && !sameLoadDestinations ) return selected;
+      
+      // Get destination (among the ones with the lowest load, if all destinations have load) containing endpoint with lowest lastReadyTime
+      final HashMap currentEndPointPools = this.endPointPools;
+      long oldestEndPointReadyTime = Long.MAX_VALUE;
+      long endPointReadyTime;
+      EndPointPool endPointPool;
+      
+      if( selected < 0 ) selected = 0;
+      
+      for(int i=0; i<destinations.length; i++)
+      {
+         if( allDestinationsHaveLoad && (destinations[i].getLoad() != lowestLoad) ) continue;
+         
+         endPointPool = (EndPointPool)currentEndPointPools.get(destinations[i].getKey());
+         if( endPointPool != null )
+         {
+            endPointReadyTime = endPointPool.getFirstEndPointReadyTime();
+            
+            if( endPointReadyTime < oldestEndPointReadyTime )
+            {
+               oldestEndPointReadyTime = endPointReadyTime;
+               selected = i;
+            }
+         }
+      }
+      
+      return selected;
+   }
+   
+   
+   /**
+    * Pool of ready endpoints in a single destination. The pool updates the orderings that the destination is part of whenever its 
+    * first endpoint changes.
+    */
+   private static final class EndPointPool
+   {
+      private final String destinationKey;
+      
+      private final ArrayList endPoints = new ArrayList(4);
+      
+      private boolean discarded = false;
+      
+      /** The index that the orderings belong to. */
+      private DestinationIndex orderingsIndex = null;
+      
+      private final ArrayList orderings = new ArrayList(2);
+      
+      EndPointPool(final String destinationKey)
+      {
+         this.destinationKey = destinationKey;
+      }
+      
+      /**
+       * Adds an endpoint to this pool. Returns false if this pool has been discarded.
+       */
+      synchronized boolean add(final MessagingEndPoint endPoint)
+      {
+         if( this.discarded ) return false;
+         
+         if( !this.endPoints.contains(endPoint) )
+         {
+            this.endPoints.add(endPoint);
+            if( this.endPoints.size() == 1 ) this.updateOrderings();
+         }
+         return true;
+      }
+      
+      synchronized void remove(final MessagingEndPoint endPoint)
+      {
+         final int index = this.endPoints.indexOf(endPoint);
+         if( index >= 0 )
+         {
+            this.endPoints.remove(index);
+            if( index == 0 ) this.updateOrderings();
+         }
+      }
+      
+      /**
+       * Registers an ordering that this pool should keep up to date. Orderings belonging to an older index than the specified are 
+       * dropped, and orderings belonging to an older index than the current are ignored.
+       */
+      synchronized void addOrdering(final DestinationIndex index, final DestinationOrdering ordering)
+      {
+         if( (this.orderingsIndex == null) || (this.orderingsIndex.version < index.version) )
+         {
+            this.orderings.clear();
+            this.orderingsIndex = index;
+         }
+         else if( this.orderingsIndex != index ) return;
+         
+         this.orderings.add(ordering);
+         ordering.update(this.destinationKey, this.getFirstEndPointReadyTime());
+      }
+      
+      /**
+       * Updates the orderings with the ready time of the first endpoint in this pool. Must be called while holding the monitor of this pool.
+       */
+      private void updateOrderings()
+      {
+         final long firstEndPointReadyTime = this.getFirstEndPointReadyTime();
+         
+         for(int i=0; i<this.orderings.size(); i++)
+         {
+            ((DestinationOrdering)this.orderings.get(i)).update(this.destinationKey, firstEndPointReadyTime);
+         }
+      }
+      
+      /**
+       * Marks this pool as discarded if it is empty. 
+       */
+      synchronized boolean discardIfEmpty()
+      {
+         if( this.endPoints.isEmpty() ) this.discarded = true;
+         return this.discarded;
+      }
+      
+      synchronized boolean isDiscarded()
+      {
+         return this.discarded;
+      }
+      
+      /**
+       * Gets the lastReadyTime of the first endpoint in this pool, or Long.MAX_VALUE if the pool is empty.
+       */
+      synchronized long getFirstEndPointReadyTime()
+      {
+         return this.endPoints.isEmpty() ? Long.MAX_VALUE : ((MessagingEndPoint)this.endPoints.get(0)).getLastReadyTime();
+      }
+      
+      synchronized MessagingEndPoint take(final boolean multiplexingEnabled)
+      {
+         if( this.endPoints.isEmpty() ) return null;
+         
+         final MessagingEndPoint endPoint = (MessagingEndPoint)this.endPoints.remove(0);
+         
+         // Keep endpoint available for other threads, but move it to the end of the list (round robin)
+         if( multiplexingEnabled ) this.endPoints.add(endPoint);
+         
+         this.updateOrderings();
+         
+         return endPoint;
+      }
+   }
+   
+   
+   /**
+    * A destination in a {@link DestinationOrdering}.
+    */
+   private static final class OrderingEntry
+   {
+      final Destination destination;
+      
+      /** The position of the destination in the index entry, used to order destinations that are otherwise equal. */
+      final int order;
+      
+      int load;
+      
+      /** The ready time of the first endpoint of the destination, or Long.MAX_VALUE if the destination has no ready endpoints. */
+      long readyTime = Long.MAX_VALUE;
+      
+      OrderingEntry(final Destination destination, final int order)
+      {
+         this.destination = destination;
+         this.order = order;
+         this.load = destination.getLoad();
+      }
+   }
+   
+   
+   /**
+    * Ordering of the destinations (with ready endpoints) of an index entry, by load and by the ready time of their first 
+    * endpoint. 
+    */
+   private static final class DestinationOrdering
+   {
+      /** Map of destination keys and OrderingEntry objects. */
+      private final HashMap entries;
+      
+      private final TreeSet loadOrder = new TreeSet(LOAD_ORDER);
+      
+      private final TreeSet readyTimeOrder = new TreeSet(READY_TIME_ORDER);
+      
+      /** The number of destinations in the index entry that don't report load. */
+      private int noLoadCount = 0;
+      
+      DestinationOrdering(final Destination[] destinations)
+      {
+         this.entries = new HashMap(destinations.length * 2);
+         
+         OrderingEntry entry;
+         for(int i=0; i<destinations.length; i++)
+         {
+            entry = new OrderingEntry(destinations[i], i);
+            if( entry.load < 0 ) this.noLoadCount++;
+            this.entries.put(destinations[i].getKey(), entry);
+         }
+      }
+      
+      /**
+       * Updates the ready time of the first endpoint of a destination. Long.MAX_VALUE means that the destination has no ready endpoints.
+       */
+      synchronized void update(final String destinationKey, final long readyTime)
+      {
+         final OrderingEntry entry = (OrderingEntry)this.entries.get(destinationKey);
+         if( entry == null ) return;
+         
+         if( entry.readyTime != Long.MAX_VALUE )
+         {
+            this.loadOrder.remove(entry);
+            this.readyTimeOrder.remove(entry);
+         }
+         
+         entry.readyTime = readyTime;
+         
+         if( entry.readyTime != Long.MAX_VALUE )
+         {
+            this.loadOrder.add(entry);
+            this.readyTimeOrder.add(entry);
+         }
+      }
+      
+      /**
+       * Updates the load of a destination.
+       */
+      synchronized void loadUpdated(final Destination destination)
+      {
+         final OrderingEntry entry = (OrderingEntry)this.entries.get(destination.getKey());
+         if( entry == null ) return;
+         
+         final boolean ready = (entry.readyTime != Long.MAX_VALUE);
+         
+         if( ready ) this.loadOrder.remove(entry);
+         
+         final int load = destination.getLoad();
+         if( (entry.load < 0) != (load < 0) ) this.noLoadCount += (load < 0) ? 1 : -1;
+         entry.load = load;
+         
+         if( ready ) this.loadOrder.add(entry);
+      }
+      
+      /**
+       * Gets the destination with ready endpoints that is first in order, or <code>null</code> if there are no ready endpoints. 
+       * The ordering by load is only used if all destinations report load.
+       */
+      synchronized Destination first()
+      {
+         if( this.readyTimeOrder.isEmpty() ) return null;
+         
+         final TreeSet order = (this.noLoadCount == 0) ? this.loadOrder : this.readyTimeOrder;
+         return ((OrderingEntry)order.first()).destination;
+      }
+   }
+   
+   
+   /**
+    * Immutable index of destinations, by named receiver and by meta data key/value.
+    */
+   private static final class DestinationIndex
+   {
+      final int version;
+      
+      final Destination[] allDestinations;
+      
+      /** Map of named receivers and Destination arrays. */
+      private final HashMap namedReceiverIndex = new HashMap();
+      
+      /** Map of meta data keys and maps of meta data values and Destination arrays. */
+      private final HashMap metaDataIndex = new HashMap();
+      
+      private final HashSet proxyDestinations = new HashSet();
+      
+      /** The Destination arrays that are entries in this index (including those with proxies filtered out). */
+      private final IdentityHashMap indexEntries = new IdentityHashMap();
+      
+      /** Map of index entries with proxies and the same entries with proxies filtered out. */
+      private final IdentityHashMap filteredIndexEntries = new IdentityHashMap();
+      
+      /** Copy on write map of index entries and DestinationOrdering objects, created when first needed. */
+      volatile IdentityHashMap orderings = new IdentityHashMap();
+      
+      /** Copy on write map of destination keys and lists of the orderings that the destinations are part of. */
+      private volatile HashMap destinationOrderings = new HashMap();
+      
+      DestinationIndex(final int version, final Destination[] destinations)
+      {
+         this.version = version;
+         this.allDestinations = (destinations != null) ? destinations : NO_DESTINATIONS;
+         
+         HashMap destinationMetaData;
+         String[] namedReceivers;
+         Map.Entry entry;
+         Iterator it;
+         
+         for(int i=0; i<this.allDestinations.length; i++)
+         {
+            if( this.allDestinations[i].isProxy() ) this.proxyDestinations.add(this.allDestinations[i]);
+            
+            namedReceivers = this.allDestinations[i].getNamedReceivers();
+            for(int n=0; n<namedReceivers.length; n++)
+            {
+               addToIndex(this.namedReceiverIndex, namedReceivers[n], this.allDestinations[i]);
+            }
+            
+            destinationMetaData = this.allDestinations[i].getDestinationMetaData();
+            if( destinationMetaData == null ) continue;
+            
+            for(it = destinationMetaData.entrySet().iterator(); it.hasNext(); )
+            {
+               entry = (Map.Entry)it.next();
+               if( (entry.getKey() == null) || (entry.getValue() == null) ) continue;
+               // The load isn't indexed, since load updates only reposition destinations in the orderings
+               if( MessagingManager.SERVER_LOAD_METADATA_KEY.equals(entry.getKey()) ) continue;
+               
+               HashMap valueIndex = (HashMap)this.metaDataIndex.get(entry.getKey());
+               if( valueIndex == null )
+               {
+                  valueIndex = new HashMap();
+                  this.metaDataIndex.put(entry.getKey(), valueIndex);
+               }
+               
+               if( MessagingManager.NAMED_MESSAGE_RECEIVER_METADATA_KEY.equals(entry.getKey()) && (entry.getValue() instanceof List) )
+               {
+                  // Index each receiver name separately, since receiver names are matched using List.contains
+                  for(Iterator receivers = ((List)entry.getValue()).iterator(); receivers.hasNext(); )
+                  {
+                     addToIndex(valueIndex, receivers.next(), this.allDestinations[i]);
+                  }
+               }
+               else addToIndex(valueIndex, entry.getValue(), this.allDestinations[i]);
+            }
+         }
+         
+         this.indexEntries.put(this.allDestinations, Boolean.TRUE);
+         this.toArrays(this.namedReceiverIndex);
+         for(it = this.metaDataIndex.values().iterator(); it.hasNext(); )
+         {
+            this.toArrays((HashMap)it.next());
+         }
+      }
+      
+      private static void addToIndex(final HashMap index, final Object key, final Destination destination)
+      {
+         ArrayList destinations = (ArrayList)index.get(key);
+         if( destinations == null )
+         {
+            destinations = new ArrayList(4);
+            index.put(key, destinations);
+         }
+         destinations.add(destination);
+      }
+      
+      private void toArrays(final HashMap index)
+      {
+         Map.Entry entry;
+         Destination[] destinations;
+         ArrayList nonProxyDestinations;
+         
+         for(Iterator it = index.entrySet().iterator(); it.hasNext(); )
+         {
+            entry = (Map.Entry)it.next();
+            destinations = (Destination[])((ArrayList)entry.getValue()).toArray(NO_DESTINATIONS);
+            entry.setValue(destinations);
+            this.indexEntries.put(destinations, Boolean.TRUE);
+         }
+         
+         if( this.proxyDestinations.isEmpty() ) return;
+         
+         // Create the entries with proxies filtered out up front, so that they can have orderings as well
+         for(Iterator it = index.values().iterator(); it.hasNext(); )
+         {
+            destinations = (Destination[])it.next();
+            nonProxyDestinations = new ArrayList(destinations.length);
+            for(int i=0; i<destinations.length; i++)
+            {
+               if( !this.proxyDestinations.contains(destinations[i]) ) nonProxyDestinations.add(destinations[i]);
+            }
+            
+            if( nonProxyDestinations.size() < destinations.length )
+            {
+               final Destination[] filtered = (Destination[])nonProxyDestinations.toArray(NO_DESTINATIONS);
+               this.filteredIndexEntries.put(destinations, filtered);
+               this.indexEntries.put(filtered, Boolean.TRUE);
+            }
+         }
+      }
+      
+      /**
+       * Checks if the specified Destination array is an entry in this index.
+       */
+      boolean isIndexEntry(final Destination[] destinations)
+      {
+         return this.indexEntries.containsKey(destinations);
+      }
+      
+      /**
+       * Adds the ordering of an index entry. Must be called while holding the monitor of this index.
+       */
+      void addOrdering(final Destination[] destinations, final DestinationOrdering ordering)
+      {
+         final HashMap newDestinationOrderings = new HashMap(this.destinationOrderings);
+         ArrayList destinationOrderingList;
+         for(int i=0; i<destinations.length; i++)
+         {
+            destinationOrderingList = (ArrayList)newDestinationOrderings.get(destinations[i].getKey());
+            destinationOrderingList = (destinationOrderingList != null) ? new ArrayList(destinationOrderingList) : new ArrayList(2);
+            destinationOrderingList.add(ordering);
+            newDestinationOrderings.put(destinations[i].getKey(), destinationOrderingList);
+         }
+         
+         final IdentityHashMap newOrderings = new IdentityHashMap(this.orderings);
+         newOrderings.put(destinations, ordering);
+         
+         this.destinationOrderings = newDestinationOrderings;
+         this.orderings = newOrderings;
+      }
+      
+      /**
+       * Updates the load of the specified destination in the orderings it is part of.
+       */
+      void loadUpdated(final Destination destination)
+      {
+         final ArrayList destinationOrderingList = (ArrayList)this.destinationOrderings.get(destination.getKey());
+         if( destinationOrderingList == null ) return;
+         
+         for(int i=0; i<destinationOrderingList.size(); i++)
+         {
+            ((DestinationOrdering)destinationOrderingList.get(i)).loadUpdated(destination);
+         }
+      }
+      
+      /**
+       * Checks if the specified meta data can be looked up using an index, i.e. if all keys and values are non-null.
+       */
+      static boolean isIndexable(final Map metaData)
+      {
+         if( metaData.isEmpty() ) return false;
+         
+         Map.Entry entry;
+         for(Iterator it = metaData.entrySet().iterator(); it.hasNext(); )
+         {
+            entry = (Map.Entry)it.next();
+            
+            if( (entry.getKey() == null) || (entry.getValue() == null) ) return false;
+            if( (entry.getValue() instanceof Collection) && ((Collection)entry.getValue()).isEmpty() ) return false;
+            if( MessagingManager.SERVER_LOAD_METADATA_KEY.equals(entry.getKey()) ) return false;
+         }
+         
+         return true;
+      }
+      
+      /**
+       * Removes proxy destinations from the specified array. The array itself is returned if it contains no proxy destinations.
+       */
+      Destination[] filterProxies(final Destination[] destinations)
+      {
+         if( this.proxyDestinations.isEmpty() ) return destinations;
+         
+         final Destination[] filtered = (Destination[])this.filteredIndexEntries.get(destinations);
+         if( filtered != null ) return filtered;
+         else if( this.indexEntries.containsKey(destinations) ) return destinations; // Index entry without proxies
+         
+         final ArrayList result = new ArrayList(destinations.length);
+         for(int i=0; i<destinations.length; i++)
+         {
+            if( !this.proxyDestinations.contains(destinations[i]) ) result.add(destinations[i]);
+         }
+         
+         return (result.size() == destinations.length) ? destinations : (Destination[])result.toArray(NO_DESTINATIONS);
+      }
+      
+      Destination[] getDestinations(final String namedReceiver)
+      {
+         final Destination[] destinations = (Destination[])this.namedReceiverIndex.get(namedReceiver);
+         return (destinations != null) ? destinations : NO_DESTINATIONS;
+      }
+      
+      private Destination[] getDestinations(final Object metaDataKey, final Object metaDataValue)
+      {
+         final HashMap valueIndex = (HashMap)this.metaDataIndex.get(metaDataKey);
+         final Destination[] destinations = (valueIndex != null) ? (Destination[])valueIndex.get(metaDataValue) : null;
+         return (destinations != null) ? destinations : NO_DESTINATIONS;
+      }
+      
+      /**
+       * Gets the destinations matching all entries in the specified meta data, which must be indexable. The destinations of the 
+       * smallest matching index entry are filtered against the other index entries.
+       */
+      Destination[] getDestinations(final Map metaData)
+      {
+         final ArrayList constraints = new ArrayList(metaData.size());
+         Destination[] smallest = null;
+         Destination[] destinations;
+         Map.Entry entry;
+         
+         for(Iterator it = metaData.entrySet().iterator(); it.hasNext(); )
+         {
+            entry = (Map.Entry)it.next();
+            
+            if( MessagingManager.NAMED_MESSAGE_RECEIVER_METADATA_KEY.equals(entry.getKey()) )
+            {
+               if( entry.getValue() instanceof String ) 
+               {
+                  constraints.add(this.getDestinations(entry.getKey(), entry.getValue()));
+               }
+               else if( entry.getValue() instanceof Collection )
+               {
+                  for(Iterator receivers = ((Collection)entry.getValue()).iterator(); receivers.hasNext(); )
+                  {
+                     constraints.add(this.getDestinations(entry.getKey(), receivers.next()));
+                  }
+               }
+               else return NO_DESTINATIONS;
+            }
+            else constraints.add(this.getDestinations(entry.getKey(), entry.getValue()));
+         }
+         
+         for(int i=0; i<constraints.size(); i++)
+         {
+            destinations = (Destination[])constraints.get(i);
+            if( destinations.length == 0 ) return NO_DESTINATIONS;
+            if( (smallest == null) || (destinations.length < smallest.length) ) smallest = destinations;
+         }
+         
+         if( constraints.size() == 1 ) return smallest;
+         
+         final ArrayList result = new ArrayList(smallest.length);
+         boolean match;
+         
+         for(int i=0; i<smallest.length; i++)
+         {
+            match = true;
+            for(int c=0; match && (c<constraints.size()); c++)
+            {
+               destinations = (Destination[])constraints.get(c);
+               if( destinations != smallest ) match = contains(destinations, smallest[i]);
+            }
+            if( match ) result.add(smallest[i]);
+         }
+         
+         return (Destination[])result.toArray(NO_DESTINATIONS);
+      }
+      
+      private static boolean contains(final Destination[] destinations, final Destination destination)
+      {
+         for(int i=0; i<destinations.length; i++)
+         {
+            if( destinations[i] == destination ) return true;
+         }
+         return false;
+      }
+   }
+}
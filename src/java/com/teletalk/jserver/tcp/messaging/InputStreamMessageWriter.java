@@ -53,6 +53,8 @@ public final class InputStreamMessageWriter implements MessageWriter
    public void writeMessage(MessageHeader header, MessagingEndPoint endPoint, OutputStream endPointOutputStream) throws IOException
 	{
 		header.setBodyLength(this.bodyLength);
+		// Compress the body if enabled for the destination
+		header.setBodyCompressed(endPoint.isBodyCompressionEnabled(this.bodyLength));
 					
 		if( endPoint.getDestination().getProtocolVersion() >= 4 )
 		{
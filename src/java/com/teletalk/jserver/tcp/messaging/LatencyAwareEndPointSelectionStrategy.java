@@ -0,0 +1,252 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.tcp.messaging;
+
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Endpoint selection strategy that balances load between destinations based on measured response times and the number of 
+ * pending requests, rather than on the load reported by remote messaging systems (see {@link Destination#getLoad()}).<br>
+ * <br>
+ * For each destination, this strategy keeps a moving average of the response times of requests dispatched to the destination 
+ * (measured in the same way as the request/response statistics of the MessagingManager), and the number of pending requests 
+ * (requests for which no response has yet been received). The moving average is <i>peak sensitive</i> - a response time higher 
+ * than the current average immediately replaces the average, while lower response times are weighted in exponentially, based on 
+ * the time elapsed since the previous update and the decay time of this strategy (see {@link #setDecayTime(long)}). When no 
+ * responses are received, the average decays towards zero, which means that a destination that has been avoided because of a 
+ * high response time will eventually be tried again.<br>
+ * <br>
+ * The cost of a destination is calculated as <code>(averageResponseTime + 1) * (pendingRequests + 1)</code>. When selecting an 
+ * endpoint among several destinations, two destinations are picked at random, and the one with the lowest cost is tried first 
+ * (<i>power of two choices</i>). This avoids the herd behaviour of always selecting the destination with the lowest cost, while 
+ * still making slow or overloaded destinations shed traffic as soon as their response times increase.<br>
+ * <br>
+ * This strategy extends {@link IndexedEndPointSelectionStrategy}, and is notified of dispatched requests and their outcome 
+ * through the {@link RequestAwareEndPointSelectionStrategy} interface.
+ * 
+ * @author Tobias Lfstrand
+ * 
+ * @since 2.2.1
+ */
+public class LatencyAwareEndPointSelectionStrategy extends IndexedEndPointSelectionStrategy implements RequestAwareEndPointSelectionStrategy
+{
+   /** The default decay time (in milliseconds) used for the response time averages. */
+   public static final long DEFAULT_DECAY_TIME = 10000;
+   
+   
+   private final Object destinationStatisticsLock = new Object();
+   
+   /** Copy on write map of destination keys and DestinationStatistics objects. */
+   private volatile HashMap destinationStatistics = new HashMap();
+   
+   private final Random random = new Random();
+   
+   private volatile long decayTime;
+   
+   
+   /**
+    * Creates a new LatencyAwareEndPointSelectionStrategy, using the default decay time ({@link #DEFAULT_DECAY_TIME}).
+    */
+   public LatencyAwareEndPointSelectionStrategy()
+   {
+      this(DEFAULT_DECAY_TIME);
+   }
+   
+   /**
+    * Creates a new LatencyAwareEndPointSelectionStrategy.
+    * 
+    * @param decayTime the decay time (in milliseconds) used for the response time averages.
+    */
+   public LatencyAwareEndPointSelectionStrategy(final long decayTime)
+   {
+      super(false); // Destinations are selected by selectFirstCandidate, not by load
+      
+      this.setDecayTime(decayTime);
+   }
+   
+   /**
+    * Gets the decay time (in milliseconds) used for the response time averages.
+    */
+   public long getDecayTime()
+   {
+      return decayTime;
+   }
+
+   /**
+    * Sets the decay time (in milliseconds) used for the response time averages. A lower value makes the averages follow recent 
+    * response times more closely.
+    */
+   public void setDecayTime(final long decayTime)
+   {
+      this.decayTime = Math.max(1, decayTime);
+   }
+   
+   /**
+    * Disables this EndPointSelectionStrategy.
+    */
+   public void shutDown()
+   {
+      super.shutDown();
+      
+      synchronized (this.destinationStatisticsLock)
+      {
+         this.destinationStatistics = new HashMap();
+      }
+   }
+   
+   /**
+    * Called when a message for which a response is expected has been dispatched through the specified endpoint.
+    */
+   public void requestDispatched(final MessagingEndPoint endPoint, final MessageHeader header)
+   {
+      final DestinationStatistics statistics = this.getDestinationStatistics(endPoint, true);
+      
+      if( statistics != null ) statistics.requestDispatched();
+   }
+   
+   /**
+    * Called when a response has been received to a message previously reported through 
+    * {@link #requestDispatched(MessagingEndPoint, MessageHeader)}, or when no response could be received.
+    */
+   public void requestCompleted(final MessagingEndPoint endPoint, final MessageHeader header, final long responseTime, final boolean responseReceived)
+   {
+      final DestinationStatistics statistics = this.getDestinationStatistics(endPoint, false);
+      
+      if( statistics != null ) statistics.requestCompleted(responseTime, this.decayTime);
+   }
+   
+   /**
+    * Gets the current cost of the specified destination, calculated as <code>(averageResponseTime + 1) * (pendingRequests + 1)</code>.
+    */
+   public double getCost(final Destination destination)
+   {
+      final DestinationStatistics statistics = (destination != null) ? (DestinationStatistics)this.destinationStatistics.get(destination.getKey()) : null;
+      
+      return (statistics != null) ? statistics.getCost(System.currentTimeMillis(), this.decayTime) : 1;
+   }
+   
+   /**
+    * Gets the current number of pending requests for the specified destination.
+    */
+   public int getPendingRequests(final Destination destination)
+   {
+      final DestinationStatistics statistics = (destination != null) ? (DestinationStatistics)this.destinationStatistics.get(destination.getKey()) : null;
+      
+      return (statistics != null) ? statistics.getPendingRequests() : 0;
+   }
+   
+   /**
+    * Selects the destination that should be tried first by picking two destinations at random, and selecting the one with the 
+    * lowest cost.
+    */
+   protected int selectFirstCandidate(final Destination[] destinations)
+   {
+      final int first = this.random.nextInt(destinations.length);
+      int second = this.random.nextInt(destinations.length - 1);
+      if( second >= first ) second++;
+      
+      return (this.getCost(destinations[second]) < this.getCost(destinations[first])) ? second : first;
+   }
+   
+   /**
+    * Gets the statistics object for the destination of the specified endpoint, optionally creating it if it doesn't exist.
+    */
+   private DestinationStatistics getDestinationStatistics(final MessagingEndPoint endPoint, final boolean create)
+   {
+      final Destination destination = (endPoint != null) ? endPoint.getDestination() : null;
+      if( destination == null ) return null;
+      
+      final String destinationKey = destination.getKey();
+      DestinationStatistics statistics = (DestinationStatistics)this.destinationStatistics.get(destinationKey);
+      
+      if( (statistics == null) && create )
+      {
+         synchronized (this.destinationStatisticsLock)
+         {
+            statistics = (DestinationStatistics)this.destinationStatistics.get(destinationKey);
+            
+            if( statistics == null )
+            {
+               statistics = new DestinationStatistics();
+               
+               final HashMap newDestinationStatistics = new HashMap(this.destinationStatistics);
+               newDestinationStatistics.put(destinationKey, statistics);
+               this.destinationStatistics = newDestinationStatistics;
+            }
+         }
+      }
+      
+      return statistics;
+   }
+   
+   
+   /**
+    * Response time average and pending request count for a single destination.
+    */
+   private static final class DestinationStatistics
+   {
+      private double averageResponseTime = 0;
+      
+      private long lastUpdateTime = 0;
+      
+      private int pendingRequests = 0;
+      
+      synchronized void requestDispatched()
+      {
+         this.pendingRequests++;
+      }
+      
+      synchronized void requestCompleted(final long responseTime, final long decayTime)
+      {
+         if( this.pendingRequests > 0 ) this.pendingRequests--;
+         
+         final long now = System.currentTimeMillis();
+         final double currentAverage = this.getDecayedAverageResponseTime(now, decayTime);
+         
+         if( responseTime > currentAverage )
+         {
+            // React to slow responses immediately
+            this.averageResponseTime = responseTime;
+         }
+         else
+         {
+            final double weight = Math.exp(-Math.max(0, now - this.lastUpdateTime) / (double)decayTime);
+            this.averageResponseTime = (this.averageResponseTime * weight) + (responseTime * (1.0 - weight));
+         }
+         
+         this.lastUpdateTime = now;
+      }
+      
+      synchronized int getPendingRequests()
+      {
+         return this.pendingRequests;
+      }
+      
+      synchronized double getCost(final long now, final long decayTime)
+      {
+         return (this.getDecayedAverageResponseTime(now, decayTime) + 1) * (this.pendingRequests + 1);
+      }
+      
+      /**
+       * Gets the average response time, decayed towards zero based on the time elapsed since the last update.
+       */
+      private double getDecayedAverageResponseTime(final long now, final long decayTime)
+      {
+         return this.averageResponseTime * Math.exp(-Math.max(0, now - this.lastUpdateTime) / (double)decayTime);
+      }
+   }
+}
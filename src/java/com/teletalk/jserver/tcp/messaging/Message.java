@@ -19,10 +19,16 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 
 import com.teletalk.jserver.tcp.TcpEndPointIdentifier;
+import com.teletalk.jserver.tcp.messaging.codec.BodyCodec;
 import com.teletalk.jserver.util.NoHeadersClassLoaderObjectInputStream;
 import com.teletalk.jserver.util.NoHeadersObjectInputStream;
+import com.teletalk.jserver.util.SpillOverByteArrayOutputStream;
 import com.teletalk.jserver.util.Streamable;
 
 /**
@@ -148,6 +154,12 @@ public class Message
    
    private Thread messageHandlerThread;
    
+   /** Stream for reading the buffered message body, if the body was buffered by the endpoint. @since 2.2.1 */
+   private MessagingEndPointInputStream bufferedBodyInputStream;
+   
+   /** Buffer containing the buffered message body, if it was spilled over to disk. @since 2.2.1 */
+   private SpillOverByteArrayOutputStream bufferedBodySpillOverBuffer;
+   
 	
 	/**
 	 * Creates a new Message, using the specified message as a template. This constructor is provied to facilitate 
@@ -167,6 +179,9 @@ public class Message
       
       this.messageBodyCachingEnabled = message.messageBodyCachingEnabled;
       this.cachedMessageBody = message.cachedMessageBody;
+      
+      this.bufferedBodyInputStream = message.bufferedBodyInputStream;
+      this.bufferedBodySpillOverBuffer = message.bufferedBodySpillOverBuffer;
 	}
 	
 	/**
@@ -188,8 +203,51 @@ public class Message
       
       this.messageBodyCachingEnabled = false;
       this.cachedMessageBody = null;
+      
+      this.bufferedBodyInputStream = null;
+      this.bufferedBodySpillOverBuffer = null;
 	}
    
+   /**
+    * Sets the buffered message body, i.e. the message body as read in its entirety by the endpoint when the message was received. 
+    * When a buffered body is set, the body of this message will be read from the buffer instead of directly from the endpoint, 
+    * which means that the endpoint is free to receive other messages while this message is being handled.
+    * 
+    * @param bodyInputStream a stream for reading the buffered message body.
+    * @param spillOverBuffer the buffer containing the message body, if the body was spilled over to disk (otherwise <code>null</code>). 
+    * The buffer will be reset (and any spill over file deleted) when read completion is signalled.
+    * 
+    * @since 2.2.1
+    */
+   synchronized void setBufferedBody(final InputStream bodyInputStream, final SpillOverByteArrayOutputStream spillOverBuffer)
+   {
+      this.bufferedBodyInputStream = new MessagingEndPointInputStream(bodyInputStream);
+      this.bufferedBodyInputStream.setCurrentMessage(this);
+      this.bufferedBodySpillOverBuffer = spillOverBuffer;
+   }
+   
+   /**
+    * Checks if the body of this message was buffered by the endpoint when the message was received, in which case the body 
+    * is not read directly from the endpoint. 
+    * 
+    * @since 2.2.1
+    */
+   public boolean isBodyBuffered()
+   {
+      return this.bufferedBodyInputStream != null;
+   }
+   
+   /**
+    * Gets the stream from which the message body is to be read, i.e. either the stream of the buffered body or the stream of the endpoint.
+    * 
+    * @since 2.2.1
+    */
+   private MessagingEndPointInputStream getBodyInputStream()
+   {
+      if( this.bufferedBodyInputStream != null ) return this.bufferedBodyInputStream;
+      else return this.endPoint.getMessagingEndPointInputStream();
+   }
+   
    /**
     * Gets the thread that is assigned to handle this message.
     * 
@@ -413,6 +471,16 @@ public class Message
 	{
 		this.readCompleted = true;
 		this.notify();
+      
+      // Release the resources held by a buffered message body that has been spilled over to disk
+      if( this.bufferedBodySpillOverBuffer != null )
+      {
+         try{
+         this.bufferedBodyInputStream.getStream().close();
+         }catch(IOException e){}
+         this.bufferedBodySpillOverBuffer.reset();
+         this.bufferedBodySpillOverBuffer = null;
+      }
 	}
    
    /**
@@ -449,7 +517,7 @@ public class Message
             
             this.cachedMessageBody = new byte[(int)this.header.getBodyLength()];
                
-            MessagingEndPointInputStream bodyInputStream = this.endPoint.getMessagingEndPointInputStream();
+            MessagingEndPointInputStream bodyInputStream = this.getBodyInputStream();
       
             for(int read=0; read<this.cachedMessageBody.length;)
             {
@@ -504,7 +572,7 @@ public class Message
    			this.consumed = true;
    			final byte[] byteArrayMessageBody = new byte[(int)this.header.getBodyLength()];
    			
-   			MessagingEndPointInputStream bodyInputStream = this.endPoint.getMessagingEndPointInputStream();
+   			MessagingEndPointInputStream bodyInputStream = this.getBodyInputStream();
    
    			for(int read=0; read<byteArrayMessageBody.length;)
    			{
@@ -563,6 +631,8 @@ public class Message
       {
          this.initCachedMessageBody();
          
+         if( this.header.getBodyCodecId() != 0 ) return this.decodeBody(new MessagingEndPointInputStream(new ByteArrayInputStream(this.cachedMessageBody)), classLoader);
+         
          try
          {
             ObjectInputStream objectInput;
@@ -589,7 +659,9 @@ public class Message
          {
 				this.consumed = true;
 				
-				if( classLoader != null ) return this.endPoint.readObject(classLoader);
+				if( this.header.getBodyCodecId() != 0 ) return this.decodeBody(this.getBodyInputStream(), classLoader);
+				else if( this.bufferedBodyInputStream != null ) return this.readBufferedBodyAsObject(classLoader);
+				else if( classLoader != null ) return this.endPoint.readObject(classLoader);
 				else return this.endPoint.readObject();
 			}
 			catch(Throwable t)
@@ -603,7 +675,52 @@ public class Message
 		}
 		return null;
 	}
+   
+   /**
+    * Deserializes the buffered message body. Since the object stream of the sending endpoint is reset after each 
+    * message, a new object stream may be used for each buffered message body.
+    * 
+    * @since 2.2.1
+    */
+   private Object readBufferedBodyAsObject(final ClassLoader classLoader) throws IOException, ClassNotFoundException
+   {
+      ObjectInputStream objectInput;
+      
+      if( classLoader != null )
+      {
+         objectInput = new NoHeadersClassLoaderObjectInputStream(this.bufferedBodyInputStream, classLoader);
+      }
+      else
+      {
+         objectInput = new NoHeadersObjectInputStream(this.bufferedBodyInputStream);
+      }
+      
+      return objectInput.readObject();
+   }
 		
+   /**
+    * Decodes the message body from the specified stream, using the {@link BodyCodec} identified by the header of this message.
+    * 
+    * @since 2.2.1
+    */
+   private Object decodeBody(final MessagingEndPointInputStream input, final ClassLoader classLoader) throws IOException
+   {
+      final BodyCodec bodyCodec = this.endPoint.getMessagingManager().getBodyCodec(this.header.getBodyCodecId());
+      if( bodyCodec == null ) throw new IOException("Message body encoded with unsupported body codec (id: " + this.header.getBodyCodecId() + ")!");
+      
+      try
+      {
+         // Make sure any java serialized values are resolved using the specified class loader
+         if( classLoader != null ) input.setContextObjectInputStream(new NoHeadersClassLoaderObjectInputStream(input, classLoader));
+         
+         return bodyCodec.decode(input, classLoader);
+      }
+      finally
+      {
+         input.setContextObjectInputStream(null);
+      }
+   }
+   
    /**
     * Gets the message body as an {@link Streamable} object, by attempting to deserialize the message body data using the Streamable object 
     * specified by parameter <code>streamable</code>.<br>
@@ -632,7 +749,7 @@ public class Message
       {
          try
          {
-            streamable.read(this.endPoint.getMessagingEndPointInputStream());
+            streamable.read(this.getBodyInputStream());
             return true;
          }
          catch(Throwable t)
@@ -647,6 +764,76 @@ public class Message
       return false;
 	}
 	
+   /**
+    * Writes the message body to a file, starting at the specified position in the file, using 
+    * {@link FileChannel#transferFrom(ReadableByteChannel, long, long)}. This method is the receiving counterpart of 
+    * {@link FileMessageWriter}, and avoids the intermediate byte array required when reading the body through 
+    * {@link #getBodyAsByteArray()} or copying it from the stream returned by {@link #getBodyAsStream()}. If the body has been buffered 
+    * and spilled over to disk (see {@link MessagingManager#getBodyBufferingSpillOverLimit()}), it is transferred directly from the spill 
+    * over file. Otherwise the body is read from the endpoint (or memory buffer) through a stream, which means that the data is copied 
+    * through an intermediate buffer, i.e. the transfer isn't zero-copy.<br>
+    * <br>
+    * <i>Note: </i> calling this method will "consume" the message body, which means that 
+    * repeated calls to this method, and the other methods for getting the message body, will 
+    * return <code>-1</code>.
+    * 
+    * @param fileChannel the channel of the file to write the body to. The channel is not closed by this method.
+    * @param position the position in the file at which the first byte of the body is to be written.
+    * 
+    * @return the number of bytes written, or <code>-1</code> if the body already has been consumed.
+    * 
+    * @throws IOException if an error occurrs while reading the message body or writing the file.
+    * 
+    * @since 2.2.1
+    */
+   public synchronized long transferBodyTo(final FileChannel fileChannel, final long position) throws IOException
+   {
+      if( this.messageBodyCachingEnabled )
+      {
+         this.initCachedMessageBody();
+         
+         final ByteBuffer buffer = ByteBuffer.wrap(this.cachedMessageBody);
+         while( buffer.hasRemaining() ) fileChannel.write(buffer, position + buffer.position());
+         
+         return this.cachedMessageBody.length;
+      }
+      else if( !this.consumed && !this.readCompleted )
+      {
+         try
+         {
+            this.consumed = true;
+            
+            if( this.bufferedBodySpillOverBuffer != null ) return this.bufferedBodySpillOverBuffer.transferTo(fileChannel, position);
+            
+            final long bodyLength = this.header.getBodyLength();
+            final ReadableByteChannel bodyChannel = Channels.newChannel(this.getBodyInputStream());
+            
+            long transferred = 0;
+            long read;
+            
+            while(transferred < bodyLength)
+            {
+               read = fileChannel.transferFrom(bodyChannel, position + transferred, bodyLength - transferred);
+               
+               if( read <= 0 ) throw new IOException("Unexpected end of message body after " + transferred + " of " + bodyLength + " bytes!");
+               
+               transferred += read;
+            }
+            
+            return transferred;
+         }
+         catch(Throwable t)
+         {
+            this.handleError(t, false);
+         }
+         finally
+         {
+            this.signalReadCompletion();
+         }
+      }
+      return -1;
+   }
+	
 	/**
 	 * Gets an InputStream for reading the message body.<br>
 	 * <br>
@@ -675,7 +862,7 @@ public class Message
 		{
 			this.consumed = true;
 			
-			return new MessagingEndPointInputStreamProxy( this.endPoint.getMessagingEndPointInputStream(), this );
+			return new MessagingEndPointInputStreamProxy( this.getBodyInputStream(), this );
 		}
 		else return null;
 	}
@@ -711,8 +898,8 @@ public class Message
 	{
 		this.error = t;
       
-      // Notify endpoint that a read error has occurred
-      this.endPoint.bodyReadErrorOccurred(t);
+      // Notify endpoint that a read error has occurred (unless the body was buffered, in which case the endpoint is unaffected)
+      if( this.bufferedBodyInputStream == null ) this.endPoint.bodyReadErrorOccurred(t);
       
       if( signalReadCompletion ) this.signalReadCompletion();
 		
@@ -15,6 +15,7 @@
  */
 package com.teletalk.jserver.tcp.messaging;
 
+import java.io.File;
 import java.io.InputStream;
 
 /**
@@ -245,4 +246,116 @@ public class MessageDispatcher
    {
       return this.messagingManager.dispatchMessage(header, new InputStreamMessageWriter(body, bodyLength), this.messageDispatcherProperties);
    }
+   
+   /**
+    * Dispatches a message with a body consisting of the contents of the specified file, using a {@link FileMessageWriter}. If 
+    * possible, the file is transferred directly to the socket, without being copied through user space.<br>
+    * <br>
+    * This method will automatically set the "<b>response to</b>" field of the header to the value of the 
+    * "<b>message id</b>" field, if set, before assigning the message a new id.
+    * 
+    * @param header the header of the message to be dispatched.
+    * @param body the file containing the body of the message.
+    * 
+    * @return the response message or <code>null</code> if parameter asynch in the {@link MessageDispatcherProperties} was set to (<code>true</code>).
+    * 
+    * @throws MessageDispatchFailedException if the message could not be dispatched for some reason (possibly due to lack of connected endpoints).
+    * @throws ResponseTimeOutException if timeout occurs while waiting for a response to a synchronus message.
+    * 
+    * @since 2.2.1
+    */
+   public Message dispatchFileMessage(final MessageHeader header, final File body) throws MessageDispatchFailedException, ResponseTimeOutException
+   {
+      return this.messagingManager.dispatchMessage(header, new FileMessageWriter(body), this.messageDispatcherProperties);
+   }
+   
+   /**
+    * Dispatches a message using the specified {@link MessageWriter} to write the message. This makes it possible to use custom 
+    * message writers, for instance writers that adapt the message to the destination on which it is dispatched.<br>
+    * <br>
+    * This method will automatically set the "<b>response to</b>" field of the header to the value of the 
+    * "<b>message id</b>" field, if set, before assigning the message a new id.
+    * 
+    * @param header the header of the message to be dispatched.
+    * @param messageWriter the writer that is to write the message.
+    * 
+    * @return the response message or <code>null</code> if parameter asynch in the {@link MessageDispatcherProperties} was set to (<code>true</code>).
+    * 
+    * @throws MessageDispatchFailedException if the message could not be dispatched for some reason (possibly due to lack of connected endpoints).
+    * @throws ResponseTimeOutException if timeout occurs while waiting for a response to a synchronus message.
+    * 
+    * @since 2.2.1
+    */
+   public Message dispatchMessage(final MessageHeader header, final MessageWriter messageWriter) throws MessageDispatchFailedException, ResponseTimeOutException
+   {
+      return this.messagingManager.dispatchMessage(header, messageWriter, this.messageDispatcherProperties);
+   }
+   
+   /**
+    * Dispatches an object message using the prototype message header if specifed (if not a default header will be created), without 
+    * waiting for the response. This method returns as soon as the message has been dispatched, and the response (or the error, if the 
+    * dispatch failed or if no response was received within the response timeout) is delivered through the returned {@link ResponseFuture}. 
+    * The asynch field in the {@link MessageDispatcherProperties} is ignored by this method.
+    * 
+    * @param body the object body of the message. Must be serializable.
+    * @param listener an optional listener to be notified when the response is received or when the dispatch fails. 
+    * 
+    * @return a response future, which will be completed either with a response message or an error.
+    * 
+    * @since 2.2.1
+    */
+   public ResponseFuture dispatchMessageWithFuture(final Object body, final ResponseListener listener)
+   {
+      return this.dispatchMessageWithFuture(this.createPrototypeMessageHeaderInstance(), body, listener);
+   }
+   
+   /**
+    * Dispatches an object message without waiting for the response. This method returns as soon as the message has been dispatched, 
+    * and the response (or the error, if the dispatch failed or if no response was received within the response timeout) is delivered 
+    * through the returned {@link ResponseFuture}. The asynch field in the {@link MessageDispatcherProperties} is ignored by this method.
+    * 
+    * @param header the header of the message to be dispatched.
+    * @param body the object body of the message. Must be serializable.
+    * @param listener an optional listener to be notified when the response is received or when the dispatch fails. 
+    * 
+    * @return a response future, which will be completed either with a response message or an error.
+    * 
+    * @since 2.2.1
+    */
+   public ResponseFuture dispatchMessageWithFuture(final MessageHeader header, final Object body, final ResponseListener listener)
+   {
+      return this.messagingManager.dispatchMessageWithFuture(header, new ObjectMessageWriter(body), this.messageDispatcherProperties, listener);
+   }
+   
+   /**
+    * Dispatches a byte array message using the prototype message header if specifed (if not a default header will be created), without 
+    * waiting for the response. See {@link #dispatchMessageWithFuture(Object, ResponseListener)}.
+    * 
+    * @param body the byte array body of the message.
+    * @param listener an optional listener to be notified when the response is received or when the dispatch fails. 
+    * 
+    * @return a response future, which will be completed either with a response message or an error.
+    * 
+    * @since 2.2.1
+    */
+   public ResponseFuture dispatchMessageWithFuture(final byte[] body, final ResponseListener listener)
+   {
+      return this.dispatchMessageWithFuture(this.createPrototypeMessageHeaderInstance(), body, listener);
+   }
+   
+   /**
+    * Dispatches a byte array message without waiting for the response. See {@link #dispatchMessageWithFuture(MessageHeader, Object, ResponseListener)}.
+    * 
+    * @param header the header of the message to be dispatched.
+    * @param body the byte array body of the message.
+    * @param listener an optional listener to be notified when the response is received or when the dispatch fails. 
+    * 
+    * @return a response future, which will be completed either with a response message or an error.
+    * 
+    * @since 2.2.1
+    */
+   public ResponseFuture dispatchMessageWithFuture(final MessageHeader header, final byte[] body, final ResponseListener listener)
+   {
+      return this.messagingManager.dispatchMessageWithFuture(header, new ByteArrayMessageWriter(body), this.messageDispatcherProperties, listener);
+   }
 }
@@ -37,6 +37,8 @@ public class MessageDispatcherProperties
    private long timeout;
    
 	private boolean asynch;
+	
+	private byte priority = MessageHeader.PRIORITY_NORMAL;
 
    /**
     * Copy constructor.
@@ -50,6 +52,7 @@ public class MessageDispatcherProperties
          this.destinationMetaDataConstraints = copy.destinationMetaDataConstraints;
          this.timeout = copy.timeout;
          this.asynch = copy.asynch;
+         this.priority = copy.priority;
       }
       else
       {
@@ -227,12 +230,36 @@ public class MessageDispatcherProperties
       this.asynch = asynch;
    }
    
+   /**
+    * Gets the priority setting, i.e. {@link MessageHeader#PRIORITY_LOW}, {@link MessageHeader#PRIORITY_NORMAL} (default) or 
+    * {@link MessageHeader#PRIORITY_HIGH}. If this setting is not {@link MessageHeader#PRIORITY_NORMAL}, it overrides the priority 
+    * of the headers of dispatched messages.
+    * 
+    * @since 2.2.1
+    */
+   public byte getPriority()
+   {
+      return priority;
+   }
+
+   /**
+    * Sets the priority setting, i.e. {@link MessageHeader#PRIORITY_LOW}, {@link MessageHeader#PRIORITY_NORMAL} (default) or 
+    * {@link MessageHeader#PRIORITY_HIGH}. If this setting is not {@link MessageHeader#PRIORITY_NORMAL}, it overrides the priority 
+    * of the headers of dispatched messages.
+    * 
+    * @since 2.2.1
+    */
+   public void setPriority(byte priority)
+   {
+      this.priority = priority;
+   }
+   
    /**
     * Gets a string representation of this object.
     */
    public String toString()
    {
-      return "MessageDispatcherProperties[destination: " + destination + ", namedReceiver: " + namedReceiver + ", destinationMetaDataConstraints: " + destinationMetaDataConstraints + ", timeout: " + timeout + ", asynch: " + asynch + "] ";
+      return "MessageDispatcherProperties[destination: " + destination + ", namedReceiver: " + namedReceiver + ", destinationMetaDataConstraints: " + destinationMetaDataConstraints + ", timeout: " + timeout + ", asynch: " + asynch + ", priority: " + priority + "] ";
    }
    
    /**
@@ -249,7 +276,8 @@ public class MessageDispatcherProperties
 	      	compareObject(this.namedReceiver, otherMessageDispatcherProperties.namedReceiver) && 
 	      	compareObject(this.destinationMetaDataConstraints, otherMessageDispatcherProperties.destinationMetaDataConstraints) &&
 	      	(this.timeout == otherMessageDispatcherProperties.timeout) &&
-	      	(this.asynch == otherMessageDispatcherProperties.asynch);
+	      	(this.asynch == otherMessageDispatcherProperties.asynch) &&
+	      	(this.priority == otherMessageDispatcherProperties.priority);
       }
       return false;
    }
@@ -15,6 +15,7 @@
  */
 package com.teletalk.jserver.tcp.messaging;
 
+import java.io.ByteArrayInputStream;
 import java.io.Externalizable;
 import java.io.IOException;
 import java.io.ObjectInput;
@@ -54,8 +55,29 @@ public class MessageHeader implements Externalizable, Streamable
    public static final byte MESSAGE_PROCESSING_ERROR_HEADER = 0x05;
    /** Header type constant representing a header used for server administration calls (to a {@link com.teletalk.jserver.tcp.messaging.admin.ServerAdministrationHandler}). @since 2.0.1 (20040924). */
    public static final byte SERVER_ADMINISTRATION_HEADER = 0x06;
+   /** Header type constant representing a header used for granting flow control credits to a remote messaging system. Only sent to messaging systems that support flow control (see {@link Destination#isFlowControlSupported()}). @since 2.2.1 */
+   public static final byte FLOW_CONTROL_HEADER = 0x07;
    /** Header type constant representing an access denied response. @since 2.0.2 (20050331) */
    public static final byte ACCESS_DENIED_HEADER = 0x7F; 
+   
+   /** Mask for the bits of the body encoding field that contain the id of the {@link com.teletalk.jserver.tcp.messaging.codec.BodyCodec} used to encode the message body. @since 2.2.1 */
+   public static final byte BODY_CODEC_ID_MASK = 0x0F;
+   
+   /** Flag in the body encoding field indicating that the message body is compressed. @since 2.2.1 */
+   public static final byte BODY_COMPRESSED_FLAG = 0x10;
+   
+   /** Flag in the serialized body encoding field indicating that the header contains messaging system meta data. This flag is only 
+    * used in the serialized form of a header (protocol version 7 or higher), and is never set in the body encoding field of a header object. */
+   private static final byte META_DATA_PRESENT_FLAG = 0x20;
+   
+   /** Priority constant for low priority messages, such as bulk transfers. @since 2.2.1 */
+   public static final byte PRIORITY_LOW = -1;
+   
+   /** Priority constant for messages with normal priority (default). @since 2.2.1 */
+   public static final byte PRIORITY_NORMAL = 0;
+   
+   /** Priority constant for high priority (latency critical) messages. @since 2.2.1 */
+   public static final byte PRIORITY_HIGH = 1;
       
    /** The serial version id of this class. */
 	static final long serialVersionUID = 4232525261746359084L;
@@ -84,10 +106,19 @@ public class MessageHeader implements Externalizable, Streamable
 	
 	private boolean asynch;  
 	
+	private byte bodyEncoding; // Since protocol version 7
+	
+	private byte priority; // Since protocol version 8
+	
 	private HashMap customHeaderFields;
 	
 	private HashMap messagingSystemMetaData; // Since serial version 6
 	
+	private byte[] rawFieldData; // Serialized (not yet deserialized) custom header fields and messaging system meta data, only kept if the meta data is empty. Guarded by this.
+	
+	/** The length of the serialized custom header fields and messaging system meta data when both are empty (two zero field counts). */
+	private static final int EMPTY_FIELD_DATA_LENGTH = 8;
+	
 	/**
 	 * Public no-arg constructor (used during deserialization).
 	 */
@@ -109,6 +140,10 @@ public class MessageHeader implements Externalizable, Streamable
       this.headerType = otherHeader.headerType;
       this.timeToLive = otherHeader.timeToLive;
       this.asynch = otherHeader.asynch;
+      this.bodyEncoding = otherHeader.bodyEncoding;
+      this.priority = otherHeader.priority;
+      
+      otherHeader.deserializeRawFieldData();
 		
 		this.customHeaderFields = otherHeader.customHeaderFields;
 		if( this.customHeaderFields != null ) this.customHeaderFields = (HashMap)this.customHeaderFields.clone();
@@ -196,6 +231,8 @@ public class MessageHeader implements Externalizable, Streamable
 		this.description = description;
 		this.timeToLive = UNDEFINED;
 		this.asynch = false;
+		this.bodyEncoding = 0;
+		this.priority = PRIORITY_NORMAL;
 		
 		this.customHeaderFields = null;
 		
@@ -380,6 +417,7 @@ public class MessageHeader implements Externalizable, Streamable
 	 */
 	public Object getCustomHeaderField(final String key)
 	{
+      this.deserializeRawFieldData();
 		if( this.customHeaderFields != null ) return this.customHeaderFields.get(key);
 		else return null;
 	}
@@ -394,6 +432,7 @@ public class MessageHeader implements Externalizable, Streamable
     */
    public Object removeCustomHeaderField(final String key)
    {
+      this.deserializeRawFieldData();
       if( this.customHeaderFields != null ) return this.customHeaderFields.remove(key);
       else return null;
    }
@@ -406,6 +445,7 @@ public class MessageHeader implements Externalizable, Streamable
 	 */
 	public Map getCustomHeaderFields()
 	{
+      this.deserializeRawFieldData();
 		if( this.customHeaderFields != null ) return (Map)this.customHeaderFields.clone();
 		else return new HashMap();
 	}
@@ -421,6 +461,7 @@ public class MessageHeader implements Externalizable, Streamable
 	{
       if( key == null ) return;
       
+      this.deserializeRawFieldData();
       if( this.customHeaderFields == null ) this.customHeaderFields = new HashMap();
       this.customHeaderFields.put(key, value);
    }
@@ -437,6 +478,7 @@ public class MessageHeader implements Externalizable, Streamable
 	{
 		if( fields == null ) return;
 		
+      this.deserializeRawFieldData();
 		if( this.customHeaderFields == null ) this.customHeaderFields = new HashMap();
 		
 		this.customHeaderFields.putAll(fields);
@@ -453,6 +495,7 @@ public class MessageHeader implements Externalizable, Streamable
     */
    public boolean hasCustomHeaderField(final String key)
    {
+      this.deserializeRawFieldData();
       if( this.customHeaderFields != null ) return this.customHeaderFields.containsKey(key);
       else return false;
    }
@@ -466,8 +509,22 @@ public class MessageHeader implements Externalizable, Streamable
 	 */
 	public HashMap getMessagingSystemMetaData()
 	{
+      this.deserializeRawFieldData();
 		return messagingSystemMetaData;
 	}
+   
+   /**
+    * Checks if this header contains any meta data about the sending messaging system. As opposed to {@link #getMessagingSystemMetaData()}, 
+    * this method never forces deserialization of custom header fields that have been kept in serialized form since the header was received.
+    * 
+    * @since 2.2.1
+    */
+   public synchronized boolean hasMessagingSystemMetaData()
+   {
+      // Raw field data is only kept for headers without meta data (see readDeferred)
+      if( this.rawFieldData != null ) return false;
+      else return (this.messagingSystemMetaData != null) && !this.messagingSystemMetaData.isEmpty();
+   }
 	
 	/**
 	 * Get meta data about the sending messaging system.
@@ -476,6 +533,7 @@ public class MessageHeader implements Externalizable, Streamable
 	 */
 	public void setMessagingSystemMetaData(final HashMap messagingSystemMetaData)
 	{
+      this.deserializeRawFieldData();
 		this.messagingSystemMetaData = messagingSystemMetaData;
 	}
 	
@@ -515,6 +573,93 @@ public class MessageHeader implements Externalizable, Streamable
 		this.asynch = asynch;
 	}
    
+   /**
+    * Gets the body encoding field of this header, which contains information about how the body of the message is encoded. This field 
+    * is only transferred when using protocol version 7 or higher.
+    * 
+    * @since 2.2.1
+    */
+   public byte getBodyEncoding()
+   {
+      return this.bodyEncoding;
+   }
+   
+   /**
+    * Sets the body encoding field of this header.
+    * 
+    * @since 2.2.1
+    */
+   public void setBodyEncoding(final byte bodyEncoding)
+   {
+      this.bodyEncoding = bodyEncoding;
+   }
+   
+   /**
+    * Gets the id of the {@link com.teletalk.jserver.tcp.messaging.codec.BodyCodec} used to encode the message body, or 0 if no codec 
+    * was used (i.e. if the body was encoded using standard java serialization, or if the body isn't an object).
+    * 
+    * @since 2.2.1
+    */
+   public byte getBodyCodecId()
+   {
+      return (byte)(this.bodyEncoding & BODY_CODEC_ID_MASK);
+   }
+   
+   /**
+    * Sets the id of the {@link com.teletalk.jserver.tcp.messaging.codec.BodyCodec} used to encode the message body.
+    * 
+    * @since 2.2.1
+    */
+   public void setBodyCodecId(final byte bodyCodecId)
+   {
+      this.bodyEncoding = (byte)((this.bodyEncoding & ~BODY_CODEC_ID_MASK) | (bodyCodecId & BODY_CODEC_ID_MASK));
+   }
+   
+   /**
+    * Checks if the message body is compressed. The body length field of a header with a compressed body contains the uncompressed 
+    * length of the body.
+    * 
+    * @since 2.2.1
+    */
+   public boolean isBodyCompressed()
+   {
+      return (this.bodyEncoding & BODY_COMPRESSED_FLAG) != 0;
+   }
+   
+   /**
+    * Sets the flag indicating if the message body is compressed.
+    * 
+    * @since 2.2.1
+    */
+   public void setBodyCompressed(final boolean bodyCompressed)
+   {
+      if( bodyCompressed ) this.bodyEncoding = (byte)(this.bodyEncoding | BODY_COMPRESSED_FLAG);
+      else this.bodyEncoding = (byte)(this.bodyEncoding & ~BODY_COMPRESSED_FLAG);
+   }
+   
+   /**
+    * Gets the priority of this message, i.e. {@link #PRIORITY_LOW}, {@link #PRIORITY_NORMAL} (default) or {@link #PRIORITY_HIGH}. 
+    * High priority messages may be dispatched through endpoints reserved for such messages (see 
+    * {@link MessagingManager#getReservedPriorityEndPoints()}), and are processed before messages with lower priority when the message 
+    * handler threads of the receiving messaging system are busy. This field is only transferred when using protocol version 8 or higher.
+    * 
+    * @since 2.2.1
+    */
+   public byte getPriority()
+   {
+      return this.priority;
+   }
+   
+   /**
+    * Sets the priority of this message, i.e. {@link #PRIORITY_LOW}, {@link #PRIORITY_NORMAL} (default) or {@link #PRIORITY_HIGH}.
+    * 
+    * @since 2.2.1
+    */
+   public void setPriority(final byte priority)
+   {
+      this.priority = priority;
+   }
+   
    /**
     * Checks if the sender of this message header expects a response. If protocol version > 3 this method checks if the 
     * message was sent asynchronously, otherwise the value of the "response to id" field is checked to see 
@@ -573,6 +718,12 @@ public class MessageHeader implements Externalizable, Streamable
 	 */
 	public String toString()
 	{
+      try
+      {
+         this.deserializeRawFieldData();
+      }
+      catch(IllegalStateException ise){}
+      
 		return "MessageHeader[" +
 											"header type: " + this.headerType +
 				 							", message type: " + this.messageType + 
@@ -582,6 +733,8 @@ public class MessageHeader implements Externalizable, Streamable
 											", body length: " + this.bodyLength + 
 											", TTL: " + this.timeToLive +
 											", asynch: " + this.asynch +
+											", body encoding: " + this.bodyEncoding +
+											", priority: " + this.priority +
 											", description: " + ((this.description != null) ? this.description : "") + 
 											", custom header fields: " + ((this.customHeaderFields != null) ? this.customHeaderFields.toString() : "") +
                                  ", protocol version: " + this.protocolVersion + "]";
@@ -608,11 +761,100 @@ public class MessageHeader implements Externalizable, Streamable
 		this.description = input.readUTF();
 		this.timeToLive = input.readLong();
 		this.asynch = input.readBoolean();
+      if( this.protocolVersion >= 7 ) this.bodyEncoding = (byte)(input.readByte() & ~META_DATA_PRESENT_FLAG);
+      if( this.protocolVersion >= 8 ) this.priority = input.readByte();
+      
+      this.rawFieldData = null;
 
 		this.customHeaderFields = readHashMap(input);
       
       this.messagingSystemMetaData = readHashMap(input);
 	}
+   
+   /**
+    * Deserializes the state of this object from the specified {@link MessagingEndPointInputStream}, which must be reading from a buffer 
+    * containing exactly one serialized header. As opposed to {@link #read(InputStreamer)}, this method defers deserialization of the custom 
+    * header fields until they are first accessed. Until then, the serialized form of these fields is kept in a byte array, unless they are 
+    * empty, in which case nothing is kept at all. Headers containing messaging system meta data (which is always needed by the receiving endpoint) 
+    * are deserialized directly. For protocol versions lower than 7, where there is no meta data present flag, this is always the case.
+    * 
+    * @param input the {@link MessagingEndPointInputStream} to read data from.
+    * 
+    * @throws IOException if an I/O error occurs.
+    * 
+    * @since 2.2.1
+    */
+   void readDeferred(final MessagingEndPointInputStream input) throws IOException
+   {
+      this.headerType = input.readByte();
+      
+      this.senderId = input.readLong();
+      this.messageId = input.readLong();
+      this.responseToId = input.readLong();
+      this.messageType = input.readInt();
+      this.bodyLength = input.readLong();
+      this.description = input.readUTF();
+      this.timeToLive = input.readLong();
+      this.asynch = input.readBoolean();
+      boolean metaDataPresent = true;
+      if( this.protocolVersion >= 7 )
+      {
+         this.bodyEncoding = input.readByte();
+         metaDataPresent = (this.bodyEncoding & META_DATA_PRESENT_FLAG) != 0;
+         this.bodyEncoding = (byte)(this.bodyEncoding & ~META_DATA_PRESENT_FLAG);
+      }
+      if( this.protocolVersion >= 8 ) this.priority = input.readByte();
+      
+      synchronized(this)
+      {
+         this.rawFieldData = null;
+         this.customHeaderFields = null;
+         this.messagingSystemMetaData = null;
+         
+         final int fieldDataLength = input.available();
+         if( metaDataPresent )
+         {
+            this.customHeaderFields = readHashMap(input);
+            this.messagingSystemMetaData = readHashMap(input);
+         }
+         else if( fieldDataLength > EMPTY_FIELD_DATA_LENGTH )
+         {
+            this.rawFieldData = new byte[fieldDataLength];
+            input.readFully(this.rawFieldData);
+         }
+         else
+         {
+            input.skipBytes(fieldDataLength);
+         }
+      }
+   }
+   
+   /**
+    * Deserializes any custom header fields and messaging system meta data that were kept in serialized form by {@link #readDeferred(MessagingEndPointInputStream)}.
+    * 
+    * @throws IllegalStateException if the fields could not be deserialized. 
+    */
+   private synchronized void deserializeRawFieldData()
+   {
+      if( this.rawFieldData != null )
+      {
+         try
+         {
+            final MessagingEndPointInputStream input = new MessagingEndPointInputStream(new ByteArrayInputStream(this.rawFieldData));
+            this.customHeaderFields = readHashMap(input);
+            this.messagingSystemMetaData = readHashMap(input);
+         }
+         catch(IOException ioe)
+         {
+            throw new IllegalStateException("Error deserializing custom header fields and messaging system meta data of header (" + ioe + ")!");
+         }
+         finally
+         {
+            // Only clear the raw data when the fields have been set, so that other threads never observe a half deserialized header 
+            this.rawFieldData = null;
+         }
+      }
+   }
 	
    /**
     * Serializates the state of this object to the specified {@link OutputStreamer}.
@@ -635,10 +877,22 @@ public class MessageHeader implements Externalizable, Streamable
 		output.writeUTF(this.description != null ? this.description : "");
 		output.writeLong(this.timeToLive);
 		output.writeBoolean(this.asynch);
+      if( this.protocolVersion >= 7 ) output.writeByte(this.hasMessagingSystemMetaData() ? (this.bodyEncoding | META_DATA_PRESENT_FLAG) : this.bodyEncoding);
+      if( this.protocolVersion >= 8 ) output.writeByte(this.priority);
 		
-		writeHashMap(this.customHeaderFields, output);
-      
-      writeHashMap(this.messagingSystemMetaData, output);
+      synchronized(this)
+      {
+         if( this.rawFieldData != null ) // Fields not accessed since read - write them as they were received
+         {
+            output.write(this.rawFieldData);
+         }
+         else
+         {
+            writeHashMap(this.customHeaderFields, output);
+            
+            writeHashMap(this.messagingSystemMetaData, output);
+         }
+      }
 	}
 	
 	/**
@@ -734,6 +988,8 @@ public class MessageHeader implements Externalizable, Streamable
     */
    public void writeExternal(final ObjectOutput out) throws IOException
    {
+      this.deserializeRawFieldData();
+      
       switch(this.protocolVersion)
       {
          case 1:
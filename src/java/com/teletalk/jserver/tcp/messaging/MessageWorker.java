@@ -71,18 +71,31 @@ public class MessageWorker extends PoolWorker
    }
 
    /**
-    * Perfoms the logic of this MessageWorker.  
+    * Perfoms the logic of this MessageWorker. If this worker wasn't initialized with a message, messages are taken from the 
+    * priority ordered queue of received messages in the associated MessagingManager (see {@link MessagingManager#pollReceivedMessage()}), 
+    * until the queue is empty.
     */
    protected void work()
    {
-      try
-      {
-         this.messagingManager.messageReceivedImpl(this.message);
-      }
-      catch(Throwable t)
+      if( this.message == null ) this.message = this.messagingManager.pollReceivedMessage();
+      
+      while( this.message != null )
       {
-         this.messagingManager.getMessageProcessor().handleMessageReceiverError(message, t);  
-         if( t instanceof Error ) throw (Error)t;
+         try
+         {
+            this.messagingManager.messageReceivedImpl(this.message);
+         }
+         catch(Throwable t)
+         {
+            this.messagingManager.getMessageProcessor().handleMessageReceiverError(message, t);  
+            if( t instanceof Error ) throw (Error)t;
+         }
+         finally
+         {
+            this.messagingManager.messageProcessed(this.message);
+         }
+         
+         this.message = this.messagingManager.pollReceivedMessage();
       }
    }
 }
@@ -21,9 +21,12 @@
 package com.teletalk.jserver.tcp.messaging;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InvalidClassException;
@@ -31,14 +34,25 @@ import java.io.InvalidObjectException;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.util.HashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import org.apache.log4j.Level;
 
+import com.teletalk.jserver.tcp.NioSocket;
+import com.teletalk.jserver.tcp.NioSocket;
+import com.teletalk.jserver.tcp.NioSocketReceiver;
 import com.teletalk.jserver.tcp.TcpEndPoint;
 import com.teletalk.jserver.tcp.TcpEndPointIdentifier;
 import com.teletalk.jserver.tcp.messaging.command.ConnectRequest;
 import com.teletalk.jserver.tcp.messaging.command.ConnectResponse;
+import com.teletalk.jserver.tcp.messaging.codec.BodyCodec;
 import com.teletalk.jserver.tcp.messaging.command.EndPointCheckCommand;
 import com.teletalk.jserver.util.ClassLoaderObjectInputStream;
 import com.teletalk.jserver.util.NoHeadersClassLoaderObjectInputStream;
@@ -55,7 +69,12 @@ import com.teletalk.jserver.util.StringUtils;
  * MessagingEndPoint contains the nested class {@link MessageWriter}), which contains the message dispatch 
  * logic that is specific to the different types of messages (object, byte array and input stream). For object messages, this implementation 
  * performs the serialization of the message into a byte array, which is performed in-memory in order to be able to calculate the size of 
- * the message body and set the corresponding header field.
+ * the message body and set the corresponding header field.<br>
+ * <br>
+ * Messages are normally received by the thread of the endpoint. If the socket of the endpoint is a {@link NioSocket} (i.e. if 
+ * the {@link com.teletalk.jserver.tcp.NioSocketFactory} and {@link com.teletalk.jserver.tcp.NioServerSocketFactory} are used), 
+ * messages are instead received by the I/O threads of the {@link com.teletalk.jserver.tcp.NioTransport} once a link has been established 
+ * (with protocol version 4 or later), and the thread of the endpoint is released (see {@link #runClientSideImpl()}).
  *  
  * @author Tobias Lfstrand
  * 
@@ -68,6 +87,8 @@ public class MessagingEndPoint extends TcpEndPoint
 	
 	//private EndPointOutputStreamer endPointOutputStream;
    private OutputStream endPointOutputStream;
+   /** Buffered stream used when write coalescing is enabled, otherwise null. @since 2.2.1 */
+   private CoalescingOutputStream coalescingOutputStream;
 	
 	private final AbstractMessagingManager messagingManager;
 	
@@ -82,9 +103,13 @@ public class MessagingEndPoint extends TcpEndPoint
    // Header serialization buffers
    /*protected ByteArrayOutputStream headerObjectSerializerByteStream;
    protected NoHeadersObjectOutputStream headerObjectSerializerObjectStream;*/
-   protected ByteArrayOutputStream headerStreamableSerializerByteStream;
+   protected HeaderOutputBuffer headerStreamableSerializerByteStream;
    protected EndPointOutputStreamer headerStreamableSerializerStream;
    
+   // Header deserialization buffers (reused for each received header)
+   private byte[] headerReadBuffer;
+   private HeaderInputBuffer headerReadStream;
+   
    // For serialization of request data
    protected SpillOverByteArrayOutputStream objectSerializerByteStream;
 	protected NoHeadersObjectOutputStream objectSerializerObjectStream;
@@ -93,6 +118,10 @@ public class MessagingEndPoint extends TcpEndPoint
 	protected EndPointOutputStreamer streamableSerializerStream;
 	
 	private static final int BODY_READ_BUFFER_LIMIT = 8192;
+   
+   private static final int WRITE_BUFFER_SIZE = 64*1024;
+   
+   private static final int COMPRESSED_CHUNK_SIZE = 8192;
 		
 	// For streamed message bodies
 	private final int streamBufferSize;
@@ -103,6 +132,30 @@ public class MessagingEndPoint extends TcpEndPoint
    /** @since 2.1 (20050429) */
    private boolean firstEndPointInGroup = false;
    
+   /** Flag indicating if the output buffer contains coalesced (not yet flushed) writes. @since 2.2.1 */
+   private boolean flushPending = false;
+   
+   /** Stream for writing compressed message bodies, created when first needed. @since 2.2.1 */
+   private CompressedBodyOutputStream compressedBodyOutputStream = null;
+   
+   /** Stream for reading compressed message bodies, created when first needed. @since 2.2.1 */
+   private CompressedBodyInputStream compressedBodyInputStream = null;
+   
+   /** The time when data was last sent or received through this endpoint. @since 2.2.1 */
+   private volatile long lastActivityTime = System.currentTimeMillis();
+   
+   /** The number of dispatch claims (see {@link #tryClaimDispatch()}) currently held on this endpoint. Guarded by dispatchClaimLock. @since 2.2.1 */
+   private int dispatchClaims = 0;
+   
+   /** Lock guarding dispatchClaims, which is never held while acquiring any other lock. @since 2.2.1 */
+   private final Object dispatchClaimLock = new Object();
+   
+   /** The heartbeat of this endpoint, if heartbeat scheduling is enabled. @since 2.2.1 */
+   private volatile EndPointHeartbeat heartbeat = null;
+   
+   /** Flag indicating if this is a spare endpoint, kept out of endpoint selection (see {@link MessagingManager#getSpareEndPointsPerDestination()}). @since 2.2.1 */
+   private volatile boolean standby = false;
+   
    //private String status = "Waiting";
 		
 	/**
@@ -168,6 +221,16 @@ public class MessagingEndPoint extends TcpEndPoint
       return this.destination;
    }
    
+   /**
+    * Gets the messaging manager that this endpoint belongs to.
+    * 
+    * @since 2.2.1
+    */
+   protected AbstractMessagingManager getMessagingManager()
+   {
+      return this.messagingManager;
+   }
+   
    /**
     * Returns the time (millisecond value since January 1, 1970 UTC) when this endpoint last was made ready.
     * 
@@ -188,6 +251,118 @@ public class MessagingEndPoint extends TcpEndPoint
       this.lastReadyTime = lastReadyTime;
    }
    
+   /**
+    * Gets the time (millisecond value since January 1, 1970 UTC) when data was last sent or received through this endpoint.
+    * 
+    * @since 2.2.1
+    */
+   public long getLastActivityTime()
+   {
+      return this.lastActivityTime;
+   }
+   
+   /**
+    * Attempts to claim this endpoint for dispatching, without blocking. The claim only succeeds if no other thread is dispatching, or 
+    * is about to dispatch, a message through this endpoint. A successful claim must be released through {@link #releaseDispatchClaim()}.
+    * 
+    * @return <code>true</code> if the claim succeeded, otherwise <code>false</code>.
+    * 
+    * @since 2.2.1
+    */
+   boolean tryClaimDispatch()
+   {
+      synchronized(this.dispatchClaimLock)
+      {
+         if( this.dispatchClaims > 0 ) return false;
+         
+         this.dispatchClaims++;
+         return true;
+      }
+   }
+   
+   /**
+    * Releases a dispatch claim acquired through {@link #tryClaimDispatch()}.
+    * 
+    * @since 2.2.1
+    */
+   void releaseDispatchClaim()
+   {
+      synchronized(this.dispatchClaimLock)
+      {
+         if( this.dispatchClaims > 0 ) this.dispatchClaims--;
+      }
+   }
+   
+   /**
+    * Checks if a heartbeat is scheduled for this endpoint (see {@link MessagingManager#isHeartbeatSchedulingEnabled()}).
+    * 
+    * @since 2.2.1
+    */
+   public boolean isHeartbeatScheduled()
+   {
+      return this.heartbeat != null;
+   }
+   
+   /**
+    * Gets the heartbeat of this endpoint.
+    * 
+    * @since 2.2.1
+    */
+   EndPointHeartbeat getHeartbeat()
+   {
+      return this.heartbeat;
+   }
+   
+   /**
+    * Starts the specified heartbeat for this endpoint, replacing any previous heartbeat.
+    * 
+    * @param heartbeat the heartbeat.
+    * @param delay the delay (ms) until the first execution of the heartbeat.
+    * 
+    * @since 2.2.1
+    */
+   void startHeartbeat(final EndPointHeartbeat heartbeat, final long delay)
+   {
+      this.stopHeartbeat();
+      
+      this.lastActivityTime = System.currentTimeMillis();
+      this.heartbeat = heartbeat;
+      heartbeat.schedule(delay);
+   }
+   
+   /**
+    * Stops the heartbeat of this endpoint, if started.
+    * 
+    * @since 2.2.1
+    */
+   void stopHeartbeat()
+   {
+      final EndPointHeartbeat currentHeartbeat = this.heartbeat;
+      this.heartbeat = null;
+      if( currentHeartbeat != null ) currentHeartbeat.cancel();
+   }
+   
+   /**
+    * Checks if this is a spare endpoint, which is linked and checked like any other endpoint, but which is not used for dispatching 
+    * messages until it replaces a lost endpoint (see {@link MessagingManager#getSpareEndPointsPerDestination()}).
+    * 
+    * @since 2.2.1
+    */
+   public boolean isStandby()
+   {
+      return this.standby;
+   }
+   
+   /**
+    * Sets if this is a spare endpoint.
+    * 
+    * @since 2.2.1
+    */
+   void setStandby(final boolean standby)
+   {
+      this.standby = standby;
+   }
+   
    /**
     * Checks if a disconnect header has been received by this endpoint.
     * 
@@ -230,14 +405,25 @@ public class MessagingEndPoint extends TcpEndPoint
 	 * input streams reading data from the socket should be connected to that stream.<br>
 	 * <br>
 	 * This implementation creates an instance of the class {@link MessagingEndPointInputStream} connected to a 
-	 * <code>BufferedInputStream</code>, which in turn is connected to the socket input stream.
+	 * <code>BufferedInputStream</code>, which in turn is connected to the socket input stream. If the socket is a {@link NioSocket}, 
+	 * which buffers received data itself, the MessagingEndPointInputStream is connected directly to the socket input stream.
 	 * 
 	 * @throws IOException if an error occurs while creating the stream.
 	 */
 	protected void initInputStream() throws IOException
 	{
-		this.endPointInputStream = new MessagingEndPointInputStream(new BufferedInputStream(getSocket().getInputStream()));
+		final Socket socket = getSocket();
+		
+		// The stream of a NioSocket mustn't be read ahead, since data following the handshake is delivered to a receiver instead 
+		if( socket instanceof NioSocket ) this.endPointInputStream = new MessagingEndPointInputStream(socket.getInputStream());
+		else this.endPointInputStream = new MessagingEndPointInputStream(new BufferedInputStream(socket.getInputStream()));
 		super.inputStream = this.endPointInputStream;
+      
+      if( this.compressedBodyInputStream != null )
+      {
+         this.compressedBodyInputStream.end();
+         this.compressedBodyInputStream = null;
+      }
 	}
    
    /**
@@ -262,6 +448,20 @@ public class MessagingEndPoint extends TcpEndPoint
 
 		super.objectReader = this.classLoaderObjectInputStream;
 	}
+   
+   /**
+    * Called to initialize the <code>java.io.ObjectOutputStream</code> object (used in the method {@link #writeObject(Object)}) of this 
+    * MessagingEndPoint. Since the output stream of the endpoint is buffered, this method flushes the object stream to make sure that 
+    * any stream header is written to the socket.
+    * 
+    * @since 2.2.1
+    */
+   protected void initObjectOutputStream(final boolean writeHeaders) throws IOException
+   {
+      super.initObjectOutputStream(writeHeaders);
+      
+      super.objectWriter.flush();
+   }
 	
 	/**
 	 * Initializes the output stream (the field {@link #outputStream}) used to write data to the socket. All other 
@@ -274,8 +474,25 @@ public class MessagingEndPoint extends TcpEndPoint
 	protected void initOutputStream() throws IOException
 	{
 		//this.endPointOutputStream = new EndPointOutputStreamer(getSocket().getOutputStream());
-      this.endPointOutputStream = getSocket().getOutputStream();
+      // Only buffer writes to the socket if write coalescing is enabled (changes in the setting apply to new connections)
+      if( this.messagingManager.getWriteCoalescingWindow() > 0 )
+      {
+         this.coalescingOutputStream = new CoalescingOutputStream(getSocket().getOutputStream(), WRITE_BUFFER_SIZE);
+         this.endPointOutputStream = this.coalescingOutputStream;
+      }
+      else
+      {
+         this.coalescingOutputStream = null;
+         this.endPointOutputStream = getSocket().getOutputStream();
+      }
 		super.outputStream = this.endPointOutputStream;
+      this.flushPending = false;
+      
+      if( this.compressedBodyOutputStream != null )
+      {
+         this.compressedBodyOutputStream.end();
+         this.compressedBodyOutputStream = null;
+      }
 	}
    
    /**
@@ -288,9 +505,12 @@ public class MessagingEndPoint extends TcpEndPoint
       {
          super.setObjectStreamResetInterval(1); //Force a reset interval of 1
          
-         this.headerStreamableSerializerByteStream = new ByteArrayOutputStream(BYTE_BUFFER_INITIAL_SIZE);
+         this.headerStreamableSerializerByteStream = new HeaderOutputBuffer(BYTE_BUFFER_INITIAL_SIZE);
          this.headerStreamableSerializerStream = new EndPointOutputStreamer(this.headerStreamableSerializerByteStream);
          
+         this.headerReadBuffer = new byte[BYTE_BUFFER_INITIAL_SIZE];
+         this.headerReadStream = new HeaderInputBuffer();
+         
          
          this.objectSerializerByteStream = new SpillOverByteArrayOutputStream(BYTE_BUFFER_INITIAL_SIZE, BYTE_BUFFER_SPILL_OVER_LIMIT);
          this.objectSerializerObjectStream = new NoHeadersObjectOutputStream(objectSerializerByteStream);
@@ -644,7 +864,32 @@ public class MessagingEndPoint extends TcpEndPoint
 	 * 
 	 * @throws MessageDispatchFailedException if message dispatch failed.
 	 */
-	public synchronized void dispatchMessage(final MessageHeader header, final MessageWriter messageDispatchImpl) throws MessageDispatchFailedException
+	public void dispatchMessage(final MessageHeader header, final MessageWriter messageDispatchImpl) throws MessageDispatchFailedException
+	{
+	   // Register the dispatch before acquiring the lock on this endpoint, so that the heartbeat never has to wait for the lock 
+	   synchronized(this.dispatchClaimLock)
+	   {
+	      this.dispatchClaims++;
+	   }
+	   try
+	   {
+	      synchronized(this)
+	      {
+	         this.dispatchMessageInternal(header, messageDispatchImpl);
+	      }
+	   }
+	   finally
+	   {
+	      this.releaseDispatchClaim();
+	   }
+	}
+	
+	/**
+	 * Internal method for sending a message. Must be called with a lock on this endpoint.
+	 * 
+	 * @since 2.2.1
+	 */
+	private void dispatchMessageInternal(final MessageHeader header, final MessageWriter messageDispatchImpl) throws MessageDispatchFailedException
 	{
 		MessageDispatchFailedException messageDispatchFailedException = null;
 		
@@ -653,8 +898,25 @@ public class MessagingEndPoint extends TcpEndPoint
 		   // Execute message impl - i.e. send message
 			messageDispatchImpl.writeMessage(header, this, this.endPointOutputStream);
 			
-			// Flush
-			this.endPointOutputStream.flush();
+			final long writeCoalescingWindow = this.messagingManager.getWriteCoalescingWindow();
+			
+			// If write coalescing is enabled, defer flushing of asynchronous messages until the coalescing size is reached, a 
+			// non-asynchronous message is dispatched or the coalescing window has expired 
+			if( (writeCoalescingWindow > 0) && (this.coalescingOutputStream != null) && header.isAsynch() && 
+			      (this.coalescingOutputStream.getBufferedByteCount() < this.messagingManager.getWriteCoalescingSize()) )
+			{
+			   if( !this.flushPending )
+			   {
+			      this.flushPending = true;
+			      this.messagingManager.scheduleEndPointFlush(this, writeCoalescingWindow);
+			   }
+			}
+			else
+			{
+   			// Flush
+   			this.endPointOutputStream.flush();
+   			this.flushPending = false;
+			}
 		}
 		catch(MessageDispatchFailedException mdfe)
 		{
@@ -697,6 +959,61 @@ public class MessagingEndPoint extends TcpEndPoint
 		
 		if(messageDispatchFailedException != null) throw messageDispatchFailedException;
 	}
+   
+   /**
+    * Flushes any coalesced writes, i.e. asynchronous messages that have been written to the output buffer of this endpoint 
+    * without being flushed. This method is invoked by the {@link EndPointFlusher} of the messaging manager when the write 
+    * coalescing window has expired.
+    * 
+    * @since 2.2.1
+    */
+   protected synchronized void flushCoalescedWrites()
+   {
+      if( this.flushPending )
+      {
+         this.flushPending = false;
+         
+         try
+         {
+            if( super.isConnected() ) this.endPointOutputStream.flush();
+         }
+         catch(IOException ioe)
+         {
+            logError("Fatal communication error (" + ioe + ") while flushing coalesced messages! Destroying endpoint!");
+            
+            super.disconnect();
+         }
+      }
+   }
+	
+   /**
+    * Sends a flow control grant to the remote messaging system which this endpoint is connected to, in a header of the type 
+    * {@link MessageHeader#FLOW_CONTROL_HEADER}. Errors are only logged, since grants are refreshed periodically.
+    * 
+    * @since 2.2.1
+    */
+   protected synchronized void dispatchFlowControlGrant(final String grant)
+   {
+      try
+      {
+         if( super.isConnected() )
+         {
+            final MessageHeader flowControlHeader = new MessageHeader();
+            flowControlHeader.setHeaderType(MessageHeader.FLOW_CONTROL_HEADER);
+            final HashMap grantMetaData = new HashMap();
+            grantMetaData.put(MessagingManager.FLOW_CONTROL_GRANT_METADATA_KEY, grant);
+            flowControlHeader.setMessagingSystemMetaData(grantMetaData);
+            
+            this.dispatchHeader(flowControlHeader);
+            this.endPointOutputStream.flush();
+            this.flushPending = false;
+         }
+      }
+      catch(Exception e)
+      {
+         if( super.isDebugMode() ) log(Level.DEBUG, "Error while dispatching flow control grant!", e);
+      }
+   }
 	
 	/**
 	 * Sends a message header to the remote messaging system which this endpoint is connected to. 
@@ -705,6 +1022,8 @@ public class MessagingEndPoint extends TcpEndPoint
 	 */
 	protected void dispatchHeader(final MessageHeader header) throws IOException
 	{
+	   this.lastActivityTime = System.currentTimeMillis();
+	   
 		// Set sender id in header (to the id by which this messaging system is indentified in the remote messaging system)
 		header.setSenderId(this.destination.getClientId());
 		// Set protocol version in header
@@ -721,16 +1040,10 @@ public class MessagingEndPoint extends TcpEndPoint
          int headerLength = (int)this.headerStreamableSerializerByteStream.size();
          
          headerLength = headerLength - 4; // Remove size of headerLength
-                           
-         byte[] headerBytes = this.headerStreamableSerializerByteStream.toByteArray();
          
-         // Serialize header length
-         headerBytes[0] = (byte)((headerLength >>> 24));
-         headerBytes[1] = (byte)((headerLength >>> 16));
-         headerBytes[2] = (byte)((headerLength >>>  8));
-         headerBytes[3] = (byte)((headerLength >>>  0));
-         
-         this.endPointOutputStream.write(headerBytes);
+         // Serialize header length into the placeholder and write the buffer contents directly, without copying them
+         this.headerStreamableSerializerByteStream.writeIntAt(0, headerLength);
+         this.headerStreamableSerializerByteStream.writeTo(this.endPointOutputStream);
          
          this.resetHeaderStreamableSerializer();
 		}
@@ -772,6 +1085,86 @@ public class MessagingEndPoint extends TcpEndPoint
 		}
 	}
    
+   /**
+    * Gets the {@link BodyCodec} to use for encoding the specified object message body, i.e. the codec negotiated for the destination of 
+    * this endpoint, if that codec is able to encode the body. Streamable bodies are never encoded using a codec, since these are 
+    * already serialized in a compact fashion.
+    * 
+    * @return the codec to use, or <code>null</code> if standard java serialization is to be used.
+    * 
+    * @since 2.2.1
+    */
+   public BodyCodec getBodyCodec(final Object body)
+   {
+      if( (this.destination == null) || (body instanceof Streamable) ) return null;
+      
+      final BodyCodec bodyCodec = this.destination.getBodyCodec();
+      if( (bodyCodec != null) && (this.destination.getProtocolVersion() >= 7) && bodyCodec.canEncode(body) ) return bodyCodec;
+      else return null;
+   }
+   
+   /**
+    * Checks if a message body of the specified length is to be compressed when dispatched on this endpoint, i.e. if body compression 
+    * is enabled in the messaging manager, if the length is at least the compression threshold and if the destination supports 
+    * compressed message bodies.
+    * 
+    * @since 2.2.1
+    */
+   public boolean isBodyCompressionEnabled(final long bodyLength)
+   {
+      final long threshold = this.messagingManager.getBodyCompressionThreshold();
+      
+      return (threshold >= 0) && (bodyLength > 0) && (bodyLength >= threshold) && 
+               (this.destination != null) && this.destination.isBodyCompressionSupported();
+   }
+   
+   /**
+    * Gets the stream that the body of a message with the specified header is to be written to, after the header has been dispatched. 
+    * If the header indicates that the body is compressed, a compressing stream is returned, otherwise the output stream of this endpoint 
+    * is returned. The method {@link #endBody(MessageHeader)} must be called when the entire body has been written.
+    * 
+    * @since 2.2.1
+    */
+   public OutputStream getBodyOutputStream(final MessageHeader header)
+   {
+      if( header.isBodyCompressed() )
+      {
+         if( this.compressedBodyOutputStream == null ) this.compressedBodyOutputStream = new CompressedBodyOutputStream(this.endPointOutputStream);
+         this.compressedBodyOutputStream.begin(this.messagingManager.getBodyCompressionLevel());
+         
+         return this.compressedBodyOutputStream;
+      }
+      else return this.endPointOutputStream;
+   }
+   
+   /**
+    * Ends the writing of the body of a message with the specified header, i.e. writes any remaining compressed data if the body is compressed.
+    * 
+    * @throws IOException if an i/o error occurs.
+    * 
+    * @since 2.2.1
+    */
+   public void endBody(final MessageHeader header) throws IOException
+   {
+      if( header.isBodyCompressed() ) this.compressedBodyOutputStream.finish();
+   }
+   
+   /**
+    * Encodes an object using the specified {@link BodyCodec}, to the internal byte stream used for streamables.
+    * 
+    * @throws IOException if an i/o error occurs.
+    * 
+    * @since 2.2.1
+    */
+   public long encodeObject(final BodyCodec bodyCodec, final Object obj) throws IOException
+   {
+      bodyCodec.encode(obj, this.streamableSerializerStream);
+      
+      this.streamableSerializerStream.flush();
+      
+      return this.streamableSerializerByteStream.size();
+   }
+   
    /**
     * Serializes a streamable to the internal byte stream.
     * 
@@ -874,7 +1267,7 @@ public class MessagingEndPoint extends TcpEndPoint
       {
          if( this.headerStreamableSerializerByteStream.size() > (2 * BYTE_BUFFER_INITIAL_SIZE) )
          {
-            this.headerStreamableSerializerByteStream = new ByteArrayOutputStream(BYTE_BUFFER_INITIAL_SIZE);
+            this.headerStreamableSerializerByteStream = new HeaderOutputBuffer(BYTE_BUFFER_INITIAL_SIZE);
             this.headerStreamableSerializerStream = null;
          }
          else
@@ -905,6 +1298,7 @@ public class MessagingEndPoint extends TcpEndPoint
 	public void writeStreamBody(final MessageHeader header, final InputStream messageBodyInputStream) throws IOException
 	{
 		final long dataLength = header.getBodyLength();
+      final OutputStream bodyOutputStream = this.getBodyOutputStream(header);
 				
 		BufferedInputStream bufferedMessageBodyInputStream;
 		
@@ -935,13 +1329,78 @@ public class MessagingEndPoint extends TcpEndPoint
                      dataLeftToWrite + ", data transfer count: " + dataTransferCount + ".");
             }
 
-				this.endPointOutputStream.write(streamBuffer, 0, readBytes);
+				bodyOutputStream.write(streamBuffer, 0, readBytes);
 					
 				dataLeftToWrite -= readBytes;
 			}
 		}
+      
+      this.endBody(header);
 	}
    
+   /**
+    * Writes a body read from a file to the output stream of this endpoint. If the body isn't compressed and the socket of this endpoint 
+    * is backed by a channel (i.e. if it is a {@link NioSocket} or a socket created by a {@link SocketChannel}), the body is transferred 
+    * directly from the file to the socket using {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}. Otherwise 
+    * the body is read from the current position of the file channel (set to <code>position</code> by this method) and written using 
+    * {@link #writeStreamBody(MessageHeader, InputStream)}.
+    * 
+    * @param header the message header containing the body data length, i.e. the number of bytes to read from the file.
+    * @param fileChannel the channel of the file to read body data from.
+    * @param position the position in the file of the first byte of the body.
+    * 
+    * @throws IOException if an i/o error occurs.
+    * 
+    * @since 2.2.1
+    */
+   public void writeFileBody(final MessageHeader header, final FileChannel fileChannel, final long position) throws IOException
+   {
+      final long dataLength = header.getBodyLength();
+      final Socket socket = super.getSocket();
+      final SocketChannel socketChannel = (socket != null) ? socket.getChannel() : null;
+      
+      if( header.isBodyCompressed() || (dataLength <= 0) || (socketChannel == null) )
+      {
+         fileChannel.position(position);
+         this.writeStreamBody(header, Channels.newInputStream(fileChannel));
+         return;
+      }
+      
+      // Make sure the header (and any coalesced messages) are written to the socket before the body 
+      this.endPointOutputStream.flush();
+      
+      if( socket instanceof NioSocket )
+      {
+         ((NioSocket)socket).transferFrom(fileChannel, position, dataLength);
+      }
+      else
+      {
+         long transferred = 0;
+         long written;
+         
+         while(transferred < dataLength)
+         {
+            written = fileChannel.transferTo(position + transferred, dataLength - transferred, socketChannel);
+            
+            if( written <= 0 )
+            {
+               if( (position + transferred) >= fileChannel.size() )
+               {
+                  throw new EOFException("Error occurred while transferring data from file! Got unexpected end of file! Data left to write: " + 
+                        (dataLength - transferred) + ".");
+               }
+               else
+               {
+                  throw new IOException("Error occurred while transferring data from file! The socket accepted no data! Data left to write: " + 
+                        (dataLength - transferred) + ".");
+               }
+            }
+            
+            transferred += written;
+         }
+      }
+   }
+   
    
    /* ### MESSAGE DISPATCH METHODS END ### */
    
@@ -949,6 +1408,85 @@ public class MessagingEndPoint extends TcpEndPoint
    /* ### MESSAGE RECEIVE METHODS BEGIN ### */
    
    
+   /**
+    * Deserializes a header (protocol version 4 and later) from the specified stream, which normally is the reused header read stream. 
+    * Deserialization of custom header fields and meta data is deferred until accessed.
+    * 
+    * @since 2.2.1
+    */
+   private MessageHeader deserializeHeader(final InputStream headerInputStream) throws IOException
+   {
+      // Connect the endPointInputStream (temporarily) to the header stream
+      this.endPointInputStream.setStream(headerInputStream);
+      
+      final MessageHeader header = new MessageHeader();
+      // Set protocol version in header
+      header.setProtocolVersion(this.destination.getProtocolVersion());
+      // Read header (deserialization of custom header fields and meta data is deferred until accessed)
+      header.readDeferred(this.endPointInputStream);
+      
+      // Reconnect the endPointInputStream to the original input stream
+      this.endPointInputStream.setStream(null);
+      // Reset context object input stream, in case used (by Streamable)
+      this.endPointInputStream.setContextObjectInputStream(null);
+      
+      return header;
+   }
+   
+   /**
+    * Handles a received header. Control headers (meta data updates, disconnect headers, flow control grants and endpoint checks) are 
+    * processed by this method. For message headers, any piggy-backed meta data and flow control grants are processed.
+    * 
+    * @return <code>true</code> if the header is a message header, i.e. if a message is to be created for the header and its body read, 
+    * otherwise <code>false</code>.
+    * 
+    * @since 2.2.1
+    */
+   private boolean headerReceived(final MessageHeader header)
+   {
+      if( header.getHeaderType() == MessageHeader.META_DATA_UPDATE_HEADER ) 
+      {
+         HashMap oldDestinationMetaData = this.destination.getDestinationMetaData();
+         this.destination.setDestinationMetaData( header.getMessagingSystemMetaData() );
+         this.messagingManager.destinationMetaDataUpdated(this.destination, oldDestinationMetaData);
+      }
+      else if( header.getHeaderType() == MessageHeader.DISCONNECT_HEADER ) 
+      {
+         this.disconnectHeaderReceived = true;
+         if(super.isDebugMode()) logDebug("Received disconnect header.");
+         Thread.yield();
+         super.disconnect();
+      }
+      else if( header.getHeaderType() == MessageHeader.FLOW_CONTROL_HEADER ) 
+      {
+         final HashMap partialMetaData = header.getMessagingSystemMetaData();
+         if( partialMetaData != null ) this.messagingManager.flowControlGrantReceived(this.destination, partialMetaData.get(MessagingManager.FLOW_CONTROL_GRANT_METADATA_KEY));
+      }
+      else if ( header.getHeaderType() != MessageHeader.ENDPOINT_CHECK_HEADER ) 
+      {
+         // Check the presence of meta data first, to avoid deserializing custom header fields that are kept in serialized form 
+         final HashMap partialMetaData = header.hasMessagingSystemMetaData() ? header.getMessagingSystemMetaData() : null;
+         if( (partialMetaData != null) && partialMetaData.containsKey(MessagingManager.FLOW_CONTROL_GRANT_METADATA_KEY) )
+         {
+            // Handle piggy-backed flow control grants separately, since they aren't really meta data 
+            this.messagingManager.flowControlGrantReceived(this.destination, partialMetaData.remove(MessagingManager.FLOW_CONTROL_GRANT_METADATA_KEY));
+            if( partialMetaData.isEmpty() ) header.setMessagingSystemMetaData(null);
+         }
+         
+         if( (partialMetaData != null) && !partialMetaData.isEmpty() )
+         {
+            HashMap oldDestinationMetaData = this.destination.getDestinationMetaData();
+            // Update destination meta data with any piggy-backed meta data sent in the header
+            this.destination.updateDestinationMetaData( partialMetaData );
+            this.messagingManager.destinationMetaDataUpdated(this.destination, oldDestinationMetaData);
+         }
+         
+         return true;
+      }
+      
+      return false;
+   }
+   
    /**
     * Method for receiving responses.
     */
@@ -967,76 +1505,81 @@ public class MessagingEndPoint extends TcpEndPoint
             {
                int headerLength = this.endPointInputStream.readInt();
                
-               // Read header to byte array and create a stream to it, from which the endPointInputStream will (temporarily) read                
-               this.endPointInputStream.setStream(this.readAsByteArrayInputStream(headerLength));
-
-               header = new MessageHeader();
-               // Set protocol version in header
-               header.setProtocolVersion(this.destination.getProtocolVersion());
-               // Read header
-               header.read(this.endPointInputStream);
-               
-               // Reconnect the endPointInputStream to the original input stream
-               this.endPointInputStream.setStream(null);
-               // Reset context object input stream, in case used (by Streamable)
-               this.endPointInputStream.setContextObjectInputStream(null);
+               // Read header to the (reused) header buffer, and deserialize it from there
+               header = this.deserializeHeader(this.readHeaderBytes(headerLength));
             }
             // READ HEADER PROTOCOL <= 3
             else
             {
                header = (MessageHeader)super.readObject();
             }
+            
+            this.lastActivityTime = System.currentTimeMillis();
 
             // READ BODY
             if( (header != null) && isConnected() ) 
             {
-               if( header.getHeaderType() == MessageHeader.META_DATA_UPDATE_HEADER ) 
+               if( this.headerReceived(header) ) 
                {
-                  HashMap oldDestinationMetaData = this.destination.getDestinationMetaData();
-                  this.destination.setDestinationMetaData( header.getMessagingSystemMetaData() );
-                  this.messagingManager.destinationMetaDataUpdated(this.destination, oldDestinationMetaData);
-               }
-               else if( header.getHeaderType() == MessageHeader.DISCONNECT_HEADER ) 
-               {
-                  this.disconnectHeaderReceived = true;
-                  if(super.isDebugMode()) logDebug("Received disconnect header.");
-                  Thread.yield();
-                  super.disconnect();
-               }
-               else if ( header.getHeaderType() != MessageHeader.ENDPOINT_CHECK_HEADER ) 
-               {
-                  if( header.getMessagingSystemMetaData() != null )
+                  final long bodyLength = header.getBodyLength();
+                  final boolean bufferBody = (bodyLength > 0) && (bodyLength <= this.messagingManager.getBodyBufferingLimit());
+                  final boolean compressedBody = (bodyLength > 0) && header.isBodyCompressed();
+                  
+                  if( compressedBody )
                   {
-                     HashMap oldDestinationMetaData = this.destination.getDestinationMetaData();
-                     // Update destination meta data with any piggy-backed meta data sent in the header
-                     this.destination.updateDestinationMetaData( header.getMessagingSystemMetaData() );
-                     this.messagingManager.destinationMetaDataUpdated(this.destination, oldDestinationMetaData);
+                     // Read the body through a decompressing stream, from which the endPointInputStream will (temporarily) read
+                     if( this.compressedBodyInputStream == null ) this.compressedBodyInputStream = new CompressedBodyInputStream(this.endPointInputStream.getStream());
+                     this.compressedBodyInputStream.begin();
+                     this.endPointInputStream.setStream(this.compressedBodyInputStream);
                   }
                   
-                  if( (header.getBodyLength() > 0) && (header.getBodyLength() < BODY_READ_BUFFER_LIMIT) )
+                  if( !bufferBody && (bodyLength > 0) && (bodyLength < BODY_READ_BUFFER_LIMIT) )
                   {
                      // Read body to byte array and create a stream to it, from which the endPointInputStream will (temporarily) read
-                     this.endPointInputStream.setStream(this.readAsByteArrayInputStream((int)header.getBodyLength()));
+                     final ByteArrayInputStream bodyStream = this.readAsByteArrayInputStream((int)bodyLength);
+                     if( compressedBody ) this.compressedBodyInputStream.finish();
+                     this.endPointInputStream.setStream(bodyStream);
                   }
                   
                   message = this.messagingManager.createMessage(header, this);
                                                                
                   if(super.isDebugMode()) logDebug("Received message with header " + header.toString() + ".");
                   
-                  // Associate the endpoint input stream (MessagingEndPointInputStream) with the current message (to limit 
-                  // the number of bytes that may be read from the stream to length of the body of the current message).
-                  this.endPointInputStream.setCurrentMessage(message);
-                  
-                  // Notify messaging manager of a new message
-                  this.messagingManager.messageReceived(message);
+                  if( bufferBody )
+                  {
+                     // Read the entire body into a buffer owned by the message, which means that there is no need to wait 
+                     // for the message to be handled before receiving the next message  
+                     this.readBufferedBody(message);
                      
-                  // Wait for read completion (and skip any unread/remaining data)
-                  this.waitForMessageReadCompletion(message);
-                  
-                  // Reset temporay message body byte array stream, if set
-                  this.endPointInputStream.setStream(null);
-                  // Reset context object input stream, in case used (by Streamable)
-                  this.endPointInputStream.setContextObjectInputStream(null);
+                     if( compressedBody )
+                     {
+                        this.compressedBodyInputStream.finish();
+                        this.endPointInputStream.setStream(null);
+                     }
+                     
+                     // Notify messaging manager of a new message
+                     this.messagingManager.messageReceived(message);
+                  }
+                  else
+                  {
+                     // Associate the endpoint input stream (MessagingEndPointInputStream) with the current message (to limit 
+                     // the number of bytes that may be read from the stream to length of the body of the current message).
+                     this.endPointInputStream.setCurrentMessage(message);
+                     
+                     // Notify messaging manager of a new message
+                     this.messagingManager.messageReceived(message);
+                        
+                     // Wait for read completion (and skip any unread/remaining data)
+                     this.waitForMessageReadCompletion(message);
+                     
+                     // Skip the remaining compressed data (if not already done)
+                     if( compressedBody ) this.compressedBodyInputStream.finish();
+                     
+                     // Reset temporay message body byte array stream, if set
+                     this.endPointInputStream.setStream(null);
+                     // Reset context object input stream, in case used (by Streamable)
+                     this.endPointInputStream.setContextObjectInputStream(null);
+                  }
   
                   // Check if an error occurred while reading the message body
                   /*if( message.getError() != null ) // WHY DISCONNECT ON ERROR?!?
@@ -1174,13 +1717,34 @@ public class MessagingEndPoint extends TcpEndPoint
    
 			
 	/**
-	 * Method implemeting client side behaviour for this MessagingEndPoint.
+	 * Method implemeting client side behaviour for this MessagingEndPoint.<br>
+	 * <br>
+	 * If the socket of this endpoint is a {@link NioSocket} and the protocol version is 4 or later, this endpoint is detached from its 
+	 * thread, and messages are received by the I/O thread serving the socket (through a {@link NioSocketReceiver}). The thread of this 
+	 * endpoint then terminates, and this endpoint is cleaned up when receiving has ended. Otherwise messages are received by the thread of 
+	 * this endpoint, until the endpoint is disconnected.
 	 */
 	protected void runClientSideImpl()
 	{
 		if(isConnected() && isLinkEstablished())
 		{
-			receiveMessages(); // Receive incomming messages
+		   final Socket socket = super.getSocket();
+		   
+		   if( (socket instanceof NioSocket) && (this.destination.getProtocolVersion() >= 4) )
+		   {
+		      super.detachFromThread();
+		      
+		      try
+		      {
+		         ((NioSocket)socket).setReceiver(new NioSocketMessageReceiver()); // Receive incomming messages in the I/O thread
+		      }
+		      catch(RuntimeException e)
+		      {
+		         logError("Unable to receive messages through the I/O thread of the socket! Destroying endpoint!", e);
+		         super.detachedWorkCompleted();
+		      }
+		   }
+		   else receiveMessages(); // Receive incomming messages
 		}
 	}
 	
@@ -1194,7 +1758,8 @@ public class MessagingEndPoint extends TcpEndPoint
       
 
 	/**
-	 * Checks this MessagingEndPoint for errors.
+	 * Checks this MessagingEndPoint for errors. If a heartbeat is scheduled for this endpoint (see {@link #isHeartbeatScheduled()}), 
+	 * this method will only check the state of the endpoint, and leave the dispatching of endpoint check headers to the heartbeat. 
 	 * 
 	 * @return <code>true</code> if there were no errors, otherwise <code>false</code>.
 	 */
@@ -1202,34 +1767,62 @@ public class MessagingEndPoint extends TcpEndPoint
 	{
 		if(super.check())
 		{
-		   synchronized(this)
-			{
-            // Dispatch EndPointCheckCommand, but only if a link is established (i.e. after handshaking has completed)
-            if( isLinkEstablished() )
+		   if( this.heartbeat != null ) return true;
+		   else return this.dispatchEndPointCheck();
+		}
+		return false;
+	}
+	
+	/**
+	 * Checks the state of this endpoint (i.e. the state of the endpoint thread and the socket), without dispatching anything and without 
+	 * acquiring a lock on this endpoint.
+	 * 
+	 * @return <code>true</code> if there were no errors, otherwise <code>false</code>.
+	 * 
+	 * @since 2.2.1
+	 */
+	boolean checkState()
+	{
+	   return super.check();
+	}
+	
+	/**
+	 * Dispatches a header of the type {@link MessageHeader#ENDPOINT_CHECK_HEADER} through this endpoint, if a link is established.
+	 * 
+	 * @return <code>true</code> if the header was successfully dispatched (or if no link is established), otherwise <code>false</code>.
+	 * 
+	 * @since 2.2.1
+	 */
+	boolean dispatchEndPointCheck()
+	{
+	   synchronized(this)
+		{
+         // Dispatch EndPointCheckCommand, but only if a link is established (i.e. after handshaking has completed)
+         if( isLinkEstablished() )
+         {
+            try
             {
-               try
-               {
-						if( this.destination.getProtocolVersion() >= 4 )
-						{
-							this.dispatchHeader(new EndPointCheckCommand());
-						}
-						else
-						{
-							this.dispatchHeader(new EndPointCheckCommand()); 
-							this.resetObjectSerializer(true, true);
-						}
-                  return true;
-               }
-               catch(Exception e)
-               {
-                  if( super.isDebugMode() ) log(Level.DEBUG, "Exception occurred while sending StatusCommand during check.", e);
-                  return false;
-               }
+					if( this.destination.getProtocolVersion() >= 4 )
+					{
+						this.dispatchHeader(new EndPointCheckCommand());
+					}
+					else
+					{
+						this.dispatchHeader(new EndPointCheckCommand()); 
+						this.resetObjectSerializer(true, true);
+					}
+               this.endPointOutputStream.flush();
+               this.flushPending = false;
+               return true;
             }
-            else return true; // Currently connecting/performing handshaking
-			}
+            catch(Exception e)
+            {
+               if( super.isDebugMode() ) log(Level.DEBUG, "Exception occurred while sending StatusCommand during check.", e);
+               return false;
+            }
+         }
+         else return true; // Currently connecting/performing handshaking
 		}
-		return false;
 	}
 	
 	/**
@@ -1242,6 +1835,9 @@ public class MessagingEndPoint extends TcpEndPoint
 		this.destination = null;
       this.disconnectHeaderReceived = false;
       this.firstEndPointInGroup = false;;
+      this.flushPending = false;
+      this.stopHeartbeat();
+      this.standby = false;
 	}
 	
 	/**
@@ -1254,6 +1850,13 @@ public class MessagingEndPoint extends TcpEndPoint
 		this.destination = null;
       this.disconnectHeaderReceived = false;
       this.firstEndPointInGroup = false;;
+      this.stopHeartbeat();
+      
+      // Release the native resources of the compression streams
+      if( this.compressedBodyOutputStream != null ) this.compressedBodyOutputStream.end();
+      if( this.compressedBodyInputStream != null ) this.compressedBodyInputStream.end();
+      this.compressedBodyOutputStream = null;
+      this.compressedBodyInputStream = null;
 	}
    
    /**
@@ -1269,6 +1872,8 @@ public class MessagingEndPoint extends TcpEndPoint
             MessageHeader disconnectHeader = new MessageHeader();
             disconnectHeader.setHeaderType(MessageHeader.DISCONNECT_HEADER);
             this.dispatchHeader(disconnectHeader);
+            this.endPointOutputStream.flush();
+            this.flushPending = false;
             Thread.yield();
          }
       }
@@ -1287,6 +1892,35 @@ public class MessagingEndPoint extends TcpEndPoint
    /* ### INTERNAL LOW LEVEL/UTILITY METHODS BEGIN ### */
    
    
+   /**
+    * Reads a header of the specified length from the input stream of the endpoint into the header read buffer (which is grown if needed), 
+    * and returns the reused stream for reading from that buffer.
+    * 
+    * @since 2.2.1
+    */
+   private InputStream readHeaderBytes(final int length) throws IOException
+   {
+      this.ensureHeaderReadBufferCapacity(length);
+      
+      this.endPointInputStream.readFully(this.headerReadBuffer, 0, length);
+      
+      this.headerReadStream.setBuffer(this.headerReadBuffer, length);
+      return this.headerReadStream;
+   }
+   
+   /**
+    * Grows the header read buffer, if needed, to be able to hold a header of the specified length.
+    * 
+    * @since 2.2.1
+    */
+   private void ensureHeaderReadBufferCapacity(final int length)
+   {
+      if( this.headerReadBuffer.length < length )
+      {
+         this.headerReadBuffer = new byte[Math.max(length, 2 * this.headerReadBuffer.length)];
+      }
+   }
+   
    /**
     * Reads form the input stream of the endpoint into a ByteArrayInputStream.
     */
@@ -1301,6 +1935,45 @@ public class MessagingEndPoint extends TcpEndPoint
       
       return new ByteArrayInputStream(bodyBytes);
    }
+   
+   /**
+    * Reads the entire body of the specified message from the input stream of the endpoint into a buffer, which is then set as the 
+    * buffered body of the message. Bodies larger than the body buffering spill over limit of the messaging manager are spilled over to disk.
+    * 
+    * @since 2.2.1
+    */
+   private void readBufferedBody(final Message message) throws IOException
+   {
+      final long bodyLength = message.getHeader().getBodyLength();
+      final int spillOverLimit = this.messagingManager.getBodyBufferingSpillOverLimit();
+      
+      if( bodyLength <= spillOverLimit )
+      {
+         message.setBufferedBody(this.readAsByteArrayInputStream((int)bodyLength), null);
+      }
+      else
+      {
+         final SpillOverByteArrayOutputStream spillOverBuffer = new SpillOverByteArrayOutputStream(BODY_READ_BUFFER_LIMIT, spillOverLimit);
+         final byte[] readBuffer = new byte[BODY_READ_BUFFER_LIMIT];
+         int read;
+         
+         try
+         {
+            for(long leftToRead = bodyLength; leftToRead > 0; leftToRead -= read)
+            {
+               read = this.endPointInputStream.read(readBuffer, 0, (int)Math.min(readBuffer.length, leftToRead));
+               spillOverBuffer.write(readBuffer, 0, read);
+            }
+         }
+         catch(IOException ioe)
+         {
+            spillOverBuffer.reset();
+            throw ioe;
+         }
+         
+         message.setBufferedBody(spillOverBuffer.getInputStream(), spillOverBuffer);
+      }
+   }
 	
    /**
     * This method is not allowed in this implementation, and thus, an IOException will be thrown if invoked. 
@@ -1412,6 +2085,520 @@ public class MessagingEndPoint extends TcpEndPoint
       }
    }
    
+   /**
+    * Receiver of messages for endpoints that have a {@link NioSocket}, which is called by the I/O thread serving the socket when data 
+    * has been read. Data is parsed as it arrives, using the same framing as {@link MessagingEndPoint#receiveMessages()} does for 
+    * protocol version 4 and later. Since an I/O thread can't wait for message bodies to be read by the threads handling the messages, 
+    * all message bodies are buffered, regardless of the body buffering limit of the messaging manager. Bodies larger than the body 
+    * buffering spill over limit are spilled over to disk.<br>
+    * <br>
+    * Note that {@link AbstractMessagingManager#messageReceived(Message)} is called by the I/O thread, which means that a messaging 
+    * manager that blocks while waiting for a thread to handle a message (i.e. when the message handling thread pool is exhausted) blocks 
+    * all endpoints served by the same I/O thread.
+    * 
+    * @since 2.2.1
+    */
+   private final class NioSocketMessageReceiver implements NioSocketReceiver
+   {
+      private static final int READ_HEADER_LENGTH = 0;
+      private static final int READ_HEADER = 1;
+      private static final int READ_BODY = 2;
+      private static final int READ_CHUNK_LENGTH = 3;
+      private static final int READ_CHUNK = 4;
+      
+      private int state = READ_HEADER_LENGTH;
+      
+      /** Buffer for header and chunk lengths. */
+      private final byte[] lengthBuffer = new byte[4];
+      
+      /** The number of bytes currently read to the length buffer, the header read buffer or the chunk buffer. */
+      private int filled = 0;
+      
+      private int headerLength;
+      
+      private MessageHeader header;
+      
+      /** The number of (uncompressed) body bytes left to receive. */
+      private long bodyLeft;
+      
+      /** Buffer for bodies that aren't larger than the spill over limit. */
+      private byte[] body;
+      
+      /** Buffer for bodies that are larger than the spill over limit. */
+      private SpillOverByteArrayOutputStream spillOverBody;
+      
+      private int chunkLength;
+      
+      private byte[] chunkBuffer;
+      
+      private Inflater inflater;
+      
+      private byte[] inflateBuffer;
+      
+      public void dataReceived(final ByteBuffer data) throws IOException
+      {
+         while( data.hasRemaining() )
+         {
+            switch(this.state)
+            {
+               case READ_HEADER_LENGTH:
+                  if( this.fill(data, this.lengthBuffer, 4) ) this.headerLengthReceived(this.getLength());
+                  break;
+               case READ_HEADER:
+                  if( this.fill(data, headerReadBuffer, this.headerLength) ) this.headerReceived();
+                  break;
+               case READ_BODY:
+                  this.bodyDataReceived(data);
+                  break;
+               case READ_CHUNK_LENGTH:
+                  if( this.fill(data, this.lengthBuffer, 4) ) this.chunkLengthReceived(this.getLength());
+                  break;
+               default: // READ_CHUNK
+                  if( this.fill(data, this.chunkBuffer, this.chunkLength) ) this.chunkReceived();
+                  break;
+            }
+         }
+      }
+      
+      public void receiveEnded(final Exception cause)
+      {
+         try
+         {
+            if( isConnected() )
+            {
+               if( cause instanceof IOException )
+               {
+                  if( isDebugMode() ) logError("Fatal communication error (" + cause + ") while receiving message! Destroying endpoint!", cause);
+                  else logError("Fatal communication error (" + cause + ") while receiving message! Destroying endpoint!");
+               }
+               else logError("Fatal error while receiving message! Destroying endpoint!", cause);
+            }
+            
+            if( this.spillOverBody != null ) this.spillOverBody.reset();
+            if( this.inflater != null ) this.inflater.end();
+         }
+         finally
+         {
+            // Clean up the endpoint
+            MessagingEndPoint.this.detachedWorkCompleted();
+         }
+      }
+      
+      /**
+       * Copies data to the specified buffer until it contains <code>length</code> bytes.
+       * 
+       * @return <code>true</code> if the buffer is filled.
+       */
+      private boolean fill(final ByteBuffer data, final byte[] buffer, final int length)
+      {
+         final int count = Math.min(data.remaining(), length - this.filled);
+         data.get(buffer, this.filled, count);
+         this.filled += count;
+         
+         if( this.filled < length ) return false;
+         
+         this.filled = 0;
+         return true;
+      }
+      
+      private int getLength()
+      {
+         return ((this.lengthBuffer[0] & 0xFF) << 24) | ((this.lengthBuffer[1] & 0xFF) << 16) | ((this.lengthBuffer[2] & 0xFF) << 8) | (this.lengthBuffer[3] & 0xFF);
+      }
+      
+      private void headerLengthReceived(final int length) throws IOException
+      {
+         if( length <= 0 ) throw new IOException("Invalid header length: " + length + "!");
+         
+         ensureHeaderReadBufferCapacity(length);
+         this.headerLength = length;
+         this.state = READ_HEADER;
+      }
+      
+      private void headerReceived() throws IOException
+      {
+         this.state = READ_HEADER_LENGTH;
+         
+         headerReadStream.setBuffer(headerReadBuffer, this.headerLength);
+         final MessageHeader header = deserializeHeader(headerReadStream);
+         
+         lastActivityTime = System.currentTimeMillis();
+         
+         if( isConnected() && MessagingEndPoint.this.headerReceived(header) )
+         {
+            final long bodyLength = header.getBodyLength();
+            
+            if( bodyLength > 0 )
+            {
+               this.header = header;
+               this.bodyLeft = bodyLength;
+               
+               final int spillOverLimit = messagingManager.getBodyBufferingSpillOverLimit();
+               if( bodyLength <= spillOverLimit ) this.body = new byte[(int)bodyLength];
+               else this.spillOverBody = new SpillOverByteArrayOutputStream(BODY_READ_BUFFER_LIMIT, spillOverLimit);
+               
+               if( header.isBodyCompressed() )
+               {
+                  if( this.inflater == null )
+                  {
+                     this.inflater = new Inflater();
+                     this.inflateBuffer = new byte[COMPRESSED_CHUNK_SIZE];
+                  }
+                  else this.inflater.reset();
+                  
+                  this.state = READ_CHUNK_LENGTH;
+               }
+               else this.state = READ_BODY;
+            }
+            else this.messageReceived(header, new ByteArrayInputStream(new byte[0]), null);
+         }
+      }
+      
+      private void bodyDataReceived(final ByteBuffer data) throws IOException
+      {
+         final int count = (int)Math.min(data.remaining(), this.bodyLeft);
+         
+         if( data.hasArray() )
+         {
+            this.writeBody(data.array(), data.arrayOffset() + data.position(), count);
+            data.position(data.position() + count);
+         }
+         else
+         {
+            final byte[] bytes = new byte[count];
+            data.get(bytes);
+            this.writeBody(bytes, 0, count);
+         }
+         
+         if( this.bodyLeft == 0 ) this.bodyReceived();
+      }
+      
+      private void chunkLengthReceived(final int length) throws IOException
+      {
+         if( length == 0 )
+         {
+            if( (this.bodyLeft != 0) || !this.inflater.finished() ) throw new IOException("Invalid compressed message body (body length mismatch)!");
+            this.bodyReceived();
+         }
+         else if( (length < 0) || (length > CompressedBodyInputStream.MAX_CHUNK_LENGTH) ) throw new IOException("Invalid compressed message body chunk length: " + length + "!");
+         else
+         {
+            if( (this.chunkBuffer == null) || (this.chunkBuffer.length < length) ) this.chunkBuffer = new byte[Math.max(length, COMPRESSED_CHUNK_SIZE)];
+            this.chunkLength = length;
+            this.state = READ_CHUNK;
+         }
+      }
+      
+      private void chunkReceived() throws IOException
+      {
+         this.state = READ_CHUNK_LENGTH;
+         this.inflater.setInput(this.chunkBuffer, 0, this.chunkLength);
+         
+         try
+         {
+            int inflated;
+            while( (inflated = this.inflater.inflate(this.inflateBuffer)) > 0 )
+            {
+               this.writeBody(this.inflateBuffer, 0, inflated);
+            }
+         }
+         catch(DataFormatException dfe)
+         {
+            throw new IOException("Invalid compressed message body (" + dfe.getMessage() + ")!");
+         }
+      }
+      
+      private void writeBody(final byte[] b, final int off, final int len) throws IOException
+      {
+         if( len > this.bodyLeft ) throw new IOException("Message body is longer than the body length of the header (" + this.header.getBodyLength() + ")!");
+         
+         if( this.body != null ) System.arraycopy(b, off, this.body, (int)(this.body.length - this.bodyLeft), len);
+         else this.spillOverBody.write(b, off, len);
+         
+         this.bodyLeft -= len;
+      }
+      
+      private void bodyReceived() throws IOException
+      {
+         this.state = READ_HEADER_LENGTH;
+         
+         final MessageHeader header = this.header;
+         final InputStream bodyInputStream;
+         final SpillOverByteArrayOutputStream spillOverBuffer = this.spillOverBody;
+         
+         if( this.body != null ) bodyInputStream = new ByteArrayInputStream(this.body);
+         else bodyInputStream = spillOverBuffer.getInputStream();
+         
+         this.header = null;
+         this.body = null;
+         this.spillOverBody = null;
+         
+         this.messageReceived(header, bodyInputStream, spillOverBuffer);
+      }
+      
+      private void messageReceived(final MessageHeader header, final InputStream bodyInputStream, final SpillOverByteArrayOutputStream spillOverBuffer)
+      {
+         final Message message = messagingManager.createMessage(header, MessagingEndPoint.this);
+         
+         if( isDebugMode() ) logDebug("Received message with header " + header.toString() + ".");
+         
+         // The body is read from the buffer, and never from the stream of the endpoint 
+         message.setBufferedBody(bodyInputStream, spillOverBuffer);
+         
+         // Notify messaging manager of a new message
+         messagingManager.messageReceived(message);
+      }
+   }
+   
+   /**
+    * Buffered output stream used for writing data to the socket, which makes it possible to check the number of buffered bytes.
+    * 
+    * @since 2.2.1
+    */
+   private static final class CoalescingOutputStream extends BufferedOutputStream
+   {
+      public CoalescingOutputStream(final OutputStream outputStream, final int size)
+      {
+         super(outputStream, size);
+      }
+      
+      public synchronized int getBufferedByteCount()
+      {
+         return super.count;
+      }
+   }
+   
+   /**
+    * Byte array output stream used for serialization of headers, which makes it possible to write the header length in place, 
+    * into the serialized data.
+    * 
+    * @since 2.2.1
+    */
+   protected static final class HeaderOutputBuffer extends ByteArrayOutputStream
+   {
+      public HeaderOutputBuffer(final int size)
+      {
+         super(size);
+      }
+      
+      /**
+       * Writes the specified int value at the specified position in the buffer. The position must be within the data already written to this stream.
+       */
+      public synchronized void writeIntAt(final int pos, final int value)
+      {
+         if( (pos < 0) || ((pos + 4) > super.count) ) throw new IndexOutOfBoundsException("Invalid position: " + pos + "!");
+         
+         super.buf[pos] = (byte)((value >>> 24));
+         super.buf[pos + 1] = (byte)((value >>> 16));
+         super.buf[pos + 2] = (byte)((value >>>  8));
+         super.buf[pos + 3] = (byte)((value >>>  0));
+      }
+   }
+   
+   /**
+    * Byte array input stream that may be reset to read from a new buffer, used for deserialization of headers.
+    * 
+    * @since 2.2.1
+    */
+   private static final class HeaderInputBuffer extends ByteArrayInputStream
+   {
+      public HeaderInputBuffer()
+      {
+         super(new byte[0]);
+      }
+      
+      public synchronized void setBuffer(final byte[] buffer, final int length)
+      {
+         super.buf = buffer;
+         super.pos = 0;
+         super.mark = 0;
+         super.count = length;
+      }
+   }
+   
+   /**
+    * Output stream used for writing compressed message bodies. A compressed body is written as a sequence of chunks of deflated 
+    * data, each preceded by its length, and terminated by a chunk of length 0. This makes it possible to write streamed bodies, 
+    * of which the compressed length isn't known in advance, directly to the endpoint.
+    * 
+    * @since 2.2.1
+    */
+   private static final class CompressedBodyOutputStream extends OutputStream
+   {
+      private final OutputStream output;
+      
+      private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+      
+      private final byte[] chunkBuffer = new byte[4 + COMPRESSED_CHUNK_SIZE];
+      
+      private final byte[] singleByte = new byte[1];
+      
+      public CompressedBodyOutputStream(final OutputStream output)
+      {
+         this.output = output;
+      }
+      
+      /**
+       * Prepares this stream for writing a new compressed body.
+       */
+      public void begin(final int level)
+      {
+         this.deflater.reset();
+         this.deflater.setLevel(level);
+      }
+      
+      public void write(final int b) throws IOException
+      {
+         this.singleByte[0] = (byte)b;
+         this.write(this.singleByte, 0, 1);
+      }
+      
+      public void write(final byte[] b, final int off, final int len) throws IOException
+      {
+         if( len > 0 )
+         {
+            this.deflater.setInput(b, off, len);
+            while( !this.deflater.needsInput() ) this.writeChunk();
+         }
+      }
+      
+      /**
+       * Writes any remaining compressed data of the current body, followed by the terminating chunk.
+       */
+      public void finish() throws IOException
+      {
+         this.deflater.finish();
+         while( !this.deflater.finished() ) this.writeChunk();
+         
+         this.writeChunkLength(0);
+         this.output.write(this.chunkBuffer, 0, 4);
+      }
+      
+      /**
+       * Releases the resources held by the deflater of this stream.
+       */
+      public void end()
+      {
+         this.deflater.end();
+      }
+      
+      private void writeChunk() throws IOException
+      {
+         final int length = this.deflater.deflate(this.chunkBuffer, 4, COMPRESSED_CHUNK_SIZE);
+         if( length > 0 )
+         {
+            this.writeChunkLength(length);
+            this.output.write(this.chunkBuffer, 0, 4 + length);
+         }
+      }
+      
+      private void writeChunkLength(final int length)
+      {
+         this.chunkBuffer[0] = (byte)(length >>> 24);
+         this.chunkBuffer[1] = (byte)(length >>> 16);
+         this.chunkBuffer[2] = (byte)(length >>> 8);
+         this.chunkBuffer[3] = (byte)length;
+      }
+   }
+   
+   /**
+    * Input stream used for reading compressed message bodies, written by a {@link CompressedBodyOutputStream}.
+    * 
+    * @since 2.2.1
+    */
+   private static final class CompressedBodyInputStream extends InputStream
+   {
+      private static final int MAX_CHUNK_LENGTH = 1024*1024;
+      
+      private final DataInputStream input;
+      
+      private final Inflater inflater = new Inflater();
+      
+      private byte[] chunkBuffer = new byte[COMPRESSED_CHUNK_SIZE];
+      
+      private final byte[] singleByte = new byte[1];
+      
+      private boolean endOfBody = true;
+      
+      public CompressedBodyInputStream(final InputStream input)
+      {
+         this.input = new DataInputStream(input);
+      }
+      
+      /**
+       * Prepares this stream for reading a new compressed body.
+       */
+      public void begin()
+      {
+         this.inflater.reset();
+         this.endOfBody = false;
+      }
+      
+      public int read() throws IOException
+      {
+         return (this.read(this.singleByte, 0, 1) > 0) ? (this.singleByte[0] & 0xFF) : -1;
+      }
+      
+      public int read(final byte[] b, final int off, final int len) throws IOException
+      {
+         if( len == 0 ) return 0;
+         
+         try
+         {
+            int inflated;
+            while( (inflated = this.inflater.inflate(b, off, len)) == 0 )
+            {
+               if( this.inflater.finished() || !this.inflater.needsInput() || !this.readChunk() ) return -1;
+            }
+            return inflated;
+         }
+         catch(DataFormatException dfe)
+         {
+            throw new IOException("Invalid compressed message body (" + dfe.getMessage() + ")!");
+         }
+      }
+      
+      /**
+       * Skips any remaining chunks of the current body, including the terminating chunk.
+       */
+      public void finish() throws IOException
+      {
+         while( this.readChunk() );
+      }
+      
+      /**
+       * Releases the resources held by the inflater of this stream.
+       */
+      public void end()
+      {
+         this.inflater.end();
+      }
+      
+      /**
+       * Reads the next chunk of the current body and sets it as input to the inflater.
+       * 
+       * @return <code>false</code> if the terminating chunk has been read.
+       */
+      private boolean readChunk() throws IOException
+      {
+         if( this.endOfBody ) return false;
+         
+         final int length = this.input.readInt();
+         if( length == 0 )
+         {
+            this.endOfBody = true;
+            return false;
+         }
+         else if( (length < 0) || (length > MAX_CHUNK_LENGTH) ) throw new IOException("Invalid compressed message body chunk length: " + length + "!");
+         
+         if( this.chunkBuffer.length < length ) this.chunkBuffer = new byte[length];
+         this.input.readFully(this.chunkBuffer, 0, length);
+         this.inflater.setInput(this.chunkBuffer, 0, length);
+         
+         return true;
+      }
+   }
+   
    private static class EndPointOutputStreamer extends DataOutputStream implements OutputStreamer
    {
       private ObjectOutputStream currentContextObjectOutputStream = null;
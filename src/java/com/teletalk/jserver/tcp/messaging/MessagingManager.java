@@ -31,6 +31,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.zip.Deflater;
 
 import org.apache.log4j.Level;
 
@@ -45,6 +46,7 @@ import com.teletalk.jserver.net.sns.client.ServiceProvider;
 import com.teletalk.jserver.net.sns.client.SnsClientManager;
 import com.teletalk.jserver.pool.ThreadPool;
 import com.teletalk.jserver.property.BooleanProperty;
+import com.teletalk.jserver.property.EnumProperty;
 import com.teletalk.jserver.property.MultiStringProperty;
 import com.teletalk.jserver.property.NumberProperty;
 import com.teletalk.jserver.property.Property;
@@ -55,9 +57,14 @@ import com.teletalk.jserver.tcp.TcpEndPoint;
 import com.teletalk.jserver.tcp.TcpEndPointGroup;
 import com.teletalk.jserver.tcp.TcpEndPointIdentifier;
 import com.teletalk.jserver.tcp.messaging.admin.ServerAdministrationHandler;
+import com.teletalk.jserver.tcp.messaging.codec.BodyCodec;
 import com.teletalk.jserver.tcp.messaging.command.MetaDataUpdateCommand;
 import com.teletalk.jserver.tcp.messaging.rpc.MessagingRpcInterface;
+import com.teletalk.jserver.util.PriorityMessageQueue;
+import com.teletalk.jserver.util.PriorityMessageQueueItem;
+import com.teletalk.jserver.util.SpillOverByteArrayOutputStream;
 import com.teletalk.jserver.util.StringUtils;
+import com.teletalk.jserver.util.TimerWheel;
 
 /**
  * The MessagingManager is the main class of the messaging framework, designed to facilitate message based communication
@@ -145,6 +152,20 @@ import com.teletalk.jserver.util.StringUtils;
  * <li><b>proxyingEnabled</b> - Boolean value indicating if proxying should be enabled.</li>
  * <li><b>remoteServiceNames</b> - The names of the services that this MessagingManager is to connect to. Addresses for the service names will be fetched from an SNS.</li>  
  * <li><b>localServiceNames</b> - The names of the services provided by this MessagingManager, used for registratration in an SNS.</li> 
+ * <li><b>endPointMultiplexingEnabled</b> - Boolean value indicating if endpoints should be shared between concurrent message dispatches instead of being checked out exclusively.</li> 
+ * <li><b>bodyBufferingLimit</b> - The maximum length of message bodies that are to be buffered by the receiving endpoint, to release the endpoint while the message is handled. 0 means that buffering is disabled.</li> 
+ * <li><b>bodyBufferingSpillOverLimit</b> - The size limit above which buffered message bodies are spilled over to disk.</li> 
+ * <li><b>writeCoalescingWindow</b> - The maximum time(ms) that flushing of asynchronous messages written to an endpoint may be deferred, to enable several messages to be flushed at once. 0 means that write coalescing is disabled.</li> 
+ * <li><b>writeCoalescingSize</b> - The number of buffered bytes in an endpoint that will trigger a flush when write coalescing is enabled.</li> 
+ * <li><b>bodyCodecs</b> - The class names of the body codecs (see {@link BodyCodec}) supported by this MessagingManager, in order of preference.</li> 
+ * <li><b>bodyCompressionThreshold</b> - The minimum length of message bodies that are to be compressed when sent to destinations supporting compression. -1 means that compression is disabled.</li> 
+ * <li><b>bodyCompressionLevel</b> - The compression level (0-9) used when compressing message bodies.</li> 
+ * <li><b>flowControlWindow</b> - The maximum number of unprocessed messages that each remote messaging system may send to this MessagingManager. 0 means that flow control is disabled.</li> 
+ * <li><b>flowControlPolicy</b> - The policy (block, fail fast or reroute) used when a message is to be sent to a destination that has no flow control credits left.</li> 
+ * <li><b>reservedPriorityEndPoints</b> - The number of endpoints in each destination that are reserved for high priority messages (see {@link MessageHeader#getPriority()}).</li> 
+ * <li><b>heartbeatSchedulingEnabled</b> - Boolean value indicating if endpoint checks should be scheduled individually for each endpoint, and only be dispatched through endpoints that have been idle for the duration of the check interval.</li> 
+ * <li><b>reconnectDelay</b> - The initial delay in milliseconds before lost client side endpoints are recreated. The delay is doubled for each consecutive failed attempt, up to the check interval. 0 means that endpoints are only recreated by the periodic check.</li> 
+ * <li><b>spareEndPointsPerDestination</b> - The number of spare client side endpoints that are to be created for each destination in addition to the maximum number of client endpoints. Spare endpoints are not used for dispatching messages until they replace a lost endpoint, to handle failover without dropping below that number.</li> 
  * </span>
  * </ul>
  * 
@@ -162,6 +183,9 @@ public class MessagingManager extends AbstractMessagingManager implements Servic
    
    /** The default timeout used when waiting for a asynchronous message to be dispatched (2000ms). @since 2.1.2 (20060208) */
    public static final int DEFAULT_ASYNCH_MESSAGE_DISPATCH_TIMEOUT = 2 * 1000;
+   
+   /** The default write coalescing size (16384 bytes). @since 2.2.1 */
+   public static final int DEFAULT_WRITE_COALESCING_SIZE = 16 * 1024;
 
    /**
     * Meta data key for server load (fetched from {@link com.teletalk.jserver.load.LoadManager}). The value of this
@@ -202,7 +226,61 @@ public class MessagingManager extends AbstractMessagingManager implements Servic
     * @since 2.1.1 (20060109)
     */
    public static final String PROXYING_ENABLED_METADATA_KEY = "com.teletalk.jserver.tcp.messaging.proxy.enabled";
-
+   
+   /**
+    * Meta data key used to publish the names of the {@link BodyCodec}s supported by a messaging system. The value of this meta data 
+    * field is a list of codec names.
+    * 
+    * @since 2.2.1
+    */
+   public static final String BODY_CODECS_METADATA_KEY = "com.teletalk.jserver.tcp.messaging.BodyCodecs";
+   
+   /**
+    * Meta data key used to publish that a messaging system is able to receive compressed message bodies. The value of this 
+    * meta data field is a Boolean.
+    * 
+    * @since 2.2.1
+    */
+   public static final String BODY_COMPRESSION_METADATA_KEY = "com.teletalk.jserver.tcp.messaging.BodyCompression";
+   
+   /**
+    * Meta data key used to publish that a messaging system is able to handle typed RPC calls (see 
+    * {@link com.teletalk.jserver.tcp.messaging.rpc.MessagingRpcInterface#createTypedProxy(Class, String, boolean)}). The value of this 
+    * meta data field is a Boolean.
+    * 
+    * @since 2.2.1
+    */
+   public static final String TYPED_RPC_METADATA_KEY = "com.teletalk.jserver.tcp.messaging.TypedRpc";
+   
+   /**
+    * Meta data key used to publish that a messaging system supports credit based flow control. The value of this meta data field 
+    * is an Integer containing the flow control window of the messaging system (see {@link #getFlowControlWindow()}), where 0 means 
+    * that the messaging system doesn't limit the number of messages sent to it.
+    * 
+    * @since 2.2.1
+    */
+   public static final String FLOW_CONTROL_METADATA_KEY = "com.teletalk.jserver.tcp.messaging.FlowControl";
+   
+   /**
+    * Partial meta data key used to piggy-back flow control grants on messages sent to a remote messaging system. Grants are also 
+    * sent in headers of the type {@link MessageHeader#FLOW_CONTROL_HEADER}.
+    * 
+    * @since 2.2.1
+    */
+   public static final String FLOW_CONTROL_GRANT_METADATA_KEY = "com.teletalk.jserver.tcp.messaging.FlowControlGrant";
+   
+   /** Flow control policy: wait for credits to be granted by the remote messaging system. @since 2.2.1 */
+   public static final int FLOW_CONTROL_POLICY_BLOCK = 0;
+   
+   /** Flow control policy: fail immediately with a {@link MessageDispatchFailedException} if there are no credits. @since 2.2.1 */
+   public static final int FLOW_CONTROL_POLICY_FAIL_FAST = 1;
+   
+   /** Flow control policy: dispatch the message to another matching destination with credits, if no specific destination was requested. @since 2.2.1 */
+   public static final int FLOW_CONTROL_POLICY_REROUTE = 2;
+   
+   /** The names of the flow control policies. @since 2.2.1 */
+   public static final String[] FLOW_CONTROL_POLICY_NAMES = new String[]{"block", "fail fast", "reroute"};
+   
    
    
    private static final ThreadLocal CurrentMessage = new ThreadLocal();
@@ -252,9 +330,18 @@ public class MessagingManager extends AbstractMessagingManager implements Servic
    
    /** The thread pool containing {@link MessageWorker}objects for handling of incomming messages. */
    protected ThreadPool messageHandlerPool;
+   
+   /** Queue of received messages waiting to be processed by the {@link MessageWorker} threads, ordered by message priority. @since 2.2.1 */
+   private final PriorityMessageQueue receivedMessageQueue = new PriorityMessageQueue();
 
    /** The initial size of the pool that holds the MessageWorker objects (Defaultvalue = 10). */
    private int messageHandlerPoolSize = 10;
+   
+   /** The thread pool containing {@link BroadcastDispatchWorker} objects for concurrent dispatch of broadcast messages. @since 2.2.1 */
+   private ThreadPool broadcastDispatchPool;
+   
+   /** The size of the pool that holds the BroadcastDispatchWorker objects. @since 2.2.1 */
+   private static final int BROADCAST_DISPATCH_POOL_SIZE = 5;
 
    
    /** @since 1.3.1, build 670 */
@@ -272,6 +359,22 @@ public class MessagingManager extends AbstractMessagingManager implements Servic
     * @since 2.1 (20050517) */
    private final ArrayList remoteServiceAddresses;
    
+   /** Thread for flushing coalesced endpoint writes. @since 2.2.1 */
+   private EndPointFlusher endPointFlusher = null;
+   
+   /** Timer wheel used for managing timeouts, such as the response timeouts of messages dispatched through 
+    * {@link #dispatchMessageWithFuture(MessageHeader, MessageWriter, MessageDispatcherProperties, ResponseListener)}. @since 2.2.1 */
+   private TimerWheel timerWheel = null;
+   
+   /** Timer wheel used for scheduling endpoint heartbeats (see {@link EndPointHeartbeat}) and reconnects. @since 2.2.1 */
+   private TimerWheel endPointTimerWheel = null;
+   
+   /** Lock guarding the transitions of client side endpoints into and out of standby (see {@link MessagingEndPoint#isStandby()}). @since 2.2.1 */
+   private final Object standbyLock = new Object();
+   
+   /** The supported body codecs, in order of preference. @since 2.2.1 */
+   private volatile BodyCodec[] supportedBodyCodecs = new BodyCodec[0];
+   
    
    // ### MONITORS
    
@@ -286,6 +389,16 @@ public class MessagingManager extends AbstractMessagingManager implements Servic
     */
    private final Object checkThreadWaitMonitor;
    
+   /**
+    * Monitor used for access to the endpoint flusher.
+    */
+   private final Object endPointFlusherLock;
+   
+   /**
+    * Monitor used for access to the timer wheel.
+    */
+   private final Object timerWheelLock;
+   
    
    /* ### PROPERTIES BEGIN ### */
    
@@ -365,6 +478,140 @@ public class MessagingManager extends AbstractMessagingManager implements Servic
     */
    protected final BooleanProperty useProxiedMessageReceivers;
    
+   /**
+    * Flag indicating if endpoints should be multiplexed, i.e. shared between threads dispatching messages concurrently, 
+    * instead of being checked out exclusively by the dispatching thread. When enabled, messages are written to an endpoint 
+    * one at a time (serialized on the endpoint), but the endpoint remains available for selection by other threads while a 
+    * message is being dispatched. Responses are correlated with the waiting threads through the message id. 
+    * 
+    * @since 2.2.1
+    */
+   protected final BooleanProperty endPointMultiplexingEnabled;
+   
+   /**
+    * Property for the maximum length of message bodies that are to be buffered in their entirety by the receiving endpoint. When a 
+    * message body is buffered, the endpoint doesn't have to wait for the message receiver to consume the body before receiving the 
+    * next message, which means that a slow message receiver won't stall other messages received on the same endpoint. Message bodies 
+    * larger than this limit will be read directly from the endpoint. A value of 0 (default) means that buffering is disabled.
+    * 
+    * @since 2.2.1
+    */
+   protected final NumberProperty bodyBufferingLimit;
+   
+   /**
+    * Property for the size limit above which buffered message bodies are spilled over to disk instead of being kept in memory.
+    * 
+    * @since 2.2.1
+    */
+   protected final NumberProperty bodyBufferingSpillOverLimit;
+   
+   /**
+    * Property for the write coalescing window, i.e. the maximum time in milliseconds that flushing of asynchronous messages written to 
+    * an endpoint may be deferred. When write coalescing is enabled, asynchronous messages are written to the output buffer of the 
+    * endpoint, which is flushed when the number of buffered bytes reaches the write coalescing size, when a non-asynchronous message is 
+    * dispatched on the endpoint or when the write coalescing window expires. This makes it possible to send bursts of small 
+    * asynchronous messages using fewer system calls and network packets. A value of 0 (default) means that write coalescing is disabled.
+    * 
+    * @since 2.2.1
+    */
+   protected final NumberProperty writeCoalescingWindow;
+   
+   /**
+    * Property for the number of buffered bytes in an endpoint that will trigger a flush when write coalescing is enabled.
+    * 
+    * @since 2.2.1
+    */
+   protected final NumberProperty writeCoalescingSize;
+   
+   /**
+    * Property for the class names of the {@link BodyCodec} implementations supported by this MessagingManager, in order of preference. 
+    * The names of the supported codecs are published to remote messaging systems through the meta data field {@link #BODY_CODECS_METADATA_KEY}, 
+    * and object message bodies dispatched to a destination will be encoded using the first of these codecs that is also supported 
+    * by the remote messaging system (and is able to encode the body). If no such codec exists, standard java serialization is used. 
+    * The built-in codec is {@link com.teletalk.jserver.tcp.messaging.codec.BinaryBodyCodec}. By default, no codecs are used.
+    * 
+    * @since 2.2.1
+    */
+   protected final MultiStringProperty bodyCodecs;
+   
+   /**
+    * Property for the minimum length of message bodies that are to be compressed when sent to a destination. Compressed bodies are only 
+    * sent to destinations that have published their support for this through the meta data field {@link #BODY_COMPRESSION_METADATA_KEY}. 
+    * Compression trades CPU time for bandwidth, and is mainly useful for large bodies sent over slow links. A value of -1 (default) 
+    * means that compression is disabled.
+    * 
+    * @since 2.2.1
+    */
+   protected final NumberProperty bodyCompressionThreshold;
+   
+   /**
+    * Property for the compression level (0-9) used when compressing message bodies. The default is 1, i.e. the fastest compression.
+    * 
+    * @since 2.2.1
+    */
+   protected final NumberProperty bodyCompressionLevel;
+   
+   /**
+    * Property for the flow control window, i.e. the maximum number of messages received from each remote messaging system that may 
+    * be waiting to be processed or being processed at any given time. The window is published to remote messaging systems through the 
+    * meta data field {@link #FLOW_CONTROL_METADATA_KEY}, and remote systems that support flow control will then only send as many 
+    * messages as they have been granted credits for. Credits are granted when messages have been processed by the message handler 
+    * threads. Responses are never flow controlled. A value of 0 (default) means that flow control is disabled.
+    * 
+    * @since 2.2.1
+    */
+   protected final NumberProperty flowControlWindow;
+   
+   /**
+    * Property for the policy used by the message dispatch handler when a message is to be sent to a destination that has no flow 
+    * control credits left, i.e. {@link #FLOW_CONTROL_POLICY_BLOCK} (default), {@link #FLOW_CONTROL_POLICY_FAIL_FAST} or 
+    * {@link #FLOW_CONTROL_POLICY_REROUTE}.
+    * 
+    * @since 2.2.1
+    */
+   protected final EnumProperty flowControlPolicy;
+   
+   /**
+    * Property for the number of endpoints in each destination that are reserved for messages with priority 
+    * {@link MessageHeader#PRIORITY_HIGH}. Messages with lower priority are only dispatched through an endpoint of a destination if 
+    * more than this number of endpoints are available in that destination. The reservation is enforced by the endpoint selection 
+    * strategy (see {@link PriorityEndPointSelectionStrategy}). A value of 0 (default) means that no endpoints are reserved.
+    * 
+    * @since 2.2.1
+    */
+   protected final NumberProperty reservedPriorityEndPoints;
+   
+   /**
+    * Flag indicating if endpoint checks should be scheduled individually for each endpoint through a timer wheel, instead of being 
+    * dispatched through all endpoints by the check thread. When enabled, an endpoint check header is only dispatched through an endpoint 
+    * that has been idle (i.e. that hasn't sent or received any data) for the duration of the check interval, and never while a message 
+    * is being dispatched through the endpoint. Changes to this property only affect endpoints that are connected after the change.
+    * 
+    * @since 2.2.1
+    */
+   protected final BooleanProperty heartbeatSchedulingEnabled;
+   
+   /**
+    * Property for the initial delay in milliseconds before the missing endpoints of a client side destination are recreated, after an 
+    * endpoint has been disconnected (or has failed to connect). Missing endpoints are created in parallel. For each consecutive failed 
+    * attempt the delay is doubled (exponential backoff), up to the check interval. The actual delay is randomized between half and the 
+    * full delay (jitter), to avoid that a large number of endpoints reconnect simultaneously. A value of 0 means that missing endpoints 
+    * are only recreated by the periodic check (see {@link #getCheckInteval()}).
+    * 
+    * @since 2.2.1
+    */
+   protected final NumberProperty reconnectDelay;
+   
+   /**
+    * Property for the number of spare endpoints that are to be created for each client side destination, in addition to the number 
+    * specified by the property <code>connectionsPerDestination</code>. Spare endpoints are connected and handshaked ahead of time and 
+    * take part in endpoint selection like any other endpoint, which means that the loss of a single endpoint doesn't reduce the 
+    * number of available endpoints below <code>connectionsPerDestination</code>. The default value is 0.
+    * 
+    * @since 2.2.1
+    */
+   protected final NumberProperty spareEndPointsPerDestination;
+   
    
    /* ### PROPERTIES END ### */
    
@@ -658,11 +905,83 @@ public class MessagingManager extends AbstractMessagingManager implements Servic
       this.useProxiedMessageReceivers.setDescription("Boolean value indicating if message receivers available via a proxy should be used for message dispatch. " + 
             "This property will affect the destinations returned by the methods getDestinations(String) and getDestinations(Map).");
       addProperty(this.useProxiedMessageReceivers);
+      
+      this.endPointMultiplexingEnabled = new BooleanProperty(this, "endPointMultiplexingEnabled", false, BooleanProperty.MODIFIABLE_NO_RESTART);
+      this.endPointMultiplexingEnabled.setDescription("Boolean value indicating if endpoints should be shared between concurrent message dispatches " + 
+            "(multiplexed) instead of being checked out exclusively by the dispatching thread.");
+      addProperty(this.endPointMultiplexingEnabled);
+      
+      this.bodyBufferingLimit = new NumberProperty(this, "bodyBufferingLimit", 0, NumberProperty.MODIFIABLE_NO_RESTART);
+      this.bodyBufferingLimit.setDescription("The maximum length in bytes of message bodies that are to be buffered by the receiving endpoint, " + 
+            "to release the endpoint for receiving other messages while a message is being handled. 0 means that buffering is disabled.");
+      addProperty(this.bodyBufferingLimit);
+      
+      this.bodyBufferingSpillOverLimit = new NumberProperty(this, "bodyBufferingSpillOverLimit", SpillOverByteArrayOutputStream.DEFAULT_SPILL_OVER_LIMIT, 
+            NumberProperty.MODIFIABLE_NO_RESTART);
+      this.bodyBufferingSpillOverLimit.setDescription("The size limit in bytes above which buffered message bodies are spilled over to disk.");
+      addProperty(this.bodyBufferingSpillOverLimit);
+      
+      this.writeCoalescingWindow = new NumberProperty(this, "writeCoalescingWindow", 0, NumberProperty.MODIFIABLE_NO_RESTART);
+      this.writeCoalescingWindow.setDescription("The maximum time(ms) that flushing of asynchronous messages written to an endpoint may be deferred, " + 
+            "to enable several messages to be flushed at once. 0 means that write coalescing is disabled.");
+      addProperty(this.writeCoalescingWindow);
+      
+      this.writeCoalescingSize = new NumberProperty(this, "writeCoalescingSize", DEFAULT_WRITE_COALESCING_SIZE, NumberProperty.MODIFIABLE_NO_RESTART);
+      this.writeCoalescingSize.setDescription("The number of buffered bytes in an endpoint that will trigger a flush when write coalescing is enabled.");
+      addProperty(this.writeCoalescingSize);
+      
+      this.bodyCodecs = new MultiStringProperty(this, "bodyCodecs", "", MultiStringProperty.MODIFIABLE_NO_RESTART);
+      this.bodyCodecs.setDescription("The class names of the body codecs supported by this MessagingManager, in order of preference " + 
+            "(for instance com.teletalk.jserver.tcp.messaging.codec.BinaryBodyCodec). Object message bodies are encoded using the first codec " + 
+            "also supported by the remote messaging system, or using standard java serialization if there is no such codec.");
+      addProperty(this.bodyCodecs);
+      
+      this.bodyCompressionThreshold = new NumberProperty(this, "bodyCompressionThreshold", -1, NumberProperty.MODIFIABLE_NO_RESTART);
+      this.bodyCompressionThreshold.setDescription("The minimum length in bytes of message bodies that are to be compressed when sent to destinations " + 
+            "supporting compression. -1 means that compression is disabled.");
+      addProperty(this.bodyCompressionThreshold);
+      
+      this.bodyCompressionLevel = new NumberProperty(this, "bodyCompressionLevel", Deflater.BEST_SPEED, NumberProperty.MODIFIABLE_NO_RESTART);
+      this.bodyCompressionLevel.setDescription("The compression level (0-9) used when compressing message bodies.");
+      addProperty(this.bodyCompressionLevel);
+      
+      this.flowControlWindow = new NumberProperty(this, "flowControlWindow", 0, NumberProperty.MODIFIABLE_OWNER_RESTART);
+      this.flowControlWindow.setDescription("The maximum number of unprocessed messages that each remote messaging system may send to this " + 
+            "MessagingManager (credit based flow control). 0 means that flow control is disabled.");
+      addProperty(this.flowControlWindow);
+      
+      this.flowControlPolicy = new EnumProperty(this, "flowControlPolicy", FLOW_CONTROL_POLICY_BLOCK, FLOW_CONTROL_POLICY_NAMES, EnumProperty.MODIFIABLE_NO_RESTART);
+      this.flowControlPolicy.setDescription("The policy used when a message is to be sent to a destination that has no flow control credits left: " + 
+            "block (wait for credits), fail fast or reroute (to another matching destination, if no specific destination was requested).");
+      addProperty(this.flowControlPolicy);
+      
+      this.reservedPriorityEndPoints = new NumberProperty(this, "reservedPriorityEndPoints", 0, NumberProperty.MODIFIABLE_NO_RESTART);
+      this.reservedPriorityEndPoints.setDescription("The number of endpoints in each destination that are reserved for high priority messages. " + 
+            "0 means that no endpoints are reserved.");
+      addProperty(this.reservedPriorityEndPoints);
+      
+      this.heartbeatSchedulingEnabled = new BooleanProperty(this, "heartbeatSchedulingEnabled", false, BooleanProperty.MODIFIABLE_NO_RESTART);
+      this.heartbeatSchedulingEnabled.setDescription("Boolean value indicating if endpoint checks should be scheduled individually for each endpoint, " + 
+            "and only be dispatched through endpoints that have been idle for the duration of the check interval.");
+      addProperty(this.heartbeatSchedulingEnabled);
+      
+      this.reconnectDelay = new NumberProperty(this, "reconnectDelay", 0, NumberProperty.MODIFIABLE_NO_RESTART);
+      this.reconnectDelay.setDescription("The initial delay in milliseconds before lost client side endpoints are recreated. The delay is doubled " + 
+            "for each consecutive failed attempt, up to the check interval. 0 means that endpoints are only recreated by the periodic check.");
+      addProperty(this.reconnectDelay);
+      
+      this.spareEndPointsPerDestination = new NumberProperty(this, "spareEndPointsPerDestination", 0, NumberProperty.MODIFIABLE_NO_RESTART);
+      this.spareEndPointsPerDestination.setDescription("The number of spare client side endpoints that are to be created for each destination in addition " + 
+            "to the maximum number of client endpoints. Spare endpoints are not used for dispatching messages until they replace a lost endpoint, " + 
+            "to handle failover without dropping below that number.");
+      addProperty(this.spareEndPointsPerDestination);
 
       
       /* ### INIT MONITORS ### */
       this.mainMonitor = new Object(); //this.namedMessageReceivers;
       this.checkThreadWaitMonitor = new Object();
+      this.endPointFlusherLock = new Object();
+      this.timerWheelLock = new Object();
    }
    
    
@@ -690,6 +1009,12 @@ public class MessagingManager extends AbstractMessagingManager implements Servic
             }
          }
          
+         if (this.broadcastDispatchPool == null)
+         {
+            this.broadcastDispatchPool = new ThreadPool(this, "BroadcastDispatchPool", BROADCAST_DISPATCH_POOL_SIZE, BroadcastDispatchWorker.class);
+            super.addSubComponent(this.broadcastDispatchPool, true);
+         }
+         
          // Attempt to get old property "maximum connections/destination"
          super.initFromConfiguredProperty(this.connectionsPerDestination, "maximum connections/destination", false, true);
          // Attempt to get old property "response timeout"
@@ -760,6 +1085,18 @@ public class MessagingManager extends AbstractMessagingManager implements Servic
          
          // Initialize proxying enabled meta data
          if( this.proxyingEnabled.booleanValue() ) this.setMetaData(PROXYING_ENABLED_METADATA_KEY, new Boolean(true));
+         
+         // Initialize body codecs (and meta data)
+         this.initBodyCodecs();
+         
+         // Publish support for compressed message bodies
+         this.setMetaData(BODY_COMPRESSION_METADATA_KEY, new Boolean(true));
+         
+         // Publish support for typed RPC calls
+         this.setMetaData(TYPED_RPC_METADATA_KEY, new Boolean(true));
+         
+         // Publish support for flow control, and the flow control window
+         this.setMetaData(FLOW_CONTROL_METADATA_KEY, new Integer(this.flowControlWindow.intValue()));
       }
       catch (Exception e)
       {
@@ -778,6 +1115,10 @@ public class MessagingManager extends AbstractMessagingManager implements Servic
    protected void doShutDown()
    {
       super.doShutDown(); // Destroys all endpoints and endpoint grops (destinations)
+      
+      this.shutDownEndPointFlusher();
+      this.shutDownTimerWheel();
+      this.shutDownEndPointTimerWheel();
 
       if (!isReinitializing())
       {
@@ -789,6 +1130,7 @@ public class MessagingManager extends AbstractMessagingManager implements Servic
          this.messageDispatchHandler.shutDown();
          this.messageReceiverHandler.shutDown();
          this.destroyMessageHandlerPool();
+         this.destroyBroadcastDispatchPool();
       }
    }
 
@@ -809,6 +1151,30 @@ public class MessagingManager extends AbstractMessagingManager implements Servic
             removeSubComponent(this.messageHandlerPool);
             this.messageHandlerPool = null;
          }catch (Exception e){}
+         
+         this.receivedMessageQueue.clear();
+      }
+   }
+   
+   /**
+    * Destroys the broadcast dispatch pool.
+    * 
+    * @since 2.2.1
+    */
+   private final void destroyBroadcastDispatchPool()
+   {
+      if (this.broadcastDispatchPool != null)
+      {
+         try
+         {
+            this.broadcastDispatchPool.shutDown();
+            this.broadcastDispatchPool.waitForDown(10000);
+         }catch (Exception e){}
+         try
+         {
+            removeSubComponent(this.broadcastDispatchPool);
+            this.broadcastDispatchPool = null;
+         }catch (Exception e){}
       }
    }
    
@@ -837,7 +1203,7 @@ public class MessagingManager extends AbstractMessagingManager implements Servic
     */
    public void propertyModified(final Property property)
    {
-      if (property == this.connectionsPerDestination)
+      if ( (property == this.connectionsPerDestination) || (property == this.spareEndPointsPerDestination) )
       {
          synchronized (checkThreadWaitMonitor)
          {
@@ -857,6 +1223,10 @@ public class MessagingManager extends AbstractMessagingManager implements Servic
          if( this.proxyingEnabled.booleanValue() ) this.setMetaData(PROXYING_ENABLED_METADATA_KEY, new Boolean(true));
          else this.setMetaData(PROXYING_ENABLED_METADATA_KEY, null);
       }
+      else if(property == this.bodyCodecs)
+      {
+         this.initBodyCodecs();
+      }
       else if(property == this.remoteServiceNames)
       {
          if( this.isEnabled() ) 
@@ -909,6 +1279,38 @@ public class MessagingManager extends AbstractMessagingManager implements Servic
       else if (property == this.responseMessageTimeOut) return (this.responseMessageTimeOut.longValue() > 0);
 
       else if (property == this.asynchMessageDispatchTimeOut) return (this.asynchMessageDispatchTimeOut.longValue() > 0);
+      
+      else if (property == this.bodyBufferingLimit) return (this.bodyBufferingLimit.longValue() >= 0);
+      
+      else if (property == this.bodyBufferingSpillOverLimit) return (this.bodyBufferingSpillOverLimit.intValue() > 0);
+      
+      else if (property == this.writeCoalescingWindow) return (this.writeCoalescingWindow.longValue() >= 0);
+      
+      else if (property == this.writeCoalescingSize) return (this.writeCoalescingSize.intValue() > 0);
+      
+      else if (property == this.bodyCompressionThreshold) return (this.bodyCompressionThreshold.longValue() >= -1);
+      
+      else if (property == this.bodyCompressionLevel) return (this.bodyCompressionLevel.intValue() >= Deflater.NO_COMPRESSION) && (this.bodyCompressionLevel.intValue() <= Deflater.BEST_COMPRESSION);
+      
+      else if (property == this.flowControlWindow) return (this.flowControlWindow.intValue() >= 0);
+      
+      else if (property == this.reservedPriorityEndPoints) return (this.reservedPriorityEndPoints.intValue() >= 0);
+      else if (property == this.reconnectDelay) return (this.reconnectDelay.longValue() >= 0);
+      else if (property == this.spareEndPointsPerDestination) return ((this.spareEndPointsPerDestination.intValue() >= 0) && (this.spareEndPointsPerDestination.intValue() <= 1000));
+      
+      else if (property == this.bodyCodecs)
+      {
+         try
+         {
+            createBodyCodecs(this.bodyCodecs.getStringValues());
+            return true;
+         }
+         catch(Exception e)
+         {
+            logWarning("Invalid body codecs - " + e + "!");
+            return false;
+         }
+      }
 
       else return super.validatePropertyModification(property);
    }
@@ -1327,133 +1729,952 @@ public class MessagingManager extends AbstractMessagingManager implements Servic
    }
    
    /**
-    * Checks if a fixed number of threads should be used for asynchronous handling of incomming messages (default false).
-    * 
-    * @since 2.1.2 (20060310)
+    * Checks if a fixed number of threads should be used for asynchronous handling of incomming messages (default false).
+    * 
+    * @since 2.1.2 (20060310)
+    * 
+    * @see #messageReceived(Message)
+    */   
+   public boolean isUseFixedMessageHandlerPoolSize()
+   {
+      return useFixedMessageHandlerPoolSize;
+   }
+
+   /**
+    * Sets the flag indicating if a fixed number of threads should be used for asynchronous handling of incomming messages (default false).
+    * 
+    * @since 2.1.2 (20060310)
+    * 
+    * @see #messageReceived(Message)
+    */   
+   public void setUseFixedMessageHandlerPoolSize(boolean useFixedMessageHandlerPoolSize)
+   {
+      this.useFixedMessageHandlerPoolSize = useFixedMessageHandlerPoolSize;
+   }
+
+   /**
+    * Gets the max size of the message handler thread pool.
+    * 
+    * @since 1.3.1, build 670.
+    */
+   public int getMessageHandlerPoolSize()
+   {
+      return messageHandlerPoolSize;
+   }
+
+   /**
+    * Sets the max size of the message handler thread pool.
+    * 
+    * @since 1.3.1, build 670.
+    */
+   public void setMessageHandlerPoolSize(int messageHandlerPoolSize)
+   {
+      this.messageHandlerPoolSize = messageHandlerPoolSize;
+      if ((this.messageHandlerPool != null) && this.isEnabled())
+      {
+         this.messageHandlerPool.setMaxSize(this.messageHandlerPoolSize);
+      }
+   }
+   
+   /**
+    * Checks if statistics is enabled for this MessagingManager.
+    * 
+    * @since 2.0.1 (20050304)
+    */
+   public boolean isStatisticsEnabled()
+   {
+      return statisticsEnabled.booleanValue();
+   }
+   
+   /**
+    * Sets the flag indicating if statistics is to be enabled for this MessagingManager. 
+    * 
+    * @since 2.0.1 (20050304)
+    */
+   public void setStatisticsEnabled(boolean statisticsEnabled)
+   {
+      this.statisticsEnabled.setValue(statisticsEnabled);
+   }
+   
+   /**
+    * Gets the flag indicating if proxying, i.e. relaying of messages, should be enabled for this MessagingManager.
+    * 
+    * @since 2.1 (20050413)
+    */
+   public boolean isProxyingEnabled()
+   {
+      return proxyingEnabled.booleanValue();
+   }
+   
+   /**
+    * Sets the flag indicating if proxying, i.e. relaying of messages, should be enabled for this MessagingManager.
+    * 
+    * @since 2.1 (20050413)
+    */
+   public void setProxyingEnabled(boolean proxyingEnabled)
+   {
+      this.proxyingEnabled.setValue(proxyingEnabled);
+   }
+   
+   /**
+    * Gets the exposeMessageReceiversAsServices flag.
+    * 
+    * @since 2.1.2 (20060215)
+    */   
+   public boolean getExposeMessageReceiversAsServices()
+   {
+      return exposeMessageReceiversAsServices.booleanValue();
+   }
+
+   /**
+    * Sets the exposeMessageReceiversAsServices flag.
+    * 
+    * @since 2.1.2 (20060215)
+    */
+   public void setExposeMessageReceiversAsServices(boolean exposeMessageReceiversAsServices)
+   {
+      this.exposeMessageReceiversAsServices.setValue(exposeMessageReceiversAsServices);
+   }
+
+   /**
+    * Gets the useProxiedMessageReceivers flag.
+    * 
+    * @since 2.1.2 (20060215)
+    */ 
+   public boolean getUseProxiedMessageReceivers()
+   {
+      return useProxiedMessageReceivers.booleanValue();
+   }
+
+   /**
+    * Sets the useProxiedMessageReceivers flag.
+    * 
+    * @since 2.1.2 (20060215)
+    */
+   public void setUseProxiedMessageReceivers(boolean useProxiedMessageReceivers)
+   {
+      this.useProxiedMessageReceivers.setValue(useProxiedMessageReceivers);
+   }
+   
+   /**
+    * Checks if endpoints are multiplexed, i.e. shared between threads dispatching messages concurrently, instead of being 
+    * checked out exclusively by the dispatching thread.
+    * 
+    * @since 2.2.1
+    */
+   public boolean isEndPointMultiplexingEnabled()
+   {
+      return endPointMultiplexingEnabled.booleanValue();
+   }
+   
+   /**
+    * Sets the flag indicating if endpoints are to be multiplexed, i.e. shared between threads dispatching messages concurrently, 
+    * instead of being checked out exclusively by the dispatching thread.
+    * 
+    * @since 2.2.1
+    */
+   public void setEndPointMultiplexingEnabled(boolean endPointMultiplexingEnabled)
+   {
+      this.endPointMultiplexingEnabled.setValue(endPointMultiplexingEnabled);
+   }
+   
+   /**
+    * Gets the maximum length of message bodies that are to be buffered in their entirety by the receiving endpoint, thus releasing the 
+    * endpoint for receiving other messages while a message is being handled. A value of 0 means that message body buffering is disabled. 
+    * 
+    * @since 2.2.1
+    */
+   public long getBodyBufferingLimit()
+   {
+      return this.bodyBufferingLimit.longValue();
+   }
+   
+   /**
+    * Sets the maximum length of message bodies that are to be buffered in their entirety by the receiving endpoint, thus releasing the 
+    * endpoint for receiving other messages while a message is being handled. A value of 0 means that message body buffering is disabled.
+    * 
+    * @since 2.2.1
+    */
+   public void setBodyBufferingLimit(long bodyBufferingLimit)
+   {
+      this.bodyBufferingLimit.setValue(bodyBufferingLimit);
+   }
+   
+   /**
+    * Gets the size limit above which buffered message bodies are spilled over to disk instead of being kept in memory.
+    * 
+    * @since 2.2.1
+    */
+   public int getBodyBufferingSpillOverLimit()
+   {
+      return this.bodyBufferingSpillOverLimit.intValue();
+   }
+   
+   /**
+    * Sets the size limit above which buffered message bodies are spilled over to disk instead of being kept in memory.
+    * 
+    * @since 2.2.1
+    */
+   public void setBodyBufferingSpillOverLimit(int bodyBufferingSpillOverLimit)
+   {
+      this.bodyBufferingSpillOverLimit.setValue(bodyBufferingSpillOverLimit);
+   }
+   
+   /**
+    * Gets the write coalescing window, i.e. the maximum time in milliseconds that the flushing of asynchronous messages written 
+    * to an endpoint may be deferred. A value of 0 means that write coalescing is disabled.
+    * 
+    * @since 2.2.1
+    */
+   public long getWriteCoalescingWindow()
+   {
+      return this.writeCoalescingWindow.longValue();
+   }
+   
+   /**
+    * Sets the write coalescing window, i.e. the maximum time in milliseconds that the flushing of asynchronous messages written 
+    * to an endpoint may be deferred. A value of 0 means that write coalescing is disabled.
+    * 
+    * @since 2.2.1
+    */
+   public void setWriteCoalescingWindow(long writeCoalescingWindow)
+   {
+      this.writeCoalescingWindow.setValue(writeCoalescingWindow);
+   }
+   
+   /**
+    * Gets the write coalescing size, i.e. the number of buffered bytes in an endpoint that will trigger a flush when write 
+    * coalescing is enabled.
+    * 
+    * @since 2.2.1
+    */
+   public int getWriteCoalescingSize()
+   {
+      return this.writeCoalescingSize.intValue();
+   }
+   
+   /**
+    * Sets the write coalescing size, i.e. the number of buffered bytes in an endpoint that will trigger a flush when write 
+    * coalescing is enabled.
+    * 
+    * @since 2.2.1
+    */
+   public void setWriteCoalescingSize(int writeCoalescingSize)
+   {
+      this.writeCoalescingSize.setValue(writeCoalescingSize);
+   }
+   
+   /**
+    * Schedules a flush of the coalesced writes of the specified endpoint, to be performed when the specified delay has elapsed. The 
+    * {@link EndPointFlusher} thread used to perform the flushes is created when this method is first called.
+    * 
+    * @since 2.2.1
+    */
+   protected void scheduleEndPointFlush(final MessagingEndPoint endPoint, final long delay)
+   {
+      this.getEndPointFlusher().scheduleFlush(endPoint, delay);
+   }
+   
+   /**
+    * Gets the {@link EndPointFlusher} thread of this MessagingManager, creating and starting it if needed.
+    */
+   private EndPointFlusher getEndPointFlusher()
+   {
+      synchronized(this.endPointFlusherLock)
+      {
+         if( this.endPointFlusher == null )
+         {
+            this.endPointFlusher = new EndPointFlusher(this);
+            this.endPointFlusher.start();
+         }
+         return this.endPointFlusher;
+      }
+   }
+   
+   /**
+    * Gets the class names of the body codecs supported by this MessagingManager, in order of preference.
+    * 
+    * @since 2.2.1
+    */
+   public String[] getBodyCodecs()
+   {
+      return this.bodyCodecs.getStringValues();
+   }
+   
+   /**
+    * Sets the class names of the body codecs supported by this MessagingManager, in order of preference.
+    * 
+    * @since 2.2.1
+    */
+   public void setBodyCodecs(String[] bodyCodecClassNames)
+   {
+      this.bodyCodecs.setValue(bodyCodecClassNames);
+   }
+   
+   /**
+    * Gets the {@link BodyCodec} with the specified id, among the codecs supported by this MessagingManager. 
+    * 
+    * @return the codec with the specified id, or <code>null</code> if no such codec is supported.
+    * 
+    * @since 2.2.1
+    */
+   public BodyCodec getBodyCodec(final byte bodyCodecId)
+   {
+      final BodyCodec[] codecs = this.supportedBodyCodecs;
+      for(int i=0; i<codecs.length; i++)
+      {
+         if( codecs[i].getId() == bodyCodecId ) return codecs[i];
+      }
+      return null;
+   }
+   
+   /**
+    * Creates the body codecs with the specified class names, and checks that their ids are valid and unique.
+    * 
+    * @since 2.2.1
+    */
+   private static BodyCodec[] createBodyCodecs(final String[] classNames) throws Exception
+   {
+      final BodyCodec[] codecs = new BodyCodec[classNames.length];
+      final HashSet ids = new HashSet();
+      
+      for(int i=0; i<classNames.length; i++)
+      {
+         codecs[i] = (BodyCodec)Class.forName(classNames[i].trim()).newInstance();
+         
+         if( (codecs[i].getId() <= 0) || (codecs[i].getId() > MessageHeader.BODY_CODEC_ID_MASK) ) throw new IllegalArgumentException("Invalid id of body codec " + classNames[i] + ": " + codecs[i].getId() + "!");
+         if( !ids.add(new Byte(codecs[i].getId())) ) throw new IllegalArgumentException("Duplicate body codec id: " + codecs[i].getId() + "!");
+      }
+      
+      return codecs;
+   }
+   
+   /**
+    * Creates the body codecs specified by the property <code>bodyCodecs</code>, publishes their names in the meta data of this 
+    * MessagingManager and renegotiates the codecs of all destinations.
+    * 
+    * @since 2.2.1
+    */
+   private void initBodyCodecs()
+   {
+      BodyCodec[] codecs;
+      try
+      {
+         codecs = createBodyCodecs(this.bodyCodecs.getStringValues());
+      }
+      catch(Exception e)
+      {
+         logError("Error creating body codecs!", e);
+         codecs = new BodyCodec[0];
+      }
+      this.supportedBodyCodecs = codecs;
+      
+      if( codecs.length > 0 )
+      {
+         ArrayList codecNames = new ArrayList(codecs.length);
+         for(int i=0; i<codecs.length; i++) codecNames.add(codecs[i].getName());
+         this.setMetaData(BODY_CODECS_METADATA_KEY, codecNames);
+      }
+      else if( this.getMetaData(BODY_CODECS_METADATA_KEY) != null ) this.setMetaData(BODY_CODECS_METADATA_KEY, null);
+      
+      final Destination[] destinations = this.getDestinations();
+      for(int i=0; i<destinations.length; i++)
+      {
+         this.negotiateBodyCodec(destinations[i]);
+      }
+   }
+   
+   /**
+    * Negotiates the {@link BodyCodec} to use for the specified destination, i.e. selects the first of the codecs supported by this 
+    * MessagingManager that is also supported by the remote messaging system. 
+    * 
+    * @since 2.2.1
+    */
+   protected void negotiateBodyCodec(final Destination destination)
+   {
+      BodyCodec negotiatedCodec = null;
+      final BodyCodec[] codecs = this.supportedBodyCodecs;
+      
+      if( (codecs.length > 0) && (destination.getProtocolVersion() >= 7) )
+      {
+         final Object remoteCodecNames = destination.getDestinationMetaData(BODY_CODECS_METADATA_KEY);
+         if( remoteCodecNames instanceof List )
+         {
+            for(int i=0; (i<codecs.length) && (negotiatedCodec == null); i++)
+            {
+               if( ((List)remoteCodecNames).contains(codecs[i].getName()) ) negotiatedCodec = codecs[i];
+            }
+         }
+      }
+      
+      destination.setBodyCodec(negotiatedCodec);
+   }
+   
+   /**
+    * Gets the minimum length of message bodies that are to be compressed when sent to a destination that supports compressed 
+    * message bodies. A value of -1 means that compression is disabled.
+    * 
+    * @since 2.2.1
+    */
+   public long getBodyCompressionThreshold()
+   {
+      return this.bodyCompressionThreshold.longValue();
+   }
+   
+   /**
+    * Sets the minimum length of message bodies that are to be compressed when sent to a destination that supports compressed 
+    * message bodies. A value of -1 means that compression is disabled.
+    * 
+    * @since 2.2.1
+    */
+   public void setBodyCompressionThreshold(long bodyCompressionThreshold)
+   {
+      this.bodyCompressionThreshold.setValue(bodyCompressionThreshold);
+   }
+   
+   /**
+    * Gets the compression level (0-9) used when compressing message bodies.
+    * 
+    * @since 2.2.1
+    */
+   public int getBodyCompressionLevel()
+   {
+      return this.bodyCompressionLevel.intValue();
+   }
+   
+   /**
+    * Sets the compression level (0-9) used when compressing message bodies.
+    * 
+    * @since 2.2.1
+    */
+   public void setBodyCompressionLevel(int bodyCompressionLevel)
+   {
+      this.bodyCompressionLevel.setValue(bodyCompressionLevel);
+   }
+   
+   /**
+    * Gets the flow control window, i.e. the maximum number of unprocessed messages that each remote messaging system may send to this 
+    * MessagingManager. A value of 0 means that flow control is disabled.
+    * 
+    * @since 2.2.1
+    */
+   public int getFlowControlWindow()
+   {
+      return this.flowControlWindow.intValue();
+   }
+   
+   /**
+    * Sets the flow control window, i.e. the maximum number of unprocessed messages that each remote messaging system may send to this 
+    * MessagingManager. A value of 0 means that flow control is disabled. Changing this value causes the MessagingManager to be restarted.
+    * 
+    * @since 2.2.1
+    */
+   public void setFlowControlWindow(int flowControlWindow)
+   {
+      this.flowControlWindow.setValue(flowControlWindow);
+   }
+   
+   /**
+    * Gets the policy used when a message is to be sent to a destination that has no flow control credits left, i.e. 
+    * {@link #FLOW_CONTROL_POLICY_BLOCK}, {@link #FLOW_CONTROL_POLICY_FAIL_FAST} or {@link #FLOW_CONTROL_POLICY_REROUTE}.
+    * 
+    * @since 2.2.1
+    */
+   public int getFlowControlPolicy()
+   {
+      return this.flowControlPolicy.getIndex();
+   }
+   
+   /**
+    * Sets the policy used when a message is to be sent to a destination that has no flow control credits left, i.e. 
+    * {@link #FLOW_CONTROL_POLICY_BLOCK}, {@link #FLOW_CONTROL_POLICY_FAIL_FAST} or {@link #FLOW_CONTROL_POLICY_REROUTE}.
+    * 
+    * @since 2.2.1
+    */
+   public void setFlowControlPolicy(int flowControlPolicy)
+   {
+      this.flowControlPolicy.setValue(flowControlPolicy);
+   }
+   
+   /**
+    * Gets the number of endpoints in each destination that are reserved for messages with priority {@link MessageHeader#PRIORITY_HIGH}. 
+    * 
+    * @since 2.2.1
+    */
+   public int getReservedPriorityEndPoints()
+   {
+      return this.reservedPriorityEndPoints.intValue();
+   }
+   
+   /**
+    * Sets the number of endpoints in each destination that are reserved for messages with priority {@link MessageHeader#PRIORITY_HIGH}. 
+    * Messages with lower priority are only dispatched through an endpoint of a destination if more than this number of endpoints are 
+    * available in that destination. 
+    * 
+    * @since 2.2.1
+    */
+   public void setReservedPriorityEndPoints(int reservedPriorityEndPoints)
+   {
+      this.reservedPriorityEndPoints.setValue(reservedPriorityEndPoints);
+   }
+   
+   /**
+    * Checks if endpoint checks should be scheduled individually for each endpoint, and only be dispatched through endpoints that have 
+    * been idle for the duration of the check interval. Heartbeat scheduling is disabled by default, in which case all endpoints are 
+    * checked by the periodic check. Note that heartbeat probes are written by the thread of the heartbeat timer wheel, which is shared 
+    * with reconnect scheduling, so a probe that blocks on a stalled socket delays other heartbeats and reconnects.
+    * 
+    * @since 2.2.1
+    */
+   public boolean isHeartbeatSchedulingEnabled()
+   {
+      return this.heartbeatSchedulingEnabled.booleanValue();
+   }
+   
+   /**
+    * Sets if endpoint checks should be scheduled individually for each endpoint, and only be dispatched through endpoints that have 
+    * been idle for the duration of the check interval. Changes only affect endpoints that are connected after the change.
+    * 
+    * @since 2.2.1
+    */
+   public void setHeartbeatSchedulingEnabled(boolean heartbeatSchedulingEnabled)
+   {
+      this.heartbeatSchedulingEnabled.setValue(heartbeatSchedulingEnabled);
+   }
+   
+   /**
+    * Gets the initial delay in milliseconds before lost client side endpoints are recreated. The default is 0, which means that 
+    * endpoints are only recreated by the periodic check.
+    * 
+    * @since 2.2.1
+    */
+   public long getReconnectDelay()
+   {
+      return this.reconnectDelay.longValue();
+   }
+   
+   /**
+    * Sets the initial delay in milliseconds before lost client side endpoints are recreated. The delay is doubled for each consecutive 
+    * failed attempt, up to the check interval. 0 means that endpoints are only recreated by the periodic check.
+    * 
+    * @since 2.2.1
+    */
+   public void setReconnectDelay(long reconnectDelay)
+   {
+      this.reconnectDelay.setValue(reconnectDelay);
+   }
+   
+   /**
+    * Gets the number of spare endpoints that are to be created for each client side destination, in addition to the number specified 
+    * by {@link #getConnectionsPerDestination()}. Spare endpoints are linked and checked like other endpoints, but are kept out of endpoint 
+    * selection (see {@link MessagingEndPoint#isStandby()}) until an active endpoint of the destination is lost, at which point a spare 
+    * endpoint takes its place. 
+    * 
+    * @since 2.2.1
+    */
+   public int getSpareEndPointsPerDestination()
+   {
+      return this.spareEndPointsPerDestination.intValue();
+   }
+   
+   /**
+    * Sets the number of spare endpoints that are to be created for each client side destination, in addition to the number specified 
+    * by {@link #getConnectionsPerDestination()}. 
+    * 
+    * @since 2.2.1
+    */
+   public void setSpareEndPointsPerDestination(int spareEndPointsPerDestination)
+   {
+      this.spareEndPointsPerDestination.setValue(spareEndPointsPerDestination);
+   }
+   
+   /**
+    * Gets the total number of client side endpoints that are to be created and maintained for each destination, i.e. the sum of 
+    * {@link #getConnectionsPerDestination()} and {@link #getSpareEndPointsPerDestination()}.
+    * 
+    * @since 2.2.1
+    */
+   protected int getClientSideEndPointsPerDestination()
+   {
+      return this.connectionsPerDestination.intValue() + this.spareEndPointsPerDestination.intValue();
+   }
+   
+   /**
+    * Checks if the specified destination has published its support for compressed message bodies.
+    * 
+    * @since 2.2.1
+    */
+   protected void negotiateBodyCompression(final Destination destination)
+   {
+      destination.setBodyCompressionSupported( (destination.getProtocolVersion() >= 7) && 
+            Boolean.TRUE.equals(destination.getDestinationMetaData(BODY_COMPRESSION_METADATA_KEY)) );
+   }
+   
+   /**
+    * Checks if the specified destination has published its support for typed RPC calls.
+    * 
+    * @since 2.2.1
+    */
+   protected void negotiateTypedRpc(final Destination destination)
+   {
+      destination.setTypedRpcSupported( (destination.getProtocolVersion() >= 7) && 
+            Boolean.TRUE.equals(destination.getDestinationMetaData(TYPED_RPC_METADATA_KEY)) );
+   }
+   
+   /**
+    * Piggy-backs a pending flow control grant for the specified destination on the header of a message that is to be dispatched to it. 
+    * 
+    * @since 2.2.1
+    */
+   void piggyBackFlowControlGrant(final MessageHeader header, final Destination destination)
+   {
+      final int window = this.flowControlWindow.intValue();
+      
+      if( (window > 0) && (destination != null) && destination.isFlowControlSupported() && 
+            (header.getHeaderType() != MessageHeader.META_DATA_UPDATE_HEADER) )
+      {
+         final String grant = destination.createFlowControlGrant(window, false);
+         if( grant != null )
+         {
+            HashMap partialMetaData = header.getMessagingSystemMetaData();
+            if (partialMetaData == null) partialMetaData = new HashMap();
+            partialMetaData.put(FLOW_CONTROL_GRANT_METADATA_KEY, grant);
+            header.setMessagingSystemMetaData(partialMetaData);
+         }
+      }
+   }
+   
+   /**
+    * Checks if the specified destination has published its support for flow control, and the flow control window it uses.
+    * 
+    * @since 2.2.1
+    */
+   protected void negotiateFlowControl(final Destination destination)
+   {
+      final Object window = destination.getDestinationMetaData(FLOW_CONTROL_METADATA_KEY);
+      final boolean flowControlSupported = (destination.getProtocolVersion() >= 7) && (window instanceof Integer);
+      
+      destination.setFlowControl(flowControlSupported, flowControlSupported ? Math.max(0, ((Integer)window).intValue()) : 0);
+      
+      final MessagingStatisticsSource statistics = this.statistics;
+      if( (statistics != null) && (destination.getFlowControlWindow() > 0) ) statistics.updateFlowControlStatistics(destination);
+   }
+   
+   /**
+    * Checks if the specified message is subject to flow control, i.e. if it's a message that will be handled by a message handler 
+    * thread in the remote messaging system. Responses and internal control messages are never flow controlled.
+    * 
+    * @since 2.2.1
+    */
+   static boolean isFlowControlledMessage(final MessageHeader header)
+   {
+      final byte headerType = header.getHeaderType();
+      return (header.getResponseToId() == MessageHeader.UNDEFINED) && 
+               (headerType != MessageHeader.META_DATA_UPDATE_HEADER) && (headerType != MessageHeader.ENDPOINT_CHECK_HEADER) && 
+               (headerType != MessageHeader.DISCONNECT_HEADER) && (headerType != MessageHeader.FLOW_CONTROL_HEADER);
+   }
+   
+   /**
+    * Called when a flow control grant has been received from the specified destination, either in a header of the type 
+    * {@link MessageHeader#FLOW_CONTROL_HEADER} or piggy-backed on another message.
+    * 
+    * @since 2.2.1
+    */
+   protected void flowControlGrantReceived(final Destination destination, final Object grant)
+   {
+      if( grant instanceof String )
+      {
+         destination.flowControlCreditsGranted((String)grant);
+         
+         final MessagingStatisticsSource statistics = this.statistics;
+         if( statistics != null ) statistics.updateFlowControlStatistics(destination);
+      }
+   }
+   
+   /**
+    * Called when the processing of a message received from a remote messaging system has finished. If the message was flow 
+    * controlled, a new grant is dispatched to the remote messaging system when at least half of the flow control window has been 
+    * processed since the last grant.
     * 
-    * @see #messageReceived(Message)
-    */   
-   public boolean isUseFixedMessageHandlerPoolSize()
+    * @since 2.2.1
+    */
+   protected void messageProcessed(final Message message)
    {
-      return useFixedMessageHandlerPoolSize;
+      final int window = this.flowControlWindow.intValue();
+      
+      if( (window > 0) && isFlowControlledMessage(message.getHeader()) )
+      {
+         final MessagingEndPoint endPoint = message.getEndPoint();
+         final Destination destination = (endPoint != null) ? endPoint.getDestination() : null;
+         
+         if( (destination != null) && destination.flowControlledMessageCompleted(window) && destination.isFlowControlSupported() )
+         {
+            this.dispatchFlowControlGrant(destination, window, false);
+         }
+      }
    }
-
+   
    /**
-    * Sets the flag indicating if a fixed number of threads should be used for asynchronous handling of incomming messages (default false).
+    * Dispatches a flow control grant to the specified destination, on any of its endpoints, in a header of the type 
+    * {@link MessageHeader#FLOW_CONTROL_HEADER}. The grant is handed over to the {@link EndPointFlusher} thread, since the 
+    * calling thread (for instance a message handler thread) must not block while the endpoint is busy dispatching other messages. 
     * 
-    * @since 2.1.2 (20060310)
+    * @param force if <code>true</code>, a grant is dispatched even if no messages have been processed since the last grant.
     * 
-    * @see #messageReceived(Message)
-    */   
-   public void setUseFixedMessageHandlerPoolSize(boolean useFixedMessageHandlerPoolSize)
+    * @since 2.2.1
+    */
+   protected void dispatchFlowControlGrant(final Destination destination, final int window, final boolean force)
    {
-      this.useFixedMessageHandlerPoolSize = useFixedMessageHandlerPoolSize;
+      final MessagingEndPoint endPoint = (MessagingEndPoint)destination.getEndPoint();
+      
+      if( (endPoint != null) && endPoint.isLinkEstablished() )
+      {
+         final String grant = destination.createFlowControlGrant(window, force);
+         if( grant != null ) this.getEndPointFlusher().scheduleFlowControlGrant(endPoint, grant);
+      }
    }
-
+   
    /**
-    * Gets the max size of the message handler thread pool.
+    * Dispatches flow control grants to all destinations that support flow control. This method is invoked periodically, to make 
+    * sure that remote messaging systems never wait indefinitely for a grant that has been lost (for instance due to a disconnected 
+    * endpoint).
     * 
-    * @since 1.3.1, build 670.
+    * @since 2.2.1
     */
-   public int getMessageHandlerPoolSize()
+   protected void dispatchFlowControlGrants()
    {
-      return messageHandlerPoolSize;
+      final int window = this.flowControlWindow.intValue();
+      
+      if( window > 0 )
+      {
+         final Destination[] destinations = this.getDestinations();
+         for(int i=0; i<destinations.length; i++)
+         {
+            if( destinations[i].isFlowControlSupported() && destinations[i].isLinkEstablished() ) this.dispatchFlowControlGrant(destinations[i], window, true);
+         }
+      }
    }
-
+   
    /**
-    * Sets the max size of the message handler thread pool.
+    * Stops the endpoint flusher thread, if created.
     * 
-    * @since 1.3.1, build 670.
+    * @since 2.2.1
     */
-   public void setMessageHandlerPoolSize(int messageHandlerPoolSize)
+   private void shutDownEndPointFlusher()
    {
-      this.messageHandlerPoolSize = messageHandlerPoolSize;
-      if ((this.messageHandlerPool != null) && this.isEnabled())
+      synchronized(this.endPointFlusherLock)
       {
-         this.messageHandlerPool.setMaxSize(this.messageHandlerPoolSize);
+         if( this.endPointFlusher != null )
+         {
+            this.endPointFlusher.shutDown();
+            this.endPointFlusher = null;
+         }
       }
    }
    
    /**
-    * Checks if statistics is enabled for this MessagingManager.
+    * Gets the timer wheel used by this MessagingManager for managing timeouts, such as the response timeouts of messages dispatched 
+    * through {@link #dispatchMessageWithFuture(MessageHeader, MessageWriter, MessageDispatcherProperties, ResponseListener)}. The timer 
+    * wheel (and its thread) is created when this method is first called, and stopped when this MessagingManager is shut down.
     * 
-    * @since 2.0.1 (20050304)
+    * @since 2.2.1
     */
-   public boolean isStatisticsEnabled()
+   public TimerWheel getTimerWheel()
    {
-      return statisticsEnabled.booleanValue();
+      synchronized(this.timerWheelLock)
+      {
+         if( this.timerWheel == null )
+         {
+            this.timerWheel = new TimerWheel(super.getFullName() + ".TimerWheel");
+         }
+         return this.timerWheel;
+      }
    }
    
    /**
-    * Sets the flag indicating if statistics is to be enabled for this MessagingManager. 
+    * Stops the timer wheel, if created. Timeouts pending in the timer wheel are discarded.
     * 
-    * @since 2.0.1 (20050304)
+    * @since 2.2.1
     */
-   public void setStatisticsEnabled(boolean statisticsEnabled)
+   private void shutDownTimerWheel()
    {
-      this.statisticsEnabled.setValue(statisticsEnabled);
+      synchronized(this.timerWheelLock)
+      {
+         if( this.timerWheel != null )
+         {
+            this.timerWheel.stop();
+            this.timerWheel = null;
+         }
+      }
    }
    
    /**
-    * Gets the flag indicating if proxying, i.e. relaying of messages, should be enabled for this MessagingManager.
+    * Gets the timer wheel used by this MessagingManager for scheduling endpoint heartbeats (see {@link #isHeartbeatSchedulingEnabled()}) 
+    * and reconnects (see {@link #getReconnectDelay()}). A separate timer wheel is used for these tasks, since dispatching an endpoint check 
+    * header may block, which would otherwise delay timeouts managed by the timer wheel returned by {@link #getTimerWheel()}.
     * 
-    * @since 2.1 (20050413)
+    * @since 2.2.1
     */
-   public boolean isProxyingEnabled()
+   TimerWheel getEndPointTimerWheel()
    {
-      return proxyingEnabled.booleanValue();
+      synchronized(this.timerWheelLock)
+      {
+         if( this.endPointTimerWheel == null )
+         {
+            this.endPointTimerWheel = new TimerWheel(super.getFullName() + ".EndPointTimerWheel", 100, 512);
+         }
+         return this.endPointTimerWheel;
+      }
    }
    
    /**
-    * Sets the flag indicating if proxying, i.e. relaying of messages, should be enabled for this MessagingManager.
+    * Stops the endpoint timer wheel, if created.
     * 
-    * @since 2.1 (20050413)
+    * @since 2.2.1
     */
-   public void setProxyingEnabled(boolean proxyingEnabled)
+   private void shutDownEndPointTimerWheel()
    {
-      this.proxyingEnabled.setValue(proxyingEnabled);
+      synchronized(this.timerWheelLock)
+      {
+         if( this.endPointTimerWheel != null )
+         {
+            this.endPointTimerWheel.stop();
+            this.endPointTimerWheel = null;
+         }
+      }
    }
    
    /**
-    * Gets the exposeMessageReceiversAsServices flag.
+    * Puts a newly linked client side endpoint in standby, if spare endpoints are enabled and the destination already has 
+    * <code>connectionsPerDestination</code> active endpoints.
     * 
-    * @since 2.1.2 (20060215)
-    */   
-   public boolean getExposeMessageReceiversAsServices()
+    * @return <code>true</code> if the endpoint was put in standby.
+    * 
+    * @since 2.2.1
+    */
+   private boolean enterStandby(final Destination destination, final MessagingEndPoint endPoint)
    {
-      return exposeMessageReceiversAsServices.booleanValue();
+      if( this.spareEndPointsPerDestination.intValue() <= 0 ) return false;
+      
+      final List endPoints = destination.getEndPoints();
+      
+      synchronized(this.standbyLock)
+      {
+         int activeEndPoints = 0;
+         MessagingEndPoint otherEndPoint;
+         for(int i=0; i<endPoints.size(); i++)
+         {
+            otherEndPoint = (MessagingEndPoint)endPoints.get(i);
+            if( (otherEndPoint != endPoint) && otherEndPoint.isLinkEstablished() && !otherEndPoint.isStandby() ) activeEndPoints++;
+         }
+         
+         if( activeEndPoints >= this.connectionsPerDestination.intValue() )
+         {
+            endPoint.setStandby(true);
+            return true;
+         }
+         else return false;
+      }
    }
-
+   
    /**
-    * Sets the exposeMessageReceiversAsServices flag.
+    * Takes a spare endpoint of a client side destination out of standby, if the specified lost endpoint was an active endpoint.
     * 
-    * @since 2.1.2 (20060215)
+    * @return the spare endpoint taken out of standby, or <code>null</code> if there was none.
+    * 
+    * @since 2.2.1
     */
-   public void setExposeMessageReceiversAsServices(boolean exposeMessageReceiversAsServices)
+   private MessagingEndPoint leaveStandby(final Destination destination, final MessagingEndPoint lostEndPoint)
    {
-      this.exposeMessageReceiversAsServices.setValue(exposeMessageReceiversAsServices);
+      final List endPoints = destination.getEndPoints();
+      
+      synchronized(this.standbyLock)
+      {
+         if( lostEndPoint.isStandby() ) return null;
+         
+         MessagingEndPoint spareEndPoint;
+         for(int i=0; i<endPoints.size(); i++)
+         {
+            spareEndPoint = (MessagingEndPoint)endPoints.get(i);
+            if( (spareEndPoint != lostEndPoint) && spareEndPoint.isStandby() && spareEndPoint.isLinkEstablished() )
+            {
+               spareEndPoint.setStandby(false);
+               return spareEndPoint;
+            }
+         }
+      }
+      
+      return null;
    }
-
+   
    /**
-    * Gets the useProxiedMessageReceivers flag.
+    * Schedules the recreation of the missing endpoints of the specified client side destination, unless already scheduled. The delay 
+    * is based on the property <code>reconnectDelay</code>, doubled for each consecutive reconnect attempt (up to the check interval), 
+    * and randomized between half and the full delay.
     * 
-    * @since 2.1.2 (20060215)
-    */ 
-   public boolean getUseProxiedMessageReceivers()
+    * @since 2.2.1
+    */
+   private void scheduleReconnect(final Destination destination)
    {
-      return useProxiedMessageReceivers.booleanValue();
+      final int attempts = destination.scheduleReconnect();
+      if( attempts < 0 ) return; // Already scheduled
+      
+      long delay = Math.min(this.reconnectDelay.longValue() << Math.min(attempts, 16), this.checkInteval.longValue());
+      delay = (delay / 2) + (long)(Math.random() * ((delay / 2) + 1));
+      
+      try
+      {
+         this.getEndPointTimerWheel().schedule(new Runnable()
+            {
+               public void run()
+               {
+                  destination.reconnectStarted();
+                  reconnectClientSideDestination(destination);
+               }
+            }, delay);
+      }
+      catch(IllegalStateException ise) // Timer wheel stopped
+      {
+         destination.reconnectStarted();
+      }
    }
-
+   
    /**
-    * Sets the useProxiedMessageReceivers flag.
+    * Creates the missing endpoints of the specified client side destination, in parallel. If the destination has no endpoints at all, 
+    * only a first endpoint is created, and the remaining endpoints are created when that endpoint has established a link 
+    * (see {@link #firstClientSideEndPointEstablishedLink(MessagingEndPoint, Destination, boolean)}).
     * 
-    * @since 2.1.2 (20060215)
+    * @since 2.2.1
     */
-   public void setUseProxiedMessageReceivers(boolean useProxiedMessageReceivers)
+   protected void reconnectClientSideDestination(final Destination destination)
    {
-      this.useProxiedMessageReceivers.setValue(useProxiedMessageReceivers);
+      if( !super.canRun ) return;
+      
+      synchronized (super.getEndpointGroupsLock())
+      {
+         if( !super.clientSideDestinations.contains(destination) || destination.isConnectingFirstEndPoint() ) return;
+         
+         final int numberOfConnections = destination.size();
+         final int maxConnections = this.getClientSideEndPointsPerDestination();
+         
+         if( numberOfConnections <= 0 )
+         {
+            if( super.isDebugMode() ) logDebug("Reconnecting to destination " + destination + ".");
+            this.createFirstClientSideMessagingEndPoint(destination.getAddress(), destination);
+         }
+         else if( numberOfConnections < maxConnections )
+         {
+            if( super.isDebugMode() ) logDebug("Reconnecting " + (maxConnections - numberOfConnections) + " endpoint(s) to destination " + destination + ".");
+            
+            for (int i = numberOfConnections; i < maxConnections; i++)
+            {
+               createTcpEndPoint(destination.getAddress(), new MessagingEndPointInitData(destination));
+            }
+         }
+      }
    }
 
+
    /**
     * Gets the interval (ms) at which periodic checks are performed in this MessagingManager. The actual check interval value is 
     * stored in the property <code>checkInteval</code>.
@@ -2299,6 +3520,74 @@ public class MessagingManager extends AbstractMessagingManager implements Servic
       return response;
    }
    
+   /**
+    * Dispatches a message without waiting for the response. This method returns as soon as the message has been dispatched 
+    * (or the dispatch has failed), and the response, or the error, is delivered through the returned {@link ResponseFuture}.<br>
+    * <br>
+    * This method automatically sets the " <b>response to </b>" field of the header to the value of the " <b>message
+    * id </b>" field, if set, before assigning the message a new id. If the message dispatch handler doesn't implement 
+    * {@link FutureMessageDispatchHandler}, the message is dispatched synchronously.
+    * 
+    * @param header the header of the message to be dispatched.
+    * @param messageDispatchImpl the implementation to be used for dispatching the message body.
+    * @param messageDispatcherProperties a {@link MessageDispatcherProperties} object containing properties for message dispatch.
+    * @param listener an optional listener to be notified when the response future is completed.
+    * 
+    * @return a response future, which will be completed either with a response message or an error.
+    * 
+    * @since 2.2.1
+    */
+   protected ResponseFuture dispatchMessageWithFuture(MessageHeader header, MessageWriter messageDispatchImpl, 
+         MessageDispatcherProperties messageDispatcherProperties, ResponseListener listener)
+   {
+      if( !(this.messageDispatchHandler instanceof FutureMessageDispatchHandler) )
+      {
+         // Handler unable to dispatch without blocking - dispatch synchronously (statistics are updated by dispatchMessage)
+         return super.dispatchMessageWithFuture(header, messageDispatchImpl, messageDispatcherProperties, listener);
+      }
+      
+      final ResponseFuture responseFuture = ((FutureMessageDispatchHandler)this.messageDispatchHandler).dispatchMessageWithFuture(header, 
+            messageDispatchImpl, messageDispatcherProperties, listener);
+      
+      if( this.statistics != null ) responseFuture.addListener(new ResponseStatisticsUpdater());
+      
+      return responseFuture;
+   }
+   
+   /**
+    * Executes the specified broadcast dispatch task in a thread from the broadcast dispatch pool of this MessagingManager.
+    * 
+    * @param dispatchTask the task to execute.
+    * 
+    * @return <code>true</code> if the task will be executed by a pool thread, <code>false</code> if no pool thread was available.
+    * 
+    * @since 2.2.1
+    */
+   protected boolean executeBroadcastDispatch(final Runnable dispatchTask)
+   {
+      final ThreadPool pool = this.broadcastDispatchPool;
+      return (pool != null) && (pool.initializeThread(dispatchTask) != null);
+   }
+   
+   /**
+    * Response listener used for updating request/response statistics for messages dispatched through 
+    * {@link MessagingManager#dispatchMessageWithFuture(MessageHeader, MessageWriter, MessageDispatcherProperties, ResponseListener)}.
+    */
+   private final class ResponseStatisticsUpdater implements ResponseListener
+   {
+      public void responseReceived(final ResponseFuture responseFuture, final Message response)
+      {
+         if( statistics != null )
+         {
+            try{
+            statistics.updateRequestResponseStatistics(response.getEndPoint(), responseFuture.getRequestHeader(), System.currentTimeMillis() - responseFuture.getDispatchTime());
+            }catch(Throwable t){} // We don't want statistical bugs to ruin the day...
+         }
+      }
+      
+      public void responseFailed(final ResponseFuture responseFuture, final MessagingException error){}
+   }
+   
    /**
     * Dispatches a proxied message (request or response).
     * 
@@ -2535,8 +3824,11 @@ public class MessagingManager extends AbstractMessagingManager implements Servic
    /**
     * Called when a message is received from a remote messaging system. This method will first attempt to find out if
     * the received message is a response to a message sent from this messaging system, and if so notify the thread that
-    * is waiting for the response. Otherwise, this method will assign the message to a {@link MessageWorker}thread
-    * object contained in a thread pool. This thread will then invoke the method {@link #messageReceivedImpl(Message)}.<br>
+    * is waiting for the response. Otherwise, this method will place the message in a queue ordered by message priority (see 
+    * {@link MessageHeader#getPriority()}) and check out a {@link MessageWorker} thread object from a thread pool. This thread will 
+    * then take the message with the highest priority from the queue and invoke the method {@link #messageReceivedImpl(Message)}. 
+    * This means that high priority messages will be processed first when all message handler threads are busy (which may only happen 
+    * if a fixed message handler pool size is used).<br>
     * <br>
     * Subclasses may override this method to take complete control of the message handling logic, including handling of 
     * response messages to messages sent from this system (handled through a call to the method {@link MessageDispatchHandler#responseReceived(Message)}). 
@@ -2578,10 +3870,28 @@ public class MessagingManager extends AbstractMessagingManager implements Servic
          {
             if( this.messageHandlerPool != null )
             {
-               if( this.useFixedMessageHandlerPoolSize ) this.messageHandlerPool.initializeThreadWait(message);
-               else this.messageHandlerPool.initializeThread(message);
+               final PrioritizedMessage prioritizedMessage = new PrioritizedMessage(message);
+               this.receivedMessageQueue.putPriorityMsg(prioritizedMessage);
+               
+               // The worker thread takes the message with the highest priority from the queue
+               final Object messageWorkerThread;
+               if( this.useFixedMessageHandlerPoolSize ) messageWorkerThread = this.messageHandlerPool.initializeThreadWait();
+               else messageWorkerThread = this.messageHandlerPool.initializeThread();
+               
+               // If no worker thread could be initialized, the message will never be processed (unless already taken by another worker) 
+               if( (messageWorkerThread == null) && this.receivedMessageQueue.remove(prioritizedMessage) ) this.messageProcessed(message);
+            }
+            else // Execute synchronously
+            {
+               try
+               {
+                  this.messageReceivedImpl(message);
+               }
+               finally
+               {
+                  this.messageProcessed(message);
+               }
             }
-            else this.messageReceivedImpl(message); // Execute synchronously
          }
       }
       catch(Throwable t)
@@ -2591,6 +3901,39 @@ public class MessagingManager extends AbstractMessagingManager implements Servic
       }
    }
    
+   /**
+    * Takes the received message with the highest priority from the queue of messages waiting to be processed by the 
+    * {@link MessageWorker} threads.
+    * 
+    * @return the message with the highest priority, or <code>null</code> if the queue is empty.
+    * 
+    * @since 2.2.1
+    */
+   protected Message pollReceivedMessage()
+   {
+      final PrioritizedMessage prioritizedMessage = (PrioritizedMessage)this.receivedMessageQueue.getMsgIfAny();
+      return (prioritizedMessage != null) ? prioritizedMessage.message : null;
+   }
+   
+   /**
+    * Wrapper for received messages placed in the queue of messages waiting to be processed. Since {@link PriorityMessageQueue} 
+    * dequeues items in ascending priority order, the priority of the item is the negated priority of the message.
+    */
+   private static final class PrioritizedMessage implements PriorityMessageQueueItem
+   {
+      private final Message message;
+      
+      public PrioritizedMessage(final Message message)
+      {
+         this.message = message;
+      }
+      
+      public long getPriority()
+      {
+         return -this.message.getHeader().getPriority();
+      }
+   }
+   
    
    /* ### MESSAGE PROCESSING METHODS END ### */
 
@@ -2711,12 +4054,53 @@ public class MessagingManager extends AbstractMessagingManager implements Servic
     */
    protected void destinationMetaDataUpdated(final Destination destination, final HashMap previousDestinationMetaData)
    {
+      this.negotiateBodyCodec(destination);
+      this.negotiateBodyCompression(destination);
+      this.negotiateTypedRpc(destination);
+      this.negotiateFlowControl(destination);
+      
+      final EndPointSelectionStrategy strategy = this.endPointSelectionStrategy;
+      if( strategy instanceof IndexedEndPointSelectionStrategy )
+      {
+         ((IndexedEndPointSelectionStrategy)strategy).destinationMetaDataUpdated(destination, previousDestinationMetaData);
+      }
+      
       if( this.proxyingEnabled.booleanValue() )
       {
          this.updateNamedReceiversMetaData();
       }
    }
    
+   /**
+    * Called when a destination object is destroyed. This implementation notifies the current {@link EndPointSelectionStrategy}, 
+    * if it maintains an index of destinations (see {@link IndexedEndPointSelectionStrategy}).<br>
+    * <br>
+    * <b>NOTE:<b> Since this is a notification method called by an internal thread, any overriding subclass implementations 
+    * should make sure that this method executes and returns rather swiftly, without any kind of blocking wait. 
+    * 
+    * @since 2.2.1
+    */
+   protected void destinationDestroyed(final Destination destination)
+   {
+      this.notifyEndPointSelectionStrategyDestinationsChanged();
+   }
+   
+   /**
+    * Notifies the current {@link EndPointSelectionStrategy} that the set of destinations has changed, if the strategy is an 
+    * {@link IndexedEndPointSelectionStrategy}.
+    * 
+    * @since 2.2.1
+    */
+   private void notifyEndPointSelectionStrategyDestinationsChanged()
+   {
+      final EndPointSelectionStrategy strategy = this.endPointSelectionStrategy;
+      
+      if( strategy instanceof IndexedEndPointSelectionStrategy )
+      {
+         ((IndexedEndPointSelectionStrategy)strategy).destinationsChanged();
+      }
+   }
+   
    /**
     * Called when a link has been established with a new destination.<br>
     * <br>
@@ -2754,7 +4138,29 @@ public class MessagingManager extends AbstractMessagingManager implements Servic
    {
       MessagingEndPoint messagingEndPoint = (MessagingEndPoint)endPoint;
       
-      this.endPointSelectionStrategy.endPointReady(messagingEndPoint);
+      final Destination destination = messagingEndPoint.getDestination();
+      
+      if( (destination == null) || !destination.isClientSide() || !this.enterStandby(destination, messagingEndPoint) )
+      {
+         this.endPointSelectionStrategy.endPointReady(messagingEndPoint);
+      }
+      
+      if( this.isHeartbeatSchedulingEnabled() )
+      {
+         messagingEndPoint.startHeartbeat(new EndPointHeartbeat(this, messagingEndPoint), this.getCheckInteval());
+      }
+      
+      if( (destination != null) && destination.isClientSide() )
+      {
+         destination.resetReconnectAttempts();
+         
+         if( destination.getLinkEstablishedCount() >= this.getClientSideEndPointsPerDestination() )
+         {
+            final long restoreTime = destination.capacityRestored();
+            final MessagingStatisticsSource statistics = this.statistics;
+            if( (restoreTime >= 0) && (statistics != null) ) statistics.updateReconnectStatistics(destination, restoreTime);
+         }
+      }
       
       if( messagingEndPoint.isFirstEndPointInGroup() )
       {
@@ -2777,6 +4183,23 @@ public class MessagingManager extends AbstractMessagingManager implements Servic
    {
       MessagingEndPoint messagingEndPoint = (MessagingEndPoint) endPoint;
       
+      if( messagingEndPoint != null ) messagingEndPoint.stopHeartbeat();
+      
+      final Destination destination = (messagingEndPoint != null) ? messagingEndPoint.getDestination() : null;
+      if( (destination != null) && destination.isClientSide() )
+      {
+         final int maxConnections = this.getClientSideEndPointsPerDestination();
+         
+         // Let a spare endpoint take the place of a lost active endpoint
+         final MessagingEndPoint spareEndPoint = this.leaveStandby(destination, messagingEndPoint);
+         if( spareEndPoint != null ) this.endPointSelectionStrategy.endPointReady(spareEndPoint);
+         
+         if( destination.getLinkEstablishedCount() < maxConnections ) destination.capacityLost();
+         
+         // Recreate lost endpoints ahead of the periodic check
+         if( super.canRun && (this.reconnectDelay.longValue() > 0) && (destination.size() < maxConnections) ) this.scheduleReconnect(destination);
+      }
+      
       // If the other side was so nice as to send disconnect messages...
       if ((messagingEndPoint != null) && (messagingEndPoint.getDestination() != null)
             && (messagingEndPoint.isDisconnectHeaderReceived()))
@@ -2844,7 +4267,7 @@ public class MessagingManager extends AbstractMessagingManager implements Servic
       int numberOfConnections;
       int connectionsToAdd;
       Destination destination;
-      int maxConnections = connectionsPerDestination.intValue();
+      int maxConnections = this.getClientSideEndPointsPerDestination();
 
       // Only perform checks on client side clientSideDestinations
       final Destination[] currentClientSideDestinations = this.getClientSideDestinations();
@@ -3043,6 +4466,9 @@ public class MessagingManager extends AbstractMessagingManager implements Servic
 
       // Notify remote messaging systems of updated meta data
       this.dispatchMetaDataUpdateCommand();
+      
+      // Refresh flow control grants
+      this.dispatchFlowControlGrants();
    }
 
    /**
@@ -21,6 +21,7 @@ import java.io.InvalidObjectException;
 import java.io.NotSerializableException;
 import java.io.OutputStream;
 
+import com.teletalk.jserver.tcp.messaging.codec.BodyCodec;
 import com.teletalk.jserver.util.Streamable;
 
 /**
@@ -56,30 +57,44 @@ public final class ObjectMessageWriter implements MessageWriter
       // DISPATCH MESSAGE FOR PROTOCOL VERSION >= 4
       if( endPoint.getDestination().getProtocolVersion() >= 4 )
       {
+         // Get the body codec negotiated for the destination, if any, and mark the header accordingly
+         final BodyCodec bodyCodec = endPoint.getBodyCodec(this.objectMessageBody);
+         header.setBodyCodecId((bodyCodec != null) ? bodyCodec.getId() : 0);
+         
          // Perform in-memory serialization of body to calculate data length
-         if( serializeObjectMessageBody(header, endPoint, objectMessageBody) )
+         if( serializeObjectMessageBody(header, endPoint, objectMessageBody, bodyCodec) )
          {
-            boolean isStreamableBody = ( (this.objectMessageBody instanceof Streamable) && (endPoint.getDestination().getProtocolVersion() >= 4) );
+            boolean isStreamableBody = (bodyCodec != null) || ( (this.objectMessageBody instanceof Streamable) && (endPoint.getDestination().getProtocolVersion() >= 4) );
+            
+            // Compress the body if enabled for the destination
+            header.setBodyCompressed(endPoint.isBodyCompressionEnabled(header.getBodyLength()));
             
             endPoint.dispatchHeader(header);
             
             if(endPoint.isDebugMode()) endPoint.logDebug("Sending object message with header " + header + ".");
+            
+            final OutputStream bodyOutputStream = endPoint.getBodyOutputStream(header);
                         
             if( isStreamableBody )
             {
-               endPoint.streamableSerializerByteStream.writeTo(endPointOutputStream);
+               endPoint.streamableSerializerByteStream.writeTo(bodyOutputStream);
                endPoint.resetStreamableSerializer();
             }
             else
             {
-               endPoint.objectSerializerByteStream.writeTo(endPointOutputStream);
+               endPoint.objectSerializerByteStream.writeTo(bodyOutputStream);
                endPoint.resetObjectSerializer(true, true);
             }
+            
+            endPoint.endBody(header);
 				
 				if(endPoint.isDebugMode()) endPoint.logDebug("Done sending object message with header " + header + ".");
          }
          else
          {
+            // Clear any partially encoded body
+            if( bodyCodec != null ) endPoint.resetStreamableSerializer();
+            
             throw new MessageDispatchFailedException("Failed to serialize message body!", false);
          }
       }
@@ -87,7 +102,7 @@ public final class ObjectMessageWriter implements MessageWriter
       else
       {
          // Perform in-memory serialization of body to calculate data length
-			if( serializeObjectMessageBody(header, endPoint, objectMessageBody) )
+			if( serializeObjectMessageBody(header, endPoint, objectMessageBody, null) )
 			{
             endPoint.resetObjectSerializer(false, true); // Write a reset code to end of the body
             byte[] messageBodyBytes = endPoint.objectSerializerByteStream.toByteArray();
@@ -123,16 +138,17 @@ public final class ObjectMessageWriter implements MessageWriter
 	}
    
    /**
-    * Internal convenience method to write a object message body (and catch a few exceptions).
+    * Internal convenience method to write a object message body (and catch a few exceptions). If <code>bodyCodec</code> isn't 
+    * <code>null</code>, the body is encoded using that codec.
     */
-   private static boolean serializeObjectMessageBody(final MessageHeader header, final MessagingEndPoint endPoint, final Object body)
+   static boolean serializeObjectMessageBody(final MessageHeader header, final MessagingEndPoint endPoint, final Object body, final BodyCodec bodyCodec)
    {
       try
       {
          //if(super.getDebugMode()) logDebug("Serializing object message body with header " + header + ".");
          
          // Perform in-memory serialization to calculate body data length
-         final long dataLength = endPoint.serializeObject(body);
+         final long dataLength = (bodyCodec != null) ? endPoint.encodeObject(bodyCodec, body) : endPoint.serializeObject(body);
          header.setBodyLength(dataLength); //Set new data length
          
          return true;
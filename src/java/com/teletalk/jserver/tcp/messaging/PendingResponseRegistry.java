@@ -0,0 +1,336 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.tcp.messaging;
+
+/**
+ * Striped registry of objects (such as futures for pending responses) keyed by message id. The registry is divided into a 
+ * number of stripes, each with its own lock, id counter and primitive long keyed hash table. Ids are generated by the stripe 
+ * selected by the calling thread, and encode the index of that stripe in their lowest bits, which means that all operations 
+ * on a certain id only involve the lock of a single stripe, and that different threads seldom contend for the same lock. 
+ * No <code>Long</code> objects are created for the keys.<br>
+ * <br>
+ * Ids generated by this registry are never negative, and thus never equal to {@link MessageHeader#UNDEFINED}.
+ * 
+ * @author Tobias Lfstrand
+ * 
+ * @since 2.2.1
+ */
+public final class PendingResponseRegistry
+{
+   /** The default number of stripes. */
+   public static final int DEFAULT_STRIPE_COUNT = 16;
+   
+   private final Stripe[] stripes;
+   
+   private final int stripeMask;
+   
+   private final int stripeShift;
+   
+   /**
+    * Creates a new PendingResponseRegistry with {@link #DEFAULT_STRIPE_COUNT} stripes.
+    */
+   public PendingResponseRegistry()
+   {
+      this(DEFAULT_STRIPE_COUNT);
+   }
+   
+   /**
+    * Creates a new PendingResponseRegistry.
+    * 
+    * @param stripeCount the number of stripes, which will be rounded up to the nearest power of two.
+    */
+   public PendingResponseRegistry(final int stripeCount)
+   {
+      int count = 1;
+      int shift = 0;
+      while( count < stripeCount )
+      {
+         count <<= 1;
+         shift++;
+      }
+      
+      this.stripes = new Stripe[count];
+      for(int i=0; i<count; i++)
+      {
+         this.stripes[i] = new Stripe(i, shift);
+      }
+      this.stripeMask = count - 1;
+      this.stripeShift = shift;
+   }
+   
+   /**
+    * Gets the number of stripes of this registry.
+    */
+   public int getStripeCount()
+   {
+      return this.stripes.length;
+   }
+   
+   /**
+    * Creates a new unique id. The id is created by the stripe associated with the calling thread.
+    */
+   public long createId()
+   {
+      return this.stripes[spread(System.identityHashCode(Thread.currentThread())) & this.stripeMask].createId();
+   }
+   
+   /**
+    * Creates a new unique id (in the same way as {@link #createId()}) and registers the specified object under it, using a single 
+    * lock operation.
+    * 
+    * @return the id under which the object was registered.
+    */
+   public long register(final Object value)
+   {
+      if( value == null ) throw new NullPointerException("Null values are not allowed!");
+      return this.stripes[spread(System.identityHashCode(Thread.currentThread())) & this.stripeMask].register(value);
+   }
+   
+   /**
+    * Registers an object under the specified id, replacing any object previously registered under the same id.
+    * 
+    * @return the object previously registered under the specified id, or <code>null</code> if there was no such object.
+    */
+   public Object put(final long id, final Object value)
+   {
+      if( value == null ) throw new NullPointerException("Null values are not allowed!");
+      return this.stripeFor(id).put(id, value);
+   }
+   
+   /**
+    * Gets the object registered under the specified id.
+    * 
+    * @return the object registered under the specified id, or <code>null</code> if there was no such object.
+    */
+   public Object get(final long id)
+   {
+      return this.stripeFor(id).get(id);
+   }
+   
+   /**
+    * Removes the object registered under the specified id.
+    * 
+    * @return the removed object, or <code>null</code> if there was no object registered under the specified id.
+    */
+   public Object remove(final long id)
+   {
+      return this.stripeFor(id).remove(id);
+   }
+   
+   /**
+    * Gets the number of objects currently in this registry.
+    */
+   public int size()
+   {
+      int size = 0;
+      for(int i=0; i<this.stripes.length; i++)
+      {
+         size += this.stripes[i].size();
+      }
+      return size;
+   }
+   
+   /**
+    * Removes all objects from this registry.
+    */
+   public void clear()
+   {
+      for(int i=0; i<this.stripes.length; i++)
+      {
+         this.stripes[i].clear();
+      }
+   }
+   
+   /**
+    * Gets the stripe responsible for the specified id.
+    */
+   private Stripe stripeFor(final long id)
+   {
+      return this.stripes[(int)id & this.stripeMask];
+   }
+   
+   /**
+    * Spreads the bits of a hash code, to make the lowest bits usable as an index.
+    */
+   private static int spread(int h)
+   {
+      h ^= (h >>> 20) ^ (h >>> 12);
+      return h ^ (h >>> 7) ^ (h >>> 4);
+   }
+   
+   
+   /**
+    * A stripe of the registry - an open addressing (linear probing) hash table with primitive long keys.
+    */
+   private static final class Stripe
+   {
+      private static final int INITIAL_CAPACITY = 16;
+      
+      private final long stripeIndex;
+      
+      private final int stripeShift;
+      
+      private long idCounter = 0;
+      
+      private long[] keys;
+      
+      private Object[] values;
+      
+      private int size;
+      
+      Stripe(final int stripeIndex, final int stripeShift)
+      {
+         this.stripeIndex = stripeIndex;
+         this.stripeShift = stripeShift;
+         this.keys = new long[INITIAL_CAPACITY];
+         this.values = new Object[INITIAL_CAPACITY];
+      }
+      
+      synchronized long createId()
+      {
+         long id = (this.idCounter++ << this.stripeShift) | this.stripeIndex;
+         if( id < 0 ) // Wrap around
+         {
+            this.idCounter = 0;
+            id = (this.idCounter++ << this.stripeShift) | this.stripeIndex;
+         }
+         return id;
+      }
+      
+      synchronized long register(final Object value)
+      {
+         final long id = this.createId();
+         this.put(id, value);
+         return id;
+      }
+      
+      /**
+       * Gets the start slot for the specified key in a table of the specified capacity (a power of two).
+       */
+      private int slotFor(final long key, final int capacity)
+      {
+         // The lowest bits of the key are the same for all keys in a stripe - use them last
+         final long h = (key >>> this.stripeShift) * 0x9E3779B97F4A7C15L;
+         return (int)(h >>> 32) & (capacity - 1);
+      }
+      
+      synchronized Object put(final long key, final Object value)
+      {
+         int i = this.slotFor(key, this.values.length);
+         while( this.values[i] != null )
+         {
+            if( this.keys[i] == key )
+            {
+               final Object oldValue = this.values[i];
+               this.values[i] = value;
+               return oldValue;
+            }
+            i = (i + 1) & (this.values.length - 1);
+         }
+         
+         this.keys[i] = key;
+         this.values[i] = value;
+         this.size++;
+         
+         if( (this.size << 1) > this.values.length ) this.resize(this.values.length << 1); // Keep load factor below 0.5
+         
+         return null;
+      }
+      
+      synchronized Object get(final long key)
+      {
+         int i = this.slotFor(key, this.values.length);
+         while( this.values[i] != null )
+         {
+            if( this.keys[i] == key ) return this.values[i];
+            i = (i + 1) & (this.values.length - 1);
+         }
+         return null;
+      }
+      
+      synchronized Object remove(final long key)
+      {
+         final int mask = this.values.length - 1;
+         int i = this.slotFor(key, this.values.length);
+         while( this.values[i] != null )
+         {
+            if( this.keys[i] == key )
+            {
+               final Object oldValue = this.values[i];
+               this.values[i] = null;
+               this.size--;
+               
+               // Shift back entries in the same probe sequence, so that lookups don't stop at the freed slot
+               int free = i;
+               int j = (i + 1) & mask;
+               int slot;
+               while( this.values[j] != null )
+               {
+                  slot = this.slotFor(this.keys[j], this.values.length);
+                  // Move entry j to the free slot if its start slot isn't cyclically within (free, j]
+                  if( ((j - slot) & mask) >= ((j - free) & mask) )
+                  {
+                     this.keys[free] = this.keys[j];
+                     this.values[free] = this.values[j];
+                     this.values[j] = null;
+                     free = j;
+                  }
+                  j = (j + 1) & mask;
+               }
+               
+               if( (this.values.length > INITIAL_CAPACITY) && ((this.size << 3) < this.values.length) ) this.resize(this.values.length >> 1); 
+               
+               return oldValue;
+            }
+            i = (i + 1) & mask;
+         }
+         return null;
+      }
+      
+      synchronized int size()
+      {
+         return this.size;
+      }
+      
+      synchronized void clear()
+      {
+         this.keys = new long[INITIAL_CAPACITY];
+         this.values = new Object[INITIAL_CAPACITY];
+         this.size = 0;
+      }
+      
+      private void resize(final int newCapacity)
+      {
+         final long[] oldKeys = this.keys;
+         final Object[] oldValues = this.values;
+         
+         this.keys = new long[newCapacity];
+         this.values = new Object[newCapacity];
+         
+         int j;
+         for(int i=0; i<oldValues.length; i++)
+         {
+            if( oldValues[i] != null )
+            {
+               j = this.slotFor(oldKeys[i], newCapacity);
+               while( this.values[j] != null ) j = (j + 1) & (newCapacity - 1);
+               this.keys[j] = oldKeys[i];
+               this.values[j] = oldValues[i];
+            }
+         }
+      }
+   }
+}
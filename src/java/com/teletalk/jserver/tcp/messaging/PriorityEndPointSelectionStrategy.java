@@ -0,0 +1,65 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.tcp.messaging;
+
+import java.util.Map;
+
+/**
+ * Interface for endpoint selection strategies that take the priority of messages into account when selecting endpoints, for 
+ * instance by reserving endpoints for high priority messages (see {@link MessagingManager#getReservedPriorityEndPoints()}). The 
+ * {@link DefaultMessageDispatchHandler} uses the methods of this interface instead of the methods of {@link EndPointSelectionStrategy} 
+ * when the current endpoint selection strategy implements this interface.
+ * 
+ * @see MessageHeader#getPriority()
+ * 
+ * @author Tobias Lfstrand
+ * 
+ * @since 2.2.1
+ */
+public interface PriorityEndPointSelectionStrategy extends EndPointSelectionStrategy
+{
+   /**
+    * Gets the first available endpoint that may be used for a message with the specified priority. This method will wait a maximum 
+    * of <code>timeOut</code> milliseconds for an available endpoint.<br>
+    * <br>
+    * Note: This method must never be called with a lock held on {@link MessagingManager#getEndpointGroupsLock()}.
+    */
+   public MessagingEndPoint getEndPoint(byte priority, long timeOut) throws InterruptedException;
+   
+   /**
+    * Gets the first available endpoint for the specified destination that may be used for a message with the specified priority. 
+    * This method will wait a maximum of <code>timeOut</code> milliseconds for an available endpoint.<br>
+    * <br>
+    * Note: This method must never be called with a lock held on {@link MessagingManager#getEndpointGroupsLock()}.
+    */
+   public MessagingEndPoint getEndPoint(Destination destination, byte priority, long timeOut) throws InterruptedException;
+   
+   /**
+    * Gets the first available endpoint for the specified named receiver that may be used for a message with the specified priority. 
+    * This method will wait a maximum of <code>timeOut</code> milliseconds for an available endpoint.<br>
+    * <br>
+    * Note: This method must never be called with a lock held on {@link MessagingManager#getEndpointGroupsLock()}.
+    */
+   public MessagingEndPoint getEndPoint(String namedReceiver, byte priority, long timeOut) throws InterruptedException;
+   
+   /**
+    * Gets the first available endpoint for the specified metadata that may be used for a message with the specified priority. 
+    * This method will wait a maximum of <code>timeOut</code> milliseconds for an available endpoint.<br>
+    * <br>
+    * Note: This method must never be called with a lock held on {@link MessagingManager#getEndpointGroupsLock()}.
+    */
+   public MessagingEndPoint getEndPoint(Map metaData, byte priority, long timeOut) throws InterruptedException;
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.tcp.messaging;
+
+/**
+ * Interface for endpoint selection strategies that are to be notified of dispatched requests and of the outcome of those 
+ * requests. The {@link DefaultMessageDispatchHandler} calls the methods of this interface for all messages for which a response 
+ * is expected, i.e. messages that are neither asynchronous nor proxied.<br>
+ * <br>
+ * Note: The methods of this interface are called by dispatching threads, endpoint reader threads and timer threads, and 
+ * implementations should therefore return swiftly, without any kind of blocking wait.
+ * 
+ * @author Tobias Lfstrand
+ * 
+ * @since 2.2.1
+ */
+public interface RequestAwareEndPointSelectionStrategy extends EndPointSelectionStrategy
+{
+   /**
+    * Called when a message for which a response is expected has been dispatched through the specified endpoint.
+    * 
+    * @param endPoint the endpoint through which the message was dispatched.
+    * @param header the header of the dispatched message.
+    */
+   public void requestDispatched(MessagingEndPoint endPoint, MessageHeader header);
+   
+   /**
+    * Called when a response has been received to a message previously reported through 
+    * {@link #requestDispatched(MessagingEndPoint, MessageHeader)}, or when no response could be received (for instance due to a timeout). 
+    * 
+    * @param endPoint the endpoint through which the message was dispatched.
+    * @param header the header of the dispatched message.
+    * @param responseTime the time in milliseconds from the start of the dispatch until the response was received, or until the 
+    * failure was detected.
+    * @param responseReceived <code>true</code> if a response was received, <code>false</code> if the request failed. 
+    */
+   public void requestCompleted(MessagingEndPoint endPoint, MessageHeader header, long responseTime, boolean responseReceived);
+}
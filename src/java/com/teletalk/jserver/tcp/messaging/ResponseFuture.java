@@ -0,0 +1,273 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.tcp.messaging;
+
+import java.util.ArrayList;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.teletalk.jserver.util.Future;
+import com.teletalk.jserver.util.TimerWheel;
+
+/**
+ * Future representing the pending response to a message dispatched through one of the <code>dispatchMessageWithFuture</code> 
+ * methods. These methods return as soon as the message has been written to an endpoint, and the response (or failure) is 
+ * then delivered through this object, either by waiting for it through one of the <code>getResponse</code> methods, or by 
+ * registering a {@link ResponseListener}. This makes it possible to dispatch several messages concurrently (for instance 
+ * to different destinations) from a single thread.<br>
+ * <br>
+ * The response timeout of the message is managed by the messaging manager through a single timer wheel, which means that no thread 
+ * is blocked while waiting for the response. A ResponseFuture is always completed, either with a response message, or with an error.
+ * 
+ * @author Tobias Lfstrand
+ * 
+ * @since 2.2.1
+ */
+public class ResponseFuture extends Future
+{
+   private static final Log log = LogFactory.getLog(ResponseFuture.class);
+   
+   
+   private ArrayList listeners = null;
+   
+   private Message response = null;
+   
+   private MessagingException error = null;
+   
+   private MessageHeader requestHeader = null;
+   
+   private long dispatchTime = -1;
+   
+   private TimerWheel.Timeout timeout = null;
+   
+   
+   /**
+    * Creates a new ResponseFuture.
+    */
+   public ResponseFuture()
+   {
+      super(null);
+   }
+   
+   /**
+    * Creates a new ResponseFuture with the specified listener.
+    */
+   public ResponseFuture(final ResponseListener listener)
+   {
+      this();
+      if( listener != null ) this.addListener(listener);
+   }
+   
+   /**
+    * Gets the header of the dispatched message (set when the message is dispatched).
+    */
+   public synchronized MessageHeader getRequestHeader()
+   {
+      return this.requestHeader;
+   }
+   
+   /**
+    * Gets the time at which the dispatch of the message began.
+    */
+   public synchronized long getDispatchTime()
+   {
+      return this.dispatchTime;
+   }
+   
+   /**
+    * Sets the header of the dispatched message and the time at which the dispatch began.
+    */
+   synchronized void setRequestHeader(final MessageHeader requestHeader, final long dispatchTime)
+   {
+      this.requestHeader = requestHeader;
+      this.dispatchTime = dispatchTime;
+   }
+   
+   /**
+    * Sets the timeout that manages the response timeout of this future. If this future already is completed, the timeout is cancelled.
+    */
+   void setTimeout(final TimerWheel.Timeout timeout)
+   {
+      boolean cancelTimeout = false;
+      synchronized(this)
+      {
+         if( super.isSet() ) cancelTimeout = true;
+         else this.timeout = timeout;
+      }
+      if( cancelTimeout ) timeout.cancel();
+   }
+   
+   /**
+    * Checks if this future has been completed, i.e. if a response has been received or if the dispatch has failed.
+    */
+   public boolean isDone()
+   {
+      return super.isSet();
+   }
+   
+   /**
+    * Gets the error that caused the dispatch to fail, if any.
+    * 
+    * @return the error, or <code>null</code> if this future hasn't been completed or if a response was received.
+    */
+   public synchronized MessagingException getError()
+   {
+      return this.error;
+   }
+   
+   /**
+    * Gets the response, waiting for it if necessary. Since the messaging manager completes all futures, either with a response 
+    * or with a timeout error, this method will not block longer than the response timeout of the message.
+    * 
+    * @return the response message.
+    * 
+    * @throws MessagingException if the dispatch failed or if no response was received within the response timeout.
+    * @throws InterruptedException if the calling thread was interrupted while waiting.
+    */
+   public Message getResponse() throws MessagingException, InterruptedException
+   {
+      super.getValue();
+      return this.getResponseOrThrowError();
+   }
+   
+   /**
+    * Gets the response, waiting at most the specified time for it.
+    * 
+    * @param timeOut the maximum time (ms) to wait.
+    * 
+    * @return the response message.
+    * 
+    * @throws MessagingException if the dispatch failed or if no response was received within the response timeout of the message.
+    * @throws ResponseTimeOutException if this future wasn't completed within the specified time.
+    * @throws InterruptedException if the calling thread was interrupted while waiting.
+    */
+   public Message getResponse(final long timeOut) throws MessagingException, InterruptedException
+   {
+      super.getValue(timeOut);
+      if( !super.isSet() ) throw new ResponseTimeOutException("Timeout occurred while waiting for a response to message with header " + this.getRequestHeader() + "!");
+      return this.getResponseOrThrowError();
+   }
+   
+   private synchronized Message getResponseOrThrowError() throws MessagingException
+   {
+      if( this.error != null ) throw this.error;
+      else return this.response;
+   }
+   
+   /**
+    * Adds a listener to be notified when this future is completed. If this future already is completed, the listener is notified 
+    * immediately, by the calling thread.
+    */
+   public void addListener(final ResponseListener listener)
+   {
+      synchronized(this)
+      {
+         if( !super.isSet() )
+         {
+            if( this.listeners == null ) this.listeners = new ArrayList(1);
+            this.listeners.add(listener);
+            return;
+         }
+      }
+      
+      this.notifyListener(listener);
+   }
+   
+   /**
+    * Completes this future with the specified response message.
+    * 
+    * @return <code>true</code> if this future was completed by this call, <code>false</code> if it already was completed.
+    */
+   boolean complete(final Message response)
+   {
+      return this.complete(response, null);
+   }
+   
+   /**
+    * Completes this future with the specified error.
+    * 
+    * @return <code>true</code> if this future was completed by this call, <code>false</code> if it already was completed.
+    */
+   boolean fail(final MessagingException error)
+   {
+      return this.complete(null, error);
+   }
+   
+   /**
+    * Completes this future, cancels the timeout and notifies the listeners.
+    */
+   private boolean complete(final Message response, final MessagingException error)
+   {
+      final TimerWheel.Timeout completedTimeout;
+      final ArrayList completedListeners;
+      
+      synchronized(this)
+      {
+         if( super.isSet() ) return false;
+         
+         this.response = response;
+         this.error = error;
+         super.setValue(response);
+         
+         completedTimeout = this.timeout;
+         completedListeners = this.listeners;
+         this.timeout = null;
+         this.listeners = null;
+      }
+      
+      if( completedTimeout != null ) completedTimeout.cancel();
+      
+      if( completedListeners != null )
+      {
+         for(int i=0; i<completedListeners.size(); i++) this.notifyListener((ResponseListener)completedListeners.get(i));
+      }
+      
+      return true;
+   }
+   
+   /**
+    * Notifies the specified listener of the completion of this future.
+    */
+   private void notifyListener(final ResponseListener listener)
+   {
+      try
+      {
+         final Message completedResponse;
+         final MessagingException completedError;
+         synchronized(this)
+         {
+            completedResponse = this.response;
+            completedError = this.error;
+         }
+         
+         if( completedError != null ) listener.responseFailed(this, completedError);
+         else listener.responseReceived(this, completedResponse);
+      }
+      catch(Throwable t)
+      {
+         log.error("Error notifying response listener " + listener + "!", t);
+      }
+   }
+   
+   /**
+    * Gets a string representation of this ResponseFuture.
+    */
+   public String toString()
+   {
+      return "ResponseFuture[done: " + this.isDone() + ", error: " + this.getError() + ", request header: " + this.getRequestHeader() + "]";
+   }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.tcp.messaging;
+
+/**
+ * Interface for classes that are to be notified when the response to a message dispatched through one of the 
+ * <code>dispatchMessageWithFuture</code> methods is received, or when the dispatch fails. See {@link ResponseFuture}.
+ * 
+ * @author Tobias Lfstrand
+ * 
+ * @since 2.2.1
+ */
+public interface ResponseListener
+{
+   /**
+    * Called when the response to a message has been received. This method is normally called by the thread reading from the 
+    * endpoint on which the response was received, and should therefore avoid any kind of blocking operations. The body of the 
+    * response has been buffered before this method is called, so it may be read later, and by another thread.
+    * 
+    * @param responseFuture the future of the dispatched message.
+    * @param response the response message.
+    */
+   public void responseReceived(ResponseFuture responseFuture, Message response);
+   
+   /**
+    * Called when the dispatch of a message has failed, or when no response was received within the response timeout. This method 
+    * is called by the thread that detected the failure (for instance the thread of the timer wheel managing the response timeouts), 
+    * and should therefore return swiftly.
+    * 
+    * @param responseFuture the future of the dispatched message.
+    * @param error the error, normally a {@link MessageDispatchFailedException} or a {@link ResponseTimeOutException}.
+    */
+   public void responseFailed(ResponseFuture responseFuture, MessagingException error);
+}
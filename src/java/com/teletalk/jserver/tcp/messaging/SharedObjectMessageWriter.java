@@ -0,0 +1,154 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.tcp.messaging;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+
+import com.teletalk.jserver.tcp.messaging.codec.BodyCodec;
+import com.teletalk.jserver.util.SpillOverByteArrayOutputStream;
+import com.teletalk.jserver.util.Streamable;
+
+/**
+ * Message writer implementation for sending the same object message body on several endpoints, for instance when broadcasting a 
+ * message to several destinations. The body is serialized only once for each body encoding (i.e. standard serialization or a specific 
+ * {@link BodyCodec}), on the first endpoint that the message is dispatched on, after which the serialized body is written directly 
+ * to the other endpoints.<br>
+ * <br>
+ * This is possible since the object serializer of an endpoint is reset after each message (which means that each serialized body begins 
+ * with a reset code and contains no references to previously written objects), making the serialized form of a body independent of the 
+ * endpoint it was serialized on. Bodies that are too large to be kept in memory (i.e. that spill over to a file during serialization), and 
+ * bodies dispatched to destinations using protocol version 3 or lower, are serialized separately for each endpoint.<br>
+ * <br>
+ * Instances of this class may be used concurrently by several threads.
+ * 
+ * @author Tobias Lfstrand
+ * 
+ * @since 2.2.1
+ */
+public final class SharedObjectMessageWriter implements MessageWriter
+{
+   private final Object objectMessageBody;
+   
+   /** Serialized bodies, mapped by body codec id (0 for standard serialization). */
+   private final HashMap serializedBodies = new HashMap();
+   
+   private boolean sharingDisabled = false;
+   
+   
+   /**
+    * Creates a new SharedObjectMessageWriter for writing the specified object message body.
+    * 
+    * @param objectMessageBody the message body to dispatch.
+    */
+   public SharedObjectMessageWriter(final Object objectMessageBody)
+   {
+      this.objectMessageBody = objectMessageBody;
+   }
+   
+   /**
+    * Called to write a message (header and body) to an endpoint.
+    * 
+    * @param header the header of the message that is to be dispatched.
+    * @param endPoint the endpoint on which the message is to be dispatched on.
+    * @param endPointOutputStream the output stream of the endpoint on which the message is to be written to.
+    */
+   public void writeMessage(MessageHeader header, MessagingEndPoint endPoint, OutputStream endPointOutputStream) throws IOException
+   {
+      if( endPoint.getDestination().getProtocolVersion() < 4 )
+      {
+         new ObjectMessageWriter(this.objectMessageBody).writeMessage(header, endPoint, endPointOutputStream);
+         return;
+      }
+      
+      final BodyCodec bodyCodec = endPoint.getBodyCodec(this.objectMessageBody);
+      header.setBodyCodecId((bodyCodec != null) ? bodyCodec.getId() : 0);
+      
+      final byte[] serializedBody = this.getSerializedBody(header, endPoint, bodyCodec);
+      
+      if( serializedBody != null )
+      {
+         header.setBodyLength(serializedBody.length);
+         // Compress the body if enabled for the destination
+         header.setBodyCompressed(endPoint.isBodyCompressionEnabled(serializedBody.length));
+         
+         endPoint.dispatchHeader(header);
+         
+         if(endPoint.isDebugMode()) endPoint.logDebug("Sending shared object message with header " + header + ".");
+         
+         endPoint.getBodyOutputStream(header).write(serializedBody);
+         endPoint.endBody(header);
+         
+         if(endPoint.isDebugMode()) endPoint.logDebug("Done sending shared object message with header " + header + ".");
+      }
+      else // Body too large to be shared
+      {
+         new ObjectMessageWriter(this.objectMessageBody).writeMessage(header, endPoint, endPointOutputStream);
+      }
+   }
+   
+   /**
+    * Gets the serialized body for the encoding used by the specified endpoint, serializing it on the endpoint if not already done. 
+    * 
+    * @return the serialized body, or <code>null</code> if the body is too large to be shared.
+    */
+   private synchronized byte[] getSerializedBody(final MessageHeader header, final MessagingEndPoint endPoint, final BodyCodec bodyCodec) throws IOException
+   {
+      if( this.sharingDisabled ) return null;
+      
+      final Integer bodyCodecId = new Integer((bodyCodec != null) ? bodyCodec.getId() : 0);
+      byte[] serializedBody = (byte[])this.serializedBodies.get(bodyCodecId);
+      
+      if( serializedBody == null )
+      {
+         if( ObjectMessageWriter.serializeObjectMessageBody(header, endPoint, this.objectMessageBody, bodyCodec) )
+         {
+            final boolean isStreamableBody = (bodyCodec != null) || (this.objectMessageBody instanceof Streamable);
+            final SpillOverByteArrayOutputStream serializerByteStream = isStreamableBody ? endPoint.streamableSerializerByteStream : endPoint.objectSerializerByteStream;
+            
+            if( serializerByteStream.hasSpilledOver() ) this.sharingDisabled = true;
+            else
+            {
+               serializedBody = serializerByteStream.toByteArray();
+               this.serializedBodies.put(bodyCodecId, serializedBody);
+            }
+            
+            // Reset serializers to restore them to the same state as after a normal dispatch
+            if( isStreamableBody ) endPoint.resetStreamableSerializer();
+            else endPoint.resetObjectSerializer(true, true);
+         }
+         else
+         {
+            // Clear any partially encoded body
+            if( bodyCodec != null ) endPoint.resetStreamableSerializer();
+            
+            throw new MessageDispatchFailedException("Failed to serialize message body!", false);
+         }
+      }
+      
+      return serializedBody;
+   }
+   
+   /**
+    * Gets a description of the message body (for debug).
+    */
+   public String getDescription()
+   {
+      if( this.objectMessageBody != null ) return this.objectMessageBody.toString();
+      else return null;
+   }
+}
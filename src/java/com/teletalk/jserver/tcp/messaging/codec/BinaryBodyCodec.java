@@ -0,0 +1,550 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.tcp.messaging.codec;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.teletalk.jserver.tcp.messaging.rpc.RemoteProcedureCall;
+import com.teletalk.jserver.tcp.messaging.rpc.RemoteProcedureCallResponse;
+import com.teletalk.jserver.tcp.messaging.rpc.RpcException;
+import com.teletalk.jserver.util.InputStreamer;
+import com.teletalk.jserver.util.OutputStreamer;
+import com.teletalk.jserver.util.Streamable;
+
+/**
+ * Built-in compact binary {@link BodyCodec}. This codec writes each value as a single type tag byte followed by the data of the value, 
+ * and natively supports:
+ * <ul>
+ * <li>The primitive wrapper types (Boolean, Byte, Short, Character, Integer, Long, Float and Double) and String.</li>
+ * <li>Arrays of primitive types and object arrays.</li>
+ * <li>HashMap and ArrayList (other Map and List implementations are encoded using java serialization, to preserve their type).</li>
+ * <li>{@link Streamable} objects, which are encoded as the class name followed by the data written by the object itself. Streamable 
+ * classes must have a public no-arg constructor.</li>
+ * <li>{@link RemoteProcedureCall} and {@link RemoteProcedureCallResponse}, i.e. RPC messages.</li>
+ * </ul>
+ * Values of other types, contained in arrays, maps, lists or RPC messages, are encoded using java serialization (through the 
+ * context object stream of the streamer). A message body of a type that isn't natively supported is not encoded by this codec at all 
+ * (see {@link #canEncode(Object)}). Since arrays, maps, lists and RPC messages are encoded by value, this also applies to message bodies 
+ * in which such an object is referenced more than once (which includes cyclic references).
+ * 
+ * @author Tobias Lfstrand
+ * 
+ * @since 2.2.1
+ */
+public class BinaryBodyCodec implements BodyCodec
+{
+   /** The name of this codec. */
+   public static final String NAME = "binary";
+   
+   /** The id of this codec. */
+   public static final byte ID = 0x01;
+   
+   
+   private static final byte NULL = 0;
+   private static final byte TRUE = 1;
+   private static final byte FALSE = 2;
+   private static final byte BYTE = 3;
+   private static final byte SHORT = 4;
+   private static final byte CHAR = 5;
+   private static final byte INT = 6;
+   private static final byte LONG = 7;
+   private static final byte FLOAT = 8;
+   private static final byte DOUBLE = 9;
+   private static final byte STRING = 10;
+   private static final byte LONG_STRING = 11;
+   private static final byte BOOLEAN_ARRAY = 12;
+   private static final byte BYTE_ARRAY = 13;
+   private static final byte SHORT_ARRAY = 14;
+   private static final byte CHAR_ARRAY = 15;
+   private static final byte INT_ARRAY = 16;
+   private static final byte LONG_ARRAY = 17;
+   private static final byte FLOAT_ARRAY = 18;
+   private static final byte DOUBLE_ARRAY = 19;
+   private static final byte OBJECT_ARRAY = 20;
+   private static final byte HASH_MAP = 21;
+   private static final byte ARRAY_LIST = 22;
+   private static final byte STREAMABLE = 23;
+   private static final byte RPC_CALL = 24;
+   private static final byte RPC_RESPONSE = 25;
+   private static final byte SERIALIZED = 26;
+   
+   /** The maximum length of a string that can always be written with writeUTF (3 bytes per char in the worst case). */
+   private static final int MAX_UTF_STRING_LENGTH = 65535 / 3;
+   
+   
+   /**
+    * Creates a new BinaryBodyCodec.
+    */
+   public BinaryBodyCodec()
+   {
+   }
+   
+   /**
+    * Gets the name of this codec ({@link #NAME}).
+    */
+   public String getName()
+   {
+      return NAME;
+   }
+   
+   /**
+    * Gets the id of this codec ({@link #ID}).
+    */
+   public byte getId()
+   {
+      return ID;
+   }
+   
+   /**
+    * Checks if this codec is able to encode the specified message body, which is the case if the body is <code>null</code> or of a 
+    * natively supported type, and doesn't contain any array, map, list or RPC message that is referenced more than once. Message bodies 
+    * with cyclic or shared references are left to java serialization, which preserves them.
+    */
+   public boolean canEncode(final Object body)
+   {
+      return (body == null) || ((getTag(body) != SERIALIZED) && !containsSharedReference(body, new IdentityHashMap()));
+   }
+   
+   /**
+    * Encodes the specified message body. This method must only be called for message bodies for which {@link #canEncode(Object)} 
+    * returns <code>true</code>.
+    */
+   public void encode(final Object body, final OutputStreamer output) throws IOException
+   {
+      writeValue(body, output);
+   }
+   
+   /**
+    * Decodes a message body.
+    */
+   public Object decode(final InputStreamer input, final ClassLoader classLoader) throws IOException
+   {
+      return readValue(input, classLoader);
+   }
+   
+   /**
+    * Gets the tag for the type of the specified (non-null) value.
+    */
+   private static byte getTag(final Object value)
+   {
+      final Class type = value.getClass();
+      
+      if( type == String.class ) return (((String)value).length() <= MAX_UTF_STRING_LENGTH) ? STRING : LONG_STRING;
+      else if( type == Integer.class ) return INT;
+      else if( type == Long.class ) return LONG;
+      else if( type == Boolean.class ) return ((Boolean)value).booleanValue() ? TRUE : FALSE;
+      else if( type == Double.class ) return DOUBLE;
+      else if( type == Float.class ) return FLOAT;
+      else if( type == Short.class ) return SHORT;
+      else if( type == Byte.class ) return BYTE;
+      else if( type == Character.class ) return CHAR;
+      else if( type.isArray() )
+      {
+         final Class componentType = type.getComponentType();
+         
+         if( !componentType.isPrimitive() ) return OBJECT_ARRAY;
+         else if( componentType == Byte.TYPE ) return BYTE_ARRAY;
+         else if( componentType == Integer.TYPE ) return INT_ARRAY;
+         else if( componentType == Long.TYPE ) return LONG_ARRAY;
+         else if( componentType == Double.TYPE ) return DOUBLE_ARRAY;
+         else if( componentType == Boolean.TYPE ) return BOOLEAN_ARRAY;
+         else if( componentType == Short.TYPE ) return SHORT_ARRAY;
+         else if( componentType == Character.TYPE ) return CHAR_ARRAY;
+         else return FLOAT_ARRAY;
+      }
+      else if( type == HashMap.class ) return HASH_MAP;
+      else if( type == ArrayList.class ) return ARRAY_LIST;
+      else if( type == RemoteProcedureCall.class ) return RPC_CALL;
+      else if( type == RemoteProcedureCallResponse.class ) return RPC_RESPONSE;
+      else if( value instanceof Streamable ) return STREAMABLE;
+      else return SERIALIZED;
+   }
+   
+   /**
+    * Checks if the specified value is, or contains, an array, map, list or RPC message that has already been visited (i.e. that is 
+    * contained in <code>visited</code>), or that is referenced more than once within the value.
+    */
+   private static boolean containsSharedReference(final Object value, final IdentityHashMap visited)
+   {
+      if( value == null ) return false;
+      
+      switch(getTag(value))
+      {
+         case OBJECT_ARRAY:
+         {
+            if( visited.put(value, value) != null ) return true;
+            final Object[] array = (Object[])value;
+            for(int i=0; i<array.length; i++)
+            {
+               if( containsSharedReference(array[i], visited) ) return true;
+            }
+            return false;
+         }
+         case HASH_MAP:
+         {
+            if( visited.put(value, value) != null ) return true;
+            Map.Entry entry;
+            for(Iterator it = ((Map)value).entrySet().iterator(); it.hasNext(); )
+            {
+               entry = (Map.Entry)it.next();
+               if( containsSharedReference(entry.getKey(), visited) || containsSharedReference(entry.getValue(), visited) ) return true;
+            }
+            return false;
+         }
+         case ARRAY_LIST:
+         {
+            if( visited.put(value, value) != null ) return true;
+            final ArrayList list = (ArrayList)value;
+            final int size = list.size();
+            for(int i=0; i<size; i++)
+            {
+               if( containsSharedReference(list.get(i), visited) ) return true;
+            }
+            return false;
+         }
+         case RPC_CALL:
+         {
+            if( visited.put(value, value) != null ) return true;
+            return containsSharedReference(((RemoteProcedureCall)value).getParams(), visited);
+         }
+         case RPC_RESPONSE:
+         {
+            if( visited.put(value, value) != null ) return true;
+            final RemoteProcedureCallResponse rpcResponse = (RemoteProcedureCallResponse)value;
+            return containsSharedReference(rpcResponse.getReturnValue(), visited) || containsSharedReference(rpcResponse.getParams(), visited);
+         }
+         default: return false;
+      }
+   }
+   
+   /**
+    * Writes a value, preceded by its type tag.
+    */
+   private static void writeValue(final Object value, final OutputStreamer output) throws IOException
+   {
+      if( value == null )
+      {
+         output.writeByte(NULL);
+         return;
+      }
+      
+      final byte tag = getTag(value);
+      output.writeByte(tag);
+      
+      switch(tag)
+      {
+         case TRUE:
+         case FALSE: break;
+         case BYTE: output.writeByte(((Byte)value).byteValue()); break;
+         case SHORT: output.writeShort(((Short)value).shortValue()); break;
+         case CHAR: output.writeChar(((Character)value).charValue()); break;
+         case INT: output.writeInt(((Integer)value).intValue()); break;
+         case LONG: output.writeLong(((Long)value).longValue()); break;
+         case FLOAT: output.writeFloat(((Float)value).floatValue()); break;
+         case DOUBLE: output.writeDouble(((Double)value).doubleValue()); break;
+         case STRING: output.writeUTF((String)value); break;
+         case LONG_STRING:
+         {
+            final String string = (String)value;
+            output.writeInt(string.length());
+            output.writeChars(string);
+            break;
+         }
+         case BOOLEAN_ARRAY:
+         {
+            final boolean[] array = (boolean[])value;
+            output.writeInt(array.length);
+            for(int i=0; i<array.length; i++) output.writeBoolean(array[i]);
+            break;
+         }
+         case BYTE_ARRAY:
+         {
+            final byte[] array = (byte[])value;
+            output.writeInt(array.length);
+            output.write(array);
+            break;
+         }
+         case SHORT_ARRAY:
+         {
+            final short[] array = (short[])value;
+            output.writeInt(array.length);
+            for(int i=0; i<array.length; i++) output.writeShort(array[i]);
+            break;
+         }
+         case CHAR_ARRAY:
+         {
+            final char[] array = (char[])value;
+            output.writeInt(array.length);
+            for(int i=0; i<array.length; i++) output.writeChar(array[i]);
+            break;
+         }
+         case INT_ARRAY:
+         {
+            final int[] array = (int[])value;
+            output.writeInt(array.length);
+            for(int i=0; i<array.length; i++) output.writeInt(array[i]);
+            break;
+         }
+         case LONG_ARRAY:
+         {
+            final long[] array = (long[])value;
+            output.writeInt(array.length);
+            for(int i=0; i<array.length; i++) output.writeLong(array[i]);
+            break;
+         }
+         case FLOAT_ARRAY:
+         {
+            final float[] array = (float[])value;
+            output.writeInt(array.length);
+            for(int i=0; i<array.length; i++) output.writeFloat(array[i]);
+            break;
+         }
+         case DOUBLE_ARRAY:
+         {
+            final double[] array = (double[])value;
+            output.writeInt(array.length);
+            for(int i=0; i<array.length; i++) output.writeDouble(array[i]);
+            break;
+         }
+         case OBJECT_ARRAY:
+         {
+            final Object[] array = (Object[])value;
+            output.writeUTF(value.getClass().getComponentType().getName());
+            output.writeInt(array.length);
+            for(int i=0; i<array.length; i++) writeValue(array[i], output);
+            break;
+         }
+         case HASH_MAP:
+         {
+            final Map map = (Map)value;
+            output.writeInt(map.size());
+            Map.Entry entry;
+            for(Iterator it = map.entrySet().iterator(); it.hasNext(); )
+            {
+               entry = (Map.Entry)it.next();
+               writeValue(entry.getKey(), output);
+               writeValue(entry.getValue(), output);
+            }
+            break;
+         }
+         case ARRAY_LIST:
+         {
+            final ArrayList list = (ArrayList)value;
+            final int size = list.size();
+            output.writeInt(size);
+            for(int i=0; i<size; i++) writeValue(list.get(i), output);
+            break;
+         }
+         case STREAMABLE:
+         {
+            output.writeUTF(value.getClass().getName());
+            ((Streamable)value).write(output);
+            break;
+         }
+         case RPC_CALL:
+         {
+            final RemoteProcedureCall rpc = (RemoteProcedureCall)value;
+            writeValue(rpc.getMethodName(), output);
+            writeValue(rpc.getParams(), output);
+            output.writeBoolean(rpc.isOutParameterModeEnabled());
+            break;
+         }
+         case RPC_RESPONSE:
+         {
+            final RemoteProcedureCallResponse rpcResponse = (RemoteProcedureCallResponse)value;
+            writeValue(rpcResponse.getRpcException(), output);
+            writeValue(rpcResponse.getReturnValue(), output);
+            writeValue(rpcResponse.getParams(), output);
+            break;
+         }
+         default: // SERIALIZED
+         {
+            output.getContextObjectOutputStream().writeObject(value);
+            break;
+         }
+      }
+   }
+   
+   /**
+    * Reads a value, preceded by its type tag.
+    */
+   private static Object readValue(final InputStreamer input, final ClassLoader classLoader) throws IOException
+   {
+      final byte tag = input.readByte();
+      
+      switch(tag)
+      {
+         case NULL: return null;
+         case TRUE: return Boolean.TRUE;
+         case FALSE: return Boolean.FALSE;
+         case BYTE: return new Byte(input.readByte());
+         case SHORT: return new Short(input.readShort());
+         case CHAR: return new Character(input.readChar());
+         case INT: return new Integer(input.readInt());
+         case LONG: return new Long(input.readLong());
+         case FLOAT: return new Float(input.readFloat());
+         case DOUBLE: return new Double(input.readDouble());
+         case STRING: return input.readUTF();
+         case LONG_STRING:
+         {
+            final char[] chars = new char[input.readInt()];
+            for(int i=0; i<chars.length; i++) chars[i] = input.readChar();
+            return new String(chars);
+         }
+         case BOOLEAN_ARRAY:
+         {
+            final boolean[] array = new boolean[input.readInt()];
+            for(int i=0; i<array.length; i++) array[i] = input.readBoolean();
+            return array;
+         }
+         case BYTE_ARRAY:
+         {
+            final byte[] array = new byte[input.readInt()];
+            input.readFully(array);
+            return array;
+         }
+         case SHORT_ARRAY:
+         {
+            final short[] array = new short[input.readInt()];
+            for(int i=0; i<array.length; i++) array[i] = input.readShort();
+            return array;
+         }
+         case CHAR_ARRAY:
+         {
+            final char[] array = new char[input.readInt()];
+            for(int i=0; i<array.length; i++) array[i] = input.readChar();
+            return array;
+         }
+         case INT_ARRAY:
+         {
+            final int[] array = new int[input.readInt()];
+            for(int i=0; i<array.length; i++) array[i] = input.readInt();
+            return array;
+         }
+         case LONG_ARRAY:
+         {
+            final long[] array = new long[input.readInt()];
+            for(int i=0; i<array.length; i++) array[i] = input.readLong();
+            return array;
+         }
+         case FLOAT_ARRAY:
+         {
+            final float[] array = new float[input.readInt()];
+            for(int i=0; i<array.length; i++) array[i] = input.readFloat();
+            return array;
+         }
+         case DOUBLE_ARRAY:
+         {
+            final double[] array = new double[input.readInt()];
+            for(int i=0; i<array.length; i++) array[i] = input.readDouble();
+            return array;
+         }
+         case OBJECT_ARRAY:
+         {
+            final Class componentType = loadClass(input.readUTF(), classLoader);
+            final Object[] array = (Object[])Array.newInstance(componentType, input.readInt());
+            for(int i=0; i<array.length; i++) array[i] = readValue(input, classLoader);
+            return array;
+         }
+         case HASH_MAP:
+         {
+            final int size = input.readInt();
+            final HashMap map = new HashMap(Math.max(16, (int)(size / 0.75f) + 1));
+            Object key;
+            for(int i=0; i<size; i++)
+            {
+               key = readValue(input, classLoader);
+               map.put(key, readValue(input, classLoader));
+            }
+            return map;
+         }
+         case ARRAY_LIST:
+         {
+            final int size = input.readInt();
+            final ArrayList list = new ArrayList(size);
+            for(int i=0; i<size; i++) list.add(readValue(input, classLoader));
+            return list;
+         }
+         case STREAMABLE:
+         {
+            final String className = input.readUTF();
+            final Streamable streamable;
+            try
+            {
+               streamable = (Streamable)loadClass(className, classLoader).newInstance();
+            }
+            catch(IOException ioe)
+            {
+               throw ioe;
+            }
+            catch(Exception e)
+            {
+               throw new IOException("Unable to create instance of Streamable class " + className + " - " + e + "!");
+            }
+            streamable.read(input);
+            return streamable;
+         }
+         case RPC_CALL:
+         {
+            final String methodName = (String)readValue(input, classLoader);
+            final Object[] params = (Object[])readValue(input, classLoader);
+            return new RemoteProcedureCall(methodName, params, input.readBoolean());
+         }
+         case RPC_RESPONSE:
+         {
+            final RemoteProcedureCallResponse rpcResponse = new RemoteProcedureCallResponse();
+            rpcResponse.setRpcException((RpcException)readValue(input, classLoader));
+            rpcResponse.setReturnValue(readValue(input, classLoader));
+            rpcResponse.setParams((Object[])readValue(input, classLoader));
+            return rpcResponse;
+         }
+         case SERIALIZED:
+         {
+            try
+            {
+               return input.getContextObjectInputStream().readObject();
+            }
+            catch(ClassNotFoundException cnfe)
+            {
+               throw new IOException("Caught ClassNotFoundException: " + cnfe);
+            }
+         }
+         default: throw new IOException("Invalid type tag: " + tag + "!");
+      }
+   }
+   
+   /**
+    * Loads the class with the specified name, using the specified class loader, or the class loader of this class if 
+    * <code>classLoader</code> is <code>null</code>.
+    */
+   private static Class loadClass(final String className, final ClassLoader classLoader) throws IOException
+   {
+      try
+      {
+         return Class.forName(className, false, (classLoader != null) ? classLoader : BinaryBodyCodec.class.getClassLoader());
+      }
+      catch(ClassNotFoundException cnfe)
+      {
+         throw new IOException("Caught ClassNotFoundException: " + cnfe);
+      }
+   }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.tcp.messaging.codec;
+
+import java.io.IOException;
+
+import com.teletalk.jserver.util.InputStreamer;
+import com.teletalk.jserver.util.OutputStreamer;
+
+/**
+ * Interface for codecs used to encode and decode object message bodies as an alternative to standard java serialization.<br>
+ * <br>
+ * The codecs supported by a messaging system are published to remote messaging systems through the messaging system meta data, 
+ * under the key {@link com.teletalk.jserver.tcp.messaging.MessagingManager#BODY_CODECS_METADATA_KEY}, as a list of codec names. 
+ * A codec will only be used for a message dispatched to a certain destination if the remote messaging system has published support 
+ * for it, and if the codec is able to encode the message body (see {@link #canEncode(Object)}). Otherwise standard java serialization 
+ * is used. The id of the codec used for encoding a message body is sent in the message header (see 
+ * {@link com.teletalk.jserver.tcp.messaging.MessageHeader#getBodyCodecId()}), and is used by the receiving messaging system to find the 
+ * codec to decode the body with. This means that the name and the id of a codec must be the same in all messaging systems.<br>
+ * <br>
+ * Implementations must be thread safe and have a public no-arg constructor.
+ * 
+ * @author Tobias Lfstrand
+ * 
+ * @since 2.2.1
+ */
+public interface BodyCodec
+{
+   /**
+    * Gets the name of this codec, used to publish support for the codec in the messaging system meta data.
+    */
+   public String getName();
+   
+   /**
+    * Gets the id of this codec, used to identify the codec a message body was encoded with. Valid ids are 1 to 15 
+    * ({@link com.teletalk.jserver.tcp.messaging.MessageHeader#BODY_CODEC_ID_MASK}), where the id 1 is reserved for 
+    * {@link BinaryBodyCodec}. 
+    */
+   public byte getId();
+   
+   /**
+    * Checks if this codec is able to encode the specified message body.
+    */
+   public boolean canEncode(Object body);
+   
+   /**
+    * Encodes the specified message body.
+    * 
+    * @param body the message body to encode.
+    * @param output the {@link OutputStreamer} to write the encoded message body to.
+    * 
+    * @throws IOException if an I/O error occurs.
+    */
+   public void encode(Object body, OutputStreamer output) throws IOException;
+   
+   /**
+    * Decodes a message body.
+    * 
+    * @param input the {@link InputStreamer} to read the encoded message body from.
+    * @param classLoader the ClassLoader to use when resolving classes, or <code>null</code> if the default class loader is to be used.
+    * 
+    * @return the decoded message body.
+    * 
+    * @throws IOException if an I/O error occurs.
+    */
+   public Object decode(InputStreamer input, ClassLoader classLoader) throws IOException;
+}
@@ -45,6 +45,7 @@ public class EndPointCheckCommand extends MessageHeader
 		super();
       
       super.setHeaderType(ENDPOINT_CHECK_HEADER);
+      super.setPriority(PRIORITY_HIGH);
 	}
 	
 	/**
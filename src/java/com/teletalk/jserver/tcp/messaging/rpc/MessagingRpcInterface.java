@@ -36,6 +36,8 @@ import com.teletalk.jserver.tcp.messaging.MessageDispatchFailedException;
 import com.teletalk.jserver.tcp.messaging.MessageDispatcher;
 import com.teletalk.jserver.tcp.messaging.MessageHeader;
 import com.teletalk.jserver.tcp.messaging.MessagingException;
+import com.teletalk.jserver.tcp.messaging.ResponseFuture;
+import com.teletalk.jserver.tcp.messaging.ResponseListener;
 import com.teletalk.jserver.tcp.messaging.ResponseTimeOutException;
 
 /**
@@ -47,7 +49,11 @@ import com.teletalk.jserver.tcp.messaging.ResponseTimeOutException;
  * <br>
  * Parameters used in method calls may be used as out or in/out parameters by setting the flag <code>outParameterModeEnabled</code> through 
  * the method {@link #setOutParameterModeEnabled(boolean)}. This means that any changes in the parameter object on the server 
- * side will be reflected on the client side, after the call has completed.
+ * side will be reflected on the client side, after the call has completed.<br>
+ * <br>
+ * Proxies created through {@link #createTypedProxy(Class, String, boolean)} make typed RPC calls, in which methods are identified by 
+ * ordinals and parameters are written according to their declared types, instead of being wrapped in a {@link RemoteProcedureCall}. 
+ * The meta data of the interface of such a proxy is only sent in the first call to each destination.
  * 
  * @see RcpMessageReceiver
  * @see RpcHandler
@@ -64,6 +70,9 @@ public class MessagingRpcInterface implements InvocationHandler
    /**  @since 2.0 Build 756 */
    public static final String RPC_METHOD_NAME = "com.teletalk.jserver.tcp.messaging.rpc.methodName";
    
+   /** Custom header field used to mark typed RPC calls and responses. @since 2.2.1 */
+   public static final String TYPED_RPC_HEADER_KEY = "com.teletalk.jserver.tcp.messaging.rpc.typed";
+   
    
    private static final ThreadLocal ContextMessageHeader = new ThreadLocal();
    
@@ -244,6 +253,28 @@ public class MessagingRpcInterface implements InvocationHandler
       }
    }
    
+   /**
+    * Initializes the header of an RPC message. If <code>methodName</code> is <code>null</code>, the method name header field is 
+    * left to be set by the message writer. 
+    */
+   void initRpcHeader(final MessageHeader header, final String methodName)
+   {
+      // Reset fields (since header may be reused)
+      header.resetMessageRoutingFields();
+      header.removeCustomHeaderField(RpcInputStream.RPC_INPUTSTREAM_HEADER_KEY);
+      header.removeCustomHeaderField(TYPED_RPC_HEADER_KEY);
+      
+      if( header.getMessageType() == -1 )
+      {
+         header.setMessageType(RPC_MESSAGE_TYPE_ID);
+      }
+      if( header.getHeaderType() == MessageHeader.STANDARD_HEADER )
+      {
+         header.setHeaderType(MessageHeader.RPC_HEADER);
+      }
+      if( methodName != null ) header.setCustomHeaderField(RPC_METHOD_NAME, methodName);
+   }
+   
    /**
     * Invokes an RPC method, using that parameters specified in the parameter list.
     *  
@@ -251,8 +282,6 @@ public class MessagingRpcInterface implements InvocationHandler
     */
    private Object invokeInternal(final MessageHeader header, final String methodName, final Object params) throws RpcException
    {
-      RpcException rpcException = null;
-      
       RpcInputStream rpcInputStream = null;
       RemoteProcedureCall rpcMsg = null;
       Object[] paramList = null;
@@ -264,36 +293,42 @@ public class MessagingRpcInterface implements InvocationHandler
          else rpcMsg = new RemoteProcedureCall(methodName, paramList, this.outParameterModeEnabled);
       }
       
-      // Reset fields (since header may be reused)
-      header.resetMessageRoutingFields();
-      header.removeCustomHeaderField(RpcInputStream.RPC_INPUTSTREAM_HEADER_KEY);
-      
-      if( header.getMessageType() == -1 )
-      {
-         header.setMessageType(RPC_MESSAGE_TYPE_ID);
-      }
-      if( header.getHeaderType() == MessageHeader.STANDARD_HEADER )
-      {
-         header.setHeaderType(MessageHeader.RPC_HEADER);
-      }
-      header.setCustomHeaderField(RPC_METHOD_NAME, methodName);
+      this.initRpcHeader(header, methodName);
       
+      Message response;
       try
       {
-         Message response;
-         
          if( rpcInputStream != null )
          {
             header.setCustomHeaderField(RpcInputStream.RPC_INPUTSTREAM_HEADER_KEY, null);
             response = this.messageDispatcher.dispatchMessage(header, rpcInputStream.getInputStream(), rpcInputStream.getDataLength());
          }
          else response = this.messageDispatcher.dispatchMessage(header, rpcMsg);
-         
-         if( response == null ) // If response == null, assume message is asych...
-         {
-            return null;
-         }
-         else if( response.getHeader().hasCustomHeaderField(RpcInputStream.RPC_INPUTSTREAM_HEADER_KEY) || 
+      }
+      catch(Throwable t)
+      {
+         throw handleError(methodName, t);
+      }
+      
+      if( response == null ) // If response == null, assume message is asych...
+      {
+         return null;
+      }
+      else return this.getReturnValue(methodName, paramList, response);
+   }
+   
+   /**
+    * Gets the return value of an RPC method from a response message.
+    *  
+    * @throws RpcException if the response contained an RCP error, or if the response couldn't be read.
+    */
+   Object getReturnValue(final String methodName, final Object[] paramList, final Message response) throws RpcException
+   {
+      RpcException rpcException = null;
+      
+      try
+      {
+         if( response.getHeader().hasCustomHeaderField(RpcInputStream.RPC_INPUTSTREAM_HEADER_KEY) || 
                      response.getHeader().hasCustomHeaderField(RpcInputStreamResponse.RPC_INPUTSTREAM_RESPONSE_HEADER_KEY) )
          {
             return new RpcInputStreamResponse(response); // This is necessary to maintain backwards compatability
@@ -341,6 +376,52 @@ public class MessagingRpcInterface implements InvocationHandler
       else throw new RpcException(RpcException.MISC_INTERNAL_ERROR, "Unknown internal error!"); // This should never happen
    }
    
+   /**
+    * Invokes an RPC method, using that parameters specified in the parameter list, without waiting for the result. This method returns 
+    * as soon as the RPC message has been dispatched, and the result of the call is delivered to the specified listener, either when 
+    * the response is received, or when the call fails (for instance if no response is received within the response timeout). This 
+    * makes it possible to perform several concurrent calls from a single thread.<br>
+    * <br>
+    * Note that the listener is normally invoked by the thread reading responses from the endpoint on which the response was received, 
+    * which means that it should avoid blocking operations. 
+    * 
+    * @param header the header of the RPC message to be dispatched.
+    * @param methodName the name of the RCP method. The format of this parameter is <code>handlerName.methodName</code>, but 
+    * <code>handlerName.</code> may be omitted if the default (unnamed) hander is to be used.
+    * @param paramList the parameter list.
+    * @param listener the listener that is to receive the result of the call. 
+    * 
+    * @return a response future for the RPC message, which may be used to wait for the call to complete.
+    * 
+    * @since 2.2.1
+    */
+   public ResponseFuture invokeWithFuture(final MessageHeader header, final String methodName, final Serializable[] paramList, final RpcResponseListener listener)
+   {
+      this.initRpcHeader(header, methodName);
+      
+      final RemoteProcedureCall rpcMsg = new RemoteProcedureCall(methodName, paramList, this.outParameterModeEnabled);
+      
+      return this.messageDispatcher.dispatchMessageWithFuture(header, rpcMsg, new RpcResponseListenerAdapter(methodName, paramList, listener));
+   }
+   
+   /**
+    * Invokes an RPC method, using that parameters specified in the parameter list, without waiting for the result. See 
+    * {@link #invokeWithFuture(MessageHeader, String, Serializable[], RpcResponseListener)}.
+    * 
+    * @param methodName the name of the RCP method. The format of this parameter is <code>handlerName.methodName</code>, but 
+    * <code>handlerName.</code> may be omitted if the default (unnamed) hander is to be used.
+    * @param paramList the parameter list.
+    * @param listener the listener that is to receive the result of the call. 
+    * 
+    * @return a response future for the RPC message, which may be used to wait for the call to complete.
+    * 
+    * @since 2.2.1
+    */
+   public ResponseFuture invokeWithFuture(final String methodName, final Serializable[] paramList, final RpcResponseListener listener)
+   {
+      return this.invokeWithFuture(this.getRpcMessageHeader(), methodName, paramList, listener);
+   }
+   
    /**
     * Invokes an RPC method with an input stream as parameter. 
     * 
@@ -847,6 +928,63 @@ public class MessagingRpcInterface implements InvocationHandler
       return proxy;
    }
    
+   /**
+    * Creates an instance of a proxy class, implementing the specified interface, that translates method invocations to typed RPC calls. 
+    * The RPC calls will be handled by a server side handler registered under the name specified by parameter <code>remoteHandlerName</code>.<br>
+    * <br>
+    * As opposed to proxies created by {@link #createProxy(Class, String)}, typed proxies don't send the method name and wrap the parameters 
+    * in a {@link RemoteProcedureCall}. Instead, the meta data of the interface (i.e. the signatures of its methods) is sent along with the 
+    * first call to each destination, after which calls only contain the ordinal of the method and the parameters, written according to 
+    * their declared types (i.e. primitive parameters are written directly as primitives). The server side method for each ordinal is resolved 
+    * once, when the meta data is received. Calls to destinations that don't support typed RPC calls are made as ordinary RPC calls.<br>
+    * <br>
+    * Note that out parameters (see {@link #setOutParameterModeEnabled(boolean)}) aren't supported by typed proxies.
+    * 
+    * @param interfaceClass the Class object representing the interface which the proxy instance is to implement.
+    * @param remoteHandlerName the name of the server side handler to which RPC calls should be sent. If null, the default handler is used.
+    * 
+    * @return a typed RPC proxy instance for the specified interface.
+    * 
+    * @throws NullPointerException if interfaceClass is null.
+    * @throws IllegalArgumentException if a proxy class could not be created for parameter interfaceClass. See java.lang.reflect.Proxy for details.
+    * 
+    * @see java.lang.reflect.Proxy
+    * 
+    * @since 2.2.1
+    */
+   public Object createTypedProxy(final Class interfaceClass, final String remoteHandlerName) throws NullPointerException, IllegalArgumentException
+   {
+      return createTypedProxy(interfaceClass, remoteHandlerName, false);
+   }
+   
+   /**
+    * Creates an instance of a proxy class, implementing the specified interface, that translates method invocations to typed RPC calls. 
+    * See {@link #createTypedProxy(Class, String)}.
+    * 
+    * @param interfaceClass the Class object representing the interface which the proxy instance is to implement.
+    * @param remoteHandlerName the name of the server side handler to which RPC calls should be sent. If null, the default handler is used.
+    * @param throwRealException flag indicating if the actual exceptions that occur should be thown in method calls, whenever possible. If this flag is set 
+    * to false, a {@link RpcExceptionWrapper} will be thrown (due to the fact that {@link RpcException} is a checked exception). If however the interface defines 
+    * {@link RpcException} (or sub class) in the throws clause of a method, that exception will be thrown regardless of the state of this flag. 
+    * 
+    * @return a typed RPC proxy instance for the specified interface.
+    * 
+    * @throws NullPointerException if interfaceClass is null.
+    * @throws IllegalArgumentException if a proxy class could not be created for parameter interfaceClass. See java.lang.reflect.Proxy for details.
+    * 
+    * @see java.lang.reflect.Proxy
+    * 
+    * @since 2.2.1
+    */
+   public Object createTypedProxy(final Class interfaceClass, final String remoteHandlerName, final boolean throwRealException) throws NullPointerException, IllegalArgumentException
+   {
+      if( !interfaceClass.isInterface() ) throw new IllegalArgumentException(interfaceClass.getName() + " is not an interface!");
+      
+      final TypedRpcStub typedRpcStub = new TypedRpcStub(this, new TypedRpcInterface(interfaceClass, remoteHandlerName), throwRealException);
+      
+      return Proxy.newProxyInstance(interfaceClass.getClassLoader(), new Class[]{interfaceClass}, typedRpcStub);
+   }
+   
    /**
     * Processes a method invocation on a proxy by making an RPC call using the method name of the 
     * specified Method object and the parameters specified by parameter args. If the proxy class was registered 
@@ -933,60 +1071,112 @@ public class MessagingRpcInterface implements InvocationHandler
          }
          catch(RpcException rpce)
          {
-            Throwable cause = rpce.getCause();
-            boolean mayThrowRpcException = false;
-            boolean mayThrowRealException = false;
             boolean proxyThrowRealExceptionExabled = false;
             synchronized(proxyThrowRealException)
             {
                proxyThrowRealExceptionExabled = this.proxyThrowRealException.contains(proxy);
             }
             
-            // If proxy may throw real exceptions and cause is runtime exception...
-            if( proxyThrowRealExceptionExabled && (cause != null) && (cause instanceof RuntimeException) && !(cause instanceof MessagingException) )
-            {
-               mayThrowRealException = true;
-            }
-            
-            // Check declared exceptions for method
-            Class[] exceptionTypes = method.getExceptionTypes();
-            if( exceptionTypes != null )
-            {
-               for(int i=0; i<exceptionTypes.length; i++)
-               {
-                  // Is RpcException (or subclass) explicitly defined in the throws clause?
-                  if( RpcException.class.isAssignableFrom(exceptionTypes[i]) )
-                  {
-                     mayThrowRpcException = true;
-                     break;
-                  }
-                  // Is cause exception declared for method in interface
-                  if( proxyThrowRealExceptionExabled && !mayThrowRealException && 
-                        (cause != null) && exceptionTypes[i].isAssignableFrom(cause.getClass()) )
-                  {
-                     mayThrowRealException = true;
-                     break;
-                  }
-               }
-            }
-                        
-            if( mayThrowRpcException )
-            {
-               throw rpce;
-            }
-            else if( mayThrowRealException )
+            throw getProxyException(rpce, method, proxyThrowRealExceptionExabled);
+         }
+      }
+      else // Redirect java.lang.Object methods to Class object of proxy!
+      {
+         return method.invoke(proxy.getClass(), args);
+      }
+   }
+   
+   /**
+    * Gets the exception to be thrown by a proxy method when an RPC call fails. This is either the RpcException itself (if declared 
+    * in the throws clause of the method), the real exception (if permitted by <code>throwRealException</code>) or a 
+    * {@link RpcExceptionWrapper}.
+    */
+   static Throwable getProxyException(final RpcException rpce, final Method method, final boolean throwRealException)
+   {
+      Throwable cause = rpce.getCause();
+      boolean mayThrowRpcException = false;
+      boolean mayThrowRealException = false;
+      
+      // If proxy may throw real exceptions and cause is runtime exception...
+      if( throwRealException && (cause != null) && (cause instanceof RuntimeException) && !(cause instanceof MessagingException) )
+      {
+         mayThrowRealException = true;
+      }
+      
+      // Check declared exceptions for method
+      Class[] exceptionTypes = method.getExceptionTypes();
+      if( exceptionTypes != null )
+      {
+         for(int i=0; i<exceptionTypes.length; i++)
+         {
+            // Is RpcException (or subclass) explicitly defined in the throws clause?
+            if( RpcException.class.isAssignableFrom(exceptionTypes[i]) )
             {
-               throw cause;
+               mayThrowRpcException = true;
+               break;
             }
-            else
+            // Is cause exception declared for method in interface
+            if( throwRealException && !mayThrowRealException && 
+                  (cause != null) && exceptionTypes[i].isAssignableFrom(cause.getClass()) )
             {
-               throw new RpcExceptionWrapper(rpce);
+               mayThrowRealException = true;
+               break;
             }
          }
       }
-      else // Redirect java.lang.Object methods to Class object of proxy!
+                  
+      if( mayThrowRpcException )
       {
-         return method.invoke(proxy.getClass(), args);
+         return rpce;
+      }
+      else if( mayThrowRealException )
+      {
+         return cause;
+      }
+      else
+      {
+         return new RpcExceptionWrapper(rpce);
+      }
+   }
+   
+   
+   /**
+    * Adapter class for delivering the result of a RPC call, made through {@link MessagingRpcInterface#invokeWithFuture(MessageHeader, String, Serializable[], RpcResponseListener)}, 
+    * to a {@link RpcResponseListener}.
+    */
+   private final class RpcResponseListenerAdapter implements ResponseListener
+   {
+      private final String methodName;
+      
+      private final Object[] paramList;
+      
+      private final RpcResponseListener listener;
+      
+      public RpcResponseListenerAdapter(final String methodName, final Object[] paramList, final RpcResponseListener listener)
+      {
+         this.methodName = methodName;
+         this.paramList = paramList;
+         this.listener = listener;
+      }
+      
+      public void responseReceived(final ResponseFuture responseFuture, final Message response)
+      {
+         final Object returnValue;
+         try
+         {
+            returnValue = getReturnValue(this.methodName, this.paramList, response);
+         }
+         catch(RpcException rpce)
+         {
+            this.listener.rpcFailed(this.methodName, rpce);
+            return;
+         }
+         this.listener.rpcCompleted(this.methodName, returnValue);
+      }
+      
+      public void responseFailed(final ResponseFuture responseFuture, final MessagingException error)
+      {
+         this.listener.rpcFailed(this.methodName, handleError(this.methodName, error));
       }
    }
 }
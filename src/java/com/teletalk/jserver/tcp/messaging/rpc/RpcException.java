@@ -52,6 +52,9 @@ public class RpcException extends Exception
    public static final long JAVA_LANG_OBJECT_METHOD_CALLED = -1005;
    
    public static final long METHOD_INVOCATION_ERROR = -1006;
+   
+   /** Error code returned for a typed RPC call made through an interface that isn't bound in the remote handler. @since 2.2.1 */
+   public static final long INTERFACE_NOT_BOUND = -1007;
       
    public static final long ACCESS_DENIED = -1100;
    
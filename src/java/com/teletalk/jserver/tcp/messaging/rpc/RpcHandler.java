@@ -13,15 +13,12 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-
-/*
- TODO: Cache Method objects for increased performance, possibly build util class for this.
- */
 package com.teletalk.jserver.tcp.messaging.rpc;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 
 import org.apache.log4j.Level;
@@ -32,7 +29,6 @@ import com.teletalk.jserver.tcp.messaging.Message;
 import com.teletalk.jserver.tcp.messaging.MessageDispatchFailedException;
 import com.teletalk.jserver.tcp.messaging.MessageHeader;
 import com.teletalk.jserver.tcp.messaging.MessagingManager;
-import com.teletalk.jserver.util.ReflectionUtils;
 import com.teletalk.jserver.util.ThrowableUtils;
 import com.teletalk.jserver.util.exception.InvocationExceptionTranslator;
 
@@ -46,6 +42,15 @@ import com.teletalk.jserver.util.exception.InvocationExceptionTranslator;
  * parameter as <code>"myHandler.myMethod"</code> to invoke the method <code>"myMethod"</code> in the handler
  * object. Only the last dot separator is used to determine the method name, which means that handlers names may contain dot themselves.<br>
  * <br>
+ * A method dispatch table is built for the class of each handler when the handler is registered. The dispatch table caches the 
+ * method resolved for each combination of method name and parameter classes, so that RPC methods may be invoked without searching 
+ * the methods of the handler class on every call.<br>
+ * <br>
+ * Typed RPC calls (made through proxies created by {@link MessagingRpcInterface#createTypedProxy(Class, String, boolean)}) are handled by 
+ * binding the interface of the proxy to the methods of the handler when the meta data of the interface is received. Subsequent calls 
+ * through the interface only contain the ordinal of the method to invoke. Bindings are discarded whenever the handlers are changed, in 
+ * which case clients will resend the meta data.<br>
+ * <br>
  * Use {@link #handleRpcMessage(Message)} or {@link #executeMethodCall(String, Object[])} to execute 
  * RPC methods.
  * 
@@ -55,6 +60,9 @@ import com.teletalk.jserver.util.exception.InvocationExceptionTranslator;
  */
 public class RpcHandler
 {
+   /** The maximum number of typed RPC interface bindings. If exceeded, all bindings are discarded. */
+   static final int MAX_TYPED_RPC_BINDINGS = 1024;
+   
    private static final ThreadLocal currenRpcResponseHeader = new ThreadLocal();
    
    /**
@@ -72,6 +80,14 @@ public class RpcHandler
    
    private Object defaultHandler;
    
+   private final Object dispatchTablesLock = new Object();
+   
+   /** Method dispatch tables for the classes of the registered handlers (Class -> RpcMethodDispatchTable). Copy on write. */
+   private volatile HashMap dispatchTables = new HashMap();
+   
+   /** Bindings of interfaces used for typed RPC calls (Long (fingerprint) -> TypedRpcBinding). Copy on write, guarded by dispatchTablesLock. */
+   private volatile HashMap typedRpcBindings = new HashMap();
+   
    private MessagingManager messagingManager;
    
    private InvocationExceptionTranslator invocationExceptionTranslator;   
@@ -101,6 +117,8 @@ public class RpcHandler
       this.defaultHandler = this;
       
       this.messagingManager = messagingManager;
+      
+      this.updateDispatchTables();
    }
       
    /**
@@ -158,6 +176,8 @@ public class RpcHandler
       {
          this.handlerMap.clear();
          this.handlerMap.putAll(handlers);
+         
+         this.updateDispatchTables();
       }
    }
    
@@ -189,6 +209,8 @@ public class RpcHandler
       synchronized(this.handlerMap)
       {
          this.handlerMap.put(name, handler);
+         
+         this.updateDispatchTables();
       }
    }
    
@@ -201,7 +223,11 @@ public class RpcHandler
    {
       synchronized(this.handlerMap)
       {
-         return this.handlerMap.remove(name);
+         final Object handler = this.handlerMap.remove(name);
+         
+         this.updateDispatchTables();
+         
+         return handler;
       }
    }
    
@@ -231,7 +257,114 @@ public class RpcHandler
     */
    public void setDefaultHandler(final Object defaultHandler)
    {
-      this.defaultHandler = defaultHandler;
+      synchronized(this.handlerMap)
+      {
+         this.defaultHandler = defaultHandler;
+         
+         this.updateDispatchTables();
+      }
+   }
+   
+   /**
+    * Updates the method dispatch tables to contain tables for the classes of all registered handlers (including the default handler), 
+    * reusing existing tables where possible. Tables for classes no longer used by any handler are discarded. 
+    */
+   private void updateDispatchTables()
+   {
+      synchronized(this.dispatchTablesLock)
+      {
+         final HashMap oldDispatchTables = this.dispatchTables;
+         final HashMap newDispatchTables = new HashMap();
+         Object handler;
+         
+         for(Iterator it = this.handlerMap.values().iterator(); it.hasNext(); )
+         {
+            handler = it.next();
+            if( handler != null ) this.addDispatchTable(handler.getClass(), oldDispatchTables, newDispatchTables);
+         }
+         if( this.defaultHandler != null ) this.addDispatchTable(this.defaultHandler.getClass(), oldDispatchTables, newDispatchTables);
+         
+         this.dispatchTables = newDispatchTables;
+         
+         // Discard typed RPC interface bindings, since they may refer to handlers that are no longer registered
+         this.typedRpcBindings = new HashMap();
+      }
+   }
+   
+   /**
+    * Adds a dispatch table for the specified class to <code>newDispatchTables</code>, either by reusing a table from 
+    * <code>oldDispatchTables</code> or by creating a new one.  
+    */
+   private void addDispatchTable(final Class handlerClass, final HashMap oldDispatchTables, final HashMap newDispatchTables)
+   {
+      if( !newDispatchTables.containsKey(handlerClass) )
+      {
+         RpcMethodDispatchTable dispatchTable = (RpcMethodDispatchTable)oldDispatchTables.get(handlerClass);
+         if( dispatchTable == null ) dispatchTable = new RpcMethodDispatchTable(handlerClass);
+         newDispatchTables.put(handlerClass, dispatchTable);
+      }
+   }
+   
+   /**
+    * Gets the method dispatch table for the specified handler class. If a table doesn't exist (which may be the case if the handler 
+    * was unregistered while a call was in progress), one is created.
+    */
+   RpcMethodDispatchTable getDispatchTable(final Class handlerClass)
+   {
+      RpcMethodDispatchTable dispatchTable = (RpcMethodDispatchTable)this.dispatchTables.get(handlerClass);
+      
+      if( dispatchTable == null )
+      {
+         synchronized(this.dispatchTablesLock)
+         {
+            dispatchTable = (RpcMethodDispatchTable)this.dispatchTables.get(handlerClass);
+            if( dispatchTable == null )
+            {
+               final HashMap newDispatchTables = new HashMap(this.dispatchTables);
+               dispatchTable = new RpcMethodDispatchTable(handlerClass);
+               newDispatchTables.put(handlerClass, dispatchTable);
+               this.dispatchTables = newDispatchTables;
+            }
+         }
+      }
+      
+      return dispatchTable;
+   }
+   
+   /**
+    * Binds an interface used for typed RPC calls to the handler with the specified name (or the default handler, if no such handler 
+    * exists), by resolving the methods of the handler matching the method signatures of the interface.
+    * 
+    * @return the binding, or <code>null</code> if no handler was found.
+    */
+   TypedRpcBinding bindTypedRpcInterface(final long fingerprint, final String handlerName, final String interfaceName, final String[] signatures)
+   {
+      Object handler = null;
+      if( handlerName != null ) handler = this.getHandler(handlerName);
+      if( handler == null ) handler = this.defaultHandler;
+      if( handler == null ) return null;
+      
+      final TypedRpcBinding binding = new TypedRpcBinding(handlerName, handler.getClass(), interfaceName, signatures, 
+            this.getDispatchTable(handler.getClass()).resolveSignatures(signatures));
+      
+      synchronized(this.dispatchTablesLock)
+      {
+         final HashMap newTypedRpcBindings = (this.typedRpcBindings.size() >= MAX_TYPED_RPC_BINDINGS) ? new HashMap() : new HashMap(this.typedRpcBindings);
+         newTypedRpcBindings.put(new Long(fingerprint), binding);
+         this.typedRpcBindings = newTypedRpcBindings;
+      }
+      
+      return binding;
+   }
+   
+   /**
+    * Gets the binding of the interface with the specified fingerprint, used for typed RPC calls.
+    * 
+    * @return the binding, or <code>null</code> if the interface isn't bound.
+    */
+   TypedRpcBinding getTypedRpcBinding(final long fingerprint)
+   {
+      return (TypedRpcBinding)this.typedRpcBindings.get(new Long(fingerprint));
    }
    
    /**
@@ -251,7 +384,10 @@ public class RpcHandler
     * the message body as an {@link RemoteProcedureCall} object. This method handles dispatching of a 
     * RPC response message, also in the event that an error occurs. The header from the incomming message will be used 
     * for the response. This means that the header may be modifiied in RPC methods, by accessing the 
-    * message using the method {@link MessagingManager#getCurrentMessage()}.
+    * message using the method {@link MessagingManager#getCurrentMessage()}.<br>
+    * <br>
+    * Typed RPC messages (see {@link MessagingRpcInterface#createTypedProxy(Class, String, boolean)}) are handled by 
+    * {@link #handleTypedRpcMessage(Message)}.
     * 
     * @param message the received message.
     */
@@ -261,6 +397,12 @@ public class RpcHandler
       MessageHeader header = message.getHeader();
       Object messageBody = null;
       
+      if( header.hasCustomHeaderField(MessagingRpcInterface.TYPED_RPC_HEADER_KEY) )
+      {
+         this.handleTypedRpcMessage(message);
+         return;
+      }
+      
       currenRpcResponseHeader.set(header);
       
       try
@@ -325,6 +467,58 @@ public class RpcHandler
       }
    }
    
+   /**
+    * Handles the specifed {@link Message} object as as an incomming typed RPC message, i.e. reads the message body as a typed 
+    * RPC call, executes the call and dispatches a typed RPC response (also in the event that an error occurs). As with 
+    * {@link #handleRpcMessage(Message)}, the header from the incomming message will be used for the response.
+    * 
+    * @param message the received message.
+    * 
+    * @since 2.2.1
+    */
+   protected void handleTypedRpcMessage(final Message message) throws MessageDispatchFailedException
+   {
+      TypedRpcResponse response = null;
+      final MessageHeader header = message.getHeader();
+      
+      currenRpcResponseHeader.set(header);
+      
+      try
+      {
+         if( message.isConsumed() )
+         {
+            response = new TypedRpcResponse(new RpcException(RpcException.MISC_INTERNAL_ERROR, "Message consumed before it could be handled by RpcHandler, possibly due to an input stream read timeout."));
+         }
+         else if( message.hasExpired() )
+         {
+            response = new TypedRpcResponse(new RpcException(RpcException.RESPONSE_TIMEOUT, "Message expired before it could be handled."));
+         }
+         else
+         {
+            final TypedRpcCall typedRpcCall = new TypedRpcCall(this);
+            
+            if( message.getBodyAsStreamable(typedRpcCall) ) response = this.executeTypedRpc(typedRpcCall);
+            else response = new TypedRpcResponse(new RpcException(RpcException.MISC_INTERNAL_ERROR, "Unable to read typed RPC call."));
+         }
+      }
+      catch(Throwable t) // Really only for the getBodyAsStreamable call...
+      {
+         if( messagingManager != null ) messagingManager.logError(messagingManager.getFullName() + ".RpcHandler", "Error (" + t + ") executing typed RPC! Message header: " + message + ".", t);
+         else JServerUtilities.logError("RpcHandler", "Error (" + t + ") executing typed RPC! Message header: " + message + ".", t);
+         
+         response = new TypedRpcResponse(new RpcException(RpcException.MISC_INTERNAL_ERROR, t.getMessage()));
+      }
+      finally
+      {
+         currenRpcResponseHeader.set(null);
+      }
+      
+      if( message.expectingResponse() )
+      {
+         this.messagingManager.dispatchMessageAsync(header, response);
+      }
+   }
+   
    /**
     * Default RPC message handling implementation to be used by {@link com.teletalk.jserver.tcp.messaging.MessageReceiver} implementations. This implementation 
     * calls the method {@link #handleRpcMessage(Message)} on the specified rpcHandler, if not null. If the rpcHandler is null, this implementation dispatches an appropriate 
@@ -431,6 +625,58 @@ public class RpcHandler
       return response;
    }
    
+   /**
+    * Executes a typed rpc method.
+    */
+   private TypedRpcResponse executeTypedRpc(final TypedRpcCall typedRpcCall)
+   {
+      final TypedRpcBinding binding = typedRpcCall.getBinding();
+      
+      try
+      {
+         if( binding == null )
+         {
+            if( typedRpcCall.isMetaDataIncluded() ) throw new RpcException(RpcException.HANDLER_NOT_FOUND, "Handler '" + typedRpcCall.getHandlerName() + "' not found!");
+            else throw new RpcException(RpcException.INTERFACE_NOT_BOUND, "Interface not bound!");
+         }
+         
+         Object handler = null;
+         if( binding.getHandlerName() != null ) handler = this.getHandler(binding.getHandlerName());
+         if( handler == null ) handler = this.defaultHandler;
+         
+         // Make sure the handler hasn't been replaced since the interface was bound
+         if( (handler == null) || (handler.getClass() != binding.getHandlerClass()) )
+         {
+            throw new RpcException(RpcException.INTERFACE_NOT_BOUND, "Interface " + binding.getInterfaceName() + " not bound to current handler!");
+         }
+         
+         final Method method = binding.getMethod(typedRpcCall.getOrdinal());
+         if( method == null )
+         {
+            final String signature = binding.getSignature(typedRpcCall.getOrdinal());
+            if( messagingManager != null ) messagingManager.logWarning("Method '" + signature + "' (ordinal " + typedRpcCall.getOrdinal() + ") of interface " + binding.getInterfaceName() + " not found in handler '" + handler + "'!");
+            throw new RpcException(RpcException.METHOD_NOT_FOUND, "Method '" + signature + "' (ordinal " + typedRpcCall.getOrdinal() + ") of interface " + binding.getInterfaceName() + " not found in handler '" + handler + "'!");
+         }
+         
+         final Object returnValue = this.invokeMethod(handler, method, method.getName(), typedRpcCall.getParams());
+         
+         return new TypedRpcResponse(method.getReturnType(), returnValue);
+      }
+      catch(RpcException rpce)
+      {
+         return new TypedRpcResponse(rpce);
+      }
+      catch(Throwable t)
+      {
+         if( messagingManager != null ) messagingManager.logError(messagingManager.getFullName() + ".RpcHandler", "Error executing typed RPC!", t);
+         else JServerUtilities.logError("RpcHandler", "Error executing typed RPC!", t);
+         
+         String msg = ThrowableUtils.getDescription(t);
+                           
+         return new TypedRpcResponse(new RpcException(RpcException.MISC_INTERNAL_ERROR, msg));
+      }
+   }
+   
    /**
     * Dispatches a response to a RPC method call.
     * 
@@ -489,6 +735,7 @@ public class RpcHandler
       Object handler = null;
       Object returnValue = null;
       Object[] methodParams = params;
+      Method method = null;
       
       int dotIndex = methodName.lastIndexOf('.');
       if(dotIndex > 0)
@@ -503,18 +750,12 @@ public class RpcHandler
       
       if( handler != null )
       {
-         Method method = ReflectionUtils.findMethod(handler.getClass(), methodName, methodParams, false);
-			if( method == null )
-			{
-				method = ReflectionUtils.findMethod(handler.getClass(), methodName, methodParams, false, true);
-			}
-			if( method == null )
-			{
-				// Attempt to encapsulate params into array, in case the called method should take Serializable[] as param 
-				// (see MessagingRpcInterface.invoke(MessageHeader, String, Serializable[]).
-				methodParams = new Object[]{methodParams};
-				method = ReflectionUtils.findMethod(handler.getClass(), methodName, methodParams, false);
-			}
+         final RpcMethodDispatchTable.ResolvedMethod resolvedMethod = this.getDispatchTable(handler.getClass()).resolve(methodName, params);
+         if( resolvedMethod != null )
+         {
+            method = resolvedMethod.getMethod();
+            methodParams = resolvedMethod.getMethodParams(params);
+         }
 			         
          if( method != null )
          {            
@@ -522,38 +763,7 @@ public class RpcHandler
             {
                throw new RpcException(RpcException.JAVA_LANG_OBJECT_METHOD_CALLED, "Methods in java.lang.Object may not be invoked!");
             }
-				try
-				{
-               returnValue = method.invoke(handler, methodParams);
-				}
-				catch(Throwable t)
-				{
-               if( t instanceof InvocationTargetException )
-               {
-                  t = t.getCause();
-               }
-               if( t instanceof RpcException )
-               {
-                  throw (RpcException)t;
-               }
-               else
-               {
-                  if( invocationExceptionTranslator != null )
-                  {
-                     try{
-                     t = invocationExceptionTranslator.translate(handler, method, methodParams, t);
-                     }catch(Throwable tt){t = tt;}
-                  }
-                  
-                  if( t != null )
-                  {
-                     String msg = ThrowableUtils.getDescription(t);
-      
-                     if( messagingManager != null ) messagingManager.logWarning("Error while executing method '" + methodName + "' in handler '" + handler + "'! Error details: " + msg + ".", t);
-      					throw new RpcException(RpcException.METHOD_INVOCATION_ERROR, "Error while executing method '" + methodName + "' in handler '" + handler + "'! Error details: " + msg + ".", t);
-                  }
-               }
-				}
+            returnValue = this.invokeMethod(handler, method, methodName, methodParams);
          }
          else
          {
@@ -582,6 +792,52 @@ public class RpcHandler
       return returnValue;
    }
    
+   /**
+    * Invokes a resolved RPC method, translating any exception thrown by the method into an {@link RpcException}.
+    * 
+    * @return the return value of the method call, or <code>null</code> if an exception thrown by the method was translated 
+    * into <code>null</code> by the {@link InvocationExceptionTranslator}.
+    * 
+    * @throws RpcException which incapsulates an error that occurred while invoking the method.
+    */
+   private Object invokeMethod(final Object handler, final Method method, final String methodName, final Object[] methodParams) throws RpcException
+   {
+      try
+      {
+         return method.invoke(handler, methodParams);
+      }
+      catch(Throwable t)
+      {
+         if( t instanceof InvocationTargetException )
+         {
+            t = t.getCause();
+         }
+         if( t instanceof RpcException )
+         {
+            throw (RpcException)t;
+         }
+         else
+         {
+            if( invocationExceptionTranslator != null )
+            {
+               try{
+               t = invocationExceptionTranslator.translate(handler, method, methodParams, t);
+               }catch(Throwable tt){t = tt;}
+            }
+            
+            if( t != null )
+            {
+               String msg = ThrowableUtils.getDescription(t);
+               
+               if( messagingManager != null ) messagingManager.logWarning("Error while executing method '" + methodName + "' in handler '" + handler + "'! Error details: " + msg + ".", t);
+               throw new RpcException(RpcException.METHOD_INVOCATION_ERROR, "Error while executing method '" + methodName + "' in handler '" + handler + "'! Error details: " + msg + ".", t);
+            }
+         }
+      }
+      
+      return null;
+   }
+   
    /**
     * Constructs a RemoteProcedureCallResponse objects to send as a response to a RPC message that failed for some reason. 
     * This method will send {@link RpcException#MISC_INTERNAL_ERROR} as error code.
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.tcp.messaging.rpc;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.teletalk.jserver.util.ReflectionUtils;
+
+/**
+ * Method dispatch table for a RPC handler class, used by {@link RpcHandler} to avoid searching all methods of a handler class 
+ * on every RPC. The public methods of the handler class are indexed by name when the table is created, and the methods resolved 
+ * for a specific method name and parameter signature (i.e. the classes of the actual parameters) are cached, so that subsequent calls 
+ * with the same signature can be dispatched directly to a pre-resolved {@link Method} object.<br>
+ * <br>
+ * Methods are resolved using the same rules as previously used by RpcHandler, i.e. by first attempting to find a method matching 
+ * the parameters, then a method matching the parameters where <code>null</code> parameters match any non-primitive parameter type and 
+ * finally a method taking the parameters encapsulated in an array as the single parameter. Since these rules only depend on the classes 
+ * of the parameters (and on which parameters are <code>null</code>), a resolved method may be reused for all calls with the same signature.<br>
+ * <br>
+ * If several overloaded methods match the parameters in the same step, the most specific one is selected, i.e. the method whose 
+ * parameter types are all assignable to the corresponding parameter types of the other matching methods (where a reference type is 
+ * considered more specific than a primitive type). If there is no single most specific method, for instance when a <code>null</code> 
+ * parameter matches both <code>echo(String)</code> and <code>echo(Integer)</code>, the call is considered ambiguous and no method is 
+ * resolved. This makes the resolution independent of the (unspecified) order of the methods returned by <code>Class.getMethods()</code>.
+ * 
+ * @author Tobias Lfstrand
+ * 
+ * @since 2.2.1
+ */
+final class RpcMethodDispatchTable
+{
+   /** The maximum number of resolved signatures cached in a dispatch table. If exceeded, the cache is cleared. */
+   static final int MAX_CACHED_SIGNATURES = 1024;
+   
+   /** Orders methods by their string representation, to make the order of the candidate methods independent of Class.getMethods(). */
+   private static final Comparator METHOD_ORDER = new Comparator()
+   {
+      public int compare(final Object o1, final Object o2)
+      {
+         return o1.toString().compareTo(o2.toString());
+      }
+   };
+   
+   
+   private final Class handlerClass;
+   
+   /** Public methods of the handler class, indexed by name (String -> Method[], ordered by {@link #METHOD_ORDER}). */
+   private final HashMap methodsByName;
+   
+   private final Object resolvedMethodsLock = new Object();
+   
+   /** Resolved methods (Signature -> ResolvedMethod). Copy on write, to allow lookups without locking. */
+   private volatile HashMap resolvedMethods = new HashMap();
+   
+   
+   /**
+    * Creates a new dispatch table for the specified handler class.
+    */
+   RpcMethodDispatchTable(final Class handlerClass)
+   {
+      this.handlerClass = handlerClass;
+      
+      final HashMap methodLists = new HashMap();
+      final Method[] methods = handlerClass.getMethods();
+      ArrayList methodList;
+      
+      for(int i=0; i<methods.length; i++)
+      {
+         methodList = (ArrayList)methodLists.get(methods[i].getName());
+         if( methodList == null )
+         {
+            methodList = new ArrayList(1);
+            methodLists.put(methods[i].getName(), methodList);
+         }
+         methodList.add(methods[i]);
+      }
+      
+      this.methodsByName = new HashMap();
+      Map.Entry entry;
+      for(Iterator it = methodLists.entrySet().iterator(); it.hasNext(); )
+      {
+         entry = (Map.Entry)it.next();
+         methodList = (ArrayList)entry.getValue();
+         final Method[] methodArray = (Method[])methodList.toArray(new Method[methodList.size()]);
+         Arrays.sort(methodArray, METHOD_ORDER);
+         this.methodsByName.put(entry.getKey(), methodArray);
+      }
+   }
+   
+   /**
+    * Gets the handler class of this dispatch table.
+    */
+   Class getHandlerClass()
+   {
+      return handlerClass;
+   }
+   
+   /**
+    * Gets the number of signatures currently cached in this dispatch table.
+    */
+   int getCachedSignatureCount()
+   {
+      return this.resolvedMethods.size();
+   }
+   
+   /**
+    * Resolves the method to invoke for the specified method name and parameters.
+    * 
+    * @return the resolved method or <code>null</code> if no matching method was found.
+    */
+   ResolvedMethod resolve(final String methodName, final Object[] params)
+   {
+      final Signature signature = new Signature(methodName, params);
+      ResolvedMethod resolvedMethod = (ResolvedMethod)this.resolvedMethods.get(signature);
+      
+      if( resolvedMethod == null )
+      {
+         final Method[] candidates = (Method[])this.methodsByName.get(methodName);
+         if( candidates == null ) return null;
+         
+         boolean wrapParams = false;
+         ArrayList matches = findMatchingMethods(candidates, params, false);
+         if( matches.isEmpty() )
+         {
+            matches = findMatchingMethods(candidates, params, true);
+         }
+         if( matches.isEmpty() )
+         {
+            // Attempt to encapsulate params into array, in case the called method should take Serializable[] as param 
+            // (see MessagingRpcInterface.invoke(MessageHeader, String, Serializable[]).
+            matches = findMatchingMethods(candidates, new Object[]{params}, false);
+            wrapParams = true;
+         }
+         
+         final Method method = selectMostSpecificMethod(matches);
+         if( method == null ) return null; // No match, or ambiguous match
+         
+         resolvedMethod = new ResolvedMethod(method, wrapParams);
+         
+         synchronized(this.resolvedMethodsLock)
+         {
+            final HashMap newResolvedMethods = (this.resolvedMethods.size() >= MAX_CACHED_SIGNATURES) ? new HashMap() : new HashMap(this.resolvedMethods);
+            newResolvedMethods.put(signature, resolvedMethod);
+            this.resolvedMethods = newResolvedMethods;
+         }
+      }
+      
+      return resolvedMethod;
+   }
+   
+   /**
+    * Finds all candidate methods whose parameter types match the specified parameters.
+    */
+   private static ArrayList findMatchingMethods(final Method[] candidates, final Object[] params, final boolean nullParamsMatch)
+   {
+      final ArrayList matches = new ArrayList(1);
+      for(int i=0; i<candidates.length; i++)
+      {
+         if( ReflectionUtils.matchesParameters(candidates[i], params, nullParamsMatch) ) matches.add(candidates[i]);
+      }
+      return matches;
+   }
+   
+   /**
+    * Selects the most specific of the specified matching methods.
+    * 
+    * @return the most specific method, or <code>null</code> if there were no matching methods or if there was no single most specific method.
+    */
+   private static Method selectMostSpecificMethod(final ArrayList matches)
+   {
+      Method method;
+      boolean mostSpecific;
+      
+      for(int i=0; i<matches.size(); i++)
+      {
+         method = (Method)matches.get(i);
+         mostSpecific = true;
+         for(int q=0; (q<matches.size()) && mostSpecific; q++)
+         {
+            if( q != i ) mostSpecific = isAtLeastAsSpecific(method, (Method)matches.get(q));
+         }
+         
+         // Methods with the same parameter types are equally specific - the first one in the (deterministic) order of the candidates is used
+         if( mostSpecific ) return method;
+      }
+      
+      return null;
+   }
+   
+   /**
+    * Checks if the parameter types of the method <code>m1</code> are at least as specific as the parameter types of the method <code>m2</code>.
+    */
+   private static boolean isAtLeastAsSpecific(final Method m1, final Method m2)
+   {
+      final Class[] types1 = m1.getParameterTypes();
+      final Class[] types2 = m2.getParameterTypes();
+      
+      for(int i=0; i<types1.length; i++)
+      {
+         if( !types2[i].isAssignableFrom(types1[i]) && !(types2[i].isPrimitive() && !types1[i].isPrimitive()) ) return false;
+      }
+      
+      return true;
+   }
+   
+   /**
+    * Resolves the methods matching the specified method signatures, in the format used for typed RPC calls (see 
+    * {@link TypedRpcInterface#getSignature(Method)}). Methods declared in <code>java.lang.Object</code> are never matched.
+    * 
+    * @return an array containing the method matching each signature, or <code>null</code> for signatures that didn't match any method.
+    */
+   Method[] resolveSignatures(final String[] signatures)
+   {
+      final Method[] methods = new Method[signatures.length];
+      Method[] candidates;
+      int parameterStartIndex;
+      int nameStartIndex;
+      
+      for(int i=0; i<signatures.length; i++)
+      {
+         parameterStartIndex = signatures[i].indexOf('(');
+         nameStartIndex = (parameterStartIndex > 0) ? signatures[i].lastIndexOf(' ', parameterStartIndex) : -1;
+         if( nameStartIndex < 0 ) continue;
+         
+         candidates = (Method[])this.methodsByName.get(signatures[i].substring(nameStartIndex + 1, parameterStartIndex));
+         if( candidates == null ) continue;
+         
+         for(int c=0; c<candidates.length; c++)
+         {
+            if( (candidates[c].getDeclaringClass() != Object.class) && signatures[i].equals(TypedRpcInterface.getSignature(candidates[c])) )
+            {
+               methods[i] = candidates[c];
+               break;
+            }
+         }
+      }
+      
+      return methods;
+   }
+   
+   
+   /**
+    * A method resolved for a specific signature.
+    */
+   static final class ResolvedMethod
+   {
+      private final Method method;
+      
+      private final boolean wrapParams;
+      
+      ResolvedMethod(final Method method, final boolean wrapParams)
+      {
+         this.method = method;
+         this.wrapParams = wrapParams;
+      }
+      
+      /**
+       * Gets the resolved method.
+       */
+      Method getMethod()
+      {
+         return method;
+      }
+      
+      /**
+       * Gets the parameters to invoke the resolved method with, i.e. the specified parameters encapsulated in an array if the method 
+       * takes an array as its single parameter.
+       */
+      Object[] getMethodParams(final Object[] params)
+      {
+         return this.wrapParams ? new Object[]{params} : params;
+      }
+   }
+   
+   /**
+    * Key class for resolved methods, consisting of a method name and the classes of the parameters.
+    */
+   private static final class Signature
+   {
+      private final String methodName;
+      
+      /** The classes of the parameters (<code>null</code> for <code>null</code> parameters), or <code>null</code> if the parameter array was <code>null</code>. */
+      private final Class[] paramClasses;
+      
+      private final int hashCode;
+      
+      Signature(final String methodName, final Object[] params)
+      {
+         this.methodName = methodName;
+         
+         int hash = methodName.hashCode();
+         
+         if( params != null )
+         {
+            this.paramClasses = new Class[params.length];
+            for(int i=0; i<params.length; i++)
+            {
+               if( params[i] != null ) this.paramClasses[i] = params[i].getClass();
+               hash = (31 * hash) + ((this.paramClasses[i] != null) ? this.paramClasses[i].hashCode() : 0);
+            }
+         }
+         else
+         {
+            this.paramClasses = null;
+            hash = -hash;
+         }
+         
+         this.hashCode = hash;
+      }
+      
+      public int hashCode()
+      {
+         return hashCode;
+      }
+      
+      public boolean equals(final Object obj)
+      {
+         if( !(obj instanceof Signature) ) return false;
+         
+         final Signature other = (Signature)obj;
+         if( (this.hashCode != other.hashCode) || !this.methodName.equals(other.methodName) ) return false;
+         
+         if( (this.paramClasses == null) || (other.paramClasses == null) ) return this.paramClasses == other.paramClasses;
+         if( this.paramClasses.length != other.paramClasses.length ) return false;
+         
+         for(int i=0; i<this.paramClasses.length; i++)
+         {
+            if( this.paramClasses[i] != other.paramClasses[i] ) return false;
+         }
+         
+         return true;
+      }
+   }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.tcp.messaging.rpc;
+
+/**
+ * Interface for classes that are to receive the result of RPC calls made through 
+ * {@link MessagingRpcInterface#invokeWithFuture(com.teletalk.jserver.tcp.messaging.MessageHeader, String, java.io.Serializable[], RpcResponseListener)}.<br>
+ * <br>
+ * The methods of this interface are normally called by the thread reading responses from an endpoint (or by the thread managing 
+ * response timeouts), and implementations should therefore avoid any kind of blocking operations.
+ * 
+ * @author Tobias Lfstrand
+ * 
+ * @since 2.2.1
+ */
+public interface RpcResponseListener
+{
+   /**
+    * Called when a RPC call has completed successfully.
+    * 
+    * @param methodName the name of the invoked RPC method.
+    * @param returnValue the value returned by the RPC method.
+    */
+   public void rpcCompleted(String methodName, Object returnValue);
+   
+   /**
+    * Called when a RPC call has failed.
+    * 
+    * @param methodName the name of the invoked RPC method.
+    * @param rpcException the error.
+    */
+   public void rpcFailed(String methodName, RpcException rpcException);
+}
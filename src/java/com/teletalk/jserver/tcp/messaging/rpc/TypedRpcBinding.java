@@ -0,0 +1,115 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.tcp.messaging.rpc;
+
+import java.lang.reflect.Method;
+
+/**
+ * Server side binding of an interface used for typed RPC calls to the methods of a handler class. A binding is created by 
+ * {@link RpcHandler} when the meta data of an interface is received, and is used to map method ordinals in subsequent calls directly 
+ * to the {@link Method} objects to invoke.
+ * 
+ * @author Tobias Lfstrand
+ * 
+ * @since 2.2.1
+ */
+final class TypedRpcBinding
+{
+   private final String handlerName;
+   
+   private final Class handlerClass;
+   
+   private final String interfaceName;
+   
+   /** The signatures of the methods of the interface, indexed by ordinal. */
+   private final String[] signatures;
+   
+   /** The methods of the handler class matching the signatures, indexed by ordinal (<code>null</code> if no method matched). */
+   private final Method[] methods;
+   
+   /** The parameter types of the methods, indexed by ordinal. */
+   private final Class[][] parameterTypes;
+   
+   
+   /**
+    * Creates a new TypedRpcBinding.
+    */
+   TypedRpcBinding(final String handlerName, final Class handlerClass, final String interfaceName, final String[] signatures, final Method[] methods)
+   {
+      this.handlerName = handlerName;
+      this.handlerClass = handlerClass;
+      this.interfaceName = interfaceName;
+      this.signatures = signatures;
+      this.methods = methods;
+      
+      this.parameterTypes = new Class[methods.length][];
+      for(int i=0; i<methods.length; i++)
+      {
+         if( methods[i] != null ) this.parameterTypes[i] = methods[i].getParameterTypes();
+      }
+   }
+   
+   /**
+    * Gets the name of the handler, or <code>null</code> if the default handler is used.
+    */
+   String getHandlerName()
+   {
+      return handlerName;
+   }
+   
+   /**
+    * Gets the class of the handler to which the interface is bound.
+    */
+   Class getHandlerClass()
+   {
+      return handlerClass;
+   }
+   
+   /**
+    * Gets the name of the bound interface.
+    */
+   String getInterfaceName()
+   {
+      return interfaceName;
+   }
+   
+   /**
+    * Gets the method with the specified ordinal, or <code>null</code> if the ordinal is invalid or no matching method was found in 
+    * the handler class.
+    */
+   Method getMethod(final int ordinal)
+   {
+      if( (ordinal >= 0) && (ordinal < this.methods.length) ) return this.methods[ordinal];
+      else return null;
+   }
+   
+   /**
+    * Gets the parameter types of the method with the specified ordinal.
+    */
+   Class[] getParameterTypes(final int ordinal)
+   {
+      return this.parameterTypes[ordinal];
+   }
+   
+   /**
+    * Gets the signature of the method with the specified ordinal, or <code>null</code> if the ordinal is invalid.
+    */
+   String getSignature(final int ordinal)
+   {
+      if( (ordinal >= 0) && (ordinal < this.signatures.length) ) return this.signatures[ordinal];
+      else return null;
+   }
+}
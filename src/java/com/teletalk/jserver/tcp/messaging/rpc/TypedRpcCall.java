@@ -0,0 +1,234 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.tcp.messaging.rpc;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+
+import com.teletalk.jserver.tcp.messaging.codec.BinaryBodyCodec;
+import com.teletalk.jserver.util.InputStreamer;
+import com.teletalk.jserver.util.OutputStreamer;
+import com.teletalk.jserver.util.Streamable;
+
+/**
+ * Message body of a typed RPC call (see {@link MessagingRpcInterface#createTypedProxy(Class, String, boolean)}). A typed RPC call 
+ * consists of the fingerprint of the interface, optionally followed by the meta data of the interface, the ordinal of the invoked 
+ * method and the parameters. Parameters are written according to the declared parameter types of the method, which means that 
+ * primitive parameters are written directly as primitives, while other parameters are written using {@link BinaryBodyCodec}.<br>
+ * <br>
+ * On the server side, the interface binding is resolved through the {@link RpcHandler} as soon as the fingerprint (and meta data) has 
+ * been read. If the interface isn't bound, the rest of the call isn't read.
+ * 
+ * @author Tobias Lfstrand
+ * 
+ * @since 2.2.1
+ */
+final class TypedRpcCall implements Streamable
+{
+   /** Codec used for writing non-primitive values. */
+   private static final BinaryBodyCodec ValueCodec = new BinaryBodyCodec();
+   
+   
+   private final TypedRpcInterface typedRpcInterface;
+   
+   private final RpcHandler rpcHandler;
+   
+   private boolean metaDataIncluded;
+   
+   private String handlerName;
+   
+   private TypedRpcBinding binding;
+   
+   private int ordinal = -1;
+   
+   private Object[] params;
+   
+   
+   /**
+    * Creates a new TypedRpcCall to be written (client side).
+    * 
+    * @param typedRpcInterface the interface through which the call is made.
+    * @param metaDataIncluded flag indicating if the meta data of the interface should be included in the call.
+    * @param ordinal the ordinal of the invoked method.
+    * @param params the parameters (may be <code>null</code> if the method has no parameters).
+    */
+   TypedRpcCall(final TypedRpcInterface typedRpcInterface, final boolean metaDataIncluded, final int ordinal, final Object[] params)
+   {
+      this.typedRpcInterface = typedRpcInterface;
+      this.rpcHandler = null;
+      this.metaDataIncluded = metaDataIncluded;
+      this.handlerName = typedRpcInterface.getHandlerName();
+      this.ordinal = ordinal;
+      this.params = params;
+   }
+   
+   /**
+    * Creates a new TypedRpcCall to be read (server side).
+    * 
+    * @param rpcHandler the handler used to resolve interface bindings.
+    */
+   TypedRpcCall(final RpcHandler rpcHandler)
+   {
+      this.typedRpcInterface = null;
+      this.rpcHandler = rpcHandler;
+   }
+   
+   /**
+    * Checks if the meta data of the interface was included in the call.
+    */
+   boolean isMetaDataIncluded()
+   {
+      return metaDataIncluded;
+   }
+   
+   /**
+    * Gets the name of the handler specified in the meta data of the interface, if included. 
+    */
+   String getHandlerName()
+   {
+      return handlerName;
+   }
+   
+   /**
+    * Gets the binding of the interface, or <code>null</code> if the interface wasn't bound.
+    */
+   TypedRpcBinding getBinding()
+   {
+      return binding;
+   }
+   
+   /**
+    * Gets the ordinal of the invoked method, or -1 if not read.
+    */
+   int getOrdinal()
+   {
+      return ordinal;
+   }
+   
+   /**
+    * Gets the parameters.
+    */
+   Object[] getParams()
+   {
+      return params;
+   }
+   
+   /**
+    * Deserializates the state of this object from the specified {@link InputStreamer}.
+    */
+   public void read(final InputStreamer input) throws IOException
+   {
+      final long fingerprint = input.readLong();
+      this.metaDataIncluded = input.readBoolean();
+      
+      if( this.metaDataIncluded )
+      {
+         this.handlerName = input.readBoolean() ? input.readUTF() : null;
+         final String interfaceName = input.readUTF();
+         final String[] signatures = new String[input.readInt()];
+         for(int i=0; i<signatures.length; i++)
+         {
+            signatures[i] = input.readUTF();
+         }
+         
+         this.binding = this.rpcHandler.bindTypedRpcInterface(fingerprint, this.handlerName, interfaceName, signatures);
+      }
+      else
+      {
+         this.binding = this.rpcHandler.getTypedRpcBinding(fingerprint);
+      }
+      
+      if( this.binding == null ) return; // Interface not bound - skip the rest of the call
+      
+      this.ordinal = input.readInt();
+      final Method method = this.binding.getMethod(this.ordinal);
+      
+      if( method == null ) return; // Method not found - skip the parameters
+      
+      final Class[] parameterTypes = this.binding.getParameterTypes(this.ordinal);
+      final ClassLoader classLoader = this.binding.getHandlerClass().getClassLoader();
+      this.params = new Object[parameterTypes.length];
+      for(int i=0; i<parameterTypes.length; i++)
+      {
+         this.params[i] = readValue(parameterTypes[i], input, classLoader);
+      }
+   }
+   
+   /**
+    * Serializates the state of this object to the specified {@link OutputStreamer}.
+    */
+   public void write(final OutputStreamer output) throws IOException
+   {
+      output.writeLong(this.typedRpcInterface.getFingerprint());
+      output.writeBoolean(this.metaDataIncluded);
+      
+      if( this.metaDataIncluded )
+      {
+         output.writeBoolean(this.handlerName != null);
+         if( this.handlerName != null ) output.writeUTF(this.handlerName);
+         output.writeUTF(this.typedRpcInterface.getInterfaceClass().getName());
+         final String[] signatures = this.typedRpcInterface.getSignatures();
+         output.writeInt(signatures.length);
+         for(int i=0; i<signatures.length; i++)
+         {
+            output.writeUTF(signatures[i]);
+         }
+      }
+      
+      output.writeInt(this.ordinal);
+      
+      final Class[] parameterTypes = this.typedRpcInterface.getParameterTypes(this.ordinal);
+      for(int i=0; i<parameterTypes.length; i++)
+      {
+         writeValue(parameterTypes[i], this.params[i], output);
+      }
+   }
+   
+   /**
+    * Writes a value of the specified declared type. Primitive values are written directly, without type information, while other 
+    * values are written using {@link BinaryBodyCodec}. Nothing is written if the type is <code>void</code>.
+    */
+   static void writeValue(final Class type, final Object value, final OutputStreamer output) throws IOException
+   {
+      if( type == Void.TYPE ) return;
+      else if( type == Integer.TYPE ) output.writeInt(((Integer)value).intValue());
+      else if( type == Long.TYPE ) output.writeLong(((Long)value).longValue());
+      else if( type == Boolean.TYPE ) output.writeBoolean(((Boolean)value).booleanValue());
+      else if( type == Byte.TYPE ) output.writeByte(((Byte)value).byteValue());
+      else if( type == Short.TYPE ) output.writeShort(((Short)value).shortValue());
+      else if( type == Character.TYPE ) output.writeChar(((Character)value).charValue());
+      else if( type == Float.TYPE ) output.writeFloat(((Float)value).floatValue());
+      else if( type == Double.TYPE ) output.writeDouble(((Double)value).doubleValue());
+      else ValueCodec.encode(value, output);
+   }
+   
+   /**
+    * Reads a value of the specified declared type, written by {@link #writeValue(Class, Object, OutputStreamer)}.
+    */
+   static Object readValue(final Class type, final InputStreamer input, final ClassLoader classLoader) throws IOException
+   {
+      if( type == Void.TYPE ) return null;
+      else if( type == Integer.TYPE ) return new Integer(input.readInt());
+      else if( type == Long.TYPE ) return new Long(input.readLong());
+      else if( type == Boolean.TYPE ) return input.readBoolean() ? Boolean.TRUE : Boolean.FALSE;
+      else if( type == Byte.TYPE ) return new Byte(input.readByte());
+      else if( type == Short.TYPE ) return new Short(input.readShort());
+      else if( type == Character.TYPE ) return new Character(input.readChar());
+      else if( type == Float.TYPE ) return new Float(input.readFloat());
+      else if( type == Double.TYPE ) return new Double(input.readDouble());
+      else return ValueCodec.decode(input, classLoader);
+   }
+}
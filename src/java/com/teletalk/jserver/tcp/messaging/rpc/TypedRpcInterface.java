@@ -0,0 +1,266 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.tcp.messaging.rpc;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.teletalk.jserver.tcp.messaging.Destination;
+
+/**
+ * Client side description of an interface used for typed RPC calls (see {@link MessagingRpcInterface#createTypedProxy(Class, String, boolean)}). 
+ * The methods of the interface are sorted on their signatures, and the position of a method in the sorted list is used as the ordinal 
+ * identifying the method in calls.<br>
+ * <br>
+ * The signatures, together with the name of the interface and the name of the remote handler, make up the meta data of the interface, 
+ * which is sent along with the first call made to each {@link Destination}. Once the meta data has been sent to a destination, 
+ * calls only identify the interface by a fingerprint calculated from the meta data.
+ * 
+ * @author Tobias Lfstrand
+ * 
+ * @since 2.2.1
+ */
+final class TypedRpcInterface
+{
+   private final Class interfaceClass;
+   
+   private final String handlerName;
+   
+   /** The methods of the interface, indexed by ordinal. */
+   private final Method[] methods;
+   
+   /** The signatures of the methods of the interface, indexed by ordinal. */
+   private final String[] signatures;
+   
+   /** The parameter types of the methods of the interface, indexed by ordinal. */
+   private final Class[][] parameterTypes;
+   
+   /** The method names, prefixed by the handler name (if any), to be used in legacy RPC calls. Indexed by ordinal. */
+   private final String[] rpcMethodNames;
+   
+   /** Method -> Integer (ordinal). */
+   private final HashMap methodOrdinals;
+   
+   private final long fingerprint;
+   
+   private final Object boundDestinationsLock = new Object();
+   
+   /** The destinations to which the meta data of this interface has been sent. Copy on write. */
+   private volatile HashSet boundDestinations = new HashSet();
+   
+   
+   /**
+    * Creates a new TypedRpcInterface.
+    * 
+    * @param interfaceClass the interface class.
+    * @param handlerName the name of the remote handler, or <code>null</code> if the default handler is to be used.
+    */
+   TypedRpcInterface(final Class interfaceClass, final String handlerName)
+   {
+      this.interfaceClass = interfaceClass;
+      this.handlerName = handlerName;
+      
+      // Sort methods on signature (methods inherited from several super interfaces will only be included once)
+      final Method[] interfaceMethods = interfaceClass.getMethods();
+      final TreeMap sortedMethods = new TreeMap();
+      for(int i=0; i<interfaceMethods.length; i++)
+      {
+         sortedMethods.put(getSignature(interfaceMethods[i]), interfaceMethods[i]);
+      }
+      
+      this.methods = new Method[sortedMethods.size()];
+      this.signatures = new String[this.methods.length];
+      this.parameterTypes = new Class[this.methods.length][];
+      this.rpcMethodNames = new String[this.methods.length];
+      
+      int ordinal = 0;
+      Map.Entry entry;
+      for(Iterator it = sortedMethods.entrySet().iterator(); it.hasNext(); ordinal++)
+      {
+         entry = (Map.Entry)it.next();
+         this.signatures[ordinal] = (String)entry.getKey();
+         this.methods[ordinal] = (Method)entry.getValue();
+         this.parameterTypes[ordinal] = this.methods[ordinal].getParameterTypes();
+         this.rpcMethodNames[ordinal] = (handlerName != null) ? (handlerName + "." + this.methods[ordinal].getName()) : this.methods[ordinal].getName();
+      }
+      
+      // Map all Method objects (including duplicates from different super interfaces) to ordinals
+      this.methodOrdinals = new HashMap();
+      for(int i=0; i<interfaceMethods.length; i++)
+      {
+         for(int j=0; j<this.signatures.length; j++)
+         {
+            if( this.signatures[j].equals(getSignature(interfaceMethods[i])) )
+            {
+               this.methodOrdinals.put(interfaceMethods[i], new Integer(j));
+               break;
+            }
+         }
+      }
+      
+      this.fingerprint = getFingerprint(handlerName, interfaceClass.getName(), this.signatures);
+   }
+   
+   /**
+    * Gets the signature of a method, in the format <code>returnType name(parameterType1,parameterType2)</code>, where the 
+    * types are specified by their class names.
+    */
+   static String getSignature(final Method method)
+   {
+      final StringBuffer signature = new StringBuffer();
+      signature.append(method.getReturnType().getName());
+      signature.append(' ');
+      signature.append(method.getName());
+      signature.append('(');
+      
+      final Class[] methodParameterTypes = method.getParameterTypes();
+      for(int i=0; i<methodParameterTypes.length; i++)
+      {
+         if( i > 0 ) signature.append(',');
+         signature.append(methodParameterTypes[i].getName());
+      }
+      
+      signature.append(')');
+      return signature.toString();
+   }
+   
+   /**
+    * Calculates the fingerprint (a 64 bit FNV-1a hash) of the meta data of an interface.
+    */
+   static long getFingerprint(final String handlerName, final String interfaceName, final String[] signatures)
+   {
+      long hash = 0xcbf29ce484222325L;
+      
+      hash = updateFingerprint(hash, (handlerName != null) ? handlerName : "");
+      hash = updateFingerprint(hash, interfaceName);
+      for(int i=0; i<signatures.length; i++)
+      {
+         hash = updateFingerprint(hash, signatures[i]);
+      }
+      
+      return hash;
+   }
+   
+   /**
+    * Updates a fingerprint with the characters of the specified string, followed by a separator.
+    */
+   private static long updateFingerprint(long hash, final String value)
+   {
+      for(int i=0; i<value.length(); i++)
+      {
+         hash ^= value.charAt(i);
+         hash *= 0x100000001b3L;
+      }
+      hash ^= 0xffff;
+      hash *= 0x100000001b3L;
+      
+      return hash;
+   }
+   
+   /**
+    * Gets the interface class.
+    */
+   Class getInterfaceClass()
+   {
+      return interfaceClass;
+   }
+   
+   /**
+    * Gets the name of the remote handler, or <code>null</code> if the default handler is to be used.
+    */
+   String getHandlerName()
+   {
+      return handlerName;
+   }
+   
+   /**
+    * Gets the signatures of the methods of the interface, indexed by ordinal.
+    */
+   String[] getSignatures()
+   {
+      return signatures;
+   }
+   
+   /**
+    * Gets the fingerprint of the meta data of the interface.
+    */
+   long getFingerprint()
+   {
+      return fingerprint;
+   }
+   
+   /**
+    * Gets the ordinal of the specified method, or -1 if the method isn't a method of the interface.
+    */
+   int getOrdinal(final Method method)
+   {
+      final Integer ordinal = (Integer)this.methodOrdinals.get(method);
+      return (ordinal != null) ? ordinal.intValue() : -1;
+   }
+   
+   /**
+    * Gets the method with the specified ordinal.
+    */
+   Method getMethod(final int ordinal)
+   {
+      return this.methods[ordinal];
+   }
+   
+   /**
+    * Gets the parameter types of the method with the specified ordinal.
+    */
+   Class[] getParameterTypes(final int ordinal)
+   {
+      return this.parameterTypes[ordinal];
+   }
+   
+   /**
+    * Gets the method name to be used when making a legacy (i.e. untyped) RPC call to the method with the specified ordinal.
+    */
+   String getRpcMethodName(final int ordinal)
+   {
+      return this.rpcMethodNames[ordinal];
+   }
+   
+   /**
+    * Checks if the meta data of this interface has been sent to the specified destination.
+    */
+   boolean isBound(final Destination destination)
+   {
+      return this.boundDestinations.contains(destination);
+   }
+   
+   /**
+    * Sets the flag indicating if the meta data of this interface has been sent to the specified destination.
+    */
+   void setBound(final Destination destination, final boolean bound)
+   {
+      synchronized(this.boundDestinationsLock)
+      {
+         if( bound != this.boundDestinations.contains(destination) )
+         {
+            final HashSet newBoundDestinations = new HashSet(this.boundDestinations);
+            if( bound ) newBoundDestinations.add(destination);
+            else newBoundDestinations.remove(destination);
+            this.boundDestinations = newBoundDestinations;
+         }
+      }
+   }
+}
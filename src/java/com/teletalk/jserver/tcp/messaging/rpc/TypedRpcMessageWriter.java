@@ -0,0 +1,112 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.tcp.messaging.rpc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.teletalk.jserver.tcp.messaging.Destination;
+import com.teletalk.jserver.tcp.messaging.MessageHeader;
+import com.teletalk.jserver.tcp.messaging.MessageWriter;
+import com.teletalk.jserver.tcp.messaging.MessagingEndPoint;
+import com.teletalk.jserver.tcp.messaging.ObjectMessageWriter;
+
+/**
+ * Message writer implementation for RPC calls made through typed proxies (see {@link MessagingRpcInterface#createTypedProxy(Class, String, boolean)}). 
+ * Since the destination of a message isn't known until the message is written, this writer decides how to encode the call when it's 
+ * invoked by the endpoint: if the destination of the endpoint supports typed RPC calls, the call is written as a {@link TypedRpcCall}, 
+ * including the meta data of the interface if it hasn't previously been sent to the destination. Otherwise the call is written as a 
+ * {@link RemoteProcedureCall}.
+ * 
+ * @author Tobias Lfstrand
+ * 
+ * @since 2.2.1
+ */
+final class TypedRpcMessageWriter implements MessageWriter
+{
+   private final TypedRpcInterface typedRpcInterface;
+   
+   private final int ordinal;
+   
+   private final Object[] params;
+   
+   private volatile boolean metaDataIncluded = false;
+   
+   
+   /**
+    * Creates a new TypedRpcMessageWriter.
+    * 
+    * @param typedRpcInterface the interface through which the call is made.
+    * @param ordinal the ordinal of the invoked method.
+    * @param params the parameters (may be <code>null</code> if the method has no parameters).
+    */
+   TypedRpcMessageWriter(final TypedRpcInterface typedRpcInterface, final int ordinal, final Object[] params)
+   {
+      this.typedRpcInterface = typedRpcInterface;
+      this.ordinal = ordinal;
+      this.params = params;
+   }
+   
+   /**
+    * Called to write a message (header and body) to an endpoint.
+    * 
+    * @param header the header of the message that is to be dispatched.
+    * @param endPoint the endpoint on which the message is to be dispatched on.
+    * @param endPointOutputStream the output stream of the endpoint on which the message is to be written to.
+    */
+   public void writeMessage(MessageHeader header, MessagingEndPoint endPoint, OutputStream endPointOutputStream) throws IOException
+   {
+      final Destination destination = endPoint.getDestination();
+      final Object body;
+      
+      if( (destination != null) && destination.isTypedRpcSupported() )
+      {
+         header.removeCustomHeaderField(MessagingRpcInterface.RPC_METHOD_NAME);
+         header.setCustomHeaderField(MessagingRpcInterface.TYPED_RPC_HEADER_KEY, null);
+         
+         this.metaDataIncluded = !this.typedRpcInterface.isBound(destination);
+         body = new TypedRpcCall(this.typedRpcInterface, this.metaDataIncluded, this.ordinal, this.params);
+         if( this.metaDataIncluded ) this.typedRpcInterface.setBound(destination, true);
+      }
+      else
+      {
+         final String methodName = this.typedRpcInterface.getRpcMethodName(this.ordinal);
+         
+         header.removeCustomHeaderField(MessagingRpcInterface.TYPED_RPC_HEADER_KEY);
+         header.setCustomHeaderField(MessagingRpcInterface.RPC_METHOD_NAME, methodName);
+         
+         body = new RemoteProcedureCall(methodName, this.params, false);
+      }
+      
+      new ObjectMessageWriter(body).writeMessage(header, endPoint, endPointOutputStream);
+   }
+   
+   /**
+    * Checks if the meta data of the interface was included when the call was last written as a typed RPC call.
+    */
+   boolean isMetaDataIncluded()
+   {
+      return metaDataIncluded;
+   }
+   
+   /**
+    * Gets a description of the message body (for debug).
+    */
+   public String getDescription()
+   {
+      return "Typed RPC call: " + this.typedRpcInterface.getSignatures()[this.ordinal];
+   }
+}
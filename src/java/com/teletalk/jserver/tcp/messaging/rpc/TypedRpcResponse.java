@@ -0,0 +1,122 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.tcp.messaging.rpc;
+
+import java.io.IOException;
+
+import com.teletalk.jserver.util.InputStreamer;
+import com.teletalk.jserver.util.OutputStreamer;
+import com.teletalk.jserver.util.Streamable;
+
+/**
+ * Message body of a response to a typed RPC call (see {@link TypedRpcCall}). The response consists of a flag indicating if the call 
+ * failed, followed by either the {@link RpcException} describing the error or the return value, written according to the declared 
+ * return type of the method.
+ * 
+ * @author Tobias Lfstrand
+ * 
+ * @since 2.2.1
+ */
+final class TypedRpcResponse implements Streamable
+{
+   private final Class returnType;
+   
+   private final ClassLoader classLoader;
+   
+   private Object returnValue;
+   
+   private RpcException rpcException;
+   
+   
+   /**
+    * Creates a new TypedRpcResponse to be read (client side).
+    * 
+    * @param returnType the declared return type of the invoked method.
+    * @param classLoader the class loader to use when reading non-primitive values.
+    */
+   TypedRpcResponse(final Class returnType, final ClassLoader classLoader)
+   {
+      this.returnType = returnType;
+      this.classLoader = classLoader;
+   }
+   
+   /**
+    * Creates a new TypedRpcResponse containing the return value of a successful call.
+    * 
+    * @param returnType the declared return type of the invoked method.
+    * @param returnValue the return value.
+    */
+   TypedRpcResponse(final Class returnType, final Object returnValue)
+   {
+      this.returnType = returnType;
+      this.classLoader = null;
+      this.returnValue = returnValue;
+   }
+   
+   /**
+    * Creates a new TypedRpcResponse for a failed call.
+    * 
+    * @param rpcException the error.
+    */
+   TypedRpcResponse(final RpcException rpcException)
+   {
+      this.returnType = null;
+      this.classLoader = null;
+      this.rpcException = rpcException;
+   }
+   
+   /**
+    * Gets the return value.
+    */
+   Object getReturnValue()
+   {
+      return returnValue;
+   }
+   
+   /**
+    * Gets the error, if the call failed.
+    */
+   RpcException getRpcException()
+   {
+      return rpcException;
+   }
+   
+   /**
+    * Deserializates the state of this object from the specified {@link InputStreamer}.
+    */
+   public void read(final InputStreamer input) throws IOException
+   {
+      if( input.readBoolean() )
+      {
+         this.rpcException = (RpcException)TypedRpcCall.readValue(RpcException.class, input, this.classLoader);
+      }
+      else
+      {
+         this.returnValue = TypedRpcCall.readValue(this.returnType, input, this.classLoader);
+      }
+   }
+   
+   /**
+    * Serializates the state of this object to the specified {@link OutputStreamer}.
+    */
+   public void write(final OutputStreamer output) throws IOException
+   {
+      output.writeBoolean(this.rpcException != null);
+      
+      if( this.rpcException != null ) TypedRpcCall.writeValue(RpcException.class, this.rpcException, output);
+      else TypedRpcCall.writeValue(this.returnType, this.returnValue, output);
+   }
+}
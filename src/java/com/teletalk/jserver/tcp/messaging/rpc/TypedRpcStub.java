@@ -0,0 +1,150 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.tcp.messaging.rpc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+
+import com.teletalk.jserver.tcp.messaging.Message;
+import com.teletalk.jserver.tcp.messaging.MessageHeader;
+
+/**
+ * Invocation handler for proxies created by {@link MessagingRpcInterface#createTypedProxy(Class, String, boolean)}. Methods invoked 
+ * on a proxy are mapped to method ordinals through a table built when the proxy is created, and dispatched using a 
+ * {@link TypedRpcMessageWriter}.<br>
+ * <br>
+ * If the remote handler responds that the interface isn't bound (which may happen if the remote messaging system has been restarted or if 
+ * the remote handlers have been changed), the destination is marked as unbound and the call is retried, which means that the meta data of 
+ * the interface will be included if the call is dispatched to the same destination again.
+ * 
+ * @author Tobias Lfstrand
+ * 
+ * @since 2.2.1
+ */
+final class TypedRpcStub implements InvocationHandler
+{
+   private final MessagingRpcInterface messagingRpcInterface;
+   
+   private final TypedRpcInterface typedRpcInterface;
+   
+   private final boolean throwRealException;
+   
+   
+   /**
+    * Creates a new TypedRpcStub.
+    * 
+    * @param messagingRpcInterface the MessagingRpcInterface used for dispatching calls.
+    * @param typedRpcInterface the interface implemented by the proxy.
+    * @param throwRealException flag indicating if the actual exceptions that occur should be thown in method calls, whenever possible.
+    */
+   TypedRpcStub(final MessagingRpcInterface messagingRpcInterface, final TypedRpcInterface typedRpcInterface, final boolean throwRealException)
+   {
+      this.messagingRpcInterface = messagingRpcInterface;
+      this.typedRpcInterface = typedRpcInterface;
+      this.throwRealException = throwRealException;
+   }
+   
+   /**
+    * Processes a method invocation on a proxy by making a typed RPC call.
+    */
+   public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+   {
+      final int ordinal = this.typedRpcInterface.getOrdinal(method);
+      
+      if( ordinal >= 0 )
+      {
+         try
+         {
+            return this.invokeInternal(this.messagingRpcInterface.getRpcMessageHeader(), ordinal, args);
+         }
+         catch(RpcException rpce)
+         {
+            throw MessagingRpcInterface.getProxyException(rpce, method, this.throwRealException);
+         }
+      }
+      else // Redirect java.lang.Object methods to Class object of proxy!
+      {
+         return method.invoke(proxy.getClass(), args);
+      }
+   }
+   
+   /**
+    * Makes a typed RPC call to the method with the specified ordinal.
+    * 
+    * @throws RpcException if an RCP error occurs.
+    */
+   private Object invokeInternal(final MessageHeader header, final int ordinal, final Object[] args) throws RpcException
+   {
+      final String methodName = this.typedRpcInterface.getRpcMethodName(ordinal);
+      final Method method = this.typedRpcInterface.getMethod(ordinal);
+      final TypedRpcMessageWriter messageWriter = new TypedRpcMessageWriter(this.typedRpcInterface, ordinal, args);
+      
+      while(true)
+      {
+         this.messagingRpcInterface.initRpcHeader(header, null);
+         
+         Message response;
+         try
+         {
+            response = this.messagingRpcInterface.getMessageDispatcher().dispatchMessage(header, messageWriter);
+         }
+         catch(Throwable t)
+         {
+            throw this.messagingRpcInterface.handleError(methodName, t);
+         }
+         
+         if( response == null ) // If response == null, assume message is asych...
+         {
+            return null;
+         }
+         else if( !response.getHeader().hasCustomHeaderField(MessagingRpcInterface.TYPED_RPC_HEADER_KEY) ) // Call was made as a legacy RPC call
+         {
+            return this.messagingRpcInterface.getReturnValue(methodName, args, response);
+         }
+         
+         final TypedRpcResponse typedRpcResponse = new TypedRpcResponse(method.getReturnType(), this.typedRpcInterface.getInterfaceClass().getClassLoader());
+         boolean responseRead;
+         try
+         {
+            responseRead = response.getBodyAsStreamable(typedRpcResponse);
+         }
+         catch(Throwable t)
+         {
+            throw this.messagingRpcInterface.handleError(methodName, t);
+         }
+         
+         final RpcException rpcException = typedRpcResponse.getRpcException();
+         
+         if( !responseRead )
+         {
+            throw new RpcException(RpcException.MISC_INTERNAL_ERROR, "Unable to read response to RPC method '" + methodName + "'!");
+         }
+         else if( rpcException == null )
+         {
+            return typedRpcResponse.getReturnValue();
+         }
+         else if( (rpcException.getErrorCode() == RpcException.INTERFACE_NOT_BOUND) && !messageWriter.isMetaDataIncluded() )
+         {
+            // Make sure the meta data of the interface is resent to the destination in the next attempt
+            this.typedRpcInterface.setBound(response.getDestination(), false);
+         }
+         else
+         {
+            throw rpcException;
+         }
+      }
+   }
+}
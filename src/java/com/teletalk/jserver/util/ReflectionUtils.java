@@ -186,6 +186,50 @@ public class ReflectionUtils
          else return null;
       }
    }
+   
+   /**
+    * Finds the first method among the specified candidate methods, whose parameter types match the specified parameters. This method 
+    * uses the same matching rules as {@link #findMethod(Class, String, Object[], boolean, boolean)}, and may be used to avoid 
+    * repeatedly getting all methods of a class when the candidate methods (for instance all public methods with a specific name) 
+    * are known in advance.
+    * 
+    * @param candidates the methods to select from.
+    * @param params the parameters to find a matching method for.
+    * @param nullParamsMatch flag indicating if <code>null</code> parameters should match any non-primitive parameter type.
+    * 
+    * @return a matching Method object or null if none was found.
+    * 
+    * @since 2.2.1
+    */
+   public static final Method findMethod(final Method[] candidates, final Object[] params, final boolean nullParamsMatch)
+   {
+      if( candidates != null )
+      {
+         for (int m = 0; m < candidates.length; m++)
+         {
+            if( matchParameters(params, candidates[m].getParameterTypes(), nullParamsMatch) ) return candidates[m];
+         }
+      }
+      
+      return null;
+   }
+   
+   /**
+    * Checks if the parameter types of the specified method match the specified parameters. This method uses the same matching rules 
+    * as {@link #findMethod(Class, String, Object[], boolean, boolean)}.
+    * 
+    * @param method the method to check.
+    * @param params the parameters to match.
+    * @param nullParamsMatch flag indicating if <code>null</code> parameters should match any non-primitive parameter type.
+    * 
+    * @return <code>true</code> if the method matches the parameters.
+    * 
+    * @since 2.2.1
+    */
+   public static final boolean matchesParameters(final Method method, final Object[] params, final boolean nullParamsMatch)
+   {
+      return matchParameters(params, method.getParameterTypes(), nullParamsMatch);
+   }
 
    /**
     * Finds the constructor in the specified target class.
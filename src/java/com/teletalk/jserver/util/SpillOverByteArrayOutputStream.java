@@ -19,12 +19,15 @@ import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 
 /**
@@ -213,6 +216,52 @@ public class SpillOverByteArrayOutputStream extends OutputStream
       else if( this.byteArrayOutputStream != null ) this.byteArrayOutputStream.writeTo(out);
    }
    
+   /**
+    * Writes the contents of this stream to the specified file channel, starting at the specified position in the file. If spill over 
+    * has been performed, the contents are transferred directly from the spill over file using 
+    * {@link FileChannel#transferFrom(java.nio.channels.ReadableByteChannel, long, long)}, which allows the operating system to copy the 
+    * data without passing it through user space.
+    * 
+    * @return the number of bytes written.
+    * 
+    * @since 2.2.1
+    */
+   public long transferTo(final FileChannel fileChannel, final long position) throws IOException
+   {
+      if( this.hasSpilledOver() )
+      {
+         this.spillOverFileOutputStream.flush();
+         
+         final FileInputStream input = new FileInputStream(this.spillOverFile);
+         try
+         {
+            final FileChannel inputChannel = input.getChannel();
+            long transferred = 0;
+            long read;
+            
+            while( transferred < this.bytesWritten )
+            {
+               read = fileChannel.transferFrom(inputChannel, position + transferred, this.bytesWritten - transferred);
+               if( read <= 0 ) throw new EOFException("Unexpected end of spill over file after " + transferred + " of " + this.bytesWritten + " bytes!");
+               transferred += read;
+            }
+            
+            return transferred;
+         }
+         finally
+         {
+            input.close();
+         }
+      }
+      else if( this.byteArrayOutputStream != null )
+      {
+         final ByteBuffer buffer = ByteBuffer.wrap(this.byteArrayOutputStream.toByteArray(false), 0, this.byteArrayOutputStream.size());
+         while( buffer.hasRemaining() ) fileChannel.write(buffer, position + buffer.position());
+         return buffer.position();
+      }
+      else return 0;
+   }
+   
    /**
     * Gets an input stream for reading the contents of this SpillOverByteArrayOutputStream.
     * 
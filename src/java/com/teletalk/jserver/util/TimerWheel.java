@@ -0,0 +1,349 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.util;
+
+import java.util.ArrayList;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Hashed timer wheel, for scheduling large numbers of short lived timeouts (such as response timeouts) using a single thread. The 
+ * wheel consists of a fixed number of buckets, each representing a tick of a fixed duration. A timeout is placed in the bucket 
+ * of the tick during which it expires, together with the number of full rotations of the wheel that remain before it expires. 
+ * Scheduling and cancelling timeouts are therefore constant time operations, regardless of the number of pending timeouts.<br>
+ * <br>
+ * Timeouts will expire with a precision of one tick duration. The tasks of expired timeouts are executed by the thread of the 
+ * timer wheel, which means that they should execute swiftly, and not perform any blocking operations.
+ * 
+ * @author Tobias Lfstrand
+ * 
+ * @since 2.2.1
+ */
+public class TimerWheel implements Runnable
+{
+   private static final Log log = LogFactory.getLog(TimerWheel.class);
+   
+   /** The default tick duration (ms). */
+   public static final long DEFAULT_TICK_DURATION = 10;
+   
+   /** The default number of ticks (buckets) per wheel rotation. */
+   public static final int DEFAULT_TICKS_PER_WHEEL = 512;
+   
+   
+   /**
+    * Class representing a timeout scheduled in a TimerWheel.
+    */
+   public static final class Timeout
+   {
+      private final TimerWheel timerWheel;
+      private final Runnable task;
+      private final long deadline;
+      
+      private long remainingRounds;
+      private int bucket = -1;
+      private Timeout previous;
+      private Timeout next;
+      
+      private boolean expired = false;
+      private boolean cancelled = false;
+      
+      Timeout(final TimerWheel timerWheel, final Runnable task, final long deadline)
+      {
+         this.timerWheel = timerWheel;
+         this.task = task;
+         this.deadline = deadline;
+      }
+      
+      /**
+       * Gets the task to execute when this timeout expires.
+       */
+      public Runnable getTask()
+      {
+         return this.task;
+      }
+      
+      /**
+       * Gets the time (millisecond value since January 1, 1970 UTC) when this timeout is scheduled to expire.
+       */
+      public long getDeadline()
+      {
+         return this.deadline;
+      }
+      
+      /**
+       * Cancels this timeout, if it hasn't already expired.
+       * 
+       * @return <code>true</code> if this timeout was cancelled, <code>false</code> if it already had expired or been cancelled.
+       */
+      public boolean cancel()
+      {
+         return this.timerWheel.cancel(this);
+      }
+      
+      /**
+       * Checks if this timeout has expired.
+       */
+      public boolean isExpired()
+      {
+         synchronized(this.timerWheel)
+         {
+            return this.expired;
+         }
+      }
+      
+      /**
+       * Checks if this timeout has been cancelled.
+       */
+      public boolean isCancelled()
+      {
+         synchronized(this.timerWheel)
+         {
+            return this.cancelled;
+         }
+      }
+   }
+   
+   
+   private final String name;
+   
+   private final long tickDuration;
+   
+   private final Timeout[] buckets; // Heads of the doubly linked lists of timeouts in each bucket
+   
+   private final int mask;
+   
+   private final long startTime;
+   
+   private long tick = 0; // The next tick to process
+   
+   private int size = 0;
+   
+   private Thread thread = null;
+   
+   private volatile boolean canRun = true;
+   
+   
+   /**
+    * Creates a new TimerWheel using the default tick duration and number of ticks per wheel.
+    * 
+    * @param name the name of the timer wheel, used as the name of the timer wheel thread.
+    */
+   public TimerWheel(final String name)
+   {
+      this(name, DEFAULT_TICK_DURATION, DEFAULT_TICKS_PER_WHEEL);
+   }
+   
+   /**
+    * Creates a new TimerWheel. The timer wheel thread is started when the first timeout is scheduled. 
+    * 
+    * @param name the name of the timer wheel, used as the name of the timer wheel thread.
+    * @param tickDuration the duration of a tick (ms), i.e. the precision of the timeouts.
+    * @param ticksPerWheel the number of ticks per wheel rotation. This value will be rounded up to the nearest power of two.
+    */
+   public TimerWheel(final String name, final long tickDuration, final int ticksPerWheel)
+   {
+      if( tickDuration <= 0 ) throw new IllegalArgumentException("Invalid tick duration: " + tickDuration + "!");
+      if( ticksPerWheel <= 0 ) throw new IllegalArgumentException("Invalid ticks per wheel: " + ticksPerWheel + "!");
+      
+      int bucketCount = 1;
+      while( bucketCount < ticksPerWheel ) bucketCount <<= 1;
+      
+      this.name = name;
+      this.tickDuration = tickDuration;
+      this.buckets = new Timeout[bucketCount];
+      this.mask = bucketCount - 1;
+      this.startTime = System.currentTimeMillis();
+   }
+   
+   /**
+    * Gets the name of this timer wheel.
+    */
+   public String getName()
+   {
+      return this.name;
+   }
+   
+   /**
+    * Gets the duration of a tick (ms).
+    */
+   public long getTickDuration()
+   {
+      return this.tickDuration;
+   }
+   
+   /**
+    * Gets the number of ticks per wheel rotation.
+    */
+   public int getTicksPerWheel()
+   {
+      return this.buckets.length;
+   }
+   
+   /**
+    * Gets the number of pending timeouts.
+    */
+   public synchronized int size()
+   {
+      return this.size;
+   }
+   
+   /**
+    * Schedules a task to be executed by the thread of this timer wheel when the specified delay has elapsed.
+    * 
+    * @param task the task to execute.
+    * @param delay the delay (ms) after which the task is to be executed.
+    * 
+    * @return a {@link Timeout} object that may be used to cancel the execution of the task.
+    * 
+    * @throws IllegalStateException if this timer wheel has been stopped.
+    */
+   public synchronized Timeout schedule(final Runnable task, final long delay)
+   {
+      if( !this.canRun ) throw new IllegalStateException("TimerWheel " + this.name + " is stopped!");
+      
+      if( this.thread == null )
+      {
+         this.thread = new Thread(this, this.name);
+         this.thread.setDaemon(true);
+         this.thread.start();
+      }
+      
+      final Timeout timeout = new Timeout(this, task, System.currentTimeMillis() + Math.max(0, delay));
+      
+      // Calculate the tick during which the timeout expires (never a tick that already has been processed)  
+      final long expireTick = Math.max(this.tick, (timeout.deadline - this.startTime) / this.tickDuration);
+      
+      timeout.remainingRounds = (expireTick - this.tick) / this.buckets.length;
+      timeout.bucket = (int)(expireTick & this.mask);
+      
+      // Insert first in bucket list
+      timeout.next = this.buckets[timeout.bucket];
+      if( timeout.next != null ) timeout.next.previous = timeout;
+      this.buckets[timeout.bucket] = timeout;
+      this.size++;
+      
+      return timeout;
+   }
+   
+   /**
+    * Cancels the specified timeout.
+    */
+   synchronized boolean cancel(final Timeout timeout)
+   {
+      if( timeout.expired || timeout.cancelled ) return false;
+      
+      timeout.cancelled = true;
+      this.remove(timeout);
+      
+      return true;
+   }
+   
+   /**
+    * Removes the specified timeout from its bucket.
+    */
+   private void remove(final Timeout timeout)
+   {
+      if( timeout.previous != null ) timeout.previous.next = timeout.next;
+      else this.buckets[timeout.bucket] = timeout.next;
+      if( timeout.next != null ) timeout.next.previous = timeout.previous;
+      
+      timeout.previous = null;
+      timeout.next = null;
+      timeout.bucket = -1;
+      this.size--;
+   }
+   
+   /**
+    * Stops this timer wheel. Pending timeouts are discarded without being executed.
+    */
+   public void stop()
+   {
+      synchronized(this)
+      {
+         this.canRun = false;
+         
+         for(int i=0; i<this.buckets.length; i++) this.buckets[i] = null;
+         this.size = 0;
+         
+         this.notifyAll();
+      }
+   }
+   
+   /**
+    * The thread method of this timer wheel.
+    */
+   public void run()
+   {
+      final ArrayList expiredTimeouts = new ArrayList();
+      long waitTime;
+      
+      while( this.canRun )
+      {
+         try
+         {
+            synchronized(this)
+            {
+               // Wait for the end of the next tick
+               waitTime = (this.startTime + (this.tick + 1) * this.tickDuration) - System.currentTimeMillis();
+               if( waitTime > 0 )
+               {
+                  this.wait(waitTime);
+                  continue;
+               }
+               
+               // Expire the timeouts of the bucket of the tick
+               Timeout timeout = this.buckets[(int)(this.tick & this.mask)];
+               Timeout next;
+               while( timeout != null )
+               {
+                  next = timeout.next;
+                  
+                  if( timeout.remainingRounds <= 0 )
+                  {
+                     this.remove(timeout);
+                     timeout.expired = true;
+                     expiredTimeouts.add(timeout);
+                  }
+                  else timeout.remainingRounds--;
+                  
+                  timeout = next;
+               }
+               
+               this.tick++;
+            }
+            
+            // Execute tasks outside of the lock, to avoid blocking threads scheduling new timeouts
+            for(int i=0; i<expiredTimeouts.size(); i++)
+            {
+               try
+               {
+                  ((Timeout)expiredTimeouts.get(i)).task.run();
+               }
+               catch(Throwable t)
+               {
+                  log.error("Error executing timeout task in timer wheel " + this.name + "!", t);
+               }
+            }
+            expiredTimeouts.clear();
+         }
+         catch(InterruptedException ie)
+         {
+            if( this.canRun ) log.warn("TimerWheel " + this.name + " interrupted!");
+         }
+      }
+   }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver;
+
+/**
+ * Harness for throughput benchmarks, which are kept outside of the JUnit tests (in <code>test/benchmark</code>) and run with the ant 
+ * target <code>benchmark</code>. A benchmark compares a number of variants (typically a previous and a current implementation) by 
+ * executing an {@link Operation} for each variant repeatedly in an increasing number of threads (1, 2, 4... up to a maximum number 
+ * of threads), and prints the number of operations per second for each variant and number of threads as a tab separated table.<br>
+ * <br>
+ * Arguments: <code>[max threads] [seconds per run]</code>. The default maximum number of threads is twice the number of available 
+ * processors, and the default duration of each run is two seconds.
+ * 
+ * @author Tobias Lfstrand
+ * 
+ * @since 2.2.1
+ */
+public abstract class ThroughputBenchmark
+{
+   /**
+    * An operation executed repeatedly by the threads of a benchmark run.
+    */
+   public static interface Operation
+   {
+      /**
+       * Executes the operation.
+       * 
+       * @param iteration the iteration number, which starts at a different value in each thread.
+       */
+      public void execute(int iteration) throws Exception;
+   }
+   
+   private final String[] variantNames;
+   
+   
+   /**
+    * Creates a new ThroughputBenchmark.
+    * 
+    * @param variantNames the names of the variants to compare.
+    */
+   protected ThroughputBenchmark(final String[] variantNames)
+   {
+      this.variantNames = variantNames;
+   }
+   
+   /**
+    * Creates the operation to execute for the specified variant. A new operation is created for each run, and is shared by all threads 
+    * of the run.
+    * 
+    * @param variant the index of the variant.
+    */
+   protected abstract Operation createOperation(int variant) throws Exception;
+   
+   /**
+    * Called when the last run of the specified variant has completed. This implementation does nothing.
+    * 
+    * @param variant the index of the variant.
+    * @param operation the operation of the last run.
+    */
+   protected void lastRunCompleted(int variant, Operation operation)
+   {
+   }
+   
+   /**
+    * Runs this benchmark.
+    * 
+    * @param args the arguments: <code>[max threads] [seconds per run]</code>.
+    */
+   public final void run(final String[] args) throws Exception
+   {
+      final int maxThreads = (args.length > 0) ? Integer.parseInt(args[0]) : 2 * Runtime.getRuntime().availableProcessors();
+      final long duration = (args.length > 1) ? Long.parseLong(args[1]) * 1000 : 2000;
+      
+      // Warm up
+      for(int v=0; v<this.variantNames.length; v++) this.run(this.createOperation(v), 2, duration / 2);
+      
+      final StringBuffer heading = new StringBuffer("threads");
+      for(int v=0; v<this.variantNames.length; v++) heading.append('\t').append(this.variantNames[v]).append(" (ops/s)");
+      System.out.println(heading);
+      
+      final Operation[] lastOperations = new Operation[this.variantNames.length];
+      StringBuffer row;
+      for(int threads=1; threads<=maxThreads; threads *= 2)
+      {
+         row = new StringBuffer(String.valueOf(threads));
+         for(int v=0; v<this.variantNames.length; v++)
+         {
+            lastOperations[v] = this.createOperation(v);
+            row.append('\t').append(this.run(lastOperations[v], threads, duration));
+         }
+         System.out.println(row);
+      }
+      
+      for(int v=0; v<this.variantNames.length; v++)
+      {
+         if( lastOperations[v] != null ) this.lastRunCompleted(v, lastOperations[v]);
+      }
+   }
+   
+   /**
+    * Executes the specified operation in the specified number of threads, and returns the number of operations per second.
+    */
+   private long run(final Operation operation, final int threads, final long duration) throws Exception
+   {
+      final Executor[] executors = new Executor[threads];
+      for(int i=0; i<threads; i++) executors[i] = new Executor(operation, i * 7919);
+      for(int i=0; i<threads; i++) executors[i].start();
+      
+      Thread.sleep(duration);
+      
+      long operations = 0;
+      for(int i=0; i<threads; i++) executors[i].running = false;
+      for(int i=0; i<threads; i++)
+      {
+         executors[i].join();
+         if( executors[i].error != null ) throw executors[i].error;
+         operations += executors[i].operations;
+      }
+      
+      return (operations * 1000) / duration;
+   }
+   
+   /**
+    * Thread executing an operation until stopped.
+    */
+   private static final class Executor extends Thread
+   {
+      private final Operation operation;
+      
+      private final int firstIteration;
+      
+      private volatile boolean running = true;
+      
+      private long operations = 0;
+      
+      private Exception error = null;
+      
+      Executor(final Operation operation, final int firstIteration)
+      {
+         this.operation = operation;
+         this.firstIteration = firstIteration;
+      }
+      
+      public void run()
+      {
+         int iteration = this.firstIteration;
+         long count = 0;
+         try
+         {
+            while(this.running)
+            {
+               this.operation.execute(iteration++);
+               count++;
+            }
+         }
+         catch(Exception e)
+         {
+            this.error = e;
+         }
+         this.operations = count;
+      }
+   }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.statistics.messaging;
+
+import com.teletalk.jserver.ThroughputBenchmark;
+import com.teletalk.jserver.statistics.AverageMaxStatisticsSource;
+import com.teletalk.jserver.statistics.HistogramStatisticsSource;
+import com.teletalk.jserver.tcp.TcpEndPointIdentifier;
+import com.teletalk.jserver.tcp.messaging.Destination;
+import com.teletalk.jserver.tcp.messaging.MessageHeader;
+import com.teletalk.jserver.tcp.messaging.rpc.MessagingRpcInterface;
+import com.teletalk.jserver.tcp.messaging.rpc.RemoteProcedureCall;
+
+/**
+ * Benchmark measuring the cost of updating messaging statistics (the work performed for every sent and received message when 
+ * statistics are enabled in a MessagingManager), comparing {@link MessagingStatisticsSource} with the previous implementation 
+ * (which built the message type name for every update, looked up nested {@link AverageMaxStatisticsSource} objects by 
+ * destination and message type name, and synchronized on the top level and destination sources). Each operation updates the 
+ * request-response statistics for one of {@link #DESTINATIONS} destinations and one of {@link #MESSAGE_TYPES} message types 
+ * (half of them RPC methods).<br>
+ * <br>
+ * Usage: <code>ant benchmark -Dbenchmark=com.teletalk.jserver.statistics.messaging.MessagingStatisticsBenchmark [-Dbenchmark.args="[max threads] [seconds per run]"]</code>.
+ * 
+ * @author Tobias Lfstrand
+ * 
+ * @since 2.2.1
+ */
+public class MessagingStatisticsBenchmark extends ThroughputBenchmark
+{
+   public static final int DESTINATIONS = 16;
+   
+   public static final int MESSAGE_TYPES = 8;
+   
+   /**
+    * The previous implementation of the request-response statistics update in MessagingStatisticsSource.
+    */
+   private static final class LegacyStatistics
+   {
+      private final AverageMaxStatisticsSource topStatisticsSource = new AverageMaxStatisticsSource(true, "avg time", "max time");
+      
+      public void update(final Destination destination, final MessageHeader header, final long value)
+      {
+         final int headerType = header.getHeaderType();
+         String destinationName = destination.getName();
+         String messageType = "";
+         if( header.getResponseToId() != MessageHeader.UNDEFINED ) messageType = "Response ";
+         
+         if( headerType == MessageHeader.RPC_HEADER )
+         {
+            if( header.getMessageType() == MessagingRpcInterface.RPC_MESSAGE_TYPE_ID ) messageType += "RPC - " + RemoteProcedureCall.getRPCMethodName(header);
+            else messageType += "RPC (" + header.getMessageType() + ") - " + RemoteProcedureCall.getRPCMethodName(header);
+         }
+         else messageType += "Msg type " + header.getMessageType();
+         
+         AverageMaxStatisticsSource destinationStatistics = null;
+         AverageMaxStatisticsSource messageTypeStatistics = null;
+         
+         synchronized(topStatisticsSource)
+         {
+            topStatisticsSource.update(value);
+            
+            destinationStatistics = (AverageMaxStatisticsSource)topStatisticsSource.getStatisticsSource(destinationName);
+            if( destinationStatistics == null )
+            {
+               destinationStatistics = new AverageMaxStatisticsSource(true, topStatisticsSource.getAverageEntryName(), topStatisticsSource.getMaxEntryName());
+               topStatisticsSource.addSource(destinationName, destinationStatistics);
+            }
+         }
+         
+         synchronized(destinationStatistics)
+         {
+            destinationStatistics.update(value);
+            
+            messageTypeStatistics = (AverageMaxStatisticsSource)destinationStatistics.getStatisticsSource(messageType);
+            if( messageTypeStatistics == null )
+            {
+               messageTypeStatistics = new AverageMaxStatisticsSource(false, topStatisticsSource.getAverageEntryName(), topStatisticsSource.getMaxEntryName());
+               destinationStatistics.addSource(messageType, messageTypeStatistics);
+            }
+         }
+         
+         messageTypeStatistics.update(value);
+      }
+   }
+   
+   /**
+    * Operation updating the statistics of a MessagingStatisticsSource.
+    */
+   private static final class HistogramStatisticsOperation implements Operation
+   {
+      private final MessagingStatisticsSource source = new MessagingStatisticsSource();
+      
+      public void execute(final int iteration)
+      {
+         final int seed = (iteration * 1103515245) + 12345;
+         this.source.updateRequestResponseStatistics(destinations[(seed >>> 8) % destinations.length], headers[(seed >>> 16) % headers.length], (seed >>> 20) & 0x3FF);
+      }
+   }
+   
+   
+   private static final Destination[] destinations = new Destination[DESTINATIONS];
+   
+   private static final MessageHeader[] headers = new MessageHeader[MESSAGE_TYPES];
+   
+   static
+   {
+      for(int i=0; i<DESTINATIONS; i++) destinations[i] = new Destination(new TcpEndPointIdentifier("127.0.0.1", 20000 + i));
+      
+      for(int i=0; i<MESSAGE_TYPES; i++)
+      {
+         headers[i] = new MessageHeader(i);
+         if( (i % 2) == 1 )
+         {
+            headers[i].setHeaderType(MessageHeader.RPC_HEADER);
+            headers[i].setMessageType(MessagingRpcInterface.RPC_MESSAGE_TYPE_ID);
+            headers[i].setCustomHeaderField(MessagingRpcInterface.RPC_METHOD_NAME, "method" + i);
+         }
+      }
+   }
+   
+   
+   public MessagingStatisticsBenchmark()
+   {
+      super(new String[]{"legacy", "MessagingStatisticsSource"});
+   }
+   
+   protected Operation createOperation(final int variant)
+   {
+      if( variant == 0 )
+      {
+         final LegacyStatistics legacyStatistics = new LegacyStatistics();
+         return new Operation()
+            {
+               public void execute(final int iteration)
+               {
+                  final int seed = (iteration * 1103515245) + 12345;
+                  legacyStatistics.update(destinations[(seed >>> 8) % destinations.length], headers[(seed >>> 16) % headers.length], (seed >>> 20) & 0x3FF);
+               }
+            };
+      }
+      else return new HistogramStatisticsOperation();
+   }
+   
+   protected void lastRunCompleted(final int variant, final Operation operation)
+   {
+      if( operation instanceof HistogramStatisticsOperation )
+      {
+         final HistogramStatisticsSource requestResponse = (HistogramStatisticsSource)((HistogramStatisticsOperation)operation).source.getRequestResponseStatistics();
+         System.out.println("Recorded values (last run): " + requestResponse.getCount() + ", p50: " + requestResponse.getValueAtPercentile(50) + 
+               ", p99: " + requestResponse.getValueAtPercentile(99) + ", p99.9: " + requestResponse.getValueAtPercentile(99.9));
+      }
+   }
+   
+   public static void main(String[] args) throws Exception
+   {
+      new MessagingStatisticsBenchmark().run(args);
+   }
+}
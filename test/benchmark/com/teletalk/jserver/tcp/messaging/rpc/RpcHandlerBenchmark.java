@@ -0,0 +1,128 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.tcp.messaging.rpc;
+
+import java.lang.reflect.Method;
+
+import com.teletalk.jserver.ThroughputBenchmark;
+import com.teletalk.jserver.util.ReflectionUtils;
+
+/**
+ * Benchmark comparing the throughput of RPC method dispatch in {@link RpcHandler} (using cached method dispatch tables) with that of 
+ * the previous implementation, which searched the public methods of the handler class using {@link ReflectionUtils} on every call 
+ * (twice for calls with <code>null</code> parameters and three times for methods taking the parameters as an array). Each operation 
+ * is a call to one of the methods of {@link BenchmarkHandler}, with a mix of parameter signatures.<br>
+ * <br>
+ * Usage: <code>ant benchmark -Dbenchmark=com.teletalk.jserver.tcp.messaging.rpc.RpcHandlerBenchmark [-Dbenchmark.args="[max threads] [seconds per run]"]</code>.
+ * 
+ * @author Tobias Lfstrand
+ * 
+ * @since 2.2.1
+ */
+public class RpcHandlerBenchmark extends ThroughputBenchmark
+{
+   public static class BenchmarkHandler
+   {
+      public String getName(Integer id) { return "name" + id; }
+      public String getName(String key) { return key; }
+      public int add(int a, int b) { return a + b; }
+      public long add(long a, long b) { return a + b; }
+      public boolean isValid(String value) { return value != null; }
+      public int count(Object[] params) { return params.length; }
+      public void update(String key, Object value) {}
+      public void remove(String key) {}
+      public Object lookup(String key, Integer defaultValue) { return defaultValue; }
+      public String describe(String a, String b, String c) { return a; }
+   }
+   
+   private static final String[] METHOD_NAMES = {"handler.getName", "handler.getName", "handler.add", "handler.isValid", "handler.count", 
+                                                 "handler.update", "handler.remove", "handler.lookup", "handler.describe", "handler.update"};
+   
+   private static final Object[][] PARAMS = {
+      new Object[]{new Integer(1)}, 
+      new Object[]{"key"}, 
+      new Object[]{new Integer(1), new Integer(2)}, 
+      new Object[]{null}, 
+      new Object[]{"a", "b", "c"}, 
+      new Object[]{"key", "value"}, 
+      new Object[]{"key"}, 
+      new Object[]{"key", new Integer(1)}, 
+      new Object[]{"a", "b", "c"},
+      new Object[]{"key", null}};
+   
+   /**
+    * The previous RpcHandler method resolution.
+    */
+   private static final class LegacyRpcHandler extends RpcHandler
+   {
+      protected Object executeMethodCall(String methodName, final Object[] params) throws Exception
+      {
+         Object handler = null;
+         Object[] methodParams = params;
+         
+         int dotIndex = methodName.lastIndexOf('.');
+         if(dotIndex > 0)
+         {
+            String handlerName = methodName.substring(0, dotIndex);
+            methodName = methodName.substring(dotIndex + 1);
+            
+            handler = this.getHandler(handlerName);
+         }
+         
+         if( handler == null ) handler = this.getDefaultHandler();
+         
+         Method method = ReflectionUtils.findMethod(handler.getClass(), methodName, methodParams, false);
+         if( method == null )
+         {
+            method = ReflectionUtils.findMethod(handler.getClass(), methodName, methodParams, false, true);
+         }
+         if( method == null )
+         {
+            methodParams = new Object[]{methodParams};
+            method = ReflectionUtils.findMethod(handler.getClass(), methodName, methodParams, false);
+         }
+         if( method == null ) throw new RpcException(RpcException.METHOD_NOT_FOUND, "Method '" + methodName + "' not found!");
+         
+         return method.invoke(handler, methodParams);
+      }
+   }
+   
+   
+   public RpcHandlerBenchmark()
+   {
+      super(new String[]{"legacy", "RpcHandler"});
+   }
+   
+   protected Operation createOperation(final int variant)
+   {
+      final RpcHandler rpcHandler = (variant == 0) ? new LegacyRpcHandler() : new RpcHandler();
+      rpcHandler.addHandler("handler", new BenchmarkHandler());
+      
+      return new Operation()
+         {
+            public void execute(final int iteration) throws Exception
+            {
+               final int index = (iteration & 0x7FFFFFFF) % METHOD_NAMES.length;
+               rpcHandler.executeMethodCall(METHOD_NAMES[index], PARAMS[index]);
+            }
+         };
+   }
+   
+   public static void main(String[] args) throws Exception
+   {
+      new RpcHandlerBenchmark().run(args);
+   }
+}
@@ -21,11 +21,22 @@ import junit.framework.TestSuite;
 import com.teletalk.jserver.messaging.MessagingManagerTest;
 import com.teletalk.jserver.periodic.PeriodicActionManagerTest;
 import com.teletalk.jserver.pool.ObjectPoolTest;
+import com.teletalk.jserver.queue.FileDBQueueStorageTest;
 import com.teletalk.jserver.queue.QueueManagerTest;
 import com.teletalk.jserver.queue.QueueTest;
+import com.teletalk.jserver.queue.SegmentedLogQueueStorageTest;
+import com.teletalk.jserver.queue.messaging.RemoteQueueSystemDestinationTest;
+import com.teletalk.jserver.statistics.HistogramTest;
+import com.teletalk.jserver.statistics.StatisticsManagerTest;
+import com.teletalk.jserver.tcp.NioSocketTest;
 import com.teletalk.jserver.tcp.TcpEndPointIdentifierTest;
+import com.teletalk.jserver.tcp.messaging.FlowControlStateTest;
+import com.teletalk.jserver.tcp.messaging.PendingResponseRegistryTest;
+import com.teletalk.jserver.tcp.messaging.codec.BinaryBodyCodecTest;
+import com.teletalk.jserver.tcp.messaging.rpc.RpcHandlerTest;
 import com.teletalk.jserver.util.MessageQueueTest;
 import com.teletalk.jserver.util.PriorityMessageQueueTest;
+import com.teletalk.jserver.util.TimerWheelTest;
 import com.teletalk.jserver.util.filedb.LowLevelFileDBTest;
 import com.teletalk.jserver.util.validation.EmailAddressValidatorTest;
 import com.teletalk.jserver.util.validation.PhoneNumberValidatorTest;
@@ -62,11 +73,23 @@ public class AllTests
       
       suite.addTestSuite(QueueTest.class);
       suite.addTestSuite(QueueManagerTest.class);
+      suite.addTestSuite(SegmentedLogQueueStorageTest.class);
+      suite.addTestSuite(FileDBQueueStorageTest.class);
+      suite.addTestSuite(RemoteQueueSystemDestinationTest.class);
+      
+      suite.addTestSuite(StatisticsManagerTest.class);
+      suite.addTestSuite(HistogramTest.class);
       
       suite.addTestSuite(TcpEndPointIdentifierTest.class);
+      suite.addTestSuite(NioSocketTest.class);
+      suite.addTestSuite(PendingResponseRegistryTest.class);
+      suite.addTestSuite(FlowControlStateTest.class);
+      suite.addTestSuite(BinaryBodyCodecTest.class);
+      suite.addTestSuite(RpcHandlerTest.class);
       
       suite.addTestSuite(MessageQueueTest.class);
       suite.addTestSuite(PriorityMessageQueueTest.class);
+      suite.addTestSuite(TimerWheelTest.class);
       
       suite.addTestSuite(LowLevelFileDBTest.class);
       
@@ -27,6 +27,13 @@ public class DefaultEndPointSelectionStrategyTest
    /**
     */
    public static boolean testDefaultEndPointSelectionStrategy()
+   {
+      return testEndPointSelectionStrategy(MessagingManagerTest.messagingManagerS1.getEndPointSelectionStrategy());
+   }
+   
+   /**
+    */
+   public static boolean testEndPointSelectionStrategy(final EndPointSelectionStrategy endPointSelectionStrategy)
    {
       EndpointGetterThread endpointGetterThreads[] = new EndpointGetterThread[10];
       
@@ -42,7 +49,7 @@ public class DefaultEndPointSelectionStrategyTest
             for(int i=0; i<endpointGetterThreads.length; i++)
             {
                //endpointGetterThreads[i] = new EndpointGetterThread(i, counter, MessagingManagerTest.messagingManagerS1.getEndPointSelectionStrategy());
-               endpointGetterThreads[i] = new EndpointGetterThread(i, MessagingManagerTest.messagingManagerS1.getEndPointSelectionStrategy());
+               endpointGetterThreads[i] = new EndpointGetterThread(i, endPointSelectionStrategy);
                endpointGetterThreads[i].setDaemon(true);
                //counter++;
             }
@@ -15,6 +15,14 @@
  */
 package com.teletalk.jserver.messaging;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
 import junit.framework.TestCase;
 
 import org.apache.commons.logging.Log;
@@ -22,13 +30,37 @@ import org.apache.commons.logging.LogFactory;
 
 import com.teletalk.jserver.JServer;
 import com.teletalk.jserver.TestUtils;
+import com.teletalk.jserver.statistics.StatisticsManager;
+import com.teletalk.jserver.statistics.StatisticsSource;
+import com.teletalk.jserver.statistics.messaging.MessagingStatisticsSource;
+import com.teletalk.jserver.tcp.NioServerSocketFactory;
+import com.teletalk.jserver.tcp.NioSocket;
+import com.teletalk.jserver.tcp.NioSocketFactory;
 import com.teletalk.jserver.tcp.TcpEndPointIdentifier;
+import com.teletalk.jserver.tcp.messaging.BroadcastResult;
+import com.teletalk.jserver.tcp.messaging.Destination;
+import com.teletalk.jserver.tcp.messaging.IndexedEndPointSelectionStrategy;
+import com.teletalk.jserver.tcp.messaging.LatencyAwareEndPointSelectionStrategy;
 import com.teletalk.jserver.tcp.messaging.Message;
+import com.teletalk.jserver.tcp.messaging.MessageDispatchFailedException;
+import com.teletalk.jserver.tcp.messaging.MessageDispatcher;
+import com.teletalk.jserver.tcp.messaging.MessageDispatcherProperties;
 import com.teletalk.jserver.tcp.messaging.MessageHeader;
 import com.teletalk.jserver.tcp.messaging.MessageReceiver;
+import com.teletalk.jserver.tcp.messaging.MessagingEndPoint;
+import com.teletalk.jserver.tcp.messaging.MessagingException;
 import com.teletalk.jserver.tcp.messaging.MessagingManager;
+import com.teletalk.jserver.tcp.messaging.PriorityEndPointSelectionStrategy;
+import com.teletalk.jserver.tcp.messaging.ResponseFuture;
+import com.teletalk.jserver.tcp.messaging.ResponseListener;
+import com.teletalk.jserver.tcp.messaging.ResponseTimeOutException;
+import com.teletalk.jserver.tcp.messaging.codec.BinaryBodyCodec;
+import com.teletalk.jserver.tcp.messaging.rpc.MessagingRpcInterface;
+import com.teletalk.jserver.tcp.messaging.rpc.RemoteProcedureCall;
+import com.teletalk.jserver.tcp.messaging.rpc.RpcHandler;
 import com.teletalk.jserver.util.Future;
 import com.teletalk.jserver.util.MessageQueueTest;
+import com.teletalk.jserver.util.SpillOverByteArrayOutputStream;
 
 /**
  * 
@@ -39,7 +71,7 @@ public class MessagingManagerTest extends TestCase
    private static final Log logger = LogFactory.getLog(MessagingManagerTest.class);
    
    
-   private static final int NO_OF_TESTS = 5;
+   private static final int NO_OF_TESTS = 21;
    
    private static int testCount = 0;
    
@@ -51,6 +83,12 @@ public class MessagingManagerTest extends TestCase
    private static final String RECEIVER_NAME = "receiver";
    
    private static final String PROXIED_RECEIVER_NAME = "proxied";
+   
+   private static final String ECHO_HEADER_FIELD = "echo";
+   
+   private static final String NO_RESPONSE_HEADER_FIELD = "noResponse";
+   
+   private static final String TYPED_RPC_HANDLER_NAME = "typedRpcTestHandler";
 
    
    public static MessagingManager messagingManagerS1;
@@ -61,6 +99,26 @@ public class MessagingManagerTest extends TestCase
    
    private static MessagingManager messagingManagerR3;
    
+   private static MessagingManager messagingManagerR4;
+   
+   private static MessagingManager messagingManagerS2;
+   
+   private static MessagingManager messagingManagerR5;
+   
+   private static MessagingManager messagingManagerS3;
+   
+   private static MessagingManager messagingManagerR6;
+   
+   private static MessagingManager messagingManagerS4;
+   
+   private static FlowControlTestReceiver flowControlTestReceiver;
+   
+   private static PriorityTestReceiver priorityTestReceiver;
+   
+   private static InternalMessageReceiver internalMessageReceiver1;
+   
+   private static InternalMessageReceiver internalMessageReceiver2;
+   
    
    private static int failCount = 0;
    
@@ -112,7 +170,7 @@ public class MessagingManagerTest extends TestCase
          logger.info("QueueManagerTest.setUp() - JServer name:  " + JServer.getJServer().getName());
                   
          messagingManagerR1 = new MessagingManager(server, "MessagingManagerR1");
-         InternalMessageReceiver internalMessageReceiver1 = new InternalMessageReceiver(messagingManagerR1);
+         internalMessageReceiver1 = new InternalMessageReceiver(messagingManagerR1);
          messagingManagerR1.setDefaultMessageReceiver(internalMessageReceiver1);
          messagingManagerR1.registerMessageReceiver(internalMessageReceiver1, RECEIVER_NAME);
          messagingManagerR1.addServerAddress("localhost", 11231);
@@ -120,7 +178,7 @@ public class MessagingManagerTest extends TestCase
          server.addSubSystem(messagingManagerR1);
          
          messagingManagerR2 = new MessagingManager(server, "MessagingManagerR2");
-         InternalMessageReceiver internalMessageReceiver2 = new InternalMessageReceiver(messagingManagerR2);
+         internalMessageReceiver2 = new InternalMessageReceiver(messagingManagerR2);
          messagingManagerR2.setDefaultMessageReceiver(internalMessageReceiver2);
          messagingManagerR2.registerMessageReceiver(internalMessageReceiver2, RECEIVER_NAME);
          messagingManagerR2.addServerAddress("localhost", 11232);
@@ -144,12 +202,74 @@ public class MessagingManagerTest extends TestCase
          //messagingManagerS1.setLogLevel(Level.DEBUG);
          server.addSubSystem(messagingManagerS1);
          
+         messagingManagerR4 = new MessagingManager(server, "MessagingManagerR4");
+         flowControlTestReceiver = new FlowControlTestReceiver();
+         messagingManagerR4.setDefaultMessageReceiver(flowControlTestReceiver);
+         messagingManagerR4.addServerAddress("localhost", 11234);
+         messagingManagerR4.setFlowControlWindow(4);
+         server.addSubSystem(messagingManagerR4);
+         
+         messagingManagerS2 = new MessagingManager(server, "MessagingManagerS2");
+         messagingManagerS2.addDestination("localhost", 11234); // MessagingManagerR4
+         messagingManagerS2.setStatisticsEnabled(true);
+         server.addSubSystem(messagingManagerS2);
+         
+         messagingManagerR5 = new MessagingManager(server, "MessagingManagerR5");
+         priorityTestReceiver = new PriorityTestReceiver();
+         messagingManagerR5.setDefaultMessageReceiver(priorityTestReceiver);
+         messagingManagerR5.addServerAddress("localhost", 11235);
+         messagingManagerR5.setMessageHandlerPoolSize(1);
+         messagingManagerR5.setUseFixedMessageHandlerPoolSize(true);
+         server.addSubSystem(messagingManagerR5);
+         
+         messagingManagerS3 = new MessagingManager(server, "MessagingManagerS3");
+         messagingManagerS3.addDestination("localhost", 11235); // MessagingManagerR5
+         messagingManagerS3.setConnectionsPerDestination(5);
+         messagingManagerS3.setCheckInteval(1000);
+         messagingManagerS3.setHeartbeatSchedulingEnabled(true);
+         messagingManagerS3.setReconnectDelay(500);
+         server.addSubSystem(messagingManagerS3);
+         
+         messagingManagerR6 = new MessagingManager(server, "MessagingManagerR6");
+         final InternalMessageReceiver internalMessageReceiver6 = new InternalMessageReceiver(messagingManagerR6);
+         messagingManagerR6.setDefaultMessageReceiver(internalMessageReceiver6);
+         messagingManagerR6.registerMessageReceiver(internalMessageReceiver6, RECEIVER_NAME);
+         messagingManagerR6.addServerAddress("localhost", 11236);
+         assertTrue(messagingManagerR6.getProperty("serverSocketFactoryClass").setValueAsString(NioServerSocketFactory.class.getName()));
+         server.addSubSystem(messagingManagerR6);
+         
+         messagingManagerS4 = new MessagingManager(server, "MessagingManagerS4");
+         messagingManagerS4.setDefaultMessageReceiver(new AsynchResponseReciver());
+         messagingManagerS4.addDestination("localhost", 11236); // MessagingManagerR6
+         messagingManagerS4.setConnectionsPerDestination(2);
+         messagingManagerS4.setReconnectDelay(100);
+         assertTrue(messagingManagerS4.getProperty("socketFactoryClass").setValueAsString(NioSocketFactory.class.getName()));
+         server.addSubSystem(messagingManagerS4);
+         
          server.startJServer();
          
          messagingManagerS1.waitForEnabled(10000);
          messagingManagerR1.waitForEnabled(10000);
          messagingManagerR2.waitForEnabled(10000);
          messagingManagerR3.waitForEnabled(10000);
+         messagingManagerR4.waitForEnabled(10000);
+         messagingManagerS2.waitForEnabled(10000);
+         messagingManagerR5.waitForEnabled(10000);
+         messagingManagerS3.waitForEnabled(10000);
+         messagingManagerR6.waitForEnabled(10000);
+         messagingManagerS4.waitForEnabled(10000);
+         
+         // Wait for client side links to be established, so that the outcome of the tests doesn't depend on the order in which they are run
+         Destination[] destinations = messagingManagerS1.getDestinations();
+         for(int i=0; i<destinations.length; i++) destinations[i].waitForLinkEstablished(10000);
+         destinations = messagingManagerR3.getDestinations();
+         for(int i=0; i<destinations.length; i++) destinations[i].waitForLinkEstablished(10000);
+         destinations = messagingManagerS2.getDestinations();
+         for(int i=0; i<destinations.length; i++) destinations[i].waitForLinkEstablished(10000);
+         destinations = messagingManagerS3.getDestinations();
+         for(int i=0; i<destinations.length; i++) destinations[i].waitForLinkEstablished(10000);
+         destinations = messagingManagerS4.getDestinations();
+         for(int i=0; i<destinations.length; i++) destinations[i].waitForLinkEstablished(10000);
          
          logger.info("MessagingManagerTest.setUp() - " + TestUtils.TEST_SERVER_NAME + " started!");
       }      
@@ -216,6 +336,750 @@ public class MessagingManagerTest extends TestCase
       logger.info("END dispatchConcurrentAsynch.");
    }
    
+   /**
+    * Test case dispatchMultiplexed.
+    */
+   public void testDispatchMultiplexed()
+   {
+      logger.info("BEGIN testDispatchMultiplexed.");
+      
+      testCount++;
+      resetFailCount();
+      
+      messagingManagerS1.setEndPointMultiplexingEnabled(true);
+      try
+      {
+         server.logInfo("Starting test testDispatchMultiplexed(1/2)!");
+         dispatchConcurrentInternal(true, false, null, 10, 20);
+         server.logInfo("Test testDispatchMultiplexed(1/2) complete!");
+         
+         server.logInfo("Starting test testDispatchMultiplexed(2/2)!");
+         dispatchConcurrentInternal(false, false, RECEIVER_NAME, 10, 20);
+         server.logInfo("Test testDispatchMultiplexed(2/2) complete!");
+      }
+      finally
+      {
+         messagingManagerS1.setEndPointMultiplexingEnabled(false);
+      }
+      
+      logger.info("END testDispatchMultiplexed.");
+   }
+   
+   /**
+    * Test case dispatchBufferedBodies.
+    */
+   public void testDispatchBufferedBodies()
+   {
+      logger.info("BEGIN testDispatchBufferedBodies.");
+      
+      testCount++;
+      resetFailCount();
+      
+      messagingManagerS1.setBodyBufferingLimit(1024);
+      messagingManagerR1.setBodyBufferingLimit(1024);
+      messagingManagerR1.setBodyBufferingSpillOverLimit(1); // Force spill over to disk
+      messagingManagerR2.setBodyBufferingLimit(1024);
+      try
+      {
+         server.logInfo("Starting test testDispatchBufferedBodies(1/2)!");
+         dispatchConcurrentInternal(true, false, null);
+         server.logInfo("Test testDispatchBufferedBodies(1/2) complete!");
+         
+         server.logInfo("Starting test testDispatchBufferedBodies(2/2)!");
+         dispatchConcurrentInternal(false, false, RECEIVER_NAME);
+         server.logInfo("Test testDispatchBufferedBodies(2/2) complete!");
+      }
+      finally
+      {
+         messagingManagerS1.setBodyBufferingLimit(0);
+         messagingManagerR1.setBodyBufferingLimit(0);
+         messagingManagerR1.setBodyBufferingSpillOverLimit(SpillOverByteArrayOutputStream.DEFAULT_SPILL_OVER_LIMIT);
+         messagingManagerR2.setBodyBufferingLimit(0);
+      }
+      
+      logger.info("END testDispatchBufferedBodies.");
+   }
+   
+   /**
+    * Test case dispatchCoalesced.
+    */
+   public void testDispatchCoalesced() throws Exception
+   {
+      logger.info("BEGIN testDispatchCoalesced.");
+      
+      testCount++;
+      resetFailCount();
+      
+      messagingManagerS1.setWriteCoalescingWindow(5);
+      messagingManagerR1.setWriteCoalescingWindow(5);
+      messagingManagerR2.setWriteCoalescingWindow(5);
+      messagingManagerS1.setReconnectDelay(100);
+      try
+      {
+         // Write coalescing only applies to new connections, so reconnect all endpoints of MessagingManagerS1
+         final Destination[] destinations = messagingManagerS1.getDestinations();
+         List endPoints;
+         for(int i=0; i<destinations.length; i++)
+         {
+            endPoints = destinations[i].getEndPoints();
+            for(int q=0; q<endPoints.size(); q++) messagingManagerS1.disconnectEndPoint((MessagingEndPoint)endPoints.get(q));
+         }
+         for(int i=0; i<destinations.length; i++) waitForEndPoints(destinations[i], 2);
+         
+         server.logInfo("Starting test testDispatchCoalesced(1/2)!");
+         dispatchConcurrentInternal(true, true, null);
+         server.logInfo("Test testDispatchCoalesced(1/2) complete!");
+         
+         server.logInfo("Starting test testDispatchCoalesced(2/2)!");
+         dispatchConcurrentInternal(false, false, RECEIVER_NAME);
+         server.logInfo("Test testDispatchCoalesced(2/2) complete!");
+      }
+      finally
+      {
+         messagingManagerS1.setWriteCoalescingWindow(0);
+         messagingManagerR1.setWriteCoalescingWindow(0);
+         messagingManagerR2.setWriteCoalescingWindow(0);
+         messagingManagerS1.setReconnectDelay(0);
+      }
+      
+      logger.info("END testDispatchCoalesced.");
+   }
+   
+   /**
+    * Test case dispatchWithBodyCodec.
+    */
+   public void testDispatchWithBodyCodec() throws Exception
+   {
+      logger.info("BEGIN testDispatchWithBodyCodec.");
+      
+      testCount++;
+      resetFailCount();
+      
+      final String[] codecs = new String[]{BinaryBodyCodec.class.getName()};
+      messagingManagerS1.setBodyCodecs(codecs);
+      messagingManagerR1.setBodyCodecs(codecs);
+      messagingManagerR2.setBodyCodecs(codecs);
+      try
+      {
+         // Wait for the codec to be negotiated through meta data updates
+         Destination[] destinations = messagingManagerS1.getDestinations();
+         for(int i=0; i<destinations.length; i++)
+         {
+            for(int w=0; (w<100) && (destinations[i].getBodyCodec() == null); w++) Thread.sleep(50);
+            assertNotNull("Body codec not negotiated for " + destinations[i], destinations[i].getBodyCodec());
+         }
+         
+         server.logInfo("Starting test testDispatchWithBodyCodec(1/2)!");
+         dispatchConcurrentInternal(true, false, null);
+         server.logInfo("Test testDispatchWithBodyCodec(1/2) complete!");
+         
+         server.logInfo("Starting test testDispatchWithBodyCodec(2/2)!");
+         dispatchConcurrentInternal(false, true, RECEIVER_NAME);
+         server.logInfo("Test testDispatchWithBodyCodec(2/2) complete!");
+      }
+      finally
+      {
+         messagingManagerS1.setBodyCodecs(new String[0]);
+         messagingManagerR1.setBodyCodecs(new String[0]);
+         messagingManagerR2.setBodyCodecs(new String[0]);
+      }
+      
+      logger.info("END testDispatchWithBodyCodec.");
+   }
+   
+   /**
+    * Test case dispatchWithBodyCompression.
+    */
+   public void testDispatchWithBodyCompression() throws Exception
+   {
+      logger.info("BEGIN testDispatchWithBodyCompression.");
+      
+      testCount++;
+      resetFailCount();
+      
+      messagingManagerS1.setBodyCompressionThreshold(0);
+      messagingManagerR1.setBodyCompressionThreshold(0);
+      messagingManagerR2.setBodyCompressionThreshold(0);
+      try
+      {
+         Destination[] destinations = messagingManagerS1.getDestinations();
+         for(int i=0; i<destinations.length; i++)
+         {
+            assertTrue("Body compression not supported by " + destinations[i], destinations[i].isBodyCompressionSupported());
+         }
+         
+         server.logInfo("Starting test testDispatchWithBodyCompression(1/3)!");
+         dispatchConcurrentInternal(true, false, null);
+         server.logInfo("Test testDispatchWithBodyCompression(1/3) complete!");
+         
+         server.logInfo("Starting test testDispatchWithBodyCompression(2/3)!");
+         dispatchEchoInternal(messagingManagerS1, 11231, 1000, true);
+         dispatchEchoInternal(messagingManagerS1, 11231, 100000, true);
+         server.logInfo("Test testDispatchWithBodyCompression(2/3) complete!");
+         
+         server.logInfo("Starting test testDispatchWithBodyCompression(3/3)!");
+         messagingManagerS1.setBodyBufferingLimit(1024*1024);
+         messagingManagerR1.setBodyBufferingLimit(1024*1024);
+         dispatchEchoInternal(messagingManagerS1, 11231, 100000, true);
+         dispatchConcurrentInternal(false, false, RECEIVER_NAME);
+         server.logInfo("Test testDispatchWithBodyCompression(3/3) complete!");
+      }
+      finally
+      {
+         messagingManagerS1.setBodyCompressionThreshold(-1);
+         messagingManagerR1.setBodyCompressionThreshold(-1);
+         messagingManagerR2.setBodyCompressionThreshold(-1);
+         messagingManagerS1.setBodyBufferingLimit(0);
+         messagingManagerR1.setBodyBufferingLimit(0);
+      }
+      
+      logger.info("END testDispatchWithBodyCompression.");
+   }
+   
+   /**
+    * Test case dispatchNio, which dispatches messages through endpoints that are driven by the I/O threads of a NioTransport.
+    */
+   public void testDispatchNio() throws Exception
+   {
+      logger.info("BEGIN testDispatchNio.");
+      
+      testCount++;
+      resetFailCount();
+      
+      final Destination destination = messagingManagerS4.getDestinations()[0];
+      waitForEndPoints(destination, 2);
+      List endPoints = destination.getEndPoints();
+      MessagingEndPoint endPoint;
+      for(int i=0; i<endPoints.size(); i++)
+      {
+         endPoint = (MessagingEndPoint)endPoints.get(i);
+         assertTrue("Not a NioSocket: " + endPoint.getSocket(), endPoint.getSocket() instanceof NioSocket);
+         assertTrue("Endpoint not detached from its thread: " + endPoint, endPoint.isDetachedFromThread());
+      }
+      
+      try
+      {
+         server.logInfo("Starting test testDispatchNio(1/3)!");
+         dispatchEchoInternal(messagingManagerS4, 11236, 0, false);
+         dispatchEchoInternal(messagingManagerS4, 11236, 1000, false);
+         dispatchEchoInternal(messagingManagerS4, 11236, 1000000, false);
+         server.logInfo("Test testDispatchNio(1/3) complete!");
+         
+         server.logInfo("Starting test testDispatchNio(2/3)!");
+         messagingManagerS4.setBodyCompressionThreshold(0);
+         messagingManagerR6.setBodyCompressionThreshold(0);
+         assertTrue("Body compression not supported by " + destination, destination.isBodyCompressionSupported());
+         dispatchEchoInternal(messagingManagerS4, 11236, 1000, true);
+         dispatchEchoInternal(messagingManagerS4, 11236, 100000, true);
+         server.logInfo("Test testDispatchNio(2/3) complete!");
+         
+         server.logInfo("Starting test testDispatchNio(3/3)!");
+         messagingManagerS4.setBodyBufferingSpillOverLimit(1); // Force spill over to disk
+         messagingManagerR6.setBodyBufferingSpillOverLimit(1);
+         dispatchEchoInternal(messagingManagerS4, 11236, 100000, true);
+         messagingManagerS4.setBodyCompressionThreshold(-1);
+         messagingManagerR6.setBodyCompressionThreshold(-1);
+         dispatchEchoInternal(messagingManagerS4, 11236, 100000, false);
+         server.logInfo("Test testDispatchNio(3/3) complete!");
+      }
+      finally
+      {
+         messagingManagerS4.setBodyCompressionThreshold(-1);
+         messagingManagerR6.setBodyCompressionThreshold(-1);
+         messagingManagerS4.setBodyBufferingSpillOverLimit(SpillOverByteArrayOutputStream.DEFAULT_SPILL_OVER_LIMIT);
+         messagingManagerR6.setBodyBufferingSpillOverLimit(SpillOverByteArrayOutputStream.DEFAULT_SPILL_OVER_LIMIT);
+      }
+      
+      // Endpoints closed by the remote side must be detected by the I/O threads, cleaned up and recreated
+      final List oldEndPoints = destination.getEndPoints();
+      endPoints = messagingManagerR6.getDestinations()[0].getEndPoints();
+      for(int i=0; i<endPoints.size(); i++) messagingManagerR6.disconnectEndPoint((MessagingEndPoint)endPoints.get(i));
+      for(int i=0; i<oldEndPoints.size(); i++)
+      {
+         endPoint = (MessagingEndPoint)oldEndPoints.get(i);
+         for(int w=0; (w<200) && endPoint.isLinkEstablished(); w++) Thread.sleep(50);
+         assertFalse("Closed endpoint not cleaned up", endPoint.isLinkEstablished());
+      }
+      waitForEndPoints(destination, 2);
+      dispatchEchoInternal(messagingManagerS4, 11236, 1000, false);
+      
+      logger.info("END testDispatchNio.");
+   }
+   
+   /**
+    * Test case dispatchWithResponseFuture.
+    */
+   public void testDispatchWithResponseFuture() throws Exception
+   {
+      logger.info("BEGIN testDispatchWithResponseFuture.");
+      
+      testCount++;
+      
+      final int nRequests = 50;
+      final int[] listenerCounts = new int[2]; // [received, failed]
+      final ResponseListener listener = new ResponseListener()
+      {
+         public void responseReceived(ResponseFuture responseFuture, Message response)
+         {
+            synchronized(listenerCounts){ listenerCounts[0]++; }
+         }
+         public void responseFailed(ResponseFuture responseFuture, MessagingException error)
+         {
+            synchronized(listenerCounts){ listenerCounts[1]++; }
+         }
+      };
+      
+      // Fan out requests from a single thread
+      server.logInfo("Starting test testDispatchWithResponseFuture(1/2)!");
+      MessageDispatcher messageDispatcher = messagingManagerS1.getMessageDispatcher(new MessageDispatcherProperties());
+      ResponseFuture[] futures = new ResponseFuture[nRequests];
+      for(int i=0; i<nRequests; i++)
+      {
+         futures[i] = messageDispatcher.dispatchMessageWithFuture(new MessageHeader(i), "RequestBritt", listener);
+      }
+      for(int i=0; i<nRequests; i++)
+      {
+         assertEquals("ResponseBritt", futures[i].getResponse().getBodyAsObject());
+         assertTrue(futures[i].isDone());
+      }
+      waitForListenerCount(listenerCounts, 0, nRequests);
+      synchronized(listenerCounts)
+      {
+         assertEquals(nRequests, listenerCounts[0]);
+         assertEquals(0, listenerCounts[1]);
+      }
+      server.logInfo("Test testDispatchWithResponseFuture(1/2) complete!");
+      
+      // Timeout
+      server.logInfo("Starting test testDispatchWithResponseFuture(2/2)!");
+      messageDispatcher = messagingManagerS1.getMessageDispatcher(new MessageDispatcherProperties(RECEIVER_NAME, 500, false));
+      MessageHeader header = new MessageHeader();
+      header.setCustomHeaderField(NO_RESPONSE_HEADER_FIELD, Boolean.TRUE);
+      final long startTime = System.currentTimeMillis();
+      ResponseFuture future = messageDispatcher.dispatchMessageWithFuture(header, "RequestBritt", listener);
+      try
+      {
+         future.getResponse();
+         fail("Expected ResponseTimeOutException");
+      }
+      catch(ResponseTimeOutException e){}
+      assertTrue("Timeout occurred too early", (System.currentTimeMillis() - startTime) >= 450);
+      assertTrue(future.getError() instanceof ResponseTimeOutException);
+      waitForListenerCount(listenerCounts, 1, 1);
+      synchronized(listenerCounts)
+      {
+         assertEquals(1, listenerCounts[1]);
+      }
+      server.logInfo("Test testDispatchWithResponseFuture(2/2) complete!");
+      
+      logger.info("END testDispatchWithResponseFuture.");
+   }
+   
+   /**
+    * Test case dispatchTypedRpc.
+    */
+   public void testDispatchTypedRpc() throws Exception
+   {
+      logger.info("BEGIN testDispatchTypedRpc.");
+      
+      testCount++;
+      
+      final MessagingRpcInterface rpcInterface = new MessagingRpcInterface(new MessageDispatcher(messagingManagerS1, new MessageDispatcherProperties(RECEIVER_NAME)));
+      final TypedRpcTestService service = (TypedRpcTestService)rpcInterface.createTypedProxy(TypedRpcTestService.class, TYPED_RPC_HANDLER_NAME, true);
+      
+      // Make enough calls for the interface to be bound in both receiving messaging managers
+      for(int i=0; i<20; i++)
+      {
+         assertEquals(i + 42, service.add(i, 42));
+         assertEquals("echo" + i, service.echo("echo" + i));
+      }
+      assertNull(service.echo(null));
+      assertTrue("Array result mismatch", Arrays.equals(new long[]{3, 2, 1}, service.reverse(new long[]{1, 2, 3})));
+      assertEquals(3.0, service.scale(1.5, 2.0f), 0.0);
+      try
+      {
+         service.fail("failure");
+         fail("Expected IllegalStateException!");
+      }
+      catch(IllegalStateException ise)
+      {
+         assertTrue(ise.getMessage().indexOf("failure") >= 0);
+      }
+      server.logInfo("Test testDispatchTypedRpc(1/2) complete!");
+      
+      // Replace the handlers, which discards the interface bindings, and make sure the interface is bound again
+      internalMessageReceiver1.rpcHandler.addHandler(TYPED_RPC_HANDLER_NAME, new TypedRpcTestHandler());
+      internalMessageReceiver2.rpcHandler.addHandler(TYPED_RPC_HANDLER_NAME, new TypedRpcTestHandler());
+      for(int i=0; i<20; i++)
+      {
+         assertEquals(i - 1, service.add(i, -1));
+      }
+      server.logInfo("Test testDispatchTypedRpc(2/2) complete!");
+      
+      logger.info("END testDispatchTypedRpc.");
+   }
+   
+   /**
+    * Test case dispatchFlowControl.
+    */
+   public void testDispatchFlowControl() throws Exception
+   {
+      logger.info("BEGIN testDispatchFlowControl.");
+      
+      testCount++;
+      
+      final Destination destination = messagingManagerS2.getDestinations()[0];
+      assertTrue("Flow control not supported by " + destination, destination.isFlowControlSupported());
+      assertEquals(4, destination.getFlowControlWindow());
+      assertEquals(4, destination.getFlowControlCredits());
+      
+      try
+      {
+         // Fail fast when there are no credits left
+         server.logInfo("Starting test testDispatchFlowControl(1/3)!");
+         messagingManagerS2.setFlowControlPolicy(MessagingManager.FLOW_CONTROL_POLICY_FAIL_FAST);
+         flowControlTestReceiver.setOpen(false);
+         try
+         {
+            for(int i=0; i<4; i++) messagingManagerS2.dispatchMessageAsync(new MessageHeader(), "FlowControlBritt" + i);
+            assertEquals(0, destination.getFlowControlCredits());
+            try
+            {
+               messagingManagerS2.dispatchMessageAsync(new MessageHeader(), "FlowControlBritt");
+               fail("Expected MessageDispatchFailedException!");
+            }
+            catch(MessageDispatchFailedException mdfe){}
+         }
+         finally
+         {
+            flowControlTestReceiver.setOpen(true);
+         }
+         waitForFlowControl(destination, 4, 4);
+         assertEquals(4, flowControlTestReceiver.getReceivedCount());
+         assertEquals(4, destination.getFlowControlCredits());
+         server.logInfo("Test testDispatchFlowControl(1/3) complete!");
+         
+         // Block until the receiver has processed enough messages to grant new credits
+         server.logInfo("Starting test testDispatchFlowControl(2/3)!");
+         messagingManagerS2.setFlowControlPolicy(MessagingManager.FLOW_CONTROL_POLICY_BLOCK);
+         flowControlTestReceiver.setOpen(false);
+         for(int i=0; i<4; i++) messagingManagerS2.dispatchMessageAsync(new MessageHeader(), "FlowControlBritt" + i);
+         final Thread opener = new Thread()
+         {
+            public void run()
+            {
+               try{
+               Thread.sleep(500);
+               }catch(InterruptedException ie){}
+               flowControlTestReceiver.setOpen(true);
+            }
+         };
+         final long startTime = System.currentTimeMillis();
+         opener.start();
+         messagingManagerS2.dispatchMessageAsync(new MessageHeader(), "FlowControlBritt");
+         assertTrue("Dispatch didn't wait for credits", (System.currentTimeMillis() - startTime) >= 450);
+         opener.join();
+         waitForFlowControl(destination, 9, 1);
+         assertEquals(9, flowControlTestReceiver.getReceivedCount());
+         server.logInfo("Test testDispatchFlowControl(2/3) complete!");
+         
+         // Statistics
+         server.logInfo("Starting test testDispatchFlowControl(3/3)!");
+         final StatisticsSource statistics = StatisticsManager.getStatisticsManager().getStatisticsSource("Messaging statistics - MessagingManagerS2");
+         final StatisticsSource flowControlStatistics = statistics.getStatisticsSource(MessagingStatisticsSource.FLOW_CONTROL_SOURCE_NAME);
+         assertEquals(String.valueOf(destination.getFlowControlCredits()), flowControlStatistics.getStatisticsEntry(destination.getName()).getValue());
+         server.logInfo("Test testDispatchFlowControl(3/3) complete!");
+      }
+      finally
+      {
+         flowControlTestReceiver.setOpen(true);
+         messagingManagerS2.setFlowControlPolicy(MessagingManager.FLOW_CONTROL_POLICY_BLOCK);
+      }
+      
+      logger.info("END testDispatchFlowControl.");
+   }
+   
+   /**
+    * Test case dispatchWithPriority.
+    */
+   public void testDispatchWithPriority() throws Exception
+   {
+      logger.info("BEGIN testDispatchWithPriority.");
+      
+      testCount++;
+      
+      final Destination destination = messagingManagerS3.getDestinations()[0];
+      waitForEndPoints(destination, 5);
+      
+      try
+      {
+         // High priority messages are processed first when the message handler threads are busy
+         server.logInfo("Starting test testDispatchWithPriority(1/2)!");
+         priorityTestReceiver.setOpen(false);
+         try
+         {
+            final MessageDispatcherProperties normalProperties = new MessageDispatcherProperties(destination, null, -1, true);
+            final MessageDispatcherProperties highProperties = new MessageDispatcherProperties(normalProperties);
+            highProperties.setPriority(MessageHeader.PRIORITY_HIGH);
+            final MessageDispatcher normalDispatcher = messagingManagerS3.getMessageDispatcher(normalProperties);
+            
+            normalDispatcher.dispatchMessage("First");
+            priorityTestReceiver.waitForEntered(5000);
+            normalDispatcher.dispatchMessage("Normal1");
+            Thread.sleep(200);
+            normalDispatcher.dispatchMessage("Normal2");
+            Thread.sleep(200);
+            messagingManagerS3.getMessageDispatcher(highProperties).dispatchMessage("High");
+            Thread.sleep(200);
+         }
+         finally
+         {
+            priorityTestReceiver.setOpen(true);
+         }
+         
+         final List received = priorityTestReceiver.waitForReceived(4, 5000);
+         assertEquals(Arrays.asList(new Object[]{"First", "High", "Normal1", "Normal2"}), received);
+         assertEquals(MessageHeader.PRIORITY_HIGH, priorityTestReceiver.getHighPriority());
+         server.logInfo("Test testDispatchWithPriority(1/2) complete!");
+         
+         // Endpoints reserved for high priority messages
+         server.logInfo("Starting test testDispatchWithPriority(2/2)!");
+         messagingManagerS3.setReservedPriorityEndPoints(2);
+         final PriorityEndPointSelectionStrategy strategy = (PriorityEndPointSelectionStrategy)messagingManagerS3.getEndPointSelectionStrategy();
+         final ArrayList checkedOut = new ArrayList();
+         try
+         {
+            MessagingEndPoint endPoint;
+            for(int i=0; i<3; i++)
+            {
+               endPoint = strategy.getEndPoint(destination, MessageHeader.PRIORITY_NORMAL, 1000);
+               assertNotNull("Normal priority endpoint " + i + " not available", endPoint);
+               checkedOut.add(endPoint);
+            }
+            assertNull(strategy.getEndPoint(destination, MessageHeader.PRIORITY_NORMAL, 100));
+            assertNull(strategy.getEndPoint(destination, MessageHeader.PRIORITY_LOW, 100));
+            for(int i=0; i<2; i++)
+            {
+               endPoint = strategy.getEndPoint(destination, MessageHeader.PRIORITY_HIGH, 1000);
+               assertNotNull("High priority endpoint " + i + " not available", endPoint);
+               checkedOut.add(endPoint);
+            }
+         }
+         finally
+         {
+            for(int i=0; i<checkedOut.size(); i++) strategy.endPointReady((MessagingEndPoint)checkedOut.get(i));
+         }
+         server.logInfo("Test testDispatchWithPriority(2/2) complete!");
+      }
+      finally
+      {
+         priorityTestReceiver.setOpen(true);
+         messagingManagerS3.setReservedPriorityEndPoints(0);
+      }
+      
+      logger.info("END testDispatchWithPriority.");
+   }
+   
+   /**
+    * Test case endpoint heartbeat.
+    */
+   public void testEndPointHeartbeat() throws Exception
+   {
+      logger.info("BEGIN testEndPointHeartbeat.");
+      
+      testCount++;
+      
+      final Destination destination = messagingManagerS3.getDestinations()[0];
+      waitForEndPoints(destination, 5);
+      
+      final List endPoints = destination.getEndPoints();
+      final long[] lastActivityTimes = new long[endPoints.size()];
+      for(int i=0; i<endPoints.size(); i++)
+      {
+         assertTrue("No heartbeat scheduled for " + endPoints.get(i), ((MessagingEndPoint)endPoints.get(i)).isHeartbeatScheduled());
+         lastActivityTimes[i] = ((MessagingEndPoint)endPoints.get(i)).getLastActivityTime();
+      }
+      
+      // Idle endpoints should be probed by the heartbeat at least once during this period
+      Thread.sleep(2500);
+      
+      MessagingEndPoint endPoint;
+      for(int i=0; i<endPoints.size(); i++)
+      {
+         endPoint = (MessagingEndPoint)endPoints.get(i);
+         assertTrue("Endpoint " + endPoint + " disconnected", endPoint.isLinkEstablished());
+         assertTrue("No heartbeat dispatched through " + endPoint, endPoint.getLastActivityTime() > lastActivityTimes[i]);
+      }
+      
+      logger.info("END testEndPointHeartbeat.");
+   }
+   
+   /**
+    * Test case reconnect.
+    */
+   public void testReconnect() throws Exception
+   {
+      logger.info("BEGIN testReconnect.");
+      
+      testCount++;
+      
+      final Destination destination = messagingManagerS3.getDestinations()[0];
+      waitForEndPoints(destination, 5);
+      
+      messagingManagerS3.setStatisticsEnabled(true);
+      try
+      {
+         // Disconnect two endpoints, which should be recreated ahead of the periodic check
+         final List endPoints = destination.getEndPoints();
+         messagingManagerS3.disconnectEndPoint((MessagingEndPoint)endPoints.get(0));
+         messagingManagerS3.disconnectEndPoint((MessagingEndPoint)endPoints.get(1));
+         
+         final long startTime = System.currentTimeMillis();
+         while( (destination.getLinkEstablishedCount() < 5) && ((System.currentTimeMillis() - startTime) < 10000) ) Thread.sleep(10);
+         waitForEndPoints(destination, 5);
+         
+         final StatisticsSource statistics = StatisticsManager.getStatisticsManager().getStatisticsSource("Messaging statistics - MessagingManagerS3");
+         final MessagingStatisticsSource messagingStatistics = (MessagingStatisticsSource)statistics;
+         assertEquals(1, messagingStatistics.getReconnectStatistics().getCountStatisticsEntry().getLongValue());
+         assertNotNull(statistics.getStatisticsSource(MessagingStatisticsSource.RECONNECT_SOURCE_NAME).getStatisticsSource(destination.getName()));
+      }
+      finally
+      {
+         messagingManagerS3.setStatisticsEnabled(false);
+      }
+      
+      logger.info("END testReconnect.");
+   }
+   
+   /**
+    * Test case spare endpoints.
+    */
+   public void testSpareEndPoints() throws Exception
+   {
+      logger.info("BEGIN testSpareEndPoints.");
+      
+      testCount++;
+      
+      final Destination destination = messagingManagerS3.getDestinations()[0];
+      waitForEndPoints(destination, 5);
+      
+      messagingManagerS3.setSpareEndPointsPerDestination(1);
+      try
+      {
+         waitForEndPoints(destination, 6);
+         
+         MessagingEndPoint spareEndPoint = null;
+         MessagingEndPoint activeEndPoint = null;
+         final List endPoints = destination.getEndPoints();
+         for(int i=0; i<endPoints.size(); i++)
+         {
+            final MessagingEndPoint endPoint = (MessagingEndPoint)endPoints.get(i);
+            if( endPoint.isStandby() )
+            {
+               assertNull("More than one spare endpoint!", spareEndPoint);
+               spareEndPoint = endPoint;
+            }
+            else if( activeEndPoint == null ) activeEndPoint = endPoint;
+         }
+         assertNotNull("No spare endpoint!", spareEndPoint);
+         assertNotNull("No active endpoint!", activeEndPoint);
+         
+         // The spare endpoint should replace an active endpoint that is lost
+         messagingManagerS3.disconnectEndPoint(activeEndPoint);
+         final long startTime = System.currentTimeMillis();
+         while( spareEndPoint.isStandby() && ((System.currentTimeMillis() - startTime) < 10000) ) Thread.sleep(10);
+         assertFalse("Spare endpoint not activated!", spareEndPoint.isStandby());
+         
+         waitForEndPoints(destination, 6);
+      }
+      finally
+      {
+         messagingManagerS3.setSpareEndPointsPerDestination(0);
+         
+         // Get rid of the spare endpoint
+         final List endPoints = destination.getEndPoints();
+         for(int i=0; i<endPoints.size(); i++)
+         {
+            if( ((MessagingEndPoint)endPoints.get(i)).isStandby() ) messagingManagerS3.disconnectEndPoint((MessagingEndPoint)endPoints.get(i));
+         }
+      }
+      
+      logger.info("END testSpareEndPoints.");
+   }
+   
+   /**
+    * Updates the load of a destination through its meta data, and notifies the specified strategy.
+    */
+   private static void setLoad(final IndexedEndPointSelectionStrategy strategy, final Destination destination, final int load)
+   {
+      final HashMap previousMetaData = destination.getDestinationMetaData();
+      final HashMap metaData = new HashMap();
+      metaData.put(MessagingManager.SERVER_LOAD_METADATA_KEY, new Integer(load));
+      destination.updateDestinationMetaData(metaData);
+      strategy.destinationMetaDataUpdated(destination, previousMetaData);
+   }
+   
+   /**
+    * Waits for the specified number of linked endpoints in a destination.
+    */
+   private static void waitForEndPoints(final Destination destination, final int count) throws InterruptedException
+   {
+      final long start = System.currentTimeMillis();
+      List endPoints = destination.getEndPoints();
+      int linked = 0;
+      while( (System.currentTimeMillis() - start) < 10000 )
+      {
+         endPoints = destination.getEndPoints();
+         linked = 0;
+         for(int i=0; i<endPoints.size(); i++)
+         {
+            if( ((MessagingEndPoint)endPoints.get(i)).isLinkEstablished() ) linked++;
+         }
+         if( linked >= count ) return;
+         Thread.sleep(50);
+      }
+      fail("Only " + linked + " of " + count + " endpoints linked in " + destination + "!");
+   }
+   
+   /**
+    * Test case broadcastMessage.
+    */
+   public void testBroadcastMessage() throws Exception
+   {
+      logger.info("BEGIN testBroadcastMessage.");
+      
+      testCount++;
+      
+      server.logInfo("Starting test testBroadcastMessage(1/2)!");
+      Destination[] destinations = messagingManagerS1.getDestinations();
+      BroadcastResult result = messagingManagerS1.broadcastMessage(null, "RequestBritt", destinations);
+      assertEquals(destinations.length, result.size());
+      assertTrue("Broadcast failed: " + result, result.isComplete());
+      for(int i=0; i<result.size(); i++)
+      {
+         assertEquals(destinations[i], result.getDestination(i));
+         assertEquals("ResponseBritt", result.getResponse(i).getBodyAsObject());
+      }
+      
+      result = messagingManagerS1.broadcastMessage(new MessageHeader(), "RequestBritt", RECEIVER_NAME);
+      assertTrue("No destinations with named receiver", result.size() > 0);
+      assertTrue("Broadcast failed: " + result, result.isComplete());
+      assertEquals(result.size(), result.getResponses().length);
+      server.logInfo("Test testBroadcastMessage(1/2) complete!");
+      
+      // Timeout - the duration should be bounded by a single timeout, since the responses are awaited in parallel
+      server.logInfo("Starting test testBroadcastMessage(2/2)!");
+      MessageHeader header = new MessageHeader();
+      header.setCustomHeaderField(NO_RESPONSE_HEADER_FIELD, Boolean.TRUE);
+      result = messagingManagerS1.broadcastMessage(header, "RequestBritt", destinations, new MessageDispatcherProperties(RECEIVER_NAME, 500, false));
+      assertEquals(destinations.length, result.getTimeOutCount());
+      assertEquals(0, result.getSuccessCount());
+      assertTrue("Broadcast took too long: " + result, result.getDuration() < (destinations.length * 500));
+      server.logInfo("Test testBroadcastMessage(2/2) complete!");
+      
+      logger.info("END testBroadcastMessage.");
+   }
+   
    /**
     * Test case dispatchViaProxy.
     */
@@ -249,6 +1113,214 @@ public class MessagingManagerTest extends TestCase
       logger.info("END testDefaultEndPointSelectionStrategy.");
    }
    
+   /**
+    * Test case indexedEndPointSelectionStrategy. The strategy is fed with the endpoints of messagingManagerS1, but isn't 
+    * used by messagingManagerS1 for dispatching.
+    */
+   public void testIndexedEndPointSelectionStrategy() throws Exception
+   {
+      logger.info("BEGIN testIndexedEndPointSelectionStrategy.");
+      
+      testCount++;
+      resetFailCount();
+      
+      final IndexedEndPointSelectionStrategy strategy = new IndexedEndPointSelectionStrategy();
+      strategy.setMessagingManager(messagingManagerS1);
+      strategy.initialize();
+      
+      try
+      {
+         assertNull(strategy.getEndPoint(RECEIVER_NAME, 50));
+         
+         Destination[] destinations = messagingManagerS1.getDestinations();
+         List endPoints;
+         int endPointCount = 0;
+         for(int i=0; i<destinations.length; i++)
+         {
+            endPoints = destinations[i].getEndPoints();
+            for(int e=0; e<endPoints.size(); e++)
+            {
+               strategy.endPointReady((MessagingEndPoint)endPoints.get(e));
+               endPointCount++;
+            }
+         }
+         assertTrue("No endpoints", endPointCount > 0);
+         
+         // Named receiver and meta data lookups
+         MessagingEndPoint endPoint = strategy.getEndPoint(RECEIVER_NAME, 1000);
+         assertNotNull(endPoint);
+         assertTrue(endPoint.getDestination().hasNamedReceiver(RECEIVER_NAME));
+         strategy.endPointReady(endPoint);
+         
+         HashMap metaData = new HashMap();
+         metaData.put(MessagingManager.NAMED_MESSAGE_RECEIVER_METADATA_KEY, RECEIVER_NAME);
+         endPoint = strategy.getEndPoint(metaData, 1000);
+         assertNotNull(endPoint);
+         assertTrue(endPoint.getDestination().hasNamedReceiver(RECEIVER_NAME));
+         strategy.endPointReady(endPoint);
+         
+         metaData.put(MessagingManager.NAMED_MESSAGE_RECEIVER_METADATA_KEY, "mupp");
+         assertNull(strategy.getEndPoint(metaData, 50));
+         
+         // Selection among several destinations, which should be ordered by the ready time of their first endpoint, or by load if all destinations report load
+         assertEquals(2, destinations.length);
+         final ArrayList allEndPoints = new ArrayList();
+         while( (endPoint = strategy.getEndPoint(50)) != null ) allEndPoints.add(endPoint);
+         assertEquals(endPointCount, allEndPoints.size());
+         MessagingEndPoint endPointA = null;
+         MessagingEndPoint endPointB = null;
+         for(int i=0; i<allEndPoints.size(); i++)
+         {
+            endPoint = (MessagingEndPoint)allEndPoints.get(i);
+            if( endPoint.getDestination() == destinations[0] ) endPointA = endPoint;
+            else endPointB = endPoint;
+         }
+         
+         try
+         {
+            strategy.endPointReady(endPointB);
+            Thread.sleep(20);
+            strategy.endPointReady(endPointA);
+            assertSame(endPointB, strategy.getEndPoint(50));
+            Thread.sleep(20);
+            strategy.endPointReady(endPointB);
+            assertSame(endPointA, strategy.getEndPoint(50));
+            Thread.sleep(20);
+            strategy.endPointReady(endPointA);
+            
+            setLoad(strategy, destinations[0], 1);
+            assertSame(endPointB, strategy.getEndPoint(50)); // Not all destinations report load
+            strategy.endPointReady(endPointB);
+            setLoad(strategy, destinations[1], 5);
+            assertSame(endPointA, strategy.getEndPoint(50));
+            strategy.endPointReady(endPointA);
+            setLoad(strategy, destinations[0], 10);
+            assertSame(endPointB, strategy.getEndPoint(50));
+            strategy.endPointReady(endPointB);
+         }
+         finally
+         {
+            setLoad(strategy, destinations[0], -1);
+            setLoad(strategy, destinations[1], -1);
+         }
+         for(int i=0; i<allEndPoints.size(); i++) strategy.endPointReady((MessagingEndPoint)allEndPoints.get(i));
+         
+         // Exhaust the endpoints of a single destination and check that a waiting thread gets an endpoint when one is returned
+         final Destination destination = destinations[0];
+         final ArrayList takenEndPoints = new ArrayList();
+         while( (endPoint = strategy.getEndPoint(destination, 50)) != null )
+         {
+            assertEquals(destination, endPoint.getDestination());
+            takenEndPoints.add(endPoint);
+         }
+         assertEquals(destination.getEndPoints().size(), takenEndPoints.size());
+         
+         final MessagingEndPoint returnedEndPoint = (MessagingEndPoint)takenEndPoints.get(0);
+         Thread returner = new Thread()
+         {
+            public void run()
+            {
+               try{ Thread.sleep(200); }catch(InterruptedException e){}
+               strategy.endPointReady(returnedEndPoint);
+            }
+         };
+         returner.setDaemon(true);
+         returner.start();
+         assertSame(returnedEndPoint, strategy.getEndPoint(destination, 5000));
+         
+         // Destroyed endpoints should never be returned
+         strategy.endPointReady(returnedEndPoint);
+         strategy.endPointDestroyed(returnedEndPoint);
+         assertNull(strategy.getEndPoint(destination, 50));
+         
+         for(int i=0; i<takenEndPoints.size(); i++) strategy.endPointReady((MessagingEndPoint)takenEndPoints.get(i));
+         
+         // Concurrent getters, including lookups that never match
+         if( !DefaultEndPointSelectionStrategyTest.testEndPointSelectionStrategy(strategy) )
+         {
+            super.fail("Failure testIndexedEndPointSelectionStrategy! FailCount = " + getFailCount() + ". See log file for details.") ;
+         }
+      }
+      finally
+      {
+         strategy.shutDown();
+      }
+      
+      logger.info("END testIndexedEndPointSelectionStrategy.");
+   }
+   
+   /**
+    * Test case latencyAwareEndPointSelectionStrategy. The strategy is fed with the endpoints of messagingManagerS1, but isn't 
+    * used by messagingManagerS1 for dispatching.
+    */
+   public void testLatencyAwareEndPointSelectionStrategy() throws Exception
+   {
+      logger.info("BEGIN testLatencyAwareEndPointSelectionStrategy.");
+      
+      testCount++;
+      
+      final LatencyAwareEndPointSelectionStrategy strategy = new LatencyAwareEndPointSelectionStrategy();
+      strategy.setMessagingManager(messagingManagerS1);
+      strategy.initialize();
+      
+      try
+      {
+         Destination[] destinations = messagingManagerS1.getDestinations(RECEIVER_NAME);
+         assertEquals(2, destinations.length);
+         
+         List endPoints;
+         for(int i=0; i<destinations.length; i++)
+         {
+            endPoints = destinations[i].getEndPoints();
+            for(int e=0; e<endPoints.size(); e++) strategy.endPointReady((MessagingEndPoint)endPoints.get(e));
+         }
+         
+         final MessagingEndPoint slowEndPoint = (MessagingEndPoint)destinations[0].getEndPoints().get(0);
+         final MessagingEndPoint fastEndPoint = (MessagingEndPoint)destinations[1].getEndPoints().get(0);
+         
+         strategy.requestDispatched(slowEndPoint, null);
+         strategy.requestCompleted(slowEndPoint, null, 1000, true);
+         strategy.requestDispatched(fastEndPoint, null);
+         strategy.requestCompleted(fastEndPoint, null, 1, true);
+         assertTrue(strategy.getCost(destinations[0]) > strategy.getCost(destinations[1]));
+         
+         // With two destinations, both are always compared, so the fast destination should always be selected
+         MessagingEndPoint endPoint;
+         for(int i=0; i<20; i++)
+         {
+            endPoint = strategy.getEndPoint(RECEIVER_NAME, 1000);
+            assertEquals(destinations[1], endPoint.getDestination());
+            strategy.endPointReady(endPoint);
+         }
+         
+         // Pending requests make the fast destination more expensive than the slow one
+         for(int i=0; i<1000; i++) strategy.requestDispatched(fastEndPoint, null);
+         assertEquals(1000, strategy.getPendingRequests(destinations[1]));
+         endPoint = strategy.getEndPoint(RECEIVER_NAME, 1000);
+         assertEquals(destinations[0], endPoint.getDestination());
+         strategy.endPointReady(endPoint);
+         
+         for(int i=0; i<1000; i++) strategy.requestCompleted(fastEndPoint, null, 1, true);
+         assertEquals(0, strategy.getPendingRequests(destinations[1]));
+         endPoint = strategy.getEndPoint(RECEIVER_NAME, 1000);
+         assertEquals(destinations[1], endPoint.getDestination());
+         strategy.endPointReady(endPoint);
+         
+         // A failing (timing out) destination sheds traffic immediately
+         strategy.requestDispatched(fastEndPoint, null);
+         strategy.requestCompleted(fastEndPoint, null, 2000, false);
+         endPoint = strategy.getEndPoint(RECEIVER_NAME, 1000);
+         assertEquals(destinations[0], endPoint.getDestination());
+         strategy.endPointReady(endPoint);
+      }
+      finally
+      {
+         strategy.shutDown();
+      }
+      
+      logger.info("END testLatencyAwareEndPointSelectionStrategy.");
+   }
+   
    /**
     * Test case badData.
     */
@@ -349,6 +1421,81 @@ public class MessagingManagerTest extends TestCase
       }
    }
    
+   /**
+    * Waits for a listener count to reach the specified value, since listeners are notified after threads waiting for a response future are woken up.
+    */
+   private void waitForListenerCount(final int[] listenerCounts, final int index, final int expectedCount) throws InterruptedException
+   {
+      for(int i=0; i<100; i++)
+      {
+         synchronized(listenerCounts)
+         {
+            if( listenerCounts[index] >= expectedCount ) return;
+         }
+         Thread.sleep(50);
+      }
+   }
+   
+   /**
+    * Waits for the flow control test receiver to process the specified number of messages, and for the specified number of credits 
+    * to be granted.
+    */
+   private void waitForFlowControl(final Destination destination, final int expectedReceivedCount, final long expectedCredits) throws InterruptedException
+   {
+      for(int i=0; i<100; i++)
+      {
+         if( (flowControlTestReceiver.getReceivedCount() >= expectedReceivedCount) && 
+               (destination.getFlowControlCredits() >= expectedCredits) ) return;
+         Thread.sleep(50);
+      }
+   }
+   
+   /**
+    * Dispatches a byte array body, a streamed body and a file body of the specified length to the receiver listening on the 
+    * specified local port, which echoes the bodies back.
+    */
+   private void dispatchEchoInternal(final MessagingManager messagingManager, final int port, final int bodyLength, final boolean compressed) throws Exception
+   {
+      final byte[] body = new byte[bodyLength];
+      for(int i=0; i<body.length; i++) body[i] = (byte)(i % 97);
+      
+      MessageHeader header = new MessageHeader();
+      header.setCustomHeaderField(ECHO_HEADER_FIELD, Boolean.TRUE);
+      Message response = messagingManager.dispatchMessage(header, body, new TcpEndPointIdentifier("localhost", port));
+      assertEquals("Response body compression", compressed, response.getHeader().isBodyCompressed());
+      assertTrue("Byte array body mismatch", Arrays.equals(body, response.getBodyAsByteArray()));
+      
+      header = new MessageHeader();
+      header.setCustomHeaderField(ECHO_HEADER_FIELD, Boolean.TRUE);
+      response = messagingManager.dispatchMessage(header, new ByteArrayInputStream(body), body.length, new TcpEndPointIdentifier("localhost", port));
+      assertTrue("Streamed body mismatch", Arrays.equals(body, response.getBodyAsByteArray()));
+      
+      final File file = File.createTempFile("MessagingManagerTest", ".dat");
+      final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+      try
+      {
+         randomAccessFile.write(body);
+         
+         header = new MessageHeader();
+         header.setCustomHeaderField(ECHO_HEADER_FIELD, Boolean.TRUE);
+         response = new MessageDispatcher(messagingManager, new MessageDispatcherProperties(RECEIVER_NAME)).dispatchFileMessage(header, file);
+         
+         randomAccessFile.setLength(0);
+         assertEquals(body.length, response.transferBodyTo(randomAccessFile.getChannel(), 0));
+         assertEquals(-1, response.transferBodyTo(randomAccessFile.getChannel(), 0));
+         
+         final byte[] fileBody = new byte[body.length];
+         randomAccessFile.seek(0);
+         randomAccessFile.readFully(fileBody);
+         assertTrue("File body mismatch", Arrays.equals(body, fileBody));
+      }
+      finally
+      {
+         randomAccessFile.close();
+         file.delete();
+      }
+   }
+   
    /**
     */
    public static void main(String[] args)
@@ -360,9 +1507,13 @@ public class MessagingManagerTest extends TestCase
    {
       private final MessagingManager messagingManager; 
       
+      private final RpcHandler rpcHandler;
+      
       public InternalMessageReceiver(MessagingManager messagingManager)
       {
          this.messagingManager = messagingManager;
+         this.rpcHandler = new RpcHandler(messagingManager);
+         this.rpcHandler.addHandler(TYPED_RPC_HANDLER_NAME, new TypedRpcTestHandler());
       }
       
       public void messageReceived(Message message)
@@ -373,6 +1524,22 @@ public class MessagingManagerTest extends TestCase
    		{
    		   header = message.getHeader();
    		   
+   		   if( RemoteProcedureCall.isRemoteProcedureCall(message) )
+   		   {
+   		      this.rpcHandler.handleRpcMessage(message);
+   		      return;
+   		   }
+   		   else if( header.getCustomHeaderField(ECHO_HEADER_FIELD) != null )
+   		   {
+   		      this.messagingManager.dispatchMessageAsync(header, message.getBodyAsByteArray());
+   		      return;
+   		   }
+   		   else if( header.getCustomHeaderField(NO_RESPONSE_HEADER_FIELD) != null )
+   		   {
+   		      message.getBodyAsObject();
+   		      return;
+   		   }
+   		   
             this.messagingManager.logInfo("Received request : " + message.getBodyAsObject() + ". Header: " + header);
    										
    			Object response = new String("ResponseBritt"); 
@@ -460,6 +1627,155 @@ public class MessagingManagerTest extends TestCase
       }
    }
    
+   public static interface TypedRpcTestService
+   {
+      public int add(int a, int b);
+      
+      public String echo(String value);
+      
+      public long[] reverse(long[] values);
+      
+      public double scale(double value, float factor);
+      
+      public void fail(String message);
+   }
+   
+   public static class TypedRpcTestHandler implements TypedRpcTestService
+   {
+      public int add(int a, int b)
+      {
+         return a + b;
+      }
+      
+      public String echo(String value)
+      {
+         return value;
+      }
+      
+      public long[] reverse(long[] values)
+      {
+         final long[] reversed = new long[values.length];
+         for(int i=0; i<values.length; i++) reversed[i] = values[values.length - 1 - i];
+         return reversed;
+      }
+      
+      public double scale(double value, float factor)
+      {
+         return value * factor;
+      }
+      
+      public void fail(String message)
+      {
+         throw new IllegalStateException(message);
+      }
+   }
+   
+   /**
+    * Message receiver that can be closed, to simulate message handler threads that are busy.
+    */
+   private static class FlowControlTestReceiver implements MessageReceiver
+   {
+      private boolean open = true;
+      
+      private int receivedCount = 0;
+      
+      public synchronized void setOpen(boolean open)
+      {
+         this.open = open;
+         this.notifyAll();
+      }
+      
+      public synchronized int getReceivedCount()
+      {
+         return this.receivedCount;
+      }
+      
+      public void messageReceived(Message message)
+      {
+         try
+         {
+            message.getBodyAsObject();
+            
+            synchronized(this)
+            {
+               while( !this.open ) this.wait();
+               this.receivedCount++;
+            }
+         }
+         catch(Exception e)
+         {
+            logger.error("Error while receiving flow controlled message!", e);
+         }
+      }
+   }
+   
+   /**
+    * Message receiver that records the order in which messages are processed, and that can be closed to simulate message 
+    * handler threads that are busy.
+    */
+   private static class PriorityTestReceiver implements MessageReceiver
+   {
+      private boolean open = true;
+      
+      private boolean entered = false;
+      
+      private byte highPriority = MessageHeader.PRIORITY_NORMAL;
+      
+      private final ArrayList received = new ArrayList();
+      
+      public synchronized void setOpen(boolean open)
+      {
+         this.open = open;
+         if( !open ) 
+         {
+            this.entered = false;
+            this.received.clear();
+         }
+         this.notifyAll();
+      }
+      
+      public synchronized void waitForEntered(long timeout) throws InterruptedException
+      {
+         final long start = System.currentTimeMillis();
+         while( !this.entered && ((System.currentTimeMillis() - start) < timeout) ) this.wait(timeout);
+         assertTrue("No message received", this.entered);
+      }
+      
+      public synchronized List waitForReceived(int count, long timeout) throws InterruptedException
+      {
+         final long start = System.currentTimeMillis();
+         while( (this.received.size() < count) && ((System.currentTimeMillis() - start) < timeout) ) this.wait(timeout);
+         return new ArrayList(this.received);
+      }
+      
+      public synchronized byte getHighPriority()
+      {
+         return this.highPriority;
+      }
+      
+      public void messageReceived(Message message)
+      {
+         try
+         {
+            final Object body = message.getBodyAsObject();
+            
+            synchronized(this)
+            {
+               this.entered = true;
+               this.notifyAll();
+               while( !this.open ) this.wait();
+               if( "High".equals(body) ) this.highPriority = message.getHeader().getPriority();
+               this.received.add(body);
+               this.notifyAll();
+            }
+         }
+         catch(Exception e)
+         {
+            logger.error("Error while receiving prioritized message!", e);
+         }
+      }
+   }
+   
    private static class AsynchResponseReciver implements MessageReceiver 
    {
       public void messageReceived(Message message)
@@ -78,6 +78,8 @@ public class PeriodicActionManagerTest extends TestCase {
       
       assertTrue(!abnormalAction.isCriticalErrorDispatched());
       
+      pam.shutDown();
+      
       logger.info("END testAbnormalActionExecution.");
    }
    
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.queue;
+
+import java.util.List;
+
+import com.teletalk.jserver.queue.command.QueueItemTransferRequest;
+import com.teletalk.jserver.queue.command.QueueSystemCommand;
+import com.teletalk.jserver.queue.messaging.QueueMessagingManager;
+import com.teletalk.jserver.queue.messaging.RemoteQueueSystemDestination;
+
+/**
+ * QueueMessagingManager that counts the batches of transfer requests dispatched to remote queue systems. 
+ * Dispatching of single commands may be delayed to simulate a slow link, which makes commands queue up (and be batched) in the 
+ * sequential dispatchers of the remote queue system destinations.
+ * 
+ * @author Tobias Lfstrand
+ */
+public class BatchCountingQueueMessagingManager extends QueueMessagingManager
+{
+   private int transferRequestBatchCount = 0;
+   
+   private int maxDispatchedBatchSize = 0;
+   
+   private long dispatchDelay = 0;
+   
+   
+   /**
+    */
+   public BatchCountingQueueMessagingManager(QueueManager parent, String name)
+   {
+      super(parent, name);
+   }
+   
+   /**
+    */
+   public BatchCountingQueueMessagingManager(QueueManager parent, String name, String queueSystemMessageReceiverName)
+   {
+      super(parent, name, queueSystemMessageReceiverName);
+   }
+   
+   /**
+    */
+   protected void dispatchCommandToRemoteQueueSystemDestination(final QueueSystemCommand command, final RemoteQueueSystemDestination destination)
+   {
+      final long delay = this.getDispatchDelay();
+      if( delay > 0 )
+      {
+         try{
+         Thread.sleep(delay);
+         }catch(InterruptedException ie){}
+      }
+      
+      super.dispatchCommandToRemoteQueueSystemDestination(command, destination);
+   }
+   
+   /**
+    */
+   protected void dispatchCommandBatchToRemoteQueueSystemDestination(final List commands, final RemoteQueueSystemDestination destination)
+   {
+      synchronized(this)
+      {
+         if( commands.get(0) instanceof QueueItemTransferRequest ) this.transferRequestBatchCount++;
+         
+         this.maxDispatchedBatchSize = Math.max(this.maxDispatchedBatchSize, commands.size());
+      }
+      
+      super.dispatchCommandBatchToRemoteQueueSystemDestination(commands, destination);
+   }
+   
+   public synchronized int getTransferRequestBatchCount()
+   {
+      return this.transferRequestBatchCount;
+   }
+   
+   public synchronized int getMaxDispatchedBatchSize()
+   {
+      return this.maxDispatchedBatchSize;
+   }
+   
+   public synchronized long getDispatchDelay()
+   {
+      return this.dispatchDelay;
+   }
+   
+   public synchronized void setDispatchDelay(long dispatchDelay)
+   {
+      this.dispatchDelay = dispatchDelay;
+   }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.queue;
+
+import java.util.HashMap;
+import java.util.List;
+
+import junit.framework.Assert;
+
+/**
+ * Test helper that writes queue items to a QueueStorage from several threads concurrently. Each thread stores its items one by one, 
+ * and updates the status of each item to DISPATCHING directly after storing it.
+ * 
+ * @author Tobias Lfstrand
+ */
+final class ConcurrentStorageWriters
+{
+   private final Thread[] threads;
+   
+   private final HashMap errors = new HashMap();
+   
+   
+   /**
+    * Creates and starts the writer threads.
+    */
+   ConcurrentStorageWriters(final QueueStorage storage, final int nThreads, final int nItemsPerThread)
+   {
+      this.threads = new Thread[nThreads];
+      for(int t=0; t<nThreads; t++)
+      {
+         final int threadIndex = t;
+         this.threads[t] = new Thread()
+         {
+            public void run()
+            {
+               try
+               {
+                  QueueItem item;
+                  int index;
+                  for(int i=0; i<nItemsPerThread; i++)
+                  {
+                     index = (threadIndex * nItemsPerThread) + i;
+                     item = new QueueItem(new TestQueueItemData("Item" + index), "Item" + index);
+                     item.setSendReceiveTime(1000 + index);
+                     storage.storeQueueItem(item);
+                     item.forceStatus(QueueItem.DISPATCHING);
+                     storage.updateQueueItemStatus(item);
+                  }
+               }
+               catch(Exception e)
+               {
+                  synchronized(errors)
+                  {
+                     errors.put(this, e);
+                  }
+               }
+            }
+         };
+         this.threads[t].start();
+      }
+   }
+   
+   /**
+    * Waits for all writer threads to finish, and asserts that no errors occurred.
+    */
+   void join(final long timeout) throws InterruptedException
+   {
+      for(int t=0; t<this.threads.length; t++) this.threads[t].join(timeout);
+      
+      synchronized(this.errors)
+      {
+         Assert.assertTrue("Errors occurred while writing: " + this.errors, this.errors.isEmpty());
+      }
+   }
+   
+   /**
+    * Asserts that the specified number of items, all with the status DISPATCHING, are restored from the specified storage.
+    */
+   static void assertRestored(final QueueStorage storage, final int expectedItemCount)
+   {
+      List restored = storage.restoreQueueFromStorage();
+      Assert.assertEquals(expectedItemCount, restored.size());
+      for(int i=0; i<restored.size(); i++)
+      {
+         Assert.assertEquals(QueueItem.DISPATCHING, ((QueueItem)restored.get(i)).getStatus());
+      }
+   }
+}
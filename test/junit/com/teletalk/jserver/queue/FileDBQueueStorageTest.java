@@ -0,0 +1,126 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.queue;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.teletalk.jserver.util.filedb.LowLevelFileDB;
+
+/**
+ * Test case for FileDBQueueStorage.
+ * 
+ * @author Tobias Lfstrand
+ */
+public class FileDBQueueStorageTest extends TestCase
+{
+   private static final Log logger = LogFactory.getLog(FileDBQueueStorageTest.class);
+   
+   private File dbDirectory;
+   
+   
+   protected void setUp() throws Exception
+   {
+      this.dbDirectory = new File(System.getProperty("java.io.tmpdir"), "FileDBQueueStorageTest." + System.currentTimeMillis());
+   }
+   
+   protected void tearDown() throws Exception
+   {
+      File[] files = this.dbDirectory.listFiles();
+      if( files != null )
+      {
+         for(int i=0; i<files.length; i++) files[i].delete();
+      }
+      this.dbDirectory.delete();
+   }
+   
+   
+   /**
+    * Tests concurrent writes in group commit mode. Each flush is held back until every writer has performed its next write, which 
+    * means that each flush must be shared by all writers.
+    */
+   public void testGroupCommit() throws Exception
+   {
+      logger.info("BEGIN testGroupCommit.");
+      
+      final int nThreads = 10;
+      final int nItemsPerThread = 20;
+      
+      final HeldBackFlushStorage storage = new HeldBackFlushStorage(new Queue("FileDBQueue", new NullQueueStorage()), nThreads);
+      storage.setDbFilePath(this.dbDirectory.getAbsolutePath());
+      storage.setGroupCommit(true);
+      assertTrue("Failed to engage storage!", storage.engage());
+      
+      new ConcurrentStorageWriters(storage, nThreads, nItemsPerThread).join(60000);
+      
+      final int nWrites = nThreads * nItemsPerThread * 2;
+      final long flushCount = storage.getGroupCommitFlushCount();
+      logger.info(nWrites + " writes committed using " + flushCount + " flushes.");
+      assertEquals("Flushes not shared between writers!", nWrites / nThreads, flushCount);
+      
+      storage.holdBackFlushes = false;
+      storage.shutDown();
+      assertTrue(storage.engage());
+      
+      ConcurrentStorageWriters.assertRestored(storage, nThreads * nItemsPerThread);
+      
+      storage.shutDown();
+      
+      logger.info("END testGroupCommit.");
+   }
+   
+   
+   /**
+    * FileDBQueueStorage that holds back each group commit flush until every writer has performed its next write (or until a deadline 
+    * has passed).
+    */
+   private static final class HeldBackFlushStorage extends FileDBQueueStorage
+   {
+      private final int nThreads;
+      
+      private int flushes = 0;
+      
+      volatile boolean holdBackFlushes = true;
+      
+      HeldBackFlushStorage(final Queue queue, final int nThreads)
+      {
+         super(queue);
+         this.nThreads = nThreads;
+      }
+      
+      protected long groupCommitFlush(final LowLevelFileDB db) throws IOException
+      {
+         if( this.holdBackFlushes )
+         {
+            final long targetSequence = ++this.flushes * this.nThreads;
+            final long deadline = System.currentTimeMillis() + 10000;
+            while( (super.getWriteSequence() < targetSequence) && (System.currentTimeMillis() < deadline) )
+            {
+               try{
+               Thread.sleep(1);
+               }catch(InterruptedException ie){ throw new IOException("Interrupted while holding back flush!"); }
+            }
+         }
+         
+         return super.groupCommitFlush(db);
+      }
+   }
+}
@@ -24,6 +24,7 @@ import org.apache.log4j.Level;
 import com.teletalk.jserver.JServer;
 import com.teletalk.jserver.TestUtils;
 import com.teletalk.jserver.messaging.MessagingManagerTest;
+import com.teletalk.jserver.queue.messaging.RemoteQueueSystemDestination;
 import com.teletalk.jserver.util.FileDeletor;
 import com.teletalk.jserver.util.MessageQueueTest;
 
@@ -36,7 +37,7 @@ public class QueueManagerTest extends TestCase
    private static final Log logger = LogFactory.getLog(MessagingManagerTest.class);
    
    
-   private static final int NO_OF_TESTS = 1;
+   private static final int NO_OF_TESTS = 3;
    
    private static int testCount = 0;
    
@@ -114,6 +115,27 @@ public class QueueManagerTest extends TestCase
    }
    
    
+   /**
+    * Shuts down the specified RelayController, including its QueueMessagingManager and QueueManager (which are not shut down 
+    * by RelayController.doShutDown()).
+    */
+   private static void shutDownRelayController(final RelayController relayController)
+   {
+      relayController.shutDown();
+      try{
+      relayController.waitForDown(1000);
+      }catch (Exception e) {}
+      relayController.queueMessagingManager.shutDown();
+      try{
+      relayController.queueMessagingManager.waitForDown(10000);
+      }catch (Exception e) {}
+      relayController.getQueueManager().shutDown();
+      try{
+      relayController.getQueueManager().waitForDown(10000);
+      }catch (Exception e) {}
+   }
+   
+   
    /* ### TEST METHODS ### */
    
    
@@ -163,18 +185,7 @@ public class QueueManagerTest extends TestCase
          
          sendController.waitForCompletionEvent((N_ITEMS/4), 30000);
          
-         relayController.shutDown();
-         try{
-         relayController.waitForDown(1000);
-         }catch (Exception e) {}
-         relayController.queueMessagingManager.shutDown();
-         try{
-         relayController.queueMessagingManager.waitForDown(10000);
-         }catch (Exception e) {}
-         relayController.getQueueManager().shutDown();
-         try{
-         relayController.getQueueManager().waitForDown(10000);
-         }catch (Exception e) {}
+         shutDownRelayController(relayController);
          
          relayController.engage();
          try{
@@ -211,9 +222,109 @@ public class QueueManagerTest extends TestCase
          try{
             receiverController.waitForDown(10000);
          }catch(InterruptedException ie){}
+         shutDownRelayController(relayController);
          try{
-            relayController.waitForDown(10000);
+            sendController.waitForDown(10000);
          }catch(InterruptedException ie){}
+         
+         server.removeSubSystem(receiverController);
+         server.removeSubSystem(relayController);
+         server.removeSubSystem(sendController);
+         
+         FileDeletor.delete(ReceiverController.QUEUE_ITEM_IN_QUEUE_PATH);
+         FileDeletor.delete(RelayController.QUEUE_ITEM_IN_QUEUE_PATH);
+         FileDeletor.delete(RelayController.QUEUE_ITEM_OUT_QUEUE_PATH);
+         FileDeletor.delete(SendController.QUEUE_ITEM_OUT_QUEUE_PATH);
+      }
+      
+      logger.info("END testQueueManagerCrash.");
+   }
+   
+   /**
+    */
+   public void testBatchedTransfers()
+   {
+      logger.info("BEGIN testBatchedTransfers.");
+      
+      testCount++;
+      resetFailCount();
+      
+      FileDeletor.delete(ReceiverController.QUEUE_ITEM_IN_QUEUE_PATH);
+      FileDeletor.delete(RelayController.QUEUE_ITEM_IN_QUEUE_PATH);
+      FileDeletor.delete(RelayController.QUEUE_ITEM_OUT_QUEUE_PATH);
+      FileDeletor.delete(SendController.QUEUE_ITEM_OUT_QUEUE_PATH);
+      
+      final int maxTransferBatchSize = 20;
+      
+      ReceiverController receiverController = new ReceiverController(server);
+      server.addSubSystem(receiverController);
+      RelayController relayController = new RelayController(server);
+      server.addSubSystem(relayController);
+      SendController sendController = new SendController(server);
+      server.addSubSystem(sendController);
+      
+      try
+      {
+         receiverController.engage();
+         try{
+         receiverController.waitForEnabled(10000);
+         }catch(Exception e){}
+         
+         relayController.engage();
+         try{
+         relayController.waitForEnabled(10000);
+         }catch(Exception e){}
+         
+         sendController.engage();
+         try{
+         sendController.waitForEnabled(10000);
+         }catch(Exception e){}
+         
+         // Enable batching (properties are initialized when engaged), and delay dispatching to make commands queue up. The round 
+         // trip time target is set high to keep the batch size from adapting down to 1 when the test host is loaded.
+         relayController.queueMessagingManager.setMaxTransferBatchSize(maxTransferBatchSize);
+         relayController.queueMessagingManager.setTransferRoundTripTimeTarget(60000);
+         relayController.queueMessagingManager.setDispatchDelay(10);
+         sendController.queueMessagingManager.setMaxTransferBatchSize(maxTransferBatchSize);
+         sendController.queueMessagingManager.setTransferRoundTripTimeTarget(60000);
+         sendController.queueMessagingManager.setDispatchDelay(10);
+         
+         for(int i=0; i<(N_ITEMS/2); i++)
+         {
+            sendController.queueJob(new TestQueueItemData("Test" + i));
+         }
+         
+         if( !sendController.waitForCompletionEvent((N_ITEMS/2), 300000) )
+         {
+            super.fail("To few items completed (" + sendController.getCompleteCount() + ")!");
+         }
+         if( getFailCount() > 0 )
+         {
+            super.fail("Error in testBatchedTransfers - failCount: " + getFailCount() + ".");
+         }
+         
+         // Transfer requests to the named receiver (without server name) must have been routed through the destination and batched
+         assertTrue("No transfer request batches dispatched!", sendController.queueMessagingManager.getTransferRequestBatchCount() > 0);
+         assertTrue("Transfer request batch too large!", sendController.queueMessagingManager.getMaxDispatchedBatchSize() <= maxTransferBatchSize);
+         
+         // Batches dispatched by the relay (whether any are formed depends on timing) must not exceed the maximum batch size
+         assertTrue("Relay batch too large!", relayController.queueMessagingManager.getMaxDispatchedBatchSize() <= maxTransferBatchSize);
+         
+         // Round trip time must have been measured from the acknowledgements
+         RemoteQueueSystemDestination destination = (RemoteQueueSystemDestination)sendController.queueMessagingManager.getDestinations()[0];
+         assertTrue("No transfer round trip time measured!", destination.getSmoothedTransferRoundTripTime() >= 0);
+         assertTrue(destination.getTransferBatchSize() >= 1);
+         assertTrue(destination.getTransferBatchSize() <= maxTransferBatchSize);
+      }
+      finally
+      {
+         receiverController.shutDown();
+         relayController.shutDown();
+         sendController.shutDown();
+         try{
+            receiverController.waitForDown(10000);
+         }catch(InterruptedException ie){}
+         shutDownRelayController(relayController);
          try{
             sendController.waitForDown(10000);
          }catch(InterruptedException ie){}
@@ -228,6 +339,80 @@ public class QueueManagerTest extends TestCase
          FileDeletor.delete(SendController.QUEUE_ITEM_OUT_QUEUE_PATH);
       }
       
-      logger.info("END testQueueManagerCrash.");
+      logger.info("END testBatchedTransfers.");
+   }
+   
+   /**
+    * Tests that the in- and out-queues of a QueueManager are synchronized on locks of their own, so that a thread holding the 
+    * lock of the in-queue doesn't block operations on the out-queue.
+    */
+   public void testQueueLocks() throws Exception
+   {
+      logger.info("BEGIN testQueueLocks.");
+      
+      testCount++;
+      
+      FileDeletor.delete(RelayController.QUEUE_ITEM_IN_QUEUE_PATH);
+      FileDeletor.delete(RelayController.QUEUE_ITEM_OUT_QUEUE_PATH);
+      
+      RelayController relayController = new RelayController(server);
+      server.addSubSystem(relayController);
+      
+      try
+      {
+         relayController.engage();
+         try{
+         relayController.waitForEnabled(10000);
+         }catch(Exception e){}
+         
+         final QueueManager queueManager = relayController.getQueueManager();
+         final Queue inQueue = queueManager.getInQueue();
+         final Queue outQueue = queueManager.getOutQueue();
+         
+         assertNotSame(inQueue.getLock(), outQueue.getLock());
+         assertNotSame(queueManager.getQueueItemsLock(), inQueue.getLock());
+         assertNotSame(queueManager.getQueueItemsLock(), outQueue.getLock());
+         
+         final QueueItem[] outItem = new QueueItem[1];
+         final Exception[] error = new Exception[1];
+         Thread outQueueThread = new Thread("QueueManagerTest.outQueueThread")
+         {
+            public void run()
+            {
+               try
+               {
+                  QueueItem item = new QueueItem(new TestQueueItemData("LockTest"), queueManager.getUniqueId());
+                  outQueue.add(item, false);
+                  outItem[0] = outQueue.get(item.getId());
+               }
+               catch (Exception e)
+               {
+                  error[0] = e;
+               }
+            }
+         };
+         
+         synchronized (inQueue.getLock())
+         {
+            outQueueThread.start();
+            outQueueThread.join(10000);
+            
+            assertFalse("Operation on the out-queue blocked by the in-queue lock!", outQueueThread.isAlive());
+         }
+         
+         assertNull(error[0]);
+         assertNotNull(outItem[0]);
+         assertTrue(outQueue.remove(outItem[0]));
+      }
+      finally
+      {
+         shutDownRelayController(relayController);
+         server.removeSubSystem(relayController);
+         
+         FileDeletor.delete(RelayController.QUEUE_ITEM_IN_QUEUE_PATH);
+         FileDeletor.delete(RelayController.QUEUE_ITEM_OUT_QUEUE_PATH);
+      }
+      
+      logger.info("END testQueueLocks.");
    }
 }
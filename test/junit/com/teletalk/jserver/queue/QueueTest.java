@@ -22,10 +22,12 @@ import junit.framework.TestCase;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.teletalk.jserver.comm.EndPointIdentifier;
 import com.teletalk.jserver.queue.NullQueueStorage;
 import com.teletalk.jserver.queue.Queue;
 import com.teletalk.jserver.queue.QueueItem;
 import com.teletalk.jserver.queue.QueueItemData;
+import com.teletalk.jserver.queue.messaging.MessagingQueueSystemEndPointIdentifier;
 
 /**
  * 
@@ -131,10 +133,205 @@ public class QueueTest extends TestCase
       logger.info("END testQueue.");
    }
    
+   /**
+    * Tests that storage operations are performed outside the queue lock, that added items become available for check out 
+    * first when they have been stored and that storage operations for an item are performed in order.
+    */
+   public void testStorageOperationsOutsideLock() throws Exception
+   {
+      logger.info("BEGIN testStorageOperationsOutsideLock.");
+      
+      final BlockingQueueStorage storage = new BlockingQueueStorage();
+      final Queue queue = new Queue("blockingQueue", storage);
+      queue.engage();
+      
+      // Add item - the store operation blocks
+      final QueueItem itemA = new QueueItem(new StringQueueItemData("A"), "A");
+      Thread adder = new Thread(){
+         public void run()
+         {
+            queue.add(itemA);
+         }
+      };
+      adder.start();
+      storage.waitForBlockedStore();
+      
+      long lockWaitStart = System.currentTimeMillis();
+      synchronized(queue.getLock())
+      {
+         assertTrue("Queue lock held during storage operation!", (System.currentTimeMillis() - lockWaitStart) < 1000);
+         assertTrue(queue.containsItemId("A"));
+         assertNull("Item available for check out before being stored!", queue.getFirstIfAny());
+      }
+      
+      storage.releaseStore();
+      adder.join(5000);
+      assertSame(itemA, queue.getFirstIfAny());
+      
+      // Add another item and change its status while the store operation blocks
+      final QueueItem itemB = new QueueItem(new StringQueueItemData("B"), "B");
+      adder = new Thread(){
+         public void run()
+         {
+            queue.add(itemB);
+         }
+      };
+      adder.start();
+      storage.waitForBlockedStore();
+      
+      Thread statusChanger = new Thread(){
+         public void run()
+         {
+            queue.changeStatus(itemB, QueueItem.CHECKED_OUT);
+         }
+      };
+      statusChanger.start();
+      statusChanger.join(500);
+      assertTrue("Status update performed before store!", statusChanger.isAlive());
+      assertEquals(QueueItem.CHECKED_OUT, itemB.getStatus());
+      
+      storage.releaseStore();
+      adder.join(5000);
+      statusChanger.join(5000);
+      
+      assertEquals("[store A, store B, status B]", storage.getOperations().toString());
+      assertSame("Checked out item added to list of queued items!", itemA, queue.getFirstIfAny());
+      assertEquals(1, queue.getAllQueuedAsList().size());
+      
+      queue.shutDown();
+      
+      logger.info("END testStorageOperationsOutsideLock.");
+   }
+   
+   /**
+    * Tests that the secondary indices (parent id, address, status and item data) of the queue are kept up to date when items are added, 
+    * removed and modified.
+    */
+   public void testSecondaryIndices()
+   {
+      logger.info("BEGIN testSecondaryIndices.");
+      
+      final Queue queue = new Queue("indexedQueue", new NullQueueStorage());
+      queue.engage();
+      
+      final EndPointIdentifier address1 = new MessagingQueueSystemEndPointIdentifier("receiver1", "server");
+      final EndPointIdentifier address2 = new MessagingQueueSystemEndPointIdentifier("receiver2", "server");
+      
+      final QueueItem child1 = new QueueItem(new StringQueueItemData("C1"), "C1", "P");
+      final QueueItem child2 = new QueueItem(new StringQueueItemData("C2"), "C2", "P");
+      final QueueItem other = new QueueItem(new StringQueueItemData("O"), "O");
+      child1.setSenderReceiverAddress(address1);
+      child2.setSenderReceiverAddress(address1);
+      queue.add(new QueueItem[]{child1, child2, other});
+      
+      assertEquals(2, queue.getWithParentId("P").length);
+      assertEquals(0, queue.getWithParentId("X").length);
+      assertEquals(2, queue.getWithAddress(new MessagingQueueSystemEndPointIdentifier("receiver1", "server")).length);
+      assertEquals(1, queue.getWithAddress(null).length);
+      assertEquals(3, queue.getAllWithStatus(QueueItem.QUEUED).size());
+      assertEquals(3, queue.getAllNotCompletedAsList().size());
+      assertSame(child2, queue.getQueueItemFor(child2.getItemData()));
+      assertNull(queue.getQueueItemFor(new StringQueueItemData("C2")));
+      
+      // Change status and address
+      queue.changeStatus(child1, QueueItem.DONE_SUCCESS);
+      child2.setSenderReceiverAddress(address2);
+      
+      assertEquals(2, queue.getAllWithStatus(QueueItem.QUEUED).size());
+      assertSame(child1, queue.getAllWithStatus(QueueItem.DONE_SUCCESS).get(0));
+      assertEquals(1, queue.getAllCompletedAsList().size());
+      assertEquals(2, queue.getAllNotCompletedAsList().size());
+      assertSame(child1, queue.getWithAddress(address1)[0]);
+      assertSame(child2, queue.getWithAddress(address2)[0]);
+      
+      // Remove item
+      queue.remove(child1);
+      
+      assertSame(child2, queue.getWithParentId("P")[0]);
+      assertEquals(1, queue.getWithParentId("P").length);
+      assertEquals(0, queue.getWithAddress(address1).length);
+      assertEquals(0, queue.getAllCompletedAsList().size());
+      assertNull(queue.getQueueItemFor(child1.getItemData()));
+      assertSame(other, queue.getQueueItemFor(other.getItemData()));
+      
+      // Status changes of removed items must not affect the indices
+      child1.forceStatus(QueueItem.QUEUED);
+      assertEquals(2, queue.getAllWithStatus(QueueItem.QUEUED).size());
+      
+      logger.info("END testSecondaryIndices.");
+   }
+   
    
    /* ### INTERNALS ### */
    
    
+   /**
+    * Queue storage that blocks store operations until released.
+    */
+   private static class BlockingQueueStorage implements QueueStorage
+   {
+      private final ArrayList operations = new ArrayList();
+      
+      private boolean storeBlocked = false;
+      
+      public synchronized void storeQueueItem(QueueItem item) throws QueueStorageException
+      {
+         this.storeBlocked = true;
+         this.notifyAll();
+         
+         long waitStart = System.currentTimeMillis();
+         try
+         {
+            while( this.storeBlocked && ((System.currentTimeMillis() - waitStart) < 5000) ) this.wait(100);
+         }
+         catch(InterruptedException ie){}
+         
+         this.operations.add("store " + item.getId());
+      }
+      
+      public synchronized void storeQueueItems(QueueItem[] items) throws QueueStorageException
+      {
+         for(int i=0; i<items.length; i++) this.operations.add("store " + items[i].getId());
+      }
+      
+      public synchronized void updateStoredQueueItem(QueueItem item) throws QueueStorageException
+      {
+         this.operations.add("update " + item.getId());
+      }
+      
+      public synchronized void updateQueueItemStatus(QueueItem item) throws QueueStorageException
+      {
+         this.operations.add("status " + item.getId());
+      }
+      
+      public synchronized void removeStoredQueueItem(QueueItem item)
+      {
+         this.operations.add("remove " + item.getId());
+      }
+      
+      public java.util.List restoreQueueFromStorage() throws QueueStorageException
+      {
+         return new ArrayList();
+      }
+      
+      synchronized void waitForBlockedStore() throws InterruptedException
+      {
+         while( !this.storeBlocked ) this.wait();
+      }
+      
+      synchronized void releaseStore()
+      {
+         this.storeBlocked = false;
+         this.notifyAll();
+      }
+      
+      synchronized ArrayList getOperations()
+      {
+         return new ArrayList(this.operations);
+      }
+   }
+   
+   
    private static class StringQueueItemData implements QueueItemData
    {
       private static final long serialVersionUID = 1L;
@@ -25,7 +25,6 @@ import com.teletalk.jserver.queue.InOutQueueControllerSystem;
 import com.teletalk.jserver.queue.QueueItem;
 import com.teletalk.jserver.queue.QueueManager;
 import com.teletalk.jserver.queue.messaging.MessagingQueueSystemEndPointIdentifier;
-import com.teletalk.jserver.queue.messaging.QueueMessagingManager;
 import com.teletalk.jserver.util.MessageQueue;
 
 /**
@@ -50,7 +49,7 @@ public class RelayController extends InOutQueueControllerSystem
    private final MessageQueue redispatchQueue = new MessageQueue();
    
    
-   QueueMessagingManager queueMessagingManager;
+   BatchCountingQueueMessagingManager queueMessagingManager;
       
    
 	public RelayController(SubSystem parent)
@@ -59,7 +58,7 @@ public class RelayController extends InOutQueueControllerSystem
       
       super.queueManager.setInQueueMaxSize(MAX_IN_QUEUE_SIZE);
       
-      queueMessagingManager = new QueueMessagingManager(super.queueManager, "QueueMessagingManager", "queueTestRelayer");
+      queueMessagingManager = new BatchCountingQueueMessagingManager(super.queueManager, "QueueMessagingManager", "queueTestRelayer");
       queueMessagingManager.setCheckInteval(1000);
       queueMessagingManager.addServerAddress("localhost", RELAY_CONTROLLER_PORT);
       queueMessagingManager.addDestination("localhost", ReceiverController.RECEIVER_CONTROLLER_PORT);
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.queue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Test case for SegmentedLogQueueStorage.
+ * 
+ * @author Tobias Lfstrand
+ */
+public class SegmentedLogQueueStorageTest extends TestCase
+{
+   private static final Log logger = LogFactory.getLog(SegmentedLogQueueStorageTest.class);
+   
+   private File logDirectory;
+   
+   private Queue queue;
+   
+   
+   protected void setUp() throws Exception
+   {
+      this.logDirectory = new File(System.getProperty("java.io.tmpdir"), "SegmentedLogQueueStorageTest." + System.currentTimeMillis());
+      this.queue = new Queue("LogQueue", new NullQueueStorage());
+   }
+   
+   protected void tearDown() throws Exception
+   {
+      File[] files = this.logDirectory.listFiles();
+      if( files != null )
+      {
+         for(int i=0; i<files.length; i++) files[i].delete();
+      }
+      this.logDirectory.delete();
+   }
+   
+   private SegmentedLogQueueStorage createStorage()
+   {
+      SegmentedLogQueueStorage storage = new SegmentedLogQueueStorage(this.queue);
+      storage.setLogDirectory(this.logDirectory.getAbsolutePath());
+      assertTrue("Failed to engage storage!", storage.engage());
+      return storage;
+   }
+   
+   private static QueueItem createItem(final int index)
+   {
+      QueueItem item = new QueueItem(new TestQueueItemData("Item" + index), "Item" + index);
+      item.setSendReceiveTime(1000 + index);
+      return item;
+   }
+   
+   
+   /**
+    * Tests storing, updating and removing items, and restoring them after the log has been reopened.
+    */
+   public void testStoreAndRestore()
+   {
+      logger.info("BEGIN testStoreAndRestore.");
+      
+      SegmentedLogQueueStorage storage = this.createStorage();
+      
+      // Store items, the first half in one batch
+      final int n = 100;
+      final QueueItem[] batch = new QueueItem[n/2];
+      for(int i=0; i<batch.length; i++) batch[i] = createItem(i);
+      storage.storeQueueItems(batch);
+      
+      final QueueItem[] items = new QueueItem[n];
+      System.arraycopy(batch, 0, items, 0, batch.length);
+      for(int i=batch.length; i<n; i++)
+      {
+         items[i] = createItem(i);
+         storage.storeQueueItem(items[i]);
+      }
+      
+      // Update the status of every third item and remove every tenth
+      for(int i=0; i<n; i+=3)
+      {
+         items[i].forceStatus(QueueItem.DISPATCHED);
+         storage.updateQueueItemStatus(items[i]);
+      }
+      for(int i=0; i<n; i+=10) storage.removeStoredQueueItem(items[i]);
+      
+      assertEquals(n - (n/10), storage.getStoredItemCount());
+      
+      // Reopen log and restore
+      storage.shutDown();
+      assertTrue(storage.engage());
+      
+      List restored = storage.restoreQueueFromStorage();
+      assertEquals(n - (n/10), restored.size());
+      
+      QueueItem item;
+      long lastTime = 0;
+      int index;
+      for(int i=0; i<restored.size(); i++)
+      {
+         item = (QueueItem)restored.get(i);
+         index = Integer.parseInt(item.getId().substring(4));
+         
+         assertTrue("Removed item " + item.getId() + " was restored!", (index % 10) != 0);
+         assertTrue("Items not restored in send/receive time order!", item.getSendReceiveTime() > lastTime);
+         assertTrue(item.isRecoveredFromPersistentStorage());
+         assertEquals("TestQueueItemData for " + item.getId() + " not correctly restored!", "Item" + index, item.getItemData().toString());
+         assertEquals("Status for " + item.getId() + " not correctly restored!", ((index % 3) == 0) ? QueueItem.DISPATCHED : QueueItem.QUEUED, item.getStatus());
+         lastTime = item.getSendReceiveTime();
+      }
+      
+      storage.shutDown();
+      
+      logger.info("END testStoreAndRestore.");
+   }
+   
+   /**
+    * Tests concurrent writes (group commit).
+    */
+   public void testConcurrentWrites() throws Exception
+   {
+      logger.info("BEGIN testConcurrentWrites.");
+      
+      final SegmentedLogQueueStorage storage = this.createStorage();
+      final int nThreads = 10;
+      final int nItemsPerThread = 50;
+      
+      new ConcurrentStorageWriters(storage, nThreads, nItemsPerThread).join(30000);
+      
+      storage.shutDown();
+      assertTrue(storage.engage());
+      
+      ConcurrentStorageWriters.assertRestored(storage, nThreads * nItemsPerThread);
+      
+      storage.shutDown();
+      
+      logger.info("END testConcurrentWrites.");
+   }
+   
+   /**
+    * Tests compaction of the log.
+    */
+   public void testCompaction()
+   {
+      logger.info("BEGIN testCompaction.");
+      
+      SegmentedLogQueueStorage storage = this.createStorage();
+      storage.setSegmentSize(1024);
+      
+      final int n = 200;
+      final QueueItem[] items = new QueueItem[n];
+      for(int i=0; i<n; i++)
+      {
+         items[i] = createItem(i);
+         storage.storeQueueItem(items[i]);
+      }
+      
+      // All records are live at this point, so no segments can have been compacted by the background thread
+      final int segmentCountBeforeCompaction = storage.getSegmentCount();
+      assertTrue("Log not divided into segments!", segmentCountBeforeCompaction > 10);
+      
+      // Keep every twentieth item
+      for(int i=0; i<n; i++)
+      {
+         if( (i % 20) != 0 ) storage.removeStoredQueueItem(items[i]);
+         else
+         {
+            items[i].forceStatus(QueueItem.CHECKED_OUT);
+            storage.updateQueueItemStatus(items[i]);
+         }
+      }
+      
+      storage.compact();
+      assertTrue("Log not compacted!", storage.getSegmentCount() < (segmentCountBeforeCompaction / 2));
+      assertEquals(storage.getSegmentCount(), this.logDirectory.list().length);
+      
+      storage.shutDown();
+      assertTrue(storage.engage());
+      
+      List restored = storage.restoreQueueFromStorage();
+      assertEquals(n / 20, restored.size());
+      QueueItem item;
+      for(int i=0; i<restored.size(); i++)
+      {
+         item = (QueueItem)restored.get(i);
+         assertEquals("Item" + (i * 20), item.getId());
+         assertEquals(QueueItem.CHECKED_OUT, item.getStatus());
+      }
+      
+      storage.shutDown();
+      
+      logger.info("END testCompaction.");
+   }
+   
+   /**
+    * Tests that a record torn by a crash (i.e. a segment truncated in the middle of a record) is skipped when the log is replayed.
+    */
+   public void testTornRecord() throws Exception
+   {
+      logger.info("BEGIN testTornRecord.");
+      
+      SegmentedLogQueueStorage storage = this.createStorage();
+      
+      final int n = 10;
+      for(int i=0; i<n; i++) storage.storeQueueItem(createItem(i));
+      
+      storage.shutDown();
+      
+      // Cut the last record in the segment in half
+      final File[] segmentFiles = this.logDirectory.listFiles();
+      assertEquals(1, segmentFiles.length);
+      assertTrue(segmentFiles[0].getName().startsWith(SegmentedLogQueueStorage.LOG_FILE_BASE_NAME + "."));
+      
+      final long segmentLength = segmentFiles[0].length();
+      RandomAccessFile segmentFile = new RandomAccessFile(segmentFiles[0], "rw");
+      try
+      {
+         segmentFile.setLength(segmentLength - 10);
+      }
+      finally
+      {
+         segmentFile.close();
+      }
+      
+      // Re-engage the storage, and make sure that all records but the torn one are replayed
+      assertTrue(storage.engage());
+      assertEquals(n - 1, storage.getStoredItemCount());
+      
+      List restored = storage.restoreQueueFromStorage();
+      assertEquals(n - 1, restored.size());
+      for(int i=0; i<restored.size(); i++)
+      {
+         assertEquals("Item" + i, ((QueueItem)restored.get(i)).getId());
+      }
+      
+      // New records must still be written and replayed correctly after the torn record
+      storage.storeQueueItem(createItem(n));
+      storage.shutDown();
+      assertTrue(storage.engage());
+      
+      restored = storage.restoreQueueFromStorage();
+      assertEquals(n, restored.size());
+      assertEquals("Item" + n, ((QueueItem)restored.get(n - 1)).getId());
+      
+      storage.shutDown();
+      
+      logger.info("END testTornRecord.");
+   }
+}
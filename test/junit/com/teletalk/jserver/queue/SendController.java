@@ -48,6 +48,9 @@ public class SendController extends OutQueueControllerSystem
    private final MessageQueue dispatchQueue = new MessageQueue();
    
    private final MessageQueue redispatchQueue = new MessageQueue();
+   
+   
+   final BatchCountingQueueMessagingManager queueMessagingManager;
          
    
    /**
@@ -56,7 +59,7 @@ public class SendController extends OutQueueControllerSystem
 	{
 		super(parent, "SendController");
             
-      QueueMessagingManager queueMessagingManager = new QueueMessagingManager(super.queueManager, "QueueMessagingManager");
+      queueMessagingManager = new BatchCountingQueueMessagingManager(super.queueManager, "QueueMessagingManager");
       queueMessagingManager.setCheckInteval(1000);
       super.queueManager.setQueueCollaborationManager(queueMessagingManager);
       queueMessagingManager.addDestination("localhost", RelayController.RELAY_CONTROLLER_PORT);
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.queue.messaging;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.teletalk.jserver.SubSystem;
+import com.teletalk.jserver.queue.OutQueueControllerSystem;
+import com.teletalk.jserver.queue.QueueItem;
+import com.teletalk.jserver.queue.QueueManager;
+import com.teletalk.jserver.queue.command.QueueItemResponse;
+import com.teletalk.jserver.queue.command.QueueItemTransferRequest;
+import com.teletalk.jserver.queue.command.QueueItemTransferResponse;
+import com.teletalk.jserver.queue.command.QueueSystemCommand;
+import com.teletalk.jserver.tcp.TcpEndPointIdentifier;
+
+/**
+ * 
+ * @author Tobias Lfstrand
+ */
+public class RemoteQueueSystemDestinationTest extends TestCase
+{
+   private TestQueueMessagingManager queueMessagingManager;
+   
+   
+   /**
+    */
+   protected void setUp() throws Exception
+   {
+      this.queueMessagingManager = new TestController(null).queueMessagingManager;
+   }
+   
+   /**
+    */
+   public void testTransferBatchSizeAdaptation() throws Exception
+   {
+      this.queueMessagingManager.setMaxTransferBatchSize(16);
+      this.queueMessagingManager.setTransferRoundTripTimeTarget(50);
+      
+      TestDestination destination = new TestDestination(this.queueMessagingManager);
+      
+      try
+      {
+         assertEquals(-1, destination.getSmoothedTransferRoundTripTime());
+         assertEquals(16, destination.getTransferBatchSize());
+         
+         // Round trip time above target - limit is halved
+         destination.transferRequestDispatched(new String[]{"1", "2"});
+         Thread.sleep(200);
+         destination.transferResponseReceived(new String[]{"1", "2"});
+         
+         assertTrue(destination.getSmoothedTransferRoundTripTime() >= 150);
+         assertEquals(8, destination.getTransferBatchSize());
+         
+         // Round trip time within target - limit is increased by one
+         this.queueMessagingManager.setTransferRoundTripTimeTarget(10000);
+         destination.transferRequestDispatched(new String[]{"3"});
+         destination.transferResponseReceived(new String[]{"3"});
+         
+         assertEquals(9, destination.getTransferBatchSize());
+         
+         // Responses for items without recorded dispatch time are ignored
+         destination.transferResponseReceived(new String[]{"1", "4"});
+         assertEquals(9, destination.getTransferBatchSize());
+         
+         // Limit never grows beyond the maximum transfer batch size
+         this.queueMessagingManager.setMaxTransferBatchSize(9);
+         destination.transferRequestDispatched(new String[]{"5"});
+         destination.transferResponseReceived(new String[]{"5"});
+         
+         assertEquals(9, destination.getTransferBatchSize());
+      }
+      finally
+      {
+         destination.destinationDestroyed();
+      }
+   }
+   
+   /**
+    */
+   public void testTransferBatchSizeCapacityLimit()
+   {
+      this.queueMessagingManager.setMaxTransferBatchSize(16);
+      
+      TestDestination destination = new TestDestination(this.queueMessagingManager);
+      
+      try
+      {
+         // Remote in queue max length unknown
+         assertEquals(16, destination.getTransferBatchSize());
+         
+         destination.remoteInQueueMaxLength = 10;
+         destination.expectedRemoteInQueueLength = 4;
+         assertEquals(6, destination.getTransferBatchSize());
+         
+         // Batch size is never less than one
+         destination.expectedRemoteInQueueLength = 10;
+         assertEquals(1, destination.getTransferBatchSize());
+         
+         destination.remoteInQueueMaxLength = 100;
+         assertEquals(16, destination.getTransferBatchSize());
+      }
+      finally
+      {
+         destination.destinationDestroyed();
+      }
+   }
+   
+   /**
+    */
+   public void testCommandBatching() throws Exception
+   {
+      this.queueMessagingManager.setMaxTransferBatchSize(4);
+      this.queueMessagingManager.setDispatchingBlocked(true);
+      
+      TestDestination destination = new TestDestination(this.queueMessagingManager);
+      
+      try
+      {
+         // Keep the dispatcher busy with a first command while the rest are queued
+         destination.dispatchCommandToRemoteQueueSystemDestination(this.createTransferRequest(destination, 1));
+         assertTrue("First command not dispatched!", this.queueMessagingManager.waitForDispatches(1, 10000));
+         
+         for(int i=2; i<=6; i++) destination.dispatchCommandToRemoteQueueSystemDestination(this.createTransferRequest(destination, i));
+         for(int i=7; i<=9; i++) destination.dispatchCommandToRemoteQueueSystemDestination(this.createTransferResponse(destination, i, QueueItemResponse.QUEUE_ITEM_TRANSFER_SUCCESS));
+         for(int i=10; i<=11; i++) destination.dispatchCommandToRemoteQueueSystemDestination(this.createTransferResponse(destination, i, QueueItemResponse.QUEUE_ITEM_TRANSFER_FAILURE));
+         destination.dispatchCommandToRemoteQueueSystemDestination(this.createTransferRequest(destination, 12));
+         
+         this.queueMessagingManager.setDispatchingBlocked(false);
+         assertTrue("Commands not dispatched!", this.queueMessagingManager.waitForDispatches(6, 10000));
+         
+         // Requests are batched up to the transfer batch size, and responses are batched by type
+         assertEquals(3, this.queueMessagingManager.getSingleDispatchCount());
+         assertEquals("[4, 3, 2]", this.queueMessagingManager.getDispatchedBatchSizes().toString());
+      }
+      finally
+      {
+         this.queueMessagingManager.setDispatchingBlocked(false);
+         destination.destinationDestroyed();
+      }
+   }
+   
+   /**
+    */
+   private QueueSystemCommand createTransferRequest(final RemoteQueueSystemDestination destination, final int id)
+   {
+      return new QueueItemTransferRequest(destination.getRemoteQueueSystemAddress(), new QueueItem(null, String.valueOf(id)));
+   }
+   
+   /**
+    */
+   private QueueSystemCommand createTransferResponse(final RemoteQueueSystemDestination destination, final int id, final byte responseType)
+   {
+      return new QueueItemTransferResponse(destination.getRemoteQueueSystemAddress(), new QueueItem(null, String.valueOf(id)), responseType);
+   }
+   
+   
+   /**
+    */
+   private static final class TestController extends OutQueueControllerSystem
+   {
+      final TestQueueMessagingManager queueMessagingManager;
+      
+      public TestController(SubSystem parent)
+      {
+         super(parent, "RemoteQueueSystemDestinationTestController");
+         
+         this.queueMessagingManager = new TestQueueMessagingManager(super.queueManager);
+         super.queueManager.setQueueCollaborationManager(this.queueMessagingManager);
+      }
+      
+      public void run()
+      {
+      }
+   }
+   
+   /**
+    * QueueMessagingManager that records dispatched commands instead of sending them.
+    */
+   private static final class TestQueueMessagingManager extends QueueMessagingManager
+   {
+      private final ArrayList dispatchedBatchSizes = new ArrayList();
+      
+      private int singleDispatchCount = 0;
+      
+      private boolean dispatchingBlocked = false;
+      
+      public TestQueueMessagingManager(QueueManager queueManager)
+      {
+         super(queueManager, "QueueMessagingManager");
+      }
+      
+      protected synchronized void dispatchCommandToRemoteQueueSystemDestination(final QueueSystemCommand command, final RemoteQueueSystemDestination destination)
+      {
+         this.singleDispatchCount++;
+         super.notifyAll();
+         
+         while( this.dispatchingBlocked )
+         {
+            try{ super.wait(); }catch(InterruptedException ie){ return; }
+         }
+      }
+      
+      protected synchronized void dispatchCommandBatchToRemoteQueueSystemDestination(final List commands, final RemoteQueueSystemDestination destination)
+      {
+         this.dispatchedBatchSizes.add(new Integer(commands.size()));
+         super.notifyAll();
+      }
+      
+      synchronized void setDispatchingBlocked(final boolean dispatchingBlocked)
+      {
+         this.dispatchingBlocked = dispatchingBlocked;
+         super.notifyAll();
+      }
+      
+      synchronized int getSingleDispatchCount()
+      {
+         return this.singleDispatchCount;
+      }
+      
+      synchronized List getDispatchedBatchSizes()
+      {
+         return new ArrayList(this.dispatchedBatchSizes);
+      }
+      
+      synchronized boolean waitForDispatches(final int count, final long timeout) throws InterruptedException
+      {
+         final long endTime = System.currentTimeMillis() + timeout;
+         long waitTime;
+         
+         while( (this.singleDispatchCount + this.dispatchedBatchSizes.size()) < count )
+         {
+            waitTime = endTime - System.currentTimeMillis();
+            if( waitTime <= 0 ) return false;
+            super.wait(waitTime);
+         }
+         return true;
+      }
+   }
+   
+   /**
+    */
+   private static final class TestDestination extends RemoteQueueSystemDestination
+   {
+      int remoteInQueueMaxLength = -1;
+      
+      int expectedRemoteInQueueLength = 0;
+      
+      public TestDestination(QueueMessagingManager queueMessagingManager)
+      {
+         super(queueMessagingManager, new TcpEndPointIdentifier("localhost", 1));
+      }
+      
+      public synchronized int getRemoteInQueueMaxLength()
+      {
+         return this.remoteInQueueMaxLength;
+      }
+      
+      public synchronized int getExpectedRemoteInQueueLength()
+      {
+         return this.expectedRemoteInQueueLength;
+      }
+   }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.statistics;
+
+import junit.framework.TestCase;
+
+/**
+ * 
+ * @author Tobias Lfstrand
+ */
+public class HistogramTest extends TestCase
+{
+   /**
+    */
+   public void testExactValues()
+   {
+      Histogram histogram = new Histogram();
+      for(int i=0; i<32; i++) histogram.record(i);
+      
+      assertEquals(32, histogram.getTotalCount());
+      assertEquals(0, histogram.getMin());
+      assertEquals(31, histogram.getMax());
+      assertEquals(15, histogram.getAverage());
+      assertEquals(15, histogram.getValueAtPercentile(50));
+      assertEquals(31, histogram.getValueAtPercentile(100));
+      assertEquals(0, histogram.getValueAtPercentile(0));
+   }
+   
+   /**
+    */
+   public void testRelativeError()
+   {
+      Histogram histogram = new Histogram();
+      for(int i=1; i<=100000; i++) histogram.record(i);
+      
+      assertEquals(528, histogram.getBucketCount());
+      assertWithinRelativeError(50000, histogram.getValueAtPercentile(50), histogram);
+      assertWithinRelativeError(99000, histogram.getValueAtPercentile(99), histogram);
+      assertWithinRelativeError(99900, histogram.getValueAtPercentile(99.9), histogram);
+      assertEquals(100000, histogram.getValueAtPercentile(100));
+      
+      // Values above the highest trackable value end up in the last bucket
+      histogram.record(Long.MAX_VALUE / 2);
+      assertEquals(Long.MAX_VALUE / 2, histogram.getMax());
+      assertEquals(histogram.getHighestTrackableValue(), histogram.getValueAtPercentile(100));
+   }
+   
+   private static void assertWithinRelativeError(final long expected, final long actual, final Histogram histogram)
+   {
+      final double maxError = 1.0 / (1 << (histogram.getSubBucketBits() - 1));
+      assertTrue("Expected " + expected + ", got " + actual, Math.abs(actual - expected) <= (expected * maxError));
+   }
+   
+   /**
+    */
+   public void testAddAndReset()
+   {
+      Histogram histogram1 = new Histogram();
+      Histogram histogram2 = histogram1.createEmptyCopy();
+      for(int i=0; i<100; i++) histogram1.record(10);
+      histogram2.record(1000);
+      
+      histogram1.add(histogram2);
+      assertEquals(101, histogram1.getTotalCount());
+      assertEquals(10, histogram1.getValueAtPercentile(99));
+      assertEquals(1000, histogram1.getValueAtPercentile(100));
+      assertEquals(10, histogram1.getMin());
+      
+      histogram1.reset();
+      assertEquals(0, histogram1.getTotalCount());
+      assertEquals(0, histogram1.getMax());
+      assertEquals(0, histogram1.getValueAtPercentile(99));
+      
+      try
+      {
+         histogram1.add(new Histogram(3, 20));
+         fail("Incompatible histograms added!");
+      }
+      catch(IllegalArgumentException e){}
+   }
+   
+   /**
+    */
+   public void testHistogramStatisticsSource() throws Exception
+   {
+      final HistogramStatisticsSource source = new HistogramStatisticsSource(false, "avg time", "max time", 4);
+      source.setSuffix(" ms");
+      assertEquals(4, source.getStripeCount());
+      
+      Thread[] threads = new Thread[4];
+      for(int t=0; t<threads.length; t++)
+      {
+         threads[t] = new Thread()
+         {
+            public void run()
+            {
+               for(int i=1; i<=10000; i++) source.update(i % 100);
+            }
+         };
+      }
+      for(int t=0; t<threads.length; t++) threads[t].start();
+      for(int t=0; t<threads.length; t++) threads[t].join();
+      
+      assertEquals(40000, source.getCount());
+      assertEquals(99, source.getMax());
+      assertEquals("40000", source.getStatisticsEntry(AverageMaxStatisticsSource.COUNT_DEFAULT_ENTRY_NAME).getValue());
+      assertEquals("99 ms", source.getStatisticsEntry("max time").getValue());
+      assertEquals("49 ms", source.getStatisticsEntry(HistogramStatisticsSource.P50_DEFAULT_ENTRY_NAME).getValue());
+      assertEquals("99 ms", source.getStatisticsEntry(HistogramStatisticsSource.P99_DEFAULT_ENTRY_NAME).getValue()); // 98 is in bucket 96-99
+      assertEquals(6, source.getStatisticsEntryNames().length);
+      
+      source.reset();
+      assertEquals(0, source.getCount());
+      assertEquals("0 ms", source.getStatisticsEntry(HistogramStatisticsSource.P999_DEFAULT_ENTRY_NAME).getValue());
+   }
+}
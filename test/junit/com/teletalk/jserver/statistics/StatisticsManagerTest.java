@@ -0,0 +1,75 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.statistics;
+
+import junit.framework.TestCase;
+
+/**
+ * 
+ * @author Tobias Lfstrand
+ */
+public class StatisticsManagerTest extends TestCase
+{
+   private StatisticsManager statisticsManager;
+   
+   private DefaultStatisticsSource parentSource;
+   
+   private DefaultStatisticsSource childSource;
+   
+   private SimpleStatisticsEntry entry;
+   
+   /**
+    */
+   protected void setUp() throws Exception
+   {
+      this.statisticsManager = new StatisticsManager(null, "StatisticsManagerTest");
+      
+      this.childSource = new DefaultStatisticsSource();
+      this.entry = new SimpleStatisticsEntry("value");
+      
+      this.parentSource = new DefaultStatisticsSource();
+      this.parentSource.addSource("child", this.childSource);
+      this.parentSource.addEntry("entry", this.entry);
+      
+      this.statisticsManager.addStatisticsSource("parent", this.parentSource);
+   }
+   
+   /**
+    */
+   public void testFindSource()
+   {
+      assertSame(this.parentSource, this.statisticsManager.find(new String[]{"parent"}));
+      assertSame(this.childSource, this.statisticsManager.find(new String[]{"parent", "child"}));
+   }
+   
+   /**
+    */
+   public void testFindEntry()
+   {
+      assertSame(this.entry, this.statisticsManager.find(new String[]{"parent", "entry"}));
+   }
+   
+   /**
+    */
+   public void testFindMissing()
+   {
+      assertNull(this.statisticsManager.find(new String[]{"missing"}));
+      assertNull(this.statisticsManager.find(new String[]{"parent", "missing"}));
+      assertNull(this.statisticsManager.find(new String[]{"missing", "entry"}));
+      assertNull(this.statisticsManager.find(new String[0]));
+      assertNull(this.statisticsManager.find(null));
+   }
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.tcp;
+
+import java.io.DataInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import junit.framework.TestCase;
+
+/**
+ * 
+ * @author Tobias Lfstrand
+ */
+public class NioSocketTest extends TestCase
+{
+   private static final int N_CONNECTIONS = 10;
+   
+   private static final int DATA_SIZE = 1024 * 1024;
+   
+   
+   private NioTransport transport;
+   
+   private ServerSocket serverSocket;
+   
+   
+   /**
+    */
+   protected void setUp() throws Exception
+   {
+      super.setUp();
+      
+      this.transport = new NioTransport("NioSocketTest", 2);
+      this.serverSocket = new NioServerSocketFactory(this.transport).createServerSocket(0, 50, InetAddress.getByName("localhost"));
+   }
+   
+   /**
+    */
+   protected void tearDown() throws Exception
+   {
+      this.serverSocket.close();
+      this.transport.shutDown();
+      
+      super.tearDown();
+   }
+   
+   /**
+    * Tests sending large amounts of data in both directions over several connections served by the same (small) set of I/O threads.
+    */
+   public void testEcho() throws Exception
+   {
+      final Thread acceptThread = new Thread()
+      {
+         public void run()
+         {
+            try
+            {
+               for(int i=0; i<N_CONNECTIONS; i++)
+               {
+                  final Socket socket = serverSocket.accept();
+                  Thread echoThread = new Thread()
+                  {
+                     public void run()
+                     {
+                        try
+                        {
+                           InputStream in = socket.getInputStream();
+                           OutputStream out = socket.getOutputStream();
+                           byte[] buffer = new byte[4096];
+                           int read;
+                           while( (read = in.read(buffer)) >= 0 ) out.write(buffer, 0, read);
+                           socket.close();
+                        }
+                        catch(Exception e){}
+                     }
+                  };
+                  echoThread.setDaemon(true);
+                  echoThread.start();
+               }
+            }
+            catch(Exception e){}
+         }
+      };
+      acceptThread.setDaemon(true);
+      acceptThread.start();
+      
+      final NioSocketFactory socketFactory = new NioSocketFactory(this.transport);
+      final Socket[] sockets = new Socket[N_CONNECTIONS];
+      final Thread[] writerThreads = new Thread[N_CONNECTIONS];
+      
+      for(int i=0; i<N_CONNECTIONS; i++)
+      {
+         sockets[i] = socketFactory.createSocket(InetAddress.getByName("localhost"), this.serverSocket.getLocalPort(), 5000);
+         assertTrue(sockets[i] instanceof NioSocket);
+         
+         final DataOutputStream out = new DataOutputStream(sockets[i].getOutputStream());
+         final int seed = i;
+         writerThreads[i] = new Thread()
+         {
+            public void run()
+            {
+               try
+               {
+                  byte[] data = new byte[DATA_SIZE];
+                  for(int q=0; q<DATA_SIZE; q++) data[q] = (byte)(q + seed);
+                  out.write(data); // Large write - will fill up the socket send buffer
+                  out.writeInt(DATA_SIZE);
+
+               }
+               catch(Exception e){}
+            }
+         };
+         writerThreads[i].setDaemon(true);
+         writerThreads[i].start();
+      }
+      
+      for(int i=0; i<N_CONNECTIONS; i++)
+      {
+         sockets[i].setSoTimeout(10000);
+         DataInputStream in = new DataInputStream(sockets[i].getInputStream());
+         byte[] data = new byte[DATA_SIZE];
+         in.readFully(data);
+         for(int q=0; q<DATA_SIZE; q++)
+         {
+            if( data[q] != (byte)(q + i) ) fail("Invalid data at position " + q + " in connection " + i + "!");
+         }
+         assertEquals(DATA_SIZE, in.readInt());
+         
+         sockets[i].close();
+         assertTrue(sockets[i].isClosed());
+      }
+   }
+   
+   /**
+    * Tests that read timeouts are honoured.
+    */
+   public void testReadTimeout() throws Exception
+   {
+      final Socket socket = new NioSocketFactory(this.transport).createSocket(InetAddress.getByName("localhost"), this.serverSocket.getLocalPort(), 5000);
+      final Socket serverSideSocket = this.serverSocket.accept();
+      
+      try
+      {
+         socket.setSoTimeout(200);
+         long startTime = System.currentTimeMillis();
+         try
+         {
+            socket.getInputStream().read();
+            fail("Expected SocketTimeoutException!");
+         }
+         catch(SocketTimeoutException ste){}
+         assertTrue((System.currentTimeMillis() - startTime) >= 150);
+         
+         serverSideSocket.getOutputStream().write(42);
+         assertEquals(42, socket.getInputStream().read());
+         
+         serverSideSocket.close();
+         assertEquals(-1, socket.getInputStream().read());
+      }
+      finally
+      {
+         socket.close();
+      }
+   }
+   
+   /**
+    * Tests delivery of data to a receiver in the I/O thread, after data has been read through the input stream of the socket.
+    */
+   public void testReceiver() throws Exception
+   {
+      final NioSocket socket = (NioSocket)new NioSocketFactory(this.transport).createSocket(InetAddress.getByName("localhost"), this.serverSocket.getLocalPort(), 5000);
+      final Socket serverSideSocket = this.serverSocket.accept();
+      final CollectingReceiver receiver = new CollectingReceiver();
+      
+      try
+      {
+         final byte[] data = new byte[DATA_SIZE];
+         for(int q=0; q<DATA_SIZE; q++) data[q] = (byte)(q % 251);
+         
+         final OutputStream out = serverSideSocket.getOutputStream();
+         out.write(42);
+         out.write(data, 0, 1000);
+         out.flush();
+         
+         // Read the first byte through the stream, and let the receiver get the data that follows it (some of which may already be buffered)
+         socket.setSoTimeout(10000);
+         assertEquals(42, socket.getInputStream().read());
+         socket.setReceiver(receiver);
+         
+         try
+         {
+            socket.getInputStream().read();
+            fail("Expected IOException!");
+         }
+         catch(IOException ioe){}
+         
+         try
+         {
+            socket.setReceiver(new CollectingReceiver());
+            fail("Expected IllegalStateException!");
+         }
+         catch(IllegalStateException ise){}
+         
+         out.write(data, 1000, DATA_SIZE - 1000); // Large write - more than fits in the receive buffer of the socket
+         serverSideSocket.close();
+         
+         final Exception cause = receiver.waitForReceiveEnded(10000);
+         assertTrue("Unexpected cause: " + cause, cause instanceof EOFException);
+         
+         final byte[] received = receiver.getReceivedData();
+         assertEquals(DATA_SIZE, received.length);
+         for(int q=0; q<DATA_SIZE; q++)
+         {
+            if( received[q] != data[q] ) fail("Invalid data at position " + q + "!");
+         }
+         assertEquals(1, receiver.getReceiveEndedCount());
+      }
+      finally
+      {
+         socket.close();
+         serverSideSocket.close();
+      }
+   }
+   
+   /**
+    * Tests that the receive is ended when the socket is closed.
+    */
+   public void testReceiverClose() throws Exception
+   {
+      final NioSocket socket = (NioSocket)new NioSocketFactory(this.transport).createSocket(InetAddress.getByName("localhost"), this.serverSocket.getLocalPort(), 5000);
+      final Socket serverSideSocket = this.serverSocket.accept();
+      final CollectingReceiver receiver = new CollectingReceiver();
+      
+      try
+      {
+         socket.setReceiver(receiver);
+         serverSideSocket.getOutputStream().write(42);
+         
+         final long startTime = System.currentTimeMillis();
+         while( (receiver.getReceivedData().length == 0) && ((System.currentTimeMillis() - startTime) < 10000) ) Thread.sleep(10);
+         assertEquals(1, receiver.getReceivedData().length);
+         
+         socket.close();
+         
+         final Exception cause = receiver.waitForReceiveEnded(10000);
+         assertTrue("Unexpected cause: " + cause, cause instanceof SocketException);
+         assertEquals(1, receiver.getReceiveEndedCount());
+      }
+      finally
+      {
+         socket.close();
+         serverSideSocket.close();
+      }
+   }
+   
+   /**
+    * Tests transferring data directly from a file to a socket, interleaved with data written through the output stream of the socket.
+    */
+   public void testTransferFrom() throws Exception
+   {
+      final File file = File.createTempFile("NioSocketTest", ".dat");
+      final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+      final NioSocket socket = (NioSocket)new NioSocketFactory(this.transport).createSocket(InetAddress.getByName("localhost"), this.serverSocket.getLocalPort(), 5000);
+      final Socket serverSideSocket = this.serverSocket.accept();
+      
+      try
+      {
+         final byte[] data = new byte[DATA_SIZE];
+         for(int q=0; q<DATA_SIZE; q++) data[q] = (byte)(q % 251);
+         randomAccessFile.write(data);
+         final FileChannel fileChannel = randomAccessFile.getChannel();
+         
+         final Thread writerThread = new Thread()
+         {
+            public void run()
+            {
+               try
+               {
+                  DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                  out.writeInt(DATA_SIZE - 100);
+                  out.flush();
+                  socket.transferFrom(fileChannel, 100, DATA_SIZE - 100); // Large transfer - will fill up the socket send buffer
+                  out.writeInt(42);
+                  out.flush();
+               }
+               catch(Exception e){}
+            }
+         };
+         writerThread.setDaemon(true);
+         writerThread.start();
+         
+         serverSideSocket.setSoTimeout(10000);
+         DataInputStream in = new DataInputStream(serverSideSocket.getInputStream());
+         assertEquals(DATA_SIZE - 100, in.readInt());
+         byte[] received = new byte[DATA_SIZE - 100];
+         in.readFully(received);
+         for(int q=0; q<received.length; q++)
+         {
+            if( received[q] != data[q + 100] ) fail("Invalid data at position " + q + "!");
+         }
+         assertEquals(42, in.readInt());
+         
+         try
+         {
+            socket.transferFrom(fileChannel, DATA_SIZE - 10, 20);
+            fail("Expected EOFException!");
+         }
+         catch(EOFException eofe){}
+      }
+      finally
+      {
+         socket.close();
+         serverSideSocket.close();
+         randomAccessFile.close();
+         file.delete();
+      }
+   }
+   
+   /**
+    * Receiver that collects all received data.
+    */
+   private static final class CollectingReceiver implements NioSocketReceiver
+   {
+      private final ByteArrayOutputStream receivedData = new ByteArrayOutputStream();
+      
+      private Exception receiveEndedCause = null;
+      
+      private int receiveEndedCount = 0;
+      
+      public synchronized void dataReceived(final ByteBuffer data)
+      {
+         while( data.hasRemaining() ) this.receivedData.write(data.get());
+      }
+      
+      public synchronized void receiveEnded(final Exception cause)
+      {
+         this.receiveEndedCause = cause;
+         this.receiveEndedCount++;
+         this.notifyAll();
+      }
+      
+      public synchronized byte[] getReceivedData()
+      {
+         return this.receivedData.toByteArray();
+      }
+      
+      public synchronized int getReceiveEndedCount()
+      {
+         return this.receiveEndedCount;
+      }
+      
+      public synchronized Exception waitForReceiveEnded(final long timeout) throws InterruptedException
+      {
+         final long startTime = System.currentTimeMillis();
+         long waitTime;
+         while( (this.receiveEndedCount == 0) && ((waitTime = timeout - (System.currentTimeMillis() - startTime)) > 0) ) this.wait(waitTime);
+         return this.receiveEndedCause;
+      }
+   }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.tcp.messaging;
+
+import junit.framework.TestCase;
+
+/**
+ * 
+ * @author Tobias Lfstrand
+ */
+public class FlowControlStateTest extends TestCase
+{
+   public void testGrants()
+   {
+      FlowControlState state = new FlowControlState(2);
+      
+      assertTrue(state.tryAcquire());
+      assertTrue(state.tryAcquire());
+      assertFalse(state.tryAcquire());
+      
+      assertTrue(state.creditsGranted("100:4"));
+      assertEquals(2, state.getCredits());
+      
+      // Reordered grant for the same epoch must not lower the limit
+      assertTrue(state.creditsGranted("100:3"));
+      assertEquals(2, state.getCredits());
+      
+      assertFalse(state.creditsGranted("invalid"));
+   }
+   
+   public void testStaleGrants()
+   {
+      FlowControlState state = new FlowControlState(2);
+      
+      assertTrue(state.creditsGranted("200:10"));
+      assertEquals(10, state.getCredits());
+      
+      // Grant from an older epoch (arriving late) must be ignored
+      assertFalse(state.creditsGranted("100:50"));
+      assertEquals(10, state.getCredits());
+      
+      // A new state (after a disconnect) must still ignore grants older than the latest epoch
+      FlowControlState newState = new FlowControlState(2, state.getLatestGrantEpoch());
+      assertEquals(2, newState.getCredits());
+      assertFalse(newState.creditsGranted("100:50"));
+      assertEquals(2, newState.getCredits());
+      
+      assertTrue(newState.creditsGranted("300:5"));
+      assertEquals(5, newState.getCredits());
+   }
+}
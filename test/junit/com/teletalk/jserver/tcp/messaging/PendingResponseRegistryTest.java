@@ -0,0 +1,82 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.tcp.messaging;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * 
+ * @author Tobias Lfstrand
+ */
+public class PendingResponseRegistryTest extends TestCase
+{
+   public void testUniqueIds()
+   {
+      PendingResponseRegistry registry = new PendingResponseRegistry(4);
+      HashSet ids = new HashSet();
+      long id;
+      
+      for(int i=0; i<10000; i++)
+      {
+         id = registry.createId();
+         assertTrue(id >= 0);
+         assertTrue(id != MessageHeader.UNDEFINED);
+         assertTrue("Duplicate id " + id, ids.add(new Long(id)));
+      }
+   }
+   
+   public void testPutGetRemove()
+   {
+      PendingResponseRegistry registry = new PendingResponseRegistry();
+      HashMap reference = new HashMap();
+      Random random = new Random(4711);
+      long id;
+      Long key;
+      
+      // Mix inserts and removals, to exercise resizing and removal from probe sequences
+      for(int i=0; i<20000; i++)
+      {
+         if( random.nextInt(3) > 0 ) id = registry.createId();
+         else id = random.nextInt(2000) * registry.getStripeCount() + random.nextInt(registry.getStripeCount());
+         key = new Long(id);
+         
+         if( random.nextBoolean() )
+         {
+            assertEquals(reference.put(key, key), registry.put(id, key));
+         }
+         else
+         {
+            assertEquals(reference.remove(key), registry.remove(id));
+         }
+      }
+      
+      assertEquals(reference.size(), registry.size());
+      for(Iterator it = reference.keySet().iterator(); it.hasNext(); )
+      {
+         key = (Long)it.next();
+         assertEquals(key, registry.get(key.longValue()));
+      }
+      
+      registry.clear();
+      assertEquals(0, registry.size());
+      assertNull(registry.get(0));
+   }
+}
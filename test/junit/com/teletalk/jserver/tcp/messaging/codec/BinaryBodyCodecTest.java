@@ -0,0 +1,160 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.tcp.messaging.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+
+import junit.framework.TestCase;
+
+import com.teletalk.jserver.tcp.messaging.MessagingEndPointInputStream;
+import com.teletalk.jserver.tcp.messaging.rpc.RemoteProcedureCall;
+import com.teletalk.jserver.tcp.messaging.rpc.RemoteProcedureCallResponse;
+import com.teletalk.jserver.util.NoHeadersObjectOutputStream;
+import com.teletalk.jserver.util.OutputStreamer;
+
+/**
+ * 
+ * @author Tobias Lfstrand
+ */
+public class BinaryBodyCodecTest extends TestCase
+{
+   private static class TestOutputStreamer extends DataOutputStream implements OutputStreamer
+   {
+      private ObjectOutputStream contextObjectOutputStream = null;
+      
+      public TestOutputStreamer(final OutputStream outputStream)
+      {
+         super(outputStream);
+      }
+      
+      public ObjectOutputStream getContextObjectOutputStream() throws IOException
+      {
+         if( this.contextObjectOutputStream == null ) this.contextObjectOutputStream = new NoHeadersObjectOutputStream(super.out);
+         return this.contextObjectOutputStream;
+      }
+   }
+   
+   private final BinaryBodyCodec codec = new BinaryBodyCodec();
+   
+   private Object roundTrip(final Object value) throws IOException
+   {
+      assertTrue(codec.canEncode(value));
+      
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      TestOutputStreamer output = new TestOutputStreamer(bytes);
+      codec.encode(value, output);
+      output.flush();
+      
+      MessagingEndPointInputStream input = new MessagingEndPointInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+      Object decoded = codec.decode(input, null);
+      assertEquals("Trailing data", 0, input.available());
+      return decoded;
+   }
+   
+   public void testPrimitivesAndStrings() throws IOException
+   {
+      assertNull(roundTrip(null));
+      assertEquals(Boolean.TRUE, roundTrip(Boolean.TRUE));
+      assertEquals(new Byte((byte)-3), roundTrip(new Byte((byte)-3)));
+      assertEquals(new Short((short)4711), roundTrip(new Short((short)4711)));
+      assertEquals(new Character(''), roundTrip(new Character('')));
+      assertEquals(new Integer(Integer.MIN_VALUE), roundTrip(new Integer(Integer.MIN_VALUE)));
+      assertEquals(new Long(Long.MAX_VALUE), roundTrip(new Long(Long.MAX_VALUE)));
+      assertEquals(new Float(1.5f), roundTrip(new Float(1.5f)));
+      assertEquals(new Double(Math.PI), roundTrip(new Double(Math.PI)));
+      assertEquals("RequestBritt", roundTrip("RequestBritt"));
+      
+      char[] chars = new char[100000];
+      Arrays.fill(chars, '\u20AC');
+      String longString = new String(chars);
+      assertEquals(longString, roundTrip(longString));
+   }
+   
+   public void testArraysAndCollections() throws IOException
+   {
+      assertTrue(Arrays.equals(new byte[]{1, 2, 3}, (byte[])roundTrip(new byte[]{1, 2, 3})));
+      assertTrue(Arrays.equals(new int[]{1, -2, 3}, (int[])roundTrip(new int[]{1, -2, 3})));
+      assertTrue(Arrays.equals(new long[]{1, -2, 3}, (long[])roundTrip(new long[]{1, -2, 3})));
+      assertTrue(Arrays.equals(new double[]{1.0, -2.0}, (double[])roundTrip(new double[]{1.0, -2.0})));
+      assertTrue(Arrays.equals(new boolean[]{true, false}, (boolean[])roundTrip(new boolean[]{true, false})));
+      
+      String[] strings = new String[]{"a", null, "c"};
+      Object decodedStrings = roundTrip(strings);
+      assertEquals(String[].class, decodedStrings.getClass());
+      assertTrue(Arrays.equals(strings, (String[])decodedStrings));
+      
+      HashMap map = new HashMap();
+      map.put("int", new Integer(1));
+      map.put(new Long(2), "long key");
+      map.put("date", new Date(123456789)); // Not natively supported - java serialized
+      ArrayList list = new ArrayList();
+      list.add("x");
+      list.add(new Date(987654321));
+      list.add(new Integer(3));
+      map.put("list", list);
+      
+      assertEquals(map, roundTrip(map));
+      
+      assertFalse(codec.canEncode(new Date()));
+   }
+   
+   public void testRpc() throws IOException
+   {
+      RemoteProcedureCall rpc = new RemoteProcedureCall("handler.method", new Object[]{"param", new Integer(4711), new Date(0)}, true);
+      RemoteProcedureCall decodedRpc = (RemoteProcedureCall)roundTrip(rpc);
+      assertEquals(rpc.getMethodName(), decodedRpc.getMethodName());
+      assertTrue(Arrays.equals(rpc.getParams(), decodedRpc.getParams()));
+      assertTrue(decodedRpc.isOutParameterModeEnabled());
+      
+      RemoteProcedureCallResponse rpcResponse = new RemoteProcedureCallResponse("result", new Object[]{new int[0]});
+      RemoteProcedureCallResponse decodedRpcResponse = (RemoteProcedureCallResponse)roundTrip(rpcResponse);
+      assertNull(decodedRpcResponse.getRpcException());
+      assertEquals("result", decodedRpcResponse.getReturnValue());
+      assertEquals(1, decodedRpcResponse.getParams().length);
+   }
+   
+   public void testSharedAndCyclicReferences() throws IOException
+   {
+      ArrayList cyclicList = new ArrayList();
+      cyclicList.add("x");
+      cyclicList.add(cyclicList);
+      assertFalse(codec.canEncode(cyclicList));
+      
+      HashMap cyclicMap = new HashMap();
+      cyclicMap.put("self", new Object[]{cyclicMap});
+      assertFalse(codec.canEncode(cyclicMap));
+      
+      ArrayList sharedList = new ArrayList();
+      sharedList.add("shared");
+      assertFalse(codec.canEncode(new Object[]{sharedList, sharedList}));
+      assertFalse(codec.canEncode(new RemoteProcedureCall("handler.method", new Object[]{sharedList, sharedList}, false)));
+      
+      // Shared immutable values are fine
+      String shared = "shared";
+      Integer sharedInt = new Integer(1);
+      ArrayList list = (ArrayList)roundTrip(new ArrayList(Arrays.asList(new Object[]{shared, shared, sharedInt, sharedInt})));
+      assertEquals(4, list.size());
+   }
+}
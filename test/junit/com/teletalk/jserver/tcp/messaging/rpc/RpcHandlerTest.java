@@ -0,0 +1,125 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.tcp.messaging.rpc;
+
+import java.util.HashMap;
+
+import junit.framework.TestCase;
+
+/**
+ * 
+ * @author Tobias Lfstrand
+ */
+public class RpcHandlerTest extends TestCase
+{
+   public static class TestHandler
+   {
+      public String echo(String value)
+      {
+         return value;
+      }
+      
+      public String echo(Integer value)
+      {
+         return "Integer " + value;
+      }
+      
+      public String describe(Object value)
+      {
+         return "Object";
+      }
+      
+      public String describe(String value)
+      {
+         return "String";
+      }
+      
+      public int add(int a, int b)
+      {
+         return a + b;
+      }
+      
+      public int count(Object[] params)
+      {
+         return params.length;
+      }
+      
+      public void fail(String message) throws RpcException
+      {
+         throw new RpcException(4711, message);
+      }
+   }
+   
+   private void assertRpcException(final RpcHandler rpcHandler, final String methodName, final Object[] params, final long expectedErrorCode) throws Exception
+   {
+      try
+      {
+         rpcHandler.executeMethodCall(methodName, params);
+         fail("Expected RpcException when invoking " + methodName + "!");
+      }
+      catch(RpcException rpce)
+      {
+         assertEquals(expectedErrorCode, rpce.getErrorCode());
+      }
+   }
+   
+   public void testMethodResolution() throws Exception
+   {
+      RpcHandler rpcHandler = new RpcHandler();
+      rpcHandler.addHandler("test", new TestHandler());
+      
+      // Run twice, to test both resolution and cached dispatch
+      for(int i=0; i<2; i++)
+      {
+         assertEquals("a", rpcHandler.executeMethodCall("test.echo", new Object[]{"a"}));
+         assertEquals("Integer 1", rpcHandler.executeMethodCall("test.echo", new Object[]{new Integer(1)}));
+         assertEquals("String", rpcHandler.executeMethodCall("test.describe", new Object[]{"a"}));
+         assertEquals("String", rpcHandler.executeMethodCall("test.describe", new Object[]{null}));
+         assertEquals("Object", rpcHandler.executeMethodCall("test.describe", new Object[]{new Integer(1)}));
+         assertEquals(new Integer(3), rpcHandler.executeMethodCall("test.add", new Object[]{new Integer(1), new Integer(2)}));
+         assertEquals(new Integer(2), rpcHandler.executeMethodCall("test.count", new Object[]{"a", "b"}));
+         assertEquals(new Integer(0), rpcHandler.executeMethodCall("test.count", new Object[0]));
+         
+         assertRpcException(rpcHandler, "test.add", new Object[]{new Integer(1), null}, RpcException.METHOD_NOT_FOUND);
+         // A null parameter matches both echo(String) and echo(Integer), neither of which is more specific
+         assertRpcException(rpcHandler, "test.echo", new Object[]{null}, RpcException.METHOD_NOT_FOUND);
+         assertRpcException(rpcHandler, "test.noSuchMethod", new Object[0], RpcException.METHOD_NOT_FOUND);
+         assertRpcException(rpcHandler, "test.hashCode", new Object[0], RpcException.JAVA_LANG_OBJECT_METHOD_CALLED);
+         assertRpcException(rpcHandler, "test.fail", new Object[]{"failed"}, 4711);
+      }
+      
+      assertEquals(10, rpcHandler.getDispatchTable(TestHandler.class).getCachedSignatureCount());
+   }
+   
+   public void testHandlerRegistration() throws Exception
+   {
+      RpcHandler rpcHandler = new RpcHandler();
+      rpcHandler.addHandler("test", new TestHandler());
+      assertEquals("a", rpcHandler.executeMethodCall("test.echo", new Object[]{"a"}));
+      
+      rpcHandler.removeHandler("test");
+      // Unknown handler name - default handler (the RpcHandler itself) is used
+      assertRpcException(rpcHandler, "test.echo", new Object[]{"a"}, RpcException.METHOD_NOT_FOUND);
+      
+      HashMap handlers = new HashMap();
+      handlers.put("test2", new TestHandler());
+      rpcHandler.setHandlers(handlers);
+      assertEquals("b", rpcHandler.executeMethodCall("test2.echo", new Object[]{"b"}));
+      
+      rpcHandler.setDefaultHandler(new TestHandler());
+      assertEquals("c", rpcHandler.executeMethodCall("echo", new Object[]{"c"}));
+   }
+}
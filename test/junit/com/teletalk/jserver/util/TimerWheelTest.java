@@ -0,0 +1,139 @@
+/*
+ * Copyright 2007 the project originators.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teletalk.jserver.util;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+/**
+ * 
+ * @author Tobias Lfstrand
+ */
+public class TimerWheelTest extends TestCase
+{
+   private TimerWheel timerWheel;
+   
+   private final ArrayList expiredTasks = new ArrayList();
+   
+   
+   /**
+    */
+   protected void setUp() throws Exception
+   {
+      super.setUp();
+      
+      this.timerWheel = new TimerWheel("TimerWheelTest", 5, 8); // Small wheel, to make timeouts span several rounds
+   }
+   
+   /**
+    */
+   protected void tearDown() throws Exception
+   {
+      this.timerWheel.stop();
+      
+      super.tearDown();
+   }
+   
+   private Runnable createTask(final int id)
+   {
+      return new Runnable()
+      {
+         public void run()
+         {
+            synchronized(expiredTasks)
+            {
+               expiredTasks.add(new Integer(id));
+               expiredTasks.notifyAll();
+            }
+         }
+      };
+   }
+   
+   private void waitForExpiredTasks(final int count) throws InterruptedException
+   {
+      final long endTime = System.currentTimeMillis() + 5000;
+      synchronized(this.expiredTasks)
+      {
+         while( (this.expiredTasks.size() < count) && (System.currentTimeMillis() < endTime) ) this.expiredTasks.wait(100);
+      }
+   }
+   
+   
+   /* ### TEST METHODS ### */
+   
+   
+   /**
+    */
+   public void testExpirationOrder() throws Exception
+   {
+      assertEquals(8, this.timerWheel.getTicksPerWheel());
+      
+      final long startTime = System.currentTimeMillis();
+      
+      // Schedule in reverse order, with delays spanning several rotations of the wheel
+      for(int i=9; i>=0; i--) this.timerWheel.schedule(this.createTask(i), 20 + (i * 25));
+      assertEquals(10, this.timerWheel.size());
+      
+      this.waitForExpiredTasks(10);
+      
+      assertTrue("Timeouts expired too early", (System.currentTimeMillis() - startTime) >= (20 + (9 * 25)));
+      assertEquals(0, this.timerWheel.size());
+      synchronized(this.expiredTasks)
+      {
+         assertEquals(10, this.expiredTasks.size());
+         for(int i=0; i<10; i++) assertEquals(new Integer(i), this.expiredTasks.get(i));
+      }
+   }
+   
+   /**
+    */
+   public void testCancel() throws Exception
+   {
+      final TimerWheel.Timeout cancelled = this.timerWheel.schedule(this.createTask(1), 50);
+      final TimerWheel.Timeout expiring = this.timerWheel.schedule(this.createTask(2), 100);
+      
+      assertTrue(cancelled.cancel());
+      assertFalse(cancelled.cancel());
+      assertTrue(cancelled.isCancelled());
+      
+      this.waitForExpiredTasks(1);
+      
+      synchronized(this.expiredTasks)
+      {
+         assertEquals(1, this.expiredTasks.size());
+         assertEquals(new Integer(2), this.expiredTasks.get(0));
+      }
+      assertTrue(expiring.isExpired());
+      assertFalse(expiring.cancel());
+      assertFalse(cancelled.isExpired());
+      assertEquals(0, this.timerWheel.size());
+   }
+   
+   /**
+    */
+   public void testScheduleAfterStop() throws Exception
+   {
+      this.timerWheel.stop();
+      
+      try
+      {
+         this.timerWheel.schedule(this.createTask(1), 10);
+         fail("Expected IllegalStateException");
+      }
+      catch(IllegalStateException e){}
+   }
+}